@@ -49,6 +49,12 @@ import  weka.estimators.*;
  * the training set is not smaller 10. If this is the case the number of folds
  * is set equal to the number of instances.<p>
  *
+ * With more than one thread, the E and M steps work on chunks of the
+ * instances in parallel, and the cross validation runs the folds of several
+ * numbers of clusters at once. The numbers of clusters beyond the one at
+ * which the loglikelihood stops increasing are evaluated in vain, but the
+ * selected number of clusters is the same as with one thread. <p>
+ *
  * Valid options are:<p>
  *
  * -V <br>
@@ -69,6 +75,9 @@ import  weka.estimators.*;
  * Set the minimum allowable standard deviation for normal density calculation.
  * <p>
  *
+ * -num-slots <num> <br>
+ * Number of threads, 0 for one per processor (default 1). <p>
+ *
  * @author Mark Hall (mhall@cs.waikato.ac.nz)
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @version $Revision$
@@ -133,6 +142,113 @@ public class EM
  /** globally replace missing values */
   private ReplaceMissingValues m_replaceMissing;
 
+  /** the number of threads, 0 for one per processor */
+  private int m_numExecutionSlots;
+
+  /**
+   * A task that is run by one thread on a contiguous range of items.
+   */
+  private interface RangeTask {
+
+    /**
+     * Runs the task.
+     *
+     * @param slot the index of the thread
+     * @param start the first item
+     * @param end the item after the last one
+     * @exception Exception if the task fails
+     */
+    void run(int slot, int start, int end) throws Exception;
+  }
+
+  /**
+   * The sufficient statistics of the M step, weighted by the cluster
+   * membership probabilities. Each thread fills its own statistics, which
+   * are merged afterwards.
+   */
+  private static class Statistics {
+
+    /** the summed weights of the clusters */
+    double [] m_priors;
+
+    /** the summed weights of the nominal values */
+    double [][][] m_nominal;
+
+    /** the weighted sum, sum of squares and weight of the numeric values */
+    double [][][] m_normal;
+
+    /**
+     * Creates empty statistics.
+     *
+     * @param header the header of the data
+     * @param numClusters the number of clusters
+     */
+    Statistics(Instances header, int numClusters) {
+      int numAttribs = header.numAttributes();
+      m_priors = new double [numClusters];
+      m_nominal = new double [numClusters][numAttribs][];
+      m_normal = new double [numClusters][numAttribs][3];
+      for (int i = 0; i < numClusters; i++) {
+	for (int j = 0; j < numAttribs; j++) {
+	  if (header.attribute(j).isNominal()) {
+	    m_nominal[i][j] = new double [header.attribute(j).numValues()];
+	  }
+	}
+      }
+    }
+
+    /**
+     * Adds an instance.
+     *
+     * @param in the instance
+     * @param weights the cluster membership probabilities of the instance
+     */
+    void add(Instance in, double [] weights) {
+      double w = in.weight();
+      for (int i = 0; i < m_priors.length; i++) {
+	m_priors[i] += w * weights[i];
+      }
+      for (int j = 0; j < in.numAttributes(); j++) {
+	if (in.isMissing(j)) {
+	  continue;
+	}
+	double value = in.value(j);
+	for (int i = 0; i < m_priors.length; i++) {
+	  double ww = w * weights[i];
+	  if (m_nominal[i][j] != null) {
+	    m_nominal[i][j][(int)value] += ww;
+	  } else {
+	    m_normal[i][j][0] += value * ww;
+	    m_normal[i][j][1] += value * value * ww;
+	    m_normal[i][j][2] += ww;
+	  }
+	}
+      }
+    }
+
+    /**
+     * Adds other statistics to these.
+     *
+     * @param other the statistics to add
+     */
+    void add(Statistics other) {
+      for (int i = 0; i < m_priors.length; i++) {
+	m_priors[i] += other.m_priors[i];
+	for (int j = 0; j < m_normal[i].length; j++) {
+	  if (m_nominal[i][j] != null) {
+	    for (int k = 0; k < m_nominal[i][j].length; k++) {
+	      m_nominal[i][j][k] += other.m_nominal[i][j][k];
+	    }
+	  } else {
+	    for (int k = 0; k < 3; k++) {
+	      m_normal[i][j][k] += other.m_normal[i][j][k];
+	    }
+	  }
+	}
+      }
+    }
+  }
+
   /**
    * Returns a string describing this clusterer
    * @return a description of the evaluator suitable for
@@ -166,11 +282,14 @@ public class EM
    *  Set the minimum allowable standard deviation for normal density 
    * calculation. <p>
    *
+   * -num-slots <num> <br>
+   * Number of threads, 0 for one per processor (default 1). <p>
+   *
    * @return an enumeration of all the available options.
    *
    **/
   public Enumeration listOptions () {
-    Vector newVector = new Vector(6);
+    Vector newVector = new Vector(7);
     newVector.addElement(new Option("\tnumber of clusters. If omitted or" 
 				    + "\n\t-1 specified, then cross " 
 				    + "validation is used to\n\tselect the " 
@@ -185,6 +304,9 @@ public class EM
 				    +"for normal density computation "
 				    +"\n\t(default 1e-6)"
 				    ,"M",1,"-M <num>"));
+    newVector.addElement(new Option("\tnumber of threads, 0 for one per\n"
+				    + "\tprocessor. (default 1)"
+				    , "num-slots", 1, "-num-slots <num>"));
     return  newVector.elements();
   }
 
@@ -221,6 +343,11 @@ public class EM
     if (optionString.length() != 0) {
       setMinStdDev((new Double(optionString)).doubleValue());
     }
+
+    optionString = Utils.getOption("num-slots", options);
+    if (optionString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
   }
 
   /**
@@ -364,6 +491,33 @@ public class EM
   }
 
 
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "the number of threads to use, 0 for one per processor";
+  }
+
+  /**
+   * Set the number of threads
+   *
+   * @param slots the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots (int slots) {
+    m_numExecutionSlots = slots;
+  }
+
+  /**
+   * Get the number of threads
+   *
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots () {
+    return m_numExecutionSlots;
+  }
+
   /**
    * Set debug mode - verbose output
    *
@@ -390,7 +544,7 @@ public class EM
    * @return an array of strings suitable for passing to setOptions()
    */
   public String[] getOptions () {
-    String[] options = new String[9];
+    String[] options = new String[11];
     int current = 0;
 
     if (m_verbose) {
@@ -405,6 +559,8 @@ public class EM
     options[current++] = "" + m_rseed;
     options[current++] = "-M";
     options[current++] = ""+getMinStdDev();
+    options[current++] = "-num-slots";
+    options[current++] = "" + m_numExecutionSlots;
 
     while (current < options.length) {
       options[current++] = "";
@@ -496,29 +652,6 @@ public class EM
   }
 
 
-  /**
-   * calculate prior probabilites for the clusters
-   *
-   * @param inst the instances
-   * @exception Exception if priors can't be calculated
-   **/
-  private void estimate_priors (Instances inst)
-    throws Exception {
-
-    for (int i = 0; i < m_num_clusters; i++) {
-      m_priors[i] = 0.0;
-    }
-
-    for (int i = 0; i < inst.numInstances(); i++) {
-      for (int j = 0; j < m_num_clusters; j++) {
-        m_priors[j] += inst.instance(i).weight() * m_weights[i][j];
-      }
-    }
-
-    Utils.normalize(m_priors);
-  }
-
-
   /** Constant for normal distribution. */
   private static double m_normConst = Math.log(Math.sqrt(2*Math.PI));
 
@@ -566,29 +699,39 @@ public class EM
   private void M (Instances inst)
     throws Exception {
 
-    int i, j, l;
+    int i, j, k, l;
 
     new_estimators();
-    estimate_priors(inst);
+
+    // every thread sums up the statistics of its chunk of the instances
+    final Instances data = inst;
+    final Statistics [] stats = new Statistics [slots(inst.numInstances())];
+    runInParallel(new RangeTask() {
+	public void run(int slot, int start, int end) {
+	  stats[slot] = new Statistics(data, m_num_clusters);
+	  for (int l = start; l < end; l++) {
+	    stats[slot].add(data.instance(l), m_weights[l]);
+	  }
+	}
+      }, inst.numInstances(), stats.length);
+    for (l = 1; l < stats.length; l++) {
+      stats[0].add(stats[l]);
+    }
+
+    // calculate prior probabilites for the clusters
+    System.arraycopy(stats[0].m_priors, 0, m_priors, 0, m_num_clusters);
+    Utils.normalize(m_priors);
 
     for (i = 0; i < m_num_clusters; i++) {
       for (j = 0; j < m_num_attribs; j++) {
-        for (l = 0; l < inst.numInstances(); l++) {
-	  Instance in = inst.instance(l);
-          if (!in.isMissing(j)) {
-            if (inst.attribute(j).isNominal()) {
-              m_model[i][j].addValue(in.value(j), 
-				     in.weight() * m_weights[l][i]);
-            }
-            else {
-              m_modelNormal[i][j][0] += (in.value(j) * in.weight() *
-					 m_weights[l][i]);
-              m_modelNormal[i][j][2] += in.weight() * m_weights[l][i];
-              m_modelNormal[i][j][1] += (in.value(j) * 
-					 in.value(j) * in.weight() * m_weights[l][i]);
-            }
-          }
-        }
+	if (inst.attribute(j).isNominal()) {
+	  for (k = 0; k < stats[0].m_nominal[i][j].length; k++) {
+	    m_model[i][j].addValue(k, stats[0].m_nominal[i][j][k]);
+	  }
+	}
+	else {
+	  System.arraycopy(stats[0].m_normal[i][j], 0, m_modelNormal[i][j], 0, 3);
+	}
       }
     }
     
@@ -651,25 +794,124 @@ public class EM
   private double E (Instances inst, boolean change_weights)
     throws Exception {
 
-    double loglk = 0.0, sOW = 0.0;
+    // every thread sums up the loglikelihood of its chunk of the instances
+    final Instances data = inst;
+    final boolean change = change_weights;
+    final double [] loglk = new double [slots(inst.numInstances())];
+    final double [] sOW = new double [loglk.length];
+    runInParallel(new RangeTask() {
+	public void run(int slot, int start, int end) {
+	  for (int l = start; l < end; l++) {
+	    Instance in = data.instance(l);
+	    double [] logJoint = logJointDensitiesForProcessedInstance(in);
+
+	    loglk[slot] += in.weight() * logSum(logJoint);
+	    sOW[slot] += in.weight();
+
+	    if (change) {
+	      m_weights[l] = Utils.logs2probs(logJoint);
+	    }
+	  }
+	}
+      }, inst.numInstances(), loglk.length);
 
-    for (int l = 0; l < inst.numInstances(); l++) {
+    return  Utils.sum(loglk) / Utils.sum(sOW);
+  }
 
-      Instance in = inst.instance(l);
+  /**
+   * Computes the logs of the joint densities for an instance that has
+   * already been through the missing values filter. Unlike
+   * logJointDensitiesForInstance, this does not use the filter, so several
+   * threads may call it at once.
+   *
+   * @param inst the instance
+   * @return the logs of the joint densities
+   */
+  private double[] logJointDensitiesForProcessedInstance (Instance inst) {
 
-      loglk += in.weight() * logDensityForInstance(in);
-      sOW += in.weight();
+    double[] weights = logDensityPerClusterForProcessedInstance(inst);
 
-      if (change_weights) {
-	m_weights[l] = distributionForInstance(in);
+    for (int i = 0; i < m_num_clusters; i++) {
+      if (m_priors[i] > 0) {
+	weights[i] += Math.log(m_priors[i]);
+      } else {
+	throw new IllegalArgumentException("Cluster empty!");
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Computes the log of the sum of the exponentials of the given values.
+   *
+   * @param a the values
+   * @return the log of the sum of their exponentials
+   */
+  private static double logSum (double[] a) {
+
+    double max = a[Utils.maxIndex(a)];
+    double sum = 0.0;
+
+    for (int i = 0; i < a.length; i++) {
+      sum += Math.exp(a[i] - max);
+    }
+
+    return max + Math.log(sum);
+  }
+
+  /**
+   * Returns the number of threads to use for the given number of tasks.
+   *
+   * @param numTasks the number of tasks
+   * @return the number of threads
+   */
+  private int slots (int numTasks) {
+    int slots = (m_numExecutionSlots == 0)
+      ? Runtime.getRuntime().availableProcessors() : m_numExecutionSlots;
+    return Math.max(1, Math.min(slots, numTasks));
+  }
+
+  /**
+   * Runs a task on contiguous ranges of the given number of items, one
+   * range per thread, and waits for all of them.
+   *
+   * @param task the task
+   * @param numItems the number of items
+   * @param numSlots the number of threads
+   * @exception Exception if the task fails on any of the ranges
+   */
+  private void runInParallel (final RangeTask task, int numItems,
+			      int numSlots) throws Exception {
+    if (numSlots == 1) {
+      task.run(0, 0, numItems);
+      return;
+    }
+
+    final Exception [] failures = new Exception [numSlots];
+    Thread [] threads = new Thread [numSlots];
+    for (int s = 0; s < numSlots; s++) {
+      final int slot = s;
+      final int start = (int) ((long) numItems * s / numSlots);
+      final int end = (int) ((long) numItems * (s + 1) / numSlots);
+      threads[s] = new Thread() {
+	  public void run() {
+	    try {
+	      task.run(slot, start, end);
+	    } catch (Exception e) {
+	      failures[slot] = e;
+	    }
+	  }
+	};
+      threads[s].start();
+    }
+    for (int s = 0; s < numSlots; s++) {
+      threads[s].join();
+    }
+    for (int s = 0; s < numSlots; s++) {
+      if (failures[s] != null) {
+	throw failures[s];
       }
     }
-    
-    // reestimate priors
-    /*if (change_weights) {
-      estimate_priors(inst);
-    } */
-    return  loglk / sOW;
   }
   
   
@@ -692,6 +934,7 @@ public class EM
     m_num_clusters = -1;
     m_initialNumClusters = -1;
     m_verbose = false;
+    m_numExecutionSlots = 1;
   }
 
   /**
@@ -805,79 +1048,72 @@ public class EM
   private void CVClusters ()
     throws Exception {
     double CVLogLikely = -Double.MAX_VALUE;
-    double templl, tll;
+    double templl;
     boolean CVincreased = true;
-    m_num_clusters = 1;
-    int num_clusters = m_num_clusters;
-    int i;
-    Random cvr;
-    Instances trainCopy;
-    int numFolds = (m_theInstances.numInstances() < 10) 
+    int num_clusters = 1;
+    int i, c;
+    final int numFolds = (m_theInstances.numInstances() < 10) 
       ? m_theInstances.numInstances() 
       : 10;
 
-    boolean ok = true;
-    int seed = m_rseed;
-    int restartCount = 0;
+    // the folds are the same for every number of clusters
+    Random cvr = new Random(m_rseed);
+    Instances trainCopy = new Instances(m_theInstances);
+    trainCopy.randomize(cvr);
+    final Instances [] cvTrain = new Instances [numFolds];
+    final Instances [] cvTest = new Instances [numFolds];
+    int maxClusters = Integer.MAX_VALUE;
+    for (i = 0; i < numFolds; i++) {
+      cvTrain[i] = trainCopy.trainCV(numFolds, i, cvr);
+      cvTest[i] = trainCopy.testCV(numFolds, i);
+      maxClusters = Math.min(maxClusters, cvTrain[i].numInstances());
+    }
+
+    // evaluate the folds of as many numbers of clusters at once as there are
+    // threads to keep busy
+    int batchSize = (slots(Integer.MAX_VALUE) + numFolds - 1) / numFolds;
+
     CLUSTER_SEARCH: while (CVincreased) {
-      // theInstances.stratify(10);
-        
       CVincreased = false;
-      cvr = new Random(m_rseed);
-      trainCopy = new Instances(m_theInstances);
-      trainCopy.randomize(cvr);
-      templl = 0.0;
-      for (i = 0; i < numFolds; i++) {
-	Instances cvTrain = trainCopy.trainCV(numFolds, i, cvr);
-	if (num_clusters > cvTrain.numInstances()) {
-	  break CLUSTER_SEARCH;
-	}
-	Instances cvTest = trainCopy.testCV(numFolds, i);
-	m_rr = new Random(seed);
-        for (int z=0; z<10; z++) m_rr.nextDouble();
-	m_num_clusters = num_clusters;
-	EM_Init(cvTrain);
-	try {
-	  iterate(cvTrain, false);
-	} catch (Exception ex) {
-	  // catch any problems - i.e. empty clusters occuring
-	  ex.printStackTrace();
-          //          System.err.println("Restarting after CV training failure ("+num_clusters+" clusters");
-          seed++;
-          restartCount++;
-          ok = false;
-          if (restartCount > 5) {
-            break CLUSTER_SEARCH;
-          }
-	  break;
-	}
-        try {
-          tll = E(cvTest, false);
-        } catch (Exception ex) {
-          // catch any problems - i.e. empty clusters occuring
-          //          ex.printStackTrace();
-          ex.printStackTrace();
-          //          System.err.println("Restarting after CV testing failure ("+num_clusters+" clusters");
-          //          throw new Exception(ex); 
-          seed++;
-          restartCount++;
-          ok = false;
-          if (restartCount > 5) {
-            break CLUSTER_SEARCH;
-          }
-          break;
-        }
-
-	if (m_verbose) {
-	  System.out.println("# clust: " + num_clusters + " Fold: " + i 
-			     + " Loglikely: " + tll);
-	}
-	templl += tll;
+      final int first = num_clusters;
+      int count = Math.min(batchSize, maxClusters - first + 1);
+      if (count < 1) {
+	break;
       }
 
-      if (ok) {
-        restartCount = 0;
-        seed = m_rseed;
+      final double [][] tll = new double [count][numFolds];
+      final boolean [][] failed = new boolean [count][numFolds];
+      runInParallel(new RangeTask() {
+	  public void run(int slot, int start, int end) {
+	    for (int t = start; t < end; t++) {
+	      int c = t / numFolds;
+	      int fold = t % numFolds;
+	      try {
+		tll[c][fold] = CVFold(cvTrain[fold], cvTest[fold], first + c);
+	      } catch (Exception ex) {
+		// catch any problems - i.e. empty clusters occuring
+		ex.printStackTrace();
+		failed[c][fold] = true;
+	      }
+	    }
+	  }
+	}, count * numFolds, slots(count * numFolds));
+
+      // go through the numbers of clusters in order, up to the first one
+      // that fails or does not increase the loglikelihood
+      for (c = 0; c < count; c++) {
+	templl = 0.0;
+	for (i = 0; i < numFolds; i++) {
+	  if (failed[c][i]) {
+	    CVincreased = false;
+	    break CLUSTER_SEARCH;
+	  }
+	  if (m_verbose) {
+	    System.out.println("# clust: " + num_clusters + " Fold: " + i 
+			       + " Loglikely: " + tll[c][i]);
+	  }
+	  templl += tll[c][i];
+	}
         templl /= (double)numFolds;
         
         if (m_verbose) {
@@ -894,7 +1130,10 @@ public class EM
           CVLogLikely = templl;
           CVincreased = true;
           num_clusters++;
-        }
+        } else {
+	  CVincreased = false;
+	  break;
+	}
       }
     }
 
@@ -905,6 +1144,39 @@ public class EM
     m_num_clusters = num_clusters - 1;
   }
 
+  /**
+   * Fits a model with the given number of clusters to the training data of
+   * a fold and returns the loglikelihood of its test data. The model is a
+   * separate EM with the settings of this one, so several folds can be run
+   * at once; it runs on the calling thread.
+   *
+   * @param train the training data of the fold
+   * @param test the test data of the fold
+   * @param numClusters the number of clusters
+   * @return the average loglikelihood of the test data
+   * @exception Exception if the model can't be fitted
+   */
+  private double CVFold (Instances train, Instances test, int numClusters)
+    throws Exception {
+    EM fold = new EM();
+    fold.m_minStdDev = m_minStdDev;
+    fold.m_minStdDevPerAtt = m_minStdDevPerAtt;
+    fold.m_max_iterations = m_max_iterations;
+    fold.m_rseed = m_rseed;
+    fold.m_theInstances = m_theInstances;
+    fold.m_num_instances = m_num_instances;
+    fold.m_num_attribs = m_num_attribs;
+    fold.m_minValues = m_minValues;
+    fold.m_maxValues = m_maxValues;
+    fold.m_num_clusters = numClusters;
+    fold.m_rr = new Random(m_rseed);
+    for (int z=0; z<10; z++) fold.m_rr.nextDouble();
+
+    fold.EM_Init(train);
+    fold.iterate(train, false);
+    return fold.E(test, false);
+  }
+
 
   /**
    * Returns the number of clusters.
@@ -1008,13 +1280,23 @@ public class EM
    * successfully
    */
   public double[] logDensityPerClusterForInstance(Instance inst) throws Exception {
+    
+    m_replaceMissing.input(inst);
+    return logDensityPerClusterForProcessedInstance(m_replaceMissing.output());
+  }
+
+  /**
+   * Computes the log of the conditional density (per cluster) for an
+   * instance that has already been through the missing values filter.
+   *
+   * @param inst the instance
+   * @return an array containing the estimated densities
+   */
+  private double[] logDensityPerClusterForProcessedInstance(Instance inst) {
 
     int i, j;
     double logprob;
     double[] wghts = new double[m_num_clusters];
-    
-    m_replaceMissing.input(inst);
-    inst = m_replaceMissing.output();
 
     for (i = 0; i < m_num_clusters; i++) {
       //      System.err.println("Cluster : "+i);
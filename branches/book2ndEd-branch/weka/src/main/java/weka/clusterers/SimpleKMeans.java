@@ -30,7 +30,14 @@ import weka.experiment.Stats;
 import weka.classifiers.rules.DecisionTable;
 
 /**
- * Simple k means clustering class.
+ * Simple k means clustering class. The assignment of the instances to the
+ * clusters can be run on several threads, optionally skipping most distance
+ * computations with Hamerly's bounds, and the centroids can be seeded with
+ * k-means++. For very large datasets, the centroids can be learned from
+ * random mini-batches instead of the full data. This bounds the work and
+ * memory of each iteration, not the memory of the build: the data is still
+ * held in full, together with a copy with missing values replaced, and the
+ * final statistics of the clusters take one pass over all of it.
  *
  * Valid options are:<p>
  *
@@ -40,6 +47,24 @@ import weka.classifiers.rules.DecisionTable;
  * -S <seed> <br>
  * Specify random number seed. <p>
  *
+ * -init <num> <br>
+ * Initialization method: 0 = random, 1 = k-means++ (default 0). <p>
+ *
+ * -fast <br>
+ * Use Hamerly's bounds to skip distance computations. <p>
+ *
+ * -num-slots <num> <br>
+ * Number of threads, 0 for one per processor (default 1). <p>
+ *
+ * -mini-batch <num> <br>
+ * Size of the mini-batches, 0 to use the full data in each iteration
+ * (default 0). Only the work per iteration is bounded; the full data is
+ * still held in memory. <p>
+ *
+ * -I <num> <br>
+ * Maximum number of iterations, 0 for no limit (default 0; in mini-batch
+ * mode, 0 means 100 mini-batches). <p>
+ *
  * @author Mark Hall (mhall@cs.waikato.ac.nz)
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @version $Revision: 1.19.2.5 $
@@ -104,6 +129,207 @@ public class SimpleKMeans extends Clusterer
 
   private double [] m_squaredErrors;
 
+  /** initialization with randomly chosen instances */
+  public static final int RANDOM = 0;
+
+  /** initialization with k-means++ */
+  public static final int KMEANS_PLUS_PLUS = 1;
+
+  /** the initialization methods */
+  public static final Tag [] TAGS_INIT = {
+    new Tag(RANDOM, "Random"),
+    new Tag(KMEANS_PLUS_PLUS, "k-means++")
+  };
+
+  /**
+   * the initialization method
+   */
+  private int m_Init = RANDOM;
+
+  /**
+   * whether to skip distance computations with Hamerly's bounds
+   */
+  private boolean m_FastDistanceCalc = false;
+
+  /**
+   * the number of threads, 0 for one per processor
+   */
+  private int m_NumExecutionSlots = 1;
+
+  /**
+   * the size of the mini-batches, 0 to use the full data
+   */
+  private int m_MiniBatchSize = 0;
+
+  /**
+   * the maximum number of iterations, 0 for no limit
+   */
+  private int m_MaxIterations = 0;
+
+  /**
+   * the number of mini-batches if no maximum number of iterations is given
+   */
+  private static final int DEFAULT_MINI_BATCH_ITERATIONS = 100;
+
+  /**
+   * A task that is run by one thread on a contiguous range of instances.
+   */
+  private interface RangeTask {
+
+    /**
+     * Runs the task.
+     *
+     * @param slot the index of the thread
+     * @param start the first instance
+     * @param end the instance after the last one
+     * @exception Exception if the task fails
+     */
+    void run(int slot, int start, int end) throws Exception;
+  }
+
+  /**
+   * Per-cluster sums of the instances assigned to the clusters, from which
+   * centroids and statistics are computed. Each thread fills its own sums,
+   * which are merged afterwards.
+   */
+  private static class Sums {
+
+    /** the weighted sums of the numeric values */
+    double [][] m_Sums;
+
+    /** the weighted sums of the squared numeric values */
+    double [][] m_SumSquares;
+
+    /** the weights of the non-missing numeric values */
+    double [][] m_Weights;
+
+    /** the weights of the nominal values */
+    double [][][] m_NominalWeights;
+
+    /** the counts of the nominal values */
+    int [][][] m_NominalCounts;
+
+    /** the number of instances in each cluster */
+    int [] m_Sizes;
+
+    /** the sums of the squared errors */
+    double [] m_SquaredErrors;
+
+    /** the header of the data */
+    Instances m_Header;
+
+    /**
+     * Creates empty sums.
+     *
+     * @param header the header of the data
+     * @param numClusters the number of clusters
+     */
+    Sums(Instances header, int numClusters) {
+      int numAttributes = header.numAttributes();
+      m_Header = header;
+      m_Sums = new double [numClusters][numAttributes];
+      m_SumSquares = new double [numClusters][numAttributes];
+      m_Weights = new double [numClusters][numAttributes];
+      m_NominalWeights = new double [numClusters][numAttributes][];
+      m_NominalCounts = new int [numClusters][numAttributes][];
+      for (int i = 0; i < numClusters; i++) {
+	for (int j = 0; j < numAttributes; j++) {
+	  if (header.attribute(j).isNominal()) {
+	    m_NominalWeights[i][j] = new double [header.attribute(j).numValues()];
+	    m_NominalCounts[i][j] = new int [header.attribute(j).numValues()];
+	  }
+	}
+      }
+      m_Sizes = new int [numClusters];
+      m_SquaredErrors = new double [numClusters];
+    }
+
+    /**
+     * Adds an instance to a cluster.
+     *
+     * @param instance the instance
+     * @param cluster the cluster
+     * @param error the squared error of the instance
+     */
+    void add(Instance instance, int cluster, double error) {
+      double weight = instance.weight();
+      for (int j = 0; j < m_Header.numAttributes(); j++) {
+	if (instance.isMissing(j)) {
+	  continue;
+	}
+	double value = instance.value(j);
+	if (m_NominalWeights[cluster][j] != null) {
+	  m_NominalWeights[cluster][j][(int)value] += weight;
+	  m_NominalCounts[cluster][j][(int)value]++;
+	} else if (m_Header.attribute(j).isNumeric()) {
+	  m_Sums[cluster][j] += weight * value;
+	  m_SumSquares[cluster][j] += weight * value * value;
+	  m_Weights[cluster][j] += weight;
+	}
+      }
+      m_Sizes[cluster]++;
+      m_SquaredErrors[cluster] += error;
+    }
+
+    /**
+     * Adds other sums to these.
+     *
+     * @param other the sums to add
+     */
+    void add(Sums other) {
+      for (int i = 0; i < m_Sizes.length; i++) {
+	for (int j = 0; j < m_Header.numAttributes(); j++) {
+	  m_Sums[i][j] += other.m_Sums[i][j];
+	  m_SumSquares[i][j] += other.m_SumSquares[i][j];
+	  m_Weights[i][j] += other.m_Weights[i][j];
+	  if (m_NominalWeights[i][j] != null) {
+	    for (int k = 0; k < m_NominalWeights[i][j].length; k++) {
+	      m_NominalWeights[i][j][k] += other.m_NominalWeights[i][j][k];
+	      m_NominalCounts[i][j][k] += other.m_NominalCounts[i][j][k];
+	    }
+	  }
+	}
+	m_Sizes[i] += other.m_Sizes[i];
+	m_SquaredErrors[i] += other.m_SquaredErrors[i];
+      }
+    }
+
+    /**
+     * Returns the mean or mode of an attribute in a cluster.
+     *
+     * @param cluster the cluster
+     * @param j the attribute
+     * @return the mean or mode
+     */
+    double meanOrMode(int cluster, int j) {
+      if (m_NominalWeights[cluster][j] != null) {
+	return Utils.maxIndex(m_NominalWeights[cluster][j]);
+      } else if (m_Weights[cluster][j] <= 0) {
+	return 0;
+      } else {
+	return m_Sums[cluster][j] / m_Weights[cluster][j];
+      }
+    }
+
+    /**
+     * Returns the variance of a numeric attribute in a cluster.
+     *
+     * @param cluster the cluster
+     * @param j the attribute
+     * @return the variance
+     */
+    double variance(int cluster, int j) {
+      double weight = m_Weights[cluster][j];
+      if (weight <= 1) {
+	return 0;
+      }
+      double result = (m_SumSquares[cluster][j]
+		       - (m_Sums[cluster][j] * m_Sums[cluster][j] / weight))
+	/ (weight - 1);
+      return (result < 0) ? 0 : result;
+    }
+  }
+
   /**
    * Returns a string describing this clusterer
    * @return a description of the evaluator suitable for
@@ -117,8 +343,8 @@ public class SimpleKMeans extends Clusterer
    * Generates a clusterer. Has to initialize all fields of the clusterer
    * that are not being set via options.
    *
-   * @param data set of instances serving as training data 
-   * @exception Exception if the clusterer has not been 
+   * @param data set of instances serving as training data
+   * @exception Exception if the clusterer has not been
    * generated successfully
    */
   public void buildClusterer(Instances data) throws Exception {
@@ -139,111 +365,529 @@ public class SimpleKMeans extends Clusterer
     for (int i = 0; i < instances.numAttributes(); i++) {
       m_Min[i] = m_Max[i] = Double.NaN;
     }
-    
+
     m_ClusterCentroids = new Instances(instances, m_NumClusters);
-    int[] clusterAssignments = new int [instances.numInstances()];
 
     for (int i = 0; i < instances.numInstances(); i++) {
       updateMinMax(instances.instance(i));
     }
-    
-    Random RandomO = new Random(m_Seed);
-    int instIndex;
-    HashMap initC = new HashMap();
-    DecisionTable.hashKey hk = null;
-
-    for (int j = instances.numInstances() - 1; j >= 0; j--) {
-      instIndex = RandomO.nextInt(j+1);
-      hk = new DecisionTable.hashKey(instances.instance(instIndex), 
-				     instances.numAttributes(), true);
-      if (!initC.containsKey(hk)) {
-	m_ClusterCentroids.add(instances.instance(instIndex));
-	initC.put(hk, null);
-      }
-      instances.swap(j, instIndex);
-      
-      if (m_ClusterCentroids.numInstances() == m_NumClusters) {
-	break;
+
+    int numSlots = slots(instances.numInstances());
+    if (m_Init == KMEANS_PLUS_PLUS) {
+      initKMeansPlusPlus(instances, numSlots);
+    } else {
+      Random RandomO = new Random(m_Seed);
+      int instIndex;
+      HashMap initC = new HashMap();
+      DecisionTable.hashKey hk = null;
+
+      for (int j = instances.numInstances() - 1; j >= 0; j--) {
+	instIndex = RandomO.nextInt(j+1);
+	hk = new DecisionTable.hashKey(instances.instance(instIndex),
+				       instances.numAttributes(), true);
+	if (!initC.containsKey(hk)) {
+	  m_ClusterCentroids.add(instances.instance(instIndex));
+	  initC.put(hk, null);
+	}
+	instances.swap(j, instIndex);
+
+	if (m_ClusterCentroids.numInstances() == m_NumClusters) {
+	  break;
+	}
       }
     }
 
     m_NumClusters = m_ClusterCentroids.numInstances();
-    
-    int i;
+
+    int[] clusterAssignments;
+    if (m_MiniBatchSize > 0) {
+      iterateMiniBatches(instances);
+      clusterAssignments = null;
+    } else {
+      clusterAssignments = iterate(instances, numSlots);
+    }
+
+    // statistics of the final clusters, dropping any that ended up empty
+    Sums sums = accumulate(instances, clusterAssignments, numSlots);
+    int numNonEmpty = 0;
+    for (int i = 0; i < m_NumClusters; i++) {
+      if (sums.m_Sizes[i] > 0) {
+	numNonEmpty++;
+      }
+    }
+    Instances centroids = new Instances(instances, numNonEmpty);
+    m_ClusterStdDevs = new Instances(instances, numNonEmpty);
+    m_ClusterSizes = new int [numNonEmpty];
+    m_squaredErrors = new double [numNonEmpty];
+    m_ClusterNominalCounts = new int [numNonEmpty][][];
+    int index = 0;
+    for (int i = 0; i < m_NumClusters; i++) {
+      if (sums.m_Sizes[i] == 0) {
+	continue;
+      }
+      centroids.add(m_ClusterCentroids.instance(i));
+      double [] vals2 = new double[instances.numAttributes()];
+      for (int j = 0; j < instances.numAttributes(); j++) {
+	if (instances.attribute(j).isNumeric()) {
+	  vals2[j] = Math.sqrt(sums.variance(i, j));
+	} else {
+	  vals2[j] = Instance.missingValue();
+	}
+      }
+      m_ClusterStdDevs.add(new Instance(1.0, vals2));
+      m_ClusterSizes[index] = sums.m_Sizes[i];
+      m_squaredErrors[index] = sums.m_SquaredErrors[i];
+      m_ClusterNominalCounts[index] = sums.m_NominalCounts[i];
+      index++;
+    }
+    m_ClusterCentroids = centroids;
+    m_NumClusters = numNonEmpty;
+  }
+
+  /**
+   * Runs k-means on the full data until no instance changes its cluster (or
+   * the maximum number of iterations is reached). Clusters that become empty
+   * are dropped.
+   *
+   * @param instances the (filtered) training data
+   * @param numSlots the number of threads
+   * @return the final assignment of the instances to the clusters
+   * @exception Exception if an iteration fails
+   */
+  private int [] iterate(final Instances instances, int numSlots)
+    throws Exception {
+
+    final int numInstances = instances.numInstances();
+    final int [] assignments = new int [numInstances];
+    final boolean fast = m_FastDistanceCalc && !hasMissingValues(instances);
+    final double [] upper = fast ? new double [numInstances] : null;
+    final double [] lower = fast ? new double [numInstances] : null;
+
+    // how far each centroid moved in the last update, null while the bounds
+    // are not valid
+    double [] movement = null;
+
     boolean converged = false;
-    int emptyClusterCount;
-    Instances [] tempI = new Instances[m_NumClusters];
-    m_squaredErrors = new double [m_NumClusters];
-    m_ClusterNominalCounts = new int [m_NumClusters][instances.numAttributes()][0];
     while (!converged) {
-      emptyClusterCount = 0;
       m_Iterations++;
-      converged = true;
-      for (i = 0; i < instances.numInstances(); i++) {
-	Instance toCluster = instances.instance(i);
-	int newC = clusterProcessedInstance(toCluster, true);
-	if (newC != clusterAssignments[i]) {
-	  converged = false;
+
+      final double [] halfMin = fast ? halfMinDistances() : null;
+      final double [] moved = movement;
+      int maxIndex = -1;
+      double max = 0;
+      double secondMax = 0;
+      if (moved != null) {
+	for (int i = 0; i < moved.length; i++) {
+	  if (moved[i] > max) {
+	    secondMax = max;
+	    max = moved[i];
+	    maxIndex = i;
+	  } else if (moved[i] > secondMax) {
+	    secondMax = moved[i];
+	  }
 	}
-	clusterAssignments[i] = newC;
       }
-      
+      final int maxMovedIndex = maxIndex;
+      final double maxMoved = max;
+      final double secondMaxMoved = secondMax;
+
+      final Sums [] partial = new Sums [numSlots];
+      final boolean [] changed = new boolean [numSlots];
+      runInParallel(new RangeTask() {
+	  public void run(int slot, int start, int end) {
+	    Sums sums = new Sums(instances, m_NumClusters);
+	    for (int i = start; i < end; i++) {
+	      Instance toCluster = instances.instance(i);
+	      int newC;
+	      if (!fast) {
+		newC = clusterProcessedInstance(toCluster, false);
+	      } else if (moved == null) {
+		newC = closestTwo(toCluster, i, upper, lower);
+	      } else {
+		int a = assignments[i];
+		upper[i] += moved[a];
+		lower[i] -= (a == maxMovedIndex) ? secondMaxMoved : maxMoved;
+		newC = assignBounded(toCluster, i, a, upper, lower, halfMin);
+	      }
+	      if (newC != assignments[i]) {
+		changed[slot] = true;
+	      }
+	      assignments[i] = newC;
+	      sums.add(toCluster, newC, 0);
+	    }
+	    partial[slot] = sums;
+	  }
+	}, numInstances, numSlots);
+
+      Sums sums = partial[0];
+      converged = !changed[0];
+      for (int s = 1; s < numSlots; s++) {
+	sums.add(partial[s]);
+	converged = converged && !changed[s];
+      }
+
       // update centroids
+      Instances previous = m_ClusterCentroids;
       m_ClusterCentroids = new Instances(instances, m_NumClusters);
-      for (i = 0; i < m_NumClusters; i++) {
-	tempI[i] = new Instances(instances, 0);
-      }
-      for (i = 0; i < instances.numInstances(); i++) {
-	tempI[clusterAssignments[i]].add(instances.instance(i));
-      }
-      for (i = 0; i < m_NumClusters; i++) {
-	double [] vals = new double[instances.numAttributes()];
-	if (tempI[i].numInstances() == 0) {
+      int [] newIndex = new int [m_NumClusters];
+      for (int i = 0; i < m_NumClusters; i++) {
+	if (sums.m_Sizes[i] == 0) {
 	  // empty cluster
-	  emptyClusterCount++;
+	  newIndex[i] = -1;
 	} else {
+	  double [] vals = new double[instances.numAttributes()];
 	  for (int j = 0; j < instances.numAttributes(); j++) {
-	    vals[j] = tempI[i].meanOrMode(j);
-	    m_ClusterNominalCounts[i][j] = 
-	      tempI[i].attributeStats(j).nominalCounts;
+	    vals[j] = sums.meanOrMode(i, j);
 	  }
+	  newIndex[i] = m_ClusterCentroids.numInstances();
 	  m_ClusterCentroids.add(new Instance(1.0, vals));
 	}
       }
 
-      if (emptyClusterCount > 0) {
-	m_NumClusters -= emptyClusterCount;
-        if (converged) {
-          Instances[] t = new Instances[m_NumClusters];
-          int index = 0;
-          for (int k = 0; k < tempI.length; k++) {
-            if (tempI[k].numInstances() > 0) {
-              t[index++] = tempI[k];
-            }
-          }
-          tempI = t;
-        } else {
-          tempI = new Instances[m_NumClusters];
-        }
-      }
-      if (!converged) {
-	m_squaredErrors = new double [m_NumClusters];
-	m_ClusterNominalCounts = new int [m_NumClusters][instances.numAttributes()][0];
-      }
-    }
-    m_ClusterStdDevs = new Instances(instances, m_NumClusters);
-    m_ClusterSizes = new int [m_NumClusters];
-    for (i = 0; i < m_NumClusters; i++) {
-      double [] vals2 = new double[instances.numAttributes()];
-      for (int j = 0; j < instances.numAttributes(); j++) {
-	if (instances.attribute(j).isNumeric()) {
-	  vals2[j] = Math.sqrt(tempI[i].variance(j));
-	} else {
-	  vals2[j] = Instance.missingValue();
-	}	
+      if (m_ClusterCentroids.numInstances() < m_NumClusters) {
+	m_NumClusters = m_ClusterCentroids.numInstances();
+	for (int i = 0; i < numInstances; i++) {
+	  assignments[i] = newIndex[assignments[i]];
+	}
+	movement = null;
+      } else if (fast) {
+	movement = new double [m_NumClusters];
+	for (int i = 0; i < m_NumClusters; i++) {
+	  movement[i] = Math.sqrt(distance(previous.instance(i),
+					   m_ClusterCentroids.instance(i)));
+	}
+      }
+
+      if ((m_MaxIterations > 0) && (m_Iterations >= m_MaxIterations)) {
+	break;
+      }
+    }
+
+    return assignments;
+  }
+
+  /**
+   * Learns the centroids from random mini-batches of the data: each instance
+   * of a mini-batch moves its closest centroid towards itself, by a step that
+   * shrinks with the weight the centroid has seen so far. Only the current
+   * mini-batch is held in addition to the data, which has to be in memory
+   * in full.
+   *
+   * @param instances the (filtered) training data
+   * @exception Exception if an iteration fails
+   */
+  private void iterateMiniBatches(Instances instances) throws Exception {
+
+    int numInstances = instances.numInstances();
+    int numAttributes = instances.numAttributes();
+    if (numInstances == 0) {
+      return;
+    }
+    int iterations = (m_MaxIterations > 0)
+      ? m_MaxIterations : DEFAULT_MINI_BATCH_ITERATIONS;
+    Random random = new Random(m_Seed);
+
+    double [][] centroids = new double [m_NumClusters][];
+    double [][][] nominalWeights = new double [m_NumClusters][numAttributes][];
+    for (int i = 0; i < m_NumClusters; i++) {
+      centroids[i] = m_ClusterCentroids.instance(i).toDoubleArray();
+      for (int j = 0; j < numAttributes; j++) {
+	if (instances.attribute(j).isNominal()) {
+	  nominalWeights[i][j] = new double [instances.attribute(j).numValues()];
+	}
+      }
+    }
+    double [] clusterWeights = new double [m_NumClusters];
+
+    final Instance [] batch = new Instance [m_MiniBatchSize];
+    final int [] batchAssignments = new int [m_MiniBatchSize];
+    for (int t = 0; t < iterations; t++) {
+      m_Iterations++;
+      for (int b = 0; b < batch.length; b++) {
+	batch[b] = instances.instance(random.nextInt(numInstances));
+      }
+      runInParallel(new RangeTask() {
+	  public void run(int slot, int start, int end) {
+	    for (int b = start; b < end; b++) {
+	      batchAssignments[b] = clusterProcessedInstance(batch[b], false);
+	    }
+	  }
+	}, batch.length, slots(batch.length));
+
+      for (int b = 0; b < batch.length; b++) {
+	int c = batchAssignments[b];
+	double weight = batch[b].weight();
+	if (weight <= 0) {
+	  continue;
+	}
+	clusterWeights[c] += weight;
+	double eta = weight / clusterWeights[c];
+	for (int j = 0; j < numAttributes; j++) {
+	  if (batch[b].isMissing(j)) {
+	    continue;
+	  }
+	  double value = batch[b].value(j);
+	  if (nominalWeights[c][j] != null) {
+	    nominalWeights[c][j][(int)value] += weight;
+	    centroids[c][j] = Utils.maxIndex(nominalWeights[c][j]);
+	  } else if (instances.attribute(j).isNumeric()) {
+	    centroids[c][j] += eta * (value - centroids[c][j]);
+	  }
+	}
+      }
+
+      m_ClusterCentroids = new Instances(instances, m_NumClusters);
+      for (int i = 0; i < m_NumClusters; i++) {
+	m_ClusterCentroids.add(new Instance(1.0, (double[]) centroids[i].clone()));
+      }
+    }
+  }
+
+  /**
+   * Chooses the initial centroids with k-means++: each further centroid is
+   * an instance chosen with probability proportional to its weight times its
+   * squared distance to the closest centroid so far. The distances are
+   * updated in parallel.
+   *
+   * @param instances the (filtered) training data
+   * @param numSlots the number of threads
+   * @exception Exception if the distances cannot be computed
+   */
+  private void initKMeansPlusPlus(final Instances instances, int numSlots)
+    throws Exception {
+
+    final int numInstances = instances.numInstances();
+    if (numInstances == 0) {
+      return;
+    }
+    Random random = new Random(m_Seed);
+    final double [] minDist = new double [numInstances];
+    Arrays.fill(minDist, Double.MAX_VALUE);
+    m_ClusterCentroids.add(instances.instance(random.nextInt(numInstances)));
+
+    while (m_ClusterCentroids.numInstances() < m_NumClusters) {
+      final Instance latest =
+	m_ClusterCentroids.instance(m_ClusterCentroids.numInstances() - 1);
+      runInParallel(new RangeTask() {
+	  public void run(int slot, int start, int end) {
+	    for (int i = start; i < end; i++) {
+	      double dist = distance(instances.instance(i), latest);
+	      if (dist < minDist[i]) {
+		minDist[i] = dist;
+	      }
+	    }
+	  }
+	}, numInstances, numSlots);
+
+      // summed sequentially, so that the choice does not depend on the
+      // number of threads
+      double total = 0;
+      for (int i = 0; i < numInstances; i++) {
+	total += minDist[i] * instances.instance(i).weight();
+      }
+      if (total <= 0) {
+	// all instances coincide with centroids
+	break;
+      }
+      double target = random.nextDouble() * total;
+      int chosen = -1;
+      for (int i = 0; i < numInstances; i++) {
+	double p = minDist[i] * instances.instance(i).weight();
+	if (p > 0) {
+	  chosen = i;
+	  target -= p;
+	  if (target < 0) {
+	    break;
+	  }
+	}
+      }
+      m_ClusterCentroids.add(instances.instance(chosen));
+    }
+  }
+
+  /**
+   * Computes the final sums of the clusters, including the squared errors.
+   *
+   * @param instances the (filtered) training data
+   * @param assignments the assignment of the instances to the clusters, null
+   * to assign each instance to its closest centroid
+   * @param numSlots the number of threads
+   * @return the sums
+   * @exception Exception if the sums cannot be computed
+   */
+  private Sums accumulate(final Instances instances, final int [] assignments,
+			  int numSlots) throws Exception {
+
+    final Sums [] partial = new Sums [numSlots];
+    runInParallel(new RangeTask() {
+	public void run(int slot, int start, int end) {
+	  Sums sums = new Sums(instances, m_NumClusters);
+	  for (int i = start; i < end; i++) {
+	    Instance instance = instances.instance(i);
+	    int c = (assignments == null)
+	      ? clusterProcessedInstance(instance, false) : assignments[i];
+	    sums.add(instance, c,
+		     distance(instance, m_ClusterCentroids.instance(c)));
+	  }
+	  partial[slot] = sums;
+	}
+      }, instances.numInstances(), numSlots);
+
+    for (int s = 1; s < numSlots; s++) {
+      partial[0].add(partial[s]);
+    }
+    return partial[0];
+  }
+
+  /**
+   * Finds the closest and second closest centroid of an instance and stores
+   * their distances as the instance's upper and lower bound.
+   *
+   * @param instance the instance
+   * @param i the index of the instance
+   * @param upper the upper bounds
+   * @param lower the lower bounds
+   * @return the closest centroid
+   */
+  private int closestTwo(Instance instance, int i, double [] upper,
+			 double [] lower) {
+    double best = Double.MAX_VALUE;
+    double second = Double.MAX_VALUE;
+    int bestCluster = 0;
+    // compare the squared distances, like clusterProcessedInstance, so that
+    // ties are broken the same way
+    for (int c = 0; c < m_NumClusters; c++) {
+      double dist = distance(instance, m_ClusterCentroids.instance(c));
+      if (dist < best) {
+	second = best;
+	best = dist;
+	bestCluster = c;
+      } else if (dist < second) {
+	second = dist;
+      }
+    }
+    upper[i] = Math.sqrt(best);
+    lower[i] = Math.sqrt(second);
+    return bestCluster;
+  }
+
+  /**
+   * Assigns an instance with Hamerly's bounds: the distances to the
+   * centroids are only computed if the upper bound of the distance to the
+   * assigned centroid is not below both the lower bound of the distance to
+   * any other centroid and half the distance to the closest other centroid.
+   *
+   * @param instance the instance
+   * @param i the index of the instance
+   * @param assigned the cluster the instance is assigned to
+   * @param upper the upper bounds
+   * @param lower the lower bounds
+   * @param halfMin half the distance of each centroid to its closest other
+   * centroid
+   * @return the closest centroid
+   */
+  private int assignBounded(Instance instance, int i, int assigned,
+			    double [] upper, double [] lower, double [] halfMin) {
+    double bound = Math.max(halfMin[assigned], lower[i]);
+    if (upper[i] < bound) {
+      return assigned;
+    }
+    upper[i] = Math.sqrt(distance(instance,
+				  m_ClusterCentroids.instance(assigned)));
+    if (upper[i] < bound) {
+      return assigned;
+    }
+    return closestTwo(instance, i, upper, lower);
+  }
+
+  /**
+   * Returns half the distance of each centroid to its closest other
+   * centroid.
+   *
+   * @return the distances
+   */
+  private double [] halfMinDistances() {
+    double [] result = new double [m_NumClusters];
+    Arrays.fill(result, Double.MAX_VALUE);
+    for (int i = 0; i < m_NumClusters; i++) {
+      for (int j = i + 1; j < m_NumClusters; j++) {
+	double dist = 0.5 * Math.sqrt(distance(m_ClusterCentroids.instance(i),
+					       m_ClusterCentroids.instance(j)));
+	result[i] = Math.min(result[i], dist);
+	result[j] = Math.min(result[j], dist);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether any instance has a missing value. The bounds rely on the
+   * distance being a metric, which it is not for missing values.
+   *
+   * @param instances the instances
+   * @return true if a value is missing
+   */
+  private boolean hasMissingValues(Instances instances) {
+    for (int i = 0; i < instances.numInstances(); i++) {
+      if (instances.instance(i).hasMissingValue()) {
+	return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of threads to use for the given number of tasks.
+   *
+   * @param numTasks the number of tasks
+   * @return the number of threads
+   */
+  private int slots(int numTasks) {
+    int slots = (m_NumExecutionSlots == 0)
+      ? Runtime.getRuntime().availableProcessors() : m_NumExecutionSlots;
+    return Math.max(1, Math.min(slots, numTasks));
+  }
+
+  /**
+   * Runs a task on contiguous ranges of the given number of instances, one
+   * range per thread, and waits for all of them.
+   *
+   * @param task the task
+   * @param numInstances the number of instances
+   * @param numSlots the number of threads
+   * @exception Exception if the task fails on any of the ranges
+   */
+  private void runInParallel(final RangeTask task, int numInstances,
+			     int numSlots) throws Exception {
+    if (numSlots == 1) {
+      task.run(0, 0, numInstances);
+      return;
+    }
+
+    final Exception [] failures = new Exception [numSlots];
+    Thread [] threads = new Thread [numSlots];
+    for (int s = 0; s < numSlots; s++) {
+      final int slot = s;
+      final int start = (int) ((long) numInstances * s / numSlots);
+      final int end = (int) ((long) numInstances * (s + 1) / numSlots);
+      threads[s] = new Thread() {
+	  public void run() {
+	    try {
+	      task.run(slot, start, end);
+	    } catch (Exception e) {
+	      failures[slot] = e;
+	    }
+	  }
+	};
+      threads[s].start();
+    }
+    for (int s = 0; s < numSlots; s++) {
+      threads[s].join();
+    }
+    for (int s = 0; s < numSlots; s++) {
+      if (failures[s] != null) {
+	throw failures[s];
       }
-      m_ClusterStdDevs.add(new Instance(1.0, vals2));
-      m_ClusterSizes[i] = tempI[i].numInstances();
     }
   }
 
@@ -449,16 +1093,52 @@ public class SimpleKMeans extends Clusterer
    * -S <seed> <br>
    * Specify random number seed. <p>
    *
+   * -init <num> <br>
+   * Initialization method: 0 = random, 1 = k-means++ (default 0). <p>
+   *
+   * -fast <br>
+   * Use Hamerly's bounds to skip distance computations. <p>
+   *
+   * -num-slots <num> <br>
+   * Number of threads, 0 for one per processor (default 1). <p>
+   *
+   * -mini-batch <num> <br>
+   * Size of the mini-batches, 0 to use the full data in each iteration
+   * (default 0). Only the work per iteration is bounded; the full data is
+   * still held in memory. <p>
+   *
+   * -I <num> <br>
+   * Maximum number of iterations, 0 for no limit (default 0; in mini-batch
+   * mode, 0 means 100 mini-batches). <p>
+   *
    * @return an enumeration of all the available options.
    *
    **/
   public Enumeration listOptions () {
-    Vector newVector = new Vector(2);
+    Vector newVector = new Vector(7);
 
      newVector.addElement(new Option("\tnumber of clusters. (default = 2)." 
 				    , "N", 1, "-N <num>"));
      newVector.addElement(new Option("\trandom number seed.\n (default 10)"
 				     , "S", 1, "-S <num>"));
+     newVector.addElement(new Option("\tinitialization method: 0 = random,\n"
+				     + "\t1 = k-means++. (default 0)"
+				     , "init", 1, "-init <num>"));
+     newVector.addElement(new Option("\tuse Hamerly's bounds to skip distance\n"
+				     + "\tcomputations."
+				     , "fast", 0, "-fast"));
+     newVector.addElement(new Option("\tnumber of threads, 0 for one per\n"
+				     + "\tprocessor. (default 1)"
+				     , "num-slots", 1, "-num-slots <num>"));
+     newVector.addElement(new Option("\tsize of the mini-batches, 0 to use the\n"
+				     + "\tfull data in each iteration. Only the work\n"
+				     + "\tper iteration is bounded, the full data\n"
+				     + "\tis still held in memory. (default 0)"
+				     , "mini-batch", 1, "-mini-batch <num>"));
+     newVector.addElement(new Option("\tmaximum number of iterations, 0 for no\n"
+				     + "\tlimit (100 mini-batches in mini-batch\n"
+				     + "\tmode). (default 0)"
+				     , "I", 1, "-I <num>"));
 
      return  newVector.elements();
   }
@@ -522,6 +1202,148 @@ public class SimpleKMeans extends Clusterer
     return  m_Seed;
   }
 
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String initializationMethodTipText() {
+    return "the method used to choose the initial centroids";
+  }
+
+  /**
+   * Set the initialization method
+   *
+   * @param method the method
+   */
+  public void setInitializationMethod (SelectedTag method) {
+    if (method.getTags() == TAGS_INIT) {
+      m_Init = method.getSelectedTag().getID();
+    }
+  }
+
+  /**
+   * Get the initialization method
+   *
+   * @return the method
+   */
+  public SelectedTag getInitializationMethod () {
+    return new SelectedTag(m_Init, TAGS_INIT);
+  }
+
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String fastDistanceCalcTipText() {
+    return "use Hamerly's bounds on the distances to the centroids to skip "
+      + "most distance computations (not used if there are missing values)";
+  }
+
+  /**
+   * Set whether to skip distance computations with Hamerly's bounds
+   *
+   * @param value true to use the bounds
+   */
+  public void setFastDistanceCalc (boolean value) {
+    m_FastDistanceCalc = value;
+  }
+
+  /**
+   * Get whether to skip distance computations with Hamerly's bounds
+   *
+   * @return true if the bounds are used
+   */
+  public boolean getFastDistanceCalc () {
+    return m_FastDistanceCalc;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "the number of threads to use, 0 for one per processor";
+  }
+
+  /**
+   * Set the number of threads
+   *
+   * @param slots the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots (int slots) {
+    m_NumExecutionSlots = slots;
+  }
+
+  /**
+   * Get the number of threads
+   *
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots () {
+    return m_NumExecutionSlots;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String miniBatchSizeTipText() {
+    return "the number of randomly drawn instances the centroids are updated "
+      + "with in each iteration, 0 to use the full data; this bounds the work "
+      + "per iteration, but the full data is still held in memory and "
+      + "passed over once for the final cluster statistics";
+  }
+
+  /**
+   * Set the size of the mini-batches
+   *
+   * @param size the size, 0 to use the full data
+   */
+  public void setMiniBatchSize (int size) {
+    m_MiniBatchSize = size;
+  }
+
+  /**
+   * Get the size of the mini-batches
+   *
+   * @return the size, 0 to use the full data
+   */
+  public int getMiniBatchSize () {
+    return m_MiniBatchSize;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String maxIterationsTipText() {
+    return "the maximum number of iterations, 0 for no limit (in mini-batch "
+      + "mode, 0 means " + DEFAULT_MINI_BATCH_ITERATIONS + " mini-batches)";
+  }
+
+  /**
+   * Set the maximum number of iterations
+   *
+   * @param n the maximum, 0 for no limit
+   */
+  public void setMaxIterations (int n) {
+    m_MaxIterations = n;
+  }
+
+  /**
+   * Get the maximum number of iterations
+   *
+   * @return the maximum, 0 for no limit
+   */
+  public int getMaxIterations () {
+    return m_MaxIterations;
+  }
+
   /**
    * Parses a given list of options.
    * @param options the list of options as an array of strings
@@ -542,6 +1364,33 @@ public class SimpleKMeans extends Clusterer
     if (optionString.length() != 0) {
       setSeed(Integer.parseInt(optionString));
     }
+
+    optionString = Utils.getOption("init", options);
+
+    if (optionString.length() != 0) {
+      setInitializationMethod(new SelectedTag(Integer.parseInt(optionString),
+					      TAGS_INIT));
+    }
+
+    setFastDistanceCalc(Utils.getFlag("fast", options));
+
+    optionString = Utils.getOption("num-slots", options);
+
+    if (optionString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
+
+    optionString = Utils.getOption("mini-batch", options);
+
+    if (optionString.length() != 0) {
+      setMiniBatchSize(Integer.parseInt(optionString));
+    }
+
+    optionString = Utils.getOption('I', options);
+
+    if (optionString.length() != 0) {
+      setMaxIterations(Integer.parseInt(optionString));
+    }
   }
 
   /**
@@ -550,13 +1399,24 @@ public class SimpleKMeans extends Clusterer
    * @return an array of strings suitable for passing to setOptions()
    */
   public String[] getOptions () {
-    String[] options = new String[4];
+    String[] options = new String[13];
     int current = 0;
     
     options[current++] = "-N";
     options[current++] = "" + getNumClusters();
     options[current++] = "-S";
     options[current++] = "" + getSeed();
+    options[current++] = "-init";
+    options[current++] = "" + m_Init;
+    if (getFastDistanceCalc()) {
+      options[current++] = "-fast";
+    }
+    options[current++] = "-num-slots";
+    options[current++] = "" + getNumExecutionSlots();
+    options[current++] = "-mini-batch";
+    options[current++] = "" + getMiniBatchSize();
+    options[current++] = "-I";
+    options[current++] = "" + getMaxIterations();
     
     while (current < options.length) {
       options[current++] = "";
@@ -44,12 +44,11 @@ import weka.filters.Filter;
 import weka.filters.UnsupervisedFilter;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
 import java.util.Vector;
 
 
@@ -73,7 +72,7 @@ public class StringToWordVector extends Filter
   protected Range m_SelectedRange = null;
 
   /** Contains a mapping of valid words to attribute indexes */
-  private TreeMap m_Dictionary = new TreeMap();
+  private WordMap m_Dictionary = new WordMap();
 
   /** True if output instances should contain word frequency rather than boolean 0 or 1. */
   private boolean m_OutputCounts = false;
@@ -128,6 +127,57 @@ public class StringToWordVector extends Filter
   /** True if tokens that are on a stoplist are to be ignored. */
   private boolean m_useStoplist;  
   
+  /** The number of attributes words are hashed into, 0 to build a 
+      dictionary instead. */
+  private int m_HashSize = 0;
+
+  /** The number of threads counting the words of the first batch, 0 for 
+      one per processor. */
+  private int m_NumExecutionSlots = 1;
+
+  /** The number of documents handed to a counting thread at a time. */
+  private static final int CHUNK_SIZE = 1000;
+
+  /** True if instances are converted as soon as they are input, i.e., 
+      if words are hashed and no statistics of the first batch are needed. */
+  private boolean m_Streaming;
+
+  /** The documents of the first batch not yet handed to a counting thread. */
+  private transient DocumentChunk m_Chunk;
+
+  /** The word counts of each counting thread. */
+  private transient DocumentCounts [] m_SlotCounts;
+
+  /** The counting threads, null where a slot is idle. */
+  private transient Thread [] m_Workers;
+
+  /** The exceptions thrown by the counting threads. */
+  private transient RuntimeException [] m_Failures;
+
+  /** The number of chunks handed to the counting threads so far. */
+  private transient int m_NumChunks;
+
+  /** The number of documents of the first batch seen so far. */
+  private transient int m_NumDocs;
+
+  /** The number of leading attributes copied unchanged to the output. */
+  private transient int m_FirstCopy;
+
+  /** Scratch values of the output attributes while converting an instance. */
+  private transient double [] m_Scratch;
+
+  /** The instance for which each scratch value was last set. */
+  private transient int [] m_Stamps;
+
+  /** The current instance for the scratch stamps. */
+  private transient int m_Stamp;
+
+  /** The indices of the scratch values set for the current instance. */
+  private transient int [] m_Touched;
+
+  /** The words seen in the current instance when hashing presence. */
+  private transient HashSet m_SeenWords;
+  
   
   /**
    * Returns an enumeration describing the available options
@@ -187,6 +237,17 @@ public class StringToWordVector extends Filter
     newVector.addElement(new Option(
 				    "\tIgnore words that are in the stoplist.",
 				    "S", 0, "-S"));
+    newVector.addElement(new Option(
+				    "\tHash the words into the given number of attributes\n"+
+                                    "\twith signed feature hashing instead of building\n"+
+                                    "\ta dictionary (0 = build a dictionary).\n"+
+                                    "\t(default: 0)",
+				    "H", 1, "-H <number of attributes>"));
+    newVector.addElement(new Option(
+				    "\tNumber of threads counting the words of the first\n"+
+                                    "\tbatch (0 = one per processor).\n"+
+                                    "\t(default: 1)",
+				    "num-slots", 1, "-num-slots <num>"));
         
 
     return newVector.elements();
@@ -238,6 +299,16 @@ public class StringToWordVector extends Filter
    * are normalized to average length of the documents specified in input 
    * format. <p>
    *
+   * -H number_of_attributes <br>
+   * Hash the words into the given number of attributes with signed feature
+   * hashing instead of building a dictionary (0 = build a dictionary).
+   * (default: 0) <p>
+   *
+   * -num-slots num <br>
+   * Number of threads counting the words of the first batch (0 = one per
+   * processor).
+   * (default: 1) <p>
+   *
    * @param options the list of options as an array of strings
    * @exception Exception if an option is not supported
    */
@@ -277,6 +348,20 @@ public class StringToWordVector extends Filter
     
     setUseStoplist(Utils.getFlag('S', options));
     
+    value = Utils.getOption('H', options);
+    if (value.length() != 0) {
+      setHashSize(Integer.parseInt(value));
+    } else {
+      setHashSize(0);
+    }
+
+    value = Utils.getOption("num-slots", options);
+    if (value.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(value));
+    } else {
+      setNumExecutionSlots(1);
+    }
+    
   }
 
   /**
@@ -286,7 +371,7 @@ public class StringToWordVector extends Filter
    */
   public String [] getOptions() {
 
-    String [] options = new String [16];
+    String [] options = new String [20];
     int current = 0;
 
     options[current++] = "-D"; 
@@ -328,6 +413,14 @@ public class StringToWordVector extends Filter
     if(this.getUseStoplist())
         options[current++] = "-S";
     
+    if (getHashSize() > 0) {
+      options[current++] = "-H";
+      options[current++] = "" + getHashSize();
+    }
+
+    options[current++] = "-num-slots";
+    options[current++] = "" + getNumExecutionSlots();
+    
     while (current < options.length) {
       options[current++] = "";
     }
@@ -352,12 +445,338 @@ public class StringToWordVector extends Filter
   }
   
   /** 
-   * Used to store word counts for dictionary selection based on 
-   * a threshold.
+   * Maps words to integers with open addressing, without boxing. Besides the
+   * value of a word, it keeps the number of occurrences of the word and the
+   * number of documents it occurs in, so that one map per counting thread can
+   * be filled and the maps merged afterwards.
    */
-  private class Count implements Serializable {
-    public int count, docCount;
-    public Count(int c) { count = c; }
+  private static class WordMap implements Serializable {
+
+    /** the entry index + 1 of each slot of the hash table, 0 if empty */
+    private int [] m_Table = new int [64];
+
+    /** the words, in the order in which they were added */
+    private String [] m_Words = new String [32];
+
+    /** the value (or count) of each word */
+    private int [] m_Values = new int [32];
+
+    /** the number of documents each word occurs in */
+    private int [] m_DocCounts = new int [32];
+
+    /** the last document each word was counted in */
+    private int [] m_LastDoc = new int [32];
+
+    /** the number of words */
+    private int m_Size;
+
+    /**
+     * Returns the number of words in the map.
+     *
+     * @return the number of words
+     */
+    public int size() {
+      return m_Size;
+    }
+
+    /**
+     * Returns the slot of a word in the hash table.
+     *
+     * @param word the word
+     * @return the first slot to probe
+     */
+    private int slot(String word) {
+      int h = word.hashCode();
+      h ^= (h >>> 16);
+      return h & (m_Table.length - 1);
+    }
+
+    /**
+     * Returns the entry of a word.
+     *
+     * @param word the word
+     * @return the entry, -1 if the word is not in the map
+     */
+    public int find(String word) {
+      int mask = m_Table.length - 1;
+      for (int i = slot(word); m_Table[i] != 0; i = (i + 1) & mask) {
+        if (m_Words[m_Table[i] - 1].equals(word)) {
+          return m_Table[i] - 1;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the entry of a word, adding the word with a value of 0 if it is
+     * not in the map yet.
+     *
+     * @param word the word
+     * @return the entry
+     */
+    public int add(String word) {
+      int mask = m_Table.length - 1;
+      int i = slot(word);
+      for (; m_Table[i] != 0; i = (i + 1) & mask) {
+        if (m_Words[m_Table[i] - 1].equals(word)) {
+          return m_Table[i] - 1;
+        }
+      }
+      if (m_Size == m_Words.length) {
+        int capacity = 2 * m_Size;
+        String [] words = new String [capacity];
+        System.arraycopy(m_Words, 0, words, 0, m_Size);
+        m_Words = words;
+        m_Values = grow(m_Values, capacity);
+        m_DocCounts = grow(m_DocCounts, capacity);
+        m_LastDoc = grow(m_LastDoc, capacity);
+      }
+      int entry = m_Size++;
+      m_Words[entry] = word;
+      m_LastDoc[entry] = -1;
+      m_Table[i] = entry + 1;
+      if (2 * m_Size > m_Table.length) {
+        rehash();
+      }
+      return entry;
+    }
+
+    /**
+     * Copies an array into a larger one.
+     *
+     * @param array the array
+     * @param capacity the new length
+     * @return the copy
+     */
+    private static int [] grow(int [] array, int capacity) {
+      int [] result = new int [capacity];
+      System.arraycopy(array, 0, result, 0, array.length);
+      return result;
+    }
+
+    /**
+     * Doubles the size of the hash table.
+     */
+    private void rehash() {
+      m_Table = new int [2 * m_Table.length];
+      int mask = m_Table.length - 1;
+      for (int e = 0; e < m_Size; e++) {
+        int i = slot(m_Words[e]);
+        while (m_Table[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        m_Table[i] = e + 1;
+      }
+    }
+
+    /**
+     * Returns the value of a word.
+     *
+     * @param word the word
+     * @return the value, -1 if the word is not in the map
+     */
+    public int get(String word) {
+      int entry = find(word);
+      return (entry < 0) ? -1 : m_Values[entry];
+    }
+
+    /**
+     * Sets the value of a word.
+     *
+     * @param word the word
+     * @param value the value
+     */
+    public void put(String word, int value) {
+      m_Values[add(word)] = value;
+    }
+
+    /**
+     * Counts an occurrence of a word in a document. The occurrences of a
+     * document have to be counted one after the other.
+     *
+     * @param word the word
+     * @param doc the index of the document
+     */
+    public void count(String word, int doc) {
+      int entry = add(word);
+      m_Values[entry]++;
+      if (m_LastDoc[entry] != doc) {
+        m_LastDoc[entry] = doc;
+        m_DocCounts[entry]++;
+      }
+    }
+
+    /**
+     * Adds the counts of another map, counted on different documents, to
+     * the counts of this map.
+     *
+     * @param other the other map
+     */
+    public void merge(WordMap other) {
+      for (int e = 0; e < other.m_Size; e++) {
+        int entry = add(other.m_Words[e]);
+        m_Values[entry] += other.m_Values[e];
+        m_DocCounts[entry] += other.m_DocCounts[e];
+      }
+    }
+
+    /**
+     * Returns the words of the map in ascending order.
+     *
+     * @return the sorted words
+     */
+    public String [] sortedWords() {
+      String [] words = new String [m_Size];
+      System.arraycopy(m_Words, 0, words, 0, m_Size);
+      Arrays.sort(words);
+      return words;
+    }
+
+    /**
+     * Returns the count of a word.
+     *
+     * @param word the word
+     * @return the count, 0 if the word is not in the map
+     */
+    public int count(String word) {
+      int entry = find(word);
+      return (entry < 0) ? 0 : m_Values[entry];
+    }
+
+    /**
+     * Returns the number of documents a word occurs in.
+     *
+     * @param word the word
+     * @return the number of documents, 0 if the word is not in the map
+     */
+    public int docCount(String word) {
+      int entry = find(word);
+      return (entry < 0) ? 0 : m_DocCounts[entry];
+    }
+
+    /**
+     * Returns the counts of all words.
+     *
+     * @return the counts
+     */
+    public int [] counts() {
+      int [] counts = new int [m_Size];
+      System.arraycopy(m_Values, 0, counts, 0, m_Size);
+      return counts;
+    }
+  }
+
+  /**
+   * A chunk of consecutive documents of the first batch, with the text of
+   * the attributes to convert and the class of each document.
+   */
+  private static class DocumentChunk {
+
+    /** the index of the first document in the batch */
+    int m_FirstDoc;
+
+    /** the texts of each document */
+    String [][] m_Texts = new String [CHUNK_SIZE][];
+
+    /** the class of each document */
+    int [] m_Classes = new int [CHUNK_SIZE];
+
+    /** the number of documents in the chunk */
+    int m_Size;
+
+    /**
+     * Creates an empty chunk.
+     *
+     * @param firstDoc the index of the first document in the batch
+     */
+    DocumentChunk(int firstDoc) {
+      m_FirstDoc = firstDoc;
+    }
+  }
+
+  /**
+   * The word counts of the documents handed to one counting thread: per class
+   * if a dictionary is built, or the number of documents with words in each
+   * attribute if words are hashed.
+   */
+  private class DocumentCounts {
+
+    /** the word counts of each class */
+    WordMap [] m_Words;
+
+    /** the number of documents with words hashed into each attribute */
+    int [] m_BucketDocs;
+
+    /** the last document counted for each attribute */
+    int [] m_LastDoc;
+
+    /**
+     * Creates empty counts.
+     *
+     * @param numClasses the number of classes
+     */
+    DocumentCounts(int numClasses) {
+      if (m_HashSize > 0) {
+        m_BucketDocs = new int [m_HashSize];
+        m_LastDoc = new int [m_HashSize];
+        Arrays.fill(m_LastDoc, -1);
+      } else {
+        m_Words = new WordMap [numClasses];
+        for (int i = 0; i < numClasses; i++) {
+          m_Words[i] = new WordMap();
+        }
+      }
+    }
+
+    /**
+     * Counts the words of the documents in a chunk.
+     *
+     * @param chunk the chunk
+     */
+    void count(DocumentChunk chunk) {
+      for (int d = 0; d < chunk.m_Size; d++) {
+        int doc = chunk.m_FirstDoc + d;
+        String [] texts = chunk.m_Texts[d];
+        for (int t = 0; t < texts.length; t++) {
+          Enumeration st = tokenize(texts[t]);
+          while (st.hasMoreElements()) {
+            String word = (String) st.nextElement();
+            if (m_lowerCaseTokens) {
+              word = word.toLowerCase();
+            }
+            if (m_useStoplist && weka.core.Stopwords.isStopword(word)) {
+              continue;
+            }
+            if (m_Words != null) {
+              m_Words[chunk.m_Classes[d]].count(word, doc);
+            } else {
+              int bucket = bucket(hash(word));
+              if (m_LastDoc[bucket] != doc) {
+                m_LastDoc[bucket] = doc;
+                m_BucketDocs[bucket]++;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the counts of another thread to these counts.
+     *
+     * @param other the other counts
+     */
+    void merge(DocumentCounts other) {
+      if (m_Words != null) {
+        for (int i = 0; i < m_Words.length; i++) {
+          m_Words[i].merge(other.m_Words[i]);
+        }
+      } else {
+        for (int b = 0; b < m_BucketDocs.length; b++) {
+          m_BucketDocs[b] += other.m_BucketDocs[b];
+        }
+      }
+    }
   }
 
   /**
@@ -366,13 +785,22 @@ public class StringToWordVector extends Filter
    * @param instanceInfo an Instances object containing the input 
    * instance structure (any instances contained in the object are 
    * ignored - only the structure is required).
-   * @return true if the outputFormat may be collected immediately
+   * @return true if the outputFormat may be collected immediately, which
+   * is the case if words are hashed and neither the IDF transform nor
+   * length normalization needs statistics of the first batch
    * @exception Exception if the input format can't be set 
    * successfully
    */
   public boolean setInputFormat(Instances instanceInfo) 
     throws Exception {
     super.setInputFormat(instanceInfo);
+    determineSelectedRange();
+    startCounting();
+    m_Streaming = (m_HashSize > 0) && !m_IDFTransform && !m_normalizeDocLength;
+    if (m_Streaming) {
+      determineHashedFormat(null);
+      return true;
+    }
     return false;
   }
 
@@ -394,11 +822,16 @@ public class StringToWordVector extends Filter
       resetQueue();
       m_NewBatch = false;
     }
-    if (m_FirstBatchDone) {
+    if (m_FirstBatchDone || m_Streaming) {
       convertInstance(instance);
       return true;
     } else {
+      // the instances of the first batch can only be converted once the
+      // dictionary is known, but their words are counted right away
       bufferInput(instance);
+      if ((m_HashSize == 0) || m_IDFTransform) {
+        countDocument(instance);
+      }
       return false;
     }
   }
@@ -418,8 +851,12 @@ public class StringToWordVector extends Filter
     }
 
     // Determine the dictionary
-    if (!m_FirstBatchDone) {
-      determineDictionary();
+    if (!m_FirstBatchDone && !m_Streaming) {
+      if (m_HashSize > 0) {
+        determineHashedFormat(m_IDFTransform ? finishCounting() : null);
+      } else {
+        determineDictionary();
+      }
     }
 
     // Convert pending input instances.
@@ -514,7 +951,10 @@ public class StringToWordVector extends Filter
     return "Converts String attributes into a set of attributes representing "+
            "word occurrence information from the text contained in the "+
            "strings. The set of words (attributes) is determined by the first "+
-           "batch filtered (typically training data).";
+           "batch filtered (typically training data). Alternatively, the "+
+           "words can be hashed into a fixed number of attributes, with a "+
+           "second hash deciding whether a word adds or subtracts one, so "+
+           "that no dictionary is needed.";
   }  
   
   /**
@@ -838,6 +1278,66 @@ public class StringToWordVector extends Filter
   public String useStoplistTipText() {
       return "Ignores all the words that are on the stoplist, if set to true.";
   } 
+
+  /**
+   * Gets the number of attributes the words are hashed into.
+   *
+   * @return the number of attributes, 0 if a dictionary is built
+   */
+  public int getHashSize() {
+    return m_HashSize;
+  }
+
+  /**
+   * Sets the number of attributes the words are hashed into.
+   *
+   * @param hashSize the number of attributes, 0 to build a dictionary
+   */
+  public void setHashSize(int hashSize) {
+    m_HashSize = Math.max(0, hashSize);
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String hashSizeTipText() {
+      return "The number of attributes the words are hashed into (signed "+
+             "feature hashing), 0 to build a dictionary of the words of the "+
+             "first batch. The wordsToKeep option is ignored if words are "+
+             "hashed.";
+  }
+
+  /**
+   * Gets the number of threads counting the words of the first batch.
+   *
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots() {
+    return m_NumExecutionSlots;
+  }
+
+  /**
+   * Sets the number of threads counting the words of the first batch.
+   *
+   * @param slots the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots(int slots) {
+    m_NumExecutionSlots = slots;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+      return "The number of threads counting the words of the first batch, "+
+             "0 for one per processor.";
+  }
   
   private static void sortArray(int [] array) {
       
@@ -886,104 +1386,271 @@ public class StringToWordVector extends Filter
     // System.err.println("Selected Range: " + getSelectedRange().getRanges()); 
   }
   
-  private void determineDictionary() {
-    
-    // System.err.println("Creating dictionary"); 
-    
+  /**
+   * Returns a tokenizer for a text.
+   *
+   * @param text the text
+   * @return the tokens
+   */
+  private Enumeration tokenize(String text) {
+    if (m_onlyAlphabeticTokens) {
+      return new AlphabeticStringTokenizer(text);
+    } else {
+      return new StringTokenizer(text, delimiters);
+    }
+  }
+
+  /**
+   * Scrambles the hash code of a word, so that both the attribute and the
+   * sign of a hashed word depend on all of its bits.
+   *
+   * @param word the word
+   * @return the hash
+   */
+  private static int hash(String word) {
+    int h = word.hashCode();
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    h *= 0xc2b2ae35;
+    h ^= (h >>> 16);
+    return h;
+  }
+
+  /**
+   * Returns the attribute, relative to the first word attribute, a word is
+   * hashed into.
+   *
+   * @param hash the hash of the word
+   * @return the attribute
+   */
+  private int bucket(int hash) {
+    return (hash & 0x7fffffff) % m_HashSize;
+  }
+
+  /**
+   * Returns the number of threads counting words.
+   *
+   * @return the number of threads
+   */
+  private int slots() {
+    int slots = (m_NumExecutionSlots == 0)
+      ? Runtime.getRuntime().availableProcessors() : m_NumExecutionSlots;
+    return Math.max(1, slots);
+  }
+
+  /**
+   * Discards the counts of a previous first batch.
+   */
+  private void startCounting() {
+    m_Chunk = null;
+    m_SlotCounts = null;
+    m_Workers = null;
+    m_Failures = null;
+    m_NumChunks = 0;
+    m_NumDocs = 0;
+  }
+
+  /**
+   * Adds a document of the first batch to the current chunk and hands the
+   * chunk to a counting thread once it is full.
+   *
+   * @param instance the document
+   * @exception Exception if a counting thread failed
+   */
+  private void countDocument(Instance instance) throws Exception {
+    if (m_Chunk == null) {
+      m_Chunk = new DocumentChunk(m_NumDocs);
+    }
+
+    int numTexts = 0;
+    for (int j = 0; j < instance.numAttributes(); j++) { 
+      if (m_SelectedRange.isInRange(j) && !instance.isMissing(j)) {
+        numTexts++;
+      }
+    }
+    String [] texts = new String [numTexts];
+    numTexts = 0;
+    for (int j = 0; j < instance.numAttributes(); j++) { 
+      if (m_SelectedRange.isInRange(j) && !instance.isMissing(j)) {
+        texts[numTexts++] = instance.stringValue(j);
+      }
+    }
+
     int classInd = getInputFormat().classIndex();
-    int values = 1;
-    if (classInd != -1) {
-      values = getInputFormat().attribute(classInd).numValues();
+    m_Chunk.m_Texts[m_Chunk.m_Size] = texts;
+    m_Chunk.m_Classes[m_Chunk.m_Size] = 
+      (classInd != -1) ? (int) instance.value(classInd) : 0;
+    m_Chunk.m_Size++;
+    m_NumDocs++;
+
+    if (m_Chunk.m_Size == CHUNK_SIZE) {
+      dispatch(m_Chunk);
+      m_Chunk = null;
     }
+  }
 
-    //TreeMap dictionaryArr [] = new TreeMap[values];
-    TreeMap [] dictionaryArr = new TreeMap[values];
-    for (int i = 0; i < values; i++) {
-      dictionaryArr[i] = new TreeMap();
+  /**
+   * Hands a chunk of documents to the next counting thread, after waiting
+   * for that thread's previous chunk. With a single slot, the chunk is
+   * counted right away.
+   *
+   * @param chunk the chunk
+   * @exception Exception if the thread's previous chunk failed
+   */
+  private void dispatch(final DocumentChunk chunk) throws Exception {
+    if (m_SlotCounts == null) {
+      int numSlots = slots();
+      m_SlotCounts = new DocumentCounts [numSlots];
+      m_Workers = new Thread [numSlots];
+      m_Failures = new RuntimeException [numSlots];
     }
 
-    // Make sure we know which fields to convert
-    determineSelectedRange();
+    final int slot = m_NumChunks++ % m_SlotCounts.length;
+    join(slot);
+    if (m_SlotCounts[slot] == null) {
+      int classInd = getInputFormat().classIndex();
+      m_SlotCounts[slot] = new DocumentCounts((classInd != -1) 
+        ? getInputFormat().attribute(classInd).numValues() : 1);
+    }
+    final DocumentCounts counts = m_SlotCounts[slot];
+    if (m_SlotCounts.length == 1) {
+      counts.count(chunk);
+      return;
+    }
 
-    // Tokenize all training text into an orderedMap of "words".
-    for (int i = 0; i < getInputFormat().numInstances(); i++) {
-      /*
-	if (i % 10 == 0) {
-        System.err.print( i + " " + getInputFormat().numInstances() + "\r"); 
-        System.err.flush();
+    m_Workers[slot] = new Thread() {
+	public void run() {
+	  try {
+	    counts.count(chunk);
+	  } catch (RuntimeException e) {
+	    m_Failures[slot] = e;
+	  }
 	}
-      */
-      Instance instance = getInputFormat().instance(i);
-      int vInd = 0;
-      if (classInd != -1) {
-          vInd = (int)instance.classValue();
+      };
+    m_Workers[slot].start();
+  }
+
+  /**
+   * Waits for the counting thread of a slot, if any.
+   *
+   * @param slot the slot
+   * @exception Exception if the thread failed
+   */
+  private void join(int slot) throws Exception {
+    if (m_Workers[slot] != null) {
+      m_Workers[slot].join();
+      m_Workers[slot] = null;
+    }
+    if (m_Failures[slot] != null) {
+      throw m_Failures[slot];
+    }
+  }
+
+  /**
+   * Counts the remaining documents of the first batch, waits for all
+   * counting threads and merges their counts.
+   *
+   * @return the counts of the whole first batch
+   * @exception Exception if a counting thread failed
+   */
+  private DocumentCounts finishCounting() throws Exception {
+    if ((m_Chunk != null) && (m_Chunk.m_Size > 0)) {
+      dispatch(m_Chunk);
+    }
+
+    DocumentCounts result = null;
+    if (m_SlotCounts != null) {
+      for (int s = 0; s < m_SlotCounts.length; s++) {
+        join(s);
       }
-      
-      Hashtable h = new Hashtable();
-      for (int j = 0; j < instance.numAttributes(); j++) { 
-        if (m_SelectedRange.isInRange(j) && (instance.isMissing(j) == false)) {
-	  //getInputFormat().attribute(j).type() == Attribute.STRING 
-            
-          Enumeration st;
-          if(this.m_onlyAlphabeticTokens==false)
-              st = new StringTokenizer(instance.stringValue(j),
-                                                   delimiters);
-          else
-              st = new AlphabeticStringTokenizer(instance.stringValue(j));
-          
-          while (st.hasMoreElements()) {
-            String word = ((String)st.nextElement()).intern();
-            
-            if(this.m_lowerCaseTokens==true)
-                word = word.toLowerCase();
-            
-            if(this.m_useStoplist==true)
-                if(weka.core.Stopwords.isStopword(word))
-                    continue;
-            
-            if(!(h.contains(word)))
-                h.put(word, new Integer(0));
-
-            Count count = (Count)dictionaryArr[vInd].get(word);
-            if (count == null) {
-              dictionaryArr[vInd].put(word, new Count(1));
-            } else {
-                count.count ++;                
-            }
-          }          
+      for (int s = 0; s < m_SlotCounts.length; s++) {
+        if (m_SlotCounts[s] == null) {
+          continue;
+        }
+        if (result == null) {
+          result = m_SlotCounts[s];
+        } else {
+          result.merge(m_SlotCounts[s]);
         }
       }
-      //updating the docCount for the words that have occurred in this
-      //instance(document).
-      Enumeration e = h.keys();
-      while(e.hasMoreElements()) {
-          String word = (String) e.nextElement();
-          Count c = (Count)dictionaryArr[vInd].get(word);
-      
-          if(c!=null) {
-              c.docCount++;
-          }
-          else 
-              System.err.println("Warning: A word should definitely be in the "+
-                                 "dictionary.Please check the code");
-      }
-      
     }
+    if (result == null) {
+      int classInd = getInputFormat().classIndex();
+      result = new DocumentCounts((classInd != -1) 
+        ? getInputFormat().attribute(classInd).numValues() : 1);
+    }
+    startCounting();
+
+    return result;
+  }
+
+  /**
+   * Adds copies of the attributes that are not converted to a list of
+   * attributes.
+   *
+   * @param attributes the list of attributes
+   * @return the index of the class attribute in the list, -1 if none
+   */
+  private int addNonConvertedAttributes(FastVector attributes) {
+    int classIndex = -1;
+    for (int i = 0; i < getInputFormat().numAttributes(); i++) {
+      if (!m_SelectedRange.isInRange(i)) { 
+        if (getInputFormat().classIndex() == i) {
+          classIndex = attributes.size();
+        }
+	attributes.addElement(getInputFormat().attribute(i).copy());
+      }     
+    }
+    return classIndex;
+  }
+
+  /**
+   * Sets the output format for hashed words: the attributes that are not
+   * converted, followed by one attribute per hash value.
+   *
+   * @param counts the counts of the first batch, null if not needed
+   */
+  private void determineHashedFormat(DocumentCounts counts) {
+    FastVector attributes = new FastVector(m_HashSize +
+					   getInputFormat().numAttributes());
+    int classIndex = addNonConvertedAttributes(attributes);
+    int firstCopy = attributes.size();
+    for (int b = 0; b < m_HashSize; b++) {
+      attributes.addElement(new Attribute(m_Prefix + "hash_" + b));
+    }
+
+    docsCounts = new int[attributes.size()];
+    if (counts != null) {
+      System.arraycopy(counts.m_BucketDocs, 0, docsCounts, firstCopy, 
+                       m_HashSize);
+    }
+    m_Dictionary = new WordMap();
+    numInstances = getInputFormat().numInstances();
+
+    // Set the filter's output format
+    Instances outputFormat = new Instances(getInputFormat().relationName(), 
+                                           attributes, 0);
+    outputFormat.setClassIndex(classIndex);
+    setOutputFormat(outputFormat);
+  }
+  
+  private void determineDictionary() throws Exception {
+    
+    // System.err.println("Creating dictionary"); 
+    
+    // Tokenize all training text into per-class word counts.
+    WordMap [] dictionaryArr = finishCounting().m_Words;
+    int values = dictionaryArr.length;
 
     int totalsize = 0;
     int prune[] = new int[values];
+    String [][] sortedWords = new String[values][];
     for (int z = 0; z < values; z++) {
       totalsize += dictionaryArr[z].size();
+      sortedWords[z] = dictionaryArr[z].sortedWords();
 
-      int array[] = new int[dictionaryArr[z].size()];
-      int pos = 0;
-      Iterator it = dictionaryArr[z].keySet().iterator();
-      while (it.hasNext()) {
-        String word = (String)it.next();
-        Count count = (Count)dictionaryArr[z].get(word);
-        array[pos] = count.count;
-        pos++;
-      }
+      int array[] = dictionaryArr[z].counts();
 
       // sort the array
       sortArray(array);
@@ -997,75 +1664,38 @@ public class StringToWordVector extends Filter
 
     }
 
-    /*
-      for (int z=0;z<values;z++) {
-      System.err.println(dictionaryArr[z].size()+" "+totalsize);
-      }
-    */
-
     // Convert the dictionary into an attribute index
     // and create one attribute per word
     FastVector attributes = new FastVector(totalsize +
 					   getInputFormat().numAttributes());
 
     // Add the non-converted attributes 
-    int classIndex = -1;
-    for (int i = 0; i < getInputFormat().numAttributes(); i++) {
-      if (!m_SelectedRange.isInRange(i)) { 
-        if (getInputFormat().classIndex() == i) {
-          classIndex = attributes.size();
-        }
-	attributes.addElement(getInputFormat().attribute(i).copy());
-      }     
-    }
-
+    int classIndex = addNonConvertedAttributes(attributes);
     
     // Add the word vector attributes
-    TreeMap newDictionary = new TreeMap();
+    WordMap newDictionary = new WordMap();
 
     int index = attributes.size();
     for(int z = 0; z < values; z++) {
-      /*
-	System.err.print("\nCreating word index...");
-	if (values > 1) {
-        System.err.print(" for class id=" + z); 
-	}
-	System.err.flush();
-      */
-      Iterator it = dictionaryArr[z].keySet().iterator();
-      while (it.hasNext()) {
-        String word = (String)it.next();
-        Count count = (Count)dictionaryArr[z].get(word);
-        if (count.count >= prune[z]) {
-          //          System.err.println(word+" "+newDictionary.get(word));
-          if(newDictionary.get(word) == null) {
-            /*
-	      if (values > 1) {
-              System.err.print(getInputFormat().classAttribute().value(z) + " ");
-	      }
-	      System.err.println(word);
-            */
-            newDictionary.put(word, new Integer(index++));
+      for (int w = 0; w < sortedWords[z].length; w++) {
+        String word = sortedWords[z][w];
+        if (dictionaryArr[z].count(word) >= prune[z]) {
+          if(newDictionary.find(word) < 0) {
+            newDictionary.put(word, index++);
             attributes.addElement(new Attribute(m_Prefix + word));
           }
         }
       }
     }
     
-    
-    
     docsCounts = new int[attributes.size()];
-    Iterator it = newDictionary.keySet().iterator();
-    while(it.hasNext()) {
-        String word = (String) it.next();
-        int idx = ((Integer)newDictionary.get(word)).intValue();
+    for (int e = 0; e < newDictionary.size(); e++) {
+        String word = newDictionary.m_Words[e];
         int docsCount=0;
         for(int j=0; j<values; j++) {
-            Count c = (Count) dictionaryArr[j].get(word);
-            if(c!=null)
-                docsCount += c.docCount;
+            docsCount += dictionaryArr[j].docCount(word);
         }
-        docsCounts[idx]=docsCount;
+        docsCounts[newDictionary.m_Values[e]]=docsCount;
     }
     
     attributes.trimToSize();
@@ -1085,329 +1715,187 @@ public class StringToWordVector extends Filter
 
   private void convertInstance(Instance instance) throws Exception {
 
-    // Convert the instance into a sorted set of indexes
-    TreeMap contained = new TreeMap();
-
-    // Copy all non-converted attributes from input to output
-    int firstCopy = 0;
-    for (int i = 0; i < getInputFormat().numAttributes(); i++) {
-      if (!m_SelectedRange.isInRange(i)) { 
-	if (getInputFormat().attribute(i).type() != Attribute.STRING) {
-	  // Add simple nominal and numeric attributes directly
-	  if (instance.value(i) != 0.0) {
-	    contained.put(new Integer(firstCopy), 
-			  new Double(instance.value(i)));
-	  } 
-	} else {
-	  if (instance.isMissing(i)) {
-	    contained.put(new Integer(firstCopy),
-			  new Double(Instance.missingValue()));
-	  } else {
-
-	    // If this is a string attribute, we have to first add
-	    // this value to the range of possible values, then add
-	    // its new internal index.
-	    if (outputFormatPeek().attribute(firstCopy).numValues() == 0) {
-	      // Note that the first string value in a
-	      // SparseInstance doesn't get printed.
-	      outputFormatPeek().attribute(firstCopy)
-		.addStringValue("Hack to defeat SparseInstance bug");
-	    }
-	    int newIndex = outputFormatPeek().attribute(firstCopy)
-	      .addStringValue(instance.stringValue(i));
-	    contained.put(new Integer(firstCopy), 
-			  new Double(newIndex));
-	  }
-	}
-	firstCopy++;
-      }     
-    }
-    
-    for (int j = 0; j < instance.numAttributes(); j++) { 
-      //if ((getInputFormat().attribute(j).type() == Attribute.STRING) 
-      if (m_SelectedRange.isInRange(j)
-	  && (instance.isMissing(j) == false)) {          
-        Enumeration st;
-        
-        if(this.m_onlyAlphabeticTokens==false)
-            st = new StringTokenizer(instance.stringValue(j),
-                                                 delimiters);
-        else
-            st = new AlphabeticStringTokenizer(instance.stringValue(j));
-        
-        while (st.hasMoreElements()) {
-          String word = (String)st.nextElement(); 
-          if(this.m_lowerCaseTokens==true)
-              word = word.toLowerCase();
-          Integer index = (Integer) m_Dictionary.get(word);
-          if (index != null) {
-            if (m_OutputCounts) { // Separate if here rather than two lines down to avoid hashtable lookup
-              Double count = (Double)contained.get(index);
-              if (count != null) {
-                contained.put(index, new Double(count.doubleValue() + 1.0));
-              } else {
-                contained.put(index, new Double(1));
-              }
-            } else {
-              contained.put(index, new Double(1));
-            }                
-          }
-        }
-      }
-    }
-    
-    //Doing TFTransform
-    if(m_TFTransform==true) {
-        Iterator it = contained.keySet().iterator();
-        for(int i=0; it.hasNext(); i++) {
-            Integer index = (Integer)it.next();
-            if( index.intValue() >= firstCopy ) { 
-                double val = ((Double)contained.get(index)).doubleValue();
-                val = Math.log(val+1);
-//                if(printInstance==true)
-//                  System.out.println("Instance 0"+ //instance.toString()+
-//                                   ": setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);                
-                contained.put(index, new Double(val));
-            }
-        }
-    }
-    
-    //Doing IDFTransform
-    if(m_IDFTransform==true) {
-        Iterator it = contained.keySet().iterator();
-        for(int i=0; it.hasNext(); i++) {
-            Integer index = (Integer)it.next();
-            //int num = getInputFormat().numInstances();
-            if( index.intValue() >= firstCopy ) {
-                double val = ((Double)contained.get(index)).doubleValue();
-                val = val*Math.log( numInstances /    //num /
-                                    (double)docsCounts[index.intValue()] );
-//                if(printInstance==true)
-//                  System.out.println("Instance 0"+ //instance.toString()+
-//                                   ": "+
-//                                   "num: "+numInstances+" index.intValue(): "+index.intValue()+
-//                                   " docsCounts: "+this.docsCounts[index.intValue()]+ //"\n"+
-//                                   "setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);                
-                contained.put(index, new Double(val));
-            }
-        }        
-    }
-    
-    //Doing length normalization
-    if(m_normalizeDocLength==true) {
-      if(avgDocLength<0)
-        throw new Exception("Error. Average Doc Length not defined yet.");
-      
-      double sumSq = 0;
-      Iterator it = contained.keySet().iterator();
-      for(int i=0; it.hasNext(); i++) {
-        Integer index = (Integer)it.next();
-        if( index.intValue() >= firstCopy ) {
-          double val = ((Double)contained.get(index)).doubleValue();
-          sumSq += val*val;
-        }
-      }
-      it = contained.keySet().iterator();
-      for(int i=0; it.hasNext(); i++) {
-        Integer index = (Integer)it.next();
-        if( index.intValue() >= firstCopy ) {
-          double val = ((Double)contained.get(index)).doubleValue();
-          val = val/Math.sqrt(sumSq);
-          val = val*avgDocLength;
-//                System.out.println("Instance "+instance.toString()+
-//                                   ": setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);
-          contained.put(index, new Double(val));
-        }
-      }
-    }
-    
-    
-    // Convert the set to structures needed to create a sparse instance.
-    double [] values = new double [contained.size()];
-    int [] indices = new int [contained.size()];
-    Iterator it = contained.keySet().iterator();
-    for (int i = 0; it.hasNext(); i++) {
-      Integer index = (Integer)it.next();
-      Double value = (Double)contained.get(index);
-      values[i] = value.doubleValue();
-      indices[i] = index.intValue();
-    }
+    if(m_normalizeDocLength==true && avgDocLength<0)
+      throw new Exception("Error. Average Doc Length not defined yet.");
 
-    Instance inst = new SparseInstance(instance.weight(), values, indices, 
-                                       outputFormatPeek().numAttributes());
-    inst.setDataset(outputFormatPeek());
-    push(inst);
-    
-    //System.err.print("#"); System.err.flush();
+    push(convert(instance, m_normalizeDocLength));
   }
 
 
   private int convertInstancewoDocNorm(Instance instance, FastVector v) {
 
-    // Convert the instance into a sorted set of indexes
-    TreeMap contained = new TreeMap();
+    v.addElement(convert(instance, false));
+    
+    return m_FirstCopy;
+  }
+
+  /**
+   * Converts an instance into a sparse instance of the output format. The
+   * values of the word attributes are collected in a dense scratch array
+   * that is only cleared where it was used, so that converting a document
+   * costs time proportional to its length rather than to the number of
+   * words in the dictionary.
+   *
+   * @param instance the instance
+   * @param normalize whether to normalize the word frequencies to the 
+   * average document length
+   * @return the converted instance
+   */
+  private Instance convert(Instance instance, boolean normalize) {
+
+    Instances outputFormat = outputFormatPeek();
+    int numAttributes = outputFormat.numAttributes();
+    if (m_Scratch == null || m_Scratch.length != numAttributes) {
+      m_Scratch = new double[numAttributes];
+      m_Stamps = new int[numAttributes];
+      m_Touched = new int[numAttributes];
+      m_Stamp = 0;
+    }
+    if (++m_Stamp == Integer.MAX_VALUE) {
+      Arrays.fill(m_Stamps, 0);
+      m_Stamp = 1;
+    }
 
     // Copy all non-converted attributes from input to output
+    double [] copyValues = new double [getInputFormat().numAttributes()];
+    int [] copyIndices = new int [getInputFormat().numAttributes()];
+    int numCopied = 0;
     int firstCopy = 0;
     for (int i = 0; i < getInputFormat().numAttributes(); i++) {
       if (!m_SelectedRange.isInRange(i)) { 
 	if (getInputFormat().attribute(i).type() != Attribute.STRING) {
 	  // Add simple nominal and numeric attributes directly
 	  if (instance.value(i) != 0.0) {
-	    contained.put(new Integer(firstCopy), 
-			  new Double(instance.value(i)));
+	    copyIndices[numCopied] = firstCopy;
+	    copyValues[numCopied++] = instance.value(i);
 	  } 
 	} else {
 	  if (instance.isMissing(i)) {
-	    contained.put(new Integer(firstCopy),
-			  new Double(Instance.missingValue()));
+	    copyIndices[numCopied] = firstCopy;
+	    copyValues[numCopied++] = Instance.missingValue();
 	  } else {
 
 	    // If this is a string attribute, we have to first add
 	    // this value to the range of possible values, then add
 	    // its new internal index.
-	    if (outputFormatPeek().attribute(firstCopy).numValues() == 0) {
+	    if (outputFormat.attribute(firstCopy).numValues() == 0) {
 	      // Note that the first string value in a
 	      // SparseInstance doesn't get printed.
-	      outputFormatPeek().attribute(firstCopy)
+	      outputFormat.attribute(firstCopy)
 		.addStringValue("Hack to defeat SparseInstance bug");
 	    }
-	    int newIndex = outputFormatPeek().attribute(firstCopy)
+	    int newIndex = outputFormat.attribute(firstCopy)
 	      .addStringValue(instance.stringValue(i));
-	    contained.put(new Integer(firstCopy), 
-			  new Double(newIndex));
+	    copyIndices[numCopied] = firstCopy;
+	    copyValues[numCopied++] = newIndex;
 	  }
 	}
 	firstCopy++;
       }     
     }
+    m_FirstCopy = firstCopy;
     
+    int numTouched = 0;
+    if (m_HashSize > 0 && !m_OutputCounts) {
+      if (m_SeenWords == null) {
+        m_SeenWords = new HashSet();
+      }
+      m_SeenWords.clear();
+    }
     for (int j = 0; j < instance.numAttributes(); j++) { 
-      //if ((getInputFormat().attribute(j).type() == Attribute.STRING) 
       if (m_SelectedRange.isInRange(j)
 	  && (instance.isMissing(j) == false)) {          
-        Enumeration st;
-        
-        if(this.m_onlyAlphabeticTokens==false)
-            st = new StringTokenizer(instance.stringValue(j),
-                                                 delimiters);
-        else
-            st = new AlphabeticStringTokenizer(instance.stringValue(j));
-        
+        Enumeration st = tokenize(instance.stringValue(j));
         while (st.hasMoreElements()) {
           String word = (String)st.nextElement(); 
           if(this.m_lowerCaseTokens==true)
               word = word.toLowerCase();
-          Integer index = (Integer) m_Dictionary.get(word);
-          if (index != null) {
-            if (m_OutputCounts) { // Separate if here rather than two lines down to avoid hashtable lookup
-              Double count = (Double)contained.get(index);
-              if (count != null) {
-                contained.put(index, new Double(count.doubleValue() + 1.0));
-              } else {
-                contained.put(index, new Double(1));
-              }
-            } else {
-              contained.put(index, new Double(1));
-            }                
+          int index;
+          double weight = 1;
+          if (m_HashSize > 0) {
+            if (m_useStoplist && weka.core.Stopwords.isStopword(word)) {
+              continue;
+            }
+            if (!m_OutputCounts && !m_SeenWords.add(word)) {
+              continue;
+            }
+            int hash = hash(word);
+            index = firstCopy + bucket(hash);
+            weight = (hash < 0) ? -1 : 1;
+          } else {
+            index = m_Dictionary.get(word);
+            if (index < 0) {
+              continue;
+            }
+          }
+          if (m_Stamps[index] != m_Stamp) {
+            m_Stamps[index] = m_Stamp;
+            m_Scratch[index] = 0;
+            m_Touched[numTouched++] = index;
+          }
+          if (m_OutputCounts || m_HashSize > 0) {
+            m_Scratch[index] += weight;
+          } else {
+            m_Scratch[index] = 1;
           }
         }
       }
     }
-    
-    //Doing TFTransform
-    if(m_TFTransform==true) {
-        Iterator it = contained.keySet().iterator();
-        for(int i=0; it.hasNext(); i++) {
-            Integer index = (Integer)it.next();
-            if( index.intValue() >= firstCopy ) { 
-                double val = ((Double)contained.get(index)).doubleValue();
-                val = Math.log(val+1);
-//                if(printInstance==true)
-//                  System.out.println("Instance 0"+ //instance.toString()+
-//                                   ": setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);                
-                contained.put(index, new Double(val));
-            }
-        }
+    Arrays.sort(m_Touched, 0, numTouched);
+
+    // Drop hashed attributes where the signs cancelled out
+    int numWords = 0;
+    for (int t = 0; t < numTouched; t++) {
+      if (m_Scratch[m_Touched[t]] != 0) {
+        m_Touched[numWords++] = m_Touched[t];
+      }
     }
-    
-    //Doing IDFTransform
-    if(m_IDFTransform==true) {
-        Iterator it = contained.keySet().iterator();
-        for(int i=0; it.hasNext(); i++) {
-            Integer index = (Integer)it.next();
-            //int num = getInputFormat().numInstances();
-            if( index.intValue() >= firstCopy ) {
-                double val = ((Double)contained.get(index)).doubleValue();
-                val = val*Math.log( numInstances /    //num /
-                                    (double) docsCounts[index.intValue()] );
-//                if(printInstance==true)
-//                  System.out.println("Instance 0"+ //instance.toString()+
-//                                   ": "+
-//                                   "num: "+numInstances+" index.intValue(): "+index.intValue()+
-//                                   " docsCounts: "+this.docsCounts[index.intValue()]+ //"\n"+
-//                                   "setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);                
-                contained.put(index, new Double(val));
-            }
-        }        
+
+    double sumSq = 0;
+    for (int t = 0; t < numWords; t++) {
+      int index = m_Touched[t];
+      double val = m_Scratch[index];
+
+      //Doing TFTransform
+      if(m_TFTransform==true) {
+        val = (val < 0) ? -Math.log(-val+1) : Math.log(val+1);
+      }
+
+      //Doing IDFTransform
+      if(m_IDFTransform==true) {
+        val = val*Math.log( numInstances /
+                            (double) Math.max(1, docsCounts[index]) );
+      }
+
+      m_Scratch[index] = val;
+      sumSq += val*val;
     }
-    
+
     //Doing length normalization
-    //if(m_normalizeDocLength==true) {
-    //    double sumSq = 0;
-    //    Iterator it = contained.keySet().iterator();
-    //    for(int i=0; it.hasNext(); i++) {
-    //        Integer index = (Integer)it.next();
-    //        if( index.intValue() >= firstCopy ) { 
-    //            double val = ((Double)contained.get(index)).doubleValue();
-    //            sumSq += val*val;
-    //        }
-    //    }
-    //    it = contained.keySet().iterator();
-    //    for(int i=0; it.hasNext(); i++) {
-    //        Integer index = (Integer)it.next();
-    //        if( index.intValue() >= firstCopy ) { 
-    //            double val = ((Double)contained.get(index)).doubleValue();
-    //            val = val/Math.sqrt(sumSq);
-//                System.out.println("Instance "+instance.toString()+
-//                                   ": setting value "+index.intValue()+
-//                                   " from "+((Double)contained.get(index)).doubleValue()+
-//                                   " to "+val);                
-    //            contained.put(index, new Double(val));
-    //        }
-    //    }
-    //}
-    
-    
-    // Convert the set to structures needed to create a sparse instance.
-    double [] values = new double [contained.size()];
-    int [] indices = new int [contained.size()];
-    Iterator it = contained.keySet().iterator();
-    for (int i = 0; it.hasNext(); i++) {
-      Integer index = (Integer)it.next();
-      Double value = (Double)contained.get(index);
-      values[i] = value.doubleValue();
-      indices[i] = index.intValue();
+    if(normalize==true) {
+      for (int t = 0; t < numWords; t++) {
+        int index = m_Touched[t];
+        double val = m_Scratch[index];
+        val = val/Math.sqrt(sumSq);
+        val = val*avgDocLength;
+        m_Scratch[index] = val;
+      }
+    }
+
+    // Convert to structures needed to create a sparse instance.
+    double [] values = new double [numCopied + numWords];
+    int [] indices = new int [numCopied + numWords];
+    System.arraycopy(copyValues, 0, values, 0, numCopied);
+    System.arraycopy(copyIndices, 0, indices, 0, numCopied);
+    for (int t = 0; t < numWords; t++) {
+      indices[numCopied + t] = m_Touched[t];
+      values[numCopied + t] = m_Scratch[m_Touched[t]];
     }
 
     Instance inst = new SparseInstance(instance.weight(), values, indices, 
-                                       outputFormatPeek().numAttributes());
-    inst.setDataset(outputFormatPeek());
-    //push(inst);
-    v.addElement(inst);
-    
-    return firstCopy;    
-    //System.err.print("#"); System.err.flush();
+                                       numAttributes);
+    inst.setDataset(outputFormat);
+    return inst;
   }
   
   
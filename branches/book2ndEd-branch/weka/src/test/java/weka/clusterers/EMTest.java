@@ -0,0 +1,160 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests that EM finds the same model on one and on several threads. Run
+ * from the command line with:<p/>
+ * java weka.clusterers.EMTest
+ *
+ * @version $Revision$
+ */
+public class EMTest 
+  extends TestCase {
+
+  public EMTest(String name) { 
+    super(name);  
+  }
+
+  /**
+   * Returns a mixture of three Gaussians in two numeric attributes, with a
+   * nominal attribute and a few missing values.
+   *
+   * @return		the data
+   */
+  protected Instances getData() {
+    FastVector values = new FastVector();
+    values.addElement("a");
+    values.addElement("b");
+    values.addElement("c");
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("x"));
+    atts.addElement(new Attribute("y"));
+    atts.addElement(new Attribute("n", values));
+    Instances data = new Instances("mixture", atts, 300);
+
+    Random random = new Random(3);
+    for (int i = 0; i < 300; i++) {
+      int component = i % 3;
+      double[] vals = new double[3];
+      vals[0] = random.nextGaussian() + component * 5;
+      vals[1] = random.nextGaussian() * (component + 1);
+      vals[2] = (random.nextDouble() < 0.8) ? component : random.nextInt(3);
+      if (i % 29 == 0)
+	vals[i % 3] = Instance.missingValue();
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Builds EM with the given settings.
+   *
+   * @param data	the data
+   * @param numClusters	the number of clusters, -1 to cross-validate
+   * @param numSlots	the number of threads
+   * @return		the built clusterer
+   * @throws Exception	if building fails
+   */
+  protected EM build(Instances data, int numClusters, int numSlots)
+    throws Exception {
+    EM em = new EM();
+    em.setNumClusters(numClusters);
+    em.setNumExecutionSlots(numSlots);
+    em.buildClusterer(data);
+    return em;
+  }
+
+  /**
+   * Returns the log-likelihood of the data under a model.
+   *
+   * @param em		the model
+   * @param data	the data
+   * @return		the log-likelihood
+   * @throws Exception	if the densities cannot be computed
+   */
+  protected double logLikelihood(EM em, Instances data) throws Exception {
+    double result = 0;
+    for (int i = 0; i < data.numInstances(); i++)
+      result += data.instance(i).weight()
+	* em.logDensityForInstance(data.instance(i));
+    return result;
+  }
+
+  /**
+   * Compares the models built on one and on several threads: the number of
+   * clusters must be the same and the log-likelihoods equal up to rounding.
+   *
+   * @param numClusters	the number of clusters, -1 to cross-validate
+   * @throws Exception	if the test fails
+   */
+  protected void compareExecutionSlots(int numClusters) throws Exception {
+    Instances data = getData();
+    EM single = build(data, numClusters, 1);
+    double expected = logLikelihood(single, data);
+
+    for (int slots = 2; slots <= 4; slots++) {
+      EM multi = build(data, numClusters, slots);
+      String msg = "clusters " + numClusters + ", slots " + slots;
+      assertEquals(msg, single.numberOfClusters(), multi.numberOfClusters());
+      assertEquals(msg, expected, logLikelihood(multi, data),
+		   1e-6 * Math.abs(expected));
+    }
+  }
+
+  /**
+   * Tests a fixed number of clusters.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testFixedNumClusters() throws Exception {
+    compareExecutionSlots(3);
+  }
+
+  /**
+   * Tests the number of clusters chosen by cross-validation.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testCrossValidation() throws Exception {
+    compareExecutionSlots(-1);
+  }
+
+  public static Test suite() {
+    return new TestSuite(EMTest.class);
+  }
+
+  public static void main(String[] args){
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests SimpleKMeans: Hamerly's bounds, several threads and mini-batches
+ * against the plain assignment loop. Run from the command line with:<p/>
+ * java weka.clusterers.SimpleKMeansTest
+ *
+ * @version $Revision$
+ */
+public class SimpleKMeansTest 
+  extends TestCase {
+
+  /** the centres of the blobs of the test data */
+  protected static final int[][] CENTRES = {{0, 0}, {100, 20}, {30, 200}};
+
+  public SimpleKMeansTest(String name) { 
+    super(name);  
+  }
+
+  /**
+   * Returns blobs of points with small integer coordinates around the
+   * CENTRES, plus a nominal attribute. With integer values, the sums of the
+   * clusters do not depend on the order they are added in, and many
+   * distances are tied.
+   *
+   * @param spread	the maximum offset from the centre
+   * @return		the data
+   */
+  protected Instances getData(int spread) {
+    FastVector values = new FastVector();
+    values.addElement("a");
+    values.addElement("b");
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("x"));
+    atts.addElement(new Attribute("y"));
+    atts.addElement(new Attribute("n", values));
+    Instances data = new Instances("blobs", atts, 600);
+
+    Random random = new Random(1);
+    for (int i = 0; i < 600; i++) {
+      int[] centre = CENTRES[i % CENTRES.length];
+      double[] vals = new double[3];
+      vals[0] = centre[0] + random.nextInt(2 * spread + 1) - spread;
+      vals[1] = centre[1] + random.nextInt(2 * spread + 1) - spread;
+      vals[2] = random.nextInt(2);
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Builds SimpleKMeans with the given settings.
+   *
+   * @param data	the data
+   * @param numClusters	the number of clusters
+   * @param init	the initialization method
+   * @param fast	whether to use Hamerly's bounds
+   * @param numSlots	the number of threads
+   * @param miniBatch	the size of the mini-batches, 0 for none
+   * @return		the built clusterer
+   * @throws Exception	if building fails
+   */
+  protected SimpleKMeans build(Instances data, int numClusters, int init,
+      boolean fast, int numSlots, int miniBatch) throws Exception {
+    SimpleKMeans kmeans = new SimpleKMeans();
+    kmeans.setNumClusters(numClusters);
+    kmeans.setSeed(5);
+    kmeans.setInitializationMethod(
+	new SelectedTag(init, SimpleKMeans.TAGS_INIT));
+    kmeans.setFastDistanceCalc(fast);
+    kmeans.setNumExecutionSlots(numSlots);
+    kmeans.setMiniBatchSize(miniBatch);
+    kmeans.buildClusterer(data);
+    return kmeans;
+  }
+
+  /**
+   * Asserts that two clusterers found the same clusters.
+   *
+   * @param msg		the message
+   * @param expected	the reference clusterer
+   * @param actual	the clusterer to check
+   * @param data	the training data
+   * @throws Exception	if clustering fails
+   */
+  protected void compare(String msg, SimpleKMeans expected,
+      SimpleKMeans actual, Instances data) throws Exception {
+    assertEquals(msg + ", number of clusters", expected.numberOfClusters(),
+	actual.numberOfClusters());
+    assertEquals(msg + ", centroids",
+	expected.getClusterCentroids().toString(),
+	actual.getClusterCentroids().toString());
+    assertEquals(msg + ", squared error", expected.getSquaredError(),
+	actual.getSquaredError(), 1e-10);
+    for (int i = 0; i < data.numInstances(); i++)
+      assertEquals(msg + ", instance " + i,
+	  expected.clusterInstance(data.instance(i)),
+	  actual.clusterInstance(data.instance(i)));
+  }
+
+  /**
+   * Tests Hamerly's bounds against the plain assignment loop, with both
+   * initialization methods and on data with many tied distances.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testFastDistanceCalc() throws Exception {
+    for (int spread = 1; spread <= 40; spread *= 5) {
+      Instances data = getData(spread);
+      for (int init = SimpleKMeans.RANDOM; 
+	   init <= SimpleKMeans.KMEANS_PLUS_PLUS; init++) {
+	for (int k = 2; k <= 7; k += 5) {
+	  String msg = "spread " + spread + ", init " + init + ", k " + k;
+	  compare(msg, build(data, k, init, false, 1, 0),
+		  build(data, k, init, true, 1, 0), data);
+	}
+      }
+    }
+  }
+
+  /**
+   * Tests several threads against one, with and without Hamerly's bounds.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testExecutionSlots() throws Exception {
+    Instances data = getData(40);
+    for (int f = 0; f < 2; f++) {
+      SimpleKMeans single = build(data, 5, SimpleKMeans.KMEANS_PLUS_PLUS,
+				  f == 1, 1, 0);
+      for (int slots = 2; slots <= 4; slots++)
+	compare("fast " + (f == 1) + ", slots " + slots, single,
+		build(data, 5, SimpleKMeans.KMEANS_PLUS_PLUS, f == 1, slots, 0),
+		data);
+    }
+  }
+
+  /**
+   * Tests that mini-batches do not depend on the number of threads and
+   * separate the blobs of the data.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testMiniBatch() throws Exception {
+    Instances data = getData(5);
+    SimpleKMeans single = build(data, CENTRES.length,
+				SimpleKMeans.KMEANS_PLUS_PLUS, false, 1, 32);
+    compare("mini-batch", single, build(data, CENTRES.length,
+	SimpleKMeans.KMEANS_PLUS_PLUS, false, 3, 32), data);
+
+    assertEquals(CENTRES.length, single.numberOfClusters());
+    int[] clusterOfBlob = new int[CENTRES.length];
+    for (int i = 0; i < data.numInstances(); i++) {
+      int cluster = single.clusterInstance(data.instance(i));
+      if (i < CENTRES.length) {
+	for (int j = 0; j < i; j++)
+	  assertTrue("blobs in different clusters", clusterOfBlob[j] != cluster);
+	clusterOfBlob[i] = cluster;
+      } else {
+	assertEquals("instance " + i, clusterOfBlob[i % CENTRES.length],
+	    cluster);
+      }
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(SimpleKMeansTest.class);
+  }
+
+  public static void main(String[] args){
+    junit.textui.TestRunner.run(suite());
+  }
+}
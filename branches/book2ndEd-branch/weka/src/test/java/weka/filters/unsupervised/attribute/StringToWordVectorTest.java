@@ -10,9 +10,13 @@ import junit.framework.TestSuite;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Attribute;
+import weka.core.FastVector;
 import weka.filters.Filter;
 import weka.filters.AbstractFilterTest;
 
+import java.util.HashSet;
+import java.util.Random;
+
 /**
  * Tests StringToWordVector. Run from the command line with:<p>
  * java weka.filters.StringToWordVectorTest
@@ -47,6 +51,184 @@ public class StringToWordVectorTest extends AbstractFilterTest {
     assertEquals(m_Instances.numAttributes() - 2 + 3, result.numAttributes());
   }
 
+  /**
+   * Returns the word of the vocabulary with the given index.
+   *
+   * @param index the index
+   * @return the word
+   */
+  protected String word(int index) {
+    return "w" + index;
+  }
+
+  /**
+   * Generates documents with one string attribute and, optionally, a
+   * nominal class. The words are drawn from a vocabulary of the given size,
+   * with small indices more frequent than large ones.
+   *
+   * @param numDocs the number of documents
+   * @param numWords the size of the vocabulary
+   * @param withClass whether to add a class attribute
+   * @param seed the seed for the random numbers
+   * @return the documents
+   */
+  protected Instances getDocuments(int numDocs, int numWords, 
+                                   boolean withClass, long seed) {
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("text", (FastVector) null));
+    if (withClass) {
+      FastVector values = new FastVector();
+      values.addElement("a");
+      values.addElement("b");
+      atts.addElement(new Attribute("class", values));
+    }
+    Instances data = new Instances("documents", atts, numDocs);
+    if (withClass) {
+      data.setClassIndex(1);
+    }
+
+    Random r = new Random(seed);
+    for (int i = 0; i < numDocs; i++) {
+      int cls = r.nextInt(2);
+      int length = 3 + r.nextInt(10);
+      StringBuffer text = new StringBuffer();
+      for (int j = 0; j < length; j++) {
+        int w = r.nextInt(r.nextInt(numWords) + 1);
+        // let some words depend on the class
+        if (cls == 1 && r.nextInt(4) == 0) {
+          w = numWords - 1 - w;
+        }
+        if (j > 0) {
+          text.append(' ');
+        }
+        text.append(word(w));
+      }
+      double[] vals = new double[data.numAttributes()];
+      vals[0] = data.attribute(0).addStringValue(text.toString());
+      if (withClass) {
+        vals[1] = cls;
+      }
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  public void testParallelCounting() {
+    // more than two chunks of documents per counting thread
+    Instances data = getDocuments(7500, 500, true, 1);
+
+    int[] numSlots = {2, 3};
+    for (int n = 0; n < numSlots.length; n++) {
+      int slots = numSlots[n];
+      try {
+        StringToWordVector serial = new StringToWordVector();
+        serial.setIDFTransform(true);
+        serial.setWordsToKeep(50);
+        serial.setOutputWordCounts(true);
+        StringToWordVector parallel = new StringToWordVector();
+        parallel.setOptions(serial.getOptions());
+        parallel.setNumExecutionSlots(slots);
+
+        Instances expected = Filter.useFilter(new Instances(data), serial);
+        Instances actual = Filter.useFilter(new Instances(data), parallel);
+        assertTrue("Dictionary too small: " + expected.numAttributes(),
+                   expected.numAttributes() > 50);
+        // Threads must find the same dictionary and statistics
+        assertEquals("Different result with " + slots + " slots", 
+                     expected.toString(), actual.toString());
+      } catch (Exception e) {
+        e.printStackTrace();
+        fail("Problem filtering with " + slots + " slots: " + e);
+      }
+    }
+  }
+
+  public void testHashing() {
+    ((StringToWordVector)m_Filter).setHashSize(16);
+    Instances result = useFilter();
+    // Number of instances shouldn't change
+    assertEquals(m_Instances.numInstances(),  result.numInstances());
+
+    // The 2 string attributes are replaced by the hashed attributes
+    assertEquals(m_Instances.numAttributes() - 2 + 16, result.numAttributes());
+  }
+
+  public void testSignedHashing() {
+    int numWords = 40;
+    int hashSize = 16;
+    Instances data = getDocuments(300, numWords, false, 2);
+    Instances words = new Instances(data, numWords);
+    for (int i = 0; i < numWords; i++) {
+      double[] vals = new double[1];
+      vals[0] = words.attribute(0).addStringValue(word(i));
+      words.add(new Instance(1.0, vals));
+    }
+
+    try {
+      StringToWordVector filter = new StringToWordVector();
+      filter.setHashSize(hashSize);
+      // Nothing is buffered: the output format and each converted instance
+      // are available right away
+      assertTrue("Output format not available immediately",
+                 filter.setInputFormat(words));
+      assertEquals(hashSize, filter.getOutputFormat().numAttributes());
+
+      // Each word adds +1 or -1 to a single attribute
+      double[][] vectors = new double[numWords][];
+      int positive = 0;
+      int negative = 0;
+      for (int i = 0; i < numWords; i++) {
+        assertTrue("Word " + i + " was buffered", 
+                   filter.input(words.instance(i)));
+        vectors[i] = filter.output().toDoubleArray();
+        int nonZero = 0;
+        for (int j = 0; j < hashSize; j++) {
+          if (vectors[i][j] == 1) {
+            positive++;
+          } else if (vectors[i][j] == -1) {
+            negative++;
+          } else {
+            assertEquals("Word " + i + ", attribute " + j, 0, vectors[i][j], 0);
+            continue;
+          }
+          nonZero++;
+        }
+        assertEquals("Word " + i + " not hashed into one attribute", 
+                     1, nonZero);
+      }
+      assertTrue("No word has a positive sign", positive > 0);
+      assertTrue("No word has a negative sign", negative > 0);
+
+      // A document is the sum of the vectors of its distinct words
+      for (int i = 0; i < data.numInstances(); i++) {
+        Instance doc = data.instance(i);
+        double[] expected = new double[hashSize];
+        HashSet seen = new HashSet();
+        String[] tokens = doc.stringValue(0).split(" ");
+        for (int t = 0; t < tokens.length; t++) {
+          if (seen.add(tokens[t])) {
+            double[] vector = vectors[Integer.parseInt(tokens[t].substring(1))];
+            for (int j = 0; j < hashSize; j++) {
+              expected[j] += vector[j];
+            }
+          }
+        }
+        assertTrue("Document " + i + " was buffered", filter.input(doc));
+        double[] actual = filter.output().toDoubleArray();
+        for (int j = 0; j < hashSize; j++) {
+          assertEquals("Document " + i + ", attribute " + j, 
+                       expected[j], actual[j], 0);
+        }
+      }
+      filter.batchFinished();
+      assertEquals(0, filter.numPendingOutput());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Problem hashing words: " + e);
+    }
+  }
+
 
   public static Test suite() {
     return new TestSuite(StringToWordVectorTest.class);
@@ -0,0 +1,453 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    EclatItemSets.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.associations;
+
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the large item sets of a set of instances with vertical counting,
+ * as in the Eclat algorithm, instead of checking every candidate item set
+ * against every instance. Every item (attribute value) keeps the list of
+ * the transactions that contain it, either as a bitmap or, if the item is
+ * rare, as a sorted array of transaction numbers, whichever is smaller. The
+ * support of an item set is the size of the intersection of the lists of
+ * its items, and the item sets that extend a common prefix (a prefix class)
+ * are found by intersecting the list of the prefix with the lists of the
+ * extensions, depth first. The prefix classes of the single items are
+ * independent, so they are mined by several threads.<p/>
+ *
+ * The item sets are returned in the same form and order as Apriori's
+ * level-wise search generates them, so that rules generated from them are
+ * identical. For more information on Eclat see:<p/>
+ *
+ * M. J. Zaki: Scalable algorithms for association mining. IEEE Transactions
+ * on Knowledge and Data Engineering. 12(3):372-390, 2000.
+ *
+ * @version $Revision$
+ */
+public class EclatItemSets
+  implements RevisionHandler {
+
+  /**
+   * The list of the transactions that contain an item set.
+   */
+  protected static class TidList {
+
+    /** the bitmap of the transactions, null if the list is sparse */
+    protected long[] m_Bits;
+
+    /** the sorted transaction numbers, null if the list is a bitmap */
+    protected int[] m_Tids;
+
+    /** the number of transactions */
+    protected int m_Count;
+
+    /**
+     * Creates a list from sorted transaction numbers, stored as a bitmap if
+     * that takes less memory.
+     *
+     * @param tids the transaction numbers (the array is kept if sparse)
+     * @param count the number of transactions in the array
+     * @param numTransactions the total number of transactions
+     */
+    protected TidList(int[] tids, int count, int numTransactions) {
+      m_Count = count;
+      if (isDense(count, numTransactions)) {
+        m_Bits = new long[(numTransactions + 63) >>> 6];
+        for (int i = 0; i < count; i++)
+          m_Bits[tids[i] >>> 6] |= 1L << tids[i];
+      } else if (tids.length == count) {
+        m_Tids = tids;
+      } else {
+        m_Tids = new int[count];
+        System.arraycopy(tids, 0, m_Tids, 0, count);
+      }
+    }
+
+    /**
+     * Creates a list from a bitmap, stored sparse if that takes less memory.
+     *
+     * @param bits the bitmap (kept if dense)
+     * @param count the number of bits set
+     * @param numTransactions the total number of transactions
+     */
+    protected TidList(long[] bits, int count, int numTransactions) {
+      m_Count = count;
+      if (isDense(count, numTransactions)) {
+        m_Bits = bits;
+      } else {
+        m_Tids = new int[count];
+        int n = 0;
+        for (int w = 0; w < bits.length; w++) {
+          long word = bits[w];
+          while (word != 0) {
+            m_Tids[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns whether a list of the given size is stored as a bitmap, i.e.,
+     * whether its transaction numbers would take more memory than the bitmap.
+     *
+     * @param count the number of transactions in the list
+     * @param numTransactions the total number of transactions
+     * @return true if a bitmap is smaller
+     */
+    protected static boolean isDense(int count, int numTransactions) {
+      return (long) count * 32 > numTransactions;
+    }
+
+    /**
+     * Intersects this list with another one. Gives up as soon as the
+     * intersection cannot reach the minimum support any more.
+     *
+     * @param other the other list
+     * @param minSupport the minimum support
+     * @param numTransactions the total number of transactions
+     * @return the intersection, null if it does not have minimum support
+     */
+    protected TidList intersect(TidList other, int minSupport,
+	int numTransactions) {
+
+      if (m_Count < minSupport || other.m_Count < minSupport)
+	return null;
+
+      if (m_Bits != null && other.m_Bits != null) {
+	long[] bits = new long[m_Bits.length];
+	int count = 0;
+	for (int w = 0; w < bits.length; w++) {
+	  bits[w] = m_Bits[w] & other.m_Bits[w];
+	  count += Long.bitCount(bits[w]);
+	}
+	if (count < minSupport)
+	  return null;
+	return new TidList(bits, count, numTransactions);
+      }
+
+      if (m_Bits != null || other.m_Bits != null) {
+	long[] bits = (m_Bits != null) ? m_Bits : other.m_Bits;
+	int[] tids = (m_Bits != null) ? other.m_Tids : m_Tids;
+	int[] result = new int[tids.length];
+	int count = 0;
+	for (int i = 0; i < tids.length; i++) {
+	  if ((bits[tids[i] >>> 6] & (1L << tids[i])) != 0)
+	    result[count++] = tids[i];
+	  else if (count + tids.length - i - 1 < minSupport)
+	    return null;
+	}
+	if (count < minSupport)
+	  return null;
+	return new TidList(result, count, numTransactions);
+      }
+
+      int[] a = m_Tids;
+      int[] b = other.m_Tids;
+      int[] result = new int[Math.min(a.length, b.length)];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < a.length && j < b.length) {
+	if (count + Math.min(a.length - i, b.length - j) < minSupport)
+	  return null;
+	if (a[i] < b[j]) {
+	  i++;
+	} else if (a[i] > b[j]) {
+	  j++;
+	} else {
+	  result[count++] = a[i];
+	  i++;
+	  j++;
+	}
+      }
+      if (count < minSupport)
+	return null;
+      return new TidList(result, count, numTransactions);
+    }
+  }
+
+  /**
+   * The item sets found in one prefix class, in depth-first order.
+   */
+  protected static class ClassResult {
+
+    /** the items of the item sets */
+    protected FastVector m_ItemSets = new FastVector();
+
+    /** the supports of the item sets */
+    protected FastVector m_Supports = new FastVector();
+
+    /**
+     * Adds an item set.
+     *
+     * @param prefix the items of the item set
+     * @param length the number of items
+     * @param support the support of the item set
+     */
+    protected void add(int[] prefix, int length, int support) {
+      int[] items = new int[length];
+      System.arraycopy(prefix, 0, items, 0, length);
+      m_ItemSets.addElement(items);
+      m_Supports.addElement(new Integer(support));
+    }
+  }
+
+  /** the instances */
+  protected Instances m_Instances;
+
+  /** the minimum support */
+  protected int m_MinSupport;
+
+  /** the attribute of each item */
+  protected int[] m_Attribute;
+
+  /** the value of each item */
+  protected int[] m_Value;
+
+  /** the transaction lists of the items, null if not frequent */
+  protected TidList[] m_TidLists;
+
+  /**
+   * Initializes the transaction lists of the single items.
+   *
+   * @param instances the instances (transactions)
+   * @param minSupport the minimum support
+   * @throws Exception if an attribute is numeric
+   */
+  public EclatItemSets(Instances instances, int minSupport) throws Exception {
+    int numItems = 0;
+    int[] offset = new int[instances.numAttributes()];
+
+    m_Instances = instances;
+    m_MinSupport = minSupport;
+
+    for (int i = 0; i < instances.numAttributes(); i++) {
+      if (instances.attribute(i).isNumeric())
+	throw new Exception("Can't handle numeric attributes!");
+      offset[i] = numItems;
+      numItems += instances.attribute(i).numValues();
+    }
+    m_Attribute = new int[numItems];
+    m_Value = new int[numItems];
+    for (int i = 0; i < instances.numAttributes(); i++) {
+      for (int j = 0; j < instances.attribute(i).numValues(); j++) {
+	m_Attribute[offset[i] + j] = i;
+	m_Value[offset[i] + j] = j;
+      }
+    }
+
+    // count the items, then collect their transactions
+    int numTransactions = instances.numInstances();
+    int[] counts = new int[numItems];
+    for (int n = 0; n < numTransactions; n++) {
+      Instance instance = instances.instance(n);
+      for (int i = 0; i < instances.numAttributes(); i++) {
+	if (!instance.isMissing(i))
+	  counts[offset[i] + (int) instance.value(i)]++;
+      }
+    }
+    int[][] tids = new int[numItems][];
+    for (int k = 0; k < numItems; k++) {
+      if (counts[k] >= minSupport)
+	tids[k] = new int[counts[k]];
+      counts[k] = 0;
+    }
+    for (int n = 0; n < numTransactions; n++) {
+      Instance instance = instances.instance(n);
+      for (int i = 0; i < instances.numAttributes(); i++) {
+	if (!instance.isMissing(i)) {
+	  int k = offset[i] + (int) instance.value(i);
+	  if (tids[k] != null)
+	    tids[k][counts[k]++] = n;
+	}
+      }
+    }
+    m_TidLists = new TidList[numItems];
+    for (int k = 0; k < numItems; k++) {
+      if (tids[k] != null)
+	m_TidLists[k] = new TidList(tids[k], counts[k], numTransactions);
+    }
+  }
+
+  /**
+   * Mines the prefix class of an item: the item itself and all large item
+   * sets that start with it.
+   *
+   * @param item the item
+   * @return the item sets, in depth-first order
+   */
+  protected ClassResult mineClass(int item) {
+    ClassResult result = new ClassResult();
+    int[] prefix = new int[m_Instances.numAttributes()];
+    prefix[0] = item;
+    result.add(prefix, 1, m_TidLists[item].m_Count);
+
+    int numItems = m_TidLists.length;
+    int[] extensions = new int[numItems];
+    TidList[] lists = new TidList[numItems];
+    int numExtensions = 0;
+    for (int k = item + 1; k < numItems; k++) {
+      if (m_TidLists[k] == null || m_Attribute[k] == m_Attribute[item])
+	continue;
+      TidList list = m_TidLists[item].intersect(m_TidLists[k], m_MinSupport,
+	  m_Instances.numInstances());
+      if (list != null) {
+	extensions[numExtensions] = k;
+	lists[numExtensions++] = list;
+      }
+    }
+    mineClass(prefix, 1, extensions, lists, numExtensions, result);
+
+    return result;
+  }
+
+  /**
+   * Mines the large item sets that extend a prefix depth first.
+   *
+   * @param prefix the items of the prefix, with room for the extensions
+   * @param length the number of items in the prefix
+   * @param extensions the items that extend the prefix to a large item set,
+   * in ascending order
+   * @param lists the transaction lists of the extended prefixes
+   * @param numExtensions the number of extensions
+   * @param result collects the item sets found
+   */
+  protected void mineClass(int[] prefix, int length, int[] extensions,
+      TidList[] lists, int numExtensions, ClassResult result) {
+
+    for (int e = 0; e < numExtensions; e++) {
+      prefix[length] = extensions[e];
+      result.add(prefix, length + 1, lists[e].m_Count);
+
+      int[] newExtensions = new int[numExtensions - e - 1];
+      TidList[] newLists = new TidList[numExtensions - e - 1];
+      int numNew = 0;
+      for (int f = e + 1; f < numExtensions; f++) {
+	if (m_Attribute[extensions[f]] == m_Attribute[extensions[e]])
+	  continue;
+	TidList list = lists[e].intersect(lists[f], m_MinSupport,
+	    m_Instances.numInstances());
+	if (list != null) {
+	  newExtensions[numNew] = extensions[f];
+	  newLists[numNew++] = list;
+	}
+      }
+      if (numNew > 0)
+	mineClass(prefix, length + 1, newExtensions, newLists, numNew, result);
+    }
+  }
+
+  /**
+   * Finds all large item sets, mining the prefix classes of the items with
+   * the given number of threads.
+   *
+   * @param numSlots the number of threads, 0 for one per processor
+   * @return the sets of large item sets of each size (starting with the
+   * single items) as FastVectors of AprioriItemSets, in the order Apriori
+   * generates them
+   * @throws Exception if mining is interrupted
+   */
+  public FastVector findLargeItemSets(int numSlots) throws Exception {
+    FastVector items = new FastVector();
+    for (int k = 0; k < m_TidLists.length; k++) {
+      if (m_TidLists[k] != null)
+	items.addElement(new Integer(k));
+    }
+
+    ClassResult[] results = new ClassResult[items.size()];
+    if (numSlots == 0)
+      numSlots = Runtime.getRuntime().availableProcessors();
+    if (numSlots <= 1 || items.size() <= 1) {
+      for (int i = 0; i < items.size(); i++)
+	results[i] = mineClass(((Integer) items.elementAt(i)).intValue());
+    } else {
+      ExecutorService pool = Executors.newFixedThreadPool(numSlots);
+      try {
+	FastVector futures = new FastVector(items.size());
+	for (int i = 0; i < items.size(); i++) {
+	  final int item = ((Integer) items.elementAt(i)).intValue();
+	  futures.addElement(pool.submit(new Callable() {
+	    public Object call() throws Exception {
+	      return mineClass(item);
+	    }
+	  }));
+	}
+	for (int i = 0; i < results.length; i++) {
+	  try {
+	    results[i] = (ClassResult) ((Future) futures.elementAt(i)).get();
+	  } catch (ExecutionException e) {
+	    if (e.getCause() instanceof Exception)
+	      throw (Exception) e.getCause();
+	    throw e;
+	  }
+	}
+      } finally {
+	pool.shutdownNow();
+      }
+    }
+
+    // depth-first order restricted to the item sets of one size is
+    // lexicographic, which is the order of Apriori's merge step
+    FastVector levels = new FastVector();
+    for (int i = 0; i < results.length; i++) {
+      for (int j = 0; j < results[i].m_ItemSets.size(); j++) {
+	int[] itemSet = (int[]) results[i].m_ItemSets.elementAt(j);
+	while (levels.size() < itemSet.length)
+	  levels.addElement(new FastVector());
+	AprioriItemSet current = new AprioriItemSet(m_Instances.numInstances());
+	current.m_items = new int[m_Instances.numAttributes()];
+	for (int k = 0; k < current.m_items.length; k++)
+	  current.m_items[k] = -1;
+	for (int k = 0; k < itemSet.length; k++)
+	  current.m_items[m_Attribute[itemSet[k]]] = m_Value[itemSet[k]];
+	current.m_counter = ((Integer) results[i].m_Supports.elementAt(j))
+	  .intValue();
+	((FastVector) levels.elementAt(itemSet.length - 1))
+	  .addElement(current);
+      }
+    }
+
+    return levels;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
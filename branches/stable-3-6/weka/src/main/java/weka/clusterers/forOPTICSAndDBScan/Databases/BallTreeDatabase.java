@@ -0,0 +1,68 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BallTreeDatabase.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.neighboursearch.BallTree;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * <p>
+ * Database that finds the candidates of an epsilon range query with a
+ * BallTree. Select it as the database of DBScan or OPTICS for large
+ * datasets.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class BallTreeDatabase
+    extends NearestNeighbourSearchDatabase {
+
+    /** for serialization */
+    private static final long serialVersionUID = 2218307716298712630L;
+
+    /**
+     * Constructs a new database and holds the original instances
+     * @param instances
+     */
+    public BallTreeDatabase(Instances instances) {
+        super(instances);
+    }
+
+    /**
+     * Returns a new, empty BallTree
+     * @return the search
+     */
+    protected NearestNeighbourSearch newSearch() {
+        return new BallTree();
+    }
+
+    /**
+     * Returns the revision string.
+     *
+     * @return		the revision
+     */
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+}
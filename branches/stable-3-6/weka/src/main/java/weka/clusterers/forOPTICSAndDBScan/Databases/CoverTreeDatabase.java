@@ -0,0 +1,69 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    CoverTreeDatabase.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.neighboursearch.CoverTree;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * <p>
+ * Database that finds the candidates of an epsilon range query with a
+ * CoverTree. CoverTrees cope well with data of low intrinsic dimensionality
+ * embedded in many attributes. Select it as the database of DBScan or OPTICS
+ * for large datasets.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class CoverTreeDatabase
+    extends NearestNeighbourSearchDatabase {
+
+    /** for serialization */
+    private static final long serialVersionUID = 8841524063318296264L;
+
+    /**
+     * Constructs a new database and holds the original instances
+     * @param instances
+     */
+    public CoverTreeDatabase(Instances instances) {
+        super(instances);
+    }
+
+    /**
+     * Returns a new, empty CoverTree
+     * @return the search
+     */
+    protected NearestNeighbourSearch newSearch() {
+        return new CoverTree();
+    }
+
+    /**
+     * Returns the revision string.
+     *
+     * @return		the revision
+     */
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    GridDatabase.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.DataObject;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Database that finds the candidates of an epsilon range query with a
+ * uniform grid over (at most MAX_DIMENSIONS) numeric attributes. The cells
+ * are as wide as epsilon in normalized units, so all dataObjects within
+ * epsilon of a query-object lie in its cell or in one of the neighbouring
+ * cells. The grid is meant for data with few numeric attributes; with more,
+ * only the first ones are gridded and the candidates are filtered by the
+ * exact distance as usual.
+ * </p>
+ * <p>
+ * The grid is only read by the queries, so parallel queries share it.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public class GridDatabase
+    extends IndexedDatabase {
+
+    /** for serialization */
+    private static final long serialVersionUID = 3317942284096150264L;
+
+    /**
+     * The maximum number of attributes the grid is built on
+     */
+    public static final int MAX_DIMENSIONS = 3;
+
+    // *****************************************************************************************************************
+    // inner classes
+    // *****************************************************************************************************************
+
+    /**
+     * The grid. The indexed dataObjects are sorted by the key of their cell,
+     * the dataObjects of a cell are found by binary search.
+     */
+    protected class GridIndex
+        implements RangeIndex {
+
+        /** the gridded attributes */
+        protected int[] attributes;
+
+        /** the number of cells along each gridded attribute */
+        protected long[] numCells;
+
+        /** the key distance of neighbouring cells along each gridded attribute */
+        protected long[] strides;
+
+        /** the width of the cells */
+        protected double width;
+
+        /** the sorted cell keys of the indexed dataObjects */
+        protected long[] cellKeys;
+
+        /** the positions of the indexed dataObjects, in the order of cellKeys */
+        protected int[] positions;
+
+        /**
+         * Builds the grid over the dataObjects at indexedPositions.
+         * @param radius the radius of the queries the grid is used for
+         */
+        public GridIndex(double radius) {
+            int n = indexedPositions.length;
+            width = radius;
+
+            // grid the first numeric attributes that vary, as long as the cell
+            // keys (times the number of dataObjects, for sorting) fit a long
+            Instances instances = getInstances();
+            int[] candidates = new int[MAX_DIMENSIONS];
+            long[] cells = new long[MAX_DIMENSIONS];
+            long total = 1;
+            int numAttributes = 0;
+            for (int i = 0; (i < instances.numAttributes()) && (numAttributes < MAX_DIMENSIONS); i++) {
+                if ((instances.attribute(i).type() != Attribute.NUMERIC)
+                        || (norm(getAttributeMaxValues()[i], i) == 0)) {
+                    continue;
+                }
+                long c = (long) Math.min(Math.floor(1 / width) + 1, Integer.MAX_VALUE);
+                if (total > Long.MAX_VALUE / c / (n + 1)) {
+                    break;
+                }
+                candidates[numAttributes] = i;
+                cells[numAttributes] = c;
+                total *= c;
+                numAttributes++;
+            }
+            attributes = new int[numAttributes];
+            numCells = new long[numAttributes];
+            strides = new long[numAttributes];
+            long stride = 1;
+            for (int j = 0; j < numAttributes; j++) {
+                attributes[j] = candidates[j];
+                numCells[j] = cells[j];
+                strides[j] = stride;
+                stride *= cells[j];
+            }
+
+            // sort by cell key, breaking ties by index
+            long[] sorted = new long[n];
+            for (int i = 0; i < n; i++) {
+                Instance instance = dataObjects[indexedPositions[i]].getInstance();
+                long key = 0;
+                for (int j = 0; j < numAttributes; j++) {
+                    key += cell(instance.value(attributes[j]), j) * strides[j];
+                }
+                sorted[i] = key * n + i;
+            }
+            Arrays.sort(sorted);
+            cellKeys = new long[n];
+            positions = new int[n];
+            for (int i = 0; i < n; i++) {
+                cellKeys[i] = sorted[i] / n;
+                positions[i] = indexedPositions[(int) (sorted[i] % n)];
+            }
+        }
+
+        /**
+         * Returns the cell of a value along a gridded attribute
+         * @param value the value
+         * @param j the index of the gridded attribute
+         * @return the cell
+         */
+        protected long cell(double value, int j) {
+            long c = (long) Math.floor(norm(value, attributes[j]) / width);
+            return Math.max(0, Math.min(numCells[j] - 1, c));
+        }
+
+        /**
+         * Returns the positions of all indexed dataObjects whose distance to
+         * the query-object may be at most radius, possibly more.
+         * @param query the query-object, without missing values
+         * @param radius the radius, at most the width of the cells
+         * @return the positions of the candidates, in any order
+         */
+        public int[] candidates(DataObject query, double radius) {
+            long[] center = new long[attributes.length];
+            for (int j = 0; j < attributes.length; j++) {
+                center[j] = cell(query.getInstance().value(attributes[j]), j);
+            }
+
+            // first count, then collect the dataObjects of the neighbouring cells
+            int count = visit(center, 0, 0, null, 0);
+            int[] result = new int[count];
+            visit(center, 0, 0, result, 0);
+            return result;
+        }
+
+        /**
+         * Visits the cells around a center cell, recursing over the gridded
+         * attributes.
+         * @param center the center cell
+         * @param j the gridded attribute to vary
+         * @param key the key of the cell so far
+         * @param result the array to store the positions in, null to only count
+         * @param offset the number of positions stored so far
+         * @return the number of positions stored so far, including this cell's
+         */
+        protected int visit(long[] center, int j, long key, int[] result, int offset) {
+            if (j == attributes.length) {
+                int i = lowerBound(key);
+                while ((i < cellKeys.length) && (cellKeys[i] == key)) {
+                    if (result != null) {
+                        result[offset] = positions[i];
+                    }
+                    offset++;
+                    i++;
+                }
+                return offset;
+            }
+
+            long first = Math.max(0, center[j] - 1);
+            long last = Math.min(numCells[j] - 1, center[j] + 1);
+            for (long c = first; c <= last; c++) {
+                offset = visit(center, j + 1, key + c * strides[j], result, offset);
+            }
+            return offset;
+        }
+
+        /**
+         * Returns the index of the first cell key that is not smaller than key
+         * @param key the key to look for
+         * @return the index
+         */
+        protected int lowerBound(long key) {
+            int low = 0;
+            int high = cellKeys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cellKeys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // *****************************************************************************************************************
+    // constructors
+    // *****************************************************************************************************************
+
+    /**
+     * Constructs a new grid database and holds the original instances
+     * @param instances
+     */
+    public GridDatabase(Instances instances) {
+        super(instances);
+    }
+
+    // *****************************************************************************************************************
+    // methods
+    // *****************************************************************************************************************
+
+    /**
+     * Builds a new grid over the dataObjects at indexedPositions.
+     * @param radius the radius of the queries the grid is used for
+     * @return the grid
+     */
+    protected RangeIndex newIndex(double radius) {
+        return new GridIndex(radius);
+    }
+
+    /**
+     * Returns whether an index can be searched by several threads at once.
+     * @return true, the grid is only read by the queries
+     */
+    protected boolean isIndexThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Returns the revision string.
+     *
+     * @return		the revision
+     */
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+}
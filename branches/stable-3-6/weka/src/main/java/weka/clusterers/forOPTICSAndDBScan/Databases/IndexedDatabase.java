@@ -0,0 +1,468 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    IndexedDatabase.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.DataObject;
+import weka.clusterers.forOPTICSAndDBScan.Utils.EpsilonRange_ListElement;
+import weka.clusterers.forOPTICSAndDBScan.Utils.PriorityQueue;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Base class for databases that answer epsilon range queries with the help of
+ * a spatial index instead of scanning all dataObjects. The index only needs
+ * to return a superset of the dataObjects within epsilon (the candidates);
+ * the exact distances of the dataObjects themselves decide which candidates
+ * are returned, so the results are the same as those of the
+ * SequentialDatabase, in the same order.
+ * </p>
+ * <p>
+ * The index works on a copy of the data in which numeric values are
+ * normalized with the database's minimum and maximum values, the same way the
+ * dataObjects normalize them. It is built on the first query after the
+ * dataObjects have been inserted. DataObjects with missing values are not
+ * indexed, they are always candidates; queries for dataObjects with missing
+ * values scan all dataObjects.
+ * </p>
+ * <p>
+ * Independent range queries, e.g., for all the seeds of a cluster, can be
+ * run in parallel with epsilonRangeQueries.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public abstract class IndexedDatabase
+    extends SequentialDatabase {
+
+    /** for serialization */
+    private static final long serialVersionUID = -2716482374508745021L;
+
+    /**
+     * Relative slack added to epsilon when asking the index for candidates,
+     * so that rounding differences never lose a dataObject
+     */
+    protected static final double SLACK = 1e-9;
+
+    /**
+     * Holds the dataObjects in the order of their keys, the position of a
+     * dataObject in this array identifies it in the index
+     */
+    protected transient DataObject[] dataObjects;
+
+    /**
+     * Holds the positions of the dataObjects that are indexed
+     */
+    protected transient int[] indexedPositions;
+
+    /**
+     * Holds the positions of the dataObjects that are not indexed (those with
+     * missing values)
+     */
+    protected transient int[] unindexedPositions;
+
+    /**
+     * Holds the index used by the single-threaded queries
+     */
+    protected transient RangeIndex index;
+
+    /**
+     * Holds the radius the index has been built for
+     */
+    protected transient double indexRadius = Double.NaN;
+
+    /**
+     * The number of threads used by epsilonRangeQueries, 0 for one per
+     * processor
+     */
+    protected int numExecutionSlots = 0;
+
+    // *****************************************************************************************************************
+    // inner classes
+    // *****************************************************************************************************************
+
+    /**
+     * A spatial index over the indexed dataObjects.
+     */
+    protected interface RangeIndex {
+
+        /**
+         * Returns the positions of all indexed dataObjects whose distance to
+         * the query-object may be at most radius, possibly more.
+         * @param query the query-object, without missing values
+         * @param radius the radius
+         * @return the positions of the candidates, in any order
+         * @throws Exception if the index cannot be searched
+         */
+        int[] candidates(DataObject query, double radius) throws Exception;
+    }
+
+    // *****************************************************************************************************************
+    // constructors
+    // *****************************************************************************************************************
+
+    /**
+     * Constructs a new indexed database and holds the original instances
+     * @param instances
+     */
+    public IndexedDatabase(Instances instances) {
+        super(instances);
+    }
+
+    // *****************************************************************************************************************
+    // methods
+    // *****************************************************************************************************************
+
+    /**
+     * Builds a new index over the dataObjects at indexedPositions.
+     * @param radius the radius of the queries the index is used for
+     * @return the index
+     * @throws Exception if the index cannot be built
+     */
+    protected abstract RangeIndex newIndex(double radius) throws Exception;
+
+    /**
+     * Returns whether an index can be searched by several threads at once.
+     * Otherwise epsilonRangeQueries builds one index per thread.
+     * @return true if the indexes are thread-safe
+     */
+    protected abstract boolean isIndexThreadSafe();
+
+    /**
+     * Inserts a new dataObject into the database
+     * @param dataObject
+     */
+    public void insert(DataObject dataObject) {
+        super.insert(dataObject);
+        dataObjects = null;
+        index = null;
+    }
+
+    /**
+     * Sets the minimum and maximum values for each attribute in different arrays
+     * by walking through every DataObject of the database
+     */
+    public void setMinMaxValues() {
+        super.setMinMaxValues();
+        index = null;
+    }
+
+    /**
+     * Sets the number of threads used by epsilonRangeQueries
+     * @param numSlots the number of threads, 0 for one per processor
+     */
+    public void setNumExecutionSlots(int numSlots) {
+        numExecutionSlots = numSlots;
+    }
+
+    /**
+     * Returns the number of threads used by epsilonRangeQueries
+     * @return the number of threads, 0 for one per processor
+     */
+    public int getNumExecutionSlots() {
+        return numExecutionSlots;
+    }
+
+    /**
+     * Returns the normalized value of an attribute, the same way the
+     * dataObjects normalize it
+     * @param x the value
+     * @param i the index of the attribute
+     * @return the normalized value
+     */
+    protected double norm(double x, int i) {
+        double min = getAttributeMinValues()[i];
+        double max = getAttributeMaxValues()[i];
+        if (Double.isNaN(min) || Utils.eq(max, min)) {
+            return 0;
+        } else {
+            return (x - min) / (max - min);
+        }
+    }
+
+    /**
+     * Returns a copy of an instance with the numeric values normalized and
+     * the values of attributes that do not contribute to the distance of the
+     * dataObjects set to 0.
+     * @param instance the instance
+     * @return the normalized copy
+     */
+    protected Instance normalize(Instance instance) {
+        Instance result = (Instance) instance.copy();
+        for (int i = 0; i < instance.numAttributes(); i++) {
+            Attribute attribute = instance.attribute(i);
+            if (attribute.type() == Attribute.NUMERIC) {
+                result.setValue(i, norm(instance.value(i), i));
+            } else if (attribute.type() != Attribute.NOMINAL) {
+                result.setValue(i, 0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collects the dataObjects in key order and splits them into those that
+     * can be indexed and those that cannot.
+     */
+    protected void prepare() {
+        if (getAttributeMinValues() == null) {
+            super.setMinMaxValues();
+        }
+
+        dataObjects = new DataObject[size()];
+        int[] indexed = new int[size()];
+        int[] unindexed = new int[size()];
+        int numIndexed = 0;
+        int numUnindexed = 0;
+        Iterator iterator = dataObjectIterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            dataObjects[i] = (DataObject) iterator.next();
+            if (dataObjects[i].getInstance().hasMissingValue()) {
+                unindexed[numUnindexed++] = i;
+            } else {
+                indexed[numIndexed++] = i;
+            }
+        }
+        indexedPositions = new int[numIndexed];
+        System.arraycopy(indexed, 0, indexedPositions, 0, numIndexed);
+        unindexedPositions = new int[numUnindexed];
+        System.arraycopy(unindexed, 0, unindexedPositions, 0, numUnindexed);
+    }
+
+    /**
+     * Returns the radius to ask the index for, given epsilon
+     * @param epsilon the range of the query
+     * @return the radius
+     */
+    protected double radius(double epsilon) {
+        return epsilon * (1 + SLACK) + SLACK;
+    }
+
+    /**
+     * Returns the index for the single-threaded queries, building it if
+     * necessary
+     * @param epsilon the range of the query
+     * @return the index
+     */
+    protected RangeIndex getIndex(double epsilon) {
+        double radius = radius(epsilon);
+        if (dataObjects == null) {
+            prepare();
+            index = null;
+        }
+        if ((index == null) || (radius != indexRadius)) {
+            try {
+                index = newIndex(radius);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            indexRadius = radius;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the positions of the candidates for a query, in key order
+     * @param rangeIndex the index to use
+     * @param epsilon the range of the query
+     * @param queryDataObject the query-object
+     * @return the positions of the candidates
+     */
+    protected int[] candidates(RangeIndex rangeIndex, double epsilon, DataObject queryDataObject) {
+        if (queryDataObject.getInstance().hasMissingValue()) {
+            int[] all = new int[dataObjects.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] indexed;
+        try {
+            indexed = rangeIndex.candidates(queryDataObject, radius(epsilon));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        int[] result = new int[indexed.length + unindexedPositions.length];
+        System.arraycopy(indexed, 0, result, 0, indexed.length);
+        System.arraycopy(unindexedPositions, 0, result, indexed.length, unindexedPositions.length);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Performs an epsilon range query for this dataObject
+     * @param epsilon Specifies the range for the query
+     * @param queryDataObject The dataObject that is used as query-object for epsilon range query
+     * @return List with all the DataObjects that are within the specified range
+     */
+    public List epsilonRangeQuery(double epsilon, DataObject queryDataObject) {
+        return epsilonRangeQuery(getIndex(epsilon), epsilon, queryDataObject);
+    }
+
+    /**
+     * Performs an epsilon range query for this dataObject with the given index
+     * @param rangeIndex the index to use
+     * @param epsilon Specifies the range for the query
+     * @param queryDataObject The dataObject that is used as query-object for epsilon range query
+     * @return List with all the DataObjects that are within the specified range
+     */
+    protected List epsilonRangeQuery(RangeIndex rangeIndex, double epsilon, DataObject queryDataObject) {
+        ArrayList epsilonRange_List = new ArrayList();
+        int[] candidates = candidates(rangeIndex, epsilon, queryDataObject);
+        for (int i = 0; i < candidates.length; i++) {
+            DataObject dataObject = dataObjects[candidates[i]];
+            double distance = queryDataObject.distance(dataObject);
+            if (distance < epsilon) {
+                epsilonRange_List.add(dataObject);
+            }
+        }
+
+        return epsilonRange_List;
+    }
+
+    /**
+     * Performs epsilon range queries for several dataObjects in parallel.
+     * The queries must not change the database.
+     * @param epsilon Specifies the range for the queries
+     * @param queryDataObjects The dataObjects that are used as query-objects
+     * @return one List per query-object with all the DataObjects that are within the specified range
+     * @throws Exception if a query fails
+     */
+    public List[] epsilonRangeQueries(final double epsilon, final DataObject[] queryDataObjects)
+        throws Exception {
+
+        final List[] result = new List[queryDataObjects.length];
+        final RangeIndex shared = getIndex(epsilon);
+        int numSlots = (numExecutionSlots == 0)
+            ? Runtime.getRuntime().availableProcessors() : numExecutionSlots;
+        numSlots = Math.min(numSlots, queryDataObjects.length);
+        if (numSlots <= 1) {
+            for (int i = 0; i < queryDataObjects.length; i++) {
+                result[i] = epsilonRangeQuery(shared, epsilon, queryDataObjects[i]);
+            }
+            return result;
+        }
+
+        List parts = new ArrayList();
+        ExecutorService pool = Executors.newFixedThreadPool(numSlots);
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                final int start = (int) ((long) queryDataObjects.length * i / numSlots);
+                final int end = (int) ((long) queryDataObjects.length * (i + 1) / numSlots);
+                parts.add(pool.submit(new Callable() {
+                    public Object call() throws Exception {
+                        RangeIndex rangeIndex = isIndexThreadSafe() ? shared : newIndex(indexRadius);
+                        for (int j = start; j < end; j++) {
+                            result[j] = epsilonRangeQuery(rangeIndex, epsilon, queryDataObjects[j]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                try {
+                    ((Future) parts.get(i)).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Emits the k next-neighbours and performs an epsilon-range-query at the parallel.
+     * The returned list contains two elements:
+     * At index=0 --> list with the k next-neighbours within epsilon;
+     * At index=1 --> list with all dataObjects within epsilon;
+     * Neighbours beyond epsilon are not looked for, as they never give a
+     * defined coreDistance.
+     * @param k number of next neighbours
+     * @param epsilon Specifies the range for the query
+     * @param dataObject the start object
+     * @return list with the k-next neighbours (PriorityQueueElements) and a list
+     *         with candidates from the epsilon-range-query (EpsilonRange_ListElements)
+     */
+    public List k_nextNeighbourQuery(int k, double epsilon, DataObject dataObject) {
+        int[] candidates = candidates(getIndex(epsilon), epsilon, dataObject);
+
+        List return_List = new ArrayList();
+        List nextNeighbours_List = new ArrayList();
+        List epsilonRange_List = new ArrayList();
+
+        PriorityQueue priorityQueue = new PriorityQueue();
+
+        for (int i = 0; i < candidates.length; i++) {
+            DataObject next_dataObject = dataObjects[candidates[i]];
+            double dist = dataObject.distance(next_dataObject);
+            if (dist > epsilon) continue;
+
+            epsilonRange_List.add(new EpsilonRange_ListElement(dist, next_dataObject));
+
+            if (priorityQueue.size() < k) {
+                priorityQueue.add(dist, next_dataObject);
+            } else {
+                if (dist < priorityQueue.getPriority(0)) {
+                    priorityQueue.next(); //removes the highest distance
+                    priorityQueue.add(dist, next_dataObject);
+                }
+            }
+        }
+
+        while (priorityQueue.hasNext()) {
+            nextNeighbours_List.add(0, priorityQueue.next());
+        }
+
+        return_List.add(nextNeighbours_List);
+        return_List.add(epsilonRange_List);
+        return return_List;
+    }
+
+    /**
+     * Returns the revision string.
+     * 
+     * @return		the revision
+     */
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+}
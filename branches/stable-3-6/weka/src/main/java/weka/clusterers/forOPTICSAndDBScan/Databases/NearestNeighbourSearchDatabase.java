@@ -0,0 +1,195 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NearestNeighbourSearchDatabase.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.DataObject;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * <p>
+ * Database that finds the candidates of an epsilon range query with one of
+ * the nearest neighbour search structures of weka.core.neighboursearch. The
+ * structure is built on the normalized data with an unnormalized
+ * EuclideanDistance, which never exceeds the distance of the dataObjects
+ * (Euclidean or Manhattan). As the structures only answer k-nearest-neighbour
+ * queries, a range query asks for more and more neighbours, doubling k, until
+ * the farthest one is beyond epsilon.
+ * </p>
+ * <p>
+ * The searches are not thread-safe, so parallel queries use one structure per
+ * thread.
+ * </p>
+ *
+ * @version $Revision$
+ */
+public abstract class NearestNeighbourSearchDatabase
+    extends IndexedDatabase {
+
+    /** for serialization */
+    private static final long serialVersionUID = 4096183624707531522L;
+
+    /**
+     * The number of neighbours the first search of a range query asks for
+     */
+    protected static final int INITIAL_K = 16;
+
+    // *****************************************************************************************************************
+    // inner classes
+    // *****************************************************************************************************************
+
+    /**
+     * Index around a nearest neighbour search. The weight of each indexed
+     * instance holds the position of its dataObject, as the searches return
+     * copies of the instances.
+     */
+    protected class SearchIndex
+        implements RangeIndex {
+
+        /** the search */
+        protected NearestNeighbourSearch search;
+
+        /** the normalized data the search is built on */
+        protected Instances normalized;
+
+        /** the number of neighbours the last range query needed */
+        protected int lastK = INITIAL_K;
+
+        /**
+         * Builds the search over the dataObjects at indexedPositions.
+         * @throws Exception if the search cannot be built
+         */
+        public SearchIndex() throws Exception {
+            normalized = new Instances(getInstances(), indexedPositions.length);
+            for (int i = 0; i < indexedPositions.length; i++) {
+                Instance instance = normalize(dataObjects[indexedPositions[i]].getInstance());
+                instance.setWeight(indexedPositions[i]);
+                normalized.add(instance);
+            }
+
+            EuclideanDistance distance = new EuclideanDistance();
+            distance.setDontNormalize(true);
+            search = newSearch();
+            search.setDistanceFunction(distance);
+            search.setInstances(normalized);
+        }
+
+        /**
+         * Returns the positions of all indexed dataObjects whose distance to
+         * the query-object may be at most radius, possibly more. The distances
+         * of the search may differ from those of the dataObjects by rounding;
+         * the radius includes the SLACK of IndexedDatabase for that, and the
+         * candidates are checked with the dataObjects' distance afterwards.
+         * @param query the query-object, without missing values
+         * @param radius the radius
+         * @return the positions of the candidates, in any order
+         * @throws Exception if the index cannot be searched
+         */
+        public int[] candidates(DataObject query, double radius) throws Exception {
+            int n = normalized.numInstances();
+            if (n == 0) {
+                return new int[0];
+            }
+
+            Instance target = normalize(query.getInstance());
+            target.setDataset(normalized);
+            int k = Math.min(lastK, n);
+            while (true) {
+                Instances neighbours = search.kNearestNeighbours(target, k);
+                double[] distances = search.getDistances();
+                int count = 0;
+                for (int i = 0; i < distances.length; i++) {
+                    if (distances[i] <= radius) {
+                        count++;
+                    }
+                }
+                // all neighbours found so far are within range, there may be more
+                if ((k < n) && (count == distances.length)) {
+                    k = Math.min(2 * k, n);
+                    continue;
+                }
+
+                int[] result = new int[count];
+                count = 0;
+                for (int i = 0; i < distances.length; i++) {
+                    if (distances[i] <= radius) {
+                        result[count++] = (int) neighbours.instance(i).weight();
+                    }
+                }
+                lastK = Math.max(INITIAL_K, count + 1);
+                return result;
+            }
+        }
+    }
+
+    // *****************************************************************************************************************
+    // constructors
+    // *****************************************************************************************************************
+
+    /**
+     * Constructs a new database and holds the original instances
+     * @param instances
+     */
+    public NearestNeighbourSearchDatabase(Instances instances) {
+        super(instances);
+    }
+
+    // *****************************************************************************************************************
+    // methods
+    // *****************************************************************************************************************
+
+    /**
+     * Returns a new, empty nearest neighbour search structure
+     * @return the search
+     */
+    protected abstract NearestNeighbourSearch newSearch();
+
+    /**
+     * Builds a new index over the dataObjects at indexedPositions.
+     * @param radius the radius of the queries the index is used for
+     * @return the index
+     * @throws Exception if the index cannot be built
+     */
+    protected RangeIndex newIndex(double radius) throws Exception {
+        return new SearchIndex();
+    }
+
+    /**
+     * Returns whether an index can be searched by several threads at once.
+     * @return false, the searches keep state between calls
+     */
+    protected boolean isIndexThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns the revision string.
+     *
+     * @return		the revision
+     */
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+}
@@ -25,15 +25,25 @@ package weka.core.converters;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StreamTokenizer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.Attribute;
 import weka.core.FastVector;
@@ -48,7 +58,11 @@ import weka.core.Utils;
 /**
  * <!-- globalinfo-start --> Reads a source that is in comma separated or tab
  * separated format. Assumes that the first row in the file determines the
- * number of and names of the attributes.
+ * number of and names of the attributes. The attribute types are determined
+ * from the first rows of data or taken from a schema file. Incrementally, the
+ * data is streamed based on this structure. In batch mode, the types are
+ * determined from all the data, unless a schema file or more than one
+ * execution slot is used.
  * <p/>
  * <!-- globalinfo-end -->
  * 
@@ -97,6 +111,28 @@ import weka.core.Utils;
  *  Specify as a comma separated list (e.g. ",' (default: '"')
  * </pre>
  * 
+ * <pre>
+ * -B &lt;num&gt;
+ *  The number of rows to read for determining the attribute
+ *  types, 0 or less to read all rows.
+ *  (default: 0)
+ * </pre>
+ * 
+ * <pre>
+ * -schema &lt;file&gt;
+ *  An ARFF file whose header is used as structure instead of
+ *  determining the attribute types from the data.
+ *  (default: none)
+ * </pre>
+ * 
+ * <pre>
+ * -num-slots &lt;num&gt;
+ *  The number of threads to use for parsing the fields when
+ *  reading in batch mode. With more than one, or with a schema,
+ *  the batch data is streamed like the incremental data.
+ *  (default: 1)
+ * </pre>
+ * 
  * <!-- options-end -->
  * 
  * @author Mark Hall (mhall@cs.waikato.ac.nz)
@@ -104,7 +140,7 @@ import weka.core.Utils;
  * @see Loader
  */
 public class CSVLoader extends AbstractFileLoader implements BatchConverter,
-  OptionHandler {
+  IncrementalConverter, OptionHandler {
 
   /** for serialization. */
   static final long serialVersionUID = 5607529739745491340L;
@@ -152,6 +188,24 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
   /** enclosure character(s) to use for strings */
   protected String m_Enclosures = "\",\'";
 
+  /**
+   * the number of rows to read for determining the structure, 0 or less for
+   * all rows (rows after these are streamed against the structure).
+   */
+  protected int m_BufferSize = 0;
+
+  /** the ARFF file with the header to use, a directory if none. */
+  protected File m_SchemaFile = new File(System.getProperty("user.dir"));
+
+  /** the number of threads for parsing fields in batch mode. */
+  protected int m_numExecutionSlots = 1;
+
+  /** the number of rows parsed by a thread at a time. */
+  protected static final int BLOCK_SIZE = 1000;
+
+  /** the rows read while determining the structure, not yet returned. */
+  protected transient LinkedList<String[]> m_RowBuffer;
+
   /**
    * default constructor.
    */
@@ -199,7 +253,10 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
   public String globalInfo() {
     return "Reads a source that is in comma separated or tab separated format. "
       + "Assumes that the first row in the file determines the number of "
-      + "and names of the attributes.";
+      + "and names of the attributes. The attribute types are determined "
+      + "from all the data, from the first rows of data if a buffer size is "
+      + "given, or taken from a schema file. Rows after the buffered ones "
+      + "are streamed based on this structure and must fit it.";
   }
 
   /**
@@ -243,6 +300,22 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
           + "\tSpecify as a comma separated list (e.g. \",'"
           + " (default: \",')", "E", 1, "-E <enclosures>"));
 
+    result.addElement(new Option(
+      "\tThe number of rows to read for determining the attribute\n"
+        + "\ttypes, 0 or less to read all rows.\n"
+        + "\t(default: 0)", "B", 1, "-B <num>"));
+
+    result.addElement(new Option(
+      "\tAn ARFF file whose header is used as structure instead of\n"
+        + "\tdetermining the attribute types from the data.\n"
+        + "\t(default: none)", "schema", 1, "-schema <file>"));
+
+    result.addElement(new Option(
+      "\tThe number of threads to use for parsing the fields when\n"
+        + "\treading in batch mode. With more than one, or with a schema,\n"
+        + "\tthe batch data is streamed like the incremental data.\n"
+        + "\t(default: 1)", "num-slots", 1, "-num-slots <num>"));
+
     return result.elements();
   }
 
@@ -295,6 +368,28 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
    *  Specify as a comma separated list (e.g. ",' (default: '"')
    * </pre>
    * 
+   * <pre>
+   * -B &lt;num&gt;
+   *  The number of rows to read for determining the attribute
+   *  types, 0 or less to read all rows.
+   *  (default: 0)
+   * </pre>
+   * 
+   * <pre>
+   * -schema &lt;file&gt;
+   *  An ARFF file whose header is used as structure instead of
+   *  determining the attribute types from the data.
+   *  (default: none)
+   * </pre>
+   * 
+   * <pre>
+   * -num-slots &lt;num&gt;
+   *  The number of threads to use for parsing the fields when
+   *  reading in batch mode. With more than one, or with a schema,
+   *  the batch data is streamed like the incremental data.
+   *  (default: 1)
+   * </pre>
+   * 
    * <!-- options-end -->
    * 
    * @param options the list of options as an array of strings
@@ -334,6 +429,24 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
     if (tmpStr.length() > 0) {
       setEnclosureCharacters(tmpStr);
     }
+
+    tmpStr = Utils.getOption('B', options);
+    if (tmpStr.length() != 0)
+      setBufferSize(Integer.parseInt(tmpStr));
+    else
+      setBufferSize(0);
+
+    tmpStr = Utils.getOption("schema", options);
+    if (tmpStr.length() != 0)
+      setSchemaFile(new File(tmpStr));
+    else
+      setSchemaFile(new File(System.getProperty("user.dir")));
+
+    tmpStr = Utils.getOption("num-slots", options);
+    if (tmpStr.length() != 0)
+      setNumExecutionSlots(Integer.parseInt(tmpStr));
+    else
+      setNumExecutionSlots(1);
   }
 
   /**
@@ -370,6 +483,17 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
     result.add("-E");
     result.add(getEnclosureCharacters());
 
+    result.add("-B");
+    result.add("" + getBufferSize());
+
+    if (hasSchemaFile()) {
+      result.add("-schema");
+      result.add(getSchemaFile().getPath());
+    }
+
+    result.add("-num-slots");
+    result.add("" + getNumExecutionSlots());
+
     return result.toArray(new String[result.size()]);
   }
 
@@ -546,6 +670,108 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
     return "The placeholder for missing values, default is '?'.";
   }
 
+  /**
+   * Sets the number of rows to read for determining the structure.
+   * 
+   * @param value the number of rows, 0 or less for all rows
+   */
+  public void setBufferSize(int value) {
+    m_BufferSize = value;
+  }
+
+  /**
+   * Returns the number of rows to read for determining the structure.
+   * 
+   * @return the number of rows, 0 or less for all rows
+   */
+  public int getBufferSize() {
+    return m_BufferSize;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String bufferSizeTipText() {
+    return "The number of rows to keep in memory for determining the "
+      + "attribute types, 0 or less to read all rows. Later rows must fit "
+      + "the types and labels found in these rows.";
+  }
+
+  /**
+   * Sets the ARFF file whose header is used as structure. A directory means
+   * no schema file.
+   * 
+   * @param value the schema file
+   */
+  public void setSchemaFile(File value) {
+    m_SchemaFile = value;
+  }
+
+  /**
+   * Returns the ARFF file whose header is used as structure.
+   * 
+   * @return the schema file, a directory if none
+   */
+  public File getSchemaFile() {
+    return m_SchemaFile;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String schemaFileTipText() {
+    return "An ARFF file whose header is used as structure instead of "
+      + "determining the attribute types from the data; a directory means "
+      + "no schema file.";
+  }
+
+  /**
+   * Sets the number of threads for parsing fields in batch mode.
+   * 
+   * @param value the number of threads
+   */
+  public void setNumExecutionSlots(int value) {
+    if (value >= 1) {
+      m_numExecutionSlots = value;
+    }
+  }
+
+  /**
+   * Returns the number of threads for parsing fields in batch mode.
+   * 
+   * @return the number of threads
+   */
+  public int getNumExecutionSlots() {
+    return m_numExecutionSlots;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of threads to use for parsing fields in batch mode. "
+      + "With more than one, the batch data is streamed using the "
+      + "structure determined from the first rows.";
+  }
+
+  /**
+   * Returns whether a schema file has been set.
+   * 
+   * @return true if the structure is taken from a schema file
+   */
+  protected boolean hasSchemaFile() {
+    return (m_SchemaFile != null) && !m_SchemaFile.isDirectory();
+  }
+
   /**
    * Resets the Loader object and sets the source of the data set to be the
    * supplied Stream object.
@@ -601,13 +827,34 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
   }
 
   /**
-   * reads the structure.
+   * reads the structure. The attribute names are read from the first row, the
+   * types are taken from the schema file or determined from the rows that fit
+   * into the buffer. These rows are kept for the subsequent retrieval.
    * 
    * @param st the stream tokenizer to read from
    * @throws IOException if reading fails
    */
   private void readStructure(StreamTokenizer st) throws IOException {
     readHeader(st);
+
+    st.ordinaryChar(',');
+    st.ordinaryChar('\t');
+
+    int numAtts = m_structure.numAttributes();
+    m_NominalAttributes.setUpper(numAtts - 1);
+    m_StringAttributes.setUpper(numAtts - 1);
+    m_dateAttributes.setUpper(numAtts - 1);
+
+    m_RowBuffer = new LinkedList<String[]>();
+    if (!hasSchemaFile()) {
+      String[] row;
+      while (((m_BufferSize <= 0) || (m_RowBuffer.size() < m_BufferSize))
+        && ((row = readRow(st, numAtts)) != null)) {
+        m_RowBuffer.add(row);
+      }
+    }
+
+    m_structure = determineStructure(m_structure, m_RowBuffer);
   }
 
   /**
@@ -624,10 +871,19 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
       throw new IOException("No source has been specified");
     }
 
+    if (getRetrieval() == INCREMENTAL) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+
     if (m_structure == null) {
       getStructure();
     }
 
+    if (hasSchemaFile() || (m_numExecutionSlots > 1)) {
+      return getDataSetStreamed();
+    }
+
     if (m_st == null) {
       m_st = new StreamTokenizer(m_sourceReader);
       initTokenizer(m_st);
@@ -643,6 +899,9 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
 
     m_cumulativeInstances = new FastVector();
     FastVector current;
+    while ((m_RowBuffer != null) && !m_RowBuffer.isEmpty()) {
+      m_cumulativeInstances.addElement(checkRow(m_RowBuffer.removeFirst()));
+    }
     while ((current = getInstance(m_st)) != null) {
       m_cumulativeInstances.addElement(current);
     }
@@ -739,16 +998,131 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
   }
 
   /**
-   * CSVLoader is unable to process a data set incrementally.
+   * Reads the data set in batch mode by streaming the rows through the
+   * structure determined by <code>getStructure()</code>. Blocks of rows are
+   * parsed on <code>m_numExecutionSlots</code> threads; only a bounded number
+   * of blocks is kept in memory besides the data set itself.
    * 
-   * @param structure ignored
-   * @return never returns without throwing an exception
-   * @exception IOException always. CSVLoader is unable to process a data set
-   *              incrementally.
+   * @return the data set
+   * @throws IOException if reading or parsing fails
+   */
+  protected Instances getDataSetStreamed() throws IOException {
+    final Instances dataSet = new Instances(m_structure, 0);
+    ExecutorService pool = Executors.newFixedThreadPool(m_numExecutionSlots);
+    LinkedList<Future<double[][]>> pending =
+      new LinkedList<Future<double[][]>>();
+    LinkedList<String[][]> pendingRows = new LinkedList<String[][]>();
+
+    try {
+      List<String[]> block = new ArrayList<String[]>(BLOCK_SIZE);
+      String[] row;
+      do {
+        row = nextRow();
+        if (row != null) {
+          block.add(row);
+        }
+        if ((block.size() == BLOCK_SIZE) || ((row == null) && !block.isEmpty())) {
+          final String[][] rows = block.toArray(new String[block.size()][]);
+          block.clear();
+          pendingRows.add(rows);
+          pending.add(pool.submit(new Callable<double[][]>() {
+            public double[][] call() throws Exception {
+              double[][] result = new double[rows.length][];
+              for (int i = 0; i < rows.length; i++) {
+                result[i] = parseValues(rows[i], dataSet);
+              }
+              return result;
+            }
+          }));
+        }
+        while ((pending.size() > 2 * m_numExecutionSlots)
+          || ((row == null) && !pending.isEmpty())) {
+          double[][] values;
+          try {
+            values = pending.removeFirst().get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().toString());
+          } catch (InterruptedException e) {
+            throw new IOException(e.toString());
+          }
+          String[][] rows = pendingRows.removeFirst();
+          for (int i = 0; i < rows.length; i++) {
+            resolveValues(rows[i], values[i], dataSet);
+            dataSet.add(new Instance(1.0, values[i]));
+          }
+        }
+      } while (row != null);
+    } finally {
+      pool.shutdownNow();
+      m_sourceReader.close();
+    }
+
+    m_structure = new Instances(dataSet, 0);
+    setRetrieval(BATCH);
+
+    return dataSet;
+  }
+
+  /**
+   * Read the data set incrementally---get the next instance in the data set or
+   * returns null if there are no more instances to get. The rows are parsed
+   * according to the structure returned by <code>getStructure()</code>; values
+   * that do not fit it (e.g., a label that did not occur in the buffered rows)
+   * result in an exception.
+   * 
+   * @param structure the dataset header information, will get updated in case
+   *          of string attributes
+   * @return the next instance in the data set as an Instance object or null if
+   *         there are no more instances to be read
+   * @exception IOException if there is an error during parsing
    */
   @Override
   public Instance getNextInstance(Instances structure) throws IOException {
-    throw new IOException("CSVLoader can't read data sets incrementally.");
+    if (getRetrieval() == BATCH) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+    setRetrieval(INCREMENTAL);
+
+    if (m_structure == null) {
+      getStructure();
+    }
+
+    String[] row = nextRow();
+    if (row == null) {
+      if (m_sourceReader != null) {
+        m_sourceReader.close();
+        m_sourceReader = null;
+      }
+      return null;
+    }
+
+    double[] vals = parseValues(row, structure);
+    resolveValues(row, vals, structure);
+    Instance inst = new Instance(1.0, vals);
+    inst.setDataset(structure);
+
+    return inst;
+  }
+
+  /**
+   * Returns the next row, either from the buffer or from the tokenizer.
+   * 
+   * @return the row, null if there are no more rows
+   * @throws IOException if reading fails
+   */
+  protected String[] nextRow() throws IOException {
+    if ((m_RowBuffer != null) && !m_RowBuffer.isEmpty()) {
+      return m_RowBuffer.removeFirst();
+    }
+    if (m_sourceReader == null) {
+      return null;
+    }
+
+    return readRow(m_st, m_structure.numAttributes());
   }
 
   /**
@@ -773,8 +1147,63 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
    * </pre>
    */
   private FastVector getInstance(StreamTokenizer tokenizer) throws IOException {
+    String[] row = readRow(tokenizer, m_structure.numAttributes());
+    if (row == null) {
+      return null;
+    }
+
+    return checkRow(row);
+  }
+
+  /**
+   * Turns a row into String and Double objects and checks it against the
+   * structure accumulated so far.
+   * 
+   * @param row the row, with null for missing values
+   * @return a FastVector containg String and Double objects representing the
+   *         values of the instance.
+   */
+  private FastVector checkRow(String[] row) {
+    FastVector current = new FastVector(row.length);
 
-    FastVector current = new FastVector();
+    for (int i = 0; i < row.length; i++) {
+      if (row[i] == null) {
+        current.addElement(new String(m_MissingValue));
+      } else {
+        // try to parse as a number
+        try {
+          double val = Double.valueOf(row[i]).doubleValue();
+          current.addElement(new Double(val));
+        } catch (NumberFormatException e) {
+          // otherwise assume its an enumerated value
+          current.addElement(new String(row[i]));
+        }
+      }
+    }
+
+    // check for structure update
+    try {
+      checkStructure(current);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+
+    return current;
+  }
+
+  /**
+   * Reads the tokens of a line of the data set.
+   * 
+   * @param tokenizer the tokenizer
+   * @param numAttributes the expected number of values
+   * @return the tokens, with null for missing values, or null if the end of
+   *         file has been reached
+   * @throws IOException if the number of values is wrong or reading fails
+   */
+  protected String[] readRow(StreamTokenizer tokenizer, int numAttributes)
+    throws IOException {
+
+    List<String> current = new ArrayList<String>(numAttributes);
 
     // Check if end of file reached.
     ConverterUtils.getFirstToken(tokenizer);
@@ -793,23 +1222,17 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
       }
 
       if (tokenizer.ttype == ',' || tokenizer.ttype == '\t'
-        || tokenizer.ttype == StreamTokenizer.TT_EOL) {
-        current.addElement(m_MissingValue);
+        || tokenizer.ttype == StreamTokenizer.TT_EOL
+        || tokenizer.ttype == StreamTokenizer.TT_EOF) {
+        current.add(null);
         wasSep = true;
       } else {
         wasSep = false;
         if (tokenizer.sval.equals(m_MissingValue)
           || tokenizer.sval.trim().length() == 0) {
-          current.addElement(new String(m_MissingValue));
+          current.add(null);
         } else {
-          // try to parse as a number
-          try {
-            double val = Double.valueOf(tokenizer.sval).doubleValue();
-            current.addElement(new Double(val));
-          } catch (NumberFormatException e) {
-            // otherwise assume its an enumerated value
-            current.addElement(new String(tokenizer.sval));
-          }
+          current.add(tokenizer.sval);
         }
       }
 
@@ -820,20 +1243,148 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
     }
 
     // check number of values read
-    if (current.size() != m_structure.numAttributes()) {
-      ConverterUtils.errms(tokenizer,
-        "wrong number of values. Read " + current.size() + ", expected "
-          + m_structure.numAttributes());
+    if (current.size() != numAttributes) {
+      ConverterUtils.errms(tokenizer, "wrong number of values. Read "
+        + current.size() + ", expected " + numAttributes);
     }
 
-    // check for structure update
-    try {
-      checkStructure(current);
-    } catch (Exception ex) {
-      ex.printStackTrace();
+    return current.toArray(new String[current.size()]);
+  }
+
+  /**
+   * Determines the structure from the schema file, if set, or from the given
+   * rows. Columns with only numbers become numeric, others nominal with the
+   * labels in order of appearance, unless forced to a type via the ranges.
+   * 
+   * @param header the header with the attribute names
+   * @param rows the buffered rows
+   * @return the structure
+   * @throws IOException if the schema file cannot be read or does not match
+   */
+  protected Instances determineStructure(Instances header, List<String[]> rows)
+    throws IOException {
+
+    if (hasSchemaFile()) {
+      BufferedReader reader = new BufferedReader(new FileReader(m_SchemaFile));
+      Instances schema;
+      try {
+        schema = new ArffLoader.ArffReader(reader, 0).getStructure();
+      } finally {
+        reader.close();
+      }
+      if (schema.numAttributes() != header.numAttributes()) {
+        throw new IOException("Schema file " + m_SchemaFile + " has "
+          + schema.numAttributes() + " attributes, but the data has "
+          + header.numAttributes() + "!");
+      }
+      return schema;
     }
 
-    return current;
+    FastVector atts = new FastVector(header.numAttributes());
+    for (int i = 0; i < header.numAttributes(); i++) {
+      String attname = header.attribute(i).name();
+      if (m_StringAttributes.isInRange(i)) {
+        atts.addElement(new Attribute(attname, (FastVector) null));
+      } else if (m_dateAttributes.isInRange(i)) {
+        atts.addElement(new Attribute(attname, m_dateFormat));
+      } else {
+        boolean numeric = !m_NominalAttributes.isInRange(i);
+        LinkedHashSet<String> labels = new LinkedHashSet<String>();
+        for (String[] row : rows) {
+          if (row[i] == null) {
+            continue;
+          }
+          labels.add(row[i]);
+          if (numeric) {
+            try {
+              Double.valueOf(row[i]);
+            } catch (NumberFormatException e) {
+              numeric = false;
+            }
+          }
+        }
+        if (numeric) {
+          atts.addElement(new Attribute(attname));
+        } else {
+          FastVector values = new FastVector(labels.size());
+          for (String label : labels) {
+            values.addElement(label);
+          }
+          atts.addElement(new Attribute(attname, values));
+        }
+      }
+    }
+
+    return new Instances(header.relationName(), atts, 0);
+  }
+
+  /**
+   * Parses the numeric and nominal values of a row. String and date values
+   * are left to <code>resolveValues</code>, since they modify or use shared
+   * state of the attributes; this method can be called from several threads.
+   * 
+   * @param row the row, with null for missing values
+   * @param structure the structure to parse against
+   * @return the values
+   * @throws IOException if a value does not fit the structure
+   */
+  protected double[] parseValues(String[] row, Instances structure)
+    throws IOException {
+
+    double[] vals = new double[structure.numAttributes()];
+
+    for (int i = 0; i < row.length; i++) {
+      Attribute att = structure.attribute(i);
+      if (row[i] == null) {
+        vals[i] = Instance.missingValue();
+      } else if (att.isNumeric() && !att.isDate()) {
+        try {
+          vals[i] = Double.valueOf(row[i]).doubleValue();
+        } catch (NumberFormatException e) {
+          throw new IOException("Value '" + row[i] + "' of attribute '"
+            + att.name() + "' is not numeric (use a larger buffer size or "
+            + "a schema file)!");
+        }
+      } else if (att.isNominal()) {
+        vals[i] = att.indexOfValue(row[i]);
+        if (vals[i] == -1) {
+          throw new IOException("Value '" + row[i] + "' of attribute '"
+            + att.name() + "' is not a declared label (use a larger buffer "
+            + "size or a schema file)!");
+        }
+      }
+    }
+
+    return vals;
+  }
+
+  /**
+   * Fills in the string and date values of a row, in the order of the rows.
+   * 
+   * @param row the row, with null for missing values
+   * @param vals the values parsed by <code>parseValues</code>
+   * @param structure the structure to parse against
+   * @throws IOException if a date cannot be parsed
+   */
+  protected void resolveValues(String[] row, double[] vals, Instances structure)
+    throws IOException {
+
+    for (int i = 0; i < row.length; i++) {
+      if (row[i] == null) {
+        continue;
+      }
+      Attribute att = structure.attribute(i);
+      if (att.isString()) {
+        vals[i] = att.addStringValue(row[i]);
+      } else if (att.isDate()) {
+        try {
+          vals[i] = att.parseDate(row[i]);
+        } catch (ParseException e) {
+          throw new IOException("Unparseable date '" + row[i]
+            + "' for attribute '" + att.name() + "'!");
+        }
+      }
+    }
   }
 
   /**
@@ -1015,6 +1566,7 @@ public class CSVLoader extends AbstractFileLoader implements BatchConverter,
     m_cumulativeStructure = null;
     m_cumulativeInstances = null;
     m_st = null;
+    m_RowBuffer = null;
     setRetrieval(NONE);
 
     if (m_File != null) {
@@ -0,0 +1,1175 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ParallelArffReader.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core.converters;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.SparseInstance;
+
+/**
+ * Reads an uncompressed ARFF file using several threads. The header is parsed
+ * with <code>ArffLoader.ArffReader</code>, the data section is split into
+ * byte ranges at line boundaries and each range is tokenized on a thread
+ * pool. Values of string, date and relational attributes are resolved in file
+ * order once a range has been parsed, so the resulting dataset is the same as
+ * the one produced by <code>ArffLoader.ArffReader</code>, including sparse
+ * rows, instance weights and quoted values.
+ * <p/>
+ *
+ * Typical usage:
+ *
+ * <pre>
+ * ParallelArffReader arff = new ParallelArffReader(new File(&quot;/some/where/file.arff&quot;));
+ * Instances data = arff.getData();
+ * data.setClassIndex(data.numAttributes() - 1);
+ * </pre>
+ *
+ * The file is decoded with the platform's default charset (like
+ * <code>ArffLoader</code>), which has to be ASCII compatible.
+ *
+ * @version $Revision$
+ * @see ArffLoader.ArffReader
+ */
+public class ParallelArffReader
+  implements RevisionHandler {
+
+  /** the default size in bytes of the ranges the data section is split into */
+  public final static int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  /** token type: end of file */
+  protected final static int TT_EOF = -1;
+
+  /** token type: end of line */
+  protected final static int TT_EOL = -2;
+
+  /** token type: unquoted word */
+  protected final static int TT_WORD = -3;
+
+  /** token type: quoted word */
+  protected final static int TT_QUOTED = -4;
+
+  /** token type: unquoted question mark */
+  protected final static int TT_MISSING = -5;
+
+  /** powers of ten that are exactly representable as doubles */
+  protected final static double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+    1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17,
+    1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  /** the file to read */
+  protected File m_File;
+
+  /** the charset of the file */
+  protected Charset m_Charset;
+
+  /** the number of threads to use */
+  protected int m_NumThreads;
+
+  /** the size of the byte ranges */
+  protected int m_ChunkSize;
+
+  /** the offset of the first byte after the @data keyword */
+  protected long m_DataStart;
+
+  /** the lookup tables for the labels of nominal attributes */
+  protected LabelTable[] m_Labels;
+
+  /** whether values of an attribute (string, date, relational) have to be
+   * resolved sequentially */
+  protected boolean[] m_Deferred;
+
+  /** the actual data */
+  protected Instances m_Data;
+
+  /**
+   * Hash table mapping labels of a nominal attribute to their indices, which
+   * can be queried directly with the characters of a token.
+   */
+  protected static class LabelTable {
+
+    /** the labels */
+    protected String[] m_Values;
+
+    /** the slots, containing label indices or -1 */
+    protected int[] m_Slots;
+
+    /**
+     * Initializes the table with the labels of the attribute.
+     *
+     * @param att the nominal attribute
+     */
+    public LabelTable(Attribute att) {
+      int size = 4;
+      while (size < 2 * att.numValues()) {
+        size <<= 1;
+      }
+      m_Values = new String[att.numValues()];
+      m_Slots = new int[size];
+      for (int i = 0; i < size; i++) {
+        m_Slots[i] = -1;
+      }
+      for (int i = 0; i < m_Values.length; i++) {
+        m_Values[i] = att.value(i);
+        int slot = mix(m_Values[i].hashCode()) & (size - 1);
+        while (m_Slots[slot] != -1) {
+          slot = (slot + 1) & (size - 1);
+        }
+        m_Slots[slot] = i;
+      }
+    }
+
+    /**
+     * Spreads the bits of a string hash code.
+     *
+     * @param h the hash code
+     * @return the mixed hash code
+     */
+    protected static int mix(int h) {
+      return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the index of the label with the given characters.
+     *
+     * @param buffer the characters
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     * @return the index of the label, -1 if not declared
+     */
+    public int indexOf(char[] buffer, int offset, int length) {
+      int h = 0;
+      for (int i = offset; i < offset + length; i++) {
+        h = 31 * h + buffer[i];
+      }
+      int slot = mix(h) & (m_Slots.length - 1);
+      while (m_Slots[slot] != -1) {
+        String value = m_Values[m_Slots[slot]];
+        if (value.length() == length) {
+          int i = 0;
+          while ((i < length) && (value.charAt(i) == buffer[offset + i])) {
+            i++;
+          }
+          if (i == length) {
+            return m_Slots[slot];
+          }
+        }
+        slot = (slot + 1) & (m_Slots.length - 1);
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * A parsed row whose string, date and relational values may still have to
+   * be resolved.
+   */
+  protected static class Row {
+
+    /** the weight */
+    public double m_Weight;
+
+    /** the values */
+    public double[] m_Values;
+
+    /** the indices for sparse rows, null for dense ones */
+    public int[] m_Indices;
+
+    /** the unresolved tokens, parallel to the values; null if there are none */
+    public String[] m_Tokens;
+  }
+
+  /**
+   * Tokenizer for a range of characters. It splits tokens the same way the
+   * StreamTokenizer set up by <code>ArffLoader.ArffReader</code> does, but
+   * leaves unquoted tokens in the character buffer.
+   */
+  protected static class Tokenizer {
+
+    /** the characters */
+    protected char[] m_Buffer;
+
+    /** the current position */
+    protected int m_Pos;
+
+    /** the end of the range */
+    protected int m_End;
+
+    /** the number of line ends seen so far */
+    protected int m_Lines;
+
+    /** the type of the current token */
+    public int m_Type;
+
+    /** the buffer containing the characters of the current token */
+    public char[] m_TokenBuffer;
+
+    /** the offset of the current token */
+    public int m_TokenOffset;
+
+    /** the length of the current token */
+    public int m_TokenLength;
+
+    /** buffer for quoted tokens containing escape sequences */
+    protected char[] m_Scratch = new char[256];
+
+    /**
+     * Initializes the tokenizer.
+     *
+     * @param buffer the characters
+     * @param offset the first character
+     * @param end the end of the range
+     */
+    public Tokenizer(char[] buffer, int offset, int end) {
+      m_Buffer = buffer;
+      m_Pos = offset;
+      m_End = end;
+    }
+
+    /**
+     * Returns whether the character ends an unquoted token.
+     *
+     * @param c the character
+     * @return true if c is whitespace or a special character
+     */
+    protected static boolean isDelimiter(char c) {
+      return (c <= ' ') || (c == ',') || (c == '%') || (c == '{')
+        || (c == '}') || (c == '\'') || (c == '"');
+    }
+
+    /**
+     * Returns the current line, starting at 0.
+     *
+     * @return the number of line ends read so far
+     */
+    public int getLines() {
+      return m_Lines;
+    }
+
+    /**
+     * Returns the current token as string.
+     *
+     * @return the token
+     */
+    public String stringValue() {
+      return new String(m_TokenBuffer, m_TokenOffset, m_TokenLength);
+    }
+
+    /**
+     * Reads the next token.
+     *
+     * @return the type of the token
+     */
+    public int nextToken() {
+      char c;
+
+      // skip whitespace and comments
+      while (true) {
+        if (m_Pos >= m_End) {
+          return m_Type = TT_EOF;
+        }
+        c = m_Buffer[m_Pos];
+        if (c == '\n' || c == '\r') {
+          m_Pos++;
+          if ((c == '\r') && (m_Pos < m_End) && (m_Buffer[m_Pos] == '\n')) {
+            m_Pos++;
+          }
+          m_Lines++;
+          return m_Type = TT_EOL;
+        }
+        if (c == '%') {
+          while ((m_Pos < m_End) && (m_Buffer[m_Pos] != '\n')
+            && (m_Buffer[m_Pos] != '\r')) {
+            m_Pos++;
+          }
+          continue;
+        }
+        if ((c <= ' ') || (c == ',')) {
+          m_Pos++;
+          continue;
+        }
+        break;
+      }
+
+      if ((c == '{') || (c == '}')) {
+        m_Pos++;
+        return m_Type = c;
+      }
+
+      if ((c == '\'') || (c == '"')) {
+        return m_Type = readQuoted(c);
+      }
+
+      m_TokenBuffer = m_Buffer;
+      m_TokenOffset = m_Pos;
+      while ((m_Pos < m_End) && !isDelimiter(m_Buffer[m_Pos])) {
+        m_Pos++;
+      }
+      m_TokenLength = m_Pos - m_TokenOffset;
+      if ((m_TokenLength == 1) && (m_Buffer[m_TokenOffset] == '?')) {
+        return m_Type = TT_MISSING;
+      }
+      return m_Type = TT_WORD;
+    }
+
+    /**
+     * Reads a quoted token, processing escape sequences like
+     * java.io.StreamTokenizer.
+     *
+     * @param quote the quote character
+     * @return the token type
+     */
+    protected int readQuoted(char quote) {
+      int start = ++m_Pos;
+      int end = start;
+      while ((end < m_End) && (m_Buffer[end] != quote)
+        && (m_Buffer[end] != '\\') && (m_Buffer[end] != '\n')
+        && (m_Buffer[end] != '\r')) {
+        end++;
+      }
+
+      // no escape sequences: point into the buffer
+      if ((end >= m_End) || (m_Buffer[end] != '\\')) {
+        m_TokenBuffer = m_Buffer;
+        m_TokenOffset = start;
+        m_TokenLength = end - start;
+        m_Pos = end;
+        if ((m_Pos < m_End) && (m_Buffer[m_Pos] == quote)) {
+          m_Pos++;
+        }
+        return TT_QUOTED;
+      }
+
+      int length = 0;
+      m_Pos = start;
+      while ((m_Pos < m_End) && (m_Buffer[m_Pos] != quote)
+        && (m_Buffer[m_Pos] != '\n') && (m_Buffer[m_Pos] != '\r')) {
+        int c = m_Buffer[m_Pos++];
+        if ((c == '\\') && (m_Pos < m_End)) {
+          c = m_Buffer[m_Pos++];
+          if ((c >= '0') && (c <= '7')) {
+            int first = c;
+            c = c - '0';
+            if ((m_Pos < m_End) && (m_Buffer[m_Pos] >= '0')
+              && (m_Buffer[m_Pos] <= '7')) {
+              c = (c << 3) + (m_Buffer[m_Pos++] - '0');
+              if ((m_Pos < m_End) && (m_Buffer[m_Pos] >= '0')
+                && (m_Buffer[m_Pos] <= '7') && (first <= '3')) {
+                c = (c << 3) + (m_Buffer[m_Pos++] - '0');
+              }
+            }
+          } else {
+            switch (c) {
+            case 'a':
+              c = 0x7;
+              break;
+            case 'b':
+              c = '\b';
+              break;
+            case 'f':
+              c = 0xC;
+              break;
+            case 'n':
+              c = '\n';
+              break;
+            case 'r':
+              c = '\r';
+              break;
+            case 't':
+              c = '\t';
+              break;
+            case 'v':
+              c = 0xB;
+              break;
+            }
+          }
+        }
+        if (length == m_Scratch.length) {
+          char[] scratch = new char[2 * length];
+          System.arraycopy(m_Scratch, 0, scratch, 0, length);
+          m_Scratch = scratch;
+        }
+        m_Scratch[length++] = (char) c;
+      }
+      if ((m_Pos < m_End) && (m_Buffer[m_Pos] == quote)) {
+        m_Pos++;
+      }
+      m_TokenBuffer = m_Scratch;
+      m_TokenOffset = 0;
+      m_TokenLength = length;
+      return TT_QUOTED;
+    }
+  }
+
+  /**
+   * Parses one byte range of the data section.
+   */
+  protected class ChunkParser
+    implements Callable<List<Row>> {
+
+    /** the offset of the range in the file */
+    protected long m_Start;
+
+    /** the end of the range in the file */
+    protected long m_End;
+
+    /** the tokenizer */
+    protected Tokenizer m_Tokenizer;
+
+    /** buffer of values for sparse rows */
+    protected double[] m_ValueBuffer;
+
+    /** buffer of indices for sparse rows */
+    protected int[] m_IndicesBuffer;
+
+    /** buffer of unresolved tokens */
+    protected String[] m_PendingBuffer;
+
+    /**
+     * Initializes the parser.
+     *
+     * @param start the offset of the range in the file
+     * @param end the end of the range in the file
+     */
+    public ChunkParser(long start, long end) {
+      m_Start = start;
+      m_End = end;
+    }
+
+    /**
+     * Throws an error message with the line number.
+     *
+     * @param msg the error message to be thrown
+     * @throws IOException containing the error message
+     */
+    protected void errorMessage(String msg) throws IOException {
+      throw new IOException(msg + ", line "
+        + (lineOf(m_Start) + m_Tokenizer.getLines()));
+    }
+
+    /**
+     * Reads the range and parses the rows in it.
+     *
+     * @return the rows
+     * @throws Exception if reading or parsing fails
+     */
+    @Override
+    public List<Row> call() throws Exception {
+      ByteBuffer bytes = ByteBuffer.allocate((int) (m_End - m_Start));
+      RandomAccessFile file = new RandomAccessFile(m_File, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        while (bytes.hasRemaining()) {
+          if (channel.read(bytes, m_Start + bytes.position()) < 0) {
+            throw new IOException("Unexpected end of file " + m_File);
+          }
+        }
+      } finally {
+        file.close();
+      }
+      bytes.flip();
+      CharBuffer chars = m_Charset.decode(bytes);
+      bytes = null;
+
+      int numAtts = m_Data.numAttributes();
+      m_ValueBuffer = new double[numAtts];
+      m_IndicesBuffer = new int[numAtts];
+      m_PendingBuffer = new String[numAtts];
+      m_Tokenizer = new Tokenizer(chars.array(), chars.arrayOffset()
+        + chars.position(), chars.arrayOffset() + chars.limit());
+
+      List<Row> result = new ArrayList<Row>();
+      while (true) {
+        while (m_Tokenizer.nextToken() == TT_EOL) {
+        }
+        if (m_Tokenizer.m_Type == TT_EOF) {
+          break;
+        }
+        if (m_Tokenizer.m_Type == '{') {
+          result.add(readSparse());
+        } else {
+          result.add(readFull());
+        }
+      }
+
+      return result;
+    }
+
+    /**
+     * Gets the next token, checking for a premature end of line.
+     *
+     * @throws IOException if it finds a premature end of line
+     */
+    protected void getNextToken() throws IOException {
+      m_Tokenizer.nextToken();
+      if (m_Tokenizer.m_Type == TT_EOL) {
+        errorMessage("premature end of line");
+      }
+      if (m_Tokenizer.m_Type == TT_EOF) {
+        errorMessage("premature end of file");
+      }
+    }
+
+    /**
+     * Parses the current token as value of the given attribute.
+     *
+     * @param att the index of the attribute
+     * @param tokens the unresolved tokens
+     * @param pos the position in values and tokens
+     * @return the value
+     * @throws IOException if the token is not a valid value
+     */
+    protected double parseValue(int att, String[] tokens, int pos)
+      throws IOException {
+      Tokenizer tok = m_Tokenizer;
+
+      if (tok.m_Type == TT_MISSING) {
+        return Instance.missingValue();
+      }
+      if ((tok.m_Type != TT_WORD) && (tok.m_Type != TT_QUOTED)) {
+        errorMessage("not a valid value");
+      }
+      if (m_Deferred[att]) {
+        tokens[pos] = tok.stringValue();
+        return 0;
+      }
+      if (m_Labels[att] != null) {
+        int index =
+          m_Labels[att].indexOf(tok.m_TokenBuffer, tok.m_TokenOffset,
+            tok.m_TokenLength);
+        if (index == -1) {
+          errorMessage("nominal value not declared in header");
+        }
+        return index;
+      }
+      try {
+        return parseNumber(tok.m_TokenBuffer, tok.m_TokenOffset,
+          tok.m_TokenLength);
+      } catch (NumberFormatException e) {
+        errorMessage("number expected");
+      }
+      return 0;
+    }
+
+    /**
+     * Reads the optional instance weight and the end of the line.
+     *
+     * @return the weight
+     * @throws IOException if the weight is malformed
+     */
+    protected double readWeight() throws IOException {
+      Tokenizer tok = m_Tokenizer;
+
+      // as with ArffReader, anything other than a weight is skipped
+      tok.nextToken();
+      if (tok.m_Type != '{') {
+        return 1.0;
+      }
+      tok.nextToken();
+      double weight = 1.0;
+      try {
+        if ((tok.m_Type != TT_WORD) && (tok.m_Type != TT_QUOTED)) {
+          throw new NumberFormatException();
+        }
+        weight = Double.parseDouble(tok.stringValue());
+      } catch (NumberFormatException e) {
+        errorMessage("Problem reading instance weight");
+      }
+      tok.nextToken();
+      if (tok.m_Type != '}') {
+        errorMessage("Problem reading instance weight");
+      }
+      tok.nextToken();
+      if ((tok.m_Type != TT_EOL) && (tok.m_Type != TT_EOF)) {
+        errorMessage("end of line expected");
+      }
+      return weight;
+    }
+
+    /**
+     * Reads a dense row; the first token has already been read.
+     *
+     * @return the row
+     * @throws IOException if the row is malformed
+     */
+    protected Row readFull() throws IOException {
+      Row row = new Row();
+      int numAtts = m_Data.numAttributes();
+      row.m_Values = new double[numAtts];
+      String[] tokens = m_PendingBuffer;
+      boolean hasTokens = false;
+
+      for (int i = 0; i < numAtts; i++) {
+        if (i > 0) {
+          getNextToken();
+        }
+        tokens[i] = null;
+        row.m_Values[i] = parseValue(i, tokens, i);
+        hasTokens |= (tokens[i] != null);
+      }
+      if (hasTokens) {
+        row.m_Tokens = new String[numAtts];
+        System.arraycopy(tokens, 0, row.m_Tokens, 0, numAtts);
+      }
+      row.m_Weight = readWeight();
+
+      return row;
+    }
+
+    /**
+     * Reads a sparse row; the opening brace has already been read.
+     *
+     * @return the row
+     * @throws IOException if the row is malformed
+     */
+    protected Row readSparse() throws IOException {
+      Tokenizer tok = m_Tokenizer;
+      int numValues = 0;
+      int maxIndex = -1;
+      boolean hasTokens = false;
+
+      while (true) {
+        getNextToken();
+        if (tok.m_Type == '}') {
+          break;
+        }
+
+        int index = -1;
+        try {
+          if ((tok.m_Type != TT_WORD) && (tok.m_Type != TT_QUOTED)
+            && (tok.m_Type != TT_MISSING)) {
+            throw new NumberFormatException();
+          }
+          index = parseIndex(tok.m_TokenBuffer, tok.m_TokenOffset,
+            tok.m_TokenLength);
+        } catch (NumberFormatException e) {
+          errorMessage("index number expected");
+        }
+        if (index <= maxIndex) {
+          errorMessage("indices have to be ordered");
+        }
+        if ((index < 0) || (index >= m_Data.numAttributes())) {
+          errorMessage("index out of bounds");
+        }
+        maxIndex = index;
+
+        getNextToken();
+        m_IndicesBuffer[numValues] = index;
+        m_PendingBuffer[numValues] = null;
+        m_ValueBuffer[numValues] =
+          parseValue(index, m_PendingBuffer, numValues);
+        hasTokens |= (m_PendingBuffer[numValues] != null);
+        numValues++;
+      }
+
+      Row row = new Row();
+      row.m_Values = new double[numValues];
+      row.m_Indices = new int[numValues];
+      System.arraycopy(m_ValueBuffer, 0, row.m_Values, 0, numValues);
+      System.arraycopy(m_IndicesBuffer, 0, row.m_Indices, 0, numValues);
+      if (hasTokens) {
+        row.m_Tokens = new String[numValues];
+        System.arraycopy(m_PendingBuffer, 0, row.m_Tokens, 0, numValues);
+      }
+      row.m_Weight = readWeight();
+
+      return row;
+    }
+  }
+
+  /**
+   * Reads the data completely from the file, using as many threads as there
+   * are processors. The data can be accessed via the <code>getData()</code>
+   * method.
+   *
+   * @param file the uncompressed ARFF file
+   * @throws IOException if something goes wrong
+   * @see #getData()
+   */
+  public ParallelArffReader(File file) throws IOException {
+    this(file, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Reads the data completely from the file. The data can be accessed via the
+   * <code>getData()</code> method.
+   *
+   * @param file the uncompressed ARFF file
+   * @param numThreads the number of threads to use
+   * @throws IOException if something goes wrong
+   * @see #getData()
+   */
+  public ParallelArffReader(File file, int numThreads) throws IOException {
+    this(file, numThreads, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Reads the data completely from the file. The data can be accessed via the
+   * <code>getData()</code> method.
+   *
+   * @param file the uncompressed ARFF file
+   * @param numThreads the number of threads to use
+   * @param chunkSize the approximate size in bytes of the ranges parsed by
+   *          the threads
+   * @throws IOException if something goes wrong
+   * @throws IllegalArgumentException if numThreads or chunkSize is not
+   *           positive
+   * @see #getData()
+   */
+  public ParallelArffReader(File file, int numThreads, int chunkSize)
+    throws IOException {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads has to be positive!");
+    }
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size has to be positive!");
+    }
+
+    m_File = file;
+    m_Charset = Charset.defaultCharset();
+    m_NumThreads = numThreads;
+    m_ChunkSize = chunkSize;
+
+    readHeader();
+    readData();
+  }
+
+  /**
+   * Reads the header up to and including the @data keyword and parses it with
+   * <code>ArffLoader.ArffReader</code>.
+   *
+   * @throws IOException if the header cannot be read
+   */
+  protected void readHeader() throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    InputStream in = new BufferedInputStream(new FileInputStream(m_File));
+    long offset = 0;
+    m_DataStart = -1;
+
+    try {
+      int b;
+      do {
+        b = in.read();
+        if (b != -1) {
+          offset++;
+          line.write(b);
+        }
+        if ((b == '\n') || (b == -1)) {
+          byte[] bytes = line.toByteArray();
+          int pos = dataKeyword(bytes);
+          if (pos > -1) {
+            header.write(bytes, 0, pos);
+            m_DataStart = offset - bytes.length + pos;
+            break;
+          }
+          header.write(bytes);
+          line.reset();
+        }
+      } while (b != -1);
+    } finally {
+      in.close();
+    }
+
+    if (m_DataStart == -1) {
+      throw new IOException("keyword " + Instances.ARFF_DATA + " expected");
+    }
+
+    ArffLoader.ArffReader arff = new ArffLoader.ArffReader(new StringReader(
+      new String(header.toByteArray(), m_Charset.name())), 1000);
+    m_Data = arff.getData();
+
+    m_Labels = new LabelTable[m_Data.numAttributes()];
+    m_Deferred = new boolean[m_Data.numAttributes()];
+    for (int i = 0; i < m_Data.numAttributes(); i++) {
+      Attribute att = m_Data.attribute(i);
+      if (att.isNominal()) {
+        m_Labels[i] = new LabelTable(att);
+      } else if (!att.isNumeric()) {
+        m_Deferred[i] = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the offset just after the @data keyword if the line starts with
+   * it.
+   *
+   * @param line the bytes of the line
+   * @return the offset after the keyword, -1 if the line does not start with
+   *         it
+   */
+  protected static int dataKeyword(byte[] line) {
+    String keyword = Instances.ARFF_DATA;
+    int pos = 0;
+
+    while ((pos < line.length) && (line[pos] >= 0) && (line[pos] <= ' ')) {
+      pos++;
+    }
+    if (pos + keyword.length() > line.length) {
+      return -1;
+    }
+    for (int i = 0; i < keyword.length(); i++) {
+      if (Character.toLowerCase((char) line[pos + i]) != Character
+        .toLowerCase(keyword.charAt(i))) {
+        return -1;
+      }
+    }
+    pos += keyword.length();
+    if ((pos < line.length) && (line[pos] >= 0)
+      && !Tokenizer.isDelimiter((char) line[pos])) {
+      return -1;
+    }
+
+    return pos;
+  }
+
+  /**
+   * Returns the offset of the first line starting at or after the given
+   * offset.
+   *
+   * @param file the file to search
+   * @param offset the offset to start from
+   * @return the offset of the line start
+   * @throws IOException if reading fails
+   */
+  protected static long nextLineStart(RandomAccessFile file, long offset)
+    throws IOException {
+    byte[] buffer = new byte[8192];
+    long pos = offset - 1;
+
+    file.seek(pos);
+    while (true) {
+      int read = file.read(buffer);
+      if (read == -1) {
+        return file.length();
+      }
+      for (int i = 0; i < read; i++) {
+        if (buffer[i] == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += read;
+    }
+  }
+
+  /**
+   * Returns the line number of the given offset, starting at 1. Only used
+   * for error messages.
+   *
+   * @param offset the offset in the file
+   * @return the line number
+   * @throws IOException if reading fails
+   */
+  protected int lineOf(long offset) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(m_File));
+    int result = 1;
+
+    try {
+      for (long i = 0; i < offset; i++) {
+        if (in.read() == '\n') {
+          result++;
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return result;
+  }
+
+  /**
+   * Splits the data section into ranges, parses them on a thread pool and
+   * adds the rows to the dataset in file order.
+   *
+   * @throws IOException if reading or parsing fails
+   */
+  protected void readData() throws IOException {
+    List<Long> bounds = new ArrayList<Long>();
+    RandomAccessFile file = new RandomAccessFile(m_File, "r");
+    try {
+      long length = file.length();
+      long pos = m_DataStart;
+      bounds.add(pos);
+      while (pos < length) {
+        pos = (pos + m_ChunkSize >= length) ? length
+          : nextLineStart(file, pos + m_ChunkSize);
+        bounds.add(pos);
+      }
+    } finally {
+      file.close();
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(m_NumThreads);
+    try {
+      List<Future<List<Row>>> results = new ArrayList<Future<List<Row>>>();
+      for (int i = 0; i < bounds.size() - 1; i++) {
+        results.add(pool.submit(new ChunkParser(bounds.get(i),
+          bounds.get(i + 1))));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        List<Row> rows;
+        try {
+          rows = results.get(i).get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause().toString());
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        results.set(i, null);
+        for (int j = 0; j < rows.size(); j++) {
+          m_Data.add(makeInstance(rows.get(j), bounds.get(i)));
+          rows.set(j, null);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    m_Data.compactify();
+  }
+
+  /**
+   * Resolves the string, date and relational values of a row, in file order,
+   * and turns it into an instance.
+   *
+   * @param row the parsed row
+   * @param start the offset of the range the row came from, for errors
+   * @return the instance
+   * @throws IOException if a value cannot be resolved
+   */
+  protected Instance makeInstance(Row row, long start) throws IOException {
+    if (row.m_Tokens != null) {
+      for (int i = 0; i < row.m_Tokens.length; i++) {
+        String token = row.m_Tokens[i];
+        if (token == null) {
+          continue;
+        }
+        int index = (row.m_Indices == null) ? i : row.m_Indices[i];
+        Attribute att = m_Data.attribute(index);
+        switch (att.type()) {
+        case Attribute.STRING:
+          row.m_Values[i] = att.addStringValue(token);
+          break;
+        case Attribute.DATE:
+          try {
+            row.m_Values[i] = att.parseDate(token);
+          } catch (ParseException e) {
+            throw new IOException("unparseable date: " + token + ", line "
+              + lineOf(start));
+          }
+          break;
+        case Attribute.RELATIONAL:
+          try {
+            ArffLoader.ArffReader arff =
+              new ArffLoader.ArffReader(new StringReader(token), att
+                .relation(), 0);
+            row.m_Values[i] = att.addRelation(arff.getData());
+          } catch (Exception e) {
+            throw new IOException(e.toString() + " of line " + lineOf(start));
+          }
+          break;
+        default:
+          throw new IOException("unknown attribute type in column " + index);
+        }
+      }
+    }
+
+    if (row.m_Indices == null) {
+      return new Instance(row.m_Weight, row.m_Values);
+    } else {
+      return new SparseInstance(row.m_Weight, row.m_Values, row.m_Indices,
+        m_Data.numAttributes());
+    }
+  }
+
+  /**
+   * Parses a number like Double.valueOf(String). Plain decimal numbers with
+   * at most 15 significant digits and a small exponent are computed directly,
+   * which gives the correctly rounded result; everything else is handed to
+   * Double.parseDouble.
+   *
+   * @param buffer the characters
+   * @param offset the offset of the first character
+   * @param length the number of characters
+   * @return the number
+   * @throws NumberFormatException if the characters are not a number
+   */
+  public static double parseNumber(char[] buffer, int offset, int length) {
+    int end = offset + length;
+    int pos = offset;
+    boolean negative = false;
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean any = false;
+
+    if ((pos < end) && ((buffer[pos] == '-') || (buffer[pos] == '+'))) {
+      negative = (buffer[pos] == '-');
+      pos++;
+    }
+    while ((pos < end) && (buffer[pos] >= '0') && (buffer[pos] <= '9')) {
+      mantissa = 10 * mantissa + (buffer[pos] - '0');
+      if (mantissa != 0) {
+        digits++;
+      }
+      any = true;
+      pos++;
+      if (digits > 15) {
+        return Double.parseDouble(new String(buffer, offset, length));
+      }
+    }
+    if ((pos < end) && (buffer[pos] == '.')) {
+      pos++;
+      while ((pos < end) && (buffer[pos] >= '0') && (buffer[pos] <= '9')) {
+        mantissa = 10 * mantissa + (buffer[pos] - '0');
+        if (mantissa != 0) {
+          digits++;
+        }
+        exponent--;
+        any = true;
+        pos++;
+        if (digits > 15) {
+          return Double.parseDouble(new String(buffer, offset, length));
+        }
+      }
+    }
+    if (any && (pos < end) && ((buffer[pos] == 'e') || (buffer[pos] == 'E'))) {
+      pos++;
+      boolean negativeExp = false;
+      if ((pos < end) && ((buffer[pos] == '-') || (buffer[pos] == '+'))) {
+        negativeExp = (buffer[pos] == '-');
+        pos++;
+      }
+      int exp = 0;
+      int expDigits = 0;
+      while ((pos < end) && (buffer[pos] >= '0') && (buffer[pos] <= '9')
+        && (expDigits < 4)) {
+        exp = 10 * exp + (buffer[pos] - '0');
+        expDigits++;
+        pos++;
+      }
+      if (expDigits == 0) {
+        any = false;
+      }
+      exponent += negativeExp ? -exp : exp;
+    }
+
+    // anything unusual (NaN, Infinity, hex, type suffixes, errors)
+    if (!any || (pos != end)) {
+      return Double.parseDouble(new String(buffer, offset, length));
+    }
+
+    double result;
+    if (mantissa == 0) {
+      result = 0.0;
+    } else if (exponent == 0) {
+      result = mantissa;
+    } else if ((exponent > 0) && (exponent < POWERS_OF_TEN.length)) {
+      result = mantissa * POWERS_OF_TEN[exponent];
+    } else if ((exponent < 0) && (-exponent < POWERS_OF_TEN.length)) {
+      result = mantissa / POWERS_OF_TEN[-exponent];
+    } else {
+      return Double.parseDouble(new String(buffer, offset, length));
+    }
+
+    return negative ? -result : result;
+  }
+
+  /**
+   * Parses an index like Integer.valueOf(String).
+   *
+   * @param buffer the characters
+   * @param offset the offset of the first character
+   * @param length the number of characters
+   * @return the index
+   * @throws NumberFormatException if the characters are not an integer
+   */
+  protected static int parseIndex(char[] buffer, int offset, int length) {
+    if ((length == 0) || (length > 9)) {
+      return Integer.parseInt(new String(buffer, offset, length));
+    }
+    int result = 0;
+    for (int i = offset; i < offset + length; i++) {
+      if ((buffer[i] < '0') || (buffer[i] > '9')) {
+        return Integer.parseInt(new String(buffer, offset, length));
+      }
+      result = 10 * result + (buffer[i] - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Returns the header format
+   *
+   * @return the header format
+   */
+  public Instances getStructure() {
+    return new Instances(m_Data, 0);
+  }
+
+  /**
+   * Returns the data that was read
+   *
+   * @return the data
+   */
+  public Instances getData() {
+    return m_Data;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
@@ -22,6 +22,12 @@ package weka.associations;
 
 import weka.associations.AbstractAssociatorTest;
 import weka.associations.Associator;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Random;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -45,6 +51,71 @@ public class AprioriTest
     return new Apriori();
   }
 
+  /**
+   * Returns random nominal data with correlated attributes and a few
+   * missing values.
+   *
+   * @return		the data
+   */
+  protected Instances getBasketData() {
+    FastVector atts = new FastVector();
+    for (int i = 0; i < 10; i++) {
+      FastVector values = new FastVector();
+      values.addElement("a");
+      values.addElement("b");
+      if (i % 3 == 0)
+	values.addElement("c");
+      atts.addElement(new Attribute("att" + i, values));
+    }
+    Instances data = new Instances("baskets", atts, 200);
+
+    Random random = new Random(1);
+    for (int n = 0; n < 200; n++) {
+      double[] vals = new double[atts.size()];
+      for (int i = 0; i < vals.length; i++) {
+	int numValues = data.attribute(i).numValues();
+	if (i > 0 && random.nextDouble() < 0.6)
+	  vals[i] = Math.min(vals[i - 1], numValues - 1);
+	else
+	  vals[i] = random.nextInt(numValues);
+	if (random.nextDouble() < 0.02)
+	  vals[i] = Instance.missingValue();
+      }
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Tests whether vertical counting, with one and with several threads,
+   * finds the same item sets and rules as the level-wise counting.
+   */
+  public void testVerticalCounting() {
+    Instances data = getBasketData();
+    String[][] options = {
+	{"-N", "50", "-M", "0.05", "-C", "0.6", "-I"},
+	{"-N", "50", "-M", "0.05", "-C", "0.6", "-I", "-T", "1"}};
+    try {
+      for (int i = 0; i < options.length; i++) {
+	Apriori levelWise = new Apriori();
+	levelWise.setOptions((String[]) options[i].clone());
+	levelWise.buildAssociations(data);
+
+	for (int slots = 1; slots <= 3; slots += 2) {
+	  Apriori vertical = new Apriori();
+	  vertical.setOptions((String[]) options[i].clone());
+	  vertical.setVerticalCounting(true);
+	  vertical.setNumExecutionSlots(slots);
+	  vertical.buildAssociations(data);
+	  assertEquals(levelWise.toString(), vertical.toString());
+	}
+      }
+    } catch (Exception e) {
+      fail("Mining failed: " + e);
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(AprioriTest.class);
   }
@@ -0,0 +1,257 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.clusterers.forOPTICSAndDBScan.Databases;
+
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.DataObject;
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.EuclideanDataObject;
+import weka.clusterers.forOPTICSAndDBScan.DataObjects.ManhattanDataObject;
+import weka.clusterers.forOPTICSAndDBScan.Utils.EpsilonRange_ListElement;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Compares the queries of the indexed databases with those of the
+ * SequentialDatabase. Run from the command line with:<p/>
+ * java weka.clusterers.forOPTICSAndDBScan.Databases.IndexedDatabaseTest
+ *
+ * @version $Revision$
+ */
+public class IndexedDatabaseTest
+  extends TestCase {
+
+  /** the epsilons to query with */
+  protected static final double[] EPSILONS = {0.05, 0.2, 0.9};
+
+  public IndexedDatabaseTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Returns random data with three numeric attributes, one nominal
+   * attribute and a few missing values.
+   *
+   * @return		the data
+   */
+  protected Instances getData() {
+    FastVector values = new FastVector();
+    values.addElement("a");
+    values.addElement("b");
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("x"));
+    atts.addElement(new Attribute("y"));
+    atts.addElement(new Attribute("z"));
+    atts.addElement(new Attribute("n", values));
+    Instances data = new Instances("test", atts, 300);
+
+    Random random = new Random(1);
+    for (int i = 0; i < 300; i++) {
+      double[] vals = new double[4];
+      vals[0] = random.nextGaussian() + ((i % 3) * 4);
+      vals[1] = random.nextGaussian();
+      vals[2] = random.nextDouble();
+      vals[3] = random.nextInt(2);
+      if (i % 37 == 0)
+	vals[i % 4] = Instance.missingValue();
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Fills a database with the data.
+   *
+   * @param database	the database to fill
+   * @param manhattan	whether to use the Manhattan distance
+   * @return		the database
+   */
+  protected Database fill(Database database, boolean manhattan) {
+    Instances data = database.getInstances();
+    for (int i = 0; i < data.numInstances(); i++) {
+      DataObject dataObject;
+      if (manhattan)
+	dataObject = new ManhattanDataObject(data.instance(i), "" + i, database);
+      else
+	dataObject = new EuclideanDataObject(data.instance(i), "" + i, database);
+      database.insert(dataObject);
+    }
+    database.setMinMaxValues();
+    return database;
+  }
+
+  /**
+   * Compares the range queries and core distances of a database with those
+   * of the SequentialDatabase.
+   *
+   * @param database	the database to test
+   * @throws Exception	if a query fails
+   */
+  protected void compare(IndexedDatabase database) throws Exception {
+    for (int m = 0; m < 2; m++) {
+      Instances data = getData();
+      Database sequential = fill(new SequentialDatabase(data), m == 1);
+      IndexedDatabase indexed = (IndexedDatabase) fill(database.getClass()
+	  .getConstructor(new Class[]{Instances.class})
+	  .newInstance(new Object[]{data}), m == 1);
+      indexed.setNumExecutionSlots(3);
+
+      for (int e = 0; e < EPSILONS.length; e++) {
+	double epsilon = EPSILONS[e];
+	DataObject[] queries = new DataObject[data.numInstances()];
+	for (int i = 0; i < queries.length; i++)
+	  queries[i] = indexed.getDataObject("" + i);
+	List[] parallel = indexed.epsilonRangeQueries(epsilon, queries);
+
+	for (int i = 0; i < queries.length; i++) {
+	  String msg = database.getClass().getName() + ", epsilon " + epsilon
+	    + ", instance " + i;
+	  List expected = sequential.epsilonRangeQuery(
+	      epsilon, sequential.getDataObject("" + i));
+	  List actual = indexed.epsilonRangeQuery(epsilon, queries[i]);
+	  assertEquals(msg, expected.size(), actual.size());
+	  assertEquals(msg, expected.size(), parallel[i].size());
+	  for (int j = 0; j < expected.size(); j++) {
+	    String key = ((DataObject) expected.get(j)).getKey();
+	    assertEquals(msg, key, ((DataObject) actual.get(j)).getKey());
+	    assertEquals(msg, key, ((DataObject) parallel[i].get(j)).getKey());
+	  }
+
+	  List expectedCore = sequential.coreDistance(
+	      5, epsilon, sequential.getDataObject("" + i));
+	  List actualCore = indexed.coreDistance(5, epsilon, queries[i]);
+	  assertEquals(msg, expectedCore.get(2), actualCore.get(2));
+	  List expectedRange = (List) expectedCore.get(1);
+	  List actualRange = (List) actualCore.get(1);
+	  assertEquals(msg, expectedRange.size(), actualRange.size());
+	  for (int j = 0; j < expectedRange.size(); j++)
+	    assertEquals(msg,
+		((EpsilonRange_ListElement) expectedRange.get(j)).getDataObject().getKey(),
+		((EpsilonRange_ListElement) actualRange.get(j)).getDataObject().getKey());
+	}
+      }
+    }
+  }
+
+  /**
+   * Returns data on a lattice with a step that is not exact in binary, so
+   * that many dataObjects are at the same distance from a query-object and
+   * the distances are subject to rounding.
+   *
+   * @return		the data
+   */
+  protected Instances getLatticeData() {
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("x"));
+    atts.addElement(new Attribute("y"));
+    Instances data = new Instances("lattice", atts, 121);
+
+    for (int i = 0; i <= 10; i++) {
+      for (int j = 0; j <= 10; j++) {
+	double[] vals = new double[2];
+	vals[0] = 3.7 + i * 0.1;
+	vals[1] = -1.3 + j * 0.3;
+	data.add(new Instance(1.0, vals));
+      }
+    }
+
+    return data;
+  }
+
+  /**
+   * Compares range queries whose epsilon is the exact distance of other
+   * dataObjects, or just above it, with those of the SequentialDatabase.
+   * The dataObjects on the boundary must be excluded in the first case and
+   * included in the second.
+   *
+   * @param database	the database to test
+   * @throws Exception	if a query fails
+   */
+  protected void compareBoundary(IndexedDatabase database) throws Exception {
+    for (int m = 0; m < 2; m++) {
+      Instances data = getLatticeData();
+      Database sequential = fill(new SequentialDatabase(data), m == 1);
+      IndexedDatabase indexed = (IndexedDatabase) fill(database.getClass()
+	  .getConstructor(new Class[]{Instances.class})
+	  .newInstance(new Object[]{data}), m == 1);
+
+      int[] queries = {0, 17, 60, 120};
+      for (int q = 0; q < queries.length; q++) {
+	DataObject query = sequential.getDataObject("" + queries[q]);
+	for (int i = 0; i < data.numInstances(); i += 7) {
+	  double distance = query.distance(sequential.getDataObject("" + i));
+	  if (distance == 0)
+	    continue;
+	  double[] epsilons = {distance, distance + Math.ulp(distance)};
+	  for (int e = 0; e < epsilons.length; e++) {
+	    String msg = database.getClass().getName() + ", epsilon "
+	      + epsilons[e] + ", instance " + queries[q];
+	    List expected = sequential.epsilonRangeQuery(epsilons[e], query);
+	    List actual = indexed.epsilonRangeQuery(
+		epsilons[e], indexed.getDataObject("" + queries[q]));
+	    if (e == 1)
+	      assertTrue(msg, expected.contains(sequential.getDataObject("" + i)));
+	    assertEquals(msg, expected.size(), actual.size());
+	    for (int j = 0; j < expected.size(); j++)
+	      assertEquals(msg, ((DataObject) expected.get(j)).getKey(),
+		  ((DataObject) actual.get(j)).getKey());
+	  }
+	}
+      }
+    }
+  }
+
+  public void testGridDatabase() throws Exception {
+    compare(new GridDatabase(getData()));
+    compareBoundary(new GridDatabase(getLatticeData()));
+  }
+
+  public void testKDTreeDatabase() throws Exception {
+    compare(new KDTreeDatabase(getData()));
+    compareBoundary(new KDTreeDatabase(getLatticeData()));
+  }
+
+  public void testBallTreeDatabase() throws Exception {
+    compare(new BallTreeDatabase(getData()));
+    compareBoundary(new BallTreeDatabase(getLatticeData()));
+  }
+
+  public void testCoverTreeDatabase() throws Exception {
+    compare(new CoverTreeDatabase(getData()));
+    compareBoundary(new CoverTreeDatabase(getLatticeData()));
+  }
+
+  public static Test suite() {
+    return new TestSuite(IndexedDatabaseTest.class);
+  }
+
+  public static void main(String[] args){
+    junit.textui.TestRunner.run(suite());
+  }
+}
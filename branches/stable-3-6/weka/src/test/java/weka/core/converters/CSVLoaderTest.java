@@ -0,0 +1,321 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.core.converters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compares the data read by CSVLoader with a schema file, several execution
+ * slots or incrementally with the data read by the default batch path. Run from the command
+ * line with: <p/>
+ * java weka.core.converters.CSVLoaderTest
+ *
+ * @version $Revision$
+ */
+public class CSVLoaderTest
+  extends TestCase {
+
+  /** the number of rows to generate, spanning several blocks */
+  protected final static int NUM_ROWS = 2500;
+
+  /** the test file */
+  protected File m_File;
+
+  /** the schema file */
+  protected File m_Schema;
+
+  /**
+   * Constructs the <code>CSVLoaderTest</code>.
+   *
+   * @param name the name of the test class
+   */
+  public CSVLoaderTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Writes the test data to a temporary file. The rows contain numeric,
+   * nominal and string columns, quoted values and missing values.
+   *
+   * @throws Exception if writing fails
+   */
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    StringBuffer data = new StringBuffer("num,nom,str,mixed\n");
+    for (int i = 0; i < NUM_ROWS; i++) {
+      data.append((i % 13 == 0) ? "?" : Double.toString(i * 0.25 - 100));
+      data.append(',');
+      if (i % 17 == 0) {
+        data.append("?");
+      } else {
+        data.append((i % 3 == 0) ? "'b c'" : "a" + (i % 5));
+      }
+      data.append(',');
+      data.append("\"text " + i + "\"");
+      data.append(',');
+      data.append((i % 7 == 0) ? "x" : Integer.toString(i % 11));
+      data.append('\n');
+    }
+
+    m_File = File.createTempFile("weka", ".csv");
+    FileOutputStream out = new FileOutputStream(m_File);
+    out.write(data.toString().getBytes());
+    out.close();
+
+    m_Schema = File.createTempFile("weka", ".arff");
+  }
+
+  /**
+   * Removes the temporary files.
+   *
+   * @throws Exception if removing fails
+   */
+  @Override
+  protected void tearDown() throws Exception {
+    m_File.delete();
+    m_File = null;
+    m_Schema.delete();
+    m_Schema = null;
+
+    super.tearDown();
+  }
+
+  /**
+   * Returns a loader for the test file, with the third column as string
+   * attribute and a buffer large enough for all rows.
+   *
+   * @return the loader
+   * @throws Exception if setting the source fails
+   */
+  protected CSVLoader getLoader() throws Exception {
+    CSVLoader loader = new CSVLoader();
+    loader.setStringAttributes("3");
+    loader.setBufferSize(NUM_ROWS);
+    loader.setSource(m_File);
+    return loader;
+  }
+
+  /**
+   * Compares the given data with the data read by the default path.
+   *
+   * @param expected the data read by the default path
+   * @param actual the data to check
+   */
+  protected void compare(Instances expected, Instances actual) {
+    assertEquals("number of attributes", expected.numAttributes(),
+      actual.numAttributes());
+    for (int i = 0; i < expected.numAttributes(); i++) {
+      assertEquals("name of attribute " + i, expected.attribute(i).name(),
+        actual.attribute(i).name());
+      assertEquals("type of attribute " + i, expected.attribute(i).type(),
+        actual.attribute(i).type());
+    }
+    assertEquals("number of instances", expected.numInstances(),
+      actual.numInstances());
+    for (int i = 0; i < expected.numInstances(); i++) {
+      Instance exp = expected.instance(i);
+      Instance act = actual.instance(i);
+      assertEquals("weight of instance " + i, exp.weight(), act.weight(), 0.0);
+      for (int j = 0; j < exp.numAttributes(); j++) {
+        assertEquals("missing value " + j + " of instance " + i,
+          exp.isMissing(j), act.isMissing(j));
+        if (!exp.isMissing(j)) {
+          assertEquals("value " + j + " of instance " + i, exp.toString(j),
+            act.toString(j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests reading the data with the header of the default path as schema.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testSchema() throws Exception {
+    Instances expected = getLoader().getDataSet();
+
+    FileOutputStream out = new FileOutputStream(m_Schema);
+    out.write(new Instances(expected, 0).toString().getBytes());
+    out.close();
+
+    CSVLoader loader = getLoader();
+    loader.setSchemaFile(m_Schema);
+    Instances actual = loader.getDataSet();
+    compare(expected, actual);
+    assertEquals("header", new Instances(expected, 0).toString(),
+      new Instances(actual, 0).toString());
+  }
+
+  /**
+   * Tests reading the data on one and on several execution slots.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testExecutionSlots() throws Exception {
+    Instances expected = getLoader().getDataSet();
+
+    for (int slots = 1; slots <= 4; slots++) {
+      CSVLoader loader = getLoader();
+      loader.setNumExecutionSlots(slots);
+      compare(expected, loader.getDataSet());
+    }
+  }
+
+  /**
+   * Writes a file in which a label and a non-numeric value only occur after
+   * the first 100 rows to the test file.
+   *
+   * @throws Exception if writing fails
+   */
+  protected void writeLateValues() throws Exception {
+    StringBuffer data = new StringBuffer("nom,mixed\n");
+    for (int i = 0; i < 300; i++) {
+      data.append((i == 250) ? "late" : ((i % 2 == 0) ? "a" : "b"));
+      data.append(',');
+      data.append((i == 200) ? "x" : Integer.toString(i % 7));
+      data.append('\n');
+    }
+
+    FileOutputStream out = new FileOutputStream(m_File);
+    out.write(data.toString().getBytes());
+    out.close();
+  }
+
+  /**
+   * Reads the data row by row with <code>getNextInstance</code>.
+   *
+   * @param loader the loader to use
+   * @return the data
+   * @throws Exception if reading fails
+   */
+  protected Instances readIncrementally(CSVLoader loader) throws Exception {
+    Instances structure = loader.getStructure();
+    Instances result = new Instances(structure, 0);
+    Instance inst;
+    while ((inst = loader.getNextInstance(structure)) != null) {
+      result.add(inst);
+    }
+    return result;
+  }
+
+  /**
+   * Tests reading the data incrementally with the default settings.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testIncremental() throws Exception {
+    Instances expected = getLoader().getDataSet();
+
+    CSVLoader loader = new CSVLoader();
+    loader.setStringAttributes("3");
+    loader.setSource(m_File);
+    compare(expected, readIncrementally(loader));
+  }
+
+  /**
+   * Tests that values which first occur after 100 rows are read
+   * incrementally, with the default settings, and through
+   * <code>DataSource</code>, which streams CSV files.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testIncrementalLateValues() throws Exception {
+    writeLateValues();
+
+    CSVLoader loader = new CSVLoader();
+    loader.setSource(m_File);
+    Instances expected = loader.getDataSet();
+    assertTrue("late label", expected.attribute(0).indexOfValue("late") > -1);
+    assertTrue("late value", expected.attribute(1).isNominal());
+
+    loader = new CSVLoader();
+    loader.setSource(m_File);
+    compare(expected, readIncrementally(loader));
+
+    ConverterUtils.DataSource source =
+      new ConverterUtils.DataSource(m_File.getAbsolutePath());
+    assertTrue("incremental", source.isIncremental());
+    compare(expected, source.getDataSet());
+  }
+
+  /**
+   * Tests that values which first occur after an explicitly given number of
+   * buffered rows are rejected incrementally, unless a schema file is given.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testIncrementalBufferSize() throws Exception {
+    writeLateValues();
+
+    CSVLoader loader = new CSVLoader();
+    loader.setBufferSize(100);
+    loader.setSource(m_File);
+    try {
+      readIncrementally(loader);
+      fail("Value outside the buffered rows should fail");
+    } catch (IOException e) {
+      // expected
+    }
+
+    loader = new CSVLoader();
+    loader.setSource(m_File);
+    Instances expected = loader.getDataSet();
+
+    FileOutputStream out = new FileOutputStream(m_Schema);
+    out.write(new Instances(expected, 0).toString().getBytes());
+    out.close();
+
+    loader = new CSVLoader();
+    loader.setBufferSize(100);
+    loader.setSchemaFile(m_Schema);
+    loader.setSource(m_File);
+    compare(expected, readIncrementally(loader));
+  }
+
+  /**
+   * returns a test suite
+   *
+   * @return the test suite
+   */
+  public static Test suite() {
+    return new TestSuite(CSVLoaderTest.class);
+  }
+
+  /**
+   * for running the test from commandline
+   *
+   * @param args the commandline arguments - ignored
+   */
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
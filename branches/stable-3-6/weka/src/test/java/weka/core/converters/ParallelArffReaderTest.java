@@ -0,0 +1,186 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.core.converters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Instances;
+
+/**
+ * Compares the output of ParallelArffReader with ArffLoader.ArffReader.
+ * Run from the command line with: <p/>
+ * java weka.core.converters.ParallelArffReaderTest
+ *
+ * @version $Revision$
+ */
+public class ParallelArffReaderTest
+  extends TestCase {
+
+  /** the data, covering sparse rows, quotes, escapes and weights */
+  protected final static String DATA =
+    "% comment\n"
+    + "@relation 'parallel test'\n"
+    + "\n"
+    + "@attribute nom {a,'b c',\"d,e\"}\n"
+    + "@attribute num numeric\n"
+    + "@attribute str string\n"
+    + "@attribute dat date \"yyyy-MM-dd\"\n"
+    + "@attribute bag relational\n"
+    + "  @attribute x numeric\n"
+    + "@end bag\n"
+    + "\n"
+    + "@data\n"
+    + "a,1.5,hello,2014-01-02,'1\\n2'\n"
+    + "'b c',-0,'it\\'s',?,'3'\n"
+    + "% another comment\n"
+    + "\"d,e\",1e-5,\"x\\ty\",2014-12-31,'4\\n5\\n6' % trailing\n"
+    + "?,?,?,?,?\n"
+    + "\r\n"
+    + "a,123456789.0123456789,'?',2000-02-29,'7',{2.5}\n"
+    + "{1 3.25,2 sparse}\n"
+    + "{0 'b c', 3 2014-06-01} {0.5}\n"
+    + "{}\n"
+    + "a, 0.1 ,str,2014-01-01,'8'\r\n"
+    + "'b c',NaN,\"\",2014-01-01,'9'";
+
+  /** the test file */
+  protected File m_File;
+
+  /**
+   * Constructs the <code>ParallelArffReaderTest</code>.
+   *
+   * @param name the name of the test class
+   */
+  public ParallelArffReaderTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Writes the test data to a temporary file.
+   *
+   * @throws Exception if writing fails
+   */
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+
+    m_File = File.createTempFile("weka", ".arff");
+    FileOutputStream out = new FileOutputStream(m_File);
+    out.write(DATA.getBytes());
+    out.close();
+  }
+
+  /**
+   * Removes the temporary file.
+   *
+   * @throws Exception if removing fails
+   */
+  @Override
+  protected void tearDown() throws Exception {
+    m_File.delete();
+    m_File = null;
+
+    super.tearDown();
+  }
+
+  /**
+   * Compares the data read with the given settings with ArffReader's.
+   *
+   * @param numThreads the number of threads
+   * @param chunkSize the chunk size
+   * @throws Exception if reading fails
+   */
+  protected void compare(int numThreads, int chunkSize) throws Exception {
+    Instances expected =
+      new ArffLoader.ArffReader(new StringReader(DATA)).getData();
+    Instances actual =
+      new ParallelArffReader(m_File, numThreads, chunkSize).getData();
+
+    assertEquals("number of instances", expected.numInstances(),
+      actual.numInstances());
+    for (int i = 0; i < expected.numInstances(); i++) {
+      assertEquals("weight of instance " + i, expected.instance(i).weight(),
+        actual.instance(i).weight(), 0.0);
+      assertEquals("sparseness of instance " + i, expected.instance(i)
+        .getClass(), actual.instance(i).getClass());
+    }
+    assertEquals("data", expected.toString(), actual.toString());
+  }
+
+  /**
+   * Tests reading the file as a single chunk.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testSingleChunk() throws Exception {
+    compare(1, ParallelArffReader.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Tests reading the file in many small chunks on several threads.
+   *
+   * @throws Exception if reading fails
+   */
+  public void testManyChunks() throws Exception {
+    for (int size = 1; size < 64; size += 7) {
+      compare(3, size);
+    }
+  }
+
+  /**
+   * Tests the number parser against Double.valueOf.
+   */
+  public void testParseNumber() {
+    String[] numbers = { "0", "-0", "1", "-1.25", "0.1", "1e10", "1E-10",
+      "123456789012345", "1234567890123456789", "0.000001", "3.14159",
+      "1.7976931348623157E308", "4.9E-324", "NaN", "-Infinity", "1.", ".5",
+      "1e22", "1e23", "2.5f", "0x1p3", "+7" };
+
+    for (String number : numbers) {
+      char[] chars = number.toCharArray();
+      assertEquals(number, Double.valueOf(number).doubleValue(),
+        ParallelArffReader.parseNumber(chars, 0, chars.length), 0.0);
+    }
+  }
+
+  /**
+   * returns a test suite
+   *
+   * @return the test suite
+   */
+  public static Test suite() {
+    return new TestSuite(ParallelArffReaderTest.class);
+  }
+
+  /**
+   * for running the test from commandline
+   *
+   * @param args the commandline arguments - ignored
+   */
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -21,19 +21,31 @@
 
 package weka.associations;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.Attribute;
 import weka.core.Capabilities;
@@ -50,6 +62,7 @@ import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.TechnicalInformationHandler;
 import weka.core.Utils;
+import weka.core.converters.Loader;
 
 /**
  * <!-- globalinfo-start --> Class implementing the FP-growth algorithm for
@@ -147,6 +160,25 @@ import weka.core.Utils;
  *  with -transactions and/or -rules
  * </pre>
  * 
+ * <pre>
+ * -num-slots &lt;num&gt;
+ *  The number of threads to use for mining the tree
+ *  (0 = one per processor). (default = 1)
+ * </pre>
+ * 
+ * <pre>
+ * -partitions &lt;num&gt;
+ *  The number of partitions to split the frequent items into
+ *  when processing data off of disk (0 = build the tree in memory).
+ *  (default = 0)
+ * </pre>
+ * 
+ * <pre>
+ * -spill-dir &lt;dir&gt;
+ *  The directory to write the partitions to.
+ *  (default = the system's temporary directory)
+ * </pre>
+ * 
  * <!-- options-end -->
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
@@ -425,236 +457,238 @@ public class FPGrowth extends AbstractAssociator implements
   }
 
   /**
-   * This class holds the counts for projected tree nodes and header lists.
+   * An FP-tree held in parallel primitive arrays. The items are numbered in
+   * descending order of their frequency, so that the item numbers of a
+   * transaction are inserted in ascending order. Node 0 is the root. The
+   * children of a node are chained through their sibling links, and the
+   * nodes of an item through their node links, starting from the header
+   * table.
    */
-  protected static class ShadowCounts implements Serializable {
+  protected static class FPTree implements Serializable {
 
     /** For serialization */
-    private static final long serialVersionUID = 4435433714185969155L;
+    private static final long serialVersionUID = -3539436624390765427L;
 
-    /** Holds the counts at different recursion levels */
-    private final ArrayList<Integer> m_counts = new ArrayList<Integer>();
+    /** the items, indexed by their numbers (shared with conditional trees) */
+    protected BinaryItem[] m_items;
 
-    /**
-     * Get the count at the specified recursion depth.
-     * 
-     * @param recursionLevel the depth of the recursion.
-     * @return the count.
-     */
-    public int getCount(int recursionLevel) {
-      if (recursionLevel >= m_counts.size()) {
-        return 0;
-      } else {
-        return m_counts.get(recursionLevel);
-      }
-    }
+    /** the number of items that can occur in this tree */
+    protected int m_numItems;
 
-    /**
-     * Increase the count at a given recursion level.
-     * 
-     * @param recursionLevel the level at which to increase the count.
-     * @param incr the amount by which to increase the count.
-     */
-    public void increaseCount(int recursionLevel, int incr) {
-      // basically treat the list like a stack where we
-      // can add a new element, or increment the element
-      // at the top
-
-      if (recursionLevel == m_counts.size()) {
-        // new element
-        m_counts.add(incr);
-      } else if (recursionLevel == m_counts.size() - 1) {
-        // otherwise increment the top
-        int n = m_counts.get(recursionLevel).intValue();
-        m_counts.set(recursionLevel, (n + incr));
-      }
-    }
+    /** the number of nodes, including the root */
+    protected int m_numNodes;
 
-    /**
-     * Remove the count at the given recursion level.
-     * 
-     * @param recursionLevel the level at which to remove the count.
-     */
-    public void removeCount(int recursionLevel) {
-      if (recursionLevel < m_counts.size()) {
-        m_counts.remove(recursionLevel);
-      }
-    }
-  }
+    /** the item number at each node */
+    protected int[] m_item;
 
-  /**
-   * A node in the FP-tree.
-   */
-  protected static class FPTreeNode implements Serializable {
+    /** the parent of each node */
+    protected int[] m_parent;
 
-    /** For serialization */
-    private static final long serialVersionUID = 4396315323673737660L;
+    /** the count of each node */
+    protected int[] m_count;
 
-    /** link to another sibling at this level in the tree */
-    protected FPTreeNode m_levelSibling;
+    /** the first child of each node, -1 for none */
+    protected int[] m_firstChild;
 
-    /** link to the parent node */
-    protected FPTreeNode m_parent;
+    /** the next sibling of each node, -1 for none */
+    protected int[] m_nextSibling;
 
-    /** item at this node */
-    protected BinaryItem m_item;
+    /** the next node with the same item, -1 for none */
+    protected int[] m_nodeLink;
 
-    /** ID (for graphing the tree) */
-    protected int m_ID;
+    /** the header table: the first node of each item, -1 for none */
+    protected int[] m_header;
 
-    /** the children of this node */
-    protected Map<BinaryItem, FPTreeNode> m_children = new HashMap<BinaryItem, FPTreeNode>();
+    /** the child of the root for each item, -1 for none */
+    protected int[] m_rootChild;
 
-    /** counts associated with projected versions of this node */
-    protected ShadowCounts m_projectedCounts = new ShadowCounts();
+    /** the support of each item in this tree */
+    protected int[] m_support;
 
     /**
-     * Construct a new node with the given parent link and item.
+     * Create a new, empty tree.
      * 
-     * @param parent a pointer to the parent of this node.
-     * @param item the item at this node.
+     * @param items the items, indexed by their numbers.
+     * @param numItems the number of items (the first ones) that can occur in
+     *          this tree.
      */
-    public FPTreeNode(FPTreeNode parent, BinaryItem item) {
-      m_parent = parent;
-      m_item = item;
+    public FPTree(BinaryItem[] items, int numItems) {
+      m_items = items;
+      m_numItems = numItems;
+      m_header = new int[numItems];
+      m_rootChild = new int[numItems];
+      m_support = new int[numItems];
+      Arrays.fill(m_header, -1);
+      Arrays.fill(m_rootChild, -1);
+
+      int capacity = 64;
+      m_item = new int[capacity];
+      m_parent = new int[capacity];
+      m_count = new int[capacity];
+      m_firstChild = new int[capacity];
+      m_nextSibling = new int[capacity];
+      m_nodeLink = new int[capacity];
+
+      // the root
+      m_item[0] = -1;
+      m_parent[0] = -1;
+      m_firstChild[0] = -1;
+      m_nextSibling[0] = -1;
+      m_nodeLink[0] = -1;
+      m_numNodes = 1;
     }
 
     /**
-     * Insert an item set into the tree at this node. Removes the first item
-     * from the supplied item set and makes a recursive call to insert the
-     * remaining items.
+     * Insert an item set into the tree.
      * 
-     * @param itemSet the item set to insert.
-     * @param headerTable the header table for the tree.
+     * @param itemSet the item numbers, in ascending order.
+     * @param length the number of items to insert from the start of the
+     *          array.
      * @param incr the amount by which to increase counts.
      */
-    public void addItemSet(Collection<BinaryItem> itemSet,
-      Map<BinaryItem, FPTreeRoot.Header> headerTable, int incr) {
-
-      Iterator<BinaryItem> i = itemSet.iterator();
-
-      if (i.hasNext()) {
-        BinaryItem first = i.next();
-
-        FPTreeNode aChild;
-        if (!m_children.containsKey(first)) {
-          // not in the tree, so add it.
-          aChild = new FPTreeNode(this, first);
-          m_children.put(first, aChild);
-
-          // update the header
-          if (!headerTable.containsKey(first)) {
-            headerTable.put(first, new FPTreeRoot.Header());
-          }
-
-          // append new node to header list
-          headerTable.get(first).addToList(aChild);
-        } else {
-          // get the appropriate child node
-          aChild = m_children.get(first);
+    public void addItemSet(int[] itemSet, int length, int incr) {
+      int node = 0;
+      for (int i = 0; i < length; i++) {
+        int item = itemSet[i];
+        int child = (node == 0) ? m_rootChild[item] : findChild(node, item);
+        if (child < 0) {
+          child = addNode(node, item);
         }
-
-        // update counts in header table
-        headerTable.get(first).getProjectedCounts().increaseCount(0, incr);
-
-        // increase the child's count
-        aChild.increaseProjectedCount(0, incr);
-
-        // proceed recursively
-        itemSet.remove(first);
-        aChild.addItemSet(itemSet, headerTable, incr);
+        m_count[child] += incr;
+        m_support[item] += incr;
+        node = child;
       }
     }
 
     /**
-     * Increase the projected count at the given recursion level at this node
+     * Find the child of a node that holds the given item.
      * 
-     * @param recursionLevel the recursion level to increase the node count at.
-     * @param incr the amount by which to increase the count.
+     * @param node the node.
+     * @param item the item number.
+     * @return the child, or -1 if there is none.
      */
-    public void increaseProjectedCount(int recursionLevel, int incr) {
-      m_projectedCounts.increaseCount(recursionLevel, incr);
+    protected int findChild(int node, int item) {
+      for (int child = m_firstChild[node]; child >= 0; child = m_nextSibling[child]) {
+        if (m_item[child] == item) {
+          return child;
+        }
+      }
+      return -1;
     }
 
     /**
-     * Remove the projected count at the given recursion level for this node.
+     * Add a new node for an item below the given node, and link it into the
+     * header table.
      * 
-     * @param recursionLevel the recursion level at which to remove the count.
+     * @param parent the parent of the new node.
+     * @param item the item number.
+     * @return the new node.
      */
-    public void removeProjectedCount(int recursionLevel) {
-      m_projectedCounts.removeCount(recursionLevel);
+    protected int addNode(int parent, int item) {
+      if (m_numNodes == m_item.length) {
+        int capacity = 2 * m_item.length;
+        m_item = Arrays.copyOf(m_item, capacity);
+        m_parent = Arrays.copyOf(m_parent, capacity);
+        m_count = Arrays.copyOf(m_count, capacity);
+        m_firstChild = Arrays.copyOf(m_firstChild, capacity);
+        m_nextSibling = Arrays.copyOf(m_nextSibling, capacity);
+        m_nodeLink = Arrays.copyOf(m_nodeLink, capacity);
+      }
+
+      int node = m_numNodes++;
+      m_item[node] = item;
+      m_parent[node] = parent;
+      m_count[node] = 0;
+      m_firstChild[node] = -1;
+      m_nextSibling[node] = m_firstChild[parent];
+      m_firstChild[parent] = node;
+      m_nodeLink[node] = m_header[item];
+      m_header[item] = node;
+      if (parent == 0) {
+        m_rootChild[item] = node;
+      }
+
+      return node;
     }
 
     /**
-     * Get the projected count at the given recursion level for this node.
+     * Get the number of items that can occur in this tree.
      * 
-     * @param recursionLevel the recursion level at which to get the count.
-     * @return the count.
+     * @return the number of items.
      */
-    public int getProjectedCount(int recursionLevel) {
-      return m_projectedCounts.getCount(recursionLevel);
+    public int numItems() {
+      return m_numItems;
     }
 
     /**
-     * Get the parent node.
+     * Get the support of an item in this tree.
      * 
-     * @return the parent node.
+     * @param item the item number.
+     * @return the support.
      */
-    public FPTreeNode getParent() {
-      return m_parent;
+    public int getSupport(int item) {
+      return m_support[item];
     }
 
     /**
-     * Get the item at this node.
+     * Get the item with the given number.
      * 
-     * @return the item at this node.
+     * @param item the item number.
+     * @return the item.
      */
-    public BinaryItem getItem() {
-      return m_item;
+    public BinaryItem getItem(int item) {
+      return m_items[item];
     }
 
     /**
-     * Return a textual description of this node for a given recursion level.
+     * Whether the tree has no nodes besides the root.
      * 
-     * @param recursionLevel the recursion depth to use.
-     * @return a textual description of this node.
+     * @return true if the tree is empty.
      */
-    public String toString(int recursionLevel) {
-      return toString("", recursionLevel);
+    public boolean isEmpty() {
+      return m_numNodes == 1;
     }
 
     /**
-     * Return a textual description of this node for a given recursion level.
+     * Build the conditional tree of an item: the prefix paths of the item's
+     * nodes, weighted by the nodes' counts, without the items that are not
+     * frequent among them. The tree is only read, so several threads can
+     * build conditional trees at once.
      * 
-     * @param prefix a prefix string to prepend.
-     * @param recursionLevel the recursion level to use.
-     * @return a textual description of this node.
+     * @param item the item number.
+     * @param minSupport the minimum support.
+     * @return the conditional tree.
      */
-    public String toString(String prefix, int recursionLevel) {
-      StringBuffer buffer = new StringBuffer();
-      buffer.append(prefix);
-      buffer.append("|  ");
-      buffer.append(m_item.toString());
-      buffer.append(" (");
-      buffer.append(m_projectedCounts.getCount(recursionLevel));
-      buffer.append(")\n");
-
-      for (FPTreeNode node : m_children.values()) {
-        buffer.append(node.toString(prefix + "|  ", recursionLevel));
+    public FPTree conditionalTree(int item, int minSupport) {
+      // the items on the prefix paths come before the item
+      int[] counts = new int[item];
+      for (int node = m_header[item]; node >= 0; node = m_nodeLink[node]) {
+        for (int p = m_parent[node]; p > 0; p = m_parent[p]) {
+          counts[m_item[p]] += m_count[node];
+        }
       }
-      return buffer.toString();
-    }
 
-    protected int assignIDs(int lastID) {
-      int currentLastID = lastID + 1;
-      m_ID = currentLastID;
-      if (m_children != null) {
-        Collection<FPTreeNode> kids = m_children.values();
-        for (FPTreeNode n : kids) {
-          currentLastID = n.assignIDs(currentLastID);
+      FPTree result = new FPTree(m_items, item);
+      int[] path = new int[item];
+      for (int node = m_header[item]; node >= 0; node = m_nodeLink[node]) {
+        int length = 0;
+        for (int p = m_parent[node]; p > 0; p = m_parent[p]) {
+          if (counts[m_item[p]] >= minSupport) {
+            path[length++] = m_item[p];
+          }
+        }
+        // the path was collected bottom up
+        for (int i = 0, j = length - 1; i < j; i++, j--) {
+          int temp = path[i];
+          path[i] = path[j];
+          path[j] = temp;
+        }
+        if (length > 0) {
+          result.addItemSet(path, length, m_count[node]);
         }
       }
-      return currentLastID;
+
+      return result;
     }
 
     /**
@@ -663,127 +697,164 @@ public class FPGrowth extends AbstractAssociator implements
      * @param text a StringBuffer to store the graph description in.
      */
     public void graphFPTree(StringBuffer text) {
-      if (m_children != null) {
-        Collection<FPTreeNode> kids = m_children.values();
-        for (FPTreeNode n : kids) {
-          text.append("N" + n.m_ID);
-          text.append(" [label=\"");
-          text.append(n.getItem().toString() + " (" + n.getProjectedCount(0)
-            + ")\\n");
-          text.append("\"]\n");
-          n.graphFPTree(text);
-          text.append("N" + m_ID + "->" + "N" + n.m_ID + "\n");
-        }
+      for (int node = 1; node < m_numNodes; node++) {
+        text.append("N" + node);
+        text.append(" [label=\"");
+        text.append(m_items[m_item[node]].toString() + " (" + m_count[node]
+          + ")\\n");
+        text.append("\"]\n");
+        text.append("N" + m_parent[node] + "->" + "N" + node + "\n");
       }
     }
-  }
-
-  /**
-   * Root of the FPTree
-   */
-  private static class FPTreeRoot extends FPTreeNode {
-
-    /** For serialization */
-    private static final long serialVersionUID = 632150939785333297L;
 
     /**
-     * Stores a header entry for an FPTree
+     * Get a textual description of the tree.
+     * 
+     * @return the textual description of the tree.
      */
-    protected static class Header implements Serializable {
-
-      /** For serialization */
-      private static final long serialVersionUID = -6583156284891368909L;
-
-      /** The list of pointers into the tree structure */
-      protected List<FPTreeNode> m_headerList = new LinkedList<FPTreeNode>();
-
-      /** Projected header counts for this entry */
-      protected ShadowCounts m_projectedHeaderCounts = new ShadowCounts();
+    @Override
+    public String toString() {
+      StringBuffer result = new StringBuffer();
+      result.append("+ ROOT\n");
+      toString(result, 0, "|  ");
+      return result.toString();
+    }
 
-      /**
-       * Add a tree node into the list for this header entry.
-       * 
-       * @param toAdd the node to add.
-       */
-      public void addToList(FPTreeNode toAdd) {
-        m_headerList.add(toAdd);
+    /**
+     * Append a textual description of the subtrees below a node.
+     * 
+     * @param buffer the buffer to append to.
+     * @param node the node.
+     * @param prefix the string to use as a prefix for indenting nodes.
+     */
+    protected void toString(StringBuffer buffer, int node, String prefix) {
+      for (int child = m_firstChild[node]; child >= 0; child = m_nextSibling[child]) {
+        buffer.append(prefix);
+        buffer.append("|  ");
+        buffer.append(m_items[m_item[child]].toString());
+        buffer.append(" (");
+        buffer.append(m_count[child]);
+        buffer.append(")\n");
+        toString(buffer, child, prefix + "|  ");
       }
+    }
+  }
 
-      /**
-       * Get the list of nodes for this header entry.
-       * 
-       * @return the list of nodes for this header entry.
-       */
-      public List<FPTreeNode> getHeaderList() {
-        return m_headerList;
-      }
+  /**
+   * Mines the conditional tree of one item of the FP-tree. The tasks of the
+   * items of the full tree are run by a thread pool.
+   */
+  protected class MineTask implements Callable<List<FrequentBinaryItemSet>> {
 
-      /**
-       * Get the projected counts for this header entry.
-       * 
-       * @return the projected counts for this header entry.
-       */
-      public ShadowCounts getProjectedCounts() {
-        return m_projectedHeaderCounts;
-      }
-    }
+    /** the tree */
+    protected FPTree m_tree;
+
+    /** the item number */
+    protected int m_item;
 
-    /** Stores the header table as mapped Header entries */
-    protected Map<BinaryItem, Header> m_headerTable = new HashMap<BinaryItem, Header>();
+    /** the minimum support */
+    protected int m_minSupport;
 
     /**
-     * Create a new FPTreeRoot.
+     * Create a new task.
+     * 
+     * @param tree the tree.
+     * @param item the item number.
+     * @param minSupport the minimum support.
      */
-    public FPTreeRoot() {
-      super(null, null);
+    public MineTask(FPTree tree, int item, int minSupport) {
+      m_tree = tree;
+      m_item = item;
+      m_minSupport = minSupport;
     }
 
     /**
-     * Insert an item set into the tree.
+     * Mine the item sets that end with the item.
      * 
-     * @param itemSet the item set to insert into the tree.
-     * @param incr the increment by which to increase counters.
+     * @return the large item sets found.
      */
-    public void addItemSet(Collection<BinaryItem> itemSet, int incr) {
-      super.addItemSet(itemSet, m_headerTable, incr);
+    @Override
+    public List<FrequentBinaryItemSet> call() {
+      List<FrequentBinaryItemSet> result = new ArrayList<FrequentBinaryItemSet>();
+      mineItem(m_tree, m_item, result, new FrequentBinaryItemSet(
+        new ArrayList<BinaryItem>(), 0), m_minSupport);
+      return result;
     }
+  }
+
+  /**
+   * Task that builds the FP-tree of one partition of the transactions from
+   * the projected database that was spilled to disk, and mines the item sets
+   * that end with the items of the partition.
+   */
+  protected class PartitionTask implements
+    Callable<List<FrequentBinaryItemSet>> {
+
+    /** the file holding the projected database */
+    protected File m_file;
+
+    /** the frequent items, indexed by their numbers */
+    protected BinaryItem[] m_items;
+
+    /** the first item of the partition */
+    protected int m_first;
+
+    /** the item after the last item of the partition */
+    protected int m_end;
+
+    /** the minimum support */
+    protected int m_minSupport;
 
     /**
-     * Get the header table for this tree.
+     * Create a new task.
      * 
-     * @return the header table for this tree.
+     * @param file the file holding the projected database.
+     * @param items the frequent items, indexed by their numbers.
+     * @param first the first item of the partition.
+     * @param end the item after the last item of the partition.
+     * @param minSupport the minimum support.
      */
-    public Map<BinaryItem, Header> getHeaderTable() {
-      return m_headerTable;
-    }
-
-    public boolean isEmpty(int recursionLevel) {
-      for (FPTreeNode c : m_children.values()) {
-        if (c.getProjectedCount(recursionLevel) > 0) {
-          return false;
-        }
-      }
-      return true;
+    public PartitionTask(File file, BinaryItem[] items, int first, int end,
+      int minSupport) {
+      m_file = file;
+      m_items = items;
+      m_first = first;
+      m_end = end;
+      m_minSupport = minSupport;
     }
 
     /**
-     * Get a textual description of the tree at a given recursion (projection)
-     * level.
+     * Build the tree of the partition and mine the item sets that end with
+     * its items.
      * 
-     * @param pad the string to use as a prefix for indenting nodes.
-     * @param recursionLevel the recursion level (projection) to use.
-     * @return the textual description of the tree.
+     * @return the large item sets found, in descending order of their last
+     *         item.
+     * @throws IOException if the projected database can't be read.
      */
     @Override
-    public String toString(String pad, int recursionLevel) {
-      StringBuffer result = new StringBuffer();
-      result.append(pad);
-      result.append("+ ROOT\n");
+    public List<FrequentBinaryItemSet> call() throws IOException {
+      FPTree tree = new FPTree(m_items, m_end);
+      int[] transaction = new int[m_end];
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(m_file)));
+      try {
+        int length;
+        while ((length = readVarInt(in)) >= 0) {
+          for (int i = 0; i < length; i++) {
+            transaction[i] = readVarInt(in);
+          }
+          tree.addItemSet(transaction, length, 1);
+        }
+      } finally {
+        in.close();
+      }
 
-      for (FPTreeNode node : m_children.values()) {
-        result.append(node.toString(pad + "|  ", recursionLevel));
+      List<FrequentBinaryItemSet> result = new ArrayList<FrequentBinaryItemSet>();
+      for (int item = m_end - 1; item >= m_first; item--) {
+        mineItem(tree, item, result, new FrequentBinaryItemSet(
+          new ArrayList<BinaryItem>(), 0), m_minSupport);
       }
-      return result.toString();
+      return result;
     }
   }
 
@@ -966,6 +1037,19 @@ public class FPGrowth extends AbstractAssociator implements
   /** Use OR rather than AND when considering must contain lists */
   protected boolean m_mustContainOR = false;
 
+  /** The number of threads to mine the tree with, 0 for one per processor */
+  protected int m_numExecutionSlots = 1;
+
+  /**
+   * The number of partitions to split the frequent items into when mining
+   * data read incrementally from a Loader, 0 to build the FP-tree in memory
+   */
+  protected int m_numPartitions = 0;
+
+  /** The directory to write the projected databases of the partitions to */
+  protected File m_spillDirectory = new File(
+    System.getProperty("java.io.tmpdir"));
+
   /** If set, then only output rules containing these itmes */
   protected String m_rulesMustContain = "";
 
@@ -1108,7 +1192,8 @@ public class FPGrowth extends AbstractAssociator implements
   /**
    * Get the singleton items in the data
    * 
-   * @param source the source of the data (either Instances or an ArffLoader).
+   * @param source the source of the data (either Instances or an incremental
+   *          Loader).
    * @return a list of singleton item sets
    * @throws Exception if the singletons can't be found for some reason
    */
@@ -1118,8 +1203,8 @@ public class FPGrowth extends AbstractAssociator implements
 
     if (source instanceof Instances) {
       data = (Instances) source;
-    } else if (source instanceof weka.core.converters.ArffLoader) {
-      data = ((weka.core.converters.ArffLoader) source).getStructure();
+    } else if (source instanceof Loader) {
+      data = ((Loader) source).getStructure();
     }
 
     for (int i = 0; i < data.numAttributes(); i++) {
@@ -1134,8 +1219,8 @@ public class FPGrowth extends AbstractAssociator implements
         Instance current = data.instance(i);
         processSingleton(current, singletons);
       }
-    } else if (source instanceof weka.core.converters.ArffLoader) {
-      weka.core.converters.ArffLoader loader = (weka.core.converters.ArffLoader) source;
+    } else if (source instanceof Loader) {
+      Loader loader = (Loader) source;
       Instance current = null;
       int count = 0;
       while ((current = loader.getNextInstance(data)) != null) {
@@ -1194,72 +1279,134 @@ public class FPGrowth extends AbstractAssociator implements
    */
 
   /**
-   * Inserts a single instance into the FPTree.
+   * Collects the item numbers of the frequent items of an instance.
    * 
-   * @param current the instance to insert
-   * @param singletons the singleton item sets
-   * @param tree the tree to insert into
-   * @param minSupport the minimum support threshold
+   * @param current the instance
+   * @param itemNumbers the number of the item of each attribute, -1 if the
+   *          item does not meet the minimum support
+   * @param transaction a buffer for the item numbers of the instance, which
+   *          are stored in ascending order
+   * @return the number of items stored in the buffer
    */
-  private void insertInstance(Instance current,
-    ArrayList<BinaryItem> singletons, FPTreeRoot tree, int minSupport) {
-    ArrayList<BinaryItem> transaction = new ArrayList<BinaryItem>();
+  private int transactionItems(Instance current, int[] itemNumbers,
+    int[] transaction) {
+    int length = 0;
     if (current instanceof SparseInstance) {
       for (int j = 0; j < current.numValues(); j++) {
-        int attIndex = current.index(j);
-        if (singletons.get(attIndex).getFrequency() >= minSupport) {
-          transaction.add(singletons.get(attIndex));
+        int item = itemNumbers[current.index(j)];
+        if (item >= 0) {
+          transaction[length++] = item;
         }
       }
-      Collections.sort(transaction);
-      tree.addItemSet(transaction, 1);
     } else {
       for (int j = 0; j < current.numAttributes(); j++) {
         if (!current.isMissing(j)) {
           if (current.attribute(j).numValues() == 1
             || current.value(j) == m_positiveIndex - 1) {
-            if (singletons.get(j).getFrequency() >= minSupport) {
-              transaction.add(singletons.get(j));
+            int item = itemNumbers[j];
+            if (item >= 0) {
+              transaction[length++] = item;
             }
           }
         }
       }
-      Collections.sort(transaction);
-      tree.addItemSet(transaction, 1);
     }
+    Arrays.sort(transaction, 0, length);
+    return length;
+  }
+
+  /**
+   * Inserts a single instance into the FPTree.
+   * 
+   * @param current the instance to insert
+   * @param itemNumbers the number of the item of each attribute, -1 if the
+   *          item does not meet the minimum support
+   * @param tree the tree to insert into
+   * @param transaction a buffer for the item numbers of the instance
+   */
+  private void insertInstance(Instance current, int[] itemNumbers,
+    FPTree tree, int[] transaction) {
+    tree.addItemSet(transaction,
+      transactionItems(current, itemNumbers, transaction), 1);
+  }
+
+  /**
+   * Returns the singleton item sets that meet the minimum support, in
+   * descending order of their frequency. The position of an item in this list
+   * is its number in the FP-tree.
+   * 
+   * @param singletons the singleton item sets
+   * @param minSupport the minimum support
+   * @return the frequent items
+   */
+  protected ArrayList<BinaryItem> frequentItems(
+    ArrayList<BinaryItem> singletons, int minSupport) {
+    ArrayList<BinaryItem> frequent = new ArrayList<BinaryItem>();
+    for (BinaryItem b : singletons) {
+      if (b.getFrequency() >= minSupport) {
+        frequent.add(b);
+      }
+    }
+    Collections.sort(frequent);
+    return frequent;
+  }
+
+  /**
+   * Returns the item number of each attribute.
+   * 
+   * @param numAttributes the number of attributes
+   * @param frequent the frequent items, as returned by frequentItems()
+   * @return the item numbers, -1 for attributes whose item does not meet the
+   *         minimum support
+   */
+  protected int[] itemNumbers(int numAttributes,
+    ArrayList<BinaryItem> frequent) {
+    int[] itemNumbers = new int[numAttributes];
+    Arrays.fill(itemNumbers, -1);
+    for (int i = 0; i < frequent.size(); i++) {
+      itemNumbers[frequent.get(i).getAttribute().index()] = i;
+    }
+    return itemNumbers;
   }
 
   /**
    * Construct the frequent pattern tree by inserting each transaction in the
    * data into the tree. Only those items from each transaction that meet the
-   * minimum support threshold are inserted.
+   * minimum support threshold are inserted. The items are numbered in
+   * descending order of their frequency.
    * 
    * @param singletons the singleton item sets
-   * @param data the Instances containing the transactions
+   * @param dataSource the source of the data (either Instances or an
+   *          incremental Loader)
    * @param minSupport the minimum support
-   * @return the root of the tree
+   * @return the tree
    */
-  protected FPTreeRoot buildFPTree(ArrayList<BinaryItem> singletons,
+  protected FPTree buildFPTree(ArrayList<BinaryItem> singletons,
     Object dataSource, int minSupport) throws Exception {
 
-    FPTreeRoot tree = new FPTreeRoot();
+    ArrayList<BinaryItem> frequent = frequentItems(singletons, minSupport);
+    int[] itemNumbers = itemNumbers(singletons.size(), frequent);
+    int[] transaction = new int[frequent.size()];
+
+    FPTree tree = new FPTree(frequent.toArray(new BinaryItem[frequent.size()]),
+      frequent.size());
     Instances data = null;
     if (dataSource instanceof Instances) {
       data = (Instances) dataSource;
-    } else if (dataSource instanceof weka.core.converters.ArffLoader) {
-      data = ((weka.core.converters.ArffLoader) dataSource).getStructure();
+    } else if (dataSource instanceof Loader) {
+      data = ((Loader) dataSource).getStructure();
     }
 
     if (dataSource instanceof Instances) {
       for (int i = 0; i < data.numInstances(); i++) {
-        insertInstance(data.instance(i), singletons, tree, minSupport);
+        insertInstance(data.instance(i), itemNumbers, tree, transaction);
       }
-    } else if (dataSource instanceof weka.core.converters.ArffLoader) {
-      weka.core.converters.ArffLoader loader = (weka.core.converters.ArffLoader) dataSource;
+    } else if (dataSource instanceof Loader) {
+      Loader loader = (Loader) dataSource;
       Instance current = null;
       int count = 0;
       while ((current = loader.getNextInstance(data)) != null) {
-        insertInstance(current, singletons, tree, minSupport);
+        insertInstance(current, itemNumbers, tree, transaction);
         count++;
         if (count % m_offDiskReportingFrequency == 0) {
           System.err.println("build tree done: " + count);
@@ -1303,84 +1450,305 @@ public class FPGrowth extends AbstractAssociator implements
    */
 
   /**
-   * Find large item sets in the FP-tree.
+   * Find large item sets in the FP-tree. The conditional trees of the items
+   * are mined by getNumExecutionSlots() threads of a thread pool, and the
+   * item sets found are collected in the order of the items.
    * 
-   * @param tree the root of the tree to mine
+   * @param tree the tree to mine
    * @param largeItemSets holds the large item sets found
-   * @param recursionLevel the recursion level for the current projected counts
-   * @param conditionalItems the current set of items that the current
-   *          (projected) tree is conditional on
    * @param minSupport the minimum acceptable support
+   * @throws Exception if mining is interrupted
    */
-  protected void mineTree(FPTreeRoot tree, FrequentItemSets largeItemSets,
-    int recursionLevel, FrequentBinaryItemSet conditionalItems, int minSupport) {
+  protected void mineTree(FPTree tree, FrequentItemSets largeItemSets,
+    int minSupport) throws Exception {
 
-    if (!tree.isEmpty(recursionLevel)) {
-      if (m_maxItems > 0 && recursionLevel >= m_maxItems) {
-        // don't mine any further
-        return;
+    final List<MineTask> tasks = new ArrayList<MineTask>();
+    for (int item = tree.numItems() - 1; item >= 0; item--) {
+      if (tree.getSupport(item) >= minSupport) {
+        tasks.add(new MineTask(tree, item, minSupport));
       }
+    }
 
-      Map<BinaryItem, FPTreeRoot.Header> headerTable = tree.getHeaderTable();
-      Set<BinaryItem> keys = headerTable.keySet();
-      // System.err.println("Number of freq item sets collected " +
-      // largeItemSets.size());
-      Iterator<BinaryItem> i = keys.iterator();
-      while (i.hasNext()) {
-        BinaryItem item = i.next();
-        FPTreeRoot.Header itemHeader = headerTable.get(item);
-
-        // check for minimum support at this level
-        int support = itemHeader.getProjectedCounts().getCount(recursionLevel);
-        if (support >= minSupport) {
-          // process header list at this recursion level
-          for (FPTreeNode n : itemHeader.getHeaderList()) {
-            // push count up path to root
-            int currentCount = n.getProjectedCount(recursionLevel);
-            if (currentCount > 0) {
-              FPTreeNode temp = n.getParent();
-              while (temp != tree) {
-                // set/increase for the node
-                temp.increaseProjectedCount(recursionLevel + 1, currentCount);
-
-                // set/increase for the header table
-                headerTable.get(temp.getItem()).getProjectedCounts()
-                  .increaseCount(recursionLevel + 1, currentCount);
-
-                temp = temp.getParent();
-              }
-            }
+    int numSlots = (m_numExecutionSlots == 0) ? Runtime.getRuntime()
+      .availableProcessors() : m_numExecutionSlots;
+    if (numSlots <= 1 || tasks.size() <= 1) {
+      for (MineTask task : tasks) {
+        for (FrequentBinaryItemSet set : task.call()) {
+          largeItemSets.addItemSet(set);
+        }
+      }
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numSlots);
+    try {
+      List<Future<List<FrequentBinaryItemSet>>> futures = new ArrayList<Future<List<FrequentBinaryItemSet>>>();
+      for (MineTask task : tasks) {
+        futures.add(pool.submit(task));
+      }
+      for (Future<List<FrequentBinaryItemSet>> future : futures) {
+        try {
+          for (FrequentBinaryItemSet set : future.get()) {
+            largeItemSets.addItemSet(set);
           }
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 
-          FrequentBinaryItemSet newConditional = (FrequentBinaryItemSet) conditionalItems
-            .clone();
+  /**
+   * Find the large item sets in an FP-tree.
+   * 
+   * @param tree the tree to mine
+   * @param largeItemSets holds the large item sets found
+   * @param conditionalItems the current set of items that the current
+   *          (conditional) tree is conditional on
+   * @param minSupport the minimum acceptable support
+   */
+  protected void mineTree(FPTree tree,
+    List<FrequentBinaryItemSet> largeItemSets,
+    FrequentBinaryItemSet conditionalItems, int minSupport) {
 
-          // this item gets added to the conditional items
-          newConditional.addItem(item);
-          newConditional.setSupport(support);
+    for (int item = tree.numItems() - 1; item >= 0; item--) {
+      mineItem(tree, item, largeItemSets, conditionalItems, minSupport);
+    }
+  }
 
-          // now add this conditional item set to the list of large item sets
-          largeItemSets.addItemSet(newConditional);
+  /**
+   * Find the large item sets in an FP-tree that end with the given item:
+   * the item itself (added to the conditional items), and the ones found in
+   * its conditional tree.
+   * 
+   * @param tree the tree to mine
+   * @param item the item number
+   * @param largeItemSets holds the large item sets found
+   * @param conditionalItems the current set of items that the current
+   *          (conditional) tree is conditional on
+   * @param minSupport the minimum acceptable support
+   */
+  protected void mineItem(FPTree tree, int item,
+    List<FrequentBinaryItemSet> largeItemSets,
+    FrequentBinaryItemSet conditionalItems, int minSupport) {
 
-          // now recursively process the new tree
-          mineTree(tree, largeItemSets, recursionLevel + 1, newConditional,
-            minSupport);
+    int support = tree.getSupport(item);
+    if (support < minSupport) {
+      return;
+    }
 
-          // reverse the propagated counts
-          for (FPTreeNode n : itemHeader.getHeaderList()) {
-            FPTreeNode temp = n.getParent();
-            while (temp != tree) {
-              temp.removeProjectedCount(recursionLevel + 1);
-              temp = temp.getParent();
-            }
+    FrequentBinaryItemSet newConditional = (FrequentBinaryItemSet) conditionalItems
+      .clone();
+
+    // this item gets added to the conditional items
+    newConditional.addItem(tree.getItem(item));
+    newConditional.setSupport(support);
+
+    // now add this conditional item set to the list of large item sets
+    largeItemSets.add(newConditional);
+
+    if (m_maxItems > 0 && newConditional.numberOfItems() >= m_maxItems) {
+      // don't mine any further
+      return;
+    }
+
+    // now recursively process the conditional tree
+    FPTree conditional = tree.conditionalTree(item, minSupport);
+    if (!conditional.isEmpty()) {
+      mineTree(conditional, largeItemSets, newConditional, minSupport);
+    }
+  }
+
+  /**
+   * Writes a non-negative integer in a variable number of bytes, seven bits
+   * per byte, so that the small item numbers of the frequent items take a
+   * single byte.
+   * 
+   * @param out the stream to write to
+   * @param value the value
+   * @throws IOException if writing fails
+   */
+  protected static void writeVarInt(DataOutputStream out, int value)
+    throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads a non-negative integer written by writeVarInt().
+   * 
+   * @param in the stream to read from
+   * @return the value, -1 at the end of the stream
+   * @throws IOException if reading fails
+   */
+  protected static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    int shift = 0;
+    int b;
+    while ((b = in.read()) >= 0) {
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+    }
+    if (shift > 0) {
+      throw new IOException("Unexpected end of spill file");
+    }
+    return -1;
+  }
+
+  /**
+   * Find large item sets without holding the FP-tree of all the data in
+   * memory. The frequent items are split into getNumPartitions() ranges of
+   * consecutive item numbers, balanced by the estimated size of their
+   * projected databases. A second pass over the data writes, for each
+   * partition that a transaction has items in, the prefix of the (sorted)
+   * transaction up to its last item in the partition to a spill file of that
+   * partition. A prefix holds all the items that can precede the partition's
+   * items in an item set, so the tree built from a spill file contains the
+   * complete conditional trees of the partition's items, and the partitions
+   * can be mined independently of each other by getNumExecutionSlots()
+   * threads. Only as many partition trees as there are threads are in memory
+   * at any one time. The item sets found are collected in the same order as
+   * mineTree() does.
+   * 
+   * @param singletons the singleton item sets, counted in the first pass
+   * @param loader the loader to read the transactions from
+   * @param largeItemSets holds the large item sets found
+   * @param minSupport the minimum acceptable support
+   * @throws Exception if the spill files can't be written or read, or mining
+   *           is interrupted
+   */
+  protected void mineOutOfCore(ArrayList<BinaryItem> singletons,
+    Loader loader, FrequentItemSets largeItemSets, int minSupport)
+    throws Exception {
+
+    ArrayList<BinaryItem> frequent = frequentItems(singletons, minSupport);
+    int numItems = frequent.size();
+    if (numItems == 0) {
+      return;
+    }
+    int[] itemNumbers = itemNumbers(singletons.size(), frequent);
+    BinaryItem[] items = frequent.toArray(new BinaryItem[numItems]);
+
+    // an item's prefixes are at most as long as its number, so the size of
+    // the projected database of a partition is estimated by summing the
+    // supports of its items weighted by their numbers
+    int numPartitions = Math.min(m_numPartitions, numItems);
+    double total = 0;
+    for (int i = 0; i < numItems; i++) {
+      total += (double) items[i].getFrequency() * (i + 1);
+    }
+    int[] first = new int[numPartitions + 1];
+    int[] partitionOf = new int[numItems];
+    int current = 0;
+    double sum = 0;
+    for (int i = 0; i < numItems; i++) {
+      if (current < numPartitions - 1 && i > first[current]
+        && (sum >= total * (current + 1) / numPartitions
+          || numItems - i == numPartitions - 1 - current)) {
+        first[++current] = i;
+      }
+      partitionOf[i] = current;
+      sum += (double) items[i].getFrequency() * (i + 1);
+    }
+    first[numPartitions] = numItems;
+
+    File[] files = new File[numPartitions];
+    DataOutputStream[] out = new DataOutputStream[numPartitions];
+    try {
+      for (int p = 0; p < numPartitions; p++) {
+        files[p] = File.createTempFile("fpgrowth", ".part", m_spillDirectory);
+        files[p].deleteOnExit();
+        out[p] = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(files[p])));
+      }
+
+      Instances structure = loader.getStructure();
+      int[] transaction = new int[numItems];
+      Instance inst = null;
+      int count = 0;
+      while ((inst = loader.getNextInstance(structure)) != null) {
+        int j = transactionItems(inst, itemNumbers, transaction) - 1;
+        while (j >= 0) {
+          int p = partitionOf[transaction[j]];
+          writeVarInt(out[p], j + 1);
+          for (int i = 0; i <= j; i++) {
+            writeVarInt(out[p], transaction[i]);
           }
+          while (j >= 0 && partitionOf[transaction[j]] == p) {
+            j--;
+          }
+        }
+        count++;
+        if (count % m_offDiskReportingFrequency == 0) {
+          System.err.println("Spilling partitions: done " + count);
+        }
+      }
+      for (int p = 0; p < numPartitions; p++) {
+        out[p].close();
+        out[p] = null;
+      }
 
-          // reverse the propagated counts in the header list
-          // at this recursion level
-          for (FPTreeRoot.Header h : headerTable.values()) {
-            h.getProjectedCounts().removeCount(recursionLevel + 1);
+      List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+      for (int p = numPartitions - 1; p >= 0; p--) {
+        tasks.add(new PartitionTask(files[p], items, first[p], first[p + 1],
+          minSupport));
+      }
+
+      int numSlots = (m_numExecutionSlots == 0) ? Runtime.getRuntime()
+        .availableProcessors() : m_numExecutionSlots;
+      if (numSlots <= 1 || tasks.size() <= 1) {
+        for (PartitionTask task : tasks) {
+          for (FrequentBinaryItemSet set : task.call()) {
+            largeItemSets.addItemSet(set);
           }
         }
+        return;
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(numSlots);
+      try {
+        List<Future<List<FrequentBinaryItemSet>>> futures = new ArrayList<Future<List<FrequentBinaryItemSet>>>();
+        for (PartitionTask task : tasks) {
+          futures.add(pool.submit(task));
+        }
+        for (Future<List<FrequentBinaryItemSet>> future : futures) {
+          try {
+            for (FrequentBinaryItemSet set : future.get()) {
+              largeItemSets.addItemSet(set);
+            }
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+              throw (Exception) e.getCause();
+            }
+            throw e;
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    } finally {
+      for (int p = 0; p < numPartitions; p++) {
+        if (out[p] != null) {
+          try {
+            out[p].close();
+          } catch (IOException e) {
+            // the file is deleted anyway
+          }
+        }
+        if (files[p] != null) {
+          files[p].delete();
+        }
       }
     }
   }
@@ -1406,6 +1774,9 @@ public class FPGrowth extends AbstractAssociator implements
     m_transactionsMustContain = "";
     m_rulesMustContain = "";
     m_mustContainOR = false;
+    m_numExecutionSlots = 1;
+    m_numPartitions = 0;
+    m_spillDirectory = new File(System.getProperty("java.io.tmpdir"));
   }
 
   /**
@@ -1811,6 +2182,102 @@ public class FPGrowth extends AbstractAssociator implements
     m_offDiskReportingFrequency = freq;
   }
 
+  /**
+   * Tip text for this property suitable for displaying in the GUI.
+   * 
+   * @return the tip text for this property.
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of threads to use for mining the FP-tree (0 = one per "
+      + "processor). The conditional trees of the items are mined in "
+      + "parallel.";
+  }
+
+  /**
+   * Set the number of threads to use for mining the FP-tree.
+   * 
+   * @param slots the number of threads, 0 for one per processor.
+   */
+  public void setNumExecutionSlots(int slots) {
+    if (slots >= 0) {
+      m_numExecutionSlots = slots;
+    }
+  }
+
+  /**
+   * Get the number of threads to use for mining the FP-tree.
+   * 
+   * @return the number of threads, 0 for one per processor.
+   */
+  public int getNumExecutionSlots() {
+    return m_numExecutionSlots;
+  }
+
+  /**
+   * Tip text for this property suitable for displaying in the GUI.
+   * 
+   * @return the tip text for this property.
+   */
+  public String numPartitionsTipText() {
+    return "The number of partitions to split the frequent items into when "
+      + "the data is read incrementally off of the disk (0 = build the "
+      + "FP-tree in main memory). The projected database of each partition "
+      + "is written to the spill directory and the partitions are mined "
+      + "independently, so only the trees of the partitions that are being "
+      + "mined need to fit into main memory.";
+  }
+
+  /**
+   * Set the number of partitions to split the frequent items into when the
+   * data is read incrementally off of the disk.
+   * 
+   * @param partitions the number of partitions, 0 to build the FP-tree in
+   *          main memory.
+   */
+  public void setNumPartitions(int partitions) {
+    if (partitions >= 0) {
+      m_numPartitions = partitions;
+    }
+  }
+
+  /**
+   * Get the number of partitions to split the frequent items into when the
+   * data is read incrementally off of the disk.
+   * 
+   * @return the number of partitions, 0 to build the FP-tree in main memory.
+   */
+  public int getNumPartitions() {
+    return m_numPartitions;
+  }
+
+  /**
+   * Tip text for this property suitable for displaying in the GUI.
+   * 
+   * @return the tip text for this property.
+   */
+  public String spillDirectoryTipText() {
+    return "The directory to write the projected databases of the partitions "
+      + "to when mining data off of the disk.";
+  }
+
+  /**
+   * Set the directory to write the projected databases of the partitions to.
+   * 
+   * @param dir the directory.
+   */
+  public void setSpillDirectory(File dir) {
+    m_spillDirectory = dir;
+  }
+
+  /**
+   * Get the directory to write the projected databases of the partitions to.
+   * 
+   * @return the directory.
+   */
+  public File getSpillDirectory() {
+    return m_spillDirectory;
+  }
+
   /*
    * public void setMinimumSupport(double minSupp) { m_minSupport = minSupp; }
    * 
@@ -1910,6 +2377,13 @@ public class FPGrowth extends AbstractAssociator implements
     String string9 = "\tOnly print rules that contain these items. (default = no restriction)";
     String string10 = "\tUse OR instead of AND for must contain list(s). Use in conjunction"
       + "\n\twith -transactions and/or -rules";
+    String string11 = "\tThe number of threads to use for mining the tree\n\t"
+      + "(0 = one per processor). (default = 1)";
+    String string12 = "\tThe number of partitions to split the frequent items into\n\t"
+      + "when processing data off of disk (0 = build the tree in memory).\n\t"
+      + "(default = 0)";
+    String string13 = "\tThe directory to write the partitions to.\n\t"
+      + "(default = the system's temporary directory)";
 
     newVector.add(new Option(string00, "P", 1,
       "-P <attribute index of positive value>"));
@@ -1931,6 +2405,9 @@ public class FPGrowth extends AbstractAssociator implements
     newVector.add(new Option(string9, "rules", 1,
       "-rules <comma separated list " + "of attribute names>"));
     newVector.add(new Option(string10, "use-or", 0, "-use-or"));
+    newVector.add(new Option(string11, "num-slots", 1, "-num-slots <num>"));
+    newVector.add(new Option(string12, "partitions", 1, "-partitions <num>"));
+    newVector.add(new Option(string13, "spill-dir", 1, "-spill-dir <dir>"));
 
     return newVector.elements();
   }
@@ -2010,6 +2487,25 @@ public class FPGrowth extends AbstractAssociator implements
    *  with -transactions and/or -rules
    * </pre>
    * 
+   * <pre>
+   * -num-slots &lt;num&gt;
+   *  The number of threads to use for mining the tree
+   *  (0 = one per processor). (default = 1)
+   * </pre>
+   * 
+   * <pre>
+   * -partitions &lt;num&gt;
+   *  The number of partitions to split the frequent items into
+   *  when processing data off of disk (0 = build the tree in memory).
+   *  (default = 0)
+   * </pre>
+   * 
+   * <pre>
+   * -spill-dir &lt;dir&gt;
+   *  The directory to write the partitions to.
+   *  (default = the system's temporary directory)
+   * </pre>
+   * 
    * <!-- options-end -->
    * 
    * @param options the list of options as an array of strings
@@ -2028,6 +2524,9 @@ public class FPGrowth extends AbstractAssociator implements
     String deltaString = Utils.getOption("D", options);
     String transactionsString = Utils.getOption("transactions", options);
     String rulesString = Utils.getOption("rules", options);
+    String numSlotsString = Utils.getOption("num-slots", options);
+    String numPartitionsString = Utils.getOption("partitions", options);
+    String spillDirString = Utils.getOption("spill-dir", options);
 
     if (positiveIndexString.length() != 0) {
       setPositiveIndex(Integer.parseInt(positiveIndexString));
@@ -2070,6 +2569,18 @@ public class FPGrowth extends AbstractAssociator implements
       setRulesMustContain(rulesString);
     }
 
+    if (numSlotsString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(numSlotsString));
+    }
+
+    if (numPartitionsString.length() != 0) {
+      setNumPartitions(Integer.parseInt(numPartitionsString));
+    }
+
+    if (spillDirString.length() != 0) {
+      setSpillDirectory(new File(spillDirString));
+    }
+
     setUseORForMustContainList(Utils.getFlag("use-or", options));
 
     setFindAllRulesForSupportLevel(Utils.getFlag('S', options));
@@ -2118,6 +2629,13 @@ public class FPGrowth extends AbstractAssociator implements
       options.add("-use-or");
     }
 
+    options.add("-num-slots");
+    options.add("" + getNumExecutionSlots());
+    options.add("-partitions");
+    options.add("" + getNumPartitions());
+    options.add("-spill-dir");
+    options.add(getSpillDirectory().getPath());
+
     return options.toArray(new String[1]);
   }
 
@@ -2185,9 +2703,11 @@ public class FPGrowth extends AbstractAssociator implements
    * etc.).
    * 
    * @param source the source of the data. May be an Instances object or an
-   *          ArffLoader. In the case of the latter, the two passes over the
-   *          data that FPGrowth requires will be done off of disk (i.e. only
-   *          one instance will be in memory at any one time).
+   *          incremental Loader. In the case of the latter, the two passes
+   *          over the data that FPGrowth requires will be done off of disk
+   *          (i.e. only one instance will be in memory at any one time), and
+   *          if a number of partitions is set the FP-tree is not built in
+   *          memory either (see mineOutOfCore()).
    * @throws Exception if rules can't be built successfully
    */
   private void buildAssociations(Object source) throws Exception {
@@ -2196,8 +2716,8 @@ public class FPGrowth extends AbstractAssociator implements
     boolean arffLoader = false;
     boolean breakOnNext = false;
 
-    if (source instanceof weka.core.converters.ArffLoader) {
-      data = ((weka.core.converters.ArffLoader) source).getStructure();
+    if (source instanceof Loader) {
+      data = ((Loader) source).getStructure();
       capabilities.setMinimumNumberInstances(0);
       arffLoader = true;
     } else {
@@ -2242,30 +2762,35 @@ public class FPGrowth extends AbstractAssociator implements
 
     do {
       if (arffLoader) {
-        ((weka.core.converters.ArffLoader) source).reset();
+        ((Loader) source).reset();
       }
 
       int currentSupportAsInstances = (currentSupport > 1) ? (int) currentSupport
         : (int) Math.ceil(currentSupport * m_numInstances);
 
-      // build the FPTree
-      if (arffLoader) {
-        System.err.println("Building FP-tree...");
-      }
-      FPTreeRoot tree = buildFPTree(singletons, source,
-        currentSupportAsInstances);
-
       FrequentItemSets largeItemSets = new FrequentItemSets(m_numInstances);
 
-      if (arffLoader) {
-        System.err.println("Mining tree for min supp " + currentSupport);
-      }
+      if (arffLoader && m_numPartitions > 0) {
+        // spill the partitions and mine them one by one
+        System.err.println("Mining " + m_numPartitions
+          + " partitions for min supp " + currentSupport);
+        mineOutOfCore(singletons, (Loader) source, largeItemSets,
+          currentSupportAsInstances);
+      } else {
+        // build the FPTree
+        if (arffLoader) {
+          System.err.println("Building FP-tree...");
+        }
+        FPTree tree = buildFPTree(singletons, source,
+          currentSupportAsInstances);
 
-      // mine the tree
-      FrequentBinaryItemSet conditionalItems = new FrequentBinaryItemSet(
-        new ArrayList<BinaryItem>(), 0);
-      mineTree(tree, largeItemSets, 0, conditionalItems,
-        currentSupportAsInstances);
+        if (arffLoader) {
+          System.err.println("Mining tree for min supp " + currentSupport);
+        }
+
+        // mine the tree
+        mineTree(tree, largeItemSets, currentSupportAsInstances);
+      }
 
       m_largeItemSets = largeItemSets;
 
@@ -2274,9 +2799,6 @@ public class FPGrowth extends AbstractAssociator implements
           + m_largeItemSets.size());
       }
 
-      // save memory
-      tree = null;
-
       m_rules = generateRulesBruteForce(m_largeItemSets, m_metric,
         m_metricThreshold, upperBoundMinSuppAsInstances,
         lowerBoundMinSuppAsInstances, m_numInstances);
@@ -2330,6 +2852,21 @@ public class FPGrowth extends AbstractAssociator implements
     return;
   }
 
+  /**
+   * Method that generates all large item sets with a minimum support, and from
+   * these all association rules with a minimum metric, from data that is
+   * read incrementally from a loader rather than held in main memory. The
+   * loader is reset before each pass over the data.
+   * 
+   * @param loader the loader to read the data from (e.g., an ArffLoader for
+   *          sparse ARFF files or an ItemListLoader)
+   * @throws Exception if rules can't be built successfully
+   */
+  public void buildAssociations(Loader loader) throws Exception {
+
+    buildAssociations((Object) loader);
+  }
+
   /**
    * Output the association rules.
    * 
@@ -2390,7 +2927,7 @@ public class FPGrowth extends AbstractAssociator implements
    * @param tree the root of the FP-tree
    * @return a graph representation as a String in dot format.
    */
-  public String graph(FPTreeRoot tree) {
+  public String graph(FPTree tree) {
     // int maxID = tree.assignIDs(-1);
 
     StringBuffer text = new StringBuffer();
@@ -2426,7 +2963,10 @@ public class FPGrowth extends AbstractAssociator implements
         runAssociator(new FPGrowth(), args);
         System.out
           .println("-disk\n\tProcess data off of disk instead of loading\n\t"
-            + "into main memory. This is a command line only option.");
+            + "into main memory. Files with the extension "
+            + weka.core.converters.ItemListLoader.FILE_EXTENSION + "\n\t"
+            + "are read as item lists, all others as ARFF. This is a\n\t"
+            + "command line only option.");
         return;
       }
 
@@ -2435,9 +2975,14 @@ public class FPGrowth extends AbstractAssociator implements
       } else {
         String filename;
         filename = Utils.getOption('t', args);
-        weka.core.converters.ArffLoader loader = null;
+        weka.core.converters.AbstractFileLoader loader = null;
         if (filename.length() != 0) {
-          loader = new weka.core.converters.ArffLoader();
+          if (filename
+            .endsWith(weka.core.converters.ItemListLoader.FILE_EXTENSION)) {
+            loader = new weka.core.converters.ItemListLoader();
+          } else {
+            loader = new weka.core.converters.ArffLoader();
+          }
           loader.setFile(new java.io.File(filename));
         } else {
           throw new Exception("No training file specified!");
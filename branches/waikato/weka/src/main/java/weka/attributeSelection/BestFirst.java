@@ -25,8 +25,15 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import weka.core.Instances;
 import weka.core.Option;
@@ -36,6 +43,7 @@ import weka.core.RevisionHandler;
 import weka.core.RevisionUtils;
 import weka.core.SelectedTag;
 import weka.core.Tag;
+import weka.core.ThreadSafe;
 import weka.core.Utils;
 
 /**
@@ -80,6 +88,11 @@ import weka.core.Utils;
  *  attributes in the data set. (default = 1)
  * </pre>
  * 
+ * <pre>
+ * -num-slots &lt;int&gt;
+ *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+ * </pre>
+ * 
  <!-- options-end -->
  * 
  * @author Mark Hall (mhall@cs.waikato.ac.nz) Martin Guetlein (cashing merit of
@@ -302,6 +315,12 @@ public class BestFirst extends ASSearch implements OptionHandler,
   /** holds the maximum size of the lookup cache for evaluated subsets */
   protected int m_cacheSize;
 
+  /** the number of threads evaluating the children of a node */
+  protected int m_poolSize = 1;
+
+  /** thread pool for evaluating the children of a node in parallel */
+  protected transient ExecutorService m_pool = null;
+
   /**
    * Returns a string describing this search method
    * 
@@ -335,7 +354,7 @@ public class BestFirst extends ASSearch implements OptionHandler,
    **/
   @Override
   public Enumeration<Option> listOptions() {
-    Vector<Option> newVector = new Vector<Option>(4);
+    Vector<Option> newVector = new Vector<Option>(5);
 
     newVector.addElement(new Option("\tSpecify a starting set of attributes."
       + "\n\tEg. 1,3,5-7.", "P", 1, "-P <start set>"));
@@ -347,6 +366,8 @@ public class BestFirst extends ASSearch implements OptionHandler,
       "\tSize of lookup cache for evaluated subsets."
         + "\n\tExpressed as a multiple of the number of"
         + "\n\tattributes in the data set. (default = 1)", "S", 1, "-S <num>"));
+    newVector.addElement(new Option("\t" + numExecutionSlotsTipText()
+      + " (default 1)", "num-slots", 1, "-num-slots <int>"));
 
     return newVector.elements();
   }
@@ -383,6 +404,11 @@ public class BestFirst extends ASSearch implements OptionHandler,
    *  attributes in the data set. (default = 1)
    * </pre>
    * 
+   * <pre>
+   * -num-slots &lt;int&gt;
+   *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+   * </pre>
+   * 
    <!-- options-end -->
    * 
    * @param options the list of options as an array of strings
@@ -419,6 +445,11 @@ public class BestFirst extends ASSearch implements OptionHandler,
       setLookupCacheSize(Integer.parseInt(optionString));
     }
 
+    optionString = Utils.getOption("num-slots", options);
+    if (optionString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
+
     m_debug = Utils.getFlag('Z', options);
   }
 
@@ -457,6 +488,35 @@ public class BestFirst extends ASSearch implements OptionHandler,
       + "(default = 1).";
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of execution slots, for example, the number of cores in the CPU.";
+  }
+
+  /**
+   * Gets the number of threads evaluating the children of a node.
+   * 
+   * @return the number of threads
+   */
+  public int getNumExecutionSlots() {
+    return m_poolSize;
+  }
+
+  /**
+   * Sets the number of threads evaluating the children of a node. Evaluators
+   * that are not ThreadSafe are copied once for each thread.
+   * 
+   * @param nT the number of threads
+   */
+  public void setNumExecutionSlots(int nT) {
+    m_poolSize = nT;
+  }
+
   /**
    * Returns the tip text for this property
    * 
@@ -577,6 +637,8 @@ public class BestFirst extends ASSearch implements OptionHandler,
     options.add("" + m_searchDirection);
     options.add("-N");
     options.add("" + m_maxStale);
+    options.add("-num-slots");
+    options.add("" + m_poolSize);
 
     return options.toArray(new String[0]);
   }
@@ -667,7 +729,58 @@ public class BestFirst extends ASSearch implements OptionHandler,
   }
 
   /**
-   * Searches the attribute subset space by best first search
+   * Evaluates subsets, in parallel if more than one execution slot is
+   * available. Evaluators that are not ThreadSafe are only ever used by one
+   * thread at a time.
+   * 
+   * @param ASEvaluator the evaluator
+   * @param evaluators copies of the evaluator to share among the threads,
+   *          null if the evaluator is ThreadSafe
+   * @param subsets the subsets to evaluate
+   * @return the merits of the subsets
+   * @throws Exception if a subset can't be evaluated
+   */
+  protected double[] evaluateSubsets(SubsetEvaluator ASEvaluator,
+    final BlockingQueue<SubsetEvaluator> evaluators, List<BitSet> subsets)
+    throws Exception {
+    double[] merits = new double[subsets.size()];
+
+    if (m_pool == null || subsets.size() < 2) {
+      for (int i = 0; i < subsets.size(); i++) {
+        merits[i] = ASEvaluator.evaluateSubset(subsets.get(i));
+      }
+      return merits;
+    }
+
+    final SubsetEvaluator shared = ASEvaluator;
+    List<Future<Double>> results = new ArrayList<Future<Double>>();
+    for (final BitSet subset : subsets) {
+      results.add(m_pool.submit(new Callable<Double>() {
+        @Override
+        public Double call() throws Exception {
+          if (evaluators == null) {
+            return shared.evaluateSubset(subset);
+          }
+          SubsetEvaluator evaluator = evaluators.take();
+          try {
+            return evaluator.evaluateSubset(subset);
+          } finally {
+            evaluators.put(evaluator);
+          }
+        }
+      }));
+    }
+    for (int i = 0; i < merits.length; i++) {
+      merits[i] = results.get(i).get().doubleValue();
+    }
+
+    return merits;
+  }
+
+  /**
+   * Searches the attribute subset space by best first search. All children of
+   * the node being expanded that are not in the lookup cache are evaluated
+   * together, in parallel if more than one execution slot is available.
    * 
    * @param ASEval the attribute evaluator to guide the search
    * @param data the training instances.
@@ -690,6 +803,41 @@ public class BestFirst extends ASSearch implements OptionHandler,
     }
 
     SubsetEvaluator ASEvaluator = (SubsetEvaluator) ASEval;
+    BlockingQueue<SubsetEvaluator> evaluators = null;
+    if (m_poolSize > 1) {
+      m_pool = Executors.newFixedThreadPool(m_poolSize);
+      if (!(ASEval instanceof ThreadSafe)) {
+        // one copy per thread for evaluators that are not thread safe
+        evaluators = new LinkedBlockingQueue<SubsetEvaluator>();
+        for (ASEvaluation copy : ASEvaluation.makeCopies(ASEval, m_poolSize)) {
+          evaluators.add((SubsetEvaluator) copy);
+        }
+      }
+    }
+
+    try {
+      return search(ASEvaluator, evaluators, data);
+    } finally {
+      if (m_pool != null) {
+        m_pool.shutdown();
+        m_pool = null;
+      }
+    }
+  }
+
+  /**
+   * Searches the attribute subset space by best first search.
+   * 
+   * @param ASEvaluator the attribute evaluator to guide the search
+   * @param evaluators copies of the evaluator for the threads, null if the
+   *          evaluator is ThreadSafe or the search is not parallel
+   * @param data the training instances.
+   * @return an array (not necessarily ordered) of selected attribute indexes
+   * @throws Exception if the search can't be completed
+   */
+  protected int[] search(SubsetEvaluator ASEvaluator,
+    BlockingQueue<SubsetEvaluator> evaluators, Instances data)
+    throws Exception {
     m_numAttribs = data.numAttributes();
     int i, j;
     int best_size = 0;
@@ -703,8 +851,9 @@ public class BestFirst extends ASSearch implements OptionHandler,
     boolean z;
     boolean added;
     Link2 tl;
-    Hashtable<String, Double> lookup = new Hashtable<String, Double>(
-      m_cacheSize * m_numAttribs);
+    // evaluated subsets, keyed by their bits rather than their string form
+    ConcurrentHashMap<BitSet, Double> lookup = new ConcurrentHashMap<BitSet, Double>(
+      Math.max(16, m_cacheSize * m_numAttribs));
     int insertCount = 0;
     LinkedList2 bfList = new LinkedList2(m_maxStale);
     best_merit = -Double.MAX_VALUE;
@@ -750,9 +899,12 @@ public class BestFirst extends ASSearch implements OptionHandler,
     best[0] = best_group.clone();
     bfList.addToList(best, best_merit);
     BitSet tt = (BitSet) best_group.clone();
-    String hashC = tt.toString();
-    lookup.put(hashC, new Double(best_merit));
+    lookup.put(tt, new Double(best_merit));
 
+    List<BitSet> children = new ArrayList<BitSet>();
+    List<Integer> directions = new ArrayList<Integer>();
+    List<Integer> sizes = new ArrayList<Integer>();
+    List<BitSet> toEvaluate = new ArrayList<BitSet>();
     while (stale < m_maxStale) {
       added = false;
 
@@ -777,14 +929,12 @@ public class BestFirst extends ASSearch implements OptionHandler,
       // remove the head of the list
       bfList.removeLinkAt(0);
       // count the number of bits set (attributes)
-      int kk;
-
-      for (kk = 0, size = 0; kk < m_numAttribs; kk++) {
-        if (temp_group.get(kk)) {
-          size++;
-        }
-      }
+      size = temp_group.cardinality();
 
+      // collect the children of the node
+      children.clear();
+      directions.clear();
+      sizes.clear();
       do {
         for (i = 0; i < m_numAttribs; i++) {
           if (sd == SELECTION_FORWARD) {
@@ -795,77 +945,16 @@ public class BestFirst extends ASSearch implements OptionHandler,
 
           if (z) {
             // set the bit (attribute to add/delete)
-            if (sd == SELECTION_FORWARD) {
-              temp_group.set(i);
-              size++;
-            } else {
-              temp_group.clear(i);
-              size--;
-            }
-
-            /*
-             * if this subset has been seen before, then it is already in the
-             * list (or has been fully expanded)
-             */
             tt = (BitSet) temp_group.clone();
-            hashC = tt.toString();
-
-            if (lookup.containsKey(hashC) == false) {
-              merit = ASEvaluator.evaluateSubset(temp_group);
-              m_totalEvals++;
-
-              // insert this one in the hashtable
-              if (insertCount > m_cacheSize * m_numAttribs) {
-                lookup = new Hashtable<String, Double>(m_cacheSize
-                  * m_numAttribs);
-                insertCount = 0;
-              }
-              hashC = tt.toString();
-              lookup.put(hashC, new Double(merit));
-              insertCount++;
-            } else {
-              merit = lookup.get(hashC).doubleValue();
-            }
-
-            // insert this one in the list
-            Object[] add = new Object[1];
-            add[0] = tt.clone();
-            bfList.addToList(add, merit);
-
-            if (m_debug) {
-              System.out.print("Group: ");
-              printGroup(tt, m_numAttribs);
-              System.out.println("Merit: " + merit);
-            }
-
-            // is this better than the best?
-            if (sd == SELECTION_FORWARD) {
-              z = ((merit - best_merit) > 0.00001);
-            } else {
-              if (merit == best_merit) {
-                z = (size < best_size);
-              } else {
-                z = (merit > best_merit);
-              }
-            }
-
-            if (z) {
-              added = true;
-              stale = 0;
-              best_merit = merit;
-              // best_size = (size + best_size);
-              best_size = size;
-              best_group = (BitSet) (temp_group.clone());
-            }
-
-            // unset this addition(deletion)
             if (sd == SELECTION_FORWARD) {
-              temp_group.clear(i);
-              size--;
+              tt.set(i);
+              sizes.add(size + 1);
             } else {
-              temp_group.set(i);
-              size++;
+              tt.clear(i);
+              sizes.add(size - 1);
             }
+            children.add(tt);
+            directions.add(sd);
           }
         }
 
@@ -876,6 +965,82 @@ public class BestFirst extends ASSearch implements OptionHandler,
         done--;
       } while (done > 0);
 
+      /*
+       * if a child has been seen before, then it is already in the list (or
+       * has been fully expanded). The others are entered into the cache
+       * before they are evaluated, so that the cache evolves exactly as if
+       * the children were evaluated one after the other
+       */
+      double[] merits = new double[children.size()];
+      boolean[] pending = new boolean[children.size()];
+      toEvaluate.clear();
+      for (int c = 0; c < children.size(); c++) {
+        tt = children.get(c);
+        Double cached = lookup.get(tt);
+        if (cached != null) {
+          merits[c] = cached.doubleValue();
+        } else {
+          pending[c] = true;
+          toEvaluate.add(tt);
+          m_totalEvals++;
+
+          // insert this one in the hashtable
+          if (insertCount > m_cacheSize * m_numAttribs) {
+            lookup.clear();
+            insertCount = 0;
+          }
+          lookup.put(tt, Double.NaN);
+          insertCount++;
+        }
+      }
+
+      double[] evaluated = evaluateSubsets(ASEvaluator, evaluators, toEvaluate);
+      for (int c = 0, e = 0; c < children.size(); c++) {
+        if (pending[c]) {
+          merits[c] = evaluated[e++];
+          // only if it hasn't been dropped from the cache in the meantime
+          lookup.replace(children.get(c), merits[c]);
+        }
+      }
+
+      for (int c = 0; c < children.size(); c++) {
+        tt = children.get(c);
+        merit = merits[c];
+        sd = directions.get(c);
+        size = sizes.get(c);
+
+        // insert this one in the list
+        Object[] add = new Object[1];
+        add[0] = tt.clone();
+        bfList.addToList(add, merit);
+
+        if (m_debug) {
+          System.out.print("Group: ");
+          printGroup(tt, m_numAttribs);
+          System.out.println("Merit: " + merit);
+        }
+
+        // is this better than the best?
+        if (sd == SELECTION_FORWARD) {
+          z = ((merit - best_merit) > 0.00001);
+        } else {
+          if (merit == best_merit) {
+            z = (size < best_size);
+          } else {
+            z = (merit > best_merit);
+          }
+        }
+
+        if (z) {
+          added = true;
+          stale = 0;
+          best_merit = merit;
+          // best_size = (size + best_size);
+          best_size = size;
+          best_group = (BitSet) (tt.clone());
+        }
+      }
+
       /*
        * if we haven't added a new attribute subset then full expansion of this
        * node hasen't resulted in anything better
@@ -900,6 +1065,7 @@ public class BestFirst extends ASSearch implements OptionHandler,
     m_classIndex = -1;
     m_totalEvals = 0;
     m_cacheSize = 1;
+    m_poolSize = 1;
     m_debug = false;
   }
 
@@ -21,10 +21,10 @@
 
 package weka.attributeSelection;
 
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -175,6 +175,33 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
   /** Thread pool */
   protected transient ExecutorService m_pool = null;
 
+  /**
+   * The values of the discretized attributes in columns, one per attribute,
+   * with the number of values of an attribute standing for a missing value.
+   * Only used if the class is nominal. All columns are filled up front if the
+   * correlation matrix is precomputed, otherwise each is filled when a
+   * correlation first needs it.
+   */
+  private int[][] m_columns;
+
+  /** The locks for computing correlations lazily, created on demand */
+  private transient Object[] m_locks;
+
+  /** The number of locks for computing correlations lazily */
+  private static final int NUM_LOCKS = 64;
+
+  /**
+   * The number of attributes along each side of the square blocks of the
+   * correlation matrix that are precomputed together
+   */
+  private static final int BLOCK_SIZE = 16;
+
+  /**
+   * The number of instances counted for all pairs of attributes of a block
+   * before moving on to the next instances
+   */
+  private static final int CHUNK_SIZE = 4096;
+
   /**
    * Returns a string describing this attribute evaluator
    * 
@@ -597,71 +624,235 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
       }
     }
 
-    if (m_preComputeCorrelationMatrix && m_poolSize > 1) {
-      m_pool = Executors.newFixedThreadPool(m_poolSize);
+    if (!m_isNumeric) {
+      m_columns = new int[m_numAttribs][];
+      if (m_preComputeCorrelationMatrix) {
+        for (int j = 0; j < m_numAttribs; j++) {
+          m_columns[j] = new int[m_numInstances];
+        }
+        for (int i = 0; i < m_numInstances; i++) {
+          Instance inst = m_trainInstances.instance(i);
+          for (int j = 0; j < m_numAttribs; j++) {
+            m_columns[j][i] =
+              inst.isMissing(j) ? m_trainInstances.attribute(j).numValues()
+                : (int) inst.value(j);
+          }
+        }
+      }
+    } else {
+      m_columns = null;
+    }
 
-      Set<Future<Void>> results = new HashSet<Future<Void>>();
-      int numEntriesPerThread = (m_numEntries + m_numAttribs) / m_numThreads;
-      numEntriesPerThread = numEntriesPerThread < 1 ? 1 : numEntriesPerThread;
-
-      int startRow = 0;
-      int startCol = 0;
-
-      int count = 0;
-      for (int i = 0; i < m_corr_matrix.length; i++) {
-        for (int j = 0; j < m_corr_matrix[i].length; j++) {
-          count++;
-          if (count == numEntriesPerThread
-            || (i == m_corr_matrix.length - 1 && j == m_corr_matrix[i].length - 1)) {
-            final int sR = startRow;
-            final int sC = startCol;
-            final int eR = i;
-            final int eC = j;
-
-            startRow = i;
-            startCol = j;
-            count = 0;
-
-            Future<Void> future = m_pool.submit(new Callable<Void>() {
-              @Override
-              public Void call() throws Exception {
-                if (m_debug) {
-                  System.err
-                    .println("Starting correlation computation task...");
-                }
-                for (int i = sR; i <= eR; i++) {
-                  for (int j = (i == sR ? sC : 0); j < (i == eR ? eC
-                    : m_corr_matrix[i].length); j++) {
-                    if (m_corr_matrix[i][j] == -999) {
-                      float corr = correlate(i, j);
-                      m_corr_matrix[i][j] = corr;
-                    }
-                  }
-                }
-                if (m_debug) {
-                  System.err
-                    .println("Percentage of correlation matrix computed: "
-                      + Utils.doubleToString(((double) m_numFilled.get()
-                        / m_numEntries * 100.0), 2) + "%");
-                }
-
-                return null;
-              }
-            });
-            results.add(future);
+    if (m_preComputeCorrelationMatrix) {
+      preComputeCorrelationMatrix();
+    }
+  }
+
+  /**
+   * Computes the whole correlation matrix. The lower triangle of the matrix is
+   * split into square blocks, and the blocks are shared among m_numThreads
+   * tasks, which run in a thread pool of size m_poolSize. For a nominal class,
+   * the contingency tables of all pairs of attributes in a block are filled
+   * together from the columns of the attributes, a chunk of instances at a
+   * time.
+   * 
+   * @throws Exception if a correlation can't be computed
+   */
+  private void preComputeCorrelationMatrix() throws Exception {
+    final List<int[]> blocks = new ArrayList<int[]>();
+    for (int row = 0; row < m_numAttribs; row += BLOCK_SIZE) {
+      for (int col = 0; col <= row; col += BLOCK_SIZE) {
+        blocks.add(new int[] { row, col });
+      }
+    }
+
+    // the blocks are dealt out in turn, as the rows of the lower triangle
+    // differ in length
+    final int numTasks =
+      Math.max(1, Math.min(blocks.size(), Math.max(m_numThreads, m_poolSize)));
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < numTasks; t++) {
+      final int first = t;
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if (m_debug) {
+            System.err.println("Starting correlation computation task...");
+          }
+          for (int b = first; b < blocks.size(); b += numTasks) {
+            computeBlock(blocks.get(b)[0], blocks.get(b)[1]);
+          }
+          if (m_debug) {
+            System.err.println("Percentage of correlation matrix computed: "
+              + Utils.doubleToString(
+                ((double) m_numFilled.get() / m_numEntries * 100.0), 2) + "%");
           }
+
+          return null;
+        }
+      });
+    }
+
+    if (m_poolSize > 1 && numTasks > 1) {
+      m_pool = Executors.newFixedThreadPool(m_poolSize);
+      try {
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) {
+          results.add(m_pool.submit(task));
+        }
+        for (Future<Void> f : results) {
+          f.get();
         }
+      } finally {
+        // shut down the thread pool
+        m_pool.shutdown();
+        m_pool = null;
+      }
+    } else {
+      for (Callable<Void> task : tasks) {
+        task.call();
       }
+    }
+  }
 
-      for (Future<Void> f : results) {
-        f.get();
+  /**
+   * Computes the correlations of a block of the correlation matrix that have
+   * not been computed yet.
+   * 
+   * @param rowStart the first row of the block
+   * @param colStart the first column of the block
+   */
+  private void computeBlock(int rowStart, int colStart) {
+    int rowEnd = Math.min(rowStart + BLOCK_SIZE, m_numAttribs);
+    int colEnd = Math.min(colStart + BLOCK_SIZE, m_numAttribs);
+
+    List<int[]> pairs = new ArrayList<int[]>();
+    for (int i = rowStart; i < rowEnd; i++) {
+      for (int j = colStart; j < Math.min(colEnd, i); j++) {
+        if (m_corr_matrix[i][j] == -999) {
+          pairs.add(new int[] { i, j });
+        }
       }
+    }
 
-      // shut down the thread pool
-      m_pool.shutdown();
+    if (m_columns == null) {
+      for (int[] pair : pairs) {
+        m_corr_matrix[pair[0]][pair[1]] = correlate(pair[0], pair[1]);
+      }
+      return;
+    }
+
+    int[][] counts = new int[pairs.size()][];
+    for (int p = 0; p < counts.length; p++) {
+      counts[p] =
+        new int[(m_trainInstances.attribute(pairs.get(p)[0]).numValues() + 1)
+          * (m_trainInstances.attribute(pairs.get(p)[1]).numValues() + 1)];
+    }
+    for (int start = 0; start < m_numInstances; start += CHUNK_SIZE) {
+      int end = Math.min(start + CHUNK_SIZE, m_numInstances);
+      for (int p = 0; p < counts.length; p++) {
+        fillContingencyTable(pairs.get(p)[0], pairs.get(p)[1], start, end,
+          counts[p]);
+      }
+    }
+    for (int p = 0; p < counts.length; p++) {
+      m_numFilled.addAndGet(1);
+      m_corr_matrix[pairs.get(p)[0]][pairs.get(p)[1]] =
+        (float) symmUncertCorr(pairs.get(p)[0], pairs.get(p)[1], counts[p]);
+    }
+  }
+
+  /**
+   * Counts the combinations of the values of two discretized attributes in a
+   * range of instances. The table has a row for each value of the first
+   * attribute plus one for missing values, stored one after the other. The
+   * columns of both attributes have to be filled.
+   * 
+   * @param att1 the first attribute
+   * @param att2 the second attribute
+   * @param start the first instance
+   * @param end the instance after the last one
+   * @param counts the contingency table to add the counts to
+   */
+  private void fillContingencyTable(int att1, int att2, int start, int end,
+    int[] counts) {
+    int[] column1 = m_columns[att1];
+    int[] column2 = m_columns[att2];
+    int nj = m_trainInstances.attribute(att2).numValues() + 1;
+
+    for (int i = start; i < end; i++) {
+      counts[column1[i] * nj + column2[i]]++;
     }
   }
 
+  /**
+   * Returns the values of a discretized attribute, filling its column from
+   * the training instances if no correlation has needed it yet.
+   * 
+   * @param att the attribute
+   * @return the column of the attribute
+   */
+  private synchronized int[] column(int att) {
+    if (m_columns[att] == null) {
+      int[] column = new int[m_numInstances];
+      int missing = m_trainInstances.attribute(att).numValues();
+      for (int i = 0; i < m_numInstances; i++) {
+        Instance inst = m_trainInstances.instance(i);
+        column[i] = inst.isMissing(att) ? missing : (int) inst.value(att);
+      }
+      m_columns[att] = column;
+    }
+
+    return m_columns[att];
+  }
+
+  /**
+   * Returns the lock for computing a correlation lazily.
+   * 
+   * @param larger the larger index of the two attributes
+   * @param smaller the smaller index of the two attributes
+   * @return the lock
+   */
+  private synchronized Object lock(int larger, int smaller) {
+    if (m_locks == null) {
+      m_locks = new Object[NUM_LOCKS];
+      for (int i = 0; i < NUM_LOCKS; i++) {
+        m_locks[i] = new Object();
+      }
+    }
+
+    return m_locks[(larger * 31 + smaller) % NUM_LOCKS];
+  }
+
+  /**
+   * Returns the correlation between two attributes, computing it first if it
+   * is not in the correlation matrix yet. Evaluations running in parallel
+   * share the matrix: a missing correlation is computed by one thread, while
+   * others asking for the same correlation wait for it. Stored correlations
+   * never change again, so they are read without locking.
+   * 
+   * @param att1 the first attribute
+   * @param att2 the second attribute
+   * @return the correlation
+   */
+  private float correlation(int att1, int att2) {
+    int larger = (att1 > att2) ? att1 : att2;
+    int smaller = (att1 > att2) ? att2 : att1;
+    float corr = m_corr_matrix[larger][smaller];
+
+    if (corr == -999) {
+      synchronized (lock(larger, smaller)) {
+        corr = m_corr_matrix[larger][smaller];
+        if (corr == -999) {
+          corr = correlate(att1, att2);
+          m_corr_matrix[larger][smaller] = corr;
+        }
+      }
+    }
+
+    return corr;
+  }
+
   /**
    * evaluates a subset of attributes
    * 
@@ -673,30 +864,11 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
   public double evaluateSubset(BitSet subset) throws Exception {
     double num = 0.0;
     double denom = 0.0;
-    float corr;
-    int larger, smaller;
     // do numerator
     for (int i = 0; i < m_numAttribs; i++) {
       if (i != m_classIndex) {
         if (subset.get(i)) {
-          if (i > m_classIndex) {
-            larger = i;
-            smaller = m_classIndex;
-          } else {
-            smaller = i;
-            larger = m_classIndex;
-          }
-          /*
-           * int larger = (i > m_classIndex ? i : m_classIndex); int smaller =
-           * (i > m_classIndex ? m_classIndex : i);
-           */
-          if (m_corr_matrix[larger][smaller] == -999) {
-            corr = correlate(i, m_classIndex);
-            m_corr_matrix[larger][smaller] = corr;
-            num += (m_std_devs[i] * corr);
-          } else {
-            num += (m_std_devs[i] * m_corr_matrix[larger][smaller]);
-          }
+          num += (m_std_devs[i] * correlation(i, m_classIndex));
         }
       }
     }
@@ -709,14 +881,7 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
 
           for (int j = 0; j < m_corr_matrix[i].length - 1; j++) {
             if (subset.get(j)) {
-              if (m_corr_matrix[i][j] == -999) {
-                corr = correlate(i, j);
-                m_corr_matrix[i][j] = corr;
-                denom += (2.0 * m_std_devs[i] * m_std_devs[j] * corr);
-              } else {
-                denom +=
-                  (2.0 * m_std_devs[i] * m_std_devs[j] * m_corr_matrix[i][j]);
-              }
+              denom += (2.0 * m_std_devs[i] * m_std_devs[j] * correlation(i, j));
             }
           }
         }
@@ -767,12 +932,33 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
   }
 
   private double symmUncertCorr(int att1, int att2) {
-    int i, j, ii, jj;
+    int[] counts =
+      new int[(m_trainInstances.attribute(att1).numValues() + 1)
+        * (m_trainInstances.attribute(att2).numValues() + 1)];
+
+    // fill the columns if no correlation has needed them yet
+    column(att1);
+    column(att2);
+    fillContingencyTable(att1, att2, 0, m_numInstances, counts);
+
+    return symmUncertCorr(att1, att2, counts);
+  }
+
+  /**
+   * Computes the symmetrical uncertainty of two discretized attributes from
+   * their contingency table.
+   * 
+   * @param att1 the first attribute
+   * @param att2 the second attribute
+   * @param contingency the contingency table, see fillContingencyTable()
+   * @return the symmetrical uncertainty
+   */
+  private double symmUncertCorr(int att1, int att2, int[] contingency) {
+    int i, j;
     int ni, nj;
     double sum = 0.0;
     double sumi[], sumj[];
     double counts[][];
-    Instance inst;
     double corr_measure;
     boolean flag = false;
     double temp = 0.0;
@@ -792,29 +978,10 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
 
       for (j = 0; j < nj; j++) {
         sumj[j] = 0.0;
-        counts[i][j] = 0.0;
+        counts[i][j] = contingency[i * nj + j];
       }
     }
 
-    // Fill the contingency table
-    for (i = 0; i < m_numInstances; i++) {
-      inst = m_trainInstances.instance(i);
-
-      if (inst.isMissing(att1)) {
-        ii = ni - 1;
-      } else {
-        ii = (int) inst.value(att1);
-      }
-
-      if (inst.isMissing(att2)) {
-        jj = nj - 1;
-      } else {
-        jj = (int) inst.value(att2);
-      }
-
-      counts[ii][jj]++;
-    }
-
     // get the row totals
     for (i = 0; i < ni; i++) {
       sumi[i] = 0.0;
@@ -1275,7 +1442,6 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
     boolean done = false;
     boolean ok = true;
     double temp_best = -1.0;
-    float corr;
     j = 0;
     BitSet temp_group = (BitSet) best_group.clone();
     int larger, smaller;
@@ -1297,10 +1463,7 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
          * > m_classIndex ? m_classIndex : i);
          */
         if ((!temp_group.get(i)) && (i != m_classIndex)) {
-          if (m_corr_matrix[larger][smaller] == -999) {
-            corr = correlate(i, m_classIndex);
-            m_corr_matrix[larger][smaller] = corr;
-          }
+          correlation(i, m_classIndex);
 
           if (m_corr_matrix[larger][smaller] > temp_best) {
             temp_best = m_corr_matrix[larger][smaller];
@@ -1329,10 +1492,7 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
            * int larger = (i > j ? i : j); int smaller = (i > j ? j : i);
            */
           if (best_group.get(i)) {
-            if (m_corr_matrix[larger][smaller] == -999) {
-              corr = correlate(i, j);
-              m_corr_matrix[larger][smaller] = corr;
-            }
+            correlation(i, j);
 
             if (m_corr_matrix[larger][smaller] > temp_best - m_c_Threshold) {
               ok = false;
@@ -1371,6 +1531,7 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
 
     if (!m_locallyPredictive) {
       m_trainInstances = new Instances(m_trainInstances, 0);
+      m_columns = null;
       return attributeSet;
     }
 
@@ -1399,6 +1560,7 @@ public class CfsSubsetEval extends ASEvaluation implements SubsetEvaluator,
     }
 
     m_trainInstances = new Instances(m_trainInstances, 0);
+    m_columns = null;
     return newSet;
   }
 
@@ -21,9 +21,15 @@
 
 package weka.attributeSelection;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.Attribute;
 import weka.core.Capabilities;
@@ -33,11 +39,14 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.RevisionUtils;
+import weka.core.SerializedObject;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.TechnicalInformationHandler;
 import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+import weka.core.neighboursearch.NearestNeighbourSearch;
 
 /**
  * <!-- globalinfo-start --> ReliefFAttributeEval :<br/>
@@ -137,6 +146,19 @@ import weka.core.Utils;
  *  (Default = 2)
  * </pre>
  * 
+ * <pre>
+ * -S &lt;nearest neighbour search&gt;
+ *  The nearest neighbour search used to find
+ *  the hits and misses. A linear search scans
+ *  all instances with ReliefF's own distance.
+ *  (Default = weka.core.neighboursearch.LinearNNSearch)
+ * </pre>
+ * 
+ * <pre>
+ * -num-slots &lt;int&gt;
+ *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+ * </pre>
+ * 
  * <!-- options-end -->
  * 
  * @author Mark Hall (mhall@cs.waikato.ac.nz)
@@ -199,24 +221,12 @@ public class ReliefFAttributeEval extends ASEvaluation implements
   /** The number of nearest hits/misses */
   private int m_Knn;
 
-  /** k nearest scores + instance indexes for n classes */
-  private double[][][] m_karray;
-
   /** Upper bound for numeric attributes */
   private double[] m_maxArray;
 
   /** Lower bound for numeric attributes */
   private double[] m_minArray;
 
-  /** Keep track of the farthest instance for each class */
-  private double[] m_worst;
-
-  /** Index in the m_karray of the farthest instance for each class */
-  private int[] m_index;
-
-  /** Number of nearest neighbours stored of each class */
-  private int[] m_stored;
-
   /** Random number seed used for sampling instances */
   private int m_seed;
 
@@ -233,6 +243,24 @@ public class ReliefFAttributeEval extends ASEvaluation implements
   /** Weight by distance rather than equal weights */
   private boolean m_weightByDistance;
 
+  /** The search that finds the nearest hits and misses */
+  private NearestNeighbourSearch m_NNSearch;
+
+  /** The number of threads sampling instances */
+  private int m_poolSize;
+
+  /** The searches over the instances of each class, while building */
+  private transient NearestNeighbourSearch[] m_classSearches;
+
+  /**
+   * The training indices of the instances each class search was built on,
+   * null if a search was built on all training instances
+   */
+  private transient int[][] m_classMembers;
+
+  /** The number of sampled instances whose neighbours are searched at once */
+  private static final int BLOCK_SIZE = 10000;
+
   /**
    * Constructor
    */
@@ -309,7 +337,7 @@ public class ReliefFAttributeEval extends ASEvaluation implements
    **/
   @Override
   public Enumeration<Option> listOptions() {
-    Vector<Option> newVector = new Vector<Option>(4);
+    Vector<Option> newVector = new Vector<Option>(7);
     newVector.addElement(new Option("\tSpecify the number of instances to\n"
       + "\tsample when estimating attributes.\n"
       + "\tIf not specified, then all instances\n" + "\twill be used.", "M", 1,
@@ -328,6 +356,14 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       + "\tSensible value=1/5 to 1/10 of the\n"
       + "\tnumber of nearest neighbours.\n" + "\t(Default = 2)", "A", 1,
       "-A <num>"));
+    newVector.addElement(new Option(
+      "\tThe nearest neighbour search used to find\n"
+        + "\tthe hits and misses. A linear search scans\n"
+        + "\tall instances with ReliefF's own distance.\n"
+        + "\t(Default = weka.core.neighboursearch.LinearNNSearch)", "S", 1,
+      "-S <nearest neighbour search>"));
+    newVector.addElement(new Option("\t" + numExecutionSlotsTipText()
+      + " (default 1)", "num-slots", 1, "-num-slots <int>"));
     return newVector.elements();
   }
 
@@ -375,6 +411,19 @@ public class ReliefFAttributeEval extends ASEvaluation implements
    *  (Default = 2)
    * </pre>
    * 
+   * <pre>
+   * -S &lt;nearest neighbour search&gt;
+   *  The nearest neighbour search used to find
+   *  the hits and misses. A linear search scans
+   *  all instances with ReliefF's own distance.
+   *  (Default = weka.core.neighboursearch.LinearNNSearch)
+   * </pre>
+   * 
+   * <pre>
+   * -num-slots &lt;int&gt;
+   *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+   * </pre>
+   * 
    * <!-- options-end -->
    * 
    * @param options the list of options as an array of strings
@@ -409,6 +458,26 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       setWeightByDistance(true); // turn on weighting by distance
       setSigma(Integer.parseInt(optionString));
     }
+
+    optionString = Utils.getOption('S', options);
+
+    if (optionString.length() != 0) {
+      String[] searchSpec = Utils.splitOptions(optionString);
+      if (searchSpec.length == 0) {
+        throw new Exception("Invalid NearestNeighbourSearch algorithm "
+          + "specification string.");
+      }
+      String className = searchSpec[0];
+      searchSpec[0] = "";
+      setNearestNeighbourSearchAlgorithm((NearestNeighbourSearch) Utils
+        .forName(NearestNeighbourSearch.class, className, searchSpec));
+    }
+
+    optionString = Utils.getOption("num-slots", options);
+
+    if (optionString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
   }
 
   /**
@@ -560,6 +629,71 @@ public class ReliefFAttributeEval extends ASEvaluation implements
     return m_weightByDistance;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String nearestNeighbourSearchAlgorithmTipText() {
+    return "The nearest neighbour search used to find the hits and misses. "
+      + "A linear search scans all instances with ReliefF's own distance, "
+      + "which is exact. Any other search is built once for the instances "
+      + "of each class and uses its own distance function, normalized over "
+      + "the instances of the class, so the neighbours it finds are an "
+      + "approximation; a KDTree or BallTree makes ReliefF practical for "
+      + "large numbers of instances with few attributes.";
+  }
+
+  /**
+   * Gets the nearest neighbour search that finds the hits and misses.
+   * 
+   * @return the nearest neighbour search
+   */
+  public NearestNeighbourSearch getNearestNeighbourSearchAlgorithm() {
+    return m_NNSearch;
+  }
+
+  /**
+   * Sets the nearest neighbour search that finds the hits and misses.
+   * 
+   * @param nearestNeighbourSearchAlgorithm the nearest neighbour search
+   */
+  public void setNearestNeighbourSearchAlgorithm(
+    NearestNeighbourSearch nearestNeighbourSearchAlgorithm) {
+    m_NNSearch = nearestNeighbourSearchAlgorithm;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of execution slots, for example, the number of cores in the CPU.";
+  }
+
+  /**
+   * Gets the number of threads sampling instances.
+   * 
+   * @return the number of threads
+   */
+  public int getNumExecutionSlots() {
+    return m_poolSize;
+  }
+
+  /**
+   * Sets the number of threads sampling instances. Each thread accumulates
+   * the weights of its share of the sampled instances, and the weights of
+   * the threads are added up afterwards.
+   * 
+   * @param nT the number of threads
+   */
+  public void setNumExecutionSlots(int nT) {
+    m_poolSize = nT;
+  }
+
   /**
    * Gets the current settings of ReliefFAttributeEval.
    * 
@@ -586,6 +720,12 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       options.add("" + getSigma());
     }
 
+    options.add("-S");
+    options.add(m_NNSearch.getClass().getName() + " "
+      + Utils.joinOptions(m_NNSearch.getOptions()));
+    options.add("-num-slots");
+    options.add("" + m_poolSize);
+
     return options.toArray(new String[0]);
   }
 
@@ -619,6 +759,12 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       } else {
         text.append("\tEqual influence nearest neighbours\n");
       }
+
+      if (!(m_NNSearch instanceof LinearNNSearch)) {
+        text.append("\tNearest neighbour search: "
+          + m_NNSearch.getClass().getName() + " "
+          + Utils.joinOptions(m_NNSearch.getOptions()) + "\n");
+      }
     }
 
     return text.toString();
@@ -679,10 +825,7 @@ public class ReliefFAttributeEval extends ASEvaluation implements
     if (!m_numericClass) {
       m_numClasses = m_trainInstances.attribute(m_classIndex).numValues();
     } else {
-      m_ndc = 0;
       m_numClasses = 1;
-      m_nda = new double[m_numAttribs];
-      m_ndcda = new double[m_numAttribs];
     }
 
     if (m_weightByDistance) // set up the rank based weights
@@ -697,9 +840,6 @@ public class ReliefFAttributeEval extends ASEvaluation implements
 
     // the final attribute weights
     m_weights = new double[m_numAttribs];
-    // num classes (1 for numeric class) knn neighbours,
-    // and 0 = distance, 1 = instance index
-    m_karray = new double[m_numClasses][m_Knn][2];
 
     if (!m_numericClass) {
       m_classProbs = new double[m_numClasses];
@@ -713,9 +853,6 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       }
     }
 
-    m_worst = new double[m_numClasses];
-    m_index = new int[m_numClasses];
-    m_stored = new int[m_numClasses];
     m_minArray = new double[m_numAttribs];
     m_maxArray = new double[m_numAttribs];
 
@@ -733,7 +870,9 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       totalInstances = m_sampleM;
     }
 
-    // process each instance, updating attribute weights
+    // the sampled instances, in the order they are drawn
+    int[] samples = new int[totalInstances];
+    int numSamples = 0;
     for (int i = 0; i < totalInstances; i++) {
       if (totalInstances == m_numInstances) {
         z = i;
@@ -746,23 +885,51 @@ public class ReliefFAttributeEval extends ASEvaluation implements
       }
 
       if (!(m_trainInstances.instance(z).isMissing(m_classIndex))) {
-        // first clear the knn and worst index stuff for the classes
-        for (int j = 0; j < m_numClasses; j++) {
-          m_index[j] = m_stored[j] = 0;
-
-          for (int k = 0; k < m_Knn; k++) {
-            m_karray[j][k][0] = m_karray[j][k][1] = 0;
-          }
-        }
+        samples[numSamples++] = z;
+      }
+    }
 
-        findKHitMiss(z);
+    // process each instance, updating attribute weights
+    int numSlots = Math.max(1, Math.min(m_poolSize, numSamples));
+    Sampler[] samplers = new Sampler[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      samplers[i] = new Sampler();
+    }
+    ExecutorService pool = null;
+    try {
+      if (numSlots > 1) {
+        pool = Executors.newFixedThreadPool(numSlots);
+      }
+      if (!(m_NNSearch instanceof LinearNNSearch)) {
+        buildSearches();
+      }
+      for (int start = 0; start < numSamples; start += BLOCK_SIZE) {
+        sample(samples, start, Math.min(start + BLOCK_SIZE, numSamples),
+          samplers, pool);
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      m_classSearches = null;
+      m_classMembers = null;
+    }
 
+    // add up the weights of the threads, in a fixed order
+    m_ndc = 0;
+    if (m_numericClass) {
+      m_nda = new double[m_numAttribs];
+      m_ndcda = new double[m_numAttribs];
+    }
+    for (Sampler sampler : samplers) {
+      for (int i = 0; i < m_numAttribs; i++) {
+        m_weights[i] += sampler.m_weights[i];
         if (m_numericClass) {
-          updateWeightsNumericClass(z);
-        } else {
-          updateWeightsDiscreteClass(z);
+          m_nda[i] += sampler.m_nda[i];
+          m_ndcda[i] += sampler.m_ndcda[i];
         }
       }
+      m_ndc += sampler.m_ndc;
     }
 
     // now scale weights by 1/m_numInstances (nominal class) or
@@ -804,6 +971,8 @@ public class ReliefFAttributeEval extends ASEvaluation implements
     m_sigma = 2;
     m_weightByDistance = false;
     m_seed = 1;
+    m_NNSearch = new LinearNNSearch();
+    m_poolSize = 1;
   }
 
   /**
@@ -947,355 +1116,596 @@ public class ReliefFAttributeEval extends ASEvaluation implements
   }
 
   /**
-   * update attribute weights given an instance when the class is numeric
+   * Finds the k nearest neighbours of every class for the instances of a
+   * block of sampled instances, with the searches built on the instances of
+   * each class. The sampled instance itself is left out.
    * 
-   * @param instNum the index of the instance to use when updating weights
+   * @param samples the indices of the sampled instances
+   * @param start the first sampled instance of the block
+   * @param end the sampled instance after the block
+   * @return the training indices of the neighbours of each sampled instance
+   *         of the block, for each class
+   * @throws Exception if the neighbours could not be found
    */
-  private void updateWeightsNumericClass(int instNum) {
-    int i, j;
-    double temp, temp2;
-    int[] tempSorted = null;
-    double[] tempDist = null;
-    double distNorm = 1.0;
-    int firstI, secondI;
-
-    Instance inst = m_trainInstances.instance(instNum);
+  private int[][][] findNeighbours(int[] samples, int start, int end)
+    throws Exception {
+    int[][][] result = new int[end - start][m_numClasses][];
+    Instances targets = new Instances(m_trainInstances, end - start);
+    for (int b = start; b < end; b++) {
+      targets.add(m_trainInstances.instance(samples[b]));
+    }
 
-    // sort nearest neighbours and set up normalization variable
-    if (m_weightByDistance) {
-      tempDist = new double[m_stored[0]];
+    for (int cl = 0; cl < m_numClasses; cl++) {
+      if (m_classSearches[cl] == null) {
+        for (int b = 0; b < result.length; b++) {
+          result[b][cl] = new int[0];
+        }
+        continue;
+      }
 
-      for (j = 0, distNorm = 0; j < m_stored[0]; j++) {
-        // copy the distances
-        tempDist[j] = m_karray[0][j][0];
-        // sum normalizer
-        distNorm += m_weightsByRank[j];
+      // one more, as the sampled instance may be among the neighbours
+      int k = Math.min(m_Knn + 1, m_classSearches[cl].getInstances()
+        .numInstances());
+      int[][] indices = new int[result.length][];
+      double[][] distances = new double[result.length][];
+      m_classSearches[cl].kNearestNeighbours(targets, k, indices, distances);
+      for (int b = 0; b < result.length; b++) {
+        int[] neighbours = new int[Math.min(m_Knn, indices[b].length)];
+        int n = 0;
+        for (int j = 0; j < indices[b].length && n < neighbours.length; j++) {
+          int i = (m_classMembers[cl] == null) ? indices[b][j]
+            : m_classMembers[cl][indices[b][j]];
+          if (i != samples[start + b]) {
+            neighbours[n++] = i;
+          }
+        }
+        if (n < neighbours.length) {
+          int[] tmp = new int[n];
+          System.arraycopy(neighbours, 0, tmp, 0, n);
+          neighbours = tmp;
+        }
+        result[b][cl] = neighbours;
       }
+    }
+
+    return result;
+  }
 
-      tempSorted = Utils.sort(tempDist);
+  /**
+   * Builds a copy of the nearest neighbour search for the instances of each
+   * class (one for all instances if the class is numeric).
+   * 
+   * @throws Exception if a search could not be built
+   */
+  private void buildSearches() throws Exception {
+    m_classSearches = new NearestNeighbourSearch[m_numClasses];
+    m_classMembers = new int[m_numClasses][];
+
+    if (m_numericClass) {
+      m_classSearches[0] = (NearestNeighbourSearch) new SerializedObject(
+        m_NNSearch).getObject();
+      m_classSearches[0].setNumExecutionSlots(m_poolSize);
+      m_classSearches[0].setInstances(m_trainInstances);
+      return;
     }
 
-    for (i = 0; i < m_stored[0]; i++) {
-      // P diff prediction (class) given nearest instances
-      if (m_weightByDistance) {
-        temp = difference(
-          m_classIndex,
-          inst.value(m_classIndex),
-          m_trainInstances.instance((int) m_karray[0][tempSorted[i]][1]).value(
-            m_classIndex));
-        temp *= (m_weightsByRank[i] / distNorm);
+    // instances with a missing class are hits and misses of the first class,
+    // as in the linear search
+    int[] counts = new int[m_numClasses];
+    for (int i = 0; i < m_numInstances; i++) {
+      counts[(int) m_trainInstances.instance(i).value(m_classIndex)]++;
+    }
+    Instances[] subsets = new Instances[m_numClasses];
+    for (int cl = 0; cl < m_numClasses; cl++) {
+      subsets[cl] = new Instances(m_trainInstances, counts[cl]);
+      m_classMembers[cl] = new int[counts[cl]];
+      counts[cl] = 0;
+    }
+    for (int i = 0; i < m_numInstances; i++) {
+      int cl = (int) m_trainInstances.instance(i).value(m_classIndex);
+      subsets[cl].add(m_trainInstances.instance(i));
+      m_classMembers[cl][counts[cl]++] = i;
+    }
+    for (int cl = 0; cl < m_numClasses; cl++) {
+      if (subsets[cl].numInstances() > 0) {
+        m_classSearches[cl] = (NearestNeighbourSearch) new SerializedObject(
+          m_NNSearch).getObject();
+        m_classSearches[cl].setNumExecutionSlots(m_poolSize);
+        m_classSearches[cl].setInstances(subsets[cl]);
+      }
+    }
+  }
+
+  /**
+   * Updates the attribute weights with a block of sampled instances. The
+   * block is split into contiguous ranges, one for each sampler, which are
+   * processed in parallel if there is a thread pool.
+   * 
+   * @param samples the indices of the sampled instances
+   * @param start the first sampled instance of the block
+   * @param end the sampled instance after the block
+   * @param samplers the samplers, one for each thread
+   * @param pool the thread pool, null to process the block sequentially
+   * @throws Exception if the neighbours could not be found
+   */
+  private void sample(final int[] samples, final int start, int end,
+    Sampler[] samplers, ExecutorService pool) throws Exception {
+    final int[][][] neighbours = (m_classSearches == null) ? null
+      : findNeighbours(samples, start, end);
+
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int s = 0; s < samplers.length; s++) {
+      final Sampler sampler = samplers[s];
+      final int first = start + (int) ((long) (end - start) * s / samplers.length);
+      final int last = start
+        + (int) ((long) (end - start) * (s + 1) / samplers.length);
+      Callable<Void> task = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int b = first; b < last; b++) {
+            if (neighbours == null) {
+              sampler.sample(samples[b]);
+            } else {
+              sampler.sample(samples[b], neighbours[b - start]);
+            }
+          }
+          return null;
+        }
+      };
+      if (pool == null) {
+        task.call();
       } else {
-        temp = difference(m_classIndex, inst.value(m_classIndex),
-          m_trainInstances.instance((int) m_karray[0][i][1])
-            .value(m_classIndex));
-        temp *= (1.0 / m_stored[0]); // equal influence
+        results.add(pool.submit(task));
       }
+    }
+    for (Future<Void> result : results) {
+      result.get();
+    }
+  }
 
-      m_ndc += temp;
+  /**
+   * The nearest hits and misses of one sampled instance at a time, and the
+   * attribute weights accumulated over the instances sampled by one thread.
+   */
+  private class Sampler {
+
+    /** k nearest scores + instance indexes for n classes */
+    private final double[][][] m_karray;
+
+    /** Keep track of the farthest instance for each class */
+    private final double[] m_worst;
+
+    /** Index in the m_karray of the farthest instance for each class */
+    private final int[] m_index;
+
+    /** Number of nearest neighbours stored of each class */
+    private final int[] m_stored;
+
+    /** The attribute weights accumulated by this sampler */
+    private final double[] m_weights;
+
+    /** Prob. of different prediction, accumulated by this sampler */
+    private double m_ndc;
+
+    /** Prob. of different attribute value, accumulated by this sampler */
+    private final double[] m_nda;
+
+    /** Prob. of different prediction and attribute value, accumulated */
+    private final double[] m_ndcda;
+
+    /**
+     * Creates a sampler with empty weights.
+     */
+    Sampler() {
+      // num classes (1 for numeric class) knn neighbours,
+      // and 0 = distance, 1 = instance index
+      m_karray = new double[m_numClasses][m_Knn][2];
+      m_worst = new double[m_numClasses];
+      m_index = new int[m_numClasses];
+      m_stored = new int[m_numClasses];
+      m_weights = new double[m_numAttribs];
+      if (m_numericClass) {
+        m_nda = new double[m_numAttribs];
+        m_ndcda = new double[m_numAttribs];
+      } else {
+        m_nda = m_ndcda = null;
+      }
+    }
 
-      Instance cmp;
-      cmp = (m_weightByDistance) ? m_trainInstances
-        .instance((int) m_karray[0][tempSorted[i]][1]) : m_trainInstances
-        .instance((int) m_karray[0][i][1]);
+    /**
+     * Clears the knn and worst index stuff for the classes.
+     */
+    void clear() {
+      for (int j = 0; j < m_numClasses; j++) {
+        m_index[j] = m_stored[j] = 0;
 
-      double temp_diffP_diffA_givNearest = difference(m_classIndex,
-        inst.value(m_classIndex), cmp.value(m_classIndex));
-      // now the attributes
-      for (int p1 = 0, p2 = 0; p1 < inst.numValues() || p2 < cmp.numValues();) {
-        if (p1 >= inst.numValues()) {
-          firstI = m_trainInstances.numAttributes();
-        } else {
-          firstI = inst.index(p1);
+        for (int k = 0; k < m_Knn; k++) {
+          m_karray[j][k][0] = m_karray[j][k][1] = 0;
         }
-        if (p2 >= cmp.numValues()) {
-          secondI = m_trainInstances.numAttributes();
-        } else {
-          secondI = cmp.index(p2);
-        }
-        if (firstI == m_trainInstances.classIndex()) {
-          p1++;
-          continue;
-        }
-        if (secondI == m_trainInstances.classIndex()) {
-          p2++;
-          continue;
-        }
-        temp = 0.0;
-        temp2 = 0.0;
-
-        if (firstI == secondI) {
-          j = firstI;
-          temp = difference(j, inst.valueSparse(p1), cmp.valueSparse(p2));
-          p1++;
-          p2++;
-        } else if (firstI > secondI) {
-          j = secondI;
-          temp = difference(j, 0, cmp.valueSparse(p2));
-          p2++;
-        } else {
-          j = firstI;
-          temp = difference(j, inst.valueSparse(p1), 0);
-          p1++;
+      }
+    }
+
+    /**
+     * Updates the weights with a sampled instance, whose hits and misses are
+     * found by comparing it with all other instances.
+     * 
+     * @param instNum the index of the sampled instance
+     */
+    void sample(int instNum) {
+      clear();
+      findKHitMiss(instNum);
+      updateWeights(instNum);
+    }
+
+    /**
+     * Updates the weights with a sampled instance, whose hits and misses
+     * have been found by a nearest neighbour search. They are ranked by
+     * ReliefF's own distance.
+     * 
+     * @param instNum the index of the sampled instance
+     * @param neighbours the training indices of the neighbours of each class
+     */
+    void sample(int instNum, int[][] neighbours) {
+      Instance thisInst = m_trainInstances.instance(instNum);
+
+      clear();
+      for (int cl = 0; cl < m_numClasses; cl++) {
+        for (int i : neighbours[cl]) {
+          m_karray[cl][m_stored[cl]][0] = distance(
+            m_trainInstances.instance(i), thisInst);
+          m_karray[cl][m_stored[cl]][1] = i;
+          m_stored[cl]++;
         }
+      }
+      updateWeights(instNum);
+    }
 
-        temp2 = temp_diffP_diffA_givNearest * temp;
-        // P of different prediction and different att value given
-        // nearest instances
-        if (m_weightByDistance) {
-          temp2 *= (m_weightsByRank[i] / distNorm);
-        } else {
-          temp2 *= (1.0 / m_stored[0]); // equal influence
+    /**
+     * Updates the weights with a sampled instance whose hits and misses have
+     * been stored.
+     * 
+     * @param instNum the index of the sampled instance
+     */
+    void updateWeights(int instNum) {
+      if (m_numericClass) {
+        updateWeightsNumericClass(instNum);
+      } else {
+        updateWeightsDiscreteClass(instNum);
+      }
+    }
+
+    /**
+     * update attribute weights given an instance when the class is numeric
+     * 
+     * @param instNum the index of the instance to use when updating weights
+     */
+    void updateWeightsNumericClass(int instNum) {
+      int i, j;
+      double temp, temp2;
+      int[] tempSorted = null;
+      double[] tempDist = null;
+      double distNorm = 1.0;
+      int firstI, secondI;
+
+      Instance inst = m_trainInstances.instance(instNum);
+
+      // sort nearest neighbours and set up normalization variable
+      if (m_weightByDistance) {
+        tempDist = new double[m_stored[0]];
+
+        for (j = 0, distNorm = 0; j < m_stored[0]; j++) {
+          // copy the distances
+          tempDist[j] = m_karray[0][j][0];
+          // sum normalizer
+          distNorm += m_weightsByRank[j];
         }
 
-        m_ndcda[j] += temp2;
+        tempSorted = Utils.sort(tempDist);
+      }
 
-        // P of different attribute val given nearest instances
+      for (i = 0; i < m_stored[0]; i++) {
+        // P diff prediction (class) given nearest instances
         if (m_weightByDistance) {
+          temp = difference(
+            m_classIndex,
+            inst.value(m_classIndex),
+            m_trainInstances.instance((int) m_karray[0][tempSorted[i]][1]).value(
+              m_classIndex));
           temp *= (m_weightsByRank[i] / distNorm);
         } else {
+          temp = difference(m_classIndex, inst.value(m_classIndex),
+            m_trainInstances.instance((int) m_karray[0][i][1])
+              .value(m_classIndex));
           temp *= (1.0 / m_stored[0]); // equal influence
         }
 
-        m_nda[j] += temp;
-      }
-    }
-  }
-
-  /**
-   * update attribute weights given an instance when the class is discrete
-   * 
-   * @param instNum the index of the instance to use when updating weights
-   */
-  private void updateWeightsDiscreteClass(int instNum) {
-    int i, j, k;
-    int cl;
-    double temp_diff, w_norm = 1.0;
-    double[] tempDistClass;
-    int[] tempSortedClass = null;
-    double distNormClass = 1.0;
-    double[] tempDistAtt;
-    int[][] tempSortedAtt = null;
-    double[] distNormAtt = null;
-    int firstI, secondI;
-
-    // store the indexes (sparse instances) of non-zero elements
-    Instance inst = m_trainInstances.instance(instNum);
+        m_ndc += temp;
 
-    // get the class of this instance
-    cl = (int) m_trainInstances.instance(instNum).value(m_classIndex);
+        Instance cmp;
+        cmp = (m_weightByDistance) ? m_trainInstances
+          .instance((int) m_karray[0][tempSorted[i]][1]) : m_trainInstances
+          .instance((int) m_karray[0][i][1]);
 
-    // sort nearest neighbours and set up normalization variables
-    if (m_weightByDistance) {
-      // do class (hits) first
-      // sort the distances
-      tempDistClass = new double[m_stored[cl]];
+        double temp_diffP_diffA_givNearest = difference(m_classIndex,
+          inst.value(m_classIndex), cmp.value(m_classIndex));
+        // now the attributes
+        for (int p1 = 0, p2 = 0; p1 < inst.numValues() || p2 < cmp.numValues();) {
+          if (p1 >= inst.numValues()) {
+            firstI = m_trainInstances.numAttributes();
+          } else {
+            firstI = inst.index(p1);
+          }
+          if (p2 >= cmp.numValues()) {
+            secondI = m_trainInstances.numAttributes();
+          } else {
+            secondI = cmp.index(p2);
+          }
+          if (firstI == m_trainInstances.classIndex()) {
+            p1++;
+            continue;
+          }
+          if (secondI == m_trainInstances.classIndex()) {
+            p2++;
+            continue;
+          }
+          temp = 0.0;
+          temp2 = 0.0;
+
+          if (firstI == secondI) {
+            j = firstI;
+            temp = difference(j, inst.valueSparse(p1), cmp.valueSparse(p2));
+            p1++;
+            p2++;
+          } else if (firstI > secondI) {
+            j = secondI;
+            temp = difference(j, 0, cmp.valueSparse(p2));
+            p2++;
+          } else {
+            j = firstI;
+            temp = difference(j, inst.valueSparse(p1), 0);
+            p1++;
+          }
 
-      for (j = 0, distNormClass = 0; j < m_stored[cl]; j++) {
-        // copy the distances
-        tempDistClass[j] = m_karray[cl][j][0];
-        // sum normalizer
-        distNormClass += m_weightsByRank[j];
-      }
+          temp2 = temp_diffP_diffA_givNearest * temp;
+          // P of different prediction and different att value given
+          // nearest instances
+          if (m_weightByDistance) {
+            temp2 *= (m_weightsByRank[i] / distNorm);
+          } else {
+            temp2 *= (1.0 / m_stored[0]); // equal influence
+          }
 
-      tempSortedClass = Utils.sort(tempDistClass);
-      // do misses (other classes)
-      tempSortedAtt = new int[m_numClasses][1];
-      distNormAtt = new double[m_numClasses];
+          m_ndcda[j] += temp2;
 
-      for (k = 0; k < m_numClasses; k++) {
-        if (k != cl) // already done cl
-        {
-          // sort the distances
-          tempDistAtt = new double[m_stored[k]];
-
-          for (j = 0, distNormAtt[k] = 0; j < m_stored[k]; j++) {
-            // copy the distances
-            tempDistAtt[j] = m_karray[k][j][0];
-            // sum normalizer
-            distNormAtt[k] += m_weightsByRank[j];
+          // P of different attribute val given nearest instances
+          if (m_weightByDistance) {
+            temp *= (m_weightsByRank[i] / distNorm);
+          } else {
+            temp *= (1.0 / m_stored[0]); // equal influence
           }
 
-          tempSortedAtt[k] = Utils.sort(tempDistAtt);
+          m_nda[j] += temp;
         }
       }
     }
 
-    if (m_numClasses > 2) {
-      // the amount of probability space left after removing the
-      // probability of this instance's class value
-      w_norm = (1.0 - m_classProbs[cl]);
-    }
-
-    // do the k nearest hits of the same class
-    for (j = 0, temp_diff = 0.0; j < m_stored[cl]; j++) {
-      Instance cmp;
-      cmp = (m_weightByDistance) ? m_trainInstances
-        .instance((int) m_karray[cl][tempSortedClass[j]][1]) : m_trainInstances
-        .instance((int) m_karray[cl][j][1]);
-
-      for (int p1 = 0, p2 = 0; p1 < inst.numValues() || p2 < cmp.numValues();) {
-        if (p1 >= inst.numValues()) {
-          firstI = m_trainInstances.numAttributes();
-        } else {
-          firstI = inst.index(p1);
-        }
-        if (p2 >= cmp.numValues()) {
-          secondI = m_trainInstances.numAttributes();
-        } else {
-          secondI = cmp.index(p2);
-        }
-        if (firstI == m_trainInstances.classIndex()) {
-          p1++;
-          continue;
-        }
-        if (secondI == m_trainInstances.classIndex()) {
-          p2++;
-          continue;
-        }
-        if (firstI == secondI) {
-          i = firstI;
-          temp_diff = difference(i, inst.valueSparse(p1), cmp.valueSparse(p2));
-          p1++;
-          p2++;
-        } else if (firstI > secondI) {
-          i = secondI;
-          temp_diff = difference(i, 0, cmp.valueSparse(p2));
-          p2++;
-        } else {
-          i = firstI;
-          temp_diff = difference(i, inst.valueSparse(p1), 0);
-          p1++;
+    /**
+     * update attribute weights given an instance when the class is discrete
+     * 
+     * @param instNum the index of the instance to use when updating weights
+     */
+    void updateWeightsDiscreteClass(int instNum) {
+      int i, j, k;
+      int cl;
+      double temp_diff, w_norm = 1.0;
+      double[] tempDistClass;
+      int[] tempSortedClass = null;
+      double distNormClass = 1.0;
+      double[] tempDistAtt;
+      int[][] tempSortedAtt = null;
+      double[] distNormAtt = null;
+      int firstI, secondI;
+
+      // store the indexes (sparse instances) of non-zero elements
+      Instance inst = m_trainInstances.instance(instNum);
+
+      // get the class of this instance
+      cl = (int) m_trainInstances.instance(instNum).value(m_classIndex);
+
+      // sort nearest neighbours and set up normalization variables
+      if (m_weightByDistance) {
+        // do class (hits) first
+        // sort the distances
+        tempDistClass = new double[m_stored[cl]];
+
+        for (j = 0, distNormClass = 0; j < m_stored[cl]; j++) {
+          // copy the distances
+          tempDistClass[j] = m_karray[cl][j][0];
+          // sum normalizer
+          distNormClass += m_weightsByRank[j];
         }
 
-        if (m_weightByDistance) {
-          temp_diff *= (m_weightsByRank[j] / distNormClass);
-        } else {
-          if (m_stored[cl] > 0) {
-            temp_diff /= m_stored[cl];
+        tempSortedClass = Utils.sort(tempDistClass);
+        // do misses (other classes)
+        tempSortedAtt = new int[m_numClasses][1];
+        distNormAtt = new double[m_numClasses];
+
+        for (k = 0; k < m_numClasses; k++) {
+          if (k != cl) // already done cl
+          {
+            // sort the distances
+            tempDistAtt = new double[m_stored[k]];
+
+            for (j = 0, distNormAtt[k] = 0; j < m_stored[k]; j++) {
+              // copy the distances
+              tempDistAtt[j] = m_karray[k][j][0];
+              // sum normalizer
+              distNormAtt[k] += m_weightsByRank[j];
+            }
+
+            tempSortedAtt[k] = Utils.sort(tempDistAtt);
           }
         }
-        m_weights[i] -= temp_diff;
+      }
 
+      if (m_numClasses > 2) {
+        // the amount of probability space left after removing the
+        // probability of this instance's class value
+        w_norm = (1.0 - m_classProbs[cl]);
       }
-    }
 
-    // now do k nearest misses from each of the other classes
-    temp_diff = 0.0;
-
-    for (k = 0; k < m_numClasses; k++) {
-      if (k != cl) // already done cl
-      {
-        for (j = 0; j < m_stored[k]; j++) {
-          Instance cmp;
-          cmp = (m_weightByDistance) ? m_trainInstances
-            .instance((int) m_karray[k][tempSortedAtt[k][j]][1])
-            : m_trainInstances.instance((int) m_karray[k][j][1]);
-
-          for (int p1 = 0, p2 = 0; p1 < inst.numValues()
-            || p2 < cmp.numValues();) {
-            if (p1 >= inst.numValues()) {
-              firstI = m_trainInstances.numAttributes();
-            } else {
-              firstI = inst.index(p1);
-            }
-            if (p2 >= cmp.numValues()) {
-              secondI = m_trainInstances.numAttributes();
-            } else {
-              secondI = cmp.index(p2);
-            }
-            if (firstI == m_trainInstances.classIndex()) {
-              p1++;
-              continue;
-            }
-            if (secondI == m_trainInstances.classIndex()) {
-              p2++;
-              continue;
-            }
-            if (firstI == secondI) {
-              i = firstI;
-              temp_diff = difference(i, inst.valueSparse(p1),
-                cmp.valueSparse(p2));
-              p1++;
-              p2++;
-            } else if (firstI > secondI) {
-              i = secondI;
-              temp_diff = difference(i, 0, cmp.valueSparse(p2));
-              p2++;
-            } else {
-              i = firstI;
-              temp_diff = difference(i, inst.valueSparse(p1), 0);
-              p1++;
-            }
+      // do the k nearest hits of the same class
+      for (j = 0, temp_diff = 0.0; j < m_stored[cl]; j++) {
+        Instance cmp;
+        cmp = (m_weightByDistance) ? m_trainInstances
+          .instance((int) m_karray[cl][tempSortedClass[j]][1]) : m_trainInstances
+          .instance((int) m_karray[cl][j][1]);
 
-            if (m_weightByDistance) {
-              temp_diff *= (m_weightsByRank[j] / distNormAtt[k]);
-            } else {
-              if (m_stored[k] > 0) {
-                temp_diff /= m_stored[k];
-              }
-            }
-            if (m_numClasses > 2) {
-              m_weights[i] += ((m_classProbs[k] / w_norm) * temp_diff);
-            } else {
-              m_weights[i] += temp_diff;
+        for (int p1 = 0, p2 = 0; p1 < inst.numValues() || p2 < cmp.numValues();) {
+          if (p1 >= inst.numValues()) {
+            firstI = m_trainInstances.numAttributes();
+          } else {
+            firstI = inst.index(p1);
+          }
+          if (p2 >= cmp.numValues()) {
+            secondI = m_trainInstances.numAttributes();
+          } else {
+            secondI = cmp.index(p2);
+          }
+          if (firstI == m_trainInstances.classIndex()) {
+            p1++;
+            continue;
+          }
+          if (secondI == m_trainInstances.classIndex()) {
+            p2++;
+            continue;
+          }
+          if (firstI == secondI) {
+            i = firstI;
+            temp_diff = difference(i, inst.valueSparse(p1), cmp.valueSparse(p2));
+            p1++;
+            p2++;
+          } else if (firstI > secondI) {
+            i = secondI;
+            temp_diff = difference(i, 0, cmp.valueSparse(p2));
+            p2++;
+          } else {
+            i = firstI;
+            temp_diff = difference(i, inst.valueSparse(p1), 0);
+            p1++;
+          }
+
+          if (m_weightByDistance) {
+            temp_diff *= (m_weightsByRank[j] / distNormClass);
+          } else {
+            if (m_stored[cl] > 0) {
+              temp_diff /= m_stored[cl];
             }
           }
+          m_weights[i] -= temp_diff;
+
         }
       }
-    }
-  }
 
-  /**
-   * Find the K nearest instances to supplied instance if the class is numeric,
-   * or the K nearest Hits (same class) and Misses (K from each of the other
-   * classes) if the class is discrete.
-   * 
-   * @param instNum the index of the instance to find nearest neighbours of
-   */
-  private void findKHitMiss(int instNum) {
-    int i, j;
-    int cl;
-    double ww;
-    double temp_diff = 0.0;
-    Instance thisInst = m_trainInstances.instance(instNum);
-
-    for (i = 0; i < m_numInstances; i++) {
-      if (i != instNum) {
-        Instance cmpInst = m_trainInstances.instance(i);
-        temp_diff = distance(cmpInst, thisInst);
-
-        // class of this training instance or 0 if numeric
-        if (m_numericClass) {
-          cl = 0;
-        } else {
-          cl = (int) m_trainInstances.instance(i).value(m_classIndex);
-        }
+      // now do k nearest misses from each of the other classes
+      temp_diff = 0.0;
 
-        // add this diff to the list for the class of this instance
-        if (m_stored[cl] < m_Knn) {
-          m_karray[cl][m_stored[cl]][0] = temp_diff;
-          m_karray[cl][m_stored[cl]][1] = i;
-          m_stored[cl]++;
+      for (k = 0; k < m_numClasses; k++) {
+        if (k != cl) // already done cl
+        {
+          for (j = 0; j < m_stored[k]; j++) {
+            Instance cmp;
+            cmp = (m_weightByDistance) ? m_trainInstances
+              .instance((int) m_karray[k][tempSortedAtt[k][j]][1])
+              : m_trainInstances.instance((int) m_karray[k][j][1]);
+
+            for (int p1 = 0, p2 = 0; p1 < inst.numValues()
+              || p2 < cmp.numValues();) {
+              if (p1 >= inst.numValues()) {
+                firstI = m_trainInstances.numAttributes();
+              } else {
+                firstI = inst.index(p1);
+              }
+              if (p2 >= cmp.numValues()) {
+                secondI = m_trainInstances.numAttributes();
+              } else {
+                secondI = cmp.index(p2);
+              }
+              if (firstI == m_trainInstances.classIndex()) {
+                p1++;
+                continue;
+              }
+              if (secondI == m_trainInstances.classIndex()) {
+                p2++;
+                continue;
+              }
+              if (firstI == secondI) {
+                i = firstI;
+                temp_diff = difference(i, inst.valueSparse(p1),
+                  cmp.valueSparse(p2));
+                p1++;
+                p2++;
+              } else if (firstI > secondI) {
+                i = secondI;
+                temp_diff = difference(i, 0, cmp.valueSparse(p2));
+                p2++;
+              } else {
+                i = firstI;
+                temp_diff = difference(i, inst.valueSparse(p1), 0);
+                p1++;
+              }
 
-          // note the worst diff for this class
-          for (j = 0, ww = -1.0; j < m_stored[cl]; j++) {
-            if (m_karray[cl][j][0] > ww) {
-              ww = m_karray[cl][j][0];
-              m_index[cl] = j;
+              if (m_weightByDistance) {
+                temp_diff *= (m_weightsByRank[j] / distNormAtt[k]);
+              } else {
+                if (m_stored[k] > 0) {
+                  temp_diff /= m_stored[k];
+                }
+              }
+              if (m_numClasses > 2) {
+                m_weights[i] += ((m_classProbs[k] / w_norm) * temp_diff);
+              } else {
+                m_weights[i] += temp_diff;
+              }
             }
           }
+        }
+      }
+    }
 
-          m_worst[cl] = ww;
-        } else
-        /*
-         * if we already have stored knn for this class then check to see if
-         * this instance is better than the worst
-         */
-        {
-          if (temp_diff < m_karray[cl][m_index[cl]][0]) {
-            m_karray[cl][m_index[cl]][0] = temp_diff;
-            m_karray[cl][m_index[cl]][1] = i;
+    /**
+     * Find the K nearest instances to supplied instance if the class is numeric,
+     * or the K nearest Hits (same class) and Misses (K from each of the other
+     * classes) if the class is discrete.
+     * 
+     * @param instNum the index of the instance to find nearest neighbours of
+     */
+    void findKHitMiss(int instNum) {
+      int i, j;
+      int cl;
+      double ww;
+      double temp_diff = 0.0;
+      Instance thisInst = m_trainInstances.instance(instNum);
+
+      for (i = 0; i < m_numInstances; i++) {
+        if (i != instNum) {
+          Instance cmpInst = m_trainInstances.instance(i);
+          temp_diff = distance(cmpInst, thisInst);
+
+          // class of this training instance or 0 if numeric
+          if (m_numericClass) {
+            cl = 0;
+          } else {
+            cl = (int) m_trainInstances.instance(i).value(m_classIndex);
+          }
+
+          // add this diff to the list for the class of this instance
+          if (m_stored[cl] < m_Knn) {
+            m_karray[cl][m_stored[cl]][0] = temp_diff;
+            m_karray[cl][m_stored[cl]][1] = i;
+            m_stored[cl]++;
 
+            // note the worst diff for this class
             for (j = 0, ww = -1.0; j < m_stored[cl]; j++) {
               if (m_karray[cl][j][0] > ww) {
                 ww = m_karray[cl][j][0];
@@ -1304,6 +1714,25 @@ public class ReliefFAttributeEval extends ASEvaluation implements
             }
 
             m_worst[cl] = ww;
+          } else
+          /*
+           * if we already have stored knn for this class then check to see if
+           * this instance is better than the worst
+           */
+          {
+            if (temp_diff < m_karray[cl][m_index[cl]][0]) {
+              m_karray[cl][m_index[cl]][0] = temp_diff;
+              m_karray[cl][m_index[cl]][1] = i;
+
+              for (j = 0, ww = -1.0; j < m_stored[cl]; j++) {
+                if (m_karray[cl][j][0] > ww) {
+                  ww = m_karray[cl][j][0];
+                  m_index[cl] = j;
+                }
+              }
+
+              m_worst[cl] = ww;
+            }
           }
         }
       }
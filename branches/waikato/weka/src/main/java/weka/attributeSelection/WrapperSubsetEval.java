@@ -21,28 +21,35 @@
 
 package weka.attributeSelection;
 
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.rules.ZeroR;
+import weka.core.Attribute;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.RevisionUtils;
 import weka.core.SelectedTag;
+import weka.core.SparseInstance;
 import weka.core.Tag;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.TechnicalInformationHandler;
+import weka.core.ThreadSafe;
 import weka.core.Utils;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
@@ -123,6 +130,11 @@ import weka.filters.unsupervised.attribute.Remove;
  * </pre>
  * 
  * <pre>
+ * -num-slots &lt;int&gt;
+ *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+ * </pre>
+ * 
+ * <pre>
  * Options specific to scheme weka.classifiers.rules.ZeroR:
  * </pre>
  * 
@@ -138,7 +150,7 @@ import weka.filters.unsupervised.attribute.Remove;
  * @version $Revision$
  */
 public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
-  OptionHandler, TechnicalInformationHandler {
+  OptionHandler, TechnicalInformationHandler, ThreadSafe {
 
   /** for serialization */
   static final long serialVersionUID = -4573057658746728675L;
@@ -149,8 +161,6 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
   private int m_classIndex;
   /** number of attributes in the training data */
   private int m_numAttribs;
-  /** holds an evaluation object */
-  private Evaluation m_Evaluation;
   /** holds the base classifier object */
   private Classifier m_BaseClassifier;
   /** number of folds to use for cross validation */
@@ -163,6 +173,15 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
    */
   private double m_threshold;
 
+  /** the number of threads running the folds of a cross-validation */
+  private int m_poolSize = 1;
+
+  /**
+   * the merits of the subsets evaluated since the evaluator was built, not
+   * serialized
+   */
+  private transient volatile ConcurrentHashMap<BitSet, Double> m_merits;
+
   public static final int EVAL_DEFAULT = 1;
   public static final int EVAL_ACCURACY = 2;
   public static final int EVAL_RMSE = 3;
@@ -247,7 +266,7 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
    **/
   @Override
   public Enumeration<Option> listOptions() {
-    Vector<Option> newVector = new Vector<Option>(4);
+    Vector<Option> newVector = new Vector<Option>(7);
     newVector.addElement(new Option(
       "\tclass name of base learner to use for \taccuracy estimation.\n"
         + "\tPlace any classifier options LAST on the command line\n"
@@ -283,6 +302,9 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
           + "\tthe class-weighted average.", "IRclass", 1,
         "-IRclass <label | index>"));
 
+    newVector.addElement(new Option("\t" + numExecutionSlotsTipText()
+      + " (default 1)", "num-slots", 1, "-num-slots <int>"));
+
     if ((m_BaseClassifier != null)
       && (m_BaseClassifier instanceof OptionHandler)) {
       newVector.addElement(new Option("", "", 0,
@@ -344,6 +366,11 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
    * </pre>
    * 
    * <pre>
+   * -num-slots &lt;int&gt;
+   *  The number of execution slots, for example, the number of cores in the CPU. (default 1)
+   * </pre>
+   * 
+   * <pre>
    * Options specific to scheme weka.classifiers.rules.ZeroR:
    * </pre>
    * 
@@ -416,6 +443,11 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
     if (optionString.length() > 0) {
       setIRClassValue(optionString);
     }
+
+    optionString = Utils.getOption("num-slots", options);
+    if (optionString.length() > 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
   }
 
   /**
@@ -571,6 +603,34 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
     return m_seed;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of execution slots, for example, the number of cores in the CPU.";
+  }
+
+  /**
+   * Set the number of threads that run the folds of a cross-validation
+   * 
+   * @param nT the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots(int nT) {
+    m_poolSize = nT;
+  }
+
+  /**
+   * Get the number of threads that run the folds of a cross-validation
+   * 
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots() {
+    return m_poolSize;
+  }
+
   /**
    * Returns the tip text for this property
    * 
@@ -613,7 +673,7 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
       classifierOptions = ((OptionHandler) m_BaseClassifier).getOptions();
     }
 
-    String[] options = new String[13 + classifierOptions.length];
+    String[] options = new String[15 + classifierOptions.length];
     int current = 0;
 
     if (getClassifier() != null) {
@@ -656,6 +716,9 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
       options[current++] = m_IRClassValS;
     }
 
+    options[current++] = "-num-slots";
+    options[current++] = "" + getNumExecutionSlots();
+
     options[current++] = "--";
     System.arraycopy(classifierOptions, 0, options, current,
       classifierOptions.length);
@@ -670,11 +733,12 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
 
   protected void resetOptions() {
     m_trainInstances = null;
-    m_Evaluation = null;
     m_BaseClassifier = new ZeroR();
     m_folds = 5;
     m_seed = 1;
     m_threshold = 0.01;
+    m_poolSize = 1;
+    m_merits = null;
   }
 
   /**
@@ -730,6 +794,7 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
     m_trainInstances = data;
     m_classIndex = m_trainInstances.classIndex();
     m_numAttribs = m_trainInstances.numAttributes();
+    m_merits = null;
 
     if (m_IRClassValS != null && m_IRClassValS.length() > 0) {
       // try to parse as a number first
@@ -746,89 +811,143 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
   }
 
   /**
-   * Evaluates a subset of attributes
+   * Returns the training data restricted to a subset of the attributes and
+   * the class. The values of the selected columns are copied straight from
+   * the training data, rather than copying all of it and filtering the copy.
    * 
-   * @param subset a bitset representing the attribute subset to be evaluated
-   * @return the error rate
-   * @throws Exception if the subset could not be evaluated
+   * @param subset the attribute subset
+   * @return the projected data
+   * @throws Exception if the data can't be projected
    */
-  @Override
-  public double evaluateSubset(BitSet subset) throws Exception {
-    double evalMetric = 0;
-    double[] repError = new double[5];
+  protected Instances project(BitSet subset) throws Exception {
     int numAttributes = 0;
     int i, j;
-    Random Rnd = new Random(m_seed);
-    Remove delTransform = new Remove();
-    delTransform.setInvertSelection(true);
-    // copy the instances
-    Instances trainCopy = new Instances(m_trainInstances);
 
     // count attributes set in the BitSet
     for (i = 0; i < m_numAttribs; i++) {
-      if (subset.get(i)) {
+      if (subset.get(i) || i == m_classIndex) {
         numAttributes++;
       }
     }
 
-    // set up an array of attribute indexes for the filter (+1 for the class)
-    int[] featArray = new int[numAttributes + 1];
-
+    // set up an array of attribute indexes, including the class
+    int[] featArray = new int[numAttributes];
     for (i = 0, j = 0; i < m_numAttribs; i++) {
-      if (subset.get(i)) {
+      if (subset.get(i) || i == m_classIndex) {
         featArray[j++] = i;
       }
     }
 
-    featArray[j] = m_classIndex;
-    delTransform.setAttributeIndicesArray(featArray);
-    delTransform.setInputFormat(trainCopy);
-    trainCopy = Filter.useFilter(trainCopy, delTransform);
+    // string and relational values live in the attributes, so leave them
+    // to the Remove filter
+    if (m_trainInstances.checkForStringAttributes()
+      || m_trainInstances.checkForAttributeType(Attribute.RELATIONAL)) {
+      Remove delTransform = new Remove();
+      delTransform.setInvertSelection(true);
+      delTransform.setAttributeIndicesArray(featArray);
+      delTransform.setInputFormat(m_trainInstances);
+      return Filter.useFilter(m_trainInstances, delTransform);
+    }
+
+    ArrayList<Attribute> atts = new ArrayList<Attribute>(numAttributes);
+    int classIndex = -1;
+    for (j = 0; j < numAttributes; j++) {
+      if (featArray[j] == m_classIndex) {
+        classIndex = j;
+      }
+      atts.add((Attribute) m_trainInstances.attribute(featArray[j]).copy());
+    }
+    Instances result = new Instances(m_trainInstances.relationName(), atts,
+      m_trainInstances.numInstances());
+    result.setClassIndex(classIndex);
+
+    for (i = 0; i < m_trainInstances.numInstances(); i++) {
+      Instance inst = m_trainInstances.instance(i);
+      double[] vals = new double[numAttributes];
+      for (j = 0; j < numAttributes; j++) {
+        vals[j] = inst.value(featArray[j]);
+      }
+      if (inst instanceof SparseInstance) {
+        result.add(new SparseInstance(inst.weight(), vals));
+      } else {
+        result.add(new DenseInstance(inst.weight(), vals));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Evaluates a subset of attributes. The folds of each cross-validation are
+   * run concurrently if more than one execution slot is set, and the merit of
+   * each subset is remembered until the evaluator is built again. The
+   * evaluator can be used by several threads at once.
+   * 
+   * @param subset a bitset representing the attribute subset to be evaluated
+   * @return the error rate
+   * @throws Exception if the subset could not be evaluated
+   */
+  @Override
+  public double evaluateSubset(BitSet subset) throws Exception {
+    ConcurrentHashMap<BitSet, Double> merits = merits();
+    Double known = merits.get(subset);
+    if (known != null) {
+      return known.doubleValue();
+    }
+
+    double evalMetric = 0;
+    double[] repError = new double[5];
+    int i, j;
+    Random Rnd = new Random(m_seed);
+    Instances trainCopy = project(subset);
+    boolean needPredictions = (m_evaluationMeasure == EVAL_AUC)
+      || (m_evaluationMeasure == EVAL_AUPRC);
 
     // max of 5 repetitions of cross validation
     for (i = 0; i < 5; i++) {
-      m_Evaluation = new Evaluation(trainCopy);
-      m_Evaluation
-        .crossValidateModel(m_BaseClassifier, trainCopy, m_folds, Rnd);
+      Evaluation evaluation = new Evaluation(trainCopy);
+      evaluation.setDiscardPredictions(!needPredictions);
+      evaluation.setNumExecutionSlots(m_poolSize);
+      evaluation.crossValidateModel(m_BaseClassifier, trainCopy, m_folds, Rnd);
 
       switch (m_evaluationMeasure) {
       case EVAL_DEFAULT:
-        repError[i] = m_Evaluation.errorRate();
+        repError[i] = evaluation.errorRate();
         // if (m_trainInstances.classAttribute().isNominal()) {
         // repError[i] = 1.0 - repError[i];
         // }
         break;
       case EVAL_ACCURACY:
-        repError[i] = m_Evaluation.errorRate();
+        repError[i] = evaluation.errorRate();
         // if (m_trainInstances.classAttribute().isNominal()) {
         // repError[i] = 1.0 - repError[i];
         // }
         break;
       case EVAL_RMSE:
-        repError[i] = m_Evaluation.rootMeanSquaredError();
+        repError[i] = evaluation.rootMeanSquaredError();
         break;
       case EVAL_MAE:
-        repError[i] = m_Evaluation.meanAbsoluteError();
+        repError[i] = evaluation.meanAbsoluteError();
         break;
       case EVAL_FMEASURE:
         if (m_IRClassVal < 0) {
-          repError[i] = m_Evaluation.weightedFMeasure();
+          repError[i] = evaluation.weightedFMeasure();
         } else {
-          repError[i] = m_Evaluation.fMeasure(m_IRClassVal);
+          repError[i] = evaluation.fMeasure(m_IRClassVal);
         }
         break;
       case EVAL_AUC:
         if (m_IRClassVal < 0) {
-          repError[i] = m_Evaluation.weightedAreaUnderROC();
+          repError[i] = evaluation.weightedAreaUnderROC();
         } else {
-          repError[i] = m_Evaluation.areaUnderROC(m_IRClassVal);
+          repError[i] = evaluation.areaUnderROC(m_IRClassVal);
         }
         break;
       case EVAL_AUPRC:
         if (m_IRClassVal < 0) {
-          repError[i] = m_Evaluation.weightedAreaUnderPRC();
+          repError[i] = evaluation.weightedAreaUnderPRC();
         } else {
-          repError[i] = m_Evaluation.areaUnderPRC(m_IRClassVal);
+          repError[i] = evaluation.areaUnderPRC(m_IRClassVal);
         }
         break;
       }
@@ -845,7 +964,6 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
     }
 
     evalMetric /= i;
-    m_Evaluation = null;
 
     switch (m_evaluationMeasure) {
     case EVAL_DEFAULT:
@@ -862,9 +980,29 @@ public class WrapperSubsetEval extends ASEvaluation implements SubsetEvaluator,
       break;
     }
 
+    merits.put((BitSet) subset.clone(), evalMetric);
     return evalMetric;
   }
 
+  /**
+   * Returns the merits of the subsets evaluated so far, creating the map if
+   * necessary, e.g., after the evaluator has been deserialized.
+   * 
+   * @return the merits
+   */
+  protected ConcurrentHashMap<BitSet, Double> merits() {
+    ConcurrentHashMap<BitSet, Double> merits = m_merits;
+    if (merits == null) {
+      synchronized (this) {
+        if (m_merits == null) {
+          m_merits = new ConcurrentHashMap<BitSet, Double>();
+        }
+        merits = m_merits;
+      }
+    }
+    return merits;
+  }
+
   /**
    * Returns a string describing the wrapper
    * 
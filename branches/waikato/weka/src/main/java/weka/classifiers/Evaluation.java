@@ -300,6 +300,26 @@ public class Evaluation implements Serializable, Summarizable, RevisionHandler {
     return m_delegate.getDiscardPredictions();
   }
 
+  /**
+   * Sets the number of execution slots (threads) used to build and evaluate
+   * the folds of a cross-validation concurrently.
+   * 
+   * @param numSlots the number of slots, 0 for one per available processor
+   */
+  public void setNumExecutionSlots(int numSlots) {
+    m_delegate.setNumExecutionSlots(numSlots);
+  }
+
+  /**
+   * Gets the number of execution slots (threads) used to build and evaluate
+   * the folds of a cross-validation concurrently.
+   * 
+   * @return the number of slots, 0 for one per available processor
+   */
+  public int getNumExecutionSlots() {
+    return m_delegate.getNumExecutionSlots();
+  }
+
   /**
    * Returns the area under ROC for those predictions that have been collected
    * in the evaluateClassifier(Classifier, Instances) method. Returns
@@ -34,6 +34,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
@@ -45,6 +46,7 @@ import weka.estimators.DiscreteEstimator;
 import weka.estimators.Estimator;
 import weka.estimators.KernelEstimator;
 import weka.estimators.NormalEstimator;
+import weka.filters.Filter;
 
 /**
  * <!-- globalinfo-start --> Class for a Naive Bayes classifier using estimator
@@ -107,7 +109,7 @@ import weka.estimators.NormalEstimator;
  */
 public class NaiveBayes extends AbstractClassifier implements OptionHandler,
   WeightedInstancesHandler, TechnicalInformationHandler,
-  Aggregateable<NaiveBayes> {
+  Aggregateable<NaiveBayes>, PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = 5995231201785697655L;
@@ -149,6 +151,9 @@ public class NaiveBayes extends AbstractClassifier implements OptionHandler,
 
   protected boolean m_displayModelInOldFormat = false;
 
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /**
    * Returns a string describing this classifier
    * 
@@ -392,6 +397,120 @@ public class NaiveBayes extends AbstractClassifier implements OptionHandler,
     return probs;
   }
 
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances.
+   * 
+   * @param insts the instances to be classified
+   * @return predicted class probability distributions, one per instance
+   * @exception Exception if there is a problem generating the predictions
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][m_NumClasses];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances and stores them in the given array. The factors contributed by
+   * the values of nominal attributes are looked up in tables that are
+   * computed once per batch, so only numeric attributes query their
+   * estimators per instance.
+   * 
+   * @param insts the instances to be classified
+   * @param result the array to store the distributions in
+   * @exception Exception if there is a problem generating the predictions
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    Instances data = insts;
+    if (m_UseDiscretization) {
+      data = Filter.useFilter(data, m_Disc);
+    }
+
+    double[] priors = new double[m_NumClasses];
+    for (int j = 0; j < m_NumClasses; j++) {
+      priors[j] = m_ClassDistribution.getProbability(j);
+    }
+
+    // Tabulate the factors of the nominal attributes
+    int numAtts = m_Distributions.length;
+    int[] attributes = new int[numAtts];
+    double[][] factors = new double[numAtts][];
+    int attIndex = 0;
+    for (int i = 0; i < data.numAttributes(); i++) {
+      if (i == data.classIndex()) {
+        continue;
+      }
+      attributes[attIndex] = i;
+      if (data.attribute(i).isNominal()) {
+        double weight = m_Instances.attribute(attIndex).weight();
+        int numValues = data.attribute(i).numValues();
+        double[] factor = new double[numValues * m_NumClasses];
+        for (int v = 0; v < numValues; v++) {
+          for (int j = 0; j < m_NumClasses; j++) {
+            factor[v * m_NumClasses + j] = Math.max(1e-75, Math.pow(
+              m_Distributions[attIndex][j].getProbability(v), weight));
+          }
+        }
+        factors[attIndex] = factor;
+      }
+      attIndex++;
+    }
+
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance instance = data.instance(i);
+      double[] probs = result[i];
+      System.arraycopy(priors, 0, probs, 0, m_NumClasses);
+      for (int a = 0; a < numAtts; a++) {
+        int att = attributes[a];
+        if (instance.isMissing(att)) {
+          continue;
+        }
+        double max = 0;
+        double[] factor = factors[a];
+        if (factor != null) {
+          int offset = (int) instance.value(att) * m_NumClasses;
+          for (int j = 0; j < m_NumClasses; j++) {
+            probs[j] *= factor[offset + j];
+            if (probs[j] > max) {
+              max = probs[j];
+            }
+          }
+        } else {
+          double value = instance.value(att);
+          double weight = m_Instances.attribute(a).weight();
+          for (int j = 0; j < m_NumClasses; j++) {
+            probs[j] *= Math.max(1e-75,
+              Math.pow(m_Distributions[a][j].getProbability(value), weight));
+            if (probs[j] > max) {
+              max = probs[j];
+            }
+          }
+        }
+        for (int j = 0; j < m_NumClasses; j++) {
+          if (Double.isNaN(probs[j])) {
+            throw new Exception("NaN returned from estimator for attribute "
+              + data.attribute(att).name() + ":\n"
+              + m_Distributions[a][j].toString());
+          }
+        }
+        if ((max > 0) && (max < 1e-75)) { // Danger of probability underflow
+          for (int j = 0; j < m_NumClasses; j++) {
+            probs[j] *= 1e75;
+          }
+        }
+      }
+      Utils.normalize(probs);
+    }
+  }
+
   /**
    * Returns an enumeration describing the available options.
    * 
@@ -952,6 +1071,37 @@ public class NaiveBayes extends AbstractClassifier implements OptionHandler,
     return m_displayModelInOldFormat;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Sets the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Gets the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Returns the revision string.
    * 
@@ -43,6 +43,11 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -64,6 +69,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionHandler;
 import weka.core.RevisionUtils;
 import weka.core.Summarizable;
@@ -105,6 +111,11 @@ import weka.estimators.UnivariateKernelEstimator;
  * The number of folds for the cross-validation (default: 10).
  * <p/>
  * 
+ * -num-slots number <br/>
+ * The number of folds to run concurrently in the cross-validation, 0 for
+ * one per processor (default: 1).
+ * <p/>
+ * 
  * -no-cv <br/>
  * No cross validation. If no test file is provided, no evaluation is done.
  * <p/>
@@ -380,6 +391,9 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
   /** whether to discard predictions (and save memory). */
   protected boolean m_DiscardPredictions;
 
+  /** The number of folds to run concurrently in a cross-validation. */
+  protected int m_NumExecutionSlots = 1;
+
   /** Holds plugin evaluation metrics */
   protected List<AbstractEvaluationMetric> m_pluginMetrics;
 
@@ -537,6 +551,27 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     return m_DiscardPredictions;
   }
 
+  /**
+   * Sets the number of execution slots (threads) used to build and evaluate
+   * the folds of a cross-validation concurrently.
+   * 
+   * @param numSlots the number of slots, 0 for one per available processor
+   * @see #crossValidateModel(Classifier, Instances, int, Random, Object...)
+   */
+  public void setNumExecutionSlots(int numSlots) {
+    m_NumExecutionSlots = numSlots;
+  }
+
+  /**
+   * Gets the number of execution slots (threads) used to build and evaluate
+   * the folds of a cross-validation concurrently.
+   * 
+   * @return the number of slots, 0 for one per available processor
+   */
+  public int getNumExecutionSlots() {
+    return m_NumExecutionSlots;
+  }
+
   /**
    * Returns the list of plugin metrics in use (or null if there are none)
    * 
@@ -723,7 +758,10 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
    * Performs a (stratified if class is nominal) cross-validation for a
    * classifier on a set of instances. Now performs a deep copy of the
    * classifier before each call to buildClassifier() (just in case the
-   * classifier is not initialized properly).
+   * classifier is not initialized properly). If more than one execution slot
+   * is set, the folds are run concurrently, see
+   * <code>setNumExecutionSlots(int)</code>; the results are the same as for
+   * the sequential run.
    * 
    * @param classifier the classifier with any options set.
    * @param data the data on which the cross-validation is to be performed
@@ -758,13 +796,20 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     }
 
     // Do the folds
-    for (int i = 0; i < numFolds; i++) {
-      Instances train = data.trainCV(numFolds, i, random);
-      setPriors(train);
-      Classifier copiedClassifier = AbstractClassifier.makeCopy(classifier);
-      copiedClassifier.buildClassifier(train);
-      Instances test = data.testCV(numFolds, i);
-      evaluateModel(copiedClassifier, test, forPredictionsPrinting);
+    int numSlots = (m_NumExecutionSlots == 0) ? Runtime.getRuntime()
+      .availableProcessors() : m_NumExecutionSlots;
+    if ((numSlots > 1) && (numFolds > 1)) {
+      crossValidateFolds(classifier, data, numFolds, random, numSlots,
+        forPredictionsPrinting);
+    } else {
+      for (int i = 0; i < numFolds; i++) {
+        Instances train = data.trainCV(numFolds, i, random);
+        setPriors(train);
+        Classifier copiedClassifier = AbstractClassifier.makeCopy(classifier);
+        copiedClassifier.buildClassifier(train);
+        Instances test = data.testCV(numFolds, i);
+        evaluateModel(copiedClassifier, test, forPredictionsPrinting);
+      }
     }
     m_NumFolds = numFolds;
 
@@ -773,6 +818,105 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     }
   }
 
+  /**
+   * Runs the folds of a cross-validation on a thread pool. The training sets
+   * are drawn in the calling thread, in the same order and from the same
+   * random number generator as in the sequential run. Each fold is built on
+   * its own copy of the classifier and evaluated into its own Evaluation
+   * object, and the fold results are aggregated into this one in fold order
+   * via AggregateableEvaluation. If predictions are to be output, or plugin
+   * metrics (which are not aggregated) are in use, only the models are built
+   * concurrently and the folds are evaluated in order. At most numSlots folds
+   * are held at once: a fold's training set and classifier copy are only
+   * created once the fold numSlots places before it has been aggregated, so
+   * memory does not grow with the number of folds.
+   * 
+   * @param classifier the classifier with any options set
+   * @param data the randomized (and stratified) data
+   * @param numFolds the number of folds
+   * @param random random number generator for randomization
+   * @param numSlots the number of threads to use
+   * @param forPredictionsPrinting optional AbstractOutput object
+   * @throws Exception if a classifier could not be built or evaluated
+   */
+  protected void crossValidateFolds(Classifier classifier, Instances data,
+    int numFolds, Random random, int numSlots,
+    final Object... forPredictionsPrinting) throws Exception {
+
+    final boolean inOrder = (forPredictionsPrinting.length > 0)
+      || ((m_pluginMetrics != null) && (m_pluginMetrics.size() > 0));
+    int window = Math.min(numSlots, numFolds);
+    Classifier[] copies = new Classifier[window];
+    Instances[] trains = new Instances[window];
+    List<Future<Evaluation>> folds = new ArrayList<Future<Evaluation>>(window);
+    ExecutorService pool = Executors.newFixedThreadPool(window);
+    try {
+      for (int i = 0; i < numFolds + window; i++) {
+        // finish the oldest fold in flight before starting the next one
+        int done = i - window;
+        if (done >= 0) {
+          int slot = done % window;
+          Evaluation fold;
+          try {
+            fold = folds.get(slot).get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+              throw (Exception) e.getCause();
+            }
+            throw e;
+          }
+          if (inOrder) {
+            setPriors(trains[slot]);
+            evaluateModel(copies[slot], data.testCV(numFolds, done),
+              forPredictionsPrinting);
+          } else {
+            AggregateableEvaluation.aggregate(this, fold);
+          }
+
+          // Leave the priors of the last training set in place, as the
+          // sequential run does
+          if (!inOrder && (done == numFolds - 1)) {
+            setPriors(trains[slot]);
+          }
+
+          // Release the fold
+          copies[slot] = null;
+          trains[slot] = null;
+          folds.set(slot, null);
+        }
+
+        if (i < numFolds) {
+          int slot = i % window;
+          trains[slot] = data.trainCV(numFolds, i, random);
+          copies[slot] = AbstractClassifier.makeCopy(classifier);
+          final Instances train = trains[slot];
+          final Instances test = data.testCV(numFolds, i);
+          final Classifier copiedClassifier = copies[slot];
+          Future<Evaluation> future = pool.submit(new Callable<Evaluation>() {
+            @Override
+            public Evaluation call() throws Exception {
+              copiedClassifier.buildClassifier(train);
+              if (inOrder) {
+                return null;
+              }
+              Evaluation fold = new Evaluation(train, m_CostMatrix);
+              fold.setDiscardPredictions(m_DiscardPredictions);
+              fold.evaluateModel(copiedClassifier, test);
+              return fold;
+            }
+          });
+          if (slot < folds.size()) {
+            folds.set(slot, future);
+          } else {
+            folds.add(future);
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   /**
    * Performs a (stratified if class is nominal) cross-validation for a
    * classifier on a set of instances.
@@ -817,6 +961,11 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
    * The number of folds for the cross-validation (default: 10).
    * <p/>
    * 
+   * -num-slots number <br/>
+   * The number of folds to run concurrently in the cross-validation, 0 for
+   * one per processor (default: 1).
+   * <p/>
+   * 
    * -no-cv <br/>
    * No cross validation. If no test file is provided, no evaluation is done.
    * <p/>
@@ -984,6 +1133,11 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
    * The number of folds for the cross-validation (default: 10).
    * <p/>
    * 
+   * -num-slots number <br/>
+   * The number of folds to run concurrently in the cross-validation, 0 for
+   * one per processor (default: 1).
+   * <p/>
+   * 
    * -no-cv <br/>
    * No cross validation. If no test file is provided, no evaluation is done.
    * <p/>
@@ -1081,7 +1235,8 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     throws Exception {
 
     Instances train = null, tempTrain, test = null, template = null;
-    int seed = 1, folds = 10, classIndex = -1;
+    int seed = 1, folds = 10, classIndex = -1, numSlots = 1;
+    String numSlotsString;
     boolean noCrossValidation = false;
     String trainFileName, testFileName, sourceClass, classIndexString, seedString, foldsString, objectInputFileName, objectOutputFileName;
     boolean noOutput = false, trainStatistics = true, printMargins = false, printComplexityStatistics =
@@ -1195,6 +1350,10 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
       if (foldsString.length() != 0) {
         folds = Integer.parseInt(foldsString);
       }
+      numSlotsString = Utils.getOption("num-slots", options);
+      if (numSlotsString.length() != 0) {
+        numSlots = Integer.parseInt(numSlotsString);
+      }
       seedString = Utils.getOption('s', options);
       if (seedString.length() != 0) {
         seed = Integer.parseInt(seedString);
@@ -1461,6 +1620,7 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     trainingEvaluation.dontDisplayMetrics(disableList);
     testingEvaluation.setDiscardPredictions(discardPredictions);
     testingEvaluation.dontDisplayMetrics(disableList);
+    testingEvaluation.setNumExecutionSlots(numSlots);
 
     // disable use of priors if no training file given
     if (!trainSetPresent) {
@@ -1842,7 +2002,34 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
       classificationOutput = (AbstractOutput) forPredictionsPrinting[0];
     }
 
-    if (classifier instanceof BatchPredictor) {
+    if (classifier instanceof PreallocatedBatchPredictor) {
+      // score the data in batches of the preferred size, reusing the
+      // same array for the predictions of every batch
+      int batchSize = batchSize((BatchPredictor) classifier,
+        data.numInstances());
+      double[][] preds = new double[batchSize][data.numClasses()];
+      for (int start = 0; start < data.numInstances(); start += batchSize) {
+        int count = Math.min(batchSize, data.numInstances() - start);
+
+        // make a copy and set the class to missing
+        Instances dataPred = new Instances(data, start, count);
+        for (int i = 0; i < count; i++) {
+          dataPred.instance(i).setClassMissing();
+        }
+        ((PreallocatedBatchPredictor) classifier).distributionsForInstances(
+          dataPred, preds);
+        for (int i = 0; i < count; i++) {
+          double[] p = preds[i];
+          Instance inst = data.instance(start + i);
+
+          predictions[start + i] = evaluationForSingleInstance(p, inst, true);
+
+          if (classificationOutput != null) {
+            classificationOutput.printClassification(p, inst, start + i);
+          }
+        }
+      }
+    } else if (classifier instanceof BatchPredictor) {
       // make a copy and set the class to missing
       Instances dataPred = new Instances(data);
       for (int i = 0; i < data.numInstances(); i++) {
@@ -1875,6 +2062,28 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     return predictions;
   }
 
+  /**
+   * Returns the preferred batch size of a batch predictor, or the given
+   * number of instances if the batch size is not a positive number.
+   * 
+   * @param predictor the batch predictor
+   * @param numInstances the number of instances to score
+   * @return the number of instances to score per batch, at least 1
+   */
+  protected static int batchSize(BatchPredictor predictor, int numInstances) {
+
+    int batchSize = 0;
+    try {
+      batchSize = Integer.parseInt(predictor.getBatchSize().trim());
+    } catch (Exception e) {
+      // use a single batch
+    }
+    if ((batchSize <= 0) || (batchSize > numInstances)) {
+      batchSize = numInstances;
+    }
+    return Math.max(batchSize, 1);
+  }
+
   /**
    * Evaluates the supplied distribution on a single instance.
    * 
@@ -4016,6 +4225,10 @@ public class Evaluation implements Summarizable, RevisionHandler, Serializable {
     optionsText.append("-x <number of folds>\n");
     optionsText
       .append("\tSets number of folds for cross-validation (default: 10).\n");
+    optionsText.append("-num-slots <number of slots>\n");
+    optionsText
+      .append("\tSets number of folds to run concurrently in the cross-validation,\n"
+        + "\t0 for one per processor (default: 1).\n");
     optionsText.append("-no-cv\n");
     optionsText.append("\tDo not perform any cross validation.\n");
     optionsText.append("-force-batch-training\n");
@@ -33,6 +33,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.Range;
 import weka.core.Utils;
 import weka.core.WekaException;
@@ -613,6 +614,26 @@ public abstract class AbstractOutput implements Serializable, OptionHandler {
     doPrintClassification(dist, inst, index);
   }
 
+  /**
+   * Returns the preferred batch size of a classifier that implements
+   * BatchPredictor.
+   * 
+   * @param classifier the batch predictor
+   * @return the batch size, 0 if the batch size is not a positive number
+   */
+  protected int batchSize(Classifier classifier) {
+    int result;
+
+    try {
+      result = Integer.parseInt(((BatchPredictor) classifier).getBatchSize()
+        .trim());
+    } catch (Exception e) {
+      result = 0;
+    }
+
+    return Math.max(result, 0);
+  }
+
   /**
    * Prints the classifications to the buffer.
    * 
@@ -630,7 +651,27 @@ public abstract class AbstractOutput implements Serializable, OptionHandler {
     i = 0;
     testset.reset();
 
-    if (classifier instanceof BatchPredictor) {
+    if ((classifier instanceof PreallocatedBatchPredictor)
+      && (batchSize(classifier) > 0)) {
+      // read and score the instances in batches of the preferred size
+      test = testset.getStructure(m_Header.classIndex());
+      Instances batch = new Instances(test, 0);
+      double[][] predictions =
+        new double[batchSize(classifier)][test.numClasses()];
+      while (testset.hasMoreElements(test)) {
+        batch.add(testset.nextElement(test));
+        if ((batch.numInstances() == predictions.length)
+          || !testset.hasMoreElements(test)) {
+          ((PreallocatedBatchPredictor) classifier).distributionsForInstances(
+            batch, predictions);
+          for (int n = 0; n < batch.numInstances(); n++) {
+            printClassification(predictions[n], batch.instance(n), i);
+            i++;
+          }
+          batch.delete();
+        }
+      }
+    } else if (classifier instanceof BatchPredictor) {
       test = testset.getDataSet(m_Header.classIndex());
       double[][] predictions = ((BatchPredictor) classifier)
         .distributionsForInstances(test);
@@ -659,7 +700,23 @@ public abstract class AbstractOutput implements Serializable, OptionHandler {
     throws Exception {
     int i;
 
-    if (classifier instanceof BatchPredictor) {
+    if ((classifier instanceof PreallocatedBatchPredictor)
+      && (batchSize(classifier) > 0)
+      && (batchSize(classifier) < testset.numInstances())) {
+      // score the instances in batches of the preferred size
+      int batchSize = batchSize(classifier);
+      double[][] predictions = new double[batchSize][testset.numClasses()];
+      for (int start = 0; start < testset.numInstances(); start += batchSize) {
+        int count = Math.min(batchSize, testset.numInstances() - start);
+        Instances batch = new Instances(testset, start, count);
+        ((PreallocatedBatchPredictor) classifier).distributionsForInstances(
+          batch, predictions);
+        for (i = 0; i < count; i++) {
+          printClassification(predictions[i], testset.instance(start + i),
+            start + i);
+        }
+      }
+    } else if (classifier instanceof BatchPredictor) {
       double[][] predictions = ((BatchPredictor) classifier)
         .distributionsForInstances(testset);
       for (i = 0; i < testset.numInstances(); i++) {
@@ -33,6 +33,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.SelectedTag;
 import weka.core.Tag;
@@ -101,7 +102,7 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  * @version $Revision$
  */
 public class LinearRegression extends AbstractClassifier implements
-  OptionHandler, WeightedInstancesHandler {
+  OptionHandler, WeightedInstancesHandler, PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = -3364580862046573747L;
@@ -192,6 +193,9 @@ public class LinearRegression extends AbstractClassifier implements
   /** Model already built? */
   protected boolean m_ModelBuilt = false;
 
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /**
    * Returns a string describing this classifier
    * 
@@ -368,6 +372,61 @@ public class LinearRegression extends AbstractClassifier implements
       m_Coefficients);
   }
 
+  /**
+   * Computes the predictions for the given instances.
+   * 
+   * @param insts the instances to get predictions for
+   * @return an array of predictions, one (single element) array per instance
+   * @throws Exception if the predictions can't be computed successfully
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][1];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Computes the predictions for the given instances and stores them in the
+   * first entry of each row of the given array. The instances are
+   * transformed as one batch, and only the selected attributes are visited.
+   * 
+   * @param insts the instances to get predictions for
+   * @param result the array to store the predictions in
+   * @throws Exception if the predictions can't be computed successfully
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    Instances transformed = insts;
+    if (!m_checksTurnedOff) {
+      transformed = Filter.useFilter(transformed, m_TransformFilter);
+      transformed = Filter.useFilter(transformed, m_MissingFilter);
+    }
+
+    // Indices of the attributes that have a coefficient
+    int[] indices = new int[m_Coefficients.length - 1];
+    int column = 0;
+    for (int j = 0; j < transformed.numAttributes(); j++) {
+      if ((m_ClassIndex != j) && (m_SelectedAttributes[j])) {
+        indices[column++] = j;
+      }
+    }
+    double intercept = m_Coefficients[column];
+
+    for (int i = 0; i < transformed.numInstances(); i++) {
+      Instance instance = transformed.instance(i);
+      double prediction = 0;
+      for (int c = 0; c < column; c++) {
+        prediction += m_Coefficients[c] * instance.value(indices[c]);
+      }
+      result[i][0] = prediction + intercept;
+    }
+  }
+
   /**
    * Outputs the linear regression model as a string.
    * 
@@ -762,6 +821,37 @@ public class LinearRegression extends AbstractClassifier implements
     return m_Minimal;
   }
 
+  /**
+   * Returns the tip text for this property.
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Sets the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Returns the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Returns the tip text for this property.
    * 
@@ -36,6 +36,7 @@ import weka.core.Instances;
 import weka.core.Optimization;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
@@ -137,7 +138,7 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  */
 public class Logistic extends AbstractClassifier implements OptionHandler,
   WeightedInstancesHandler, TechnicalInformationHandler, PMMLProducer,
-  Aggregateable<Logistic> {
+  Aggregateable<Logistic>, PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = 3932117032546553727L;
@@ -180,6 +181,9 @@ public class Logistic extends AbstractClassifier implements OptionHandler,
 
   private Instances m_structure;
 
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /**
    * Returns a string describing this classifier
    * 
@@ -454,6 +458,37 @@ public class Logistic extends AbstractClassifier implements OptionHandler,
     m_MaxIts = newMaxIts;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   private class OptEng extends Optimization {
 
     OptObject m_oO = null;
@@ -876,6 +911,71 @@ public class Logistic extends AbstractClassifier implements OptionHandler,
     return distribution;
   }
 
+  /**
+   * Computes the distributions for the given instances. The instances are
+   * filtered as one batch, and the coefficients of each class are laid out
+   * contiguously once for the whole batch.
+   * 
+   * @param insts the instances to get predictions for
+   * @return an array of probability distributions, one for each instance
+   * @throws Exception if the distributions can't be computed successfully
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][m_NumClasses];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Computes the distributions for the given instances and stores them in
+   * the given array.
+   * 
+   * @param insts the instances to get predictions for
+   * @param result the array to store the distributions in
+   * @throws Exception if the distributions can't be computed successfully
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    Instances data = Filter.useFilter(insts, m_ReplaceMissingValues);
+    data = Filter.useFilter(data, m_AttFilter);
+    data = Filter.useFilter(data, m_NominalToBinary);
+
+    // Transpose the coefficients so that each class is scanned in order
+    double[][] par = new double[m_NumClasses - 1][m_NumPredictors + 1];
+    for (int k = 0; k <= m_NumPredictors; k++) {
+      for (int j = 0; j < m_NumClasses - 1; j++) {
+        par[j][k] = m_Par[k][j];
+      }
+    }
+
+    double[] instDat = new double[m_NumPredictors + 1];
+    double[] v = new double[m_NumClasses];
+    instDat[0] = 1;
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance instance = data.instance(i);
+      int j = 1;
+      for (int k = 0; k <= m_NumPredictors; k++) {
+        if (k != m_ClassIndex) {
+          instDat[j++] = instance.value(k);
+        }
+      }
+      for (int m = 0; m < m_NumClasses - 1; m++) {
+        double[] coefficients = par[m];
+        double sum = 0;
+        for (int k = 0; k <= m_NumPredictors; k++) {
+          sum += coefficients[k] * instDat[k];
+        }
+        v[m] = sum;
+      }
+      normalizeProbability(v, result[i]);
+    }
+  }
+
   /**
    * Compute the posterior distribution using optimized parameter values and the
    * testing instance.
@@ -892,6 +992,20 @@ public class Logistic extends AbstractClassifier implements OptionHandler,
         v[j] += m_Par[k][j] * data[k];
       }
     }
+    normalizeProbability(v, prob);
+
+    return prob;
+  }
+
+  /**
+   * Turns the log-posteriors of the first k-1 classes into the posterior
+   * distribution.
+   * 
+   * @param v the log-posteriors, the last entry is overwritten
+   * @param prob the array to store the distribution in
+   */
+  private void normalizeProbability(double[] v, double[] prob) {
+
     v[m_NumClasses - 1] = 0;
 
     // Do so to avoid scaling problems
@@ -902,8 +1016,6 @@ public class Logistic extends AbstractClassifier implements OptionHandler,
       }
       prob[m] = 1 / (sum + Math.exp(-v[m]));
     }
-
-    return prob;
   }
 
   /**
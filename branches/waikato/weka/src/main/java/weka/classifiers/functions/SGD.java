@@ -36,6 +36,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.SelectedTag;
 import weka.core.Tag;
@@ -102,7 +103,8 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  * 
  */
 public class SGD extends RandomizableClassifier implements
-    UpdateableClassifier, OptionHandler, Aggregateable<SGD> {
+    UpdateableClassifier, OptionHandler, Aggregateable<SGD>,
+    PreallocatedBatchPredictor {
 
   /** For serialization */
   private static final long serialVersionUID = -3732968666673530290L;
@@ -158,6 +160,9 @@ public class SGD extends RandomizableClassifier implements
   /** Holds the header of the training data */
   protected Instances m_data;
 
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /**
    * Returns default capabilities of the classifier.
    * 
@@ -309,6 +314,37 @@ public class SGD extends RandomizableClassifier implements
     return m_epochs;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+        + "prediction.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Turn normalization off/on.
    * 
@@ -888,6 +924,71 @@ public class SGD extends RandomizableClassifier implements
     return result;
   }
 
+  /**
+   * Computes the distributions for the given instances.
+   * 
+   * @param insts the instances to get predictions for
+   * @return an array of probability distributions, one for each instance
+   * @throws Exception if the distributions can't be computed successfully
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+      throws Exception {
+
+    double[][] result = new double[insts.numInstances()][(insts
+        .classAttribute().isNominal()) ? 2 : 1];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Computes the distributions for the given instances and stores them in
+   * the given array. The instances are filtered as one batch.
+   * 
+   * @param insts the instances to get predictions for
+   * @param result the array to store the distributions in
+   * @throws Exception if the distributions can't be computed successfully
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+      throws Exception {
+
+    Instances data = insts;
+    if (m_replaceMissing != null) {
+      data = Filter.useFilter(data, m_replaceMissing);
+    }
+    if (m_nominalToBinary != null) {
+      data = Filter.useFilter(data, m_nominalToBinary);
+    }
+    if (m_normalize != null) {
+      data = Filter.useFilter(data, m_normalize);
+    }
+
+    boolean numeric = data.classAttribute().isNumeric();
+    boolean logLoss = m_loss == LOGLOSS;
+    int classIndex = data.classIndex();
+    double bias = m_weights[m_weights.length - 1];
+    for (int i = 0; i < data.numInstances(); i++) {
+      double z = dotProd(data.instance(i), m_weights, classIndex) + bias;
+      double[] dist = result[i];
+
+      if (numeric) {
+        dist[0] = z;
+      } else if (logLoss) {
+        if (z <= 0) {
+          dist[0] = 1.0 / (1.0 + Math.exp(z));
+          dist[1] = 1.0 - dist[0];
+        } else {
+          dist[1] = 1.0 / (1.0 + Math.exp(-z));
+          dist[0] = 1.0 - dist[1];
+        }
+      } else {
+        dist[0] = (z <= 0) ? 1 : 0;
+        dist[1] = (z <= 0) ? 0 : 1;
+      }
+    }
+  }
+
   public double[] getWeights() {
     return m_weights;
   }
@@ -20,9 +20,17 @@
 
 package weka.classifiers.functions.supportVector;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import weka.core.Instance;
 import weka.core.Instances;
@@ -32,7 +40,9 @@ import weka.core.Utils;
 /**
  * Base class for RBFKernel and PolyKernel that implements a simple LRU.
  * (least-recently-used) cache if the cache size is set to a value > 0.
- * Otherwise it uses a full cache.
+ * Otherwise it uses a full cache. Alternatively, whole rows of the kernel
+ * matrix can be cached in an LRU cache with a fixed memory budget, optionally
+ * outside the Java heap; rows that are not cached are computed in parallel.
  * 
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @author Shane Legg (shane@intelligenesis.net) (sparse vector code)
@@ -69,6 +79,27 @@ public abstract class CachedKernel extends Kernel {
   /** number of cache slots in an entry */
   protected int m_cacheSlots = 4;
 
+  /** Counts the number of kernel cache misses. */
+  protected int m_cacheMisses;
+
+  /** The memory budget of the row cache in megabytes, 0 to not use it */
+  protected int m_rowCacheSize = 0;
+
+  /** Whether to keep the row cache outside the Java heap */
+  protected boolean m_offHeap = false;
+
+  /** The number of threads computing a row, 0 for one per processor */
+  protected int m_numExecutionSlots = 1;
+
+  /** The row cache, created on first use */
+  protected transient KernelRowCache m_rowCache;
+
+  /** Holds a row while it is computed */
+  protected transient double[] m_row;
+
+  /** The threads computing rows, created on first use */
+  protected transient ExecutorService m_executorPool;
+
   /**
    * default constructor - does nothing.
    */
@@ -106,6 +137,17 @@ public abstract class CachedKernel extends Kernel {
         "\tThe size of the cache (a prime number), 0 for full cache and \n"
           + "\t-1 to turn it off.\n" + "\t(default: 250007)", "C", 1,
         "-C <num>"));
+    result.addElement(new Option(
+      "\tThe memory budget of the row cache in megabytes, 0 to use the\n"
+        + "\tcache given by -C instead.\n" + "\t(default: 0)", "row-cache",
+      1, "-row-cache <num>"));
+    result.addElement(new Option(
+      "\tKeep the row cache outside the Java heap.", "off-heap", 0,
+      "-off-heap"));
+    result.addElement(new Option(
+      "\tThe number of threads computing rows of the row cache, 0 for\n"
+        + "\tone per processor.\n" + "\t(default: 1)", "num-slots", 1,
+      "-num-slots <num>"));
 
     result.addAll(Collections.list(super.listOptions()));
 
@@ -130,6 +172,22 @@ public abstract class CachedKernel extends Kernel {
       setCacheSize(250007);
     }
 
+    tmpStr = Utils.getOption("row-cache", options);
+    if (tmpStr.length() != 0) {
+      setRowCacheSize(Integer.parseInt(tmpStr));
+    } else {
+      setRowCacheSize(0);
+    }
+
+    setOffHeap(Utils.getFlag("off-heap", options));
+
+    tmpStr = Utils.getOption("num-slots", options);
+    if (tmpStr.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(tmpStr));
+    } else {
+      setNumExecutionSlots(1);
+    }
+
     super.setOptions(options);
   }
 
@@ -146,6 +204,16 @@ public abstract class CachedKernel extends Kernel {
     result.add("-C");
     result.add("" + getCacheSize());
 
+    result.add("-row-cache");
+    result.add("" + getRowCacheSize());
+
+    if (getOffHeap()) {
+      result.add("-off-heap");
+    }
+
+    result.add("-num-slots");
+    result.add("" + getNumExecutionSlots());
+
     Collections.addAll(result, super.getOptions());
 
     return result.toArray(new String[result.size()]);
@@ -180,6 +248,11 @@ public abstract class CachedKernel extends Kernel {
     long key = -1;
     int location = -1;
 
+    // use the row cache?
+    if ((id1 >= 0) && (m_rowCacheSize > 0)) {
+      return evalRowCache(id1, id2);
+    }
+
     // we can only cache if we know the indexes and caching is not
     // disbled (m_cacheSize == -1)
     if ((id1 >= 0) && (m_cacheSize != -1)) {
@@ -240,6 +313,7 @@ public abstract class CachedKernel extends Kernel {
 
     // store result in cache
     if ((key != -1) && (m_cacheSize != -1)) {
+      m_cacheMisses++;
       // move all cache slots forward one array index
       // to make room for the new entry
       System
@@ -252,6 +326,103 @@ public abstract class CachedKernel extends Kernel {
     return result;
   }
 
+  /**
+   * Looks up an entry of the kernel matrix in the row cache. As the kernel is
+   * symmetric, the entry can come from either row. If neither row is cached,
+   * row id1 is computed and added to the cache, evicting the least recently
+   * used row if necessary.
+   * 
+   * @param id1 the index of the first instance in the dataset
+   * @param id2 the index of the second instance in the dataset
+   * @return the result of the kernel function
+   * @throws Exception if something goes wrong
+   */
+  protected double evalRowCache(int id1, int id2) throws Exception {
+
+    if (m_rowCache == null) {
+      m_rowCache = new KernelRowCache(m_numInsts,
+        m_rowCacheSize * 1024L * 1024L, m_offHeap);
+      m_row = new double[m_numInsts];
+    }
+
+    if (m_rowCache.contains(id1)) {
+      m_cacheHits++;
+      return m_rowCache.get(id1, id2);
+    }
+    if (m_rowCache.contains(id2)) {
+      m_cacheHits++;
+      return m_rowCache.get(id2, id1);
+    }
+
+    // compute the row before making room for it, so that a failure
+    // leaves the cache intact
+    m_cacheMisses++;
+    computeRow(id1, m_row);
+    m_kernelEvals += m_numInsts;
+    m_rowCache.allocate(id1).put(m_row);
+    return m_row[id2];
+  }
+
+  /**
+   * Computes a row of the kernel matrix. The row is split into as many parts
+   * as there are execution slots, which are computed concurrently.
+   * 
+   * @param id1 the index of the row's instance in the dataset
+   * @param row the array to store the row in
+   * @throws Exception if something goes wrong
+   */
+  protected void computeRow(final int id1, final double[] row)
+    throws Exception {
+
+    final Instance inst1 = m_data.instance(id1);
+    int numSlots = (m_numExecutionSlots == 0) ? Runtime.getRuntime()
+      .availableProcessors() : m_numExecutionSlots;
+    numSlots = Math.min(numSlots, m_numInsts);
+    if (numSlots <= 1) {
+      for (int j = 0; j < m_numInsts; j++) {
+        row[j] = evaluate(id1, j, inst1);
+      }
+      return;
+    }
+
+    if (m_executorPool == null) {
+      m_executorPool = Executors.newFixedThreadPool(numSlots,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CachedKernel row");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+
+    List<Future<Void>> parts = new ArrayList<Future<Void>>();
+    for (int i = 0; i < numSlots; i++) {
+      final int start = (int) ((long) m_numInsts * i / numSlots);
+      final int end = (int) ((long) m_numInsts * (i + 1) / numSlots);
+      parts.add(m_executorPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = start; j < end; j++) {
+            row[j] = evaluate(id1, j, inst1);
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> part : parts) {
+      try {
+        part.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
   /**
    * Returns the number of time Eval has been called.
    * 
@@ -272,6 +443,16 @@ public abstract class CachedKernel extends Kernel {
     return m_cacheHits;
   }
 
+  /**
+   * Returns the number of cache misses, i.e., of dot products that had to be
+   * computed (with the row cache, of rows that had to be computed).
+   * 
+   * @return the number of cache misses.
+   */
+  public int numCacheMisses() {
+    return m_cacheMisses;
+  }
+
   /**
    * Frees the cache used by the kernel.
    */
@@ -280,6 +461,12 @@ public abstract class CachedKernel extends Kernel {
     m_storage = null;
     m_keys = null;
     m_kernelMatrix = null;
+    m_rowCache = null;
+    m_row = null;
+    if (m_executorPool != null) {
+      m_executorPool.shutdownNow();
+      m_executorPool = null;
+    }
   }
 
   /**
@@ -351,6 +538,103 @@ public abstract class CachedKernel extends Kernel {
     return "The size of the cache (a prime number), 0 for full cache and -1 to turn it off.";
   }
 
+  /**
+   * Sets the memory budget of the row cache in megabytes. With a budget of 0,
+   * the cache given by the cache size is used instead.
+   * 
+   * @param value the budget in megabytes
+   */
+  public void setRowCacheSize(int value) {
+    if (value >= 0) {
+      m_rowCacheSize = value;
+      clean();
+    } else {
+      System.out.println("Row cache size cannot be smaller than 0 (provided: "
+        + value + ")!");
+    }
+  }
+
+  /**
+   * Gets the memory budget of the row cache in megabytes.
+   * 
+   * @return the budget
+   */
+  public int getRowCacheSize() {
+    return m_rowCacheSize;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String rowCacheSizeTipText() {
+    return "The memory budget of the row cache in megabytes, which caches "
+      + "whole rows of the kernel matrix; 0 to use the cache given by the "
+      + "cache size instead.";
+  }
+
+  /**
+   * Sets whether to keep the row cache outside the Java heap.
+   * 
+   * @param value true to allocate the row cache off-heap
+   */
+  public void setOffHeap(boolean value) {
+    m_offHeap = value;
+    clean();
+  }
+
+  /**
+   * Gets whether the row cache is kept outside the Java heap.
+   * 
+   * @return true if the row cache is allocated off-heap
+   */
+  public boolean getOffHeap() {
+    return m_offHeap;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String offHeapTipText() {
+    return "Whether to keep the row cache outside the Java heap (the JVM's "
+      + "direct memory limit applies instead).";
+  }
+
+  /**
+   * Sets the number of threads computing rows of the row cache.
+   * 
+   * @param value the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots(int value) {
+    m_numExecutionSlots = value;
+    clean();
+  }
+
+  /**
+   * Gets the number of threads computing rows of the row cache.
+   * 
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots() {
+    return m_numExecutionSlots;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of threads computing rows of the row cache, 0 for one "
+      + "per processor.";
+  }
+
   /**
    * initializes variables etc.
    * 
@@ -362,6 +646,7 @@ public abstract class CachedKernel extends Kernel {
 
     m_kernelEvals = 0;
     m_cacheHits = 0;
+    m_cacheMisses = 0;
     m_numInsts = m_data.numInstances();
 
     if (getCacheSize() > 0) {
@@ -373,6 +658,8 @@ public abstract class CachedKernel extends Kernel {
       m_keys = null;
       m_kernelMatrix = null;
     }
+    m_rowCache = null;
+    m_row = null;
   }
 
   /**
@@ -0,0 +1,240 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    KernelRowCache.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.classifiers.functions.supportVector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Least-recently-used cache of whole kernel matrix rows within a fixed memory
+ * budget. All memory is allocated up front as a number of row slots, either
+ * on the Java heap or, optionally, off-heap in direct buffers, so that large
+ * caches neither count against the heap nor put pressure on the garbage
+ * collector. The LRU order is kept in primitive arrays, so lookups and
+ * evictions do not allocate.
+ *
+ * @version $Revision$
+ */
+public class KernelRowCache implements RevisionHandler {
+
+  /** The maximum number of doubles in one buffer */
+  protected static final int MAX_SEGMENT_LENGTH = Integer.MAX_VALUE / 8;
+
+  /** The number of entries per row */
+  protected int m_RowLength;
+
+  /** The number of row slots */
+  protected int m_NumSlots;
+
+  /** The number of slots per buffer */
+  protected int m_SlotsPerSegment;
+
+  /** The buffers holding the slots */
+  protected DoubleBuffer[] m_Segments;
+
+  /** The slot of each row, -1 if the row is not cached */
+  protected int[] m_SlotOfRow;
+
+  /** The row held by each slot, -1 if the slot is free */
+  protected int[] m_RowOfSlot;
+
+  /** The next more recently used slot */
+  protected int[] m_Newer;
+
+  /** The next less recently used slot */
+  protected int[] m_Older;
+
+  /** The most recently used slot, -1 if none is in use */
+  protected int m_Newest = -1;
+
+  /** The least recently used slot, -1 if none is in use */
+  protected int m_Oldest = -1;
+
+  /** The number of slots in use */
+  protected int m_NumUsed;
+
+  /**
+   * Creates a cache for the rows of a square kernel matrix.
+   *
+   * @param numRows the number of rows, which is also the row length
+   * @param budget the memory budget in bytes, at least one row is always
+   *          cached
+   * @param offHeap whether to allocate the rows outside the Java heap
+   */
+  public KernelRowCache(int numRows, long budget, boolean offHeap) {
+
+    m_RowLength = Math.max(numRows, 1);
+    m_NumSlots = (int) Math.max(1,
+      Math.min(numRows, budget / (8L * m_RowLength)));
+    m_SlotsPerSegment = Math.max(1, MAX_SEGMENT_LENGTH / m_RowLength);
+
+    int numSegments = (m_NumSlots + m_SlotsPerSegment - 1) / m_SlotsPerSegment;
+    m_Segments = new DoubleBuffer[numSegments];
+    for (int s = 0; s < numSegments; s++) {
+      int length = Math.min(m_SlotsPerSegment, m_NumSlots - s
+        * m_SlotsPerSegment)
+        * m_RowLength;
+      if (offHeap) {
+        m_Segments[s] = ByteBuffer.allocateDirect(8 * length)
+          .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      } else {
+        m_Segments[s] = DoubleBuffer.wrap(new double[length]);
+      }
+    }
+
+    m_SlotOfRow = new int[numRows];
+    Arrays.fill(m_SlotOfRow, -1);
+    m_RowOfSlot = new int[m_NumSlots];
+    Arrays.fill(m_RowOfSlot, -1);
+    m_Newer = new int[m_NumSlots];
+    m_Older = new int[m_NumSlots];
+  }
+
+  /**
+   * Returns the number of rows that fit into the cache.
+   *
+   * @return the number of slots
+   */
+  public int numSlots() {
+    return m_NumSlots;
+  }
+
+  /**
+   * Whether the given row is cached. Does not change the LRU order.
+   *
+   * @param row the row
+   * @return true if the row is cached
+   */
+  public boolean contains(int row) {
+    return m_SlotOfRow[row] != -1;
+  }
+
+  /**
+   * Returns an entry of a cached row and marks the row as most recently used.
+   *
+   * @param row the row, must be cached
+   * @param column the column
+   * @return the entry
+   */
+  public double get(int row, int column) {
+
+    int slot = m_SlotOfRow[row];
+    touch(slot);
+    return m_Segments[slot / m_SlotsPerSegment].get((slot % m_SlotsPerSegment)
+      * m_RowLength + column);
+  }
+
+  /**
+   * Makes room for a row that is not cached, evicting the least recently used
+   * row if the cache is full, and marks it as most recently used. The row's
+   * entries have to be filled in by the caller through the returned buffer.
+   *
+   * @param row the row, must not be cached
+   * @return a buffer whose first entries (from position 0) receive the row
+   */
+  public DoubleBuffer allocate(int row) {
+
+    int slot;
+    if (m_NumUsed < m_NumSlots) {
+      slot = m_NumUsed++;
+    } else {
+      slot = m_Oldest;
+      unlink(slot);
+      m_SlotOfRow[m_RowOfSlot[slot]] = -1;
+    }
+    m_RowOfSlot[slot] = row;
+    m_SlotOfRow[row] = slot;
+    link(slot);
+
+    DoubleBuffer buffer = m_Segments[slot / m_SlotsPerSegment].duplicate();
+    int start = (slot % m_SlotsPerSegment) * m_RowLength;
+    buffer.position(start);
+    buffer.limit(start + m_RowLength);
+    return buffer.slice();
+  }
+
+  /**
+   * Marks a slot in use as the most recently used one.
+   *
+   * @param slot the slot
+   */
+  protected void touch(int slot) {
+    if (slot != m_Newest) {
+      unlink(slot);
+      link(slot);
+    }
+  }
+
+  /**
+   * Removes a slot from the LRU list.
+   *
+   * @param slot the slot
+   */
+  protected void unlink(int slot) {
+
+    int newer = m_Newer[slot];
+    int older = m_Older[slot];
+    if (newer == -1) {
+      m_Newest = older;
+    } else {
+      m_Older[newer] = older;
+    }
+    if (older == -1) {
+      m_Oldest = newer;
+    } else {
+      m_Newer[older] = newer;
+    }
+  }
+
+  /**
+   * Adds a slot to the LRU list as the most recently used one.
+   *
+   * @param slot the slot
+   */
+  protected void link(int slot) {
+
+    m_Newer[slot] = -1;
+    m_Older[slot] = m_Newest;
+    if (m_Newest != -1) {
+      m_Newer[m_Newest] = slot;
+    }
+    m_Newest = slot;
+    if (m_Oldest == -1) {
+      m_Oldest = slot;
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
@@ -47,6 +47,19 @@ import weka.core.RevisionUtils;
  *  The size of the cache (a prime number).
  *  (default: 250007)</pre>
  * 
+ * <pre> -row-cache &lt;num&gt;
+ *  The memory budget of the row cache in megabytes, 0 to use the
+ *  cache given by -C instead.
+ *  (default: 0)</pre>
+ * 
+ * <pre> -off-heap
+ *  Keep the row cache outside the Java heap.</pre>
+ * 
+ * <pre> -num-slots &lt;num&gt;
+ *  The number of threads computing rows of the row cache, 0 for
+ *  one per processor.
+ *  (default: 1)</pre>
+ * 
  * <pre> -E &lt;num&gt;
  *  The Exponent to use.
  *  (default: 1.0)</pre>
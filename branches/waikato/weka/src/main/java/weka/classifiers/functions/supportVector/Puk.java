@@ -71,6 +71,25 @@ import weka.core.Utils;
  * </pre>
  * 
  * <pre>
+ * -row-cache &lt;num&gt;
+ *  The memory budget of the row cache in megabytes, 0 to use the
+ *  cache given by -C instead.
+ *  (default: 0)
+ * </pre>
+ * 
+ * <pre>
+ * -off-heap
+ *  Keep the row cache outside the Java heap.
+ * </pre>
+ * 
+ * <pre>
+ * -num-slots &lt;num&gt;
+ *  The number of threads computing rows of the row cache, 0 for
+ *  one per processor.
+ *  (default: 1)
+ * </pre>
+ * 
+ * <pre>
  * -O &lt;num&gt;
  *  The Omega parameter.
  *  (default: 1.0)
@@ -219,6 +238,25 @@ public class Puk extends CachedKernel implements TechnicalInformationHandler {
    * </pre>
    * 
    * <pre>
+   * -row-cache &lt;num&gt;
+   *  The memory budget of the row cache in megabytes, 0 to use the
+   *  cache given by -C instead.
+   *  (default: 0)
+   * </pre>
+   * 
+   * <pre>
+   * -off-heap
+   *  Keep the row cache outside the Java heap.
+   * </pre>
+   * 
+   * <pre>
+   * -num-slots &lt;num&gt;
+   *  The number of threads computing rows of the row cache, 0 for
+   *  one per processor.
+   *  (default: 1)
+   * </pre>
+   * 
+   * <pre>
    * -O &lt;num&gt;
    *  The Omega parameter.
    *  (default: 1.0)
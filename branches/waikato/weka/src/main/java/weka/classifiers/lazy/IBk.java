@@ -36,6 +36,7 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.SelectedTag;
 import weka.core.Tag;
@@ -115,7 +116,8 @@ import weka.core.neighboursearch.NearestNeighbourSearch;
 public class IBk 
   extends AbstractClassifier 
   implements OptionHandler, UpdateableClassifier, WeightedInstancesHandler,
-             TechnicalInformationHandler, AdditionalMeasureProducer {
+             TechnicalInformationHandler, AdditionalMeasureProducer,
+             PreallocatedBatchPredictor {
 
   /** for serialization. */
   static final long serialVersionUID = -3080186098777067172L;
@@ -185,6 +187,18 @@ public class IBk
 
   /** The number of attributes the contribute to a prediction. */
   protected double m_NumAttributesUsed;
+
+  /**
+   * The preferred batch size for batch prediction. Larger batches let the
+   * tree searches share more of their descent among the test instances.
+   */
+  protected String m_BatchSize = "1000";
+
+  /** the indices of the neighbours found by the last single prediction. */
+  protected transient int [] m_NeighbourIndices;
+
+  /** the distances of the neighbours found by the last single prediction. */
+  protected transient double [] m_NeighbourDistances;
   
   /**
    * IBk classifier. Simple instance-based learner that uses the class
@@ -439,6 +453,35 @@ public class IBk
     m_NNSearch = nearestNeighbourSearchAlgorithm;
   }
    
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Sets the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Gets the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Get the number of training instances the classifier is currently using.
    * 
@@ -564,6 +607,100 @@ public class IBk
       //throw new Exception("No training instances!");
       return m_defaultModel.distributionForInstance(instance);
     }
+    prepareForPrediction();
+
+    m_NNSearch.addInstanceInfo(instance);
+
+    // the buffers are reused from one prediction to the next, and only
+    // grow if there are more neighbours at the kth distance than they hold
+    if ((m_NeighbourIndices == null) || (m_NeighbourIndices.length < m_kNN)) {
+      m_NeighbourIndices = new int [m_kNN];
+      m_NeighbourDistances = new double [m_kNN];
+    }
+    int numNeighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN, 
+      m_NeighbourIndices, m_NeighbourDistances);
+    if (numNeighbours > m_NeighbourIndices.length) {
+      m_NeighbourIndices = new int [numNeighbours];
+      m_NeighbourDistances = new double [numNeighbours];
+      numNeighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN, 
+        m_NeighbourIndices, m_NeighbourDistances);
+    }
+    double [] distribution = new double [m_NumClasses];
+    makeDistribution(m_NeighbourIndices, m_NeighbourDistances, 
+                     numNeighbours, distribution);
+
+    return distribution;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances.
+   *
+   * @param insts the instances to be classified
+   * @return predicted class probability distributions, one per instance
+   * @throws Exception if an error occurred during the prediction
+   */
+  public double [][] distributionsForInstances(Instances insts) 
+    throws Exception {
+
+    double [][] result = new double [insts.numInstances()][];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances and stores them in the given array. The neighbours of the
+   * instances are found with batch queries, which the tree searches answer
+   * in one traversal and the linear search with several threads. A new
+   * batch starts at each instance that extends the attribute ranges of the
+   * distance function, so the distributions are the same as those of
+   * distributionForInstance() called in order. Rows of the array that are
+   * null or too short are replaced.
+   *
+   * @param insts the instances to be classified
+   * @param result the array to store the distributions in
+   * @throws Exception if an error occurred during the prediction
+   */
+  public void distributionsForInstances(Instances insts, double [][] result)
+    throws Exception {
+
+    if (m_Train.numInstances() == 0) {
+      for (int i = 0; i < insts.numInstances(); i++) {
+        result[i] = m_defaultModel.distributionForInstance(insts.instance(i));
+      }
+      return;
+    }
+    prepareForPrediction();
+
+    int end;
+    for (int start = 0; start < insts.numInstances(); start = end) {
+      end = m_NNSearch.addInstanceInfo(insts, start);
+      Instances batch = ((start == 0) && (end == insts.numInstances())) 
+        ? insts : new Instances(insts, start, end - start);
+      int [][] indices = new int [end - start][];
+      double [][] distances = new double [end - start][];
+      m_NNSearch.kNearestNeighbours(batch, m_kNN, indices, distances);
+      for (int i = start; i < end; i++) {
+        if ((result[i] == null) || (result[i].length < m_NumClasses)) {
+          result[i] = new double [m_NumClasses];
+        }
+        makeDistribution(indices[i - start], distances[i - start], 
+                         indices[i - start].length, result[i]);
+        indices[i - start] = null;
+        distances[i - start] = null;
+      }
+    }
+  }
+
+  /**
+   * Applies the window to the training data and selects k by
+   * cross-validation, if necessary, before predictions are made.
+   *
+   * @throws Exception if the search cannot be rebuilt
+   */
+  protected void prepareForPrediction() throws Exception {
+
     if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
       m_kNNValid = false;
       boolean deletedInstance=false;
@@ -579,14 +716,6 @@ public class IBk
     if (!m_kNNValid && (m_CrossValidate) && (m_kNNUpper >= 1)) {
       crossValidate();
     }
-
-    m_NNSearch.addInstanceInfo(instance);
-
-    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN);
-    double [] distances = m_NNSearch.getDistances();
-    double [] distribution = makeDistribution( neighbours, distances );
-
-    return distribution;
   }
 
   /**
@@ -851,8 +980,65 @@ public class IBk
   protected double [] makeDistribution(Instances neighbours, double[] distances)
     throws Exception {
 
-    double total = 0, weight;
     double [] distribution = new double [m_NumClasses];
+    double total = initDistribution(distribution);
+
+    for(int i=0; i < neighbours.numInstances(); i++) {
+      distances[i] = distances[i]*distances[i];
+      distances[i] = Math.sqrt(distances[i]/m_NumAttributesUsed);
+      total += addNeighbour(distribution, neighbours.instance(i), 
+                            distances[i]);
+    }
+
+    // Normalise distribution
+    if (total > 0) {
+      Utils.normalize(distribution, total);
+    }
+    return distribution;
+  }
+
+  /**
+   * Turns the nearest neighbours found by a batch query, or by a query
+   * into buffers, into a probability distribution. Unlike makeDistribution(Instances, double[]), the
+   * distances are left unchanged.
+   *
+   * @param indices the indices of the neighbours in the training data
+   * @param distances the distances of the neighbours
+   * @param numNeighbours the number of neighbours to use, from the start of
+   * the arrays
+   * @param distribution the array to store the distribution in
+   * @throws Exception if computation goes wrong or has no class attribute
+   */
+  protected void makeDistribution(int[] indices, double[] distances,
+                                  int numNeighbours, double[] distribution)
+    throws Exception {
+
+    double total = initDistribution(distribution);
+    for(int i=0; i < numNeighbours; i++) {
+      double distance = Math.sqrt(distances[i]*distances[i]
+                                  / m_NumAttributesUsed);
+      total += addNeighbour(distribution, m_Train.instance(indices[i]), 
+                            distance);
+    }
+
+    // Normalise distribution
+    if (total > 0) {
+      Utils.normalize(distribution, total);
+    }
+  }
+
+  /**
+   * Initialises a distribution with the correction to the estimator.
+   *
+   * @param distribution the distribution to initialise
+   * @return the total weight of the correction
+   */
+  protected double initDistribution(double[] distribution) {
+
+    double total = 0;
+    for(int i = 0; i < m_NumClasses; i++) {
+      distribution[i] = 0;
+    }
     
     // Set up a correction to the estimator
     if (m_ClassType == Attribute.NOMINAL) {
@@ -861,44 +1047,46 @@ public class IBk
       }
       total = (double)m_NumClasses / Math.max(1,m_Train.numInstances());
     }
+    return total;
+  }
 
-    for(int i=0; i < neighbours.numInstances(); i++) {
-      // Collect class counts
-      Instance current = neighbours.instance(i);
-      distances[i] = distances[i]*distances[i];
-      distances[i] = Math.sqrt(distances[i]/m_NumAttributesUsed);
-      switch (m_DistanceWeighting) {
-        case WEIGHT_INVERSE:
-          weight = 1.0 / (distances[i] + 0.001); // to avoid div by zero
-          break;
-        case WEIGHT_SIMILARITY:
-          weight = 1.0 - distances[i];
+  /**
+   * Adds the class of a neighbour to a distribution.
+   *
+   * @param distribution the distribution to add to
+   * @param current the neighbour
+   * @param distance the scaled distance of the neighbour
+   * @return the weight of the neighbour
+   */
+  protected double addNeighbour(double[] distribution, Instance current,
+                                double distance) {
+
+    double weight;
+    switch (m_DistanceWeighting) {
+      case WEIGHT_INVERSE:
+        weight = 1.0 / (distance + 0.001); // to avoid div by zero
+        break;
+      case WEIGHT_SIMILARITY:
+        weight = 1.0 - distance;
+        break;
+      default:                                 // WEIGHT_NONE:
+        weight = 1.0;
+        break;
+    }
+    weight *= current.weight();
+    try {
+      switch (m_ClassType) {
+        case Attribute.NOMINAL:
+          distribution[(int)current.classValue()] += weight;
           break;
-        default:                                 // WEIGHT_NONE:
-          weight = 1.0;
+        case Attribute.NUMERIC:
+          distribution[0] += current.classValue() * weight;
           break;
       }
-      weight *= current.weight();
-      try {
-        switch (m_ClassType) {
-          case Attribute.NOMINAL:
-            distribution[(int)current.classValue()] += weight;
-            break;
-          case Attribute.NUMERIC:
-            distribution[0] += current.classValue() * weight;
-            break;
-        }
-      } catch (Exception ex) {
-        throw new Error("Data has no class attribute!");
-      }
-      total += weight;      
-    }
-
-    // Normalise distribution
-    if (total > 0) {
-      Utils.normalize(distribution, total);
+    } catch (Exception ex) {
+      throw new Error("Data has no class attribute!");
     }
-    return distribution;
+    return weight;
   }
 
   /**
@@ -921,24 +1109,25 @@ public class IBk
 
       m_kNN = m_kNNUpper;
       Instance instance;
-      Instances neighbours;
-      double[] origDistances, convertedDistances;
+
+      // find the neighbours of all training instances at once; as they are
+      // part of the neighbourhood, the search skips each one itself
+      int [][] indices = new int [m_Train.numInstances()][];
+      double [][] distances = new double [m_Train.numInstances()][];
+      m_NNSearch.kNearestNeighbours(m_Train, m_kNN, indices, distances);
+      double [] distribution = new double [m_NumClasses];
       for(int i = 0; i < m_Train.numInstances(); i++) {
 	if (m_Debug && (i % 50 == 0)) {
 	  System.err.print("Cross validating "
 			   + i + "/" + m_Train.numInstances() + "\r");
 	}
 	instance = m_Train.instance(i);
-	neighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN);
-        origDistances = m_NNSearch.getDistances();
+        int numNeighbours = indices[i].length;
         
 	for(int j = m_kNNUpper - 1; j >= 0; j--) {
 	  // Update the performance stats
-          convertedDistances = new double[origDistances.length];
-          System.arraycopy(origDistances, 0, 
-                           convertedDistances, 0, origDistances.length);
-	  double [] distribution = makeDistribution(neighbours, 
-                                                    convertedDistances);
+	  makeDistribution(indices[i], distances[i], numNeighbours, 
+                           distribution);
           double thisPrediction = Utils.maxIndex(distribution);
 	  if (m_Train.classAttribute().isNumeric()) {
 	    thisPrediction = distribution[0];
@@ -951,9 +1140,11 @@ public class IBk
 	    }
 	  }
 	  if (j >= 1) {
-	    neighbours = pruneToK(neighbours, convertedDistances, j);
+	    numNeighbours = pruneToK(distances[i], numNeighbours, j);
 	  }
 	}
+        indices[i] = null;
+        distances[i] = null;
       }
 
       // Display the results of the cross-validation
@@ -1044,6 +1235,30 @@ public class IBk
     return neighbours;
   }
   
+  /**
+   * Prunes the neighbours of a batch query to the k nearest neighbors. If
+   * there are multiple neighbors at the k'th distance, all will be kept.
+   *
+   * @param distances the distances of the neighbours from target instance.
+   * @param numNeighbours the current number of neighbours.
+   * @param k the number of neighbors to keep.
+   * @return the number of neighbours after pruning.
+   */
+  public int pruneToK(double[] distances, int numNeighbours, int k) {
+    
+    if (k < 1) {
+      k = 1;
+    }
+    
+    for(int i = k; i < numNeighbours; i++) {
+      if(distances[i] != distances[i-1]) {
+        return i;
+      }
+    }
+
+    return numNeighbours;
+  }
+  
   /**
    * Returns the revision string.
    * 
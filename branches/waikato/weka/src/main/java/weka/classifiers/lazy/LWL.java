@@ -33,6 +33,7 @@ import weka.core.Capabilities.Capability;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.RevisionUtils;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
@@ -120,7 +121,7 @@ import weka.core.neighboursearch.NearestNeighbourSearch;
 public class LWL 
   extends SingleClassifierEnhancer
   implements UpdateableClassifier, WeightedInstancesHandler, 
-             TechnicalInformationHandler {
+             TechnicalInformationHandler, PreallocatedBatchPredictor {
 
   /** for serialization. */
   static final long serialVersionUID = 1979797405383665815L;
@@ -152,6 +153,9 @@ public class LWL
 
   /** a ZeroR model in case no model can be built from the data. */
   protected Classifier m_ZeroR;
+
+  /** The preferred batch size for batch prediction. */
+  protected String m_BatchSize = "1000";
     
   /**
    * Returns a string describing classifier.
@@ -472,6 +476,35 @@ public class LWL
     m_NNSearch = nearestNeighbourSearchAlgorithm;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Sets the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Gets the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Returns default capabilities of the classifier.
    *
@@ -574,15 +607,114 @@ public class LWL
     
     m_NNSearch.addInstanceInfo(instance);
     
+    int k = numNeighbours();
+    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, k);
+    double distances[] = m_NNSearch.getDistances();
+
+    return localDistribution(instance, neighbours, distances, k);
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances.
+   *
+   * @param insts the instances to be classified
+   * @return predicted class probability distributions, one per instance
+   * @throws Exception if distributions can't be computed successfully
+   */
+  public double[][] distributionsForInstances(Instances insts) 
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances and stores them in the given array. The neighbours of the
+   * instances are found with batch queries; the local models are then built
+   * one instance at a time. A new batch starts at each instance that
+   * extends the attribute ranges of the distance function, so the
+   * distributions are the same as those of distributionForInstance() called
+   * in order. Rows of the array are replaced by the distributions of the
+   * local models.
+   *
+   * @param insts the instances to be classified
+   * @param result the array to store the distributions in
+   * @throws Exception if distributions can't be computed successfully
+   */
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    // default model?
+    if (m_ZeroR != null) {
+      for (int i = 0; i < insts.numInstances(); i++) {
+        result[i] = m_ZeroR.distributionForInstance(insts.instance(i));
+      }
+      return;
+    }
+    
+    if (m_Train.numInstances() == 0) {
+      throw new Exception("No training instances!");
+    }
+
+    int k = numNeighbours();
+    int end;
+    for (int start = 0; start < insts.numInstances(); start = end) {
+      end = m_NNSearch.addInstanceInfo(insts, start);
+      Instances batch = ((start == 0) && (end == insts.numInstances())) 
+        ? insts : new Instances(insts, start, end - start);
+      int[][] indices = new int[end - start][];
+      double[][] distances = new double[end - start][];
+      m_NNSearch.kNearestNeighbours(batch, k, indices, distances);
+      for (int i = start; i < end; i++) {
+        int[] neighbourIndices = indices[i - start];
+        // add() copies the training instances, whose weights are changed
+        Instances neighbours = new Instances(m_Train, neighbourIndices.length);
+        for (int j = 0; j < neighbourIndices.length; j++) {
+          neighbours.add(m_Train.instance(neighbourIndices[j]));
+        }
+        result[i] = localDistribution(insts.instance(i), neighbours, 
+                                      distances[i - start], k);
+        indices[i - start] = null;
+        distances[i - start] = null;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of neighbours to use.
+   *
+   * @return the number of neighbours
+   */
+  protected int numNeighbours() {
+
     int k = m_Train.numInstances();
     if( (!m_UseAllK && (m_kNN < k)) /*&&
        !(m_WeightKernel==INVERSE ||
          m_WeightKernel==GAUSS)*/ ) {
       k = m_kNN;
     }
-    
-    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, k);
-    double distances[] = m_NNSearch.getDistances();
+    return k;
+  }
+
+  /**
+   * Weights the neighbours of a test instance, builds the base classifier on
+   * them and returns its prediction for the instance.
+   *
+   * @param instance the instance to be classified
+   * @param neighbours the neighbours of the instance, whose weights are
+   * changed
+   * @param distances the distances of the neighbours, which are changed
+   * @param k the number of neighbours asked for
+   * @return predicted class probability distribution
+   * @throws Exception if distribution can't be computed successfully
+   */
+  protected double[] localDistribution(Instance instance, 
+                                       Instances neighbours, 
+                                       double[] distances, int k) 
+    throws Exception {
 
     if (m_Debug) {
       System.out.println("Test Instance: "+instance);
@@ -33,9 +33,11 @@ import weka.classifiers.Classifier;
 import weka.classifiers.RandomizableParallelIteratedSingleClassifierEnhancer;
 import weka.core.AdditionalMeasureProducer;
 import weka.core.Aggregateable;
+import weka.core.BatchPredictor;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.Randomizable;
 import weka.core.RevisionUtils;
 import weka.core.TechnicalInformation;
@@ -146,7 +148,8 @@ import weka.core.PartitionGenerator;
 public class Bagging
   extends RandomizableParallelIteratedSingleClassifierEnhancer 
   implements WeightedInstancesHandler, AdditionalMeasureProducer,
-             TechnicalInformationHandler, PartitionGenerator, Aggregateable<Bagging> {
+             TechnicalInformationHandler, PartitionGenerator, Aggregateable<Bagging>,
+             PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = -115879962237199703L;
@@ -162,6 +165,9 @@ public class Bagging
 
   /** The out of bag error that has been calculated */
   protected double m_OutOfBagError;  
+
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
     
   /**
    * Constructor.
@@ -449,6 +455,49 @@ public class Bagging
     return m_CalcOutOfBag;
   }
 
+  /**
+   * Returns the base classifiers that have been built.
+   *
+   * @return the base classifiers, null if no model has been built yet
+   */
+  public Classifier[] getBaseClassifiers() {
+
+    return m_Classifiers;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction. Base classifiers that support batch prediction score "
+      + "the whole batch at once.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   *
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   *
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+
+    return m_BatchSize;
+  }
+
   /**
    * Gets the out of bag error that was calculated as the classifier
    * was built.
@@ -688,6 +737,94 @@ public class Bagging
     }
   }
 
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances.
+   *
+   * @param insts the instances to be classified
+   * @return predicted class probability distributions, one per instance
+   * @throws Exception if distributions can't be computed successfully 
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts) throws Exception {
+
+    double[][] result = new double[insts.numInstances()][insts.numClasses()];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Calculates the class membership probabilities for the given test
+   * instances and stores them in the given array. Each base classifier scores
+   * the whole batch at once if it is a batch predictor, otherwise the
+   * instances are passed to it one at a time.
+   *
+   * @param insts the instances to be classified
+   * @param result the array to store the distributions in
+   * @throws Exception if distributions can't be computed successfully 
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    int numInstances = insts.numInstances();
+    int numClasses = insts.numClasses();
+    boolean numeric = insts.classAttribute().isNumeric();
+    double[] numPreds = new double[numInstances];
+    double[][] buffer = null;
+    for (int n = 0; n < numInstances; n++) {
+      Arrays.fill(result[n], 0);
+    }
+
+    for (int i = 0; i < m_NumIterations; i++) {
+      double[][] preds;
+      if (m_Classifiers[i] instanceof PreallocatedBatchPredictor) {
+        if (buffer == null) {
+          buffer = new double[numInstances][numClasses];
+        }
+        ((PreallocatedBatchPredictor) m_Classifiers[i])
+          .distributionsForInstances(insts, buffer);
+        preds = buffer;
+      } else if (m_Classifiers[i] instanceof BatchPredictor) {
+        preds = ((BatchPredictor) m_Classifiers[i])
+          .distributionsForInstances(insts);
+      } else {
+        preds = null;
+      }
+
+      for (int n = 0; n < numInstances; n++) {
+        double[] sums = result[n];
+        if (numeric) {
+          double pred = (preds != null) ? preds[n][0]
+            : m_Classifiers[i].classifyInstance(insts.instance(n));
+          if (!Utils.isMissingValue(pred)) {
+            sums[0] += pred;
+            numPreds[n]++;
+          }
+        } else {
+          double[] newProbs = (preds != null) ? preds[n]
+            : m_Classifiers[i].distributionForInstance(insts.instance(n));
+          for (int j = 0; j < newProbs.length; j++) {
+            sums[j] += newProbs[j];
+          }
+        }
+      }
+    }
+
+    for (int n = 0; n < numInstances; n++) {
+      double[] sums = result[n];
+      if (numeric) {
+        if (numPreds[n] == 0) {
+          sums[0] = Utils.missingValue();
+        } else {
+          sums[0] /= numPreds[n];
+        }
+      } else if (!Utils.eq(Utils.sum(sums), 0)) {
+        Utils.normalize(sums);
+      }
+    }
+  }
+
   /**
    * Returns description of the bagged classifier.
    *
@@ -0,0 +1,415 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CompiledTree.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.classifiers.trees;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+/**
+ * A trained decision tree, or a forest of them, compiled into flat primitive
+ * arrays for fast scoring. Each node is an index into parallel arrays that
+ * hold the attribute tested at the node, the kind of test, the split point,
+ * the position of the node's children and the position of its class
+ * distribution, so that scoring walks arrays instead of linked node objects
+ * and does not allocate. <br/>
+ * <br/>
+ * Trees are obtained from the <code>compile()</code> methods of J48,
+ * RandomTree, REPTree and RandomForest, and give the same predictions as the
+ * models they were compiled from. Missing values are handled the way the
+ * original models handle them: the instance is split up according to the
+ * branch weights stored with the children of a node. If an instance reaches
+ * a node without a distribution, the distribution of the deepest node above
+ * it is used.
+ *
+ * @version $Revision$
+ */
+public class CompiledTree implements Serializable, RevisionHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = -5284469135931620574L;
+
+  /** Test for leaves. */
+  public static final byte LEAF = 0;
+
+  /** Test for numeric attributes: branch 0 if value &lt; split point. */
+  public static final byte LESS = 1;
+
+  /**
+   * Test for numeric attributes: branch 0 if value &lt;= split point (up to
+   * Utils.SMALL), as in J48.
+   */
+  public static final byte LESS_OR_EQUAL = 2;
+
+  /** Test for nominal attributes: one branch per value. */
+  public static final byte NOMINAL = 3;
+
+  /** Test for nominal attributes: branch 0 if value == split point. */
+  public static final byte NOMINAL_EQUALS = 4;
+
+  /** The number of classes (1 for a numeric class) */
+  protected int m_NumClasses;
+
+  /** Whether the trees are averaged as in Bagging */
+  protected boolean m_Average;
+
+  /** Whether the class is numeric */
+  protected boolean m_NumericClass;
+
+  /** The number of nodes */
+  protected int m_NumNodes;
+
+  /** The test at each node */
+  protected byte[] m_Test = new byte[16];
+
+  /** The attribute tested at each node */
+  protected int[] m_Attribute = new int[16];
+
+  /** The split point of each node */
+  protected double[] m_SplitPoint = new double[16];
+
+  /** The position of the first child of each node in m_Children */
+  protected int[] m_FirstChild = new int[16];
+
+  /** The number of children of each node */
+  protected int[] m_NumChildren = new int[16];
+
+  /** The position of each node's distribution, -1 if it has none */
+  protected int[] m_Distribution = new int[16];
+
+  /** The children of all nodes */
+  protected int[] m_Children = new int[16];
+
+  /** The weight of each child for instances with a missing value */
+  protected double[] m_Weights = new double[16];
+
+  /** The number of used entries in m_Children */
+  protected int m_NumChildEntries;
+
+  /** The class distributions of all nodes */
+  protected double[] m_Distributions = new double[16];
+
+  /** The number of used entries in m_Distributions */
+  protected int m_NumDistributionEntries;
+
+  /** The root of each tree */
+  protected int[] m_Roots = new int[1];
+
+  /** The number of trees */
+  protected int m_NumRoots;
+
+  /**
+   * Creates an empty model.
+   *
+   * @param numClasses the number of classes, 1 for a numeric class
+   * @param numericClass whether the class is numeric
+   * @param average whether the predictions of the trees are averaged as in
+   *          Bagging, otherwise the model must hold a single tree
+   */
+  public CompiledTree(int numClasses, boolean numericClass, boolean average) {
+    m_NumClasses = numClasses;
+    m_NumericClass = numericClass;
+    m_Average = average;
+  }
+
+  /**
+   * Adds a node. Its children have to be set with setChild().
+   *
+   * @param test the kind of test, LEAF for a leaf
+   * @param attribute the attribute tested, ignored for leaves
+   * @param splitPoint the split point, ignored for leaves and NOMINAL tests
+   * @param numChildren the number of children, 0 for leaves
+   * @param distribution the class distribution of the node, may be null
+   * @return the index of the node
+   */
+  public int addNode(byte test, int attribute, double splitPoint,
+    int numChildren, double[] distribution) {
+
+    if (m_NumNodes == m_Test.length) {
+      int capacity = 2 * m_NumNodes;
+      m_Test = Arrays.copyOf(m_Test, capacity);
+      m_Attribute = Arrays.copyOf(m_Attribute, capacity);
+      m_SplitPoint = Arrays.copyOf(m_SplitPoint, capacity);
+      m_FirstChild = Arrays.copyOf(m_FirstChild, capacity);
+      m_NumChildren = Arrays.copyOf(m_NumChildren, capacity);
+      m_Distribution = Arrays.copyOf(m_Distribution, capacity);
+    }
+    int node = m_NumNodes++;
+
+    m_Test[node] = test;
+    m_Attribute[node] = (test == LEAF) ? -1 : attribute;
+    m_SplitPoint[node] = splitPoint;
+    m_NumChildren[node] = numChildren;
+    m_FirstChild[node] = m_NumChildEntries;
+    if (m_NumChildEntries + numChildren > m_Children.length) {
+      int capacity = Math.max(2 * m_Children.length, m_NumChildEntries
+        + numChildren);
+      m_Children = Arrays.copyOf(m_Children, capacity);
+      m_Weights = Arrays.copyOf(m_Weights, capacity);
+    }
+    m_NumChildEntries += numChildren;
+
+    if (distribution == null) {
+      m_Distribution[node] = -1;
+    } else {
+      if (m_NumDistributionEntries + m_NumClasses > m_Distributions.length) {
+        m_Distributions = Arrays.copyOf(m_Distributions, Math.max(
+          2 * m_Distributions.length, m_NumDistributionEntries + m_NumClasses));
+      }
+      m_Distribution[node] = m_NumDistributionEntries;
+      System.arraycopy(distribution, 0, m_Distributions,
+        m_NumDistributionEntries, m_NumClasses);
+      m_NumDistributionEntries += m_NumClasses;
+    }
+
+    return node;
+  }
+
+  /**
+   * Sets a child of a node.
+   *
+   * @param node the node
+   * @param branch the branch of the node
+   * @param child the node reached through the branch
+   * @param weight the weight of the branch for instances with a missing value
+   */
+  public void setChild(int node, int branch, int child, double weight) {
+    m_Children[m_FirstChild[node] + branch] = child;
+    m_Weights[m_FirstChild[node] + branch] = weight;
+  }
+
+  /**
+   * Adds the root of a tree.
+   *
+   * @param node the root node
+   */
+  public void addRoot(int node) {
+    if (m_NumRoots == m_Roots.length) {
+      m_Roots = Arrays.copyOf(m_Roots, 2 * m_NumRoots);
+    }
+    m_Roots[m_NumRoots++] = node;
+  }
+
+  /**
+   * Releases the unused capacity of the arrays once all trees have been
+   * added.
+   */
+  public void trim() {
+    m_Test = Arrays.copyOf(m_Test, m_NumNodes);
+    m_Attribute = Arrays.copyOf(m_Attribute, m_NumNodes);
+    m_SplitPoint = Arrays.copyOf(m_SplitPoint, m_NumNodes);
+    m_FirstChild = Arrays.copyOf(m_FirstChild, m_NumNodes);
+    m_NumChildren = Arrays.copyOf(m_NumChildren, m_NumNodes);
+    m_Distribution = Arrays.copyOf(m_Distribution, m_NumNodes);
+    m_Children = Arrays.copyOf(m_Children, m_NumChildEntries);
+    m_Weights = Arrays.copyOf(m_Weights, m_NumChildEntries);
+    m_Distributions = Arrays.copyOf(m_Distributions, m_NumDistributionEntries);
+    m_Roots = Arrays.copyOf(m_Roots, m_NumRoots);
+  }
+
+  /**
+   * Returns the number of nodes.
+   *
+   * @return the number of nodes over all trees
+   */
+  public int numNodes() {
+    return m_NumNodes;
+  }
+
+  /**
+   * Returns the number of trees.
+   *
+   * @return the number of trees
+   */
+  public int numTrees() {
+    return m_NumRoots;
+  }
+
+  /**
+   * Returns the number of classes.
+   *
+   * @return the number of classes, 1 for a numeric class
+   */
+  public int numClasses() {
+    return m_NumClasses;
+  }
+
+  /**
+   * Returns the branch taken at an inner node for a value that is not
+   * missing.
+   *
+   * @param node the node
+   * @param value the value of the tested attribute
+   * @return the branch
+   */
+  protected int branch(int node, double value) {
+
+    switch (m_Test[node]) {
+    case LESS:
+      return (value < m_SplitPoint[node]) ? 0 : 1;
+    case LESS_OR_EQUAL:
+      return Utils.smOrEq(value, m_SplitPoint[node]) ? 0 : 1;
+    case NOMINAL:
+      return (int) value;
+    default:
+      return ((int) m_SplitPoint[node] == (int) value) ? 0 : 1;
+    }
+  }
+
+  /**
+   * Adds the distribution of one tree for the given values, multiplied by
+   * the given weight, to an array. Only instances with missing values
+   * recurse; the path of all other instances is followed in a loop.
+   *
+   * @param node the node to start at
+   * @param values the attribute values, missing values as NaN
+   * @param dist the array to add to
+   * @param weight the weight
+   * @return false if no node on the path has a distribution, in which case
+   *         nothing has been added
+   */
+  protected boolean add(int node, double[] values, double[] dist, double weight) {
+
+    int last = -1;
+    while (true) {
+      if (m_Distribution[node] > -1) {
+        last = node;
+      }
+      if (m_Test[node] == LEAF) {
+        break;
+      }
+      double value = values[m_Attribute[node]];
+      int first = m_FirstChild[node];
+      if (Utils.isMissingValue(value)) {
+
+        // Split instance up
+        for (int i = first; i < first + m_NumChildren[node]; i++) {
+          add(m_Children[i], values, dist, weight * m_Weights[i]);
+        }
+        return true;
+      }
+      int child = m_Children[first + branch(node, value)];
+      if (child < 0) {
+        break;
+      }
+      node = child;
+    }
+
+    if (last < 0) {
+      return false;
+    }
+    int offset = m_Distribution[last];
+    for (int j = 0; j < m_NumClasses; j++) {
+      dist[j] += weight * m_Distributions[offset + j];
+    }
+    return true;
+  }
+
+  /**
+   * Computes the distribution for the given attribute values and stores it
+   * in the given array. Nothing is allocated.
+   *
+   * @param values the attribute values, missing values as NaN
+   * @param dist the array to store the distribution in, with one entry per
+   *          class
+   */
+  public void distribution(double[] values, double[] dist) {
+
+    Arrays.fill(dist, 0, m_NumClasses, 0);
+    if (!m_Average) {
+      add(m_Roots[0], values, dist, 1.0);
+    } else if (m_NumericClass) {
+      double sum = 0;
+      int numPreds = 0;
+      for (int t = 0; t < m_NumRoots; t++) {
+        dist[0] = 0;
+        if (add(m_Roots[t], values, dist, 1.0)
+          && !Utils.isMissingValue(dist[0])) {
+          sum += dist[0];
+          numPreds++;
+        }
+      }
+      dist[0] = (numPreds == 0) ? Utils.missingValue() : sum / numPreds;
+    } else {
+      for (int t = 0; t < m_NumRoots; t++) {
+        add(m_Roots[t], values, dist, 1.0);
+      }
+      double sum = 0;
+      for (int j = 0; j < m_NumClasses; j++) {
+        sum += dist[j];
+      }
+      if (!Utils.eq(sum, 0)) {
+        for (int j = 0; j < m_NumClasses; j++) {
+          dist[j] /= sum;
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the distribution for the given instance.
+   *
+   * @param instance the instance
+   * @return the distribution
+   */
+  public double[] distributionForInstance(Instance instance) {
+
+    double[] dist = new double[m_NumClasses];
+    distribution(instance.toDoubleArray(), dist);
+    return dist;
+  }
+
+  /**
+   * Computes the distributions for the given instances and stores them in
+   * the given array. One array of values is reused for all instances.
+   *
+   * @param insts the instances
+   * @param result the array to store the distributions in, one row per
+   *          instance
+   */
+  public void distributionsForInstances(Instances insts, double[][] result) {
+
+    double[] values = new double[insts.numAttributes()];
+    for (int i = 0; i < insts.numInstances(); i++) {
+      Instance instance = insts.instance(i);
+      for (int a = 0; a < values.length; a++) {
+        values[a] = instance.value(a);
+      }
+      distribution(values, result[i]);
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
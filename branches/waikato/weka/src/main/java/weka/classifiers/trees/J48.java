@@ -325,6 +325,21 @@ public class J48 extends AbstractClassifier implements OptionHandler, Drawable,
     return m_root.distributionForInstance(instance, m_useLaplace);
   }
 
+  /**
+   * Compiles the tree into flat arrays for fast scoring. The compiled model
+   * gives the same class probabilities as distributionForInstance().
+   * 
+   * @return the compiled tree
+   * @throws Exception if no tree has been built
+   */
+  public CompiledTree compile() throws Exception {
+
+    if (m_root == null) {
+      throw new Exception("J48: No model built yet.");
+    }
+    return m_root.compile(m_useLaplace);
+  }
+
   /**
    * Returns the type of graph this classifier represents.
    * 
@@ -22,6 +22,7 @@
 package weka.classifiers.trees;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
@@ -34,8 +35,10 @@ import weka.classifiers.Sourcable;
 import weka.classifiers.rules.ZeroR;
 import weka.core.AdditionalMeasureProducer;
 import weka.core.Attribute;
+import weka.core.BinnedColumns;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
+import weka.core.ColumnStore;
 import weka.core.ContingencyTables;
 import weka.core.Drawable;
 import weka.core.Instance;
@@ -43,6 +46,7 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.PartitionGenerator;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.Randomizable;
 import weka.core.RevisionHandler;
 import weka.core.RevisionUtils;
@@ -92,6 +96,17 @@ import weka.core.WeightedInstancesHandler;
  *  Maximum tree depth (default -1, no maximum)
  * </pre>
  * 
+ * <pre>
+ * -columnar
+ *  Grow the tree on a column-major copy of the data.
+ * </pre>
+ * 
+ * <pre>
+ * -bins &lt;num&gt;
+ *  Number of histogram bins for numeric attributes, at most 255
+ *  (default 0, exact split search)
+ * </pre>
+ * 
  * <!-- options-end -->
  * 
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
@@ -99,7 +114,7 @@ import weka.core.WeightedInstancesHandler;
  */
 public class REPTree extends AbstractClassifier implements OptionHandler,
   WeightedInstancesHandler, Drawable, AdditionalMeasureProducer, Sourcable,
-  PartitionGenerator, Randomizable {
+  PartitionGenerator, Randomizable, PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = -9216785998198681299L;
@@ -224,6 +239,80 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       }
     }
 
+    /**
+     * Adds this tree to a compiled model.
+     * 
+     * @param compiled the model to add to
+     * @return the index of this node in the compiled model
+     */
+    protected int compile(CompiledTree compiled) {
+
+      if (m_Attribute == -1) {
+        return compiled.addNode(CompiledTree.LEAF, -1, 0, 0, m_ClassProbs);
+      }
+      byte test = m_Info.attribute(m_Attribute).isNominal()
+        ? CompiledTree.NOMINAL : CompiledTree.LESS;
+      int node = compiled.addNode(test, m_Attribute, m_SplitPoint,
+        m_Successors.length, m_ClassProbs);
+      for (int i = 0; i < m_Successors.length; i++) {
+        compiled.setChild(node, i, m_Successors[i].compile(compiled),
+          m_Prop[i]);
+      }
+      return node;
+    }
+
+    /**
+     * Adds the class distribution of an instance, multiplied by the given
+     * weight, to the given array. Equivalent to distributionForInstance(), but
+     * without allocating intermediate arrays.
+     * 
+     * @param instance the instance to compute the distribution for
+     * @param dist the array to add the distribution to
+     * @param weight the weight of the distribution
+     * @return false if the instance ended up in an empty node, in which case
+     *         nothing has been added
+     * @throws Exception if computation fails
+     */
+    protected boolean addDistribution(Instance instance, double[] dist,
+      double weight) throws Exception {
+
+      if (m_Attribute > -1) {
+
+        // Node is not a leaf
+        if (instance.isMissing(m_Attribute)) {
+
+          // Split instance up
+          for (int i = 0; i < m_Successors.length; i++) {
+            m_Successors[i].addDistribution(instance, dist, weight * m_Prop[i]);
+          }
+          return true;
+        } else if (m_Info.attribute(m_Attribute).isNominal()) {
+
+          // For nominal attributes
+          if (m_Successors[(int) instance.value(m_Attribute)].addDistribution(
+            instance, dist, weight)) {
+            return true;
+          }
+        } else {
+
+          // For numeric attributes
+          int branch = (instance.value(m_Attribute) < m_SplitPoint) ? 0 : 1;
+          if (m_Successors[branch].addDistribution(instance, dist, weight)) {
+            return true;
+          }
+        }
+      }
+
+      // Node is a leaf or successor is empty
+      if (m_ClassProbs == null) {
+        return false;
+      }
+      for (int j = 0; j < m_ClassProbs.length; j++) {
+        dist[j] += weight * m_ClassProbs[j];
+      }
+      return true;
+    }
+
     /**
      * Returns a string containing java source code equivalent to the test made
      * at this node. The instance being tested is called "i". This routine
@@ -528,6 +617,36 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       Instances header, double minNum, double minVariance, int depth,
       int maxDepth) throws Exception {
 
+      buildTree(sortedIndices, weights, data, totalWeight, classProbs, header,
+        minNum, minVariance, depth, maxDepth, null);
+    }
+
+    /**
+     * Recursively generates a tree. If binned data is available, the class
+     * histograms of the binned attributes are passed down to the successors:
+     * the histograms of all but the largest successor are computed from
+     * their instances, and those of the largest one by subtraction from the
+     * histograms at this node.
+     * 
+     * @param sortedIndices the sorted indices of the instances
+     * @param weights the weights of the instances
+     * @param data the data to work with
+     * @param totalWeight
+     * @param classProbs the class probabilities
+     * @param header the header of the data
+     * @param minNum the minimum number of instances in a leaf
+     * @param minVariance
+     * @param depth the current depth of the tree
+     * @param maxDepth the maximum allowed depth of the tree
+     * @param hists the histograms of the binned attributes at this node, null
+     *          if not computed yet
+     * @throws Exception if generation fails
+     */
+    protected void buildTree(int[][][] sortedIndices, double[][][] weights,
+      Instances data, double totalWeight, double[] classProbs,
+      Instances header, double minNum, double minVariance, int depth,
+      int maxDepth, double[][] hists) throws Exception {
+
       // Store structure of dataset, set minimum number of instances
       // and make space for potential info from pruning data
       m_Info = header;
@@ -559,10 +678,11 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
 
         // Compute prior variance
         double totalSum = 0, totalSumSquared = 0, totalSumOfWeights = 0;
+        double[] classVals = attributeValues(data.classIndex(),
+          sortedIndices[0][helpIndex], data, null);
         for (int i = 0; i < sortedIndices[0][helpIndex].length; i++) {
-          Instance inst = data.instance(sortedIndices[0][helpIndex][i]);
-          totalSum += inst.classValue() * weights[0][helpIndex][i];
-          totalSumSquared += inst.classValue() * inst.classValue()
+          totalSum += classVals[i] * weights[0][helpIndex][i];
+          totalSumSquared += classVals[i] * classVals[i]
             * weights[0][helpIndex][i];
           totalSumOfWeights += weights[0][helpIndex][i];
         }
@@ -618,13 +738,31 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       double[][] props = new double[data.numAttributes()][0];
       double[][] totalSubsetWeights = new double[data.numAttributes()][0];
       double[] splits = new double[data.numAttributes()];
+
+      // Compute the histograms not passed down from the parent
+      if (m_Bins != null) {
+        if (hists == null) {
+          hists = new double[data.numAttributes()][];
+        }
+        for (int i = 0; i < data.numAttributes(); i++) {
+          if (m_Bins.isBinned(i) && (hists[i] == null)) {
+            hists[i] = m_Bins.histogram(i, sortedIndices[0][i], weights[0][i]);
+          }
+        }
+      }
+
       if (data.classAttribute().isNominal()) {
 
         // Nominal case
         for (int i = 0; i < data.numAttributes(); i++) {
           if (i != data.classIndex()) {
-            splits[i] = distribution(props, dists, i, sortedIndices[0][i],
-              weights[0][i], totalSubsetWeights, data);
+            if ((hists != null) && (hists[i] != null)) {
+              splits[i] = binnedDistribution(props, dists, i, hists[i],
+                totalSubsetWeights);
+            } else {
+              splits[i] = distribution(props, dists, i, sortedIndices[0][i],
+                weights[0][i], totalSubsetWeights, data);
+            }
             vals[i] = gain(dists[i], priorVal(dists[i]));
           }
         }
@@ -633,9 +771,14 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
         // Numeric case
         for (int i = 0; i < data.numAttributes(); i++) {
           if (i != data.classIndex()) {
-            splits[i] = numericDistribution(props, dists, i,
-              sortedIndices[0][i], weights[0][i], totalSubsetWeights, data,
-              vals);
+            if ((hists != null) && (hists[i] != null)) {
+              splits[i] = binnedNumericDistribution(props, dists, i,
+                hists[i], totalSubsetWeights, vals);
+            } else {
+              splits[i] = numericDistribution(props, dists, i,
+                sortedIndices[0][i], weights[0][i], totalSubsetWeights, data,
+                vals);
+            }
           }
         }
       }
@@ -679,6 +822,13 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
         splitData(subsetIndices, subsetWeights, m_Attribute, m_SplitPoint,
           sortedIndices[0], weights[0], data);
 
+        // Histograms for the successors
+        double[][][] subsetHists = null;
+        if (hists != null) {
+          subsetHists = subsetHistograms(hists, subsetIndices, subsetWeights);
+          hists = null;
+        }
+
         // Release memory
         sortedIndices[0] = null;
         weights[0] = null;
@@ -689,10 +839,14 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
           m_Successors[i] = new Tree();
           m_Successors[i].buildTree(subsetIndices[i], subsetWeights[i], data,
             attTotalSubsetWeights[i], attSubsetDists[i], header, minNum,
-            minVariance, depth + 1, maxDepth);
+            minVariance, depth + 1, maxDepth, (subsetHists != null)
+              ? subsetHists[i] : null);
 
           // Release as much memory as we can
           attSubsetDists[i] = null;
+          if (subsetHists != null) {
+            subsetHists[i] = null;
+          }
         }
       } else {
 
@@ -781,8 +935,8 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
               subsetWeights[k][0][i] = new double[sortedIndices[i].length];
             }
             for (j = 0; j < sortedIndices[i].length; j++) {
-              Instance inst = data.instance(sortedIndices[i][j]);
-              if (inst.isMissing(att)) {
+              double attVal = value(att, sortedIndices[i][j], data);
+              if (Utils.isMissingValue(attVal)) {
 
                 // Split instance up
                 for (int k = 0; k < num.length; k++) {
@@ -793,7 +947,7 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
                   }
                 }
               } else {
-                int subset = (int) inst.value(att);
+                int subset = (int) attVal;
                 subsetIndices[subset][0][i][num[subset]] = sortedIndices[i][j];
                 subsetWeights[subset][0][i][num[subset]] = weights[i][j];
                 num[subset]++;
@@ -808,8 +962,8 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
               subsetWeights[k][0][i] = new double[weights[i].length];
             }
             for (j = 0; j < sortedIndices[i].length; j++) {
-              Instance inst = data.instance(sortedIndices[i][j]);
-              if (inst.isMissing(att)) {
+              double attVal = value(att, sortedIndices[i][j], data);
+              if (Utils.isMissingValue(attVal)) {
 
                 // Split instance up
                 for (int k = 0; k < num.length; k++) {
@@ -820,7 +974,7 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
                   }
                 }
               } else {
-                int subset = (inst.value(att) < splitPoint) ? 0 : 1;
+                int subset = (attVal < splitPoint) ? 0 : 1;
                 subsetIndices[subset][0][i][num[subset]] = sortedIndices[i][j];
                 subsetWeights[subset][0][i][num[subset]] = weights[i][j];
                 num[subset]++;
@@ -861,6 +1015,9 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       double splitPoint = Double.NaN;
       Attribute attribute = data.attribute(att);
       double[][] dist = null;
+      double[] attVals = new double[sortedIndices.length];
+      double[] classVals = new double[sortedIndices.length];
+      values(att, sortedIndices, data, attVals, classVals);
       int i;
 
       if (attribute.isNominal()) {
@@ -868,11 +1025,10 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
         // For nominal attributes
         dist = new double[attribute.numValues()][data.numClasses()];
         for (i = 0; i < sortedIndices.length; i++) {
-          Instance inst = data.instance(sortedIndices[i]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[i])) {
             break;
           }
-          dist[(int) inst.value(att)][(int) inst.classValue()] += weights[i];
+          dist[(int) attVals[i]][(int) classVals[i]] += weights[i];
         }
       } else {
 
@@ -882,32 +1038,30 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
 
         // Move all instances into second subset
         for (int j = 0; j < sortedIndices.length; j++) {
-          Instance inst = data.instance(sortedIndices[j]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[j])) {
             break;
           }
-          currDist[1][(int) inst.classValue()] += weights[j];
+          currDist[1][(int) classVals[j]] += weights[j];
         }
         double priorVal = priorVal(currDist);
         System.arraycopy(currDist[1], 0, dist[1], 0, dist[1].length);
 
         // Try all possible split points
-        double currSplit = data.instance(sortedIndices[0]).value(att);
+        double currSplit = attVals[0];
         double currVal, bestVal = -Double.MAX_VALUE;
         for (i = 0; i < sortedIndices.length; i++) {
-          Instance inst = data.instance(sortedIndices[i]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[i])) {
             break;
           }
-          if (inst.value(att) > currSplit) {
+          if (attVals[i] > currSplit) {
             currVal = gain(currDist, priorVal);
             if (currVal > bestVal) {
               bestVal = currVal;
-              splitPoint = (inst.value(att) + currSplit) / 2.0;
+              splitPoint = (attVals[i] + currSplit) / 2.0;
 
               // Check for numeric precision problems
               if (splitPoint <= currSplit) {
-                splitPoint = inst.value(att);
+                splitPoint = attVals[i];
               }
 
               for (int j = 0; j < currDist.length; j++) {
@@ -915,9 +1069,9 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
               }
             }
           }
-          currSplit = inst.value(att);
-          currDist[0][(int) inst.classValue()] += weights[i];
-          currDist[1][(int) inst.classValue()] -= weights[i];
+          currSplit = attVals[i];
+          currDist[0][(int) classVals[i]] += weights[i];
+          currDist[1][(int) classVals[i]] -= weights[i];
         }
       }
 
@@ -936,9 +1090,8 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
 
       // Distribute counts
       while (i < sortedIndices.length) {
-        Instance inst = data.instance(sortedIndices[i]);
         for (int j = 0; j < dist.length; j++) {
-          dist[j][(int) inst.classValue()] += props[att][j] * weights[i];
+          dist[j][(int) classVals[i]] += props[att][j] * weights[i];
         }
         i++;
       }
@@ -979,6 +1132,9 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       double[] sumSquared = null;
       double[] sumOfWeights = null;
       double totalSum = 0, totalSumSquared = 0, totalSumOfWeights = 0;
+      double[] attVals = new double[sortedIndices.length];
+      double[] classVals = new double[sortedIndices.length];
+      values(att, sortedIndices, data, attVals, classVals);
 
       int i;
 
@@ -990,14 +1146,12 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
         sumOfWeights = new double[attribute.numValues()];
         int attVal;
         for (i = 0; i < sortedIndices.length; i++) {
-          Instance inst = data.instance(sortedIndices[i]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[i])) {
             break;
           }
-          attVal = (int) inst.value(att);
-          sums[attVal] += inst.classValue() * weights[i];
-          sumSquared[attVal] += inst.classValue() * inst.classValue()
-            * weights[i];
+          attVal = (int) attVals[i];
+          sums[attVal] += classVals[i] * weights[i];
+          sumSquared[attVal] += classVals[i] * classVals[i] * weights[i];
           sumOfWeights[attVal] += weights[i];
         }
         totalSum = Utils.sum(sums);
@@ -1015,13 +1169,11 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
 
         // Move all instances into second subset
         for (int j = 0; j < sortedIndices.length; j++) {
-          Instance inst = data.instance(sortedIndices[j]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[j])) {
             break;
           }
-          currSums[1] += inst.classValue() * weights[j];
-          currSumSquared[1] += inst.classValue() * inst.classValue()
-            * weights[j];
+          currSums[1] += classVals[j] * weights[j];
+          currSumSquared[1] += classVals[j] * classVals[j] * weights[j];
           currSumOfWeights[1] += weights[j];
 
         }
@@ -1034,22 +1186,21 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
         sumOfWeights[1] = currSumOfWeights[1];
 
         // Try all possible split points
-        double currSplit = data.instance(sortedIndices[0]).value(att);
+        double currSplit = attVals[0];
         double currVal, bestVal = Double.MAX_VALUE;
         for (i = 0; i < sortedIndices.length; i++) {
-          Instance inst = data.instance(sortedIndices[i]);
-          if (inst.isMissing(att)) {
+          if (Utils.isMissingValue(attVals[i])) {
             break;
           }
-          if (inst.value(att) > currSplit) {
+          if (attVals[i] > currSplit) {
             currVal = variance(currSums, currSumSquared, currSumOfWeights);
             if (currVal < bestVal) {
               bestVal = currVal;
-              splitPoint = (inst.value(att) + currSplit) / 2.0;
+              splitPoint = (attVals[i] + currSplit) / 2.0;
 
               // Check for numeric precision problems
               if (splitPoint <= currSplit) {
-                splitPoint = inst.value(att);
+                splitPoint = attVals[i];
               }
 
               for (int j = 0; j < 2; j++) {
@@ -1060,10 +1211,10 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
             }
           }
 
-          currSplit = inst.value(att);
+          currSplit = attVals[i];
 
-          double classVal = inst.classValue() * weights[i];
-          double classValSquared = inst.classValue() * classVal;
+          double classVal = classVals[i] * weights[i];
+          double classValSquared = classVals[i] * classVal;
 
           currSums[0] += classVal;
           currSumSquared[0] += classValSquared;
@@ -1090,15 +1241,14 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
 
       // Distribute counts for missing values
       while (i < sortedIndices.length) {
-        Instance inst = data.instance(sortedIndices[i]);
         for (int j = 0; j < sums.length; j++) {
-          sums[j] += props[att][j] * inst.classValue() * weights[i];
-          sumSquared[j] += props[att][j] * inst.classValue()
-            * inst.classValue() * weights[i];
+          sums[j] += props[att][j] * classVals[i] * weights[i];
+          sumSquared[j] += props[att][j] * classVals[i] * classVals[i]
+            * weights[i];
           sumOfWeights[j] += props[att][j] * weights[i];
         }
-        totalSum += inst.classValue() * weights[i];
-        totalSumSquared += inst.classValue() * inst.classValue() * weights[i];
+        totalSum += classVals[i] * weights[i];
+        totalSumSquared += classVals[i] * classVals[i] * weights[i];
         totalSumOfWeights += weights[i];
         i++;
       }
@@ -1126,6 +1276,315 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       return splitPoint;
     }
 
+    /**
+     * Computes the histograms of the binned attributes for the subsets of a
+     * split. The histograms of the largest subset are obtained by subtracting
+     * those of the other subsets from the histograms at this node.
+     * 
+     * @param hists the histograms at this node
+     * @param subsetIndices the indices of the subsets
+     * @param subsetWeights the weights of the subsets
+     * @return the histograms of each subset
+     */
+    protected double[][][] subsetHistograms(double[][] hists,
+      int[][][][] subsetIndices, double[][][][] subsetWeights) {
+
+      double[][][] subsetHists =
+        new double[subsetIndices.length][hists.length][];
+      for (int att = 0; att < hists.length; att++) {
+        if (hists[att] == null) {
+          continue;
+        }
+        int largest = 0;
+        for (int k = 1; k < subsetIndices.length; k++) {
+          int size = subsetIndices[k][0][att].length;
+          if (size > subsetIndices[largest][0][att].length) {
+            largest = k;
+          }
+        }
+        double[] rest = hists[att].clone();
+        for (int k = 0; k < subsetIndices.length; k++) {
+          if (k != largest) {
+            subsetHists[k][att] = m_Bins.histogram(att,
+              subsetIndices[k][0][att], subsetWeights[k][0][att]);
+            m_Bins.subtract(rest, subsetHists[k][att]);
+          }
+        }
+        subsetHists[largest][att] = rest;
+      }
+      return subsetHists;
+    }
+
+    /**
+     * Computes class distribution for a binned numeric attribute from its
+     * histogram. Only split points between buckets are considered.
+     * 
+     * @param props
+     * @param dists
+     * @param att the attribute index
+     * @param hist the class histogram of the attribute
+     * @param subsetWeights the weights of the subset
+     * @return the split point
+     */
+    protected double binnedDistribution(double[][] props, double[][][] dists,
+      int att, double[] hist, double[][] subsetWeights) {
+
+      double splitPoint = Double.NaN;
+      int numClasses = m_Bins.stride();
+      int numBins = m_Bins.numBins(att);
+      double[][] currDist = new double[2][numClasses];
+      double[][] dist = new double[2][numClasses];
+
+      // Move all instances into second subset
+      int last = -1;
+      for (int b = 0; b < numBins; b++) {
+        for (int c = 0; c < numClasses; c++) {
+          if (hist[b * numClasses + c] > 0) {
+            currDist[1][c] += hist[b * numClasses + c];
+            last = b;
+          }
+        }
+      }
+      double priorVal = priorVal(currDist);
+      System.arraycopy(currDist[1], 0, dist[1], 0, dist[1].length);
+
+      // Try the split points after all non-empty buckets but the last
+      double currVal, bestVal = -Double.MAX_VALUE;
+      for (int b = 0; b < last; b++) {
+        boolean empty = true;
+        for (int c = 0; c < numClasses; c++) {
+          double weight = hist[b * numClasses + c];
+          if (weight > 0) {
+            currDist[0][c] += weight;
+            currDist[1][c] -= weight;
+            empty = false;
+          }
+        }
+        if (empty) {
+          continue;
+        }
+        currVal = gain(currDist, priorVal);
+        if (currVal > bestVal) {
+          bestVal = currVal;
+          splitPoint = m_Bins.splitPoint(att, b);
+          for (int j = 0; j < currDist.length; j++) {
+            System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+          }
+        }
+      }
+
+      // Compute weights
+      props[att] = new double[dist.length];
+      for (int k = 0; k < props[att].length; k++) {
+        props[att][k] = Utils.sum(dist[k]);
+      }
+      if (!(Utils.sum(props[att]) > 0)) {
+        for (int k = 0; k < props[att].length; k++) {
+          props[att][k] = 1.0 / props[att].length;
+        }
+      } else {
+        Utils.normalize(props[att]);
+      }
+
+      // Distribute counts
+      for (int c = 0; c < numClasses; c++) {
+        double weight = hist[numBins * numClasses + c];
+        for (int j = 0; j < dist.length; j++) {
+          dist[j][c] += props[att][j] * weight;
+        }
+      }
+
+      // Compute subset weights
+      subsetWeights[att] = new double[dist.length];
+      for (int j = 0; j < dist.length; j++) {
+        subsetWeights[att][j] += Utils.sum(dist[j]);
+      }
+
+      // Return distribution and split point
+      dists[att] = dist;
+      return splitPoint;
+    }
+
+    /**
+     * Computes numeric class distribution for a binned numeric attribute from
+     * its histogram (sum, sum of squares and weight per bucket). Only split
+     * points between buckets are considered.
+     * 
+     * @param props
+     * @param dists
+     * @param att the attribute index
+     * @param hist the class histogram of the attribute
+     * @param subsetWeights the weights of the subset
+     * @param vals
+     * @return the split point
+     */
+    protected double binnedNumericDistribution(double[][] props,
+      double[][][] dists, int att, double[] hist, double[][] subsetWeights,
+      double[] vals) {
+
+      double splitPoint = Double.NaN;
+      int numBins = m_Bins.numBins(att);
+      double[] sums = new double[2];
+      double[] sumSquared = new double[2];
+      double[] sumOfWeights = new double[2];
+      double[] currSums = new double[2];
+      double[] currSumSquared = new double[2];
+      double[] currSumOfWeights = new double[2];
+
+      // Move all instances into second subset
+      int last = -1;
+      for (int b = 0; b < numBins; b++) {
+        if (hist[3 * b + 2] > 0) {
+          currSums[1] += hist[3 * b];
+          currSumSquared[1] += hist[3 * b + 1];
+          currSumOfWeights[1] += hist[3 * b + 2];
+          last = b;
+        }
+      }
+
+      double totalSum = currSums[1];
+      double totalSumSquared = currSumSquared[1];
+      double totalSumOfWeights = currSumOfWeights[1];
+
+      sums[1] = currSums[1];
+      sumSquared[1] = currSumSquared[1];
+      sumOfWeights[1] = currSumOfWeights[1];
+
+      // Try the split points after all non-empty buckets but the last
+      double currVal, bestVal = Double.MAX_VALUE;
+      for (int b = 0; b < last; b++) {
+        if (!(hist[3 * b + 2] > 0)) {
+          continue;
+        }
+
+        currSums[0] += hist[3 * b];
+        currSumSquared[0] += hist[3 * b + 1];
+        currSumOfWeights[0] += hist[3 * b + 2];
+
+        currSums[1] -= hist[3 * b];
+        currSumSquared[1] -= hist[3 * b + 1];
+        currSumOfWeights[1] -= hist[3 * b + 2];
+
+        currVal = variance(currSums, currSumSquared, currSumOfWeights);
+        if (currVal < bestVal) {
+          bestVal = currVal;
+          splitPoint = m_Bins.splitPoint(att, b);
+          for (int j = 0; j < 2; j++) {
+            sums[j] = currSums[j];
+            sumSquared[j] = currSumSquared[j];
+            sumOfWeights[j] = currSumOfWeights[j];
+          }
+        }
+      }
+
+      // Compute weights
+      props[att] = new double[sums.length];
+      for (int k = 0; k < props[att].length; k++) {
+        props[att][k] = sumOfWeights[k];
+      }
+      if (!(Utils.sum(props[att]) > 0)) {
+        for (int k = 0; k < props[att].length; k++) {
+          props[att][k] = 1.0 / props[att].length;
+        }
+      } else {
+        Utils.normalize(props[att]);
+      }
+
+      // Distribute counts for missing values
+      double missingSum = hist[3 * numBins];
+      double missingSumSquared = hist[3 * numBins + 1];
+      double missingWeight = hist[3 * numBins + 2];
+      for (int j = 0; j < sums.length; j++) {
+        sums[j] += props[att][j] * missingSum;
+        sumSquared[j] += props[att][j] * missingSumSquared;
+        sumOfWeights[j] += props[att][j] * missingWeight;
+      }
+      totalSum += missingSum;
+      totalSumSquared += missingSumSquared;
+      totalSumOfWeights += missingWeight;
+
+      // Compute final distribution
+      double[][] dist = new double[sums.length][1];
+      for (int j = 0; j < sums.length; j++) {
+        if (sumOfWeights[j] > 0) {
+          dist[j][0] = sums[j] / sumOfWeights[j];
+        } else {
+          dist[j][0] = totalSum / totalSumOfWeights;
+        }
+      }
+
+      // Compute variance gain
+      double priorVar = singleVariance(totalSum, totalSumSquared,
+        totalSumOfWeights);
+      double var = variance(sums, sumSquared, sumOfWeights);
+      double gain = priorVar - var;
+
+      // Return distribution and split point
+      subsetWeights[att] = sumOfWeights;
+      dists[att] = dist;
+      vals[att] = gain;
+      return splitPoint;
+    }
+
+    /**
+     * Copies the values of an attribute and of the class for the given
+     * instances into primitive arrays. Reads from the column store if one is
+     * available, otherwise from the instances.
+     * 
+     * @param att the attribute index
+     * @param indices the indices of the instances
+     * @param data the data to work with
+     * @param attVals receives the attribute values
+     * @param classVals receives the class values
+     */
+    protected void values(int att, int[] indices, Instances data,
+      double[] attVals, double[] classVals) {
+
+      attributeValues(att, indices, data, attVals);
+      attributeValues(data.classIndex(), indices, data, classVals);
+    }
+
+    /**
+     * Returns the value of an attribute for an instance. Reads from the column
+     * store if one is available, otherwise from the instance.
+     * 
+     * @param att the attribute index
+     * @param index the index of the instance
+     * @param data the data to work with
+     * @return the value, NaN if missing
+     */
+    protected double value(int att, int index, Instances data) {
+      return (m_Store != null) ? m_Store.value(index, att) : data.instance(
+        index).value(att);
+    }
+
+    /**
+     * Copies the values of an attribute for the given instances into a
+     * primitive array. Reads from the column store if one is available,
+     * otherwise from the instances.
+     * 
+     * @param att the attribute index
+     * @param indices the indices of the instances
+     * @param data the data to work with
+     * @param target the array to fill, replaced if null or too short
+     * @return the filled array
+     */
+    protected double[] attributeValues(int att, int[] indices, Instances data,
+      double[] target) {
+
+      if ((target == null) || (target.length < indices.length)) {
+        target = new double[indices.length];
+      }
+      if (m_Store != null) {
+        m_Store.column(att).values(indices, 0, indices.length, target);
+      } else {
+        for (int i = 0; i < indices.length; i++) {
+          target[i] = data.instance(indices[i]).value(att);
+        }
+      }
+      return target;
+    }
+
     /**
      * Computes variance for subsets.
      * 
@@ -1385,6 +1844,21 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
   /** The initial class count */
   protected double m_InitialCount = 0;
 
+  /** Whether to grow the tree on a column-major copy of the training data */
+  protected boolean m_UseColumnStore = false;
+
+  /** The column-major copy of the training data, only set during building */
+  protected transient ColumnStore m_Store = null;
+
+  /** The number of histogram bins for numeric attributes (0 = exact) */
+  protected int m_NumBins = 0;
+
+  /** The binned training data, only set during building */
+  protected transient BinnedColumns m_Bins = null;
+
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /** Whether to spread initial count across all values */
   protected boolean m_SpreadInitialCount = false;
 
@@ -1633,6 +2107,102 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     m_SpreadInitialCount = newSpreadInitialCount;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String useColumnStoreTipText() {
+    return "If true, attribute and class values are read from a column-major "
+      + "copy of the training data during split selection.";
+  }
+
+  /**
+   * Get whether the tree is grown on a column-major copy of the data.
+   * 
+   * @return true if a column store is used
+   */
+  public boolean getUseColumnStore() {
+
+    return m_UseColumnStore;
+  }
+
+  /**
+   * Set whether the tree is grown on a column-major copy of the data.
+   * 
+   * @param value true if a column store is to be used
+   */
+  public void setUseColumnStore(boolean value) {
+
+    m_UseColumnStore = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numBinsTipText() {
+    return "If greater than zero, numeric attributes are quantized once into "
+      + "at most this many bins (up to 255) and split points are searched "
+      + "on per-node class histograms instead of sorted values.";
+  }
+
+  /**
+   * Get the number of histogram bins for numeric attributes.
+   * 
+   * @return the number of bins, 0 for exact split search
+   */
+  public int getNumBins() {
+
+    return m_NumBins;
+  }
+
+  /**
+   * Set the number of histogram bins for numeric attributes.
+   * 
+   * @param value the number of bins, 0 for exact split search
+   */
+  public void setNumBins(int value) {
+
+    m_NumBins = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+
+    return m_BatchSize;
+  }
+
   /**
    * Lists the command-line options for this classifier.
    * 
@@ -1663,6 +2233,12 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     newVector.addElement(new Option(
       "\tSpread initial count over all class values (i.e."
         + " don't use 1 per value)", "R", 0, "-R"));
+    newVector.addElement(new Option(
+      "\tGrow the tree on a column-major copy of the data.", "columnar", 0,
+      "-columnar"));
+    newVector.addElement(new Option(
+      "\tNumber of histogram bins for numeric attributes, at most 255\n"
+        + "\t(default 0, exact split search)", "bins", 1, "-bins <num>"));
 
     newVector.addAll(Collections.list(super.listOptions()));
 
@@ -1696,6 +2272,13 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     if (getSpreadInitialCount()) {
       options.add("-R");
     }
+    if (getUseColumnStore()) {
+      options.add("-columnar");
+    }
+    if (getNumBins() > 0) {
+      options.add("-bins");
+      options.add("" + getNumBins());
+    }
 
     Collections.addAll(options, super.getOptions());
 
@@ -1740,6 +2323,17 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
    *  Maximum tree depth (default -1, no maximum)
    * </pre>
    * 
+   * <pre>
+   * -columnar
+   *  Grow the tree on a column-major copy of the data.
+   * </pre>
+   * 
+   * <pre>
+   * -bins &lt;num&gt;
+   *  Number of histogram bins for numeric attributes, at most 255
+   *  (default 0, exact split search)
+   * </pre>
+   * 
    * <!-- options-end -->
    * 
    * @param options the list of options as an array of strings
@@ -1786,6 +2380,13 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       m_InitialCount = 0;
     }
     m_SpreadInitialCount = Utils.getFlag('R', options);
+    m_UseColumnStore = Utils.getFlag("columnar", options);
+    String binsString = Utils.getOption("bins", options);
+    if (binsString.length() != 0) {
+      m_NumBins = Integer.parseInt(binsString);
+    } else {
+      m_NumBins = 0;
+    }
 
     Utils.checkForRemainingOptions(options);
   }
@@ -1897,6 +2498,14 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
       train = data;
     }
 
+    // Quantize numeric attributes if required
+    if (m_UseColumnStore || (m_NumBins > 0)) {
+      m_Store = new ColumnStore(train);
+    }
+    if (m_NumBins > 0) {
+      m_Bins = new BinnedColumns(m_Store, m_NumBins);
+    }
+
     // Create array of sorted indices and weights
     int[][][] sortedIndices = new int[1][train.numAttributes()][0];
     double[][][] weights = new double[1][train.numAttributes()][0];
@@ -1904,9 +2513,10 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     for (int j = 0; j < train.numAttributes(); j++) {
       if (j != train.classIndex()) {
         weights[0][j] = new double[train.numInstances()];
-        if (train.attribute(j).isNominal()) {
+        if (train.attribute(j).isNominal()
+          || ((m_Bins != null) && m_Bins.isBinned(j))) {
 
-          // Handling nominal attributes. Putting indices of
+          // Handling nominal and binned attributes. Putting indices of
           // instances with missing values at the end.
           sortedIndices[0][j] = new int[train.numInstances()];
           int count = 0;
@@ -1965,9 +2575,14 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     }
 
     // Build tree
-    m_Tree.buildTree(sortedIndices, weights, train, totalWeight, classProbs,
-      new Instances(train, 0), m_MinNum, m_MinVarianceProp * trainVariance, 0,
-      m_MaxDepth);
+    try {
+      m_Tree.buildTree(sortedIndices, weights, train, totalWeight, classProbs,
+        new Instances(train, 0), m_MinNum, m_MinVarianceProp * trainVariance,
+        0, m_MaxDepth);
+    } finally {
+      m_Store = null;
+      m_Bins = null;
+    }
 
     // Insert pruning data and perform reduced error pruning
     if (!m_NoPruning) {
@@ -1994,6 +2609,48 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     }
   }
 
+  /**
+   * Computes class distributions of the given instances using the tree.
+   * 
+   * @param insts the instances to compute the distributions for
+   * @return the computed class probabilities, one array per instance
+   * @throws Exception if computation fails
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][insts.numClasses()];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Computes class distributions of the given instances using the tree and
+   * stores them in the given array. The probabilities of the leaves are added
+   * directly into the rows of the array, so no arrays are allocated per
+   * instance or node.
+   * 
+   * @param insts the instances to compute the distributions for
+   * @param result the array to store the distributions in
+   * @throws Exception if computation fails
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    for (int i = 0; i < insts.numInstances(); i++) {
+      Instance instance = insts.instance(i);
+      if (m_zeroR != null) {
+        double[] dist = m_zeroR.distributionForInstance(instance);
+        System.arraycopy(dist, 0, result[i], 0, dist.length);
+      } else {
+        Arrays.fill(result[i], 0);
+        m_Tree.addDistribution(instance, result[i], 1.0);
+      }
+    }
+  }
+
   /**
    * For getting a unique ID when outputting the tree source (hashcode isn't
    * guaranteed unique)
@@ -2049,6 +2706,43 @@ public class REPTree extends AbstractClassifier implements OptionHandler,
     return Drawable.TREE;
   }
 
+  /**
+   * Compiles the tree into flat arrays for fast scoring. The compiled model
+   * gives the same distributions as distributionForInstance().
+   * 
+   * @return the compiled tree
+   * @throws Exception if no tree has been built
+   */
+  public CompiledTree compile() throws Exception {
+
+    CompiledTree compiled = compile(null, false);
+    compiled.trim();
+    return compiled;
+  }
+
+  /**
+   * Adds the tree to a compiled model, e.g., one that holds a whole forest.
+   * 
+   * @param compiled the model to add to, null to create a new one
+   * @param average whether a new model averages its trees as in Bagging
+   * @return the model the tree has been added to
+   * @throws Exception if no tree has been built
+   */
+  protected CompiledTree compile(CompiledTree compiled, boolean average)
+    throws Exception {
+
+    if ((m_zeroR != null) || (m_Tree == null)) {
+      throw new Exception("REPTree: No model built yet, or only ZeroR "
+        + "model.");
+    }
+    if (compiled == null) {
+      compiled = new CompiledTree(m_Tree.m_Info.numClasses(), m_Tree.m_Info
+        .classAttribute().isNumeric(), average);
+    }
+    compiled.addRoot(m_Tree.compile(compiled));
+    return compiled;
+  }
+
   /**
    * Outputs the decision tree as a graph
    * 
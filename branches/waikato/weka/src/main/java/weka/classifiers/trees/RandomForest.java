@@ -21,20 +21,33 @@
 
 package weka.classifiers.trees;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
 import weka.classifiers.meta.Bagging;
 import weka.core.AdditionalMeasureProducer;
 import weka.core.Aggregateable;
+import weka.core.BinnedColumns;
 import weka.core.Capabilities;
+import weka.core.ColumnStore;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.PartitionGenerator;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.Randomizable;
 import weka.core.RevisionUtils;
 import weka.core.TechnicalInformation;
@@ -99,6 +112,18 @@ import weka.core.WeightedInstancesHandler;
  *  Number of execution slots.
  *  (default 1 - i.e. no parallelism)</pre>
  * 
+ * <pre> -columnar
+ *  Grow the trees from bootstrap weights over one shared column
+ *  store instead of a copy of the data per tree.</pre>
+ * 
+ * <pre> -attribute-importance
+ *  Compute the permutation importance of the attributes on the
+ *  out-of-bag data (implies -columnar).</pre>
+ * 
+ * <pre> -bins &lt;num&gt;
+ *  Number of histogram bins for numeric attributes, at most 255
+ *  (implies -columnar). (default 0, exact split search)</pre>
+ * 
  * <pre> -output-debug-info
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console</pre>
@@ -114,7 +139,8 @@ import weka.core.WeightedInstancesHandler;
  */
 public class RandomForest extends AbstractClassifier implements OptionHandler,
   Randomizable, WeightedInstancesHandler, AdditionalMeasureProducer,
-  TechnicalInformationHandler, PartitionGenerator, Aggregateable<RandomForest> {
+  TechnicalInformationHandler, PartitionGenerator, Aggregateable<RandomForest>,
+  PreallocatedBatchPredictor {
 
   /** for serialization */
   static final long serialVersionUID = 1116839470751428698L;
@@ -149,6 +175,449 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
   /** Don't calculate the out of bag error */
   protected boolean m_dontCalculateOutOfBagError;
 
+  /** Whether to grow the trees from one shared column store */
+  protected boolean m_UseColumnStore = false;
+
+  /** Whether to compute the permutation importance of the attributes */
+  protected boolean m_computeAttributeImportance = false;
+
+  /** The number of histogram bins for numeric attributes (0 = exact) */
+  protected int m_NumBins = 0;
+
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
+  /**
+   * Bagging of random trees that are grown from bootstrap weights over one
+   * shared, read-only column store, instead of from a copy of the data for
+   * each tree. The out-of-bag error and predictions and, optionally, the
+   * permutation importance of the attributes are computed in parallel as
+   * part of the build.
+   */
+  protected static class ColumnarBagging extends Bagging {
+
+    /** for serialization */
+    private static final long serialVersionUID = -3586618457206342371L;
+
+    /** Whether to compute the permutation importance of the attributes */
+    protected boolean m_computeAttributeImportance = false;
+
+    /** The header of the training data */
+    protected Instances m_Header;
+
+    /** The out-of-bag predictions for the training rows */
+    protected transient double[][] m_OutOfBagPredictions;
+
+    /** The permutation importance of the attributes */
+    protected double[] m_AttributeImportance;
+
+    /**
+     * Sets whether to compute the permutation importance of the attributes.
+     * 
+     * @param value true if the importance is to be computed
+     */
+    public void setComputeAttributeImportance(boolean value) {
+      m_computeAttributeImportance = value;
+    }
+
+    /**
+     * Returns the out-of-bag predictions of the last build.
+     * 
+     * @return the predictions, null if not computed
+     */
+    public double[][] getOutOfBagPredictions() {
+      return m_OutOfBagPredictions;
+    }
+
+    /**
+     * Returns the permutation importance of the attributes.
+     * 
+     * @return the importance, null if not computed
+     */
+    public double[] getAttributeImportance() {
+      return m_AttributeImportance;
+    }
+
+    /**
+     * Returns the header of the training data.
+     * 
+     * @return the header
+     */
+    public Instances getHeader() {
+      return m_Header;
+    }
+
+    /**
+     * Waits for the given tasks and passes on the first failure.
+     * 
+     * @param tasks the tasks to wait for
+     * @return the results of the tasks
+     * @throws Exception if a task failed
+     */
+    protected <T> List<T> waitFor(List<Future<T>> tasks) throws Exception {
+      List<T> result = new ArrayList<T>(tasks.size());
+      for (Future<T> task : tasks) {
+        try {
+          result.add(task.get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Draws a bootstrap sample of the rows, with probabilities proportional
+     * to the weights, as Instances.resampleWithWeights does.
+     * 
+     * @param cumulative the cumulative weights, null if all weights are equal
+     * @param numRows the number of rows
+     * @param random the random number generator to use
+     * @return how often each row was drawn
+     */
+    protected static int[] bootstrap(double[] cumulative, int numRows,
+      Random random) {
+
+      int[] counts = new int[numRows];
+      for (int i = 0; i < numRows; i++) {
+        if (cumulative == null) {
+          counts[random.nextInt(numRows)]++;
+        } else {
+          double u = random.nextDouble() * cumulative[numRows - 1];
+          int lo = 0;
+          int hi = numRows - 1;
+          while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > u) {
+              hi = mid;
+            } else {
+              lo = mid + 1;
+            }
+          }
+          counts[lo]++;
+        }
+      }
+      return counts;
+    }
+
+    /**
+     * Computes the weighted error of a tree on the given rows, optionally
+     * with the values of one attribute replaced.
+     * 
+     * @param tree the tree to evaluate
+     * @param store the training data
+     * @param rows the rows to evaluate on
+     * @param att the attribute to replace, -1 for none
+     * @param values the replacement values for the rows
+     * @return the misclassification rate or mean absolute error, NaN if there
+     *         were no predictions
+     * @throws Exception if a prediction fails
+     */
+    protected static double error(RandomTree tree, ColumnStore store,
+      int[] rows, int att, double[] values) throws Exception {
+
+      boolean numeric = store.header().classAttribute().isNumeric();
+      double errorSum = 0;
+      double weightSum = 0;
+      for (int i = 0; i < rows.length; i++) {
+        Instance inst = store.instance(rows[i]);
+        if (att >= 0) {
+          inst.setValue(att, values[i]);
+        }
+        double pred = tree.classifyInstance(inst);
+        if (Utils.isMissingValue(pred)) {
+          continue;
+        }
+        weightSum += inst.weight();
+        if (numeric) {
+          errorSum += StrictMath.abs(pred - inst.classValue()) * inst.weight();
+        } else if (pred != inst.classValue()) {
+          errorSum += inst.weight();
+        }
+      }
+      return (weightSum > 0) ? errorSum / weightSum : Double.NaN;
+    }
+
+    /**
+     * Grows the trees on a thread pool and computes the out-of-bag statistics.
+     * 
+     * @param data the training data, without missing class values
+     * @throws Exception if the trees cannot be built
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+
+      if (!(m_Classifier instanceof RandomTree)) {
+        throw new IllegalArgumentException(
+          "Base classifier has to be a RandomTree!");
+      }
+
+      m_Classifiers = AbstractClassifier.makeCopies(m_Classifier,
+        m_NumIterations);
+      m_Header = new Instances(data, 0);
+      m_OutOfBagPredictions = null;
+      m_AttributeImportance = null;
+      m_OutOfBagError = 0;
+
+      final ColumnStore store = new ColumnStore(data);
+      final int numRows = store.numRows();
+      int numBins = ((RandomTree) m_Classifier).getNumBins();
+      final BinnedColumns bins = (numBins > 0) ? new BinnedColumns(store,
+        numBins) : null;
+      Random random = new Random(m_Seed);
+      for (int j = 0; j < m_Classifiers.length; j++) {
+        ((Randomizable) m_Classifiers[j]).setSeed(random.nextInt());
+      }
+
+      // cumulative weights for sampling, unless all weights are equal
+      double[] weights = store.weights();
+      double[] cumulative = null;
+      for (int i = 1; i < numRows; i++) {
+        if (weights[i] != weights[0]) {
+          cumulative = new double[numRows];
+          break;
+        }
+      }
+      if (cumulative != null) {
+        double sum = 0;
+        for (int i = 0; i < numRows; i++) {
+          sum += weights[i];
+          cumulative[i] = sum;
+        }
+      }
+      final double[] finalCumulative = cumulative;
+
+      int numThreads = (m_numExecutionSlots == 0) ? Runtime.getRuntime()
+        .availableProcessors() : m_numExecutionSlots;
+      ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+      try {
+
+        // grow the trees, remembering the in-bag rows
+        final BitSet[] inBag = new BitSet[m_Classifiers.length];
+        List<Future<Object>> growing = new ArrayList<Future<Object>>();
+        for (int j = 0; j < m_Classifiers.length; j++) {
+          final int iteration = j;
+          growing.add(pool.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+              int[] counts = bootstrap(finalCumulative, numRows, new Random(
+                m_Seed + iteration));
+              BitSet bag = new BitSet(numRows);
+              int numInBag = 0;
+              for (int i = 0; i < numRows; i++) {
+                if (counts[i] > 0) {
+                  bag.set(i);
+                  numInBag++;
+                }
+              }
+              int[] rows = new int[numInBag];
+              double[] rowWeights = new double[numInBag];
+              int n = 0;
+              for (int i = 0; i < numRows; i++) {
+                if (counts[i] > 0) {
+                  rows[n] = i;
+                  rowWeights[n++] = counts[i];
+                }
+              }
+              ((RandomTree) m_Classifiers[iteration]).buildClassifier(store,
+                bins, rows, rowWeights);
+              inBag[iteration] = bag;
+              if (m_Debug) {
+                System.err.println("Built tree " + (iteration + 1));
+              }
+              return null;
+            }
+          }));
+        }
+        waitFor(growing);
+
+        if (m_CalcOutOfBag) {
+          computeOutOfBag(pool, numThreads, store, inBag);
+        }
+        if (m_computeAttributeImportance) {
+          computeAttributeImportance(pool, store, inBag);
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    /**
+     * Computes the out-of-bag predictions and error, in parallel over blocks
+     * of rows.
+     * 
+     * @param pool the thread pool
+     * @param numThreads the number of threads
+     * @param store the training data
+     * @param inBag the in-bag rows of each tree
+     * @throws Exception if a prediction fails
+     */
+    protected void computeOutOfBag(ExecutorService pool, int numThreads,
+      final ColumnStore store, final BitSet[] inBag) throws Exception {
+
+      final int numRows = store.numRows();
+      final boolean numeric = store.header().classAttribute().isNumeric();
+      final double[][] predictions = new double[numRows][];
+      int blockSize = Math.max(1, (numRows + 4 * numThreads - 1)
+        / (4 * numThreads));
+
+      List<Future<double[]>> blocks = new ArrayList<Future<double[]>>();
+      for (int start = 0; start < numRows; start += blockSize) {
+        final int from = start;
+        final int to = Math.min(numRows, start + blockSize);
+        blocks.add(pool.submit(new Callable<double[]>() {
+          @Override
+          public double[] call() throws Exception {
+            double outOfBagCount = 0.0;
+            double errorSum = 0.0;
+            for (int i = from; i < to; i++) {
+              Instance inst = store.instance(i);
+              double[] votes = new double[numeric ? 1 : inst.numClasses()];
+              int voteCount = 0;
+              for (int j = 0; j < m_Classifiers.length; j++) {
+                if (inBag[j].get(i)) {
+                  continue;
+                }
+                if (numeric) {
+                  double pred = m_Classifiers[j].classifyInstance(inst);
+                  if (!Utils.isMissingValue(pred)) {
+                    votes[0] += pred;
+                    voteCount++;
+                  }
+                } else {
+                  voteCount++;
+                  double[] newProbs = m_Classifiers[j]
+                    .distributionForInstance(inst);
+                  for (int k = 0; k < newProbs.length; k++) {
+                    votes[k] += newProbs[k];
+                  }
+                }
+              }
+              if (voteCount == 0) {
+                continue;
+              }
+
+              // "vote"
+              double vote;
+              if (numeric) {
+                vote = votes[0] / voteCount;
+                votes[0] = vote;
+              } else if (Utils.eq(Utils.sum(votes), 0)) {
+                vote = Utils.missingValue();
+              } else {
+                vote = Utils.maxIndex(votes);
+                Utils.normalize(votes);
+              }
+              predictions[i] = votes;
+
+              // error for instance
+              if (!Utils.isMissingValue(vote)) {
+                outOfBagCount += inst.weight();
+                if (numeric) {
+                  errorSum += StrictMath.abs(vote - inst.classValue())
+                    * inst.weight();
+                } else if (vote != inst.classValue()) {
+                  errorSum += inst.weight();
+                }
+              }
+            }
+            return new double[] { outOfBagCount, errorSum };
+          }
+        }));
+      }
+
+      double outOfBagCount = 0.0;
+      double errorSum = 0.0;
+      for (double[] sums : waitFor(blocks)) {
+        outOfBagCount += sums[0];
+        errorSum += sums[1];
+      }
+      if (outOfBagCount > 0) {
+        m_OutOfBagError = errorSum / outOfBagCount;
+      }
+      m_OutOfBagPredictions = predictions;
+    }
+
+    /**
+     * Computes the permutation importance of each attribute, in parallel over
+     * the trees: the increase of a tree's out-of-bag error when the values of
+     * the attribute are shuffled among its out-of-bag rows, averaged over the
+     * trees.
+     * 
+     * @param pool the thread pool
+     * @param store the training data
+     * @param inBag the in-bag rows of each tree
+     * @throws Exception if a prediction fails
+     */
+    protected void computeAttributeImportance(ExecutorService pool,
+      final ColumnStore store, final BitSet[] inBag) throws Exception {
+
+      final int numRows = store.numRows();
+      final int numAtts = store.numColumns();
+      final int classIndex = store.header().classIndex();
+
+      List<Future<double[]>> trees = new ArrayList<Future<double[]>>();
+      for (int j = 0; j < m_Classifiers.length; j++) {
+        final int iteration = j;
+        trees.add(pool.submit(new Callable<double[]>() {
+          @Override
+          public double[] call() throws Exception {
+            RandomTree tree = (RandomTree) m_Classifiers[iteration];
+            BitSet bag = inBag[iteration];
+            int[] rows = new int[numRows - bag.cardinality()];
+            int n = 0;
+            for (int i = bag.nextClearBit(0); i < numRows; i = bag
+              .nextClearBit(i + 1)) {
+              rows[n++] = i;
+            }
+            double base = error(tree, store, rows, -1, null);
+            if (Double.isNaN(base)) {
+              return null;
+            }
+
+            Random random = new Random(m_Seed + iteration);
+            double[] increase = new double[numAtts];
+            double[] values = new double[rows.length];
+            for (int att = 0; att < numAtts; att++) {
+              if (att == classIndex) {
+                continue;
+              }
+              store.column(att).values(rows, 0, rows.length, values);
+              for (int i = values.length - 1; i > 0; i--) {
+                int k = random.nextInt(i + 1);
+                double tmp = values[i];
+                values[i] = values[k];
+                values[k] = tmp;
+              }
+              increase[att] = error(tree, store, rows, att, values) - base;
+            }
+            return increase;
+          }
+        }));
+      }
+
+      double[] importance = new double[numAtts];
+      int numTrees = 0;
+      for (double[] increase : waitFor(trees)) {
+        if (increase == null) {
+          continue;
+        }
+        for (int att = 0; att < numAtts; att++) {
+          importance[att] += increase[att];
+        }
+        numTrees++;
+      }
+      for (int att = 0; att < numAtts; att++) {
+        importance[att] = (att == classIndex || numTrees == 0) ? Double.NaN
+          : importance[att] / numTrees;
+      }
+      m_AttributeImportance = importance;
+    }
+  }
+
   /**
    * Returns a string describing classifier
    * 
@@ -405,6 +874,156 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
       + "constructing the ensemble.";
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String useColumnStoreTipText() {
+    return "Whether to grow the trees from bootstrap weights over one shared "
+      + "column store, instead of from a copy of the data for each tree.";
+  }
+
+  /**
+   * Set whether to grow the trees from one shared column store.
+   * 
+   * @param value true if the column store is to be used
+   */
+  public void setUseColumnStore(boolean value) {
+    m_UseColumnStore = value;
+  }
+
+  /**
+   * Get whether to grow the trees from one shared column store.
+   * 
+   * @return true if the column store is used
+   */
+  public boolean getUseColumnStore() {
+    return m_UseColumnStore;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String computeAttributeImportanceTipText() {
+    return "Compute the permutation importance of the attributes on the "
+      + "out-of-bag data (implies growing the trees from a column store).";
+  }
+
+  /**
+   * Set whether to compute the permutation importance of the attributes.
+   * 
+   * @param value true if the importance is to be computed
+   */
+  public void setComputeAttributeImportance(boolean value) {
+    m_computeAttributeImportance = value;
+  }
+
+  /**
+   * Get whether to compute the permutation importance of the attributes.
+   * 
+   * @return true if the importance is computed
+   */
+  public boolean getComputeAttributeImportance() {
+    return m_computeAttributeImportance;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numBinsTipText() {
+    return "If greater than zero, numeric attributes are quantized once into "
+      + "at most this many bins (up to 255), shared by all trees, and split "
+      + "points are searched on class histograms (implies a column store).";
+  }
+
+  /**
+   * Get the number of histogram bins for numeric attributes.
+   * 
+   * @return the number of bins, 0 for exact split search
+   */
+  public int getNumBins() {
+    return m_NumBins;
+  }
+
+  /**
+   * Set the number of histogram bins for numeric attributes.
+   * 
+   * @param value the number of bins, 0 for exact split search
+   */
+  public void setNumBins(int value) {
+    m_NumBins = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
+  /**
+   * Returns the out-of-bag predictions for the training instances, in the
+   * order of the training data without the instances with missing class. A
+   * row holds the class distribution (or the predicted value for a numeric
+   * class), and is null if the instance was in the bag of every tree.
+   * Only available after building the forest from a column store with the
+   * out-of-bag error enabled.
+   * 
+   * @return the predictions, or null if not available
+   */
+  public double[][] getOutOfBagPredictions() {
+    if (m_bagger instanceof ColumnarBagging) {
+      return ((ColumnarBagging) m_bagger).getOutOfBagPredictions();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the permutation importance of the attributes: the mean increase
+   * of the trees' out-of-bag error when the values of an attribute are
+   * shuffled. The entry of the class attribute is NaN.
+   * 
+   * @return the importance for each attribute, or null if not computed
+   */
+  public double[] getAttributeImportance() {
+    if (m_bagger instanceof ColumnarBagging) {
+      return ((ColumnarBagging) m_bagger).getAttributeImportance();
+    }
+    return null;
+  }
+
   /**
    * Returns an enumeration of the additional measure names.
    * 
@@ -470,6 +1089,21 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
       + "\t(default 1 - i.e. no parallelism)", "num-slots", 1,
       "-num-slots <num>"));
 
+    newVector.addElement(new Option(
+      "\tGrow the trees from bootstrap weights over one shared column\n"
+        + "\tstore instead of a copy of the data per tree.", "columnar", 0,
+      "-columnar"));
+
+    newVector.addElement(new Option(
+      "\tCompute the permutation importance of the attributes on the\n"
+        + "\tout-of-bag data (implies -columnar).", "attribute-importance", 0,
+      "-attribute-importance"));
+
+    newVector.addElement(new Option(
+      "\tNumber of histogram bins for numeric attributes, at most 255\n"
+        + "\t(implies -columnar). (default 0, exact split search)", "bins", 1,
+      "-bins <num>"));
+
     newVector.addAll(Collections.list(super.listOptions()));
 
     return newVector.elements();
@@ -509,6 +1143,19 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
     result.add("-num-slots");
     result.add("" + getNumExecutionSlots());
 
+    if (getUseColumnStore()) {
+      result.add("-columnar");
+    }
+
+    if (getComputeAttributeImportance()) {
+      result.add("-attribute-importance");
+    }
+
+    if (getNumBins() > 0) {
+      result.add("-bins");
+      result.add("" + getNumBins());
+    }
+
     Collections.addAll(result, super.getOptions());
 
     return result.toArray(new String[result.size()]);
@@ -547,6 +1194,18 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
    *  Number of execution slots.
    *  (default 1 - i.e. no parallelism)</pre>
    * 
+   * <pre> -columnar
+   *  Grow the trees from bootstrap weights over one shared column
+   *  store instead of a copy of the data per tree.</pre>
+   * 
+   * <pre> -attribute-importance
+   *  Compute the permutation importance of the attributes on the
+   *  out-of-bag data (implies -columnar).</pre>
+   * 
+   * <pre> -bins &lt;num&gt;
+   *  Number of histogram bins for numeric attributes, at most 255
+   *  (implies -columnar). (default 0, exact split search)</pre>
+   * 
    * <pre> -output-debug-info
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -603,6 +1262,18 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
       setNumExecutionSlots(1);
     }
 
+    setUseColumnStore(Utils.getFlag("columnar", options));
+
+    setComputeAttributeImportance(Utils.getFlag("attribute-importance",
+      options));
+
+    tmpStr = Utils.getOption("bins", options);
+    if (tmpStr.length() > 0) {
+      setNumBins(Integer.parseInt(tmpStr));
+    } else {
+      setNumBins(0);
+    }
+
     super.setOptions(options);
 
     Utils.checkForRemainingOptions(options);
@@ -634,11 +1305,20 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
     data = new Instances(data);
     data.deleteWithMissingClass();
 
-    m_bagger = new Bagging();
+    if (m_UseColumnStore || m_computeAttributeImportance
+      || (m_NumBins > 0)) {
+      // the trees share one column store and only differ in their
+      // bootstrap weights
+      ColumnarBagging bagger = new ColumnarBagging();
+      bagger.setComputeAttributeImportance(m_computeAttributeImportance);
+      m_bagger = bagger;
+    } else {
+      m_bagger = new Bagging();
 
-    // RandomTree implements WeightedInstancesHandler, so we can
-    // represent copies using weights to achieve speed-up.
-    m_bagger.setRepresentCopiesUsingWeights(true);
+      // RandomTree implements WeightedInstancesHandler, so we can
+      // represent copies using weights to achieve speed-up.
+      m_bagger.setRepresentCopiesUsingWeights(true);
+    }
 
     RandomTree rTree = new RandomTree();
 
@@ -649,6 +1329,7 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
     }
     rTree.setKValue(m_KValue);
     rTree.setMaxDepth(getMaxDepth());
+    rTree.setNumBins(getNumBins());
     rTree.setDoNotCheckCapabilities(true);
 
     // set up the bagger and build the forest
@@ -673,6 +1354,58 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
     return m_bagger.distributionForInstance(instance);
   }
 
+  /**
+   * Returns the class probability distributions for the given instances. Each
+   * tree scores the whole batch at once.
+   * 
+   * @param insts the instances to be classified
+   * @return the distributions the forest generates, one per instance
+   * @throws Exception if computation fails
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    return m_bagger.distributionsForInstances(insts);
+  }
+
+  /**
+   * Computes the class probability distributions for the given instances and
+   * stores them in the given array.
+   * 
+   * @param insts the instances to be classified
+   * @param result the array to store the distributions in
+   * @throws Exception if computation fails
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    m_bagger.distributionsForInstances(insts, result);
+  }
+
+  /**
+   * Compiles all trees of the forest into one set of flat arrays for fast
+   * scoring. The compiled model averages the trees the same way as
+   * distributionForInstance().
+   * 
+   * @return the compiled forest
+   * @throws Exception if no forest has been built
+   */
+  public CompiledTree compile() throws Exception {
+
+    if (m_bagger == null) {
+      throw new Exception("RandomForest: No model built yet.");
+    }
+    CompiledTree compiled = null;
+    for (Classifier tree : m_bagger.getBaseClassifiers()) {
+      compiled = ((RandomTree) tree).compile(compiled, true);
+    }
+    compiled.trim();
+
+    return compiled;
+  }
+
   /**
    * Outputs a description of this classifier.
    * 
@@ -697,6 +1430,21 @@ public class RandomForest extends AbstractClassifier implements OptionHandler,
         + "\n"
         + (getMaxDepth() > 0 ? ("Max. depth of trees: " + getMaxDepth() + "\n")
           : ("")) + "\n");
+      double[] importance = getAttributeImportance();
+      if (importance != null) {
+        Instances header = ((ColumnarBagging) m_bagger).getHeader();
+        temp.append("Attribute importance (mean increase of out of bag "
+          + "error when permuted):\n\n");
+        int[] sorted = Utils.sort(importance);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+          if (sorted[i] == header.classIndex()) {
+            continue;
+          }
+          temp.append(Utils.doubleToString(importance[sorted[i]], 10, 4)
+            + "  " + header.attribute(sorted[i]).name() + "\n");
+        }
+        temp.append("\n");
+      }
       if (m_printTrees) {
         temp.append(m_bagger.toString());
       }
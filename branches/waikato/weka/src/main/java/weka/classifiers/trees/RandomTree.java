@@ -22,6 +22,7 @@
 package weka.classifiers.trees;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
@@ -32,8 +33,10 @@ import java.util.Vector;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.core.Attribute;
+import weka.core.BinnedColumns;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
+import weka.core.ColumnStore;
 import weka.core.ContingencyTables;
 import weka.core.Drawable;
 import weka.core.Instance;
@@ -41,6 +44,7 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.PartitionGenerator;
+import weka.core.PreallocatedBatchPredictor;
 import weka.core.Randomizable;
 import weka.core.RevisionUtils;
 import weka.core.Utils;
@@ -81,6 +85,13 @@ import weka.core.WeightedInstancesHandler;
  * <pre> -U
  *  Allow unclassified instances.</pre>
  * 
+ * <pre> -columnar
+ *  Grow the tree on a column-major copy of the data.</pre>
+ * 
+ * <pre> -bins &lt;num&gt;
+ *  Number of histogram bins for numeric attributes, at most 255
+ *  (implies -columnar). (default 0, exact split search)</pre>
+ * 
  * <pre> -output-debug-info
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console</pre>
@@ -96,7 +107,8 @@ import weka.core.WeightedInstancesHandler;
  * @version $Revision$
  */
 public class RandomTree extends AbstractClassifier implements OptionHandler,
-  WeightedInstancesHandler, Randomizable, Drawable, PartitionGenerator {
+  WeightedInstancesHandler, Randomizable, Drawable, PartitionGenerator,
+  PreallocatedBatchPredictor {
 
   /** for serialization */
   private static final long serialVersionUID = -9051119597407396024L;
@@ -134,6 +146,18 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
    */
   protected double m_MinVarianceProp = 1e-3;
 
+  /** Whether to grow the tree on a column-major copy of the training data */
+  protected boolean m_UseColumnStore = false;
+
+  /** The number of histogram bins for numeric attributes (0 = exact) */
+  protected int m_NumBins = 0;
+
+  /** The binned training data, only set during building */
+  protected transient BinnedColumns m_Bins = null;
+
+  /** The preferred batch size for batch prediction */
+  protected String m_BatchSize = "100";
+
   /**
    * Returns a string describing classifier
    * 
@@ -363,6 +387,98 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     m_MaxDepth = value;
   }
 
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String useColumnStoreTipText() {
+    return "If true, the tree is grown on a column-major copy of the training "
+      + "data and subsets are represented by row indices instead of copies "
+      + "of the instances.";
+  }
+
+  /**
+   * Get whether the tree is grown on a column-major copy of the data.
+   * 
+   * @return true if a column store is used
+   */
+  public boolean getUseColumnStore() {
+    return m_UseColumnStore;
+  }
+
+  /**
+   * Set whether the tree is grown on a column-major copy of the data.
+   * 
+   * @param value true if a column store is to be used
+   */
+  public void setUseColumnStore(boolean value) {
+    m_UseColumnStore = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numBinsTipText() {
+    return "If greater than zero, numeric attributes are quantized once into "
+      + "at most this many bins (up to 255) and split points are searched "
+      + "on per-node class histograms instead of sorted values (implies a "
+      + "column store).";
+  }
+
+  /**
+   * Get the number of histogram bins for numeric attributes.
+   * 
+   * @return the number of bins, 0 for exact split search
+   */
+  public int getNumBins() {
+    return m_NumBins;
+  }
+
+  /**
+   * Set the number of histogram bins for numeric attributes.
+   * 
+   * @param value the number of bins, 0 for exact split search
+   */
+  public void setNumBins(int value) {
+    m_NumBins = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "The preferred number of instances to score at once in batch "
+      + "prediction.";
+  }
+
+  /**
+   * Set the preferred batch size for batch prediction.
+   * 
+   * @param size the batch size
+   */
+  @Override
+  public void setBatchSize(String size) {
+    m_BatchSize = size;
+  }
+
+  /**
+   * Get the preferred batch size for batch prediction.
+   * 
+   * @return the batch size
+   */
+  @Override
+  public String getBatchSize() {
+    return m_BatchSize;
+  }
+
   /**
    * Lists the command-line options for this classifier.
    * 
@@ -398,6 +514,13 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       + "(default 0, no backfitting).", "N", 1, "-N <num>"));
     newVector.addElement(new Option("\tAllow unclassified instances.", "U", 0,
       "-U"));
+    newVector.addElement(new Option(
+      "\tGrow the tree on a column-major copy of the data.", "columnar", 0,
+      "-columnar"));
+    newVector.addElement(new Option(
+      "\tNumber of histogram bins for numeric attributes, at most 255\n"
+        + "\t(implies -columnar). (default 0, exact split search)", "bins", 1,
+      "-bins <num>"));
 
     newVector.addAll(Collections.list(super.listOptions()));
 
@@ -439,6 +562,15 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       result.add("-U");
     }
 
+    if (getUseColumnStore()) {
+      result.add("-columnar");
+    }
+
+    if (getNumBins() > 0) {
+      result.add("-bins");
+      result.add("" + getNumBins());
+    }
+
     Collections.addAll(result, super.getOptions());
 
     return result.toArray(new String[result.size()]);
@@ -477,6 +609,13 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
    * <pre> -U
    *  Allow unclassified instances.</pre>
    * 
+   * <pre> -columnar
+   *  Grow the tree on a column-major copy of the data.</pre>
+   * 
+   * <pre> -bins &lt;num&gt;
+   *  Number of histogram bins for numeric attributes, at most 255
+   *  (implies -columnar). (default 0, exact split search)</pre>
+   * 
    * <pre> -output-debug-info
    *  If set, classifier is run in debug mode and
    *  may output additional info to the console</pre>
@@ -537,6 +676,15 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
 
     setAllowUnclassifiedInstances(Utils.getFlag('U', options));
 
+    setUseColumnStore(Utils.getFlag("columnar", options));
+
+    tmpStr = Utils.getOption("bins", options);
+    if (tmpStr.length() != 0) {
+      setNumBins(Integer.parseInt(tmpStr));
+    } else {
+      setNumBins(0);
+    }
+
     super.setOptions(options);
 
     Utils.checkForRemainingOptions(options);
@@ -653,8 +801,24 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     // Build tree
     m_Tree = new Tree();
     m_Info = new Instances(data, 0);
-    m_Tree.buildTree(train, classProbs, attIndicesWindow, totalWeight, rand, 0,
-      m_MinVarianceProp * trainVariance);
+    if (m_UseColumnStore || (m_NumBins > 0)) {
+      ColumnStore store = new ColumnStore(train);
+      int[] rows = new int[store.numRows()];
+      for (int i = 0; i < rows.length; i++) {
+        rows[i] = i;
+      }
+      m_Bins = (m_NumBins > 0) ? new BinnedColumns(store, m_NumBins) : null;
+      try {
+        m_Tree.buildTree(store, rows, store.weights().clone(), classProbs,
+          attIndicesWindow, totalWeight, rand, 0, m_MinVarianceProp
+            * trainVariance);
+      } finally {
+        m_Bins = null;
+      }
+    } else {
+      m_Tree.buildTree(train, classProbs, attIndicesWindow, totalWeight, rand,
+        0, m_MinVarianceProp * trainVariance);
+    }
 
     // Backfit if required
     if (backfit != null) {
@@ -662,6 +826,116 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     }
   }
 
+  /**
+   * Builds the tree from the given rows of a column store, e.g., a bootstrap
+   * sample represented by row indices and copy counts as weights. The store
+   * is only read, so several trees can be built from the same store
+   * concurrently. The rows must not have a missing class value, and
+   * backfitting is not supported.
+   *
+   * @param store the column-major training data
+   * @param rows the indices of the rows to use
+   * @param weights the weights of the rows
+   * @throws Exception if the tree cannot be built
+   */
+  public void buildClassifier(ColumnStore store, int[] rows, double[] weights)
+    throws Exception {
+
+    buildClassifier(store, (m_NumBins > 0) ? new BinnedColumns(store,
+      m_NumBins) : null, rows, weights);
+  }
+
+  /**
+   * Builds the tree from the given rows of a column store, searching split
+   * points of numeric attributes on histograms over the given binned copy of
+   * the store. The binned copy is only read as well, so it can be shared by
+   * several trees.
+   *
+   * @param store the column-major training data
+   * @param bins the binned training data, null for exact split search
+   * @param rows the indices of the rows to use
+   * @param weights the weights of the rows
+   * @throws Exception if the tree cannot be built
+   */
+  public void buildClassifier(ColumnStore store, BinnedColumns bins,
+    int[] rows, double[] weights) throws Exception {
+
+    Instances header = store.header();
+
+    if (m_NumFolds > 0) {
+      throw new IllegalArgumentException(
+        "Backfitting is not supported when building from a column store!");
+    }
+
+    // Make sure K value is in range
+    if (m_KValue > header.numAttributes() - 1) {
+      m_KValue = header.numAttributes() - 1;
+    }
+    if (m_KValue < 1) {
+      m_KValue = (int) Utils.log2(header.numAttributes() - 1) + 1;
+    }
+
+    // only class? -> build ZeroR model
+    if (header.numAttributes() == 1) {
+      Instances data = new Instances(header, rows.length);
+      for (int i = 0; i < rows.length; i++) {
+        Instance inst = store.instance(rows[i]);
+        inst.setWeight(weights[i]);
+        data.add(inst);
+      }
+      m_zeroR = new weka.classifiers.rules.ZeroR();
+      m_zeroR.buildClassifier(data);
+      return;
+    } else {
+      m_zeroR = null;
+    }
+
+    // Create the attribute indices window
+    int[] attIndicesWindow = new int[header.numAttributes() - 1];
+    int j = 0;
+    for (int i = 0; i < attIndicesWindow.length; i++) {
+      if (j == header.classIndex()) {
+        j++; // do not include the class
+      }
+      attIndicesWindow[i] = j++;
+    }
+
+    double totalWeight = 0;
+    double totalSumSquared = 0;
+
+    // Compute initial class counts
+    double[] classProbs = new double[header.numClasses()];
+    for (int i = 0; i < rows.length; i++) {
+      double classValue = store.classValue(rows[i]);
+      if (header.classAttribute().isNominal()) {
+        classProbs[(int) classValue] += weights[i];
+      } else {
+        classProbs[0] += classValue * weights[i];
+        totalSumSquared += classValue * classValue * weights[i];
+      }
+      totalWeight += weights[i];
+    }
+
+    double trainVariance = 0;
+    if (header.classAttribute().isNumeric()) {
+      trainVariance = RandomTree.singleVariance(classProbs[0], totalSumSquared,
+        totalWeight) / totalWeight;
+      classProbs[0] /= totalWeight;
+    }
+
+    // Build tree
+    m_Tree = new Tree();
+    m_Info = new Instances(header, 0);
+    m_Bins = bins;
+    try {
+      m_Tree.buildTree(store, rows, weights, classProbs, attIndicesWindow,
+        totalWeight, new Random(m_randomSeed), 0, m_MinVarianceProp
+          * trainVariance);
+    } finally {
+      m_Bins = null;
+    }
+  }
+
   /**
    * Computes class distribution of an instance using the tree.
    * 
@@ -679,6 +953,48 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     }
   }
 
+  /**
+   * Computes class distributions of the given instances using the tree.
+   * 
+   * @param insts the instances to compute the distributions for
+   * @return the computed class probabilities, one array per instance
+   * @throws Exception if computation fails
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts)
+    throws Exception {
+
+    double[][] result = new double[insts.numInstances()][insts.numClasses()];
+    distributionsForInstances(insts, result);
+    return result;
+  }
+
+  /**
+   * Computes class distributions of the given instances using the tree and
+   * stores them in the given array. The distributions of the leaves are added
+   * directly into the rows of the array, so no arrays are allocated per
+   * instance or node.
+   * 
+   * @param insts the instances to compute the distributions for
+   * @param result the array to store the distributions in
+   * @throws Exception if computation fails
+   */
+  @Override
+  public void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception {
+
+    for (int i = 0; i < insts.numInstances(); i++) {
+      Instance instance = insts.instance(i);
+      if (m_zeroR != null) {
+        double[] dist = m_zeroR.distributionForInstance(instance);
+        System.arraycopy(dist, 0, result[i], 0, dist.length);
+      } else {
+        Arrays.fill(result[i], 0);
+        m_Tree.addDistribution(instance, result[i], 1.0);
+      }
+    }
+  }
+
   /**
    * Outputs the decision tree.
    * 
@@ -712,6 +1028,43 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     }
   }
 
+  /**
+   * Compiles the tree into flat arrays for fast scoring. The compiled model
+   * gives the same distributions as distributionForInstance().
+   * 
+   * @return the compiled tree
+   * @throws Exception if no tree has been built
+   */
+  public CompiledTree compile() throws Exception {
+
+    CompiledTree compiled = compile(null, false);
+    compiled.trim();
+    return compiled;
+  }
+
+  /**
+   * Adds the tree to a compiled model, e.g., one that holds a whole forest.
+   * 
+   * @param compiled the model to add to, null to create a new one
+   * @param average whether a new model averages its trees as in Bagging
+   * @return the model the tree has been added to
+   * @throws Exception if no tree has been built
+   */
+  protected CompiledTree compile(CompiledTree compiled, boolean average)
+    throws Exception {
+
+    if ((m_zeroR != null) || (m_Tree == null)) {
+      throw new Exception("RandomTree: No model built yet, or only ZeroR "
+        + "model.");
+    }
+    if (compiled == null) {
+      compiled = new CompiledTree(m_Tree.m_Info.numClasses(), m_Tree.m_Info
+        .classAttribute().isNumeric(), average);
+    }
+    compiled.addRoot(m_Tree.compile(compiled));
+    return compiled;
+  }
+
   /**
    * Returns graph describing the tree.
    * 
@@ -818,6 +1171,275 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     return m_Tree.numNodes();
   }
 
+  /**
+   * The training data at a node of a tree, accessed by position. The split
+   * search and the splitting of the data only go through this accessor, so
+   * trees grown from Instances and from a column store share them.
+   */
+  protected abstract static class NodeData {
+
+    /**
+     * Returns the header of the data.
+     * 
+     * @return the header
+     */
+    protected abstract Instances header();
+
+    /**
+     * Returns the number of rows at the node.
+     * 
+     * @return the number of rows
+     */
+    protected abstract int numRows();
+
+    /**
+     * Checks whether a row has a missing value for an attribute.
+     * 
+     * @param i the position of the row
+     * @param att the attribute index
+     * @return true if the value is missing
+     */
+    protected abstract boolean isMissing(int i, int att);
+
+    /**
+     * Returns the value of an attribute of a row.
+     * 
+     * @param i the position of the row
+     * @param att the attribute index
+     * @return the value
+     */
+    protected abstract double value(int i, int att);
+
+    /**
+     * Returns the class value of a row.
+     * 
+     * @param i the position of the row
+     * @return the class value
+     */
+    protected abstract double classValue(int i);
+
+    /**
+     * Returns the weight of a row.
+     * 
+     * @param i the position of the row
+     * @return the weight
+     */
+    protected abstract double weight(int i);
+
+    /**
+     * Reorders the rows by the values of an attribute, with missing values
+     * last.
+     * 
+     * @param att the attribute index
+     */
+    protected abstract void sort(int att);
+
+    /**
+     * Splits the rows according to the split at a node. Rows with a missing
+     * value are passed down all branches with correspondingly reduced weight.
+     * 
+     * @param node the node
+     * @return the rows of each branch
+     * @throws Exception if something goes wrong
+     */
+    protected abstract NodeData[] split(Tree node) throws Exception;
+  }
+
+  /**
+   * The instances at a node.
+   */
+  protected static class InstancesData extends NodeData {
+
+    /** the instances */
+    protected Instances m_Data;
+
+    /**
+     * Wraps the given instances.
+     * 
+     * @param data the instances
+     */
+    protected InstancesData(Instances data) {
+      m_Data = data;
+    }
+
+    @Override
+    protected Instances header() {
+      return m_Data;
+    }
+
+    @Override
+    protected int numRows() {
+      return m_Data.numInstances();
+    }
+
+    @Override
+    protected boolean isMissing(int i, int att) {
+      return m_Data.instance(i).isMissing(att);
+    }
+
+    @Override
+    protected double value(int i, int att) {
+      return m_Data.instance(i).value(att);
+    }
+
+    @Override
+    protected double classValue(int i) {
+      return m_Data.instance(i).classValue();
+    }
+
+    @Override
+    protected double weight(int i) {
+      return m_Data.instance(i).weight();
+    }
+
+    @Override
+    protected void sort(int att) {
+      m_Data.sort(att);
+    }
+
+    @Override
+    protected NodeData[] split(Tree node) throws Exception {
+      Instances[] subsets = node.splitData(m_Data);
+      NodeData[] result = new NodeData[subsets.length];
+      for (int i = 0; i < subsets.length; i++) {
+        result[i] = new InstancesData(subsets[i]);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Rows of a column store at a node, with their weights. Sorting only
+   * reorders the positions of the rows.
+   */
+  protected static class StoreData extends NodeData {
+
+    /** the column-major training data */
+    protected ColumnStore m_Store;
+
+    /** the indices of the rows at the node */
+    protected int[] m_Rows;
+
+    /** the weights of the rows at the node */
+    protected double[] m_Weights;
+
+    /** the current order of the rows, as positions into m_Rows */
+    protected int[] m_Positions;
+
+    /**
+     * Wraps the given rows of a column store.
+     * 
+     * @param store the column-major training data
+     * @param rows the indices of the rows
+     * @param weights the weights of the rows
+     */
+    protected StoreData(ColumnStore store, int[] rows, double[] weights) {
+      m_Store = store;
+      m_Rows = rows;
+      m_Weights = weights;
+      m_Positions = new int[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        m_Positions[i] = i;
+      }
+    }
+
+    @Override
+    protected Instances header() {
+      return m_Store.header();
+    }
+
+    @Override
+    protected int numRows() {
+      return m_Rows.length;
+    }
+
+    @Override
+    protected boolean isMissing(int i, int att) {
+      return m_Store.column(att).isMissing(m_Rows[m_Positions[i]]);
+    }
+
+    @Override
+    protected double value(int i, int att) {
+      return m_Store.column(att).value(m_Rows[m_Positions[i]]);
+    }
+
+    @Override
+    protected double classValue(int i) {
+      return m_Store.classColumn().value(m_Rows[m_Positions[i]]);
+    }
+
+    @Override
+    protected double weight(int i) {
+      return m_Weights[m_Positions[i]];
+    }
+
+    @Override
+    protected void sort(int att) {
+      ColumnStore.Column column = m_Store.column(att);
+      int[] positions = new int[m_Positions.length];
+      int numPresent = 0;
+      for (int position : m_Positions) {
+        if (!column.isMissing(m_Rows[position])) {
+          positions[numPresent++] = position;
+        }
+      }
+      int last = numPresent;
+      for (int position : m_Positions) {
+        if (column.isMissing(m_Rows[position])) {
+          positions[last++] = position;
+        }
+      }
+
+      double[] vals = new double[numPresent];
+      for (int i = 0; i < numPresent; i++) {
+        vals[i] = column.value(m_Rows[positions[i]]);
+      }
+      int[] order = Utils.sort(vals);
+      for (int i = 0; i < numPresent; i++) {
+        m_Positions[i] = positions[order[i]];
+      }
+      System.arraycopy(positions, numPresent, m_Positions, numPresent,
+        positions.length - numPresent);
+    }
+
+    @Override
+    protected NodeData[] split(Tree node) {
+      ColumnStore.Column column = m_Store.column(node.m_Attribute);
+      boolean nominal = header().attribute(node.m_Attribute).isNominal();
+      double[] prop = node.m_Prop;
+      int[][] subsetRows = new int[prop.length][m_Rows.length];
+      double[][] subsetWeights = new double[prop.length][m_Rows.length];
+      int[] num = new int[prop.length];
+
+      for (int position : m_Positions) {
+        int row = m_Rows[position];
+        if (column.isMissing(row)) {
+
+          // Split instance up
+          for (int k = 0; k < prop.length; k++) {
+            if (prop[k] > 0) {
+              subsetRows[k][num[k]] = row;
+              subsetWeights[k][num[k]++] = prop[k] * m_Weights[position];
+            }
+          }
+        } else {
+          double value = column.value(row);
+          int subset = nominal ? (int) value
+            : (value < node.m_SplitPoint) ? 0 : 1;
+          subsetRows[subset][num[subset]] = row;
+          subsetWeights[subset][num[subset]++] = m_Weights[position];
+        }
+      }
+
+      NodeData[] result = new NodeData[prop.length];
+      for (int k = 0; k < prop.length; k++) {
+        result[k] = new StoreData(m_Store, Arrays.copyOf(subsetRows[k], num[k]),
+          Arrays.copyOf(subsetWeights[k], num[k]));
+      }
+      return result;
+    }
+  }
+
   /**
    * The inner class for dealing with the tree.
    */
@@ -954,6 +1576,108 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       }
     }
 
+    /**
+     * Adds this tree to a compiled model.
+     * 
+     * @param compiled the model to add to
+     * @return the index of this node in the compiled model
+     */
+    protected int compile(CompiledTree compiled) {
+
+      double[] dist = null;
+      if (m_ClassDistribution != null) {
+        dist = m_ClassDistribution.clone();
+        if (m_Info.classAttribute().isNominal() && (Utils.sum(dist) > 0)) {
+          Utils.normalize(dist);
+        }
+      } else if (getAllowUnclassifiedInstances()) {
+        dist = new double[m_Info.numClasses()];
+        if (m_Info.classAttribute().isNumeric()) {
+          dist[0] = Utils.missingValue();
+        }
+      }
+
+      if (m_Attribute == -1) {
+        return compiled.addNode(CompiledTree.LEAF, -1, 0, 0, dist);
+      }
+      byte test = m_Info.attribute(m_Attribute).isNominal()
+        ? CompiledTree.NOMINAL : CompiledTree.LESS;
+      int node = compiled.addNode(test, m_Attribute, m_SplitPoint,
+        m_Successors.length, dist);
+      for (int i = 0; i < m_Successors.length; i++) {
+        compiled.setChild(node, i, m_Successors[i].compile(compiled),
+          m_Prop[i]);
+      }
+      return node;
+    }
+
+    /**
+     * Adds the class distribution of an instance, multiplied by the given
+     * weight, to the given array. Equivalent to distributionForInstance(), but
+     * without allocating intermediate arrays.
+     * 
+     * @param instance the instance to compute the distribution for
+     * @param dist the array to add the distribution to
+     * @param weight the weight of the distribution
+     * @return false if the instance ended up in an empty node, in which case
+     *         nothing has been added
+     * @throws Exception if computation fails
+     */
+    protected boolean addDistribution(Instance instance, double[] dist,
+      double weight) throws Exception {
+
+      if (m_Attribute > -1) {
+
+        // Node is not a leaf
+        if (instance.isMissing(m_Attribute)) {
+
+          // Split instance up
+          for (int i = 0; i < m_Successors.length; i++) {
+            m_Successors[i].addDistribution(instance, dist, weight * m_Prop[i]);
+          }
+          return true;
+        } else if (m_Info.attribute(m_Attribute).isNominal()) {
+
+          // For nominal attributes
+          if (m_Successors[(int) instance.value(m_Attribute)].addDistribution(
+            instance, dist, weight)) {
+            return true;
+          }
+        } else {
+
+          // For numeric attributes
+          int branch = (instance.value(m_Attribute) < m_SplitPoint) ? 0 : 1;
+          if (m_Successors[branch].addDistribution(instance, dist, weight)) {
+            return true;
+          }
+        }
+      }
+
+      // Node is a leaf or successor is empty
+
+      // Is node empty?
+      if (m_ClassDistribution == null) {
+        if (getAllowUnclassifiedInstances()) {
+          if (m_Info.classAttribute().isNumeric()) {
+            dist[0] += weight * Utils.missingValue();
+          }
+          return true;
+        } else {
+          return false;
+        }
+      }
+
+      if (m_Info.classAttribute().isNominal()) {
+        double sum = Utils.sum(m_ClassDistribution);
+        for (int j = 0; j < m_ClassDistribution.length; j++) {
+          dist[j] += weight * (m_ClassDistribution[j] / sum);
+        }
+      } else {
+        dist[0] += weight * m_ClassDistribution[0];
+      }
+      return true;
+    }
+
     /**
      * Outputs one node for graph.
      * 
@@ -1237,29 +1961,80 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       int[] attIndicesWindow, double totalWeight, Random random, int depth,
       double minVariance) throws Exception {
 
+      buildTree(new InstancesData(data), classProbs, attIndicesWindow,
+        totalWeight, random, depth, minVariance, null, null);
+    }
+
+    /**
+     * Recursively generates a tree from rows of a column store.
+     * 
+     * @param store the column-major training data
+     * @param rows the indices of the rows at this node
+     * @param weights the weights of the rows at this node
+     * @param classProbs the class distribution
+     * @param attIndicesWindow the attribute window to choose attributes from
+     * @param totalWeight the total weight of the rows
+     * @param random random number generator for choosing random attributes
+     * @param depth the current depth
+     * @param minVariance the minimum variance required for a split
+     * @throws Exception if generation fails
+     */
+    protected void buildTree(ColumnStore store, int[] rows, double[] weights,
+      double[] classProbs, int[] attIndicesWindow, double totalWeight,
+      Random random, int depth, double minVariance) throws Exception {
+
+      buildTree(new StoreData(store, rows, weights), classProbs,
+        attIndicesWindow, totalWeight, random, depth, minVariance, null, null);
+    }
+
+    /**
+     * Recursively generates a tree. If binned data is available, the
+     * histograms computed at this node are passed on to the successors, which
+     * obtain their own histograms by subtracting those of their (smaller)
+     * siblings.
+     * 
+     * @param data the data to work with
+     * @param classProbs the class distribution
+     * @param attIndicesWindow the attribute window to choose attributes from
+     * @param totalWeight the total weight of the data
+     * @param random random number generator for choosing random attributes
+     * @param depth the current depth
+     * @param minVariance the minimum variance required for a split
+     * @param parentHists the histograms of the parent, null if not available
+     * @param siblings the data of the siblings of this node
+     * @throws Exception if generation fails
+     */
+    protected void buildTree(NodeData data, double[] classProbs,
+      int[] attIndicesWindow, double totalWeight, Random random, int depth,
+      double minVariance, double[][] parentHists, NodeData[] siblings)
+      throws Exception {
+
+      Instances header = data.header();
+      boolean nominalClass = header.classAttribute().isNominal();
+
       // Make leaf if there are no training instances
-      if (data.numInstances() == 0) {
+      if (data.numRows() == 0) {
         m_Attribute = -1;
         m_ClassDistribution = null;
         m_Prop = null;
 
-        if (data.classAttribute().isNumeric()) {
+        if (!nominalClass) {
           m_Distribution = new double[2];
         }
         return;
       }
 
       double priorVar = 0;
-      if (data.classAttribute().isNumeric()) {
+      if (!nominalClass) {
 
         // Compute prior variance
         double totalSum = 0, totalSumSquared = 0, totalSumOfWeights = 0;
-        for (int i = 0; i < data.numInstances(); i++) {
-          Instance inst = data.instance(i);
-          totalSum += inst.classValue() * inst.weight();
-          totalSumSquared += inst.classValue() * inst.classValue()
-            * inst.weight();
-          totalSumOfWeights += inst.weight();
+        for (int i = 0; i < data.numRows(); i++) {
+          double classVal = data.classValue(i);
+          double weight = data.weight(i);
+          totalSum += classVal * weight;
+          totalSumSquared += classVal * classVal * weight;
+          totalSumOfWeights += weight;
         }
         priorVar = RandomTree.singleVariance(totalSum, totalSumSquared,
           totalSumOfWeights);
@@ -1267,7 +2042,7 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
 
       // Check if node doesn't contain enough instances or is pure
       // or maximum depth reached
-      if (data.classAttribute().isNominal()) {
+      if (nominalClass) {
         totalWeight = Utils.sum(classProbs);
       }
       // System.err.println("Total weight " + totalWeight);
@@ -1275,13 +2050,13 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       if (totalWeight < 2 * m_MinNum ||
 
       // Nominal case
-        (data.classAttribute().isNominal() && Utils.eq(
-          classProbs[Utils.maxIndex(classProbs)], Utils.sum(classProbs)))
+        (nominalClass && Utils.eq(classProbs[Utils.maxIndex(classProbs)],
+          Utils.sum(classProbs)))
 
         ||
 
         // Numeric case
-        (data.classAttribute().isNumeric() && priorVar / totalWeight < minVariance)
+        (!nominalClass && priorVar / totalWeight < minVariance)
 
         ||
 
@@ -1291,7 +2066,7 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         // Make leaf
         m_Attribute = -1;
         m_ClassDistribution = classProbs.clone();
-        if (data.classAttribute().isNumeric()) {
+        if (!nominalClass) {
           m_Distribution = new double[2];
           m_Distribution[0] = priorVar;
           m_Distribution[1] = totalWeight;
@@ -1312,14 +2087,16 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       // Handles to get arrays out of distribution method
       double[][] props = new double[1][0];
       double[][][] dists = new double[1][0][0];
-      double[][] totalSubsetWeights = new double[data.numAttributes()][0];
+      double[][] totalSubsetWeights = new double[header.numAttributes()][0];
 
       // Investigate K random attributes
       int attIndex = 0;
       int windowSize = attIndicesWindow.length;
       int k = m_KValue;
       boolean gainFound = false;
-      double[] tempNumericVals = new double[data.numAttributes()];
+      double[] tempNumericVals = new double[header.numAttributes()];
+      double[][] hists = (m_Bins != null) ? new double[header.numAttributes()][]
+        : null;
       while ((windowSize > 0) && (k-- > 0 || !gainFound)) {
 
         int chosenIndex = random.nextInt(windowSize);
@@ -1330,12 +2107,22 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         attIndicesWindow[windowSize - 1] = attIndex;
         windowSize--;
 
-        double currSplit = data.classAttribute().isNominal() ? distribution(
-          props, dists, attIndex, data) : numericDistribution(props, dists,
-          attIndex, totalSubsetWeights, data, tempNumericVals);
+        double currSplit;
+        if ((m_Bins != null) && m_Bins.isBinned(attIndex)) {
+          hists[attIndex] = histogram(attIndex, (StoreData) data, parentHists,
+            siblings);
+          currSplit = nominalClass ? binnedDistribution(props, dists,
+            attIndex, hists[attIndex]) : binnedNumericDistribution(props,
+            dists, attIndex, totalSubsetWeights, hists[attIndex],
+            tempNumericVals);
+        } else {
+          currSplit = nominalClass ? distribution(props, dists, attIndex, data)
+            : numericDistribution(props, dists, attIndex, totalSubsetWeights,
+              data, tempNumericVals);
+        }
 
-        double currVal = data.classAttribute().isNominal() ? gain(dists[0],
-          priorVal(dists[0])) : tempNumericVals[attIndex];
+        double currVal = nominalClass ? gain(dists[0], priorVal(dists[0]))
+          : tempNumericVals[attIndex];
 
         if (Utils.gr(currVal, 0)) {
           gainFound = true;
@@ -1359,15 +2146,24 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         // Build subtrees
         m_SplitPoint = split;
         m_Prop = bestProps;
-        Instances[] subsets = splitData(data);
+        NodeData[] subsets = data.split(this);
         m_Successors = new Tree[bestDists.length];
         double[] attTotalSubsetWeights = totalSubsetWeights[bestIndex];
 
         for (int i = 0; i < bestDists.length; i++) {
+          NodeData[] others = null;
+          if (hists != null) {
+            others = new NodeData[bestDists.length - 1];
+            for (int j = 0, n = 0; j < bestDists.length; j++) {
+              if (j != i) {
+                others[n++] = subsets[j];
+              }
+            }
+          }
           m_Successors[i] = new Tree();
           m_Successors[i].buildTree(subsets[i], bestDists[i], attIndicesWindow,
-            data.classAttribute().isNominal() ? 0 : attTotalSubsetWeights[i],
-            random, depth + 1, minVariance);
+            nominalClass ? 0 : attTotalSubsetWeights[i], random, depth + 1,
+            minVariance, hists, others);
         }
 
         // If all successors are non-empty, we don't need to store the class
@@ -1387,7 +2183,7 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         // Make leaf
         m_Attribute = -1;
         m_ClassDistribution = classProbs.clone();
-        if (data.classAttribute().isNumeric()) {
+        if (!nominalClass) {
           m_Distribution = new double[2];
           m_Distribution[0] = priorVar;
           m_Distribution[1] = totalWeight;
@@ -1482,27 +2278,27 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     /**
      * Computes numeric class distribution for an attribute
      * 
-     * @param props
-     * @param dists
-     * @param att
-     * @param subsetWeights
-     * @param data
-     * @param vals
-     * @return
+     * @param props receives the proportions of the subsets
+     * @param dists receives the distributions of the subsets
+     * @param att the attribute index
+     * @param subsetWeights receives the weights of the subsets
+     * @param data the data to work with
+     * @param vals receives the gain for the attribute
+     * @return the split point
      * @throws Exception if a problem occurs
      */
     protected double numericDistribution(double[][] props, double[][][] dists,
-      int att, double[][] subsetWeights, Instances data, double[] vals)
+      int att, double[][] subsetWeights, NodeData data, double[] vals)
       throws Exception {
 
       double splitPoint = Double.NaN;
-      Attribute attribute = data.attribute(att);
+      Attribute attribute = data.header().attribute(att);
       double[][] dist = null;
       double[] sums = null;
       double[] sumSquared = null;
       double[] sumOfWeights = null;
       double totalSum = 0, totalSumSquared = 0, totalSumOfWeights = 0;
-      int indexOfFirstMissingValue = data.numInstances();
+      int indexOfFirstMissingValue = data.numRows();
 
       if (attribute.isNominal()) {
         sums = new double[attribute.numValues()];
@@ -1510,22 +2306,21 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         sumOfWeights = new double[attribute.numValues()];
         int attVal;
 
-        for (int i = 0; i < data.numInstances(); i++) {
-          Instance inst = data.instance(i);
-          if (inst.isMissing(att)) {
+        for (int i = 0; i < data.numRows(); i++) {
+          if (data.isMissing(i, att)) {
 
             // Skip missing values at this stage
-            if (indexOfFirstMissingValue == data.numInstances()) {
+            if (indexOfFirstMissingValue == data.numRows()) {
               indexOfFirstMissingValue = i;
             }
             continue;
           }
 
-          attVal = (int) inst.value(att);
-          sums[attVal] += inst.classValue() * inst.weight();
-          sumSquared[attVal] += inst.classValue() * inst.classValue()
-            * inst.weight();
-          sumOfWeights[attVal] += inst.weight();
+          attVal = (int) data.value(i, att);
+          sums[attVal] += data.classValue(i) * data.weight(i);
+          sumSquared[attVal] += data.classValue(i) * data.classValue(i)
+            * data.weight(i);
+          sumOfWeights[attVal] += data.weight(i);
         }
 
         totalSum = Utils.sum(sums);
@@ -1544,19 +2339,18 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         data.sort(att);
 
         // Move all instances into second subset
-        for (int j = 0; j < data.numInstances(); j++) {
-          Instance inst = data.instance(j);
-          if (inst.isMissing(att)) {
+        for (int j = 0; j < data.numRows(); j++) {
+          if (data.isMissing(j, att)) {
 
             // Can stop as soon as we hit a missing value
             indexOfFirstMissingValue = j;
             break;
           }
 
-          currSums[1] += inst.classValue() * inst.weight();
-          currSumSquared[1] += inst.classValue() * inst.classValue()
-            * inst.weight();
-          currSumOfWeights[1] += inst.weight();
+          currSums[1] += data.classValue(j) * data.weight(j);
+          currSumSquared[1] += data.classValue(j) * data.classValue(j)
+            * data.weight(j);
+          currSumOfWeights[1] += data.weight(j);
         }
 
         totalSum = currSums[1];
@@ -1568,22 +2362,21 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         sumOfWeights[1] = currSumOfWeights[1];
 
         // Try all possible split points
-        double currSplit = data.instance(0).value(att);
+        double currSplit = data.value(0, att);
         double currVal, bestVal = Double.MAX_VALUE;
 
         for (int i = 0; i < indexOfFirstMissingValue; i++) {
-          Instance inst = data.instance(i);
 
-          if (inst.value(att) > currSplit) {
+          if (data.value(i, att) > currSplit) {
             currVal = RandomTree.variance(currSums, currSumSquared,
               currSumOfWeights);
             if (currVal < bestVal) {
               bestVal = currVal;
-              splitPoint = (inst.value(att) + currSplit) / 2.0;
+              splitPoint = (data.value(i, att) + currSplit) / 2.0;
 
               // Check for numeric precision problems
               if (splitPoint <= currSplit) {
-                splitPoint = inst.value(att);
+                splitPoint = data.value(i, att);
               }
 
               for (int j = 0; j < 2; j++) {
@@ -1594,18 +2387,18 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
             }
           }
 
-          currSplit = inst.value(att);
+          currSplit = data.value(i, att);
 
-          double classVal = inst.classValue() * inst.weight();
-          double classValSquared = inst.classValue() * classVal;
+          double classVal = data.classValue(i) * data.weight(i);
+          double classValSquared = data.classValue(i) * classVal;
 
           currSums[0] += classVal;
           currSumSquared[0] += classValSquared;
-          currSumOfWeights[0] += inst.weight();
+          currSumOfWeights[0] += data.weight(i);
 
           currSums[1] -= classVal;
           currSumSquared[1] -= classValSquared;
-          currSumOfWeights[1] -= inst.weight();
+          currSumOfWeights[1] -= data.weight(i);
         }
       }
 
@@ -1623,23 +2416,22 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       }
 
       // Distribute weights for instances with missing values
-      for (int i = indexOfFirstMissingValue; i < data.numInstances(); i++) {
-        Instance inst = data.instance(i);
+      for (int i = indexOfFirstMissingValue; i < data.numRows(); i++) {
 
         for (int j = 0; j < sums.length; j++) {
-          sums[j] += props[0][j] * inst.classValue() * inst.weight();
-          sumSquared[j] += props[0][j] * inst.classValue() * inst.classValue()
-            * inst.weight();
-          sumOfWeights[j] += props[0][j] * inst.weight();
+          sums[j] += props[0][j] * data.classValue(i) * data.weight(i);
+          sumSquared[j] += props[0][j] * data.classValue(i)
+            * data.classValue(i) * data.weight(i);
+          sumOfWeights[j] += props[0][j] * data.weight(i);
         }
-        totalSum += inst.classValue() * inst.weight();
-        totalSumSquared += inst.classValue() * inst.classValue()
-          * inst.weight();
-        totalSumOfWeights += inst.weight();
+        totalSum += data.classValue(i) * data.weight(i);
+        totalSumSquared += data.classValue(i) * data.classValue(i)
+          * data.weight(i);
+        totalSumOfWeights += data.weight(i);
       }
 
       // Compute final distribution
-      dist = new double[sums.length][data.numClasses()];
+      dist = new double[sums.length][data.header().numClasses()];
       for (int j = 0; j < sums.length; j++) {
         if (sumOfWeights[j] > 0) {
           dist[j][0] = sums[j] / sumOfWeights[j];
@@ -1665,55 +2457,55 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
     /**
      * Computes class distribution for an attribute.
      * 
-     * @param props
-     * @param dists
+     * @param props receives the proportions of the subsets
+     * @param dists receives the distributions of the subsets
      * @param att the attribute index
      * @param data the data to work with
+     * @return the split point
      * @throws Exception if something goes wrong
      */
     protected double distribution(double[][] props, double[][][] dists,
-      int att, Instances data) throws Exception {
+      int att, NodeData data) throws Exception {
 
       double splitPoint = Double.NaN;
-      Attribute attribute = data.attribute(att);
+      Attribute attribute = data.header().attribute(att);
       double[][] dist = null;
-      int indexOfFirstMissingValue = data.numInstances();
+      int indexOfFirstMissingValue = data.numRows();
 
       if (attribute.isNominal()) {
 
         // For nominal attributes
-        dist = new double[attribute.numValues()][data.numClasses()];
-        for (int i = 0; i < data.numInstances(); i++) {
-          Instance inst = data.instance(i);
-          if (inst.isMissing(att)) {
+        dist = new double[attribute.numValues()][data.header().numClasses()];
+        for (int i = 0; i < data.numRows(); i++) {
+          if (data.isMissing(i, att)) {
 
             // Skip missing values at this stage
-            if (indexOfFirstMissingValue == data.numInstances()) {
+            if (indexOfFirstMissingValue == data.numRows()) {
               indexOfFirstMissingValue = i;
             }
             continue;
           }
-          dist[(int) inst.value(att)][(int) inst.classValue()] += inst.weight();
+          dist[(int) data.value(i, att)][(int) data.classValue(i)] += data
+            .weight(i);
         }
       } else {
 
         // For numeric attributes
-        double[][] currDist = new double[2][data.numClasses()];
-        dist = new double[2][data.numClasses()];
+        double[][] currDist = new double[2][data.header().numClasses()];
+        dist = new double[2][data.header().numClasses()];
 
         // Sort data
         data.sort(att);
 
         // Move all instances into second subset
-        for (int j = 0; j < data.numInstances(); j++) {
-          Instance inst = data.instance(j);
-          if (inst.isMissing(att)) {
+        for (int j = 0; j < data.numRows(); j++) {
+          if (data.isMissing(j, att)) {
 
             // Can stop as soon as we hit a missing value
             indexOfFirstMissingValue = j;
             break;
           }
-          currDist[1][(int) inst.classValue()] += inst.weight();
+          currDist[1][(int) data.classValue(j)] += data.weight(j);
         }
 
         // Value before splitting
@@ -1725,11 +2517,10 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
         }
 
         // Try all possible split points
-        double currSplit = data.instance(0).value(att);
+        double currSplit = data.value(0, att);
         double currVal, bestVal = -Double.MAX_VALUE;
         for (int i = 0; i < indexOfFirstMissingValue; i++) {
-          Instance inst = data.instance(i);
-          double attVal = inst.value(att);
+          double attVal = data.value(i, att);
 
           // Can we place a sensible split point here?
           if (attVal > currSplit) {
@@ -1762,9 +2553,9 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
           }
 
           // Shift over the weight
-          int classVal = (int) inst.classValue();
-          currDist[0][classVal] += inst.weight();
-          currDist[1][classVal] -= inst.weight();
+          int classVal = (int) data.classValue(i);
+          currDist[0][classVal] += data.weight(i);
+          currDist[1][classVal] -= data.weight(i);
         }
       }
 
@@ -1782,21 +2573,21 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       }
 
       // Distribute weights for instances with missing values
-      for (int i = indexOfFirstMissingValue; i < data.numInstances(); i++) {
-        Instance inst = data.instance(i);
+      for (int i = indexOfFirstMissingValue; i < data.numRows(); i++) {
         if (attribute.isNominal()) {
 
           // Need to check if attribute value is missing
-          if (inst.isMissing(att)) {
+          if (data.isMissing(i, att)) {
             for (int j = 0; j < dist.length; j++) {
-              dist[j][(int) inst.classValue()] += props[0][j] * inst.weight();
+              dist[j][(int) data.classValue(i)] += props[0][j]
+                * data.weight(i);
             }
           }
         } else {
 
           // Can be sure that value is missing, so no test required
           for (int j = 0; j < dist.length; j++) {
-            dist[j][(int) inst.classValue()] += props[0][j] * inst.weight();
+            dist[j][(int) data.classValue(i)] += props[0][j] * data.weight(i);
           }
         }
       }
@@ -1806,6 +2597,253 @@ public class RandomTree extends AbstractClassifier implements OptionHandler,
       return splitPoint;
     }
 
+    /**
+     * Returns the class histogram of a binned attribute for the rows at this
+     * node. If the parent's histogram is available and the siblings hold
+     * fewer rows than this node, the siblings' histograms are subtracted from
+     * it instead of scanning the rows of this node.
+     * 
+     * @param att the attribute index
+     * @param data the rows at this node
+     * @param parentHists the histograms of the parent, may be null
+     * @param siblings the rows of the siblings
+     * @return the histogram
+     */
+    protected double[] histogram(int att, StoreData data,
+      double[][] parentHists, NodeData[] siblings) {
+
+      if ((parentHists != null) && (parentHists[att] != null)) {
+        int numSiblingRows = 0;
+        for (NodeData sibling : siblings) {
+          numSiblingRows += sibling.numRows();
+        }
+        if (numSiblingRows < data.numRows()) {
+          double[] hist = parentHists[att].clone();
+          for (NodeData sibling : siblings) {
+            StoreData rows = (StoreData) sibling;
+            m_Bins.subtract(hist,
+              m_Bins.histogram(att, rows.m_Rows, rows.m_Weights));
+          }
+          return hist;
+        }
+      }
+      return m_Bins.histogram(att, data.m_Rows, data.m_Weights);
+    }
+
+    /**
+     * Computes class distribution for a binned numeric attribute from its
+     * histogram at this node. Only split points between buckets are
+     * considered.
+     * 
+     * @param props receives the proportions of the subsets
+     * @param dists receives the distributions of the subsets
+     * @param att the attribute index
+     * @param hist the class histogram of the attribute
+     * @return the split point
+     */
+    protected double binnedDistribution(double[][] props, double[][][] dists,
+      int att, double[] hist) {
+
+      double splitPoint = Double.NaN;
+      int numClasses = m_Bins.stride();
+      int numBins = m_Bins.numBins(att);
+      double[][] currDist = new double[2][numClasses];
+      double[][] dist = new double[2][numClasses];
+
+      // Move all instances into second subset, find last non-empty bucket
+      int last = -1;
+      for (int b = 0; b < numBins; b++) {
+        for (int c = 0; c < numClasses; c++) {
+          if (hist[b * numClasses + c] > 0) {
+            currDist[1][c] += hist[b * numClasses + c];
+            last = b;
+          }
+        }
+      }
+
+      // Value before splitting
+      double priorVal = priorVal(currDist);
+
+      // Save initial distribution
+      for (int j = 0; j < currDist.length; j++) {
+        System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+      }
+
+      // Try the split points after all non-empty buckets but the last
+      double currVal, bestVal = -Double.MAX_VALUE;
+      for (int b = 0; b < last; b++) {
+        boolean empty = true;
+        for (int c = 0; c < numClasses; c++) {
+          double weight = hist[b * numClasses + c];
+          if (weight > 0) {
+            currDist[0][c] += weight;
+            currDist[1][c] -= weight;
+            empty = false;
+          }
+        }
+        if (empty) {
+          continue;
+        }
+
+        currVal = gain(currDist, priorVal);
+        if (currVal > bestVal) {
+          bestVal = currVal;
+          splitPoint = m_Bins.splitPoint(att, b);
+          for (int j = 0; j < currDist.length; j++) {
+            System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+          }
+        }
+      }
+
+      // Compute weights for subsets
+      props[0] = new double[dist.length];
+      for (int k = 0; k < props[0].length; k++) {
+        props[0][k] = Utils.sum(dist[k]);
+      }
+      if (Utils.eq(Utils.sum(props[0]), 0)) {
+        for (int k = 0; k < props[0].length; k++) {
+          props[0][k] = 1.0 / props[0].length;
+        }
+      } else {
+        Utils.normalize(props[0]);
+      }
+
+      // Distribute weights for instances with missing values
+      for (int c = 0; c < numClasses; c++) {
+        double weight = hist[numBins * numClasses + c];
+        for (int j = 0; j < dist.length; j++) {
+          dist[j][c] += props[0][j] * weight;
+        }
+      }
+
+      // Return distribution and split point
+      dists[0] = dist;
+      return splitPoint;
+    }
+
+    /**
+     * Computes numeric class distribution for a binned numeric attribute
+     * from its histogram (sum, sum of squares and weight per bucket) at this
+     * node. Only split points between buckets are considered.
+     * 
+     * @param props receives the proportions of the subsets
+     * @param dists receives the distributions of the subsets
+     * @param att the attribute index
+     * @param subsetWeights receives the weights of the subsets
+     * @param hist the class histogram of the attribute
+     * @param vals receives the gain for the attribute
+     * @return the split point
+     */
+    protected double binnedNumericDistribution(double[][] props,
+      double[][][] dists, int att, double[][] subsetWeights, double[] hist,
+      double[] vals) {
+
+      double splitPoint = Double.NaN;
+      int numBins = m_Bins.numBins(att);
+      double[] sums = new double[2];
+      double[] sumSquared = new double[2];
+      double[] sumOfWeights = new double[2];
+      double[] currSums = new double[2];
+      double[] currSumSquared = new double[2];
+      double[] currSumOfWeights = new double[2];
+
+      // Move all instances into second subset, find last non-empty bucket
+      int last = -1;
+      for (int b = 0; b < numBins; b++) {
+        if (hist[3 * b + 2] > 0) {
+          currSums[1] += hist[3 * b];
+          currSumSquared[1] += hist[3 * b + 1];
+          currSumOfWeights[1] += hist[3 * b + 2];
+          last = b;
+        }
+      }
+
+      double totalSum = currSums[1];
+      double totalSumSquared = currSumSquared[1];
+      double totalSumOfWeights = currSumOfWeights[1];
+
+      sums[1] = currSums[1];
+      sumSquared[1] = currSumSquared[1];
+      sumOfWeights[1] = currSumOfWeights[1];
+
+      // Try the split points after all non-empty buckets but the last
+      double currVal, bestVal = Double.MAX_VALUE;
+      for (int b = 0; b < last; b++) {
+        if (!(hist[3 * b + 2] > 0)) {
+          continue;
+        }
+
+        currSums[0] += hist[3 * b];
+        currSumSquared[0] += hist[3 * b + 1];
+        currSumOfWeights[0] += hist[3 * b + 2];
+
+        currSums[1] -= hist[3 * b];
+        currSumSquared[1] -= hist[3 * b + 1];
+        currSumOfWeights[1] -= hist[3 * b + 2];
+
+        currVal = RandomTree.variance(currSums, currSumSquared,
+          currSumOfWeights);
+        if (currVal < bestVal) {
+          bestVal = currVal;
+          splitPoint = m_Bins.splitPoint(att, b);
+          for (int j = 0; j < 2; j++) {
+            sums[j] = currSums[j];
+            sumSquared[j] = currSumSquared[j];
+            sumOfWeights[j] = currSumOfWeights[j];
+          }
+        }
+      }
+
+      // Compute weights
+      props[0] = new double[sums.length];
+      for (int k = 0; k < props[0].length; k++) {
+        props[0][k] = sumOfWeights[k];
+      }
+      if (!(Utils.sum(props[0]) > 0)) {
+        for (int k = 0; k < props[0].length; k++) {
+          props[0][k] = 1.0 / props[0].length;
+        }
+      } else {
+        Utils.normalize(props[0]);
+      }
+
+      // Distribute weights for instances with missing values
+      double missingSum = hist[3 * numBins];
+      double missingSumSquared = hist[3 * numBins + 1];
+      double missingWeight = hist[3 * numBins + 2];
+      for (int j = 0; j < sums.length; j++) {
+        sums[j] += props[0][j] * missingSum;
+        sumSquared[j] += props[0][j] * missingSumSquared;
+        sumOfWeights[j] += props[0][j] * missingWeight;
+      }
+      totalSum += missingSum;
+      totalSumSquared += missingSumSquared;
+      totalSumOfWeights += missingWeight;
+
+      // Compute final distribution
+      double[][] dist = new double[sums.length][1];
+      for (int j = 0; j < sums.length; j++) {
+        if (sumOfWeights[j] > 0) {
+          dist[j][0] = sums[j] / sumOfWeights[j];
+        } else {
+          dist[j][0] = totalSum / totalSumOfWeights;
+        }
+      }
+
+      // Compute variance gain
+      double priorVar = singleVariance(totalSum, totalSumSquared,
+        totalSumOfWeights);
+      double var = variance(sums, sumSquared, sumOfWeights);
+      double gain = priorVar - var;
+
+      // Return distribution and split point
+      subsetWeights[att] = sumOfWeights;
+      dists[0] = dist;
+      vals[att] = gain;
+
+      return splitPoint;
+    }
+
     /**
      * Computes value of splitting criterion before split.
      * 
@@ -25,6 +25,7 @@ import java.io.Serializable;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import weka.classifiers.trees.CompiledTree;
 import weka.core.Capabilities;
 import weka.core.CapabilitiesHandler;
 import weka.core.Drawable;
@@ -689,6 +690,91 @@ public class ClassifierTree implements Drawable, Serializable,
     }
   }
 
+  /**
+   * Compiles the tree into flat arrays for fast scoring. The compiled model
+   * gives the same distributions as distributionForInstance().
+   * 
+   * @param useLaplace whether to use laplace or not
+   * @return the compiled tree
+   * @throws Exception if the tree uses split models that can't be compiled
+   */
+  public CompiledTree compile(boolean useLaplace) throws Exception {
+
+    CompiledTree compiled = new CompiledTree(localModel().distribution()
+      .numClasses(), false, false);
+    compiled.addRoot(compile(compiled, useLaplace));
+    compiled.trim();
+
+    return compiled;
+  }
+
+  /**
+   * Adds this tree to a compiled model. Empty subtrees become leaves that hold
+   * the class probabilities of their branch, and get a weight of zero for
+   * instances with a missing value.
+   * 
+   * @param compiled the model to add to
+   * @param useLaplace whether to use laplace or not
+   * @return the index of this node in the compiled model
+   * @throws Exception if the tree uses split models that can't be compiled
+   */
+  protected int compile(CompiledTree compiled, boolean useLaplace)
+    throws Exception {
+
+    int numClasses = localModel().distribution().numClasses();
+
+    if (m_isLeaf) {
+      if (!(localModel() instanceof NoSplit)) {
+        throw new Exception("Can't compile leaves of type "
+          + localModel().getClass().getName());
+      }
+      double[] dist = new double[numClasses];
+      for (int j = 0; j < numClasses; j++) {
+        dist[j] = useLaplace ? localModel().distribution().laplaceProb(j)
+          : localModel().distribution().prob(j);
+      }
+      return compiled.addNode(CompiledTree.LEAF, -1, 0, 0, dist);
+    }
+
+    byte test;
+    int attIndex;
+    double splitPoint;
+    if (localModel() instanceof C45Split) {
+      attIndex = ((C45Split) localModel()).attIndex();
+      splitPoint = ((C45Split) localModel()).splitPoint();
+      test = m_train.attribute(attIndex).isNominal() ? CompiledTree.NOMINAL
+        : CompiledTree.LESS_OR_EQUAL;
+    } else if (localModel() instanceof BinC45Split) {
+      attIndex = ((BinC45Split) localModel()).attIndex();
+      splitPoint = ((BinC45Split) localModel()).splitPoint();
+      test = m_train.attribute(attIndex).isNominal()
+        ? CompiledTree.NOMINAL_EQUALS : CompiledTree.LESS_OR_EQUAL;
+    } else {
+      throw new Exception("Can't compile splits of type "
+        + localModel().getClass().getName());
+    }
+
+    Distribution distribution = localModel().distribution();
+    int node = compiled.addNode(test, attIndex, splitPoint, m_sons.length,
+      null);
+    for (int i = 0; i < m_sons.length; i++) {
+      if (son(i).m_isEmpty) {
+        double[] dist = new double[numClasses];
+        for (int j = 0; j < numClasses; j++) {
+          dist[j] = useLaplace ? localModel().classProbLaplace(j, null, i)
+            : localModel().classProb(j, null, i);
+        }
+        compiled.setChild(node, i,
+          compiled.addNode(CompiledTree.LEAF, -1, 0, 0, dist), 0);
+      } else {
+        compiled.setChild(node, i, son(i).compile(compiled, useLaplace),
+          distribution.perBag(i) / distribution.total());
+      }
+    }
+
+    return node;
+  }
+
   /**
    * Method just exists to make program easier to read.
    */
@@ -0,0 +1,335 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    BinnedColumns.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Quantized copy of the numeric columns of a {@link ColumnStore}. Each numeric
+ * attribute (other than the class) is cut once into at most
+ * {@link #MAX_BINS} buckets of roughly equal size, and the bucket of each row
+ * is stored as a single byte. Equal values always share a bucket, so an
+ * attribute with few distinct values keeps all of its split points. <br/>
+ * <br/>
+ * Split search can then run over per-node histograms of the class (counts
+ * per class value, or sum, sum of squares and weight for a numeric class)
+ * instead of over sorted values. A histogram for the rows of one node can
+ * also be obtained by subtracting the histograms of its siblings from the
+ * parent's histogram, see {@link #subtract(double[], double[])}.
+ *
+ * @version $Revision$
+ */
+public class BinnedColumns implements Serializable, RevisionHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = 4931297584603384711L;
+
+  /** The maximum number of buckets for present values. */
+  public static final int MAX_BINS = 255;
+
+  /** The bucket code used for missing values. */
+  public static final int MISSING = 255;
+
+  /** The number of entries per bucket for a numeric class */
+  protected static final int NUMERIC_STRIDE = 3;
+
+  /** The binned data */
+  protected ColumnStore m_Store;
+
+  /** The bucket codes, null for attributes that are not binned */
+  protected byte[][] m_Codes;
+
+  /** The split points between consecutive buckets of each attribute */
+  protected double[][] m_SplitPoints;
+
+  /** The number of entries per bucket in a histogram */
+  protected int m_Stride;
+
+  /**
+   * Quantizes the numeric attributes of the given store.
+   *
+   * @param store the data to quantize
+   * @param maxBins the maximum number of buckets per attribute, at most
+   *          MAX_BINS
+   */
+  public BinnedColumns(ColumnStore store, int maxBins) {
+
+    if ((maxBins < 2) || (maxBins > MAX_BINS)) {
+      throw new IllegalArgumentException("Number of bins must be between 2 and "
+        + MAX_BINS + "!");
+    }
+
+    Instances header = store.header();
+    m_Store = store;
+    m_Codes = new byte[header.numAttributes()][];
+    m_SplitPoints = new double[header.numAttributes()][];
+    m_Stride = header.classAttribute().isNominal() ? header.numClasses()
+      : NUMERIC_STRIDE;
+
+    for (int att = 0; att < header.numAttributes(); att++) {
+      if ((att != header.classIndex()) && header.attribute(att).isNumeric()) {
+        quantize(att, maxBins);
+      }
+    }
+  }
+
+  /**
+   * Determines the buckets of a numeric attribute and encodes its column.
+   * Buckets are closed once they hold at least their share of the remaining
+   * values, but never between two equal values.
+   *
+   * @param att the attribute index
+   * @param maxBins the maximum number of buckets
+   */
+  protected void quantize(int att, int maxBins) {
+
+    ColumnStore.Column column = m_Store.column(att);
+    int numRows = m_Store.numRows();
+    double[] sorted = new double[numRows];
+    int numPresent = 0;
+    for (int i = 0; i < numRows; i++) {
+      if (!column.isMissing(i)) {
+        sorted[numPresent++] = column.value(i);
+      }
+    }
+    Arrays.sort(sorted, 0, numPresent);
+
+    // Use one bucket per value if there are few enough distinct values
+    int numDistinct = (numPresent > 0) ? 1 : 0;
+    for (int i = 1; i < numPresent && numDistinct <= maxBins; i++) {
+      if (sorted[i] != sorted[i - 1]) {
+        numDistinct++;
+      }
+    }
+    boolean oneEach = numDistinct <= maxBins;
+
+    // Collect the split points
+    double[] splitPoints = new double[maxBins - 1];
+    int numSplits = 0;
+    int start = 0;
+    while (start < numPresent && numSplits < maxBins - 1) {
+      int remainingBins = maxBins - numSplits;
+      int end = oneEach ? start + 1 : start
+        + Math.max(1, (numPresent - start) / remainingBins);
+      if (end >= numPresent) {
+        break;
+      }
+
+      // Move the boundary past equal values
+      while (end < numPresent && sorted[end] == sorted[end - 1]) {
+        end++;
+      }
+      if (end >= numPresent) {
+        break;
+      }
+      double splitPoint = (sorted[end - 1] + sorted[end]) / 2.0;
+
+      // Check for numeric precision problems
+      if (splitPoint <= sorted[end - 1]) {
+        splitPoint = sorted[end];
+      }
+      splitPoints[numSplits++] = splitPoint;
+      start = end;
+    }
+    m_SplitPoints[att] = Arrays.copyOf(splitPoints, numSplits);
+
+    // Encode the column
+    byte[] codes = new byte[numRows];
+    for (int i = 0; i < numRows; i++) {
+      if (column.isMissing(i)) {
+        codes[i] = (byte) MISSING;
+      } else {
+        codes[i] = (byte) bucket(m_SplitPoints[att], column.value(i));
+      }
+    }
+    m_Codes[att] = codes;
+  }
+
+  /**
+   * Returns the bucket of a value, i.e., the number of split points that are
+   * less than or equal to it.
+   *
+   * @param splitPoints the sorted split points
+   * @param value the value
+   * @return the bucket
+   */
+  protected static int bucket(double[] splitPoints, double value) {
+
+    int lo = 0;
+    int hi = splitPoints.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (value < splitPoints[mid]) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the binned data.
+   *
+   * @return the store
+   */
+  public ColumnStore store() {
+    return m_Store;
+  }
+
+  /**
+   * Whether the given attribute has been binned.
+   *
+   * @param att the attribute index
+   * @return true if the attribute is binned
+   */
+  public boolean isBinned(int att) {
+    return m_Codes[att] != null;
+  }
+
+  /**
+   * Returns the number of buckets of a binned attribute, not counting the
+   * bucket for missing values.
+   *
+   * @param att the attribute index
+   * @return the number of buckets
+   */
+  public int numBins(int att) {
+    return m_SplitPoints[att].length + 1;
+  }
+
+  /**
+   * Returns the bucket of the given row, MISSING if the value is missing.
+   *
+   * @param row the row index
+   * @param att the attribute index
+   * @return the bucket
+   */
+  public int bin(int row, int att) {
+    return m_Codes[att][row] & 0xFF;
+  }
+
+  /**
+   * Returns the split point between a bucket and the next one. Values of the
+   * bucket are less than the split point, values of the next bucket are not.
+   *
+   * @param att the attribute index
+   * @param bin the bucket, less than numBins(att) - 1
+   * @return the split point
+   */
+  public double splitPoint(int att, int bin) {
+    return m_SplitPoints[att][bin];
+  }
+
+  /**
+   * Returns the number of entries per bucket in a histogram: the number of
+   * classes for a nominal class, otherwise three (sum, sum of squares,
+   * weight).
+   *
+   * @return the stride
+   */
+  public int stride() {
+    return m_Stride;
+  }
+
+  /**
+   * Computes the class histogram of a binned attribute over the given rows.
+   * The entries of bucket b start at position b * stride(); the bucket for
+   * missing values comes last, at position numBins(att) * stride().
+   *
+   * @param att the attribute index
+   * @param rows the row indices
+   * @param weights the weights of the rows
+   * @return the histogram
+   */
+  public double[] histogram(int att, int[] rows, double[] weights) {
+
+    byte[] codes = m_Codes[att];
+    int numBins = numBins(att);
+    double[] hist = new double[(numBins + 1) * m_Stride];
+    ColumnStore.Column classColumn = m_Store.classColumn();
+    boolean nominalClass = m_Store.header().classAttribute().isNominal();
+
+    for (int i = 0; i < rows.length; i++) {
+      int row = rows[i];
+      int bin = codes[row] & 0xFF;
+      if (bin == MISSING) {
+        bin = numBins;
+      }
+      double weight = weights[i];
+      if (nominalClass) {
+        hist[bin * m_Stride + (int) classColumn.value(row)] += weight;
+      } else {
+        double classVal = classColumn.value(row);
+        int pos = bin * NUMERIC_STRIDE;
+        hist[pos] += classVal * weight;
+        hist[pos + 1] += classVal * classVal * weight;
+        hist[pos + 2] += weight;
+      }
+    }
+
+    return hist;
+  }
+
+  /**
+   * Subtracts a histogram from another one, e.g., a sibling's histogram from
+   * the parent's. Entries that only differ from zero by rounding errors
+   * are set to zero, so that empty buckets stay empty.
+   *
+   * @param hist the histogram to subtract from, modified in place
+   * @param other the histogram to subtract
+   */
+  public void subtract(double[] hist, double[] other) {
+
+    boolean nominalClass = m_Store.header().classAttribute().isNominal();
+    for (int pos = 0; pos < hist.length; pos += m_Stride) {
+      if (nominalClass) {
+        for (int k = pos; k < pos + m_Stride; k++) {
+          double diff = hist[k] - other[k];
+          hist[k] = (diff <= 1e-10 * hist[k]) ? 0 : diff;
+        }
+      } else {
+        double weight = hist[pos + 2] - other[pos + 2];
+        if (weight <= 1e-10 * hist[pos + 2]) {
+          hist[pos] = 0;
+          hist[pos + 1] = 0;
+          hist[pos + 2] = 0;
+        } else {
+          hist[pos] -= other[pos];
+          hist[pos + 1] = Math.max(0, hist[pos + 1] - other[pos + 1]);
+          hist[pos + 2] = weight;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
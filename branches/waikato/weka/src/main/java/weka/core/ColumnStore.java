@@ -0,0 +1,626 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ColumnStore.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core;
+
+import java.io.Serializable;
+
+/**
+ * Column-major, primitive-backed copy of the values of a set of instances.
+ * Each attribute is held in a single primitive array: nominal attributes use
+ * byte or short arrays (depending on the number of labels), numeric attributes
+ * use double arrays, or float arrays if low precision storage has been
+ * requested. Instance weights are held in a separate array. <br/>
+ * <br/>
+ * Learners that scan the values of one attribute over many rows (e.g., split
+ * search in decision trees) can use the columns directly instead of going
+ * through one <code>Instance</code> object per row. A reusable {@link Row}
+ * view gives row-wise access without allocating per row.
+ *
+ * @version $Revision$
+ */
+public class ColumnStore implements Serializable, RevisionHandler {
+
+  /** for serialization */
+  private static final long serialVersionUID = -1263508624394702215L;
+
+  /** The value used to encode missing nominal values. */
+  protected static final int MISSING_NOMINAL = -1;
+
+  /** The header of the data */
+  protected Instances m_Header;
+
+  /** The columns, one per attribute */
+  protected Column[] m_Columns;
+
+  /** The instance weights */
+  protected double[] m_Weights;
+
+  /** The number of rows */
+  protected int m_NumRows;
+
+  /** Whether numeric values are stored with single precision */
+  protected boolean m_LowPrecision;
+
+  /**
+   * Abstract column of values of one attribute.
+   */
+  public abstract static class Column implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = 6296131582931262416L;
+
+    /**
+     * Returns the value in the given row. Missing values are returned as
+     * <code>Utils.missingValue()</code>.
+     *
+     * @param row the row index
+     * @return the value
+     */
+    public abstract double value(int row);
+
+    /**
+     * Whether the value in the given row is missing.
+     *
+     * @param row the row index
+     * @return true if the value is missing
+     */
+    public abstract boolean isMissing(int row);
+
+    /**
+     * Sets the value in the given row.
+     *
+     * @param row the row index
+     * @param value the value, possibly missing
+     */
+    protected abstract void set(int row, double value);
+
+    /**
+     * Copies the values of the given rows into the target array.
+     *
+     * @param rows the row indices
+     * @param from the first position in rows to copy (inclusive)
+     * @param to the last position in rows to copy (exclusive)
+     * @param target the array to copy into, starting at position 0
+     */
+    public void values(int[] rows, int from, int to, double[] target) {
+      for (int i = from; i < to; i++) {
+        target[i - from] = value(rows[i]);
+      }
+    }
+  }
+
+  /**
+   * Column holding double precision values.
+   */
+  protected static class DoubleColumn extends Column {
+
+    /** for serialization */
+    private static final long serialVersionUID = 3003585786245208394L;
+
+    /** the values */
+    protected double[] m_Values;
+
+    /**
+     * Initializes the column.
+     *
+     * @param numRows the number of rows
+     */
+    public DoubleColumn(int numRows) {
+      m_Values = new double[numRows];
+    }
+
+    @Override
+    public double value(int row) {
+      return m_Values[row];
+    }
+
+    @Override
+    public boolean isMissing(int row) {
+      return Double.isNaN(m_Values[row]);
+    }
+
+    @Override
+    protected void set(int row, double value) {
+      m_Values[row] = value;
+    }
+
+    @Override
+    public void values(int[] rows, int from, int to, double[] target) {
+      double[] values = m_Values;
+      for (int i = from; i < to; i++) {
+        target[i - from] = values[rows[i]];
+      }
+    }
+  }
+
+  /**
+   * Column holding single precision values.
+   */
+  protected static class FloatColumn extends Column {
+
+    /** for serialization */
+    private static final long serialVersionUID = -2400386185262196467L;
+
+    /** the values */
+    protected float[] m_Values;
+
+    /**
+     * Initializes the column.
+     *
+     * @param numRows the number of rows
+     */
+    public FloatColumn(int numRows) {
+      m_Values = new float[numRows];
+    }
+
+    @Override
+    public double value(int row) {
+      return m_Values[row];
+    }
+
+    @Override
+    public boolean isMissing(int row) {
+      return Float.isNaN(m_Values[row]);
+    }
+
+    @Override
+    protected void set(int row, double value) {
+      m_Values[row] = (float) value;
+    }
+
+    @Override
+    public void values(int[] rows, int from, int to, double[] target) {
+      float[] values = m_Values;
+      for (int i = from; i < to; i++) {
+        target[i - from] = values[rows[i]];
+      }
+    }
+  }
+
+  /**
+   * Column holding nominal values with at most Short.MAX_VALUE labels.
+   */
+  protected static class ShortColumn extends Column {
+
+    /** for serialization */
+    private static final long serialVersionUID = -5003180880934596404L;
+
+    /** the label indices */
+    protected short[] m_Values;
+
+    /**
+     * Initializes the column.
+     *
+     * @param numRows the number of rows
+     */
+    public ShortColumn(int numRows) {
+      m_Values = new short[numRows];
+    }
+
+    @Override
+    public double value(int row) {
+      short value = m_Values[row];
+      return (value == MISSING_NOMINAL) ? Utils.missingValue() : value;
+    }
+
+    @Override
+    public boolean isMissing(int row) {
+      return m_Values[row] == MISSING_NOMINAL;
+    }
+
+    @Override
+    protected void set(int row, double value) {
+      m_Values[row] = Utils.isMissingValue(value) ? MISSING_NOMINAL
+        : (short) value;
+    }
+  }
+
+  /**
+   * Column holding nominal values with at most Byte.MAX_VALUE labels.
+   */
+  protected static class ByteColumn extends Column {
+
+    /** for serialization */
+    private static final long serialVersionUID = 8457064612622484185L;
+
+    /** the label indices */
+    protected byte[] m_Values;
+
+    /**
+     * Initializes the column.
+     *
+     * @param numRows the number of rows
+     */
+    public ByteColumn(int numRows) {
+      m_Values = new byte[numRows];
+    }
+
+    @Override
+    public double value(int row) {
+      byte value = m_Values[row];
+      return (value == MISSING_NOMINAL) ? Utils.missingValue() : value;
+    }
+
+    @Override
+    public boolean isMissing(int row) {
+      return m_Values[row] == MISSING_NOMINAL;
+    }
+
+    @Override
+    protected void set(int row, double value) {
+      m_Values[row] = Utils.isMissingValue(value) ? MISSING_NOMINAL
+        : (byte) value;
+    }
+  }
+
+  /**
+   * Reusable view of a single row of the store. Moving the view to another row
+   * does not allocate.
+   */
+  public static class Row implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -3316911409592591788L;
+
+    /** the store the row belongs to */
+    protected ColumnStore m_Store;
+
+    /** the current row index */
+    protected int m_Index;
+
+    /**
+     * Initializes the view.
+     *
+     * @param store the store to view
+     */
+    public Row(ColumnStore store) {
+      m_Store = store;
+    }
+
+    /**
+     * Moves the view to the given row.
+     *
+     * @param index the row index
+     * @return this view
+     */
+    public Row moveTo(int index) {
+      m_Index = index;
+      return this;
+    }
+
+    /**
+     * Returns the current row index.
+     *
+     * @return the index
+     */
+    public int index() {
+      return m_Index;
+    }
+
+    /**
+     * Returns the value of the given attribute in the current row.
+     *
+     * @param att the attribute index
+     * @return the value
+     */
+    public double value(int att) {
+      return m_Store.m_Columns[att].value(m_Index);
+    }
+
+    /**
+     * Whether the value of the given attribute is missing in the current row.
+     *
+     * @param att the attribute index
+     * @return true if missing
+     */
+    public boolean isMissing(int att) {
+      return m_Store.m_Columns[att].isMissing(m_Index);
+    }
+
+    /**
+     * Returns the class value of the current row.
+     *
+     * @return the class value
+     */
+    public double classValue() {
+      return m_Store.classValue(m_Index);
+    }
+
+    /**
+     * Returns the weight of the current row.
+     *
+     * @return the weight
+     */
+    public double weight() {
+      return m_Store.m_Weights[m_Index];
+    }
+  }
+
+  /**
+   * Creates a store with double precision numeric columns.
+   *
+   * @param data the data to copy
+   */
+  public ColumnStore(Instances data) {
+    this(data, false);
+  }
+
+  /**
+   * Creates a store from the given data.
+   *
+   * @param data the data to copy
+   * @param lowPrecision whether to store numeric (non-date) attributes with
+   *          single precision
+   */
+  public ColumnStore(Instances data, boolean lowPrecision) {
+    m_Header = new Instances(data, 0);
+    m_NumRows = data.numInstances();
+    m_LowPrecision = lowPrecision;
+    m_Weights = new double[m_NumRows];
+    m_Columns = new Column[data.numAttributes()];
+    for (int j = 0; j < m_Columns.length; j++) {
+      m_Columns[j] = newColumn(data.attribute(j), m_NumRows, lowPrecision);
+    }
+
+    // Iterate over the stored values only, so that sparse instances
+    // are copied without touching their zeros
+    for (int i = 0; i < m_NumRows; i++) {
+      Instance inst = data.instance(i);
+      m_Weights[i] = inst.weight();
+      for (int p = 0; p < inst.numValues(); p++) {
+        m_Columns[inst.index(p)].set(i, inst.valueSparse(p));
+      }
+    }
+  }
+
+  /**
+   * Creates the most compact column suitable for the given attribute.
+   *
+   * @param att the attribute
+   * @param numRows the number of rows
+   * @param lowPrecision whether numeric values may use single precision
+   * @return the column
+   */
+  protected static Column newColumn(Attribute att, int numRows,
+    boolean lowPrecision) {
+
+    if (att.isNominal() && (att.numValues() <= Byte.MAX_VALUE)) {
+      return new ByteColumn(numRows);
+    }
+    if (att.isNominal() && (att.numValues() <= Short.MAX_VALUE)) {
+      return new ShortColumn(numRows);
+    }
+    if (lowPrecision && att.isNumeric() && !att.isDate()) {
+      return new FloatColumn(numRows);
+    }
+    return new DoubleColumn(numRows);
+  }
+
+  /**
+   * Returns the header of the data.
+   *
+   * @return the header (no instances)
+   */
+  public Instances header() {
+    return m_Header;
+  }
+
+  /**
+   * Returns the number of rows.
+   *
+   * @return the number of rows
+   */
+  public int numRows() {
+    return m_NumRows;
+  }
+
+  /**
+   * Returns the number of columns, i.e., attributes.
+   *
+   * @return the number of columns
+   */
+  public int numColumns() {
+    return m_Columns.length;
+  }
+
+  /**
+   * Whether numeric values are stored with single precision.
+   *
+   * @return true if low precision storage is used
+   */
+  public boolean isLowPrecision() {
+    return m_LowPrecision;
+  }
+
+  /**
+   * Returns the column for the given attribute.
+   *
+   * @param att the attribute index
+   * @return the column
+   */
+  public Column column(int att) {
+    return m_Columns[att];
+  }
+
+  /**
+   * Returns the column of the class attribute.
+   *
+   * @return the class column
+   * @throws UnassignedClassException if no class is set
+   */
+  public Column classColumn() {
+    if (m_Header.classIndex() < 0) {
+      throw new UnassignedClassException("Class index is negative (not set)!");
+    }
+    return m_Columns[m_Header.classIndex()];
+  }
+
+  /**
+   * Returns the value of an attribute in a row.
+   *
+   * @param row the row index
+   * @param att the attribute index
+   * @return the value
+   */
+  public double value(int row, int att) {
+    return m_Columns[att].value(row);
+  }
+
+  /**
+   * Whether the value of an attribute in a row is missing.
+   *
+   * @param row the row index
+   * @param att the attribute index
+   * @return true if missing
+   */
+  public boolean isMissing(int row, int att) {
+    return m_Columns[att].isMissing(row);
+  }
+
+  /**
+   * Returns the class value in a row.
+   *
+   * @param row the row index
+   * @return the class value
+   */
+  public double classValue(int row) {
+    return m_Columns[m_Header.classIndex()].value(row);
+  }
+
+  /**
+   * Returns the weight of a row.
+   *
+   * @param row the row index
+   * @return the weight
+   */
+  public double weight(int row) {
+    return m_Weights[row];
+  }
+
+  /**
+   * Returns the weights of all rows. The array is not copied.
+   *
+   * @return the weights
+   */
+  public double[] weights() {
+    return m_Weights;
+  }
+
+  /**
+   * Returns a view of the given row. If a view is supplied it is moved to the
+   * row and returned, otherwise a new view is created.
+   *
+   * @param index the row index
+   * @param reuse the view to reuse, may be null
+   * @return the view
+   */
+  public Row row(int index, Row reuse) {
+    if (reuse == null) {
+      reuse = new Row(this);
+    }
+    return reuse.moveTo(index);
+  }
+
+  /**
+   * Materializes a row as an instance with access to the header.
+   *
+   * @param row the row index
+   * @return the instance
+   */
+  public Instance instance(int row) {
+    double[] vals = new double[m_Columns.length];
+    for (int j = 0; j < vals.length; j++) {
+      vals[j] = m_Columns[j].value(row);
+    }
+    Instance result = new DenseInstance(m_Weights[row], vals);
+    result.setDataset(m_Header);
+    return result;
+  }
+
+  /**
+   * Calculates summary statistics on the values that appear in the given
+   * column, reading the column directly.
+   *
+   * @param att the attribute index
+   * @return an AttributeStats object with the statistics
+   */
+  public AttributeStats attributeStats(int att) {
+    AttributeStats result = new AttributeStats();
+    Attribute attribute = m_Header.attribute(att);
+    if (attribute.isNominal()) {
+      result.nominalCounts = new int[attribute.numValues()];
+      result.nominalWeights = new double[attribute.numValues()];
+    }
+    if (attribute.isNumeric()) {
+      result.numericStats = new weka.experiment.Stats();
+    }
+    result.totalCount = m_NumRows;
+
+    // Move the rows with missing values to the end
+    Column column = m_Columns[att];
+    int[] rows = new int[m_NumRows];
+    int numPresent = 0;
+    int last = m_NumRows;
+    for (int i = 0; i < m_NumRows; i++) {
+      if (column.isMissing(i)) {
+        rows[--last] = i;
+      } else {
+        rows[numPresent++] = i;
+      }
+    }
+    result.missingCount = m_NumRows - numPresent;
+
+    double[] vals = new double[numPresent];
+    column.values(rows, 0, numPresent, vals);
+    int[] sorted = Utils.sort(vals);
+
+    int currentCount = 0;
+    double currentWeight = 0;
+    double prev = Utils.missingValue();
+    for (int j = 0; j < numPresent; j++) {
+      double current = vals[sorted[j]];
+      if (current == prev) {
+        currentCount++;
+        currentWeight += m_Weights[rows[sorted[j]]];
+      } else {
+        result.addDistinct(prev, currentCount, currentWeight);
+        currentCount = 1;
+        currentWeight = m_Weights[rows[sorted[j]]];
+        prev = current;
+      }
+    }
+    result.addDistinct(prev, currentCount, currentWeight);
+    result.distinctCount--; // So we don't count "missing" as a value
+
+    return result;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
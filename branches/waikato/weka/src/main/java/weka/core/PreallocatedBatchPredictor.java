@@ -0,0 +1,48 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    PreallocatedBatchPredictor.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core;
+
+/**
+ * Interface for batch predictors that can write their predictions into an
+ * array supplied by the caller. Callers that score many batches (e.g.,
+ * evaluation on a large test set) can then reuse the same array for every
+ * batch instead of allocating one distribution per instance.
+ *
+ * @version $Revision$
+ */
+public interface PreallocatedBatchPredictor extends BatchPredictor {
+
+  /**
+   * Computes the class distributions of the given instances and stores them
+   * in the given array. The array must have at least as many rows as there
+   * are instances, and each row exactly as many entries as there are classes
+   * (one for a numeric class). Rows beyond the number of instances are left
+   * untouched.
+   *
+   * @param insts the instances to get predictions for
+   * @param result the array to store the distributions in, one row per
+   *          instance
+   * @throws Exception if a problem occurs
+   */
+  void distributionsForInstances(Instances insts, double[][] result)
+    throws Exception;
+}
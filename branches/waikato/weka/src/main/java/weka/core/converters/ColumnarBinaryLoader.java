@@ -0,0 +1,533 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ColumnarBinaryLoader.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core.converters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+/**
+ <!-- globalinfo-start -->
+ * Reads a file in the columnar binary format written by ColumnarBinarySaver. The file is memory-mapped rather than read, so opening a data set only parses the header and the column blocks are paged in by the operating system as they are accessed. Several processes reading the same file share the mapped pages through the page cache.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ * The file layout (all values big-endian) is:
+ * <pre>
+ * long    magic number
+ * int     format version
+ * int     length of the ARFF header in bytes
+ * byte[]  ARFF header (UTF-8)
+ * int     class index (-1 if not set)
+ * long    number of rows
+ * int     number of attributes
+ * byte    1 if a weight block is present, 0 otherwise
+ * byte[]  one column type per attribute
+ * padding to a multiple of 8 bytes
+ * weight block (doubles), if present, padded to a multiple of 8 bytes
+ * one fixed-width block per attribute, each padded to a multiple of 8 bytes
+ * </pre>
+ * Nominal attributes are stored as byte, short or int label indices (-1 for
+ * missing), numeric and date attributes as doubles (NaN for missing).
+ *
+ * @version $Revision$
+ * @see Loader
+ * @see ColumnarBinarySaver
+ */
+public class ColumnarBinaryLoader extends AbstractFileLoader implements
+  BatchConverter, IncrementalConverter {
+
+  /** for serialization */
+  private static final long serialVersionUID = 3880316375802385393L;
+
+  /** the file extension */
+  public static String FILE_EXTENSION = ".cbin";
+
+  /** the magic number at the start of the file ("WEKACOL1") */
+  public static final long MAGIC = 0x57454b41434f4c31L;
+
+  /** the version of the format */
+  public static final int VERSION = 1;
+
+  /** column type: label indices stored as bytes */
+  public static final byte TYPE_BYTE = 1;
+
+  /** column type: label indices stored as shorts */
+  public static final byte TYPE_SHORT = 2;
+
+  /** column type: label indices stored as ints */
+  public static final byte TYPE_INT = 3;
+
+  /** column type: values stored as doubles */
+  public static final byte TYPE_DOUBLE = 4;
+
+  /** the number of bits addressed by one mapped segment */
+  protected static final int SEGMENT_BITS = 30;
+
+  /** A fixed-width block of the file, mapped in segments of at most 1GB */
+  protected static class MappedBlock {
+
+    /** the mapped segments */
+    protected MappedByteBuffer[] m_Segments;
+
+    /** the column type */
+    protected byte m_Type;
+
+    /** the width of one value in bytes */
+    protected int m_Width;
+
+    /**
+     * Maps a block of the file.
+     *
+     * @param channel the channel of the file
+     * @param offset the offset of the block in the file
+     * @param numRows the number of values in the block
+     * @param type the column type
+     * @throws IOException if mapping fails
+     */
+    public MappedBlock(FileChannel channel, long offset, long numRows,
+      byte type) throws IOException {
+
+      m_Type = type;
+      m_Width = width(type);
+      long size = numRows * m_Width;
+      long segmentSize = 1L << SEGMENT_BITS;
+      int numSegments = (int) ((size + segmentSize - 1) / segmentSize);
+      m_Segments = new MappedByteBuffer[numSegments];
+      for (int i = 0; i < numSegments; i++) {
+        long start = i * segmentSize;
+        m_Segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset
+          + start, Math.min(segmentSize, size - start));
+      }
+    }
+
+    /**
+     * Returns the value in the given row. Widths divide the segment size, so
+     * a value never straddles two segments.
+     *
+     * @param row the row index
+     * @return the value, Utils.missingValue() if missing
+     */
+    public double value(long row) {
+      long pos = row * m_Width;
+      ByteBuffer segment = m_Segments[(int) (pos >>> SEGMENT_BITS)];
+      int offset = (int) (pos & ((1L << SEGMENT_BITS) - 1));
+      int index;
+      switch (m_Type) {
+      case TYPE_BYTE:
+        index = segment.get(offset);
+        break;
+      case TYPE_SHORT:
+        index = segment.getShort(offset);
+        break;
+      case TYPE_INT:
+        index = segment.getInt(offset);
+        break;
+      default:
+        return segment.getDouble(offset);
+      }
+      return (index < 0) ? Utils.missingValue() : index;
+    }
+  }
+
+  /** the file channel of the mapped file */
+  protected transient RandomAccessFile m_RandomAccessFile = null;
+
+  /** the weight block, null if all weights are 1 */
+  protected transient MappedBlock m_WeightBlock = null;
+
+  /** the column blocks */
+  protected transient MappedBlock[] m_Blocks = null;
+
+  /** the number of rows in the file */
+  protected long m_NumRows = 0;
+
+  /** the next row to return for incremental reading */
+  protected long m_CurrentRow = 0;
+
+  /**
+   * Returns a string describing this object
+   *
+   * @return a description of the loader suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String globalInfo() {
+    return "Reads a file in the columnar binary format written by "
+      + "ColumnarBinarySaver. The file is memory-mapped rather than read, "
+      + "so opening a data set only parses the header and the column blocks "
+      + "are paged in by the operating system as they are accessed. Several "
+      + "processes reading the same file share the mapped pages through the "
+      + "page cache.";
+  }
+
+  /**
+   * Returns the width in bytes of a value of the given column type.
+   *
+   * @param type the column type
+   * @return the width
+   */
+  public static int width(byte type) {
+    switch (type) {
+    case TYPE_BYTE:
+      return 1;
+    case TYPE_SHORT:
+      return 2;
+    case TYPE_INT:
+      return 4;
+    default:
+      return 8;
+    }
+  }
+
+  /**
+   * Rounds the given size up to a multiple of 8.
+   *
+   * @param size the size
+   * @return the padded size
+   */
+  public static long pad(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  /**
+   * Get the file extension used for this type of file
+   *
+   * @return the file extension
+   */
+  @Override
+  public String getFileExtension() {
+    return FILE_EXTENSION;
+  }
+
+  /**
+   * Gets all the file extensions used for this type of file
+   *
+   * @return the file extensions
+   */
+  @Override
+  public String[] getFileExtensions() {
+    return new String[] { getFileExtension() };
+  }
+
+  /**
+   * Returns a description of the file type.
+   *
+   * @return a short file description
+   */
+  @Override
+  public String getFileDescription() {
+    return "Columnar binary data files";
+  }
+
+  /**
+   * Resets the Loader ready to read a new data set or the same data set again.
+   *
+   * @throws IOException if something goes wrong
+   */
+  @Override
+  public void reset() throws IOException {
+    closeMapping();
+    m_structure = null;
+    setRetrieval(NONE);
+
+    if (m_File != null && !(new File(m_File).isDirectory())) {
+      setFile(new File(m_File));
+    }
+  }
+
+  /**
+   * Releases the mapped file.
+   *
+   * @throws IOException if closing the file fails
+   */
+  protected void closeMapping() throws IOException {
+    m_Blocks = null;
+    m_WeightBlock = null;
+    m_NumRows = 0;
+    m_CurrentRow = 0;
+    if (m_RandomAccessFile != null) {
+      m_RandomAccessFile.close();
+      m_RandomAccessFile = null;
+    }
+  }
+
+  /**
+   * Resets the Loader object and sets the source of the data set to be the
+   * supplied File object. The file is mapped, not read.
+   *
+   * @param file the source file.
+   * @throws IOException if an error occurs
+   */
+  @Override
+  public void setSource(File file) throws IOException {
+    File original = file;
+    m_structure = null;
+    setRetrieval(NONE);
+
+    if (file == null) {
+      throw new IOException("Source file object is null!");
+    }
+
+    map(file);
+
+    if (m_useRelativePath) {
+      try {
+        m_sourceFile = Utils.convertToRelativePath(original);
+        m_File = m_sourceFile.getPath();
+      } catch (Exception ex) {
+        m_sourceFile = original;
+        m_File = m_sourceFile.getPath();
+      }
+    } else {
+      m_sourceFile = original;
+      m_File = m_sourceFile.getPath();
+    }
+  }
+
+  /**
+   * Resets the Loader object and sets the source of the data set to be the
+   * supplied InputStream. A stream cannot be mapped, so it is copied to a
+   * temporary file first.
+   *
+   * @param in the source InputStream.
+   * @throws IOException if there is a problem with IO
+   */
+  @Override
+  public void setSource(InputStream in) throws IOException {
+    File tmpFile = File.createTempFile("weka", FILE_EXTENSION);
+    tmpFile.deleteOnExit();
+    OutputStream out = new FileOutputStream(tmpFile);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+
+    m_structure = null;
+    setRetrieval(NONE);
+    map(tmpFile);
+  }
+
+  /**
+   * Parses the header of the given file and maps its blocks.
+   *
+   * @param file the file to map
+   * @throws IOException if the file cannot be read or is not in the
+   *           expected format
+   */
+  protected void map(File file) throws IOException {
+    closeMapping();
+
+    m_RandomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      if (m_RandomAccessFile.readLong() != MAGIC) {
+        throw new IOException("Not a columnar binary file: " + file);
+      }
+      int version = m_RandomAccessFile.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported columnar binary format version "
+          + version + " in " + file);
+      }
+      byte[] header = new byte[m_RandomAccessFile.readInt()];
+      m_RandomAccessFile.readFully(header);
+      m_structure = new Instances(new StringReader(new String(header, "UTF-8")));
+      m_structure.setClassIndex(m_RandomAccessFile.readInt());
+      m_NumRows = m_RandomAccessFile.readLong();
+      int numAttributes = m_RandomAccessFile.readInt();
+      if (numAttributes != m_structure.numAttributes()) {
+        throw new IOException("Header and column count do not match in "
+          + file);
+      }
+      boolean hasWeights = (m_RandomAccessFile.readByte() == 1);
+      byte[] types = new byte[numAttributes];
+      m_RandomAccessFile.readFully(types);
+
+      FileChannel channel = m_RandomAccessFile.getChannel();
+      long offset = pad(m_RandomAccessFile.getFilePointer());
+      if (hasWeights) {
+        m_WeightBlock = new MappedBlock(channel, offset, m_NumRows,
+          TYPE_DOUBLE);
+        offset += pad(m_NumRows * width(TYPE_DOUBLE));
+      }
+      m_Blocks = new MappedBlock[numAttributes];
+      for (int j = 0; j < numAttributes; j++) {
+        m_Blocks[j] = new MappedBlock(channel, offset, m_NumRows, types[j]);
+        offset += pad(m_NumRows * width(types[j]));
+      }
+    } catch (IOException e) {
+      closeMapping();
+      m_structure = null;
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of rows in the mapped file.
+   *
+   * @return the number of rows
+   */
+  public long numRows() {
+    return m_NumRows;
+  }
+
+  /**
+   * Returns a value directly from the mapped file, without creating an
+   * instance.
+   *
+   * @param row the row index
+   * @param att the attribute index
+   * @return the value, Utils.missingValue() if missing
+   */
+  public double value(long row, int att) {
+    return m_Blocks[att].value(row);
+  }
+
+  /**
+   * Creates the instance for the given row.
+   *
+   * @param row the row index
+   * @return the instance
+   */
+  protected Instance makeInstance(long row) {
+    double[] vals = new double[m_Blocks.length];
+    for (int j = 0; j < vals.length; j++) {
+      vals[j] = m_Blocks[j].value(row);
+    }
+    double weight = (m_WeightBlock == null) ? 1.0 : m_WeightBlock.value(row);
+    Instance inst = new DenseInstance(weight, vals);
+    inst.setDataset(m_structure);
+    return inst;
+  }
+
+  /**
+   * Determines and returns (if possible) the structure (internally the header)
+   * of the data set as an empty set of instances.
+   *
+   * @return the structure of the data set as an empty set of Instances
+   * @throws IOException if an error occurs
+   */
+  @Override
+  public Instances getStructure() throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+
+    return new Instances(m_structure, 0);
+  }
+
+  /**
+   * Return the full data set. If the structure hasn't yet been determined by a
+   * call to getStructure then method should do so before processing the rest
+   * of the data set.
+   *
+   * @return the structure of the data set as an empty set of Instances
+   * @throws IOException if there is no source or parsing fails
+   */
+  @Override
+  public Instances getDataSet() throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+    if (getRetrieval() == INCREMENTAL) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+    if (m_NumRows > Integer.MAX_VALUE) {
+      throw new IOException("Data set has too many rows (" + m_NumRows
+        + ") to be loaded in batch mode, use incremental loading instead");
+    }
+    setRetrieval(BATCH);
+
+    Instances result = new Instances(m_structure, (int) m_NumRows);
+    for (long i = 0; i < m_NumRows; i++) {
+      result.add(makeInstance(i));
+    }
+
+    return result;
+  }
+
+  /**
+   * Read the data set incrementally---get the next instance in the data set or
+   * returns null if there are no more instances to get. If the structure
+   * hasn't yet been determined by a call to getStructure then method should do
+   * so before returning the next instance in the data set.
+   *
+   * @param structure ignored
+   * @return the next instance in the data set as an Instance object or null if
+   *         there are no more instances to be read
+   * @throws IOException if there is an error during parsing
+   */
+  @Override
+  public Instance getNextInstance(Instances structure) throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+    if (getRetrieval() == BATCH) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+    setRetrieval(INCREMENTAL);
+
+    if (m_CurrentRow >= m_NumRows) {
+      return null;
+    }
+
+    return makeInstance(m_CurrentRow++);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+
+  /**
+   * Main method.
+   *
+   * @param args should contain the name of an input file.
+   */
+  public static void main(String[] args) {
+    runFileLoader(new ColumnarBinaryLoader(), args);
+  }
+}
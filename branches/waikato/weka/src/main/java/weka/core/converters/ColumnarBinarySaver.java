@@ -0,0 +1,485 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ColumnarBinarySaver.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core.converters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import weka.core.Attribute;
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+/**
+ <!-- globalinfo-start -->
+ * Writes the instances in a columnar binary format: an ARFF header followed by one fixed-width block per attribute. Files in this format can be memory-mapped by ColumnarBinaryLoader. String and relational attributes are not supported.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ <!-- options-start -->
+ * Valid options are: <p/>
+ *
+ * <pre> -i &lt;the input file&gt;
+ * The input file</pre>
+ *
+ * <pre> -o &lt;the output file&gt;
+ * The output file</pre>
+ *
+ <!-- options-end -->
+ *
+ * @version $Revision$
+ * @see Saver
+ * @see ColumnarBinaryLoader
+ */
+public class ColumnarBinarySaver extends AbstractFileSaver implements
+  BatchConverter, IncrementalConverter {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -2934632181339380498L;
+
+  /** the output stream. */
+  protected DataOutputStream m_Output;
+
+  /** the column types of the current structure */
+  protected byte[] m_Types;
+
+  /** the temporary files holding the columns in incremental mode */
+  protected File[] m_TmpFiles;
+
+  /** the streams writing the temporary files in incremental mode */
+  protected DataOutputStream[] m_TmpOutputs;
+
+  /** the number of instances written in incremental mode */
+  protected long m_NumWritten;
+
+  /** whether an instance with weight other than 1 was written */
+  protected boolean m_HasWeights;
+
+  /** Constructor. */
+  public ColumnarBinarySaver() {
+    resetOptions();
+  }
+
+  /**
+   * Returns a string describing this Saver.
+   *
+   * @return a description of the Saver suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String globalInfo() {
+    return "Writes the instances in a columnar binary format: an ARFF header "
+      + "followed by one fixed-width block per attribute. Files in this "
+      + "format can be memory-mapped by ColumnarBinaryLoader. String and "
+      + "relational attributes are not supported.";
+  }
+
+  /**
+   * Returns a description of the file type.
+   *
+   * @return a short file description
+   */
+  @Override
+  public String getFileDescription() {
+    return "Columnar binary data files";
+  }
+
+  /**
+   * Resets the Saver.
+   */
+  @Override
+  public void resetOptions() {
+    super.resetOptions();
+    setFileExtension(ColumnarBinaryLoader.FILE_EXTENSION);
+  }
+
+  /**
+   * Returns the Capabilities of this saver.
+   *
+   * @return the capabilities of this object
+   * @see Capabilities
+   */
+  @Override
+  public Capabilities getCapabilities() {
+    Capabilities result = super.getCapabilities();
+
+    // attributes
+    result.enable(Capability.NOMINAL_ATTRIBUTES);
+    result.enable(Capability.NUMERIC_ATTRIBUTES);
+    result.enable(Capability.DATE_ATTRIBUTES);
+    result.enable(Capability.MISSING_VALUES);
+
+    // class
+    result.enable(Capability.NOMINAL_CLASS);
+    result.enable(Capability.NUMERIC_CLASS);
+    result.enable(Capability.DATE_CLASS);
+    result.enable(Capability.MISSING_CLASS_VALUES);
+    result.enable(Capability.NO_CLASS);
+
+    return result;
+  }
+
+  /**
+   * Resets the writer, setting writer and output stream to null.
+   */
+  @Override
+  public void resetWriter() {
+    super.resetWriter();
+
+    m_Output = null;
+    deleteTmpFiles();
+  }
+
+  /**
+   * Sets the destination output stream.
+   *
+   * @param output the output stream.
+   * @throws IOException throws an IOException if destination cannot be set
+   */
+  @Override
+  public void setDestination(OutputStream output) throws IOException {
+    super.setDestination(output);
+
+    m_Output = new DataOutputStream(new BufferedOutputStream(output));
+  }
+
+  /**
+   * Determines the most compact column type for the given attribute.
+   *
+   * @param att the attribute
+   * @return the column type
+   */
+  public static byte columnType(Attribute att) {
+    if (att.isNominal()) {
+      if (att.numValues() <= Byte.MAX_VALUE) {
+        return ColumnarBinaryLoader.TYPE_BYTE;
+      }
+      if (att.numValues() <= Short.MAX_VALUE) {
+        return ColumnarBinaryLoader.TYPE_SHORT;
+      }
+      return ColumnarBinaryLoader.TYPE_INT;
+    }
+    return ColumnarBinaryLoader.TYPE_DOUBLE;
+  }
+
+  /**
+   * Writes a single value with the given column type.
+   *
+   * @param out the stream to write to
+   * @param type the column type
+   * @param value the value, possibly missing
+   * @throws IOException if writing fails
+   */
+  protected static void writeValue(DataOutputStream out, byte type,
+    double value) throws IOException {
+
+    boolean missing = Utils.isMissingValue(value);
+    switch (type) {
+    case ColumnarBinaryLoader.TYPE_BYTE:
+      out.writeByte(missing ? -1 : (int) value);
+      break;
+    case ColumnarBinaryLoader.TYPE_SHORT:
+      out.writeShort(missing ? -1 : (int) value);
+      break;
+    case ColumnarBinaryLoader.TYPE_INT:
+      out.writeInt(missing ? -1 : (int) value);
+      break;
+    default:
+      out.writeDouble(missing ? Double.NaN : value);
+    }
+  }
+
+  /**
+   * Writes zero bytes until the given size is a multiple of 8.
+   *
+   * @param out the stream to write to
+   * @param size the number of bytes written so far
+   * @return the padded size
+   * @throws IOException if writing fails
+   */
+  protected static long writePadding(DataOutputStream out, long size)
+    throws IOException {
+
+    long padded = ColumnarBinaryLoader.pad(size);
+    for (long i = size; i < padded; i++) {
+      out.writeByte(0);
+    }
+    return padded;
+  }
+
+  /**
+   * Writes everything up to and including the padding before the first block.
+   *
+   * @param header the structure of the data
+   * @param numRows the number of rows
+   * @param hasWeights whether a weight block follows
+   * @throws IOException if writing fails
+   */
+  protected void writeHeader(Instances header, long numRows,
+    boolean hasWeights) throws IOException {
+
+    byte[] arff = new Instances(header, 0).toString().getBytes("UTF-8");
+    m_Output.writeLong(ColumnarBinaryLoader.MAGIC);
+    m_Output.writeInt(ColumnarBinaryLoader.VERSION);
+    m_Output.writeInt(arff.length);
+    m_Output.write(arff);
+    m_Output.writeInt(header.classIndex());
+    m_Output.writeLong(numRows);
+    m_Output.writeInt(header.numAttributes());
+    m_Output.writeByte(hasWeights ? 1 : 0);
+    m_Output.write(m_Types);
+    writePadding(m_Output, m_Output.size());
+  }
+
+  /**
+   * Determines the column types for the given structure.
+   *
+   * @param structure the structure of the data
+   * @throws IOException if an attribute type is not supported
+   */
+  protected void initTypes(Instances structure) throws IOException {
+    m_Types = new byte[structure.numAttributes()];
+    for (int j = 0; j < m_Types.length; j++) {
+      Attribute att = structure.attribute(j);
+      if (att.isString() || att.isRelational()) {
+        throw new IOException("Attribute '" + att.name()
+          + "' cannot be stored in a fixed-width column");
+      }
+      m_Types[j] = columnType(att);
+    }
+  }
+
+  /**
+   * Writes a Batch of instances.
+   *
+   * @throws IOException throws IOException if saving in batch mode is not
+   *           possible
+   */
+  @Override
+  public void writeBatch() throws IOException {
+    if (getRetrieval() == INCREMENTAL) {
+      throw new IOException("Batch and incremental saving cannot be mixed.");
+    }
+
+    Instances data = getInstances();
+    if (data == null) {
+      throw new IOException("No instances to save");
+    }
+
+    setRetrieval(BATCH);
+
+    if (m_Output == null) {
+      throw new IOException("No output for columnar binary file.");
+    }
+
+    setWriteMode(WRITE);
+    initTypes(data);
+
+    boolean hasWeights = false;
+    for (int i = 0; i < data.numInstances(); i++) {
+      if (data.instance(i).weight() != 1.0) {
+        hasWeights = true;
+        break;
+      }
+    }
+
+    writeHeader(data, data.numInstances(), hasWeights);
+    if (hasWeights) {
+      for (int i = 0; i < data.numInstances(); i++) {
+        m_Output.writeDouble(data.instance(i).weight());
+      }
+      writePadding(m_Output,
+        (long) data.numInstances() * ColumnarBinaryLoader.width(ColumnarBinaryLoader.TYPE_DOUBLE));
+    }
+    for (int j = 0; j < m_Types.length; j++) {
+      for (int i = 0; i < data.numInstances(); i++) {
+        writeValue(m_Output, m_Types[j], data.instance(i).value(j));
+      }
+      writePadding(m_Output,
+        (long) data.numInstances() * ColumnarBinaryLoader.width(m_Types[j]));
+    }
+
+    m_Output.flush();
+    m_Output.close();
+    setWriteMode(WAIT);
+    resetWriter();
+    setWriteMode(CANCEL);
+  }
+
+  /**
+   * Saves an instance incrementally. Structure has to be set by using the
+   * setStructure() method or setInstances() method. Since the number of rows
+   * is only known at the end, the columns are spooled to temporary files and
+   * copied into the output when the null instance is received.
+   *
+   * @param inst the instance to save
+   * @throws IOException throws IOEXception if an instance cannot be saved
+   *           incrementally.
+   */
+  @Override
+  public void writeIncremental(Instance inst) throws IOException {
+    int writeMode = getWriteMode();
+    Instances structure = getInstances();
+
+    if (getRetrieval() == BATCH || getRetrieval() == NONE) {
+      throw new IOException("Batch and incremental saving cannot be mixed.");
+    }
+
+    if (writeMode == WAIT) {
+      if (structure == null) {
+        setWriteMode(CANCEL);
+        if (inst != null) {
+          System.err
+            .println("Structure(Header Information) has to be set in advance");
+        }
+      } else {
+        setWriteMode(STRUCTURE_READY);
+      }
+      writeMode = getWriteMode();
+    }
+    if (writeMode == CANCEL) {
+      if (m_Output != null) {
+        m_Output.close();
+      }
+      cancel();
+    }
+    if (writeMode == STRUCTURE_READY) {
+      setWriteMode(WRITE);
+      if (m_Output == null) {
+        throw new IOException("No output for columnar binary file.");
+      }
+      initTypes(structure);
+      m_TmpFiles = new File[m_Types.length + 1];
+      m_TmpOutputs = new DataOutputStream[m_Types.length + 1];
+      for (int j = 0; j < m_TmpFiles.length; j++) {
+        m_TmpFiles[j] = File.createTempFile("weka", ".col");
+        m_TmpFiles[j].deleteOnExit();
+        m_TmpOutputs[j] = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(m_TmpFiles[j])));
+      }
+      m_NumWritten = 0;
+      m_HasWeights = false;
+      writeMode = getWriteMode();
+    }
+    if (writeMode == WRITE) {
+      if (structure == null) {
+        throw new IOException("No instances information available.");
+      }
+      if (inst != null) {
+        // last temporary file holds the weights
+        for (int j = 0; j < m_Types.length; j++) {
+          writeValue(m_TmpOutputs[j], m_Types[j], inst.value(j));
+        }
+        m_TmpOutputs[m_Types.length].writeDouble(inst.weight());
+        if (inst.weight() != 1.0) {
+          m_HasWeights = true;
+        }
+        m_NumWritten++;
+      } else {
+        // close
+        for (DataOutputStream tmp : m_TmpOutputs) {
+          tmp.close();
+        }
+        writeHeader(structure, m_NumWritten, m_HasWeights);
+        if (m_HasWeights) {
+          copyBlock(m_TmpFiles[m_Types.length]);
+        }
+        for (int j = 0; j < m_Types.length; j++) {
+          copyBlock(m_TmpFiles[j]);
+        }
+        m_Output.flush();
+        m_Output.close();
+        resetStructure();
+        resetWriter();
+      }
+    }
+  }
+
+  /**
+   * Appends a temporary column file to the output and pads it.
+   *
+   * @param file the temporary file
+   * @throws IOException if copying fails
+   */
+  protected void copyBlock(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(file)));
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        m_Output.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    writePadding(m_Output, file.length());
+  }
+
+  /**
+   * Closes and deletes any temporary column files.
+   */
+  protected void deleteTmpFiles() {
+    if (m_TmpFiles != null) {
+      for (int j = 0; j < m_TmpFiles.length; j++) {
+        try {
+          if (m_TmpOutputs[j] != null) {
+            m_TmpOutputs[j].close();
+          }
+        } catch (IOException e) {
+          // ignored, the file is deleted anyway
+        }
+        m_TmpFiles[j].delete();
+      }
+    }
+    m_TmpFiles = null;
+    m_TmpOutputs = null;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+
+  /**
+   * Main method.
+   *
+   * @param args should contain the options of a Saver.
+   */
+  public static void main(String[] args) {
+    runFileSaver(new ColumnarBinarySaver(), args);
+  }
+}
@@ -0,0 +1,405 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ItemListLoader.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.core.converters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ <!-- globalinfo-start -->
+ * Reads market basket data in a plain item list format: one transaction per line, with the items of the transaction separated by white space or commas. Lines starting with '%' are comments. Every distinct item becomes a binary {f,t} attribute, in the order in which the items first occur, and the transactions are returned as sparse instances. Determining the structure takes one pass over the file, which only keeps the item names in memory, so the transactions can be read incrementally, e.g., by FPGrowth, without loading the whole file.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ * @version $Revision$
+ * @see Loader
+ */
+public class ItemListLoader extends AbstractFileLoader implements
+  BatchConverter, IncrementalConverter {
+
+  /** for serialization */
+  private static final long serialVersionUID = -3467013958216427330L;
+
+  /** the file extension */
+  public static String FILE_EXTENSION = ".basket";
+
+  /** the file that is read (a temporary copy for stream sources) */
+  protected File m_ItemFile = null;
+
+  /** the reader for incremental reading */
+  protected transient BufferedReader m_Reader = null;
+
+  /** the attribute index of each item name */
+  protected HashMap<String, Integer> m_ItemIndices = null;
+
+  /**
+   * Returns a string describing this object
+   *
+   * @return a description of the loader suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String globalInfo() {
+    return "Reads market basket data in a plain item list format: one "
+      + "transaction per line, with the items of the transaction separated "
+      + "by white space or commas. Lines starting with '%' are comments. "
+      + "Every distinct item becomes a binary {f,t} attribute, in the order "
+      + "in which the items first occur, and the transactions are returned "
+      + "as sparse instances. Determining the structure takes one pass over "
+      + "the file, which only keeps the item names in memory, so the "
+      + "transactions can be read incrementally, e.g., by FPGrowth, without "
+      + "loading the whole file.";
+  }
+
+  /**
+   * Get the file extension used for this type of file
+   *
+   * @return the file extension
+   */
+  @Override
+  public String getFileExtension() {
+    return FILE_EXTENSION;
+  }
+
+  /**
+   * Gets all the file extensions used for this type of file
+   *
+   * @return the file extensions
+   */
+  @Override
+  public String[] getFileExtensions() {
+    return new String[] { getFileExtension() };
+  }
+
+  /**
+   * Returns a description of the file type.
+   *
+   * @return a short file description
+   */
+  @Override
+  public String getFileDescription() {
+    return "Item list (market basket) files";
+  }
+
+  /**
+   * Resets the Loader ready to read a new data set or the same data set again.
+   * The structure of the current file is kept, so reading it again does not
+   * require another pass to find the items.
+   *
+   * @throws IOException if something goes wrong
+   */
+  @Override
+  public void reset() throws IOException {
+    closeReader();
+    setRetrieval(NONE);
+
+    if (m_ItemFile != null && m_structure != null) {
+      m_Reader = new BufferedReader(new FileReader(m_ItemFile));
+    } else if (m_File != null && !(new File(m_File).isDirectory())) {
+      setFile(new File(m_File));
+    }
+  }
+
+  /**
+   * Closes the reader, if open.
+   *
+   * @throws IOException if closing the reader fails
+   */
+  protected void closeReader() throws IOException {
+    if (m_Reader != null) {
+      m_Reader.close();
+      m_Reader = null;
+    }
+  }
+
+  /**
+   * Resets the Loader object and sets the source of the data set to be the
+   * supplied File object. The file is read once to determine the items.
+   *
+   * @param file the source file.
+   * @throws IOException if an error occurs
+   */
+  @Override
+  public void setSource(File file) throws IOException {
+    File original = file;
+    m_structure = null;
+    setRetrieval(NONE);
+
+    if (file == null) {
+      throw new IOException("Source file object is null!");
+    }
+
+    open(file);
+
+    if (m_useRelativePath) {
+      try {
+        m_sourceFile = Utils.convertToRelativePath(original);
+        m_File = m_sourceFile.getPath();
+      } catch (Exception ex) {
+        m_sourceFile = original;
+        m_File = m_sourceFile.getPath();
+      }
+    } else {
+      m_sourceFile = original;
+      m_File = m_sourceFile.getPath();
+    }
+  }
+
+  /**
+   * Resets the Loader object and sets the source of the data set to be the
+   * supplied InputStream. The items have to be known before the first
+   * transaction is returned, so the stream is copied to a temporary file
+   * first.
+   *
+   * @param in the source InputStream.
+   * @throws IOException if there is a problem with IO
+   */
+  @Override
+  public void setSource(InputStream in) throws IOException {
+    File tmpFile = File.createTempFile("weka", FILE_EXTENSION);
+    tmpFile.deleteOnExit();
+    OutputStream out = new FileOutputStream(tmpFile);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+
+    m_structure = null;
+    setRetrieval(NONE);
+    open(tmpFile);
+  }
+
+  /**
+   * Splits a line of the file into its items.
+   *
+   * @param line the line
+   * @return the items, null if the line is a comment or empty
+   */
+  protected static String[] items(String line) {
+    line = line.trim();
+    if (line.length() == 0 || line.charAt(0) == '%') {
+      return null;
+    }
+
+    return line.split("[\\s,]+");
+  }
+
+  /**
+   * Determines the items in the given file and opens it for reading.
+   *
+   * @param file the file
+   * @throws IOException if the file cannot be read
+   */
+  protected void open(File file) throws IOException {
+    closeReader();
+
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    ArrayList<String> values = new ArrayList<String>();
+    values.add("f");
+    values.add("t");
+    m_ItemIndices = new HashMap<String, Integer>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] items = items(line);
+        if (items == null) {
+          continue;
+        }
+        for (String item : items) {
+          if (!m_ItemIndices.containsKey(item)) {
+            m_ItemIndices.put(item, atts.size());
+            atts.add(new Attribute(item, values));
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    String relation = file.getName();
+    if (relation.endsWith(FILE_EXTENSION)) {
+      relation = relation.substring(0, relation.length()
+        - FILE_EXTENSION.length());
+    }
+    m_structure = new Instances(relation, atts, 0);
+    m_ItemFile = file;
+    m_Reader = new BufferedReader(new FileReader(file));
+  }
+
+  /**
+   * Determines and returns (if possible) the structure (internally the header)
+   * of the data set as an empty set of instances.
+   *
+   * @return the structure of the data set as an empty set of Instances
+   * @throws IOException if an error occurs
+   */
+  @Override
+  public Instances getStructure() throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+
+    return new Instances(m_structure, 0);
+  }
+
+  /**
+   * Reads the next transaction from the file.
+   *
+   * @return the transaction, or null if there are no more transactions
+   * @throws IOException if reading fails or the file contains an item that
+   *           was not present when the structure was determined
+   */
+  protected Instance readTransaction() throws IOException {
+    if (m_Reader == null) {
+      return null;
+    }
+
+    String line;
+    String[] items = null;
+    while (items == null) {
+      line = m_Reader.readLine();
+      if (line == null) {
+        closeReader();
+        return null;
+      }
+      items = items(line);
+    }
+
+    int[] indices = new int[items.length];
+    for (int i = 0; i < items.length; i++) {
+      Integer index = m_ItemIndices.get(items[i]);
+      if (index == null) {
+        throw new IOException("Unknown item '" + items[i]
+          + "', the file has changed since it was opened");
+      }
+      indices[i] = index;
+    }
+    Arrays.sort(indices);
+    int numValues = 0;
+    for (int i = 0; i < indices.length; i++) {
+      if (numValues == 0 || indices[i] != indices[numValues - 1]) {
+        indices[numValues++] = indices[i];
+      }
+    }
+    double[] vals = new double[numValues];
+    Arrays.fill(vals, 1);
+
+    Instance result = new SparseInstance(1.0, vals,
+      Arrays.copyOf(indices, numValues), m_structure.numAttributes());
+    result.setDataset(m_structure);
+    return result;
+  }
+
+  /**
+   * Return the full data set. If the structure hasn't yet been determined by a
+   * call to getStructure then method should do so before processing the rest
+   * of the data set.
+   *
+   * @return the structure of the data set as an empty set of Instances
+   * @throws IOException if there is no source or parsing fails
+   */
+  @Override
+  public Instances getDataSet() throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+    if (getRetrieval() == INCREMENTAL) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+    setRetrieval(BATCH);
+
+    Instances result = new Instances(m_structure, 0);
+    Instance current;
+    while ((current = readTransaction()) != null) {
+      result.add(current);
+    }
+    result.compactify();
+
+    return result;
+  }
+
+  /**
+   * Read the data set incrementally---get the next instance in the data set or
+   * returns null if there are no more instances to get. If the structure
+   * hasn't yet been determined by a call to getStructure then method should do
+   * so before returning the next instance in the data set.
+   *
+   * @param structure ignored
+   * @return the next instance in the data set as an Instance object or null if
+   *         there are no more instances to be read
+   * @throws IOException if there is an error during parsing
+   */
+  @Override
+  public Instance getNextInstance(Instances structure) throws IOException {
+    if (m_structure == null) {
+      throw new IOException("No source has been specified");
+    }
+    if (getRetrieval() == BATCH) {
+      throw new IOException(
+        "Cannot mix getting Instances in both incremental and batch modes");
+    }
+    setRetrieval(INCREMENTAL);
+
+    return readTransaction();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+
+  /**
+   * Main method.
+   *
+   * @param args should contain the name of an input file.
+   */
+  public static void main(String[] args) {
+    runFileLoader(new ItemListLoader(), args);
+  }
+}
@@ -20,9 +20,12 @@
 
 package weka.core.neighboursearch;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import weka.core.EuclideanDistance;
 import weka.core.Instance;
@@ -240,7 +243,7 @@ public class BallTree
    *  distance as the kth nearest neighbour).
    */
   public Instances kNearestNeighbours(Instance target, int k) throws Exception {
-    MyHeap heap = new MyHeap(k);
+    MyHeap heap = reusableHeap(k);
 
     if(m_Stats!=null)
       m_Stats.searchStart();
@@ -253,28 +256,179 @@ public class BallTree
     Instances neighbours = new Instances(m_Instances, heap.totalSize());
     m_Distances = new double[heap.totalSize()];
     int [] indices = new int[heap.totalSize()];
-    int i=1; MyHeapElement h;
-    while(heap.noOfKthNearest()>0) {
-      h = heap.getKthNearest();
-      indices[indices.length-i] = h.index;
-      m_Distances[indices.length-i] = h.distance;
-      i++;
-    }
-    while(heap.size()>0) {
-      h = heap.get();
-      indices[indices.length-i] = h.index;
-      m_Distances[indices.length-i] = h.distance;
-      i++;
-    }
+    heap.extract(indices, m_Distances);
     
     m_DistanceFunction.postProcessDistances(m_Distances);
     
-    for(i=0; i<indices.length; i++)
+    for(int i=0; i<indices.length; i++)
       neighbours.add(m_Instances.instance(indices[i]));
     
     return neighbours;  // <---Check this statement
   }
 
+  /**
+   * Finds the k nearest neighbours of the supplied instance with a search
+   * of the BallTree, putting them into the given empty heap. The performance
+   * statistics are those of the tree.
+   * 
+   * @param target 	the instance to find the k nearest neighbours for
+   * @param heap	the empty heap to put the neighbours into
+   * @param k		the number of nearest neighbours to find
+   * @param stats	ignored, the tree updates its own statistics
+   * @throws Exception 	if the neighbours could not be found
+   */
+  protected void findNeighbours(Instance target, MyHeap heap, int k, 
+                                PerformanceStats stats) throws Exception {
+    nearestNeighbours(heap, m_Root, target, k);
+  }
+
+  /**
+   * Finds the k nearest neighbours of each of the supplied instances (see
+   * NearestNeighbourSearch.kNearestNeighbours(Instances, int, int[][], 
+   * double[][])). The instances are put into a ball tree of their own, which 
+   * is traversed together with this BallTree: a pair of a query ball and a 
+   * BallTree node is skipped if the distance between the two balls exceeds 
+   * the kth nearest distance of every query in the query ball. Disjoint 
+   * subtrees of the query tree are searched by different threads.
+   * 
+   * @param targets 	the instances to find the k nearest neighbours for
+   * @param k 		the number of nearest neighbours to find
+   * @param indices 	the array to store the neighbours' indices in
+   * @param distances 	the array to store the neighbours' distances in
+   * @throws Exception 	if the neighbours could not be found
+   */
+  public void kNearestNeighbours(Instances targets, int k,
+      int[][] indices, double[][] distances) throws Exception {
+    if(m_Instances==null)
+      throw new Exception("No instances supplied yet. Have to call " +
+                          "setInstances(instances) with a set of Instances " +
+                          "first.");
+    if(targets.numInstances()==0)
+      return;
+
+    final BatchQuery batch = new BatchQuery(targets, k, 
+                                  m_TreeConstructor.getMaxInstancesInLeaf());
+    calcQueryBalls(batch, batch.m_Root);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(final QueryNode part : batch.split(4 * numSlots())) {
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          nearestNeighbours(batch, part, m_Root, ballDistance(part, m_Root));
+          return null;
+        }
+      });
+    }
+    runTasks(tasks);
+    batch.extract(indices, distances);
+  }
+
+  /**
+   * Computes the pivot and the radius of a node of a query tree and of all 
+   * the nodes below it.
+   * 
+   * @param batch The batch query the query tree belongs to.
+   * @param query The query node.
+   * @throws Exception If the radius cannot be computed.
+   */
+  protected void calcQueryBalls(BatchQuery batch, QueryNode query) 
+                                                    throws Exception {
+    query.m_Pivot = BallNode.calcCentroidPivot(query.m_Start, query.m_End, 
+                                      batch.m_Order, batch.m_Targets);
+    query.m_Radius = BallNode.calcRadius(query.m_Start, query.m_End, 
+                                      batch.m_Order, batch.m_Targets, 
+                                      query.m_Pivot, m_DistanceFunction);
+    if(!query.isALeaf()) {
+      calcQueryBalls(batch, query.m_Left);
+      calcQueryBalls(batch, query.m_Right);
+    }
+  }
+
+  /**
+   * Returns the distance between the ball of a query node and that of a 
+   * BallTree node, i.e., a lower bound on the (unsquared) distance between 
+   * any of their instances. The distance is negative if the balls overlap.
+   * 
+   * @param query The query node.
+   * @param node The BallTree node.
+   * @return The distance between the balls.
+   * @throws Exception If the distance cannot be computed.
+   */
+  protected double ballDistance(QueryNode query, BallNode node) 
+                                                    throws Exception {
+    return m_DistanceFunction.distance(query.m_Pivot, node.getPivot())
+      - query.m_Radius - node.getRadius();
+  }
+
+  /** 
+   * Finds the nearest neighbours of the queries in a query node among the 
+   * instances of a BallTree node, updating the queries' heaps. Should not be 
+   * used by outside classes. They should instead use 
+   * kNearestNeighbours(Instances, int, int[][], double[][]).
+   * P.S.: The distances in the heaps are squared. 
+   * 
+   * @param batch The batch query.
+   * @param query The query node.
+   * @param node The BallTree node.
+   * @param distance The distance between the balls of the two nodes.
+   * @throws Exception If the structure of the BallTree is not correct, 
+   * or if there is some problem putting NNs in the heaps.
+   */
+  protected void nearestNeighbours(BatchQuery batch, QueryNode query, 
+                      BallNode node, double distance) throws Exception {
+    // The radii are not squared so need to take sqrt before comparison
+    if (Math.sqrt(query.m_Bound) < distance) {
+      return;
+    } else if (node.m_Left != null && node.m_Right == null 
+               || node.m_Left == null && node.m_Right != null) {
+      throw new Exception("Error: Only one leaf of the built ball tree is " + 
+                          "assigned. Please check code.");
+    } else if (query.isALeaf() && node.m_Left == null) {
+      for (int q = query.m_Start; q <= query.m_End; q++) {
+        Instance target = batch.m_Targets.instance(batch.m_Order[q]);
+        MyHeap heap = batch.m_Heaps[batch.m_Order[q]];
+        for (int i = node.m_Start; i <= node.m_End; i++) {
+          Instance inst = m_Instances.instance(m_InstList[i]);
+          if (target == inst) //for hold-one-out cross-validation
+            continue;
+          if (heap.totalSize() < batch.m_K) {
+            heap.put(m_InstList[i], m_DistanceFunction.distance(target, 
+                inst, Double.POSITIVE_INFINITY, null));
+          } else {
+            double kthDistance = heap.peekDistance();
+            double dist = m_DistanceFunction.distance(target, inst, 
+                kthDistance, null);
+            if (dist < kthDistance) {
+              heap.putBySubstitute(m_InstList[i], dist);
+            } else if (dist == kthDistance) {
+              heap.putKthNearest(m_InstList[i], dist);
+            }
+          }
+        }
+      }
+      batch.updateBound(query);
+    } else if (node.m_Left == null 
+               || (!query.isALeaf() 
+                   && query.numInstances() >= node.numInstances())) {
+      // descend in the query tree
+      nearestNeighbours(batch, query.m_Left, node, 
+                        ballDistance(query.m_Left, node));
+      nearestNeighbours(batch, query.m_Right, node, 
+                        ballDistance(query.m_Right, node));
+      query.m_Bound = Math.max(query.m_Left.m_Bound, query.m_Right.m_Bound);
+    } else {
+      // descend in the BallTree, nearer ball first
+      double leftDist = ballDistance(query, node.m_Left);
+      double rightDist = ballDistance(query, node.m_Right);
+      if (leftDist <= rightDist) {
+        nearestNeighbours(batch, query, node.m_Left, leftDist);
+        nearestNeighbours(batch, query, node.m_Right, rightDist);
+      } else {
+        nearestNeighbours(batch, query, node.m_Right, rightDist);
+        nearestNeighbours(batch, query, node.m_Left, leftDist);
+      }
+    }
+  }
+
   /** 
    * Does NN search according to Moore's method. 
    * Should not be used by outside classes. They should instead
@@ -297,7 +451,7 @@ public class BallTree
 
     // The radius is not squared so need to take sqrt before comparison
     if (distance > -0.000001
-        && Math.sqrt(heap.peek().distance) < distance - node.getRadius()) {
+        && Math.sqrt(heap.peekDistance()) < distance - node.getRadius()) {
       return;
     } else if (node.m_Left != null && node.m_Right != null) { // if node is not
                                                               // a leaf
@@ -349,12 +503,12 @@ public class BallTree
               .instance(m_InstList[i]), Double.POSITIVE_INFINITY, m_Stats);
           heap.put(m_InstList[i], distance);
         } else {
-          MyHeapElement head = heap.peek();
+          double kthDistance = heap.peekDistance();
           distance = m_DistanceFunction.distance(target, 
-              m_Instances.instance(m_InstList[i]), head.distance, m_Stats);
-          if (distance < head.distance) {
+              m_Instances.instance(m_InstList[i]), kthDistance, m_Stats);
+          if (distance < kthDistance) {
             heap.putBySubstitute(m_InstList[i], distance);
-          } else if (distance == head.distance) {
+          } else if (distance == kthDistance) {
             heap.putKthNearest(m_InstList[i], distance);
           }
         }//end else(heap.totalSize())
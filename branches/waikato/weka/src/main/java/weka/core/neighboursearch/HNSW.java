@@ -0,0 +1,1161 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    HNSW.java
+ *    Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.core.neighboursearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.TechnicalInformation;
+import weka.core.TechnicalInformation.Field;
+import weka.core.TechnicalInformation.Type;
+import weka.core.TechnicalInformationHandler;
+import weka.core.Utils;
+
+/**
+ <!-- globalinfo-start -->
+ * Class implementing an approximate nearest neighbour search with a hierarchical navigable small world (HNSW) graph. Every instance is a node of the graph and is linked to some of its nearest neighbours on each of its layers; the higher layers hold exponentially fewer nodes. A query descends greedily through the upper layers and then searches the bottom layer with a list of the best candidates. Unlike the trees, the search does not degrade with the number of attributes, but it is not guaranteed to find the exact nearest neighbours. A larger search list improves the recall at the expense of speed. Any distance function can be used.<br/>
+ * <br/>
+ * For more information see:<br/>
+ * <br/>
+ * Yu. A. Malkov, D. A. Yashunin (2020). Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs. IEEE Transactions on Pattern Analysis and Machine Intelligence. 42(4):824-836.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ <!-- technical-bibtex-start -->
+ * BibTeX:
+ * <pre>
+ * &#64;article{Malkov2020,
+ *    author = {Yu. A. Malkov and D. A. Yashunin},
+ *    journal = {IEEE Transactions on Pattern Analysis and Machine Intelligence},
+ *    number = {4},
+ *    pages = {824-836},
+ *    title = {Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs},
+ *    volume = {42},
+ *    year = {2020}
+ * }
+ * </pre>
+ * <p/>
+ <!-- technical-bibtex-end -->
+ *
+ <!-- options-start -->
+ * Valid options are: <p/>
+ *
+ * <pre> -M &lt;num&gt;
+ *  The maximum number of links of a node on the upper layers,
+ *  twice as many on the bottom layer.
+ *  (default: 16)</pre>
+ *
+ * <pre> -C &lt;num&gt;
+ *  The size of the candidate list while the graph is built.
+ *  (default: 200)</pre>
+ *
+ * <pre> -E &lt;num&gt;
+ *  The size of the candidate list of a query, at least k+1.
+ *  (default: 50)</pre>
+ *
+ * <pre> -S &lt;num&gt;
+ *  The seed for drawing the layers of the nodes.
+ *  (default: 1)</pre>
+ *
+ <!-- options-end -->
+ *
+ * @version $Revision$
+ */
+public class HNSW
+  extends NearestNeighbourSearch
+  implements TechnicalInformationHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -3162594618460921417L;
+
+  /** the maximum number of links of a node on the upper layers. */
+  protected int m_MaxConnections = 16;
+
+  /** the size of the candidate list while the graph is built. */
+  protected int m_EfConstruction = 200;
+
+  /** the size of the candidate list of a query. */
+  protected int m_EfSearch = 50;
+
+  /** the seed for drawing the layers of the nodes. */
+  protected int m_Seed = 1;
+
+  /** the random number generator for the layers, kept for updates. */
+  protected Random m_Random;
+
+  /** the number of nodes in the graph. */
+  protected int m_NumNodes = 0;
+
+  /** the top layer of each node. */
+  protected int[] m_Levels;
+
+  /**
+   * the links of each node on each of its layers. The arrays of a layer are
+   * replaced, never changed, while the node's lock (the array of its layers)
+   * is held.
+   */
+  protected int[][][] m_Links;
+
+  /** the node the queries start from, on the top layer. */
+  protected int m_EntryPoint = -1;
+
+  /** the top layer of the graph. */
+  protected int m_MaxLevel = -1;
+
+  /** Array holding the distances of the nearest neighbours. It is filled up
+   *  both by nearestNeighbour() and kNearestNeighbours().
+   */
+  protected double[] m_Distances;
+
+  /**
+   * the idle searchers, which the threads that query or build the graph take
+   * and return. Unlike thread-local searchers, they do not keep the graph
+   * reachable from threads that outlive it.
+   */
+  protected transient volatile ConcurrentLinkedQueue<Searcher> m_Searchers;
+
+  /**
+   * A queue of candidate nodes, smallest distance first, in parallel
+   * primitive arrays.
+   *
+   * @version $Revision$
+   */
+  protected class CandidateQueue {
+
+    /** the nodes, from position 1. */
+    int[] m_Index = new int[64];
+
+    /** the distances of the nodes, from position 1. */
+    double[] m_Distance = new double[64];
+
+    /** the number of nodes in the queue. */
+    int m_Size = 0;
+
+    /**
+     * empties the queue.
+     */
+    public void clear() {
+      m_Size = 0;
+    }
+
+    /**
+     * returns the size of the queue.
+     *
+     * @return the size
+     */
+    public int size() {
+      return m_Size;
+    }
+
+    /**
+     * returns the smallest distance in the queue.
+     *
+     * @return the smallest distance
+     */
+    public double peekDistance() {
+      return m_Distance[1];
+    }
+
+    /**
+     * adds a node to the queue.
+     *
+     * @param index the node
+     * @param distance the distance of the node
+     */
+    public void add(int index, double distance) {
+      if (m_Size + 1 >= m_Index.length) {
+        int[] indices = new int[2 * m_Index.length];
+        double[] distances = new double[indices.length];
+        System.arraycopy(m_Index, 0, indices, 0, m_Index.length);
+        System.arraycopy(m_Distance, 0, distances, 0, m_Distance.length);
+        m_Index = indices;
+        m_Distance = distances;
+      }
+      int i = ++m_Size;
+      while (i > 1 && m_Distance[i / 2] > distance) {
+        m_Index[i] = m_Index[i / 2];
+        m_Distance[i] = m_Distance[i / 2];
+        i = i / 2;
+      }
+      m_Index[i] = index;
+      m_Distance[i] = distance;
+    }
+
+    /**
+     * removes the node with the smallest distance from the queue.
+     *
+     * @return the node
+     */
+    public int poll() {
+      int result = m_Index[1];
+      int index = m_Index[m_Size];
+      double distance = m_Distance[m_Size];
+      m_Size--;
+      int i = 1;
+      while (2 * i <= m_Size) {
+        int child = 2 * i;
+        if (child + 1 <= m_Size && m_Distance[child + 1] < m_Distance[child]) {
+          child++;
+        }
+        if (m_Distance[child] >= distance) {
+          break;
+        }
+        m_Index[i] = m_Index[child];
+        m_Distance[i] = m_Distance[child];
+        i = child;
+      }
+      m_Index[i] = index;
+      m_Distance[i] = distance;
+      return result;
+    }
+  }
+
+  /**
+   * The buffers of a search of the graph. A searcher is used by one thread
+   * at a time and returned to the graph's pool afterwards, so that its
+   * buffers are reused by the next search.
+   *
+   * @version $Revision$
+   */
+  protected class Searcher {
+
+    /** the mark of each node visited by the current search. */
+    int[] m_Visited = new int[0];
+
+    /** the mark of the current search. */
+    int m_Mark = 0;
+
+    /** the candidates to expand. */
+    CandidateQueue m_Candidates = new CandidateQueue();
+
+    /** the best nodes found so far, largest distance on top. */
+    MyHeap m_Results = new MyHeap(1);
+
+    /** the nodes found by the last search, sorted by distance. */
+    int[] m_ResultIndices = new int[0];
+
+    /** the distances of the nodes found by the last search. */
+    double[] m_ResultDistances = new double[0];
+
+    /** the node to start a query from. */
+    int[] m_Entry = new int[1];
+
+    /**
+     * Finds the ef nearest nodes of an instance on a layer, starting from the
+     * given nodes. The nodes found are stored in m_ResultIndices and
+     * m_ResultDistances, sorted by distance.
+     *
+     * @param target the instance to search for
+     * @param entries the nodes to start from
+     * @param numEntries the number of nodes to start from
+     * @param ef the number of nodes to find
+     * @param level the layer to search
+     * @param stats the performance statistics to update, null for none
+     * @return the number of nodes found
+     * @throws Exception if the distances cannot be computed
+     */
+    public int searchLayer(Instance target, int[] entries, int numEntries,
+      int ef, int level, PerformanceStats stats) throws Exception {
+
+      if (m_Visited.length < m_NumNodes) {
+        m_Visited = new int[Math.max(m_NumNodes, 2 * m_Visited.length)];
+        m_Mark = 0;
+      }
+      if (m_Mark == Integer.MAX_VALUE) {
+        Arrays.fill(m_Visited, 0);
+        m_Mark = 0;
+      }
+      m_Mark++;
+      m_Candidates.clear();
+      m_Results.reset(ef);
+
+      for (int i = 0; i < numEntries; i++) {
+        int node = entries[i];
+        m_Visited[node] = m_Mark;
+        double distance = distance(target, node, Double.POSITIVE_INFINITY,
+          stats);
+        m_Candidates.add(node, distance);
+        if (m_Results.size() < ef) {
+          m_Results.put(node, distance);
+        } else if (distance < m_Results.peekDistance()) {
+          m_Results.remove();
+          m_Results.put(node, distance);
+        }
+      }
+
+      while (m_Candidates.size() > 0) {
+        if (m_Results.size() == ef
+          && m_Candidates.peekDistance() > m_Results.peekDistance()) {
+          break;
+        }
+        int[] links = links(m_Candidates.poll(), level);
+        for (int node : links) {
+          if (m_Visited[node] == m_Mark) {
+            continue;
+          }
+          m_Visited[node] = m_Mark;
+          if (m_Results.size() < ef) {
+            double distance = distance(target, node, Double.POSITIVE_INFINITY,
+              stats);
+            m_Candidates.add(node, distance);
+            m_Results.put(node, distance);
+          } else {
+            double bound = m_Results.peekDistance();
+            double distance = distance(target, node, bound, stats);
+            if (distance < bound) {
+              m_Candidates.add(node, distance);
+              m_Results.remove();
+              m_Results.put(node, distance);
+            }
+          }
+        }
+      }
+
+      if (m_ResultIndices.length < m_Results.size()) {
+        m_ResultIndices = new int[m_Results.size()];
+        m_ResultDistances = new double[m_Results.size()];
+      }
+      return m_Results.extract(m_ResultIndices, m_ResultDistances);
+    }
+  }
+
+  /**
+   * Constructor. Needs setInstances(Instances) to be called before the class
+   * is usable.
+   */
+  public HNSW() {
+    super();
+  }
+
+  /**
+   * Constructor that builds the graph on the supplied set of instances.
+   *
+   * @param insts the instances to use
+   * @throws Exception if the graph cannot be built
+   */
+  public HNSW(Instances insts) throws Exception {
+    this();
+    setInstances(insts);
+  }
+
+  /**
+   * Returns a string describing this nearest neighbour search algorithm.
+   *
+   * @return a description of the algorithm for displaying in the
+   *         explorer/experimenter gui
+   */
+  @Override
+  public String globalInfo() {
+    return "Class implementing an approximate nearest neighbour search with "
+      + "a hierarchical navigable small world (HNSW) graph. Every instance is "
+      + "a node of the graph and is linked to some of its nearest neighbours "
+      + "on each of its layers; the higher layers hold exponentially fewer "
+      + "nodes. A query descends greedily through the upper layers and then "
+      + "searches the bottom layer with a list of the best candidates. Unlike "
+      + "the trees, the search does not degrade with the number of "
+      + "attributes, but it is not guaranteed to find the exact nearest "
+      + "neighbours. A larger search list improves the recall at the expense "
+      + "of speed. Any distance function can be used.\n\n"
+      + "For more information see:\n\n"
+      + getTechnicalInformation().toString();
+  }
+
+  /**
+   * Returns an instance of a TechnicalInformation object, containing detailed
+   * information about the technical background of this class, e.g., paper
+   * reference or book this class is based on.
+   *
+   * @return the technical information about this class
+   */
+  @Override
+  public TechnicalInformation getTechnicalInformation() {
+    TechnicalInformation result;
+
+    result = new TechnicalInformation(Type.ARTICLE);
+    result.setValue(Field.AUTHOR, "Yu. A. Malkov and D. A. Yashunin");
+    result.setValue(Field.YEAR, "2020");
+    result.setValue(Field.TITLE, "Efficient and robust approximate nearest "
+      + "neighbor search using Hierarchical Navigable Small World graphs");
+    result.setValue(Field.JOURNAL,
+      "IEEE Transactions on Pattern Analysis and Machine Intelligence");
+    result.setValue(Field.VOLUME, "42");
+    result.setValue(Field.NUMBER, "4");
+    result.setValue(Field.PAGES, "824-836");
+
+    return result;
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    Vector<Option> result = new Vector<Option>();
+
+    result.add(new Option(
+      "\tThe maximum number of links of a node on the upper layers,\n"
+        + "\ttwice as many on the bottom layer.\n" + "\t(default: 16)", "M", 1,
+      "-M <num>"));
+
+    result.add(new Option(
+      "\tThe size of the candidate list while the graph is built.\n"
+        + "\t(default: 200)", "C", 1, "-C <num>"));
+
+    result.add(new Option(
+      "\tThe size of the candidate list of a query, at least k+1.\n"
+        + "\t(default: 50)", "E", 1, "-E <num>"));
+
+    result.add(new Option("\tThe seed for drawing the layers of the nodes.\n"
+      + "\t(default: 1)", "S", 1, "-S <num>"));
+
+    result.addAll(Collections.list(super.listOptions()));
+
+    return result.elements();
+  }
+
+  /**
+   * Parses a given list of options.
+   * <p/>
+   *
+   <!-- options-start -->
+   * Valid options are: <p/>
+   *
+   * <pre> -M &lt;num&gt;
+   *  The maximum number of links of a node on the upper layers,
+   *  twice as many on the bottom layer.
+   *  (default: 16)</pre>
+   *
+   * <pre> -C &lt;num&gt;
+   *  The size of the candidate list while the graph is built.
+   *  (default: 200)</pre>
+   *
+   * <pre> -E &lt;num&gt;
+   *  The size of the candidate list of a query, at least k+1.
+   *  (default: 50)</pre>
+   *
+   * <pre> -S &lt;num&gt;
+   *  The seed for drawing the layers of the nodes.
+   *  (default: 1)</pre>
+   *
+   <!-- options-end -->
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  @Override
+  public void setOptions(String[] options) throws Exception {
+    super.setOptions(options);
+
+    String optionString = Utils.getOption('M', options);
+    if (optionString.length() != 0) {
+      setMaxConnections(Integer.parseInt(optionString));
+    } else {
+      setMaxConnections(16);
+    }
+
+    optionString = Utils.getOption('C', options);
+    if (optionString.length() != 0) {
+      setEfConstruction(Integer.parseInt(optionString));
+    } else {
+      setEfConstruction(200);
+    }
+
+    optionString = Utils.getOption('E', options);
+    if (optionString.length() != 0) {
+      setEfSearch(Integer.parseInt(optionString));
+    } else {
+      setEfSearch(50);
+    }
+
+    optionString = Utils.getOption('S', options);
+    if (optionString.length() != 0) {
+      setSeed(Integer.parseInt(optionString));
+    } else {
+      setSeed(1);
+    }
+
+    Utils.checkForRemainingOptions(options);
+  }
+
+  /**
+   * Gets the current settings.
+   *
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  @Override
+  public String[] getOptions() {
+    Vector<String> result = new Vector<String>();
+
+    Collections.addAll(result, super.getOptions());
+
+    result.add("-M");
+    result.add("" + getMaxConnections());
+
+    result.add("-C");
+    result.add("" + getEfConstruction());
+
+    result.add("-E");
+    result.add("" + getEfSearch());
+
+    result.add("-S");
+    result.add("" + getSeed());
+
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String maxConnectionsTipText() {
+    return "The maximum number of links of a node on the upper layers (at "
+      + "least 2), twice as many on the bottom layer. More links improve the "
+      + "recall, but make the graph larger and slower to build.";
+  }
+
+  /**
+   * Sets the maximum number of links of a node on the upper layers.
+   *
+   * @param value the maximum number of links, at least 2
+   */
+  public void setMaxConnections(int value) {
+    if (value >= 2) {
+      m_MaxConnections = value;
+    } else {
+      System.err.println("The maximum number of links has to be at least 2!");
+    }
+  }
+
+  /**
+   * Gets the maximum number of links of a node on the upper layers.
+   *
+   * @return the maximum number of links
+   */
+  public int getMaxConnections() {
+    return m_MaxConnections;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String efConstructionTipText() {
+    return "The size of the candidate list while the graph is built. A larger "
+      + "list gives a better graph, but takes longer to build.";
+  }
+
+  /**
+   * Sets the size of the candidate list while the graph is built.
+   *
+   * @param value the size of the list, at least 1
+   */
+  public void setEfConstruction(int value) {
+    if (value >= 1) {
+      m_EfConstruction = value;
+    } else {
+      System.err.println("The size of the candidate list has to be at least 1!");
+    }
+  }
+
+  /**
+   * Gets the size of the candidate list while the graph is built.
+   *
+   * @return the size of the list
+   */
+  public int getEfConstruction() {
+    return m_EfConstruction;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String efSearchTipText() {
+    return "The size of the candidate list of a query; at least k+1 is used "
+      + "for k neighbours. A larger list improves the recall, but slows the "
+      + "queries down. Takes effect without rebuilding the graph.";
+  }
+
+  /**
+   * Sets the size of the candidate list of a query.
+   *
+   * @param value the size of the list, at least 1
+   */
+  public void setEfSearch(int value) {
+    if (value >= 1) {
+      m_EfSearch = value;
+    } else {
+      System.err.println("The size of the candidate list has to be at least 1!");
+    }
+  }
+
+  /**
+   * Gets the size of the candidate list of a query.
+   *
+   * @return the size of the list
+   */
+  public int getEfSearch() {
+    return m_EfSearch;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String seedTipText() {
+    return "The seed for drawing the layers of the nodes. The graph only "
+      + "depends on the seed if it is built by a single thread.";
+  }
+
+  /**
+   * Sets the seed for drawing the layers of the nodes.
+   *
+   * @param value the seed
+   */
+  public void setSeed(int value) {
+    m_Seed = value;
+  }
+
+  /**
+   * Gets the seed for drawing the layers of the nodes.
+   *
+   * @return the seed
+   */
+  public int getSeed() {
+    return m_Seed;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  @Override
+  public String numExecutionSlotsTipText() {
+    return "The number of threads to use for building the graph and for batch "
+      + "queries (0 = one per processor).";
+  }
+
+  /**
+   * Returns the nearest instance in the current neighbourhood to the supplied
+   * instance.
+   *
+   * @param target The instance to find the nearest neighbour for.
+   * @return the nearest instance
+   * @throws Exception if the nearest neighbour could not be found.
+   */
+  @Override
+  public Instance nearestNeighbour(Instance target) throws Exception {
+    return (kNearestNeighbours(target, 1)).instance(0);
+  }
+
+  /**
+   * Returns k nearest instances in the current neighbourhood to the supplied
+   * instance, as far as the graph finds them. Exactly k instances are
+   * returned if there are enough, even if there are several at the kth
+   * distance.
+   *
+   * @param target The instance to find the k nearest neighbours for.
+   * @param k The number of nearest neighbours to find.
+   * @return the k nearest neighbors
+   * @throws Exception if the neighbours could not be found.
+   */
+  @Override
+  public Instances kNearestNeighbours(Instance target, int k) throws Exception {
+    if (m_Instances == null) {
+      throw new Exception("No instances supplied yet. Have to call "
+        + "setInstances(instances) with a set of Instances first.");
+    }
+
+    if (m_Stats != null) {
+      m_Stats.searchStart();
+    }
+    MyHeap heap = reusableHeap(k);
+    findNeighbours(target, heap, k, m_Stats);
+    if (m_Stats != null) {
+      m_Stats.searchFinish();
+    }
+
+    Instances neighbours = new Instances(m_Instances, heap.totalSize());
+    m_Distances = new double[heap.totalSize()];
+    int[] indices = extractNeighbours(heap, m_Distances);
+    m_DistanceFunction.postProcessDistances(m_Distances);
+    for (int index : indices) {
+      neighbours.add(m_Instances.instance(index));
+    }
+
+    return neighbours;
+  }
+
+  /**
+   * Finds the k nearest neighbours of the supplied instance in the graph and
+   * puts them into the given empty heap. The search descends greedily
+   * through the upper layers and searches the bottom layer with a candidate
+   * list of at least k+1 nodes. The instance itself is skipped if it is part
+   * of the neighbourhood (for hold-one-out cross-validation). Several threads
+   * can search at once, each with a searcher from the pool.
+   *
+   * @param target the instance to find the k nearest neighbours for
+   * @param heap the empty heap to put the neighbours into
+   * @param k the number of nearest neighbours to find
+   * @param stats the performance statistics to update, null for none
+   * @throws Exception if the neighbours could not be found
+   */
+  @Override
+  protected void findNeighbours(Instance target, MyHeap heap, int k,
+    PerformanceStats stats) throws Exception {
+    if (m_EntryPoint < 0) {
+      return;
+    }
+
+    Searcher searcher = acquireSearcher();
+    try {
+      searcher.m_Entry[0] = m_EntryPoint;
+      for (int level = m_MaxLevel; level > 0; level--) {
+        searcher.searchLayer(target, searcher.m_Entry, 1, 1, level, stats);
+        searcher.m_Entry[0] = searcher.m_ResultIndices[0];
+      }
+      int count = searcher.searchLayer(target, searcher.m_Entry, 1,
+        Math.max(m_EfSearch, k + 1), 0, stats);
+
+      for (int i = 0; i < count && heap.size() < k; i++) {
+        int index = searcher.m_ResultIndices[i];
+        if (target == m_Instances.instance(index)) {
+          continue;
+        }
+        heap.put(index, searcher.m_ResultDistances[i]);
+      }
+    } finally {
+      releaseSearcher(searcher);
+    }
+  }
+
+  /**
+   * Returns the distances of the k nearest neighbours. The kNearestNeighbours
+   * or nearestNeighbour must always be called before calling this function.
+   *
+   * @return array containing the distances of the nearestNeighbours. The
+   *         length and ordering of the array is the same as that of the
+   *         instances returned by nearestNeighbour functions.
+   * @throws Exception if called before calling kNearestNeighbours or
+   *           nearestNeighbours.
+   */
+  @Override
+  public double[] getDistances() throws Exception {
+    if (m_Distances == null) {
+      throw new Exception("No distances available. Please call either "
+        + "kNearestNeighbours or nearestNeighbours first.");
+    }
+    return m_Distances;
+  }
+
+  /**
+   * Builds the graph on the given set of instances. After the first two
+   * nodes, the instances are inserted by getNumExecutionSlots() threads,
+   * which lock the nodes whose links they change.
+   *
+   * @param insts the instances to build the graph on
+   * @throws Exception if the graph cannot be built
+   */
+  @Override
+  public void setInstances(Instances insts) throws Exception {
+    super.setInstances(insts);
+    m_DistanceFunction.setInstances(insts);
+
+    final int numInstances = insts.numInstances();
+    m_Random = new Random(m_Seed);
+    m_Levels = new int[numInstances];
+    m_Links = new int[numInstances][][];
+    for (int i = 0; i < numInstances; i++) {
+      addNode(i);
+    }
+    m_NumNodes = numInstances;
+    m_EntryPoint = -1;
+    m_MaxLevel = -1;
+    m_Searchers = null;
+
+    // the first insertions run on their own, as they may initialize the
+    // distance function
+    final AtomicInteger next = new AtomicInteger(Math.min(2, numInstances));
+    Searcher first = acquireSearcher();
+    try {
+      for (int i = 0; i < next.get(); i++) {
+        insert(i, first);
+      }
+    } finally {
+      releaseSearcher(first);
+    }
+
+    int numSlots = Math.min(numSlots(), numInstances - next.get());
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int s = 0; s < numSlots; s++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          Searcher searcher = acquireSearcher();
+          try {
+            int i;
+            while ((i = next.getAndIncrement()) < numInstances) {
+              insert(i, searcher);
+            }
+          } finally {
+            releaseSearcher(searcher);
+          }
+          return null;
+        }
+      });
+    }
+    runTasks(tasks);
+  }
+
+  /**
+   * Adds the instances appended to the neighbourhood since the last update
+   * to the graph, which is not rebuilt. The supplied instance has to be the
+   * last one of the neighbourhood, as the set of instances is passed by
+   * reference and should already have it.
+   *
+   * @param ins The instance to add. Usually this is the instance that is
+   *          added to our neighbourhood i.e. the training instances.
+   * @throws Exception if the given instances are null
+   */
+  @Override
+  public void update(Instance ins) throws Exception {
+    if (m_Instances == null) {
+      throw new Exception("No instances supplied yet. Cannot update without "
+        + "supplying a set of instances first.");
+    }
+    m_DistanceFunction.update(ins);
+
+    int numInstances = m_Instances.numInstances();
+    if (m_Levels.length < numInstances) {
+      int capacity = Math.max(numInstances, 2 * m_Levels.length);
+      int[] levels = new int[capacity];
+      int[][][] links = new int[capacity][][];
+      System.arraycopy(m_Levels, 0, levels, 0, m_NumNodes);
+      System.arraycopy(m_Links, 0, links, 0, m_NumNodes);
+      m_Levels = levels;
+      m_Links = links;
+    }
+    Searcher searcher = acquireSearcher();
+    try {
+      while (m_NumNodes < numInstances) {
+        addNode(m_NumNodes);
+        m_NumNodes++;
+        insert(m_NumNodes - 1, searcher);
+      }
+    } finally {
+      releaseSearcher(searcher);
+    }
+  }
+
+  /**
+   * Adds the given instance info. This implementation updates the range
+   * datastructures of the DistanceFunction class.
+   *
+   * @param ins The instance to add the information of. Usually this is the
+   *          test instance supplied to update the range of attributes in the
+   *          distance function.
+   */
+  @Override
+  public void addInstanceInfo(Instance ins) {
+    if (m_Instances != null) {
+      m_DistanceFunction.update(ins);
+    }
+  }
+
+  /**
+   * Draws the top layer of a new node and allocates its (empty) links.
+   *
+   * @param node the node
+   */
+  protected void addNode(int node) {
+    double scale = 1.0 / Math.log(m_MaxConnections);
+    int level = (int) (-Math.log(1.0 - m_Random.nextDouble()) * scale);
+    m_Levels[node] = level;
+    m_Links[node] = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      m_Links[node][l] = new int[0];
+    }
+  }
+
+  /**
+   * Inserts a node into the graph: finds its nearest nodes on each of its
+   * layers, links it to a selection of them and links them back.
+   *
+   * @param node the node to insert
+   * @param searcher the searcher to use, not used by other threads meanwhile
+   * @throws Exception if the distances cannot be computed
+   */
+  protected void insert(int node, Searcher searcher) throws Exception {
+    Instance target = m_Instances.instance(node);
+    int level = m_Levels[node];
+    int entryPoint;
+    int maxLevel;
+    synchronized (this) {
+      entryPoint = m_EntryPoint;
+      maxLevel = m_MaxLevel;
+      if (entryPoint < 0) {
+        m_EntryPoint = node;
+        m_MaxLevel = level;
+        return;
+      }
+    }
+
+    int[] entries = new int[] { entryPoint };
+    for (int l = maxLevel; l > level; l--) {
+      searcher.searchLayer(target, entries, 1, 1, l, null);
+      entries[0] = searcher.m_ResultIndices[0];
+    }
+
+    int numEntries = 1;
+    for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+      int count = searcher.searchLayer(target, entries, numEntries,
+        m_EfConstruction, l, null);
+      entries = new int[count];
+      System.arraycopy(searcher.m_ResultIndices, 0, entries, 0, count);
+      numEntries = count;
+
+      int[] selected = selectNeighbours(entries, searcher.m_ResultDistances,
+        count, maxLinks(l));
+      // other threads may have linked to the node meanwhile
+      int[] added;
+      synchronized (m_Links[node]) {
+        added = m_Links[node][l];
+        m_Links[node][l] = selected;
+      }
+      for (int neighbour : selected) {
+        connect(neighbour, node, l);
+      }
+      for (int neighbour : added) {
+        connect(node, neighbour, l);
+      }
+    }
+
+    if (level > maxLevel) {
+      synchronized (this) {
+        if (level > m_MaxLevel) {
+          m_EntryPoint = node;
+          m_MaxLevel = level;
+        }
+      }
+    }
+  }
+
+  /**
+   * Links a node to another one on a layer, unless it is linked already. If
+   * the node has too many links then, its links are selected anew from the
+   * old ones and the new one.
+   *
+   * @param node the node to add the link to
+   * @param neighbour the node to link to
+   * @param level the layer
+   * @throws Exception if the distances cannot be computed
+   */
+  protected void connect(int node, int neighbour, int level) throws Exception {
+    synchronized (m_Links[node]) {
+      int[] links = m_Links[node][level];
+      for (int link : links) {
+        if (link == neighbour) {
+          return;
+        }
+      }
+      int[] candidates = new int[links.length + 1];
+      System.arraycopy(links, 0, candidates, 0, links.length);
+      candidates[links.length] = neighbour;
+
+      if (candidates.length <= maxLinks(level)) {
+        m_Links[node][level] = candidates;
+        return;
+      }
+
+      Instance target = m_Instances.instance(node);
+      double[] distances = new double[candidates.length];
+      for (int i = 0; i < candidates.length; i++) {
+        distances[i] = distance(target, candidates[i],
+          Double.POSITIVE_INFINITY, null);
+      }
+      int[] order = Utils.sort(distances);
+      int[] sortedCandidates = new int[candidates.length];
+      double[] sortedDistances = new double[candidates.length];
+      for (int i = 0; i < order.length; i++) {
+        sortedCandidates[i] = candidates[order[i]];
+        sortedDistances[i] = distances[order[i]];
+      }
+      m_Links[node][level] = selectNeighbours(sortedCandidates,
+        sortedDistances, candidates.length, maxLinks(level));
+    }
+  }
+
+  /**
+   * Selects the nodes to link to from candidates sorted by distance, with the
+   * heuristic of the paper: a candidate is taken if it is nearer to the node
+   * than to every candidate taken before, so that the links point in
+   * different directions. The list is filled up with the nearest skipped
+   * candidates.
+   *
+   * @param candidates the candidates, sorted by distance
+   * @param distances the distances of the candidates to the node
+   * @param count the number of candidates
+   * @param maxLinks the maximum number of links
+   * @return the nodes to link to
+   * @throws Exception if the distances cannot be computed
+   */
+  protected int[] selectNeighbours(int[] candidates, double[] distances,
+    int count, int maxLinks) throws Exception {
+    int[] selected = new int[Math.min(count, maxLinks)];
+    int numSelected = 0;
+    int[] skipped = new int[count];
+    int numSkipped = 0;
+
+    for (int i = 0; i < count && numSelected < selected.length; i++) {
+      Instance candidate = m_Instances.instance(candidates[i]);
+      boolean keep = true;
+      for (int j = 0; j < numSelected && keep; j++) {
+        keep = distance(candidate, selected[j], distances[i], null) >= distances[i];
+      }
+      if (keep) {
+        selected[numSelected++] = candidates[i];
+      } else {
+        skipped[numSkipped++] = candidates[i];
+      }
+    }
+    for (int i = 0; i < numSkipped && numSelected < selected.length; i++) {
+      selected[numSelected++] = skipped[i];
+    }
+
+    return selected;
+  }
+
+  /**
+   * Returns the maximum number of links of a node on a layer.
+   *
+   * @param level the layer
+   * @return the maximum number of links
+   */
+  protected int maxLinks(int level) {
+    return (level == 0) ? 2 * m_MaxConnections : m_MaxConnections;
+  }
+
+  /**
+   * Returns the current links of a node on a layer.
+   *
+   * @param node the node
+   * @param level the layer
+   * @return the links, which must not be changed
+   */
+  protected int[] links(int node, int level) {
+    synchronized (m_Links[node]) {
+      return m_Links[node][level];
+    }
+  }
+
+  /**
+   * Returns the (not post-processed) distance between an instance and a node.
+   *
+   * @param target the instance
+   * @param node the node
+   * @param cutOffValue the distance above which the computation may stop
+   * @param stats the performance statistics to update, null for none
+   * @return the distance
+   */
+  protected double distance(Instance target, int node, double cutOffValue,
+    PerformanceStats stats) {
+    if (stats != null) {
+      stats.incrPointCount();
+    }
+    return m_DistanceFunction.distance(target, m_Instances.instance(node),
+      cutOffValue, stats);
+  }
+
+  /**
+   * Returns the pool of idle searchers, creating it if necessary.
+   *
+   * @return the pool
+   */
+  protected ConcurrentLinkedQueue<Searcher> searchers() {
+    ConcurrentLinkedQueue<Searcher> searchers = m_Searchers;
+    if (searchers == null) {
+      synchronized (this) {
+        if (m_Searchers == null) {
+          m_Searchers = new ConcurrentLinkedQueue<Searcher>();
+        }
+        searchers = m_Searchers;
+      }
+    }
+    return searchers;
+  }
+
+  /**
+   * Takes an idle searcher from the pool, or creates one if all are in use.
+   * It has to be returned with releaseSearcher(Searcher).
+   *
+   * @return the searcher
+   */
+  protected Searcher acquireSearcher() {
+    Searcher result = searchers().poll();
+    if (result == null) {
+      result = new Searcher();
+    }
+    return result;
+  }
+
+  /**
+   * Returns a searcher to the pool.
+   *
+   * @param searcher the searcher, no longer used by the current thread
+   */
+  protected void releaseSearcher(Searcher searcher) {
+    searchers().offer(searcher);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return the revision
+   */
+  @Override
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision$");
+  }
+}
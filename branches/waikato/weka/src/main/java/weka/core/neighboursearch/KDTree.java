@@ -21,10 +21,14 @@
 
 package weka.core.neighboursearch;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
+import weka.core.DenseInstance;
 import weka.core.DistanceFunction;
 import weka.core.EuclideanDistance;
 import weka.core.Instance;
@@ -322,12 +326,12 @@ public class KDTree
               .instance(m_InstList[idx]), Double.POSITIVE_INFINITY, m_Stats);
           heap.put(m_InstList[idx], distance);
         } else {
-          MyHeapElement temp = heap.peek();
+          double kthDistance = heap.peekDistance();
           distance = m_EuclideanDistance.distance(target, m_Instances
-              .instance(m_InstList[idx]), temp.distance, m_Stats);
-          if (distance < temp.distance) {
+              .instance(m_InstList[idx]), kthDistance, m_Stats);
+          if (distance < kthDistance) {
             heap.putBySubstitute(m_InstList[idx], distance);
-          } else if (distance == temp.distance) {
+          } else if (distance == kthDistance) {
             heap.putKthNearest(m_InstList[idx], distance);
           }
         }// end else heap.size==k
@@ -362,7 +366,7 @@ public class KDTree
         double distanceToSplitPlane = distanceToParents
             + m_EuclideanDistance.sqDifference(node.m_SplitDim, target
                 .value(node.m_SplitDim), node.m_SplitValue);
-        if (heap.peek().distance >= distanceToSplitPlane) {
+        if (heap.peekDistance() >= distanceToSplitPlane) {
           findNearestNeighbours(target, further, k, heap, distanceToSplitPlane);
         }
       }// end else
@@ -386,30 +390,16 @@ public class KDTree
     if (m_Stats != null)
       m_Stats.searchStart();
 
-    MyHeap heap = new MyHeap(k);
+    MyHeap heap = reusableHeap(k);
     findNearestNeighbours(target, m_Root, k, heap, 0.0);
 
     if (m_Stats != null)
       m_Stats.searchFinish();
 
-    Instances neighbours = new Instances(m_Instances, (heap.size() + heap
-        .noOfKthNearest()));
-    m_DistanceList = new double[heap.size() + heap.noOfKthNearest()];
-    int[] indices = new int[heap.size() + heap.noOfKthNearest()];
-    int i = indices.length - 1;
-    MyHeapElement h;
-    while (heap.noOfKthNearest() > 0) {
-      h = heap.getKthNearest();
-      indices[i] = h.index;
-      m_DistanceList[i] = h.distance;
-      i--;
-    }
-    while (heap.size() > 0) {
-      h = heap.get();
-      indices[i] = h.index;
-      m_DistanceList[i] = h.distance;
-      i--;
-    }
+    Instances neighbours = new Instances(m_Instances, heap.totalSize());
+    m_DistanceList = new double[heap.totalSize()];
+    int[] indices = new int[m_DistanceList.length];
+    heap.extract(indices, m_DistanceList);
     m_DistanceFunction.postProcessDistances(m_DistanceList);
 
     for (int idx = 0; idx < indices.length; idx++) {
@@ -418,6 +408,172 @@ public class KDTree
 
     return neighbours;
   }
+
+  /**
+   * Finds the k nearest neighbours of the supplied instance with a search
+   * of the KDTree, putting them into the given empty heap. The performance
+   * statistics are those of the tree.
+   * 
+   * @param target the instance to find the k nearest neighbours for
+   * @param heap the empty heap to put the neighbours into
+   * @param k the number of nearest neighbours to find
+   * @param stats ignored, the tree updates its own statistics
+   * @throws Exception if the neighbours could not be found
+   */
+  protected void findNeighbours(Instance target, MyHeap heap, int k,
+      PerformanceStats stats) throws Exception {
+    checkMissing(target);
+    findNearestNeighbours(target, m_Root, k, heap, 0.0);
+  }
+
+  /**
+   * Finds the k nearest neighbours of each of the supplied instances (see
+   * NearestNeighbourSearch.kNearestNeighbours(Instances, int, int[][],
+   * double[][])). The instances are put into a tree of their own, which is
+   * traversed together with the KDTree: a pair of a query node and a KDTree
+   * node is skipped if the distance between their bounding boxes exceeds the
+   * kth nearest distance of every query in the query node. Disjoint subtrees
+   * of the query tree are searched by different threads.
+   * 
+   * @param targets the instances to find the k nearest neighbours for
+   * @param k the number of nearest neighbours to find
+   * @param indices the array to store the neighbours' indices in
+   * @param distances the array to store the neighbours' distances in
+   * @throws Exception if the neighbours could not be found
+   */
+  public void kNearestNeighbours(Instances targets, int k,
+      int[][] indices, double[][] distances) throws Exception {
+    if (m_Instances == null)
+      throw new Exception("No instances supplied yet. Have to call "
+          + "setInstances(instances) with a set of Instances first.");
+    checkMissing(targets);
+    if (targets.numInstances() == 0)
+      return;
+
+    final BatchQuery batch = new BatchQuery(targets, k, m_MaxInstInLeaf);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (final QueryNode part : batch.split(4 * numSlots())) {
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          Instance lower = new DenseInstance(m_Instances.numAttributes());
+          Instance upper = new DenseInstance(m_Instances.numAttributes());
+          lower.setDataset(m_Instances);
+          upper.setDataset(m_Instances);
+          findNearestNeighbours(batch, part, m_Root,
+              minDistance(part, m_Root, lower, upper), lower, upper);
+          return null;
+        }
+      });
+    }
+    runTasks(tasks);
+    batch.extract(indices, distances);
+  }
+
+  /**
+   * Finds the nearest neighbours of the queries in a query node among the
+   * instances of a KDTree node, updating the queries' heaps. NOTE: This
+   * method should not be used from outside this class. Outside classes
+   * should call kNearestNeighbours(Instances, int, int[][], double[][]).
+   * 
+   * @param batch the batch query
+   * @param query the query node
+   * @param node the KDTree node
+   * @param distance the (squared) distance between the bounding boxes of the
+   *          two nodes
+   * @param lower a scratch instance for computing box distances
+   * @param upper another scratch instance for computing box distances
+   * @throws Exception if the nearest neighbours could not be found
+   */
+  protected void findNearestNeighbours(BatchQuery batch, QueryNode query,
+      KDTreeNode node, double distance, Instance lower, Instance upper)
+      throws Exception {
+    if (distance > query.m_Bound)
+      return;
+
+    if (query.isALeaf() && node.isALeaf()) {
+      for (int q = query.m_Start; q <= query.m_End; q++) {
+        Instance target = batch.m_Targets.instance(batch.m_Order[q]);
+        MyHeap heap = batch.m_Heaps[batch.m_Order[q]];
+        for (int idx = node.m_Start; idx <= node.m_End; idx++) {
+          Instance inst = m_Instances.instance(m_InstList[idx]);
+          if (target == inst) // for hold-one-out cross-validation
+            continue;
+          if (heap.size() < batch.m_K) {
+            heap.put(m_InstList[idx], m_EuclideanDistance.distance(target,
+                inst, Double.POSITIVE_INFINITY, null));
+          } else {
+            double kthDistance = heap.peekDistance();
+            double dist = m_EuclideanDistance.distance(target, inst,
+                kthDistance, null);
+            if (dist < kthDistance) {
+              heap.putBySubstitute(m_InstList[idx], dist);
+            } else if (dist == kthDistance) {
+              heap.putKthNearest(m_InstList[idx], dist);
+            }
+          }
+        }
+      }
+      batch.updateBound(query);
+    } else if (node.isALeaf()
+        || (!query.isALeaf() && query.numInstances() >= node.numInstances())) {
+      // descend in the query tree
+      findNearestNeighbours(batch, query.m_Left, node,
+          minDistance(query.m_Left, node, lower, upper), lower, upper);
+      findNearestNeighbours(batch, query.m_Right, node,
+          minDistance(query.m_Right, node, lower, upper), lower, upper);
+      query.m_Bound = Math.max(query.m_Left.m_Bound, query.m_Right.m_Bound);
+    } else {
+      // descend in the KDTree, nearer child first
+      double leftDistance = minDistance(query, node.m_Left, lower, upper);
+      double rightDistance = minDistance(query, node.m_Right, lower, upper);
+      if (leftDistance <= rightDistance) {
+        findNearestNeighbours(batch, query, node.m_Left, leftDistance, lower,
+            upper);
+        findNearestNeighbours(batch, query, node.m_Right, rightDistance,
+            lower, upper);
+      } else {
+        findNearestNeighbours(batch, query, node.m_Right, rightDistance,
+            lower, upper);
+        findNearestNeighbours(batch, query, node.m_Left, leftDistance, lower,
+            upper);
+      }
+    }
+  }
+
+  /**
+   * Returns the (squared) distance between the bounding box of a query node
+   * and that of a KDTree node, i.e., a lower bound on the distance between
+   * any of their instances. Only numeric attributes contribute, others are
+   * treated as if they were equal.
+   * 
+   * @param query the query node
+   * @param node the KDTree node
+   * @param lower a scratch instance, set to the corner of one box
+   * @param upper a scratch instance, set to the corner of the other box
+   * @return the distance between the boxes
+   * @throws Exception if the distance cannot be computed
+   */
+  protected double minDistance(QueryNode query, KDTreeNode node,
+      Instance lower, Instance upper) throws Exception {
+    final int classIdx = m_Instances.classIndex();
+    for (int i = 0; i < m_Instances.numAttributes(); i++) {
+      if (i == classIdx || !m_Instances.attribute(i).isNumeric()) {
+        lower.setValue(i, 0);
+        upper.setValue(i, 0);
+      } else if (query.m_Ranges[i][MAX] < node.m_NodeRanges[i][MIN]) {
+        lower.setValue(i, query.m_Ranges[i][MAX]);
+        upper.setValue(i, node.m_NodeRanges[i][MIN]);
+      } else if (query.m_Ranges[i][MIN] > node.m_NodeRanges[i][MAX]) {
+        lower.setValue(i, node.m_NodeRanges[i][MAX]);
+        upper.setValue(i, query.m_Ranges[i][MIN]);
+      } else {
+        lower.setValue(i, query.m_Ranges[i][MIN]);
+        upper.setValue(i, query.m_Ranges[i][MIN]);
+      }
+    }
+    return m_EuclideanDistance.distance(lower, upper,
+        Double.POSITIVE_INFINITY, null);
+  }
   
 
   /**
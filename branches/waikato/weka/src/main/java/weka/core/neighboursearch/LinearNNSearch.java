@@ -201,24 +201,52 @@ public class LinearNNSearch
    * @throws Exception  if the neighbours could not be found.
    */
   public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
-  
-    //debug
-    boolean print=false;
 
     if(m_Stats!=null)
       m_Stats.searchStart();
  
-    MyHeap heap = new MyHeap(kNN);
+    MyHeap heap = reusableHeap(kNN);
+    findNeighbours(target, heap, kNN, m_Stats);
+    
+    Instances neighbours = new Instances(m_Instances, heap.totalSize());
+    m_Distances = new double[heap.totalSize()];
+    int [] indices = extractNeighbours(heap, m_Distances);
+    
+    m_DistanceFunction.postProcessDistances(m_Distances);
+    
+    for(int k=0; k<indices.length; k++) {
+      neighbours.add(m_Instances.instance(indices[k]));
+    }
+    
+    if(m_Stats!=null)
+      m_Stats.searchFinish();
+    
+    return neighbours;    
+  }
+  
+  /**
+   * Finds the k nearest neighbours of the supplied instance and puts them
+   * into the given empty heap, by comparing it with every instance in the 
+   * neighbourhood. Skips identical instances if requested. Batch queries use
+   * this method too, with the instances shared among several threads.
+   *  
+   * @param target 	The instance to find the k nearest neighbours for.
+   * @param heap	the empty heap to put the neighbours into
+   * @param kNN		The number of nearest neighbours to find.
+   * @param stats	the performance statistics to update, null for none
+   * @throws Exception  if the neighbours could not be found.
+   */
+  protected void findNeighbours(Instance target, MyHeap heap, int kNN, 
+      PerformanceStats stats) throws Exception {
+  
     double distance; int firstkNN=0;
     for(int i=0; i<m_Instances.numInstances(); i++) {
       if(target == m_Instances.instance(i)) //for hold-one-out cross-validation
         continue;
-      if(m_Stats!=null) 
-        m_Stats.incrPointCount();
+      if(stats!=null) 
+        stats.incrPointCount();
       if(firstkNN<kNN) {
-        if(print)
-          System.out.println("K(a): "+(heap.size()+heap.noOfKthNearest()));
-        distance = m_DistanceFunction.distance(target, m_Instances.instance(i), Double.POSITIVE_INFINITY, m_Stats);
+        distance = m_DistanceFunction.distance(target, m_Instances.instance(i), Double.POSITIVE_INFINITY, stats);
         if(distance == 0.0 && m_SkipIdentical)
           if(i<m_Instances.numInstances()-1)
             continue;
@@ -228,49 +256,19 @@ public class LinearNNSearch
         firstkNN++;
       }
       else {
-        MyHeapElement temp = heap.peek();
-        if(print)
-          System.out.println("K(b): "+(heap.size()+heap.noOfKthNearest()));
-        distance = m_DistanceFunction.distance(target, m_Instances.instance(i), temp.distance, m_Stats);
+        double kthDistance = heap.peekDistance();
+        distance = m_DistanceFunction.distance(target, m_Instances.instance(i), kthDistance, stats);
         if(distance == 0.0 && m_SkipIdentical)
           continue;
-        if(distance < temp.distance) {
+        if(distance < kthDistance) {
           heap.putBySubstitute(i, distance);
         }
-        else if(distance == temp.distance) {
+        else if(distance == kthDistance) {
           heap.putKthNearest(i, distance);
         }
 
       }
     }
-    
-    Instances neighbours = new Instances(m_Instances, (heap.size()+heap.noOfKthNearest()));
-    m_Distances = new double[heap.size()+heap.noOfKthNearest()];
-    int [] indices = new int[heap.size()+heap.noOfKthNearest()];
-    int i=1; MyHeapElement h;
-    while(heap.noOfKthNearest()>0) {
-      h = heap.getKthNearest();
-      indices[indices.length-i] = h.index;
-      m_Distances[indices.length-i] = h.distance;
-      i++;
-    }
-    while(heap.size()>0) {
-      h = heap.get();
-      indices[indices.length-i] = h.index;
-      m_Distances[indices.length-i] = h.distance;
-      i++;
-    }
-    
-    m_DistanceFunction.postProcessDistances(m_Distances);
-    
-    for(int k=0; k<indices.length; k++) {
-      neighbours.add(m_Instances.instance(indices[k]));
-    }
-    
-    if(m_Stats!=null)
-      m_Stats.searchFinish();
-    
-    return neighbours;    
   }
   
   /** 
@@ -21,15 +21,23 @@
 package weka.core.neighboursearch;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.AdditionalMeasureProducer;
 import weka.core.DistanceFunction;
 import weka.core.EuclideanDistance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.NormalizableDistance;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.RevisionHandler;
@@ -52,15 +60,24 @@ public abstract class NearestNeighbourSearch implements Serializable,
   /**
    * A class for a heap to store the nearest k neighbours to an instance. The
    * heap also takes care of cases where multiple neighbours are the same
-   * distance away. i.e. the minimum size of the heap is k.
+   * distance away. i.e. the minimum size of the heap is k. The indices and
+   * distances are kept in parallel primitive arrays, so putting a neighbour
+   * into the heap does not allocate, and a heap can be reset and reused for
+   * the next query.
    * 
    * @author Ashraf M. Kibriya (amk14[at-the-rate]cs[dot]waikato[dot]ac[dot]nz)
    * @version $Revision$
    */
   protected class MyHeap implements RevisionHandler {
 
-    /** the heap. */
-    MyHeapElement m_heap[] = null;
+    /** the indices of the heap, starting at position 1. */
+    int m_Index[] = null;
+
+    /** the distances of the heap, starting at position 1. */
+    double m_Distance[] = null;
+
+    /** the number of elements in the heap. */
+    int m_Size = 0;
 
     /**
      * constructor.
@@ -68,12 +85,27 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @param maxSize the maximum size of the heap
      */
     public MyHeap(int maxSize) {
+      reset(maxSize);
+    }
+
+    /**
+     * empties the heap and the kth nearest elements, so that the heap can be
+     * reused. The arrays are only reallocated if they are too small for the
+     * new maximum size, so the heap may then hold more elements than that.
+     * 
+     * @param maxSize the maximum size of the heap
+     */
+    public void reset(int maxSize) {
       if ((maxSize % 2) == 0) {
         maxSize++;
       }
 
-      m_heap = new MyHeapElement[maxSize + 1];
-      m_heap[0] = new MyHeapElement(0, 0);
+      if ((m_Index == null) || (m_Index.length < maxSize + 1)) {
+        m_Index = new int[maxSize + 1];
+        m_Distance = new double[maxSize + 1];
+      }
+      m_Size = 0;
+      m_KthNearestSize = 0;
     }
 
     /**
@@ -82,7 +114,7 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @return the size
      */
     public int size() {
-      return m_heap[0].index;
+      return m_Size;
     }
 
     /**
@@ -91,7 +123,26 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @return the first element
      */
     public MyHeapElement peek() {
-      return m_heap[1];
+      return new MyHeapElement(m_Index[1], m_Distance[1]);
+    }
+
+    /**
+     * returns the index of the first element.
+     * 
+     * @return the index of the first element
+     */
+    public int peekIndex() {
+      return m_Index[1];
+    }
+
+    /**
+     * returns the distance of the first element, i.e., the largest distance
+     * in the heap.
+     * 
+     * @return the distance of the first element
+     */
+    public double peekDistance() {
+      return m_Distance[1];
     }
 
     /**
@@ -101,14 +152,24 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @throws Exception if no elements in heap
      */
     public MyHeapElement get() throws Exception {
-      if (m_heap[0].index == 0) {
+      MyHeapElement r = peek();
+      remove();
+      return r;
+    }
+
+    /**
+     * removes the first element from the heap.
+     * 
+     * @throws Exception if no elements in heap
+     */
+    public void remove() throws Exception {
+      if (m_Size == 0) {
         throw new Exception("No elements present in the heap");
       }
-      MyHeapElement r = m_heap[1];
-      m_heap[1] = m_heap[m_heap[0].index];
-      m_heap[0].index--;
+      m_Index[1] = m_Index[m_Size];
+      m_Distance[1] = m_Distance[m_Size];
+      m_Size--;
       downheap();
-      return r;
     }
 
     /**
@@ -119,12 +180,13 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @throws Exception if the heap gets too large
      */
     public void put(int i, double d) throws Exception {
-      if ((m_heap[0].index + 1) > (m_heap.length - 1)) {
+      if ((m_Size + 1) > (m_Index.length - 1)) {
         throw new Exception("the number of elements cannot exceed the "
           + "initially set maximum limit");
       }
-      m_heap[0].index++;
-      m_heap[m_heap[0].index] = new MyHeapElement(i, d);
+      m_Size++;
+      m_Index[m_Size] = i;
+      m_Distance[m_Size] = d;
       upheap();
     }
 
@@ -136,33 +198,30 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @throws Exception if distance is smaller than that of the head element
      */
     public void putBySubstitute(int i, double d) throws Exception {
-      MyHeapElement head = get();
+      int headIndex = m_Index[1];
+      double headDistance = m_Distance[1];
+      remove();
       put(i, d);
-      // System.out.println("previous: "+head.distance+" current: "+m_heap[1].distance);
-      if (head.distance == m_heap[1].distance) { // Utils.eq(head.distance,
-                                                 // m_heap[1].distance)) {
-        putKthNearest(head.index, head.distance);
-      } else if (head.distance > m_heap[1].distance) { // Utils.gr(head.distance,
-                                                       // m_heap[1].distance)) {
-        m_KthNearest = null;
+      if (headDistance == m_Distance[1]) {
+        putKthNearest(headIndex, headDistance);
+      } else if (headDistance > m_Distance[1]) {
         m_KthNearestSize = 0;
-        initSize = 10;
-      } else if (head.distance < m_heap[1].distance) {
+      } else if (headDistance < m_Distance[1]) {
         throw new Exception("The substituted element is smaller than the "
           + "head element. put() should have been called "
           + "in place of putBySubstitute()");
       }
     }
 
-    /** the kth nearest ones. */
-    MyHeapElement m_KthNearest[] = null;
+    /** the indices of the kth nearest ones. */
+    int m_KthNearestIndex[] = null;
+
+    /** the distances of the kth nearest ones. */
+    double m_KthNearestDistance[] = null;
 
     /** The number of kth nearest elements. */
     int m_KthNearestSize = 0;
 
-    /** the initial size of the heap. */
-    int initSize = 10;
-
     /**
      * returns the number of k nearest.
      * 
@@ -180,16 +239,22 @@ public abstract class NearestNeighbourSearch implements Serializable,
      * @param d the distance
      */
     public void putKthNearest(int i, double d) {
-      if (m_KthNearest == null) {
-        m_KthNearest = new MyHeapElement[initSize];
+      if (m_KthNearestIndex == null) {
+        m_KthNearestIndex = new int[10];
+        m_KthNearestDistance = new double[10];
       }
-      if (m_KthNearestSize >= m_KthNearest.length) {
-        initSize += initSize;
-        MyHeapElement temp[] = new MyHeapElement[initSize];
-        System.arraycopy(m_KthNearest, 0, temp, 0, m_KthNearest.length);
-        m_KthNearest = temp;
+      if (m_KthNearestSize >= m_KthNearestIndex.length) {
+        int[] tempIndex = new int[2 * m_KthNearestIndex.length];
+        double[] tempDistance = new double[tempIndex.length];
+        System.arraycopy(m_KthNearestIndex, 0, tempIndex, 0, m_KthNearestSize);
+        System.arraycopy(m_KthNearestDistance, 0, tempDistance, 0,
+          m_KthNearestSize);
+        m_KthNearestIndex = tempIndex;
+        m_KthNearestDistance = tempDistance;
       }
-      m_KthNearest[m_KthNearestSize++] = new MyHeapElement(i, d);
+      m_KthNearestIndex[m_KthNearestSize] = i;
+      m_KthNearestDistance[m_KthNearestSize] = d;
+      m_KthNearestSize++;
     }
 
     /**
@@ -202,20 +267,61 @@ public abstract class NearestNeighbourSearch implements Serializable,
         return null;
       }
       m_KthNearestSize--;
-      return m_KthNearest[m_KthNearestSize];
+      return new MyHeapElement(m_KthNearestIndex[m_KthNearestSize],
+        m_KthNearestDistance[m_KthNearestSize]);
+    }
+
+    /**
+     * Empties the heap and the kth nearest elements into the given arrays,
+     * sorted by increasing distance. The arrays must hold at least
+     * totalSize() elements.
+     * 
+     * @param indices the array to store the indices in
+     * @param distances the array to store the distances in
+     * @return the number of elements stored
+     * @throws Exception if the heap cannot be emptied
+     */
+    public int extract(int[] indices, double[] distances) throws Exception {
+      int total = totalSize();
+      int i = total - 1;
+      while (m_KthNearestSize > 0) {
+        m_KthNearestSize--;
+        indices[i] = m_KthNearestIndex[m_KthNearestSize];
+        distances[i] = m_KthNearestDistance[m_KthNearestSize];
+        i--;
+      }
+      while (m_Size > 0) {
+        indices[i] = m_Index[1];
+        distances[i] = m_Distance[1];
+        remove();
+        i--;
+      }
+      return total;
+    }
+
+    /**
+     * swaps two elements of the heap.
+     * 
+     * @param i the position of the first element
+     * @param j the position of the second element
+     */
+    protected void swap(int i, int j) {
+      int index = m_Index[i];
+      m_Index[i] = m_Index[j];
+      m_Index[j] = index;
+      double distance = m_Distance[i];
+      m_Distance[i] = m_Distance[j];
+      m_Distance[j] = distance;
     }
 
     /**
      * performs upheap operation for the heap to maintian its properties.
      */
     protected void upheap() {
-      int i = m_heap[0].index;
-      MyHeapElement temp;
-      while (i > 1 && m_heap[i].distance > m_heap[i / 2].distance) {
-        temp = m_heap[i];
-        m_heap[i] = m_heap[i / 2];
+      int i = m_Size;
+      while (i > 1 && m_Distance[i] > m_Distance[i / 2]) {
+        swap(i, i / 2);
         i = i / 2;
-        m_heap[i] = temp; // this is i/2 done here to avoid another division.
       }
     }
 
@@ -224,26 +330,19 @@ public abstract class NearestNeighbourSearch implements Serializable,
      */
     protected void downheap() {
       int i = 1;
-      MyHeapElement temp;
-      while (((2 * i) <= m_heap[0].index && m_heap[i].distance < m_heap[2 * i].distance)
-        || ((2 * i + 1) <= m_heap[0].index && m_heap[i].distance < m_heap[2 * i + 1].distance)) {
-        if ((2 * i + 1) <= m_heap[0].index) {
-          if (m_heap[2 * i].distance > m_heap[2 * i + 1].distance) {
-            temp = m_heap[i];
-            m_heap[i] = m_heap[2 * i];
+      while (((2 * i) <= m_Size && m_Distance[i] < m_Distance[2 * i])
+        || ((2 * i + 1) <= m_Size && m_Distance[i] < m_Distance[2 * i + 1])) {
+        if ((2 * i + 1) <= m_Size) {
+          if (m_Distance[2 * i] > m_Distance[2 * i + 1]) {
+            swap(i, 2 * i);
             i = 2 * i;
-            m_heap[i] = temp;
           } else {
-            temp = m_heap[i];
-            m_heap[i] = m_heap[2 * i + 1];
+            swap(i, 2 * i + 1);
             i = 2 * i + 1;
-            m_heap[i] = temp;
           }
         } else {
-          temp = m_heap[i];
-          m_heap[i] = m_heap[2 * i];
+          swap(i, 2 * i);
           i = 2 * i;
-          m_heap[i] = temp;
         }
       }
     }
@@ -526,6 +625,281 @@ public abstract class NearestNeighbourSearch implements Serializable,
     }
   }
 
+  /**
+   * A node of the tree that a batch query builds over its query instances,
+   * for the tree searches that answer batch queries by dual-tree traversal.
+   * The nodes split the queries at the median of their widest attribute.
+   * 
+   * @version $Revision$
+   */
+  protected class QueryNode implements RevisionHandler {
+
+    /** The start index of the node's queries in the query index list. */
+    public int m_Start;
+
+    /** The end index (inclusive) of the node's queries in the query index list. */
+    public int m_End;
+
+    /** The children of the node, null for a leaf. */
+    public QueryNode m_Left, m_Right;
+
+    /** The lowest and highest value and the width of each attribute. */
+    public double[][] m_Ranges;
+
+    /** The centre of the node's queries, if the search needs it. */
+    public Instance m_Pivot;
+
+    /** The (unsquared) radius around the pivot, if the search needs it. */
+    public double m_Radius;
+
+    /**
+     * The largest (squared) distance to a kth nearest neighbour among the
+     * node's queries, infinite while some query has fewer than k neighbours.
+     */
+    public double m_Bound = Double.POSITIVE_INFINITY;
+
+    /**
+     * Creates a new query node.
+     * 
+     * @param start the start index of the node's queries
+     * @param end the end index (inclusive) of the node's queries
+     * @param ranges the attribute ranges of the node's queries
+     */
+    public QueryNode(int start, int end, double[][] ranges) {
+      m_Start = start;
+      m_End = end;
+      m_Ranges = ranges;
+    }
+
+    /**
+     * Returns whether the node is a leaf.
+     * 
+     * @return true if the node is a leaf
+     */
+    public boolean isALeaf() {
+      return (m_Left == null);
+    }
+
+    /**
+     * Returns the number of queries in the node.
+     * 
+     * @return the number of queries
+     */
+    public int numInstances() {
+      return (m_End - m_Start + 1);
+    }
+
+    /**
+     * Returns the revision string.
+     * 
+     * @return the revision
+     */
+    @Override
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+  }
+
+  /**
+   * The state of a dual-tree batch query: the query instances, the tree over
+   * them and one heap of neighbours per query.
+   * 
+   * @version $Revision$
+   */
+  protected class BatchQuery implements RevisionHandler {
+
+    /** The query instances. */
+    public Instances m_Targets;
+
+    /** The number of neighbours to find. */
+    public int m_K;
+
+    /** The indices of the queries, sorted by the nodes of the query tree. */
+    public int[] m_Order;
+
+    /** The heaps of neighbours, one per query. */
+    public MyHeap[] m_Heaps;
+
+    /** The root of the query tree. */
+    public QueryNode m_Root;
+
+    /**
+     * Builds the tree over the queries.
+     * 
+     * @param targets the query instances
+     * @param k the number of neighbours to find
+     * @param maxInstInLeaf the maximum number of queries in a leaf
+     */
+    public BatchQuery(Instances targets, int k, int maxInstInLeaf) {
+      m_Targets = targets;
+      m_K = k;
+      m_Order = new int[targets.numInstances()];
+      m_Heaps = new MyHeap[targets.numInstances()];
+      for (int i = 0; i < m_Order.length; i++) {
+        m_Order[i] = i;
+        m_Heaps[i] = new MyHeap(k);
+      }
+      m_Root = buildNode(0, m_Order.length - 1, null, Math.max(1, maxInstInLeaf));
+    }
+
+    /**
+     * Builds a node of the query tree and, recursively, its children.
+     * 
+     * @param start the start index of the node's queries
+     * @param end the end index (inclusive) of the node's queries
+     * @param universe the attribute ranges of all queries, null for the root
+     * @param maxInstInLeaf the maximum number of queries in a leaf
+     * @return the node
+     */
+    protected QueryNode buildNode(int start, int end, double[][] universe,
+      int maxInstInLeaf) {
+      int classIdx = m_Targets.classIndex();
+      double[][] ranges = new double[m_Targets.numAttributes()][3];
+      for (int j = 0; j < ranges.length; j++) {
+        if (j != classIdx) {
+          ranges[j][EuclideanDistance.R_MIN] = Double.POSITIVE_INFINITY;
+          ranges[j][EuclideanDistance.R_MAX] = Double.NEGATIVE_INFINITY;
+        }
+      }
+      for (int i = start; i <= end; i++) {
+        Instance inst = m_Targets.instance(m_Order[i]);
+        for (int j = 0; j < ranges.length; j++) {
+          if (j == classIdx || inst.isMissing(j)) {
+            continue;
+          }
+          double value = inst.value(j);
+          if (value < ranges[j][EuclideanDistance.R_MIN]) {
+            ranges[j][EuclideanDistance.R_MIN] = value;
+          }
+          if (value > ranges[j][EuclideanDistance.R_MAX]) {
+            ranges[j][EuclideanDistance.R_MAX] = value;
+          }
+        }
+      }
+      for (int j = 0; j < ranges.length; j++) {
+        ranges[j][EuclideanDistance.R_WIDTH] = ranges[j][EuclideanDistance.R_MAX]
+          - ranges[j][EuclideanDistance.R_MIN];
+      }
+      if (universe == null) {
+        universe = ranges;
+      }
+      QueryNode node = new QueryNode(start, end, ranges);
+      if (end - start + 1 <= maxInstInLeaf) {
+        return node;
+      }
+
+      // split at the median of the widest attribute, relative to all queries
+      double widest = 0.0;
+      int splitDim = -1;
+      for (int j = 0; j < ranges.length; j++) {
+        if (j == classIdx || !m_Targets.attribute(j).isNumeric()
+          || !(ranges[j][EuclideanDistance.R_WIDTH] > 0)) {
+          continue;
+        }
+        double width = ranges[j][EuclideanDistance.R_WIDTH]
+          / universe[j][EuclideanDistance.R_WIDTH];
+        if (width > widest) {
+          widest = width;
+          splitDim = j;
+        }
+      }
+      if (splitDim < 0) {
+        return node;
+      }
+      double[] values = new double[end - start + 1];
+      int[] indices = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+        indices[i] = m_Order[start + i];
+        values[i] = m_Targets.instance(indices[i]).value(splitDim);
+      }
+      int[] sorted = Utils.sort(values);
+      for (int i = 0; i < values.length; i++) {
+        m_Order[start + i] = indices[sorted[i]];
+      }
+      int middle = start + values.length / 2 - 1;
+      node.m_Left = buildNode(start, middle, universe, maxInstInLeaf);
+      node.m_Right = buildNode(middle + 1, end, universe, maxInstInLeaf);
+      return node;
+    }
+
+    /**
+     * Recomputes the bound of a query leaf from the heaps of its queries.
+     * 
+     * @param node the query leaf
+     */
+    public void updateBound(QueryNode node) {
+      double bound = 0.0;
+      for (int i = node.m_Start; i <= node.m_End; i++) {
+        MyHeap heap = m_Heaps[m_Order[i]];
+        if (heap.size() < m_K) {
+          bound = Double.POSITIVE_INFINITY;
+          break;
+        }
+        if (heap.peekDistance() > bound) {
+          bound = heap.peekDistance();
+        }
+      }
+      node.m_Bound = bound;
+    }
+
+    /**
+     * Returns disjoint subtrees of the query tree that together hold all
+     * queries, at least the given number if the tree is large enough. The
+     * subtrees can be searched by different threads.
+     * 
+     * @param numParts the number of subtrees wanted
+     * @return the subtrees
+     */
+    public List<QueryNode> split(int numParts) {
+      List<QueryNode> parts = new ArrayList<QueryNode>();
+      parts.add(m_Root);
+      boolean splitAny = true;
+      while (parts.size() < numParts && splitAny) {
+        List<QueryNode> next = new ArrayList<QueryNode>();
+        splitAny = false;
+        for (QueryNode node : parts) {
+          if (node.isALeaf()) {
+            next.add(node);
+          } else {
+            next.add(node.m_Left);
+            next.add(node.m_Right);
+            splitAny = true;
+          }
+        }
+        parts = next;
+      }
+      return parts;
+    }
+
+    /**
+     * Stores the neighbours found in the given arrays, sorted by distance.
+     * 
+     * @param indices the array to store the neighbours' indices in
+     * @param distances the array to store the neighbours' distances in
+     * @throws Exception if the distances cannot be post-processed
+     */
+    public void extract(int[][] indices, double[][] distances)
+      throws Exception {
+      for (int i = 0; i < m_Heaps.length; i++) {
+        distances[i] = new double[m_Heaps[i].totalSize()];
+        indices[i] = new int[distances[i].length];
+        m_Heaps[i].extract(indices[i], distances[i]);
+        m_DistanceFunction.postProcessDistances(distances[i]);
+        m_Heaps[i] = null;
+      }
+    }
+
+    /**
+     * Returns the revision string.
+     * 
+     * @return the revision
+     */
+    @Override
+    public String getRevision() {
+      return RevisionUtils.extract("$Revision$");
+    }
+  }
+
   /** The neighbourhood of instances to find neighbours in. */
   protected Instances m_Instances;
 
@@ -538,9 +912,15 @@ public abstract class NearestNeighbourSearch implements Serializable,
   /** Performance statistics. */
   protected PerformanceStats m_Stats = null;
 
+  /** the heap reused by the single queries. */
+  protected transient MyHeap m_Heap = null;
+
   /** Should we measure Performance. */
   protected boolean m_MeasurePerformance = false;
 
+  /** The number of threads for batch queries, 0 for one per processor. */
+  protected int m_NumExecutionSlots = 1;
+
   /**
    * Constructor.
    */
@@ -587,6 +967,10 @@ public abstract class NearestNeighbourSearch implements Serializable,
     newVector.add(new Option("\tCalculate performance statistics.", "P", 0,
       "-P"));
 
+    newVector.add(new Option("\tThe number of threads answering batch "
+      + "queries, 0 for one\n" + "\tper processor.\n" + "\t(default: 1)",
+      "num-slots", 1, "-num-slots <num>"));
+
     return newVector.elements();
   }
 
@@ -616,6 +1000,13 @@ public abstract class NearestNeighbourSearch implements Serializable,
     }
 
     setMeasurePerformance(Utils.getFlag('P', options));
+
+    String numSlots = Utils.getOption("num-slots", options);
+    if (numSlots.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(numSlots));
+    } else {
+      setNumExecutionSlots(1);
+    }
   }
 
   /**
@@ -637,6 +1028,9 @@ public abstract class NearestNeighbourSearch implements Serializable,
       result.add("-P");
     }
 
+    result.add("-num-slots");
+    result.add("" + getNumExecutionSlots());
+
     return result.toArray(new String[result.size()]);
   }
 
@@ -706,6 +1100,35 @@ public abstract class NearestNeighbourSearch implements Serializable,
     }
   }
 
+  /**
+   * Returns the tip text for this property.
+   * 
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of threads answering batch queries, 0 for one per "
+      + "processor.";
+  }
+
+  /**
+   * Gets the number of threads answering batch queries.
+   * 
+   * @return the number of threads, 0 for one per processor
+   */
+  public int getNumExecutionSlots() {
+    return m_NumExecutionSlots;
+  }
+
+  /**
+   * Sets the number of threads answering batch queries.
+   * 
+   * @param value the number of threads, 0 for one per processor
+   */
+  public void setNumExecutionSlots(int value) {
+    m_NumExecutionSlots = value;
+  }
+
   /**
    * Returns the nearest instance in the current neighbourhood to the supplied
    * instance.
@@ -728,6 +1151,248 @@ public abstract class NearestNeighbourSearch implements Serializable,
   public abstract Instances kNearestNeighbours(Instance target, int k)
     throws Exception;
 
+  /**
+   * Finds the k nearest neighbours of each of the supplied instances. The
+   * indices (into the current neighbourhood) and distances of the neighbours
+   * of the ith instance are stored in the ith rows of the given arrays, which
+   * need as many rows as there are instances. The rows are sorted by
+   * distance, and hold more than k neighbours if there are several at the
+   * kth distance, just like the result of kNearestNeighbours(Instance, int).
+   * Unlike that method, a batch query does not change the distances returned
+   * by getDistances() and does not record performance statistics.
+   * <p/>
+   * This implementation compares each instance with the whole
+   * neighbourhood, with the instances shared among getNumExecutionSlots()
+   * threads. The tree searches instead traverse a tree over the instances
+   * together with their own tree, so that neighbouring instances share the
+   * descent.
+   * 
+   * @param targets the instances to find the k nearest neighbours for
+   * @param k the number of nearest neighbours to find
+   * @param indices the array to store the neighbours' indices in
+   * @param distances the array to store the neighbours' distances in
+   * @throws Exception if the neighbours could not be found
+   */
+  public void kNearestNeighbours(final Instances targets, final int k,
+    final int[][] indices, final double[][] distances) throws Exception {
+
+    if (m_Instances == null) {
+      throw new Exception("No instances supplied yet. Have to call "
+        + "setInstances(instances) with a set of Instances first.");
+    }
+    int numTargets = targets.numInstances();
+    if (numTargets == 0) {
+      return;
+    }
+
+    // the first query runs on its own, as it may initialize the distance
+    // function
+    storeNeighbours(targets, 0, k, new MyHeap(k), indices, distances);
+    int numSlots = Math.min(numSlots(), numTargets - 1);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int s = 0; s < numSlots; s++) {
+      final int start = 1 + (int) ((long) (numTargets - 1) * s / numSlots);
+      final int end = 1 + (int) ((long) (numTargets - 1) * (s + 1) / numSlots);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          MyHeap heap = new MyHeap(k);
+          for (int i = start; i < end; i++) {
+            storeNeighbours(targets, i, k, heap, indices, distances);
+          }
+          return null;
+        }
+      });
+    }
+    runTasks(tasks);
+  }
+
+  /**
+   * Finds the k nearest neighbours of one instance of a batch query and
+   * stores them in the given arrays.
+   * 
+   * @param targets the instances of the batch query
+   * @param i the index of the instance
+   * @param k the number of nearest neighbours to find
+   * @param heap the heap to search with, reset before the search
+   * @param indices the array to store the neighbours' indices in
+   * @param distances the array to store the neighbours' distances in
+   * @throws Exception if the neighbours could not be found
+   */
+  protected void storeNeighbours(Instances targets, int i, int k,
+    MyHeap heap, int[][] indices, double[][] distances) throws Exception {
+    heap.reset(k);
+    findNeighbours(targets.instance(i), heap, k, null);
+    distances[i] = new double[heap.totalSize()];
+    indices[i] = new int[distances[i].length];
+    heap.extract(indices[i], distances[i]);
+    m_DistanceFunction.postProcessDistances(distances[i]);
+  }
+
+  /**
+   * Finds the k nearest neighbours of the supplied instance and puts them
+   * into the given empty heap. This implementation compares the instance
+   * with every instance in the neighbourhood. The distances in the heap are
+   * not post-processed yet. The instance itself is skipped if it is part of
+   * the neighbourhood (for hold-one-out cross-validation).
+   * 
+   * @param target the instance to find the k nearest neighbours for
+   * @param heap the empty heap to put the neighbours into
+   * @param k the number of nearest neighbours to find
+   * @param stats the performance statistics to update, null for none
+   * @throws Exception if the neighbours could not be found
+   */
+  protected void findNeighbours(Instance target, MyHeap heap, int k,
+    PerformanceStats stats) throws Exception {
+    double distance;
+    for (int i = 0; i < m_Instances.numInstances(); i++) {
+      if (target == m_Instances.instance(i)) {
+        continue;
+      }
+      if (stats != null) {
+        stats.incrPointCount();
+      }
+      if (heap.size() < k) {
+        distance = m_DistanceFunction.distance(target,
+          m_Instances.instance(i), Double.POSITIVE_INFINITY, stats);
+        heap.put(i, distance);
+      } else {
+        double kthDistance = heap.peekDistance();
+        distance = m_DistanceFunction.distance(target,
+          m_Instances.instance(i), kthDistance, stats);
+        if (distance < kthDistance) {
+          heap.putBySubstitute(i, distance);
+        } else if (distance == kthDistance) {
+          heap.putKthNearest(i, distance);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the k nearest neighbours of the supplied instance and stores their
+   * indices (into the current neighbourhood) and distances in the given
+   * arrays, sorted by distance. Returns the number of neighbours found, which
+   * is more than k if there are several at the kth distance. If the arrays
+   * are too short for all of them, nothing is stored and the query has to be
+   * repeated with longer arrays; the entries after the neighbours are
+   * undefined. Unlike kNearestNeighbours(Instance, int), the query creates no
+   * instances and reuses its heap from one call to the next, so it must not
+   * be called by several threads at once. It does not change the distances
+   * returned by getDistances().
+   * 
+   * @param target the instance to find the k nearest neighbours for
+   * @param k the number of nearest neighbours to find
+   * @param indices the array to store the neighbours' indices in
+   * @param distances the array to store the neighbours' distances in
+   * @return the number of neighbours found
+   * @throws Exception if the neighbours could not be found
+   */
+  public int kNearestNeighbours(Instance target, int k, int[] indices,
+    double[] distances) throws Exception {
+
+    if (m_Instances == null) {
+      throw new Exception("No instances supplied yet. Have to call "
+        + "setInstances(instances) with a set of Instances first.");
+    }
+
+    if (m_Stats != null) {
+      m_Stats.searchStart();
+    }
+    MyHeap heap = reusableHeap(k);
+    findNeighbours(target, heap, k, m_Stats);
+    if (m_Stats != null) {
+      m_Stats.searchFinish();
+    }
+
+    int count = heap.totalSize();
+    if (count > indices.length || count > distances.length) {
+      return count;
+    }
+    heap.extract(indices, distances);
+    m_DistanceFunction.postProcessDistances(distances);
+    return count;
+  }
+
+  /**
+   * Returns the heap that the single queries reuse, reset for a query for
+   * the k nearest neighbours.
+   * 
+   * @param k the number of nearest neighbours to find
+   * @return the empty heap
+   */
+  protected MyHeap reusableHeap(int k) {
+    if (m_Heap == null) {
+      m_Heap = new MyHeap(k);
+    } else {
+      m_Heap.reset(k);
+    }
+    return m_Heap;
+  }
+
+  /**
+   * Empties a heap of neighbours into arrays sorted by distance.
+   * 
+   * @param heap the heap to empty
+   * @param distances the array to store the distances in, as long as the
+   *          total size of the heap
+   * @return the indices of the neighbours
+   * @throws Exception if the heap cannot be emptied
+   */
+  protected int[] extractNeighbours(MyHeap heap, double[] distances)
+    throws Exception {
+    int[] indices = new int[distances.length];
+    heap.extract(indices, distances);
+    return indices;
+  }
+
+  /**
+   * Returns the number of threads to use for batch queries.
+   * 
+   * @return the number of threads, at least 1
+   */
+  protected int numSlots() {
+    int numSlots = (m_NumExecutionSlots == 0) ? Runtime.getRuntime()
+      .availableProcessors() : m_NumExecutionSlots;
+    return Math.max(1, numSlots);
+  }
+
+  /**
+   * Runs the given tasks, on numSlots() threads if there are several.
+   * 
+   * @param tasks the tasks to run
+   * @throws Exception if a task fails
+   */
+  protected void runTasks(List<Callable<Void>> tasks) throws Exception {
+    int numSlots = Math.min(numSlots(), tasks.size());
+    if (numSlots <= 1) {
+      for (Callable<Void> task : tasks) {
+        task.call();
+      }
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(numSlots);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (Callable<Void> task : tasks) {
+        results.add(pool.submit(task));
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
   /**
    * Returns the distances of the k nearest neighbours. The kNearestNeighbours
    * or nearestNeighbour needs to be called first for this to work.
@@ -757,6 +1422,50 @@ public abstract class NearestNeighbourSearch implements Serializable,
   public void addInstanceInfo(Instance ins) {
   }
 
+  /**
+   * Returns whether adding the information from the given instance may
+   * change the distances, i.e., whether the instance lies outside the
+   * attribute ranges that the distance function normalizes with. Distance
+   * functions that are not normalizable are assumed to change.
+   * 
+   * @param ins the instance
+   * @return false if adding the information leaves the distances unchanged
+   */
+  public boolean changesInstanceInfo(Instance ins) {
+    if (!(getDistanceFunction() instanceof NormalizableDistance)) {
+      return true;
+    }
+    NormalizableDistance distance = (NormalizableDistance) getDistanceFunction();
+    try {
+      return !distance.inRanges(ins, distance.getRanges());
+    } catch (Exception e) {
+      // no ranges yet
+      return true;
+    }
+  }
+
+  /**
+   * Adds information from a run of consecutive instances, starting with the
+   * given one, and returns the end of the run. The run ends before the next
+   * instance whose information may change the distances. The instances of
+   * the run can therefore be queried in one batch, with the same results as
+   * when each is queried right after adding its information.
+   * 
+   * @param insts the instances
+   * @param start the first instance of the run
+   * @return the instance after the run
+   */
+  public int addInstanceInfo(Instances insts, int start) {
+    addInstanceInfo(insts.instance(start));
+    int end = start + 1;
+    while ((end < insts.numInstances())
+      && !changesInstanceInfo(insts.instance(end))) {
+      addInstanceInfo(insts.instance(end));
+      end++;
+    }
+    return end;
+  }
+
   /**
    * Sets the instances.
    * 
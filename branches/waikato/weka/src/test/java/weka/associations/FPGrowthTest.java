@@ -19,8 +19,18 @@
 
 package weka.associations;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
 import weka.associations.AbstractAssociatorTest;
 import weka.associations.Associator;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.converters.ItemListLoader;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -44,6 +54,108 @@ public class FPGrowthTest
     return new FPGrowth();
   }
 
+  /**
+   * Returns random market basket data, with some items bought together.
+   *
+   * @return the data
+   */
+  protected Instances getBasketData() {
+    ArrayList<String> values = new ArrayList<String>();
+    values.add("f");
+    values.add("t");
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    for (int i = 0; i < 12; i++) {
+      atts.add(new Attribute("item" + i, values));
+    }
+    Instances data = new Instances("baskets", atts, 300);
+
+    Random random = new Random(1);
+    for (int n = 0; n < 300; n++) {
+      double[] vals = new double[atts.size()];
+      for (int i = 0; i < vals.length; i++) {
+        if (i > 0 && vals[i - 1] == 1 && random.nextDouble() < 0.7) {
+          vals[i] = 1;
+        } else {
+          vals[i] = (random.nextDouble() < 0.3) ? 1 : 0;
+        }
+      }
+      data.add(new DenseInstance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Tests whether mining the FP-tree with several threads finds the same
+   * rules as mining it with one.
+   */
+  public void testParallelMining() {
+    Instances data = getBasketData();
+    try {
+      FPGrowth serial = new FPGrowth();
+      serial.setOptions(new String[] { "-S", "-M", "0.05", "-C", "0.5" });
+      serial.buildAssociations(data);
+
+      FPGrowth parallel = new FPGrowth();
+      parallel.setOptions(new String[] { "-S", "-M", "0.05", "-C", "0.5",
+        "-num-slots", "3" });
+      parallel.buildAssociations(data);
+
+      assertTrue("No rules found",
+        serial.getAssociationRules().getNumRules() > 0);
+      assertEquals(serial.toString(), parallel.toString());
+    } catch (Exception e) {
+      fail("Mining failed: " + e);
+    }
+  }
+
+  /**
+   * Tests whether mining item list data off of disk in several partitions
+   * finds the same rules as mining it in memory.
+   */
+  public void testOutOfCoreMining() {
+    Instances data = getBasketData();
+    File file = null;
+    try {
+      file = File.createTempFile("FPGrowthTest", ItemListLoader.FILE_EXTENSION);
+      PrintWriter writer = new PrintWriter(new FileWriter(file));
+      writer.println("% random market baskets");
+      for (int i = 0; i < data.numInstances(); i++) {
+        StringBuffer line = new StringBuffer();
+        for (int j = 0; j < data.numAttributes(); j++) {
+          if (data.instance(i).value(j) == 1) {
+            line.append(data.attribute(j).name()).append(' ');
+          }
+        }
+        writer.println(line.toString().trim());
+      }
+      writer.close();
+
+      ItemListLoader loader = new ItemListLoader();
+      loader.setFile(file);
+      FPGrowth inMemory = new FPGrowth();
+      inMemory.setOptions(new String[] { "-S", "-M", "0.05", "-C", "0.5" });
+      inMemory.buildAssociations(loader.getDataSet());
+
+      for (int slots = 1; slots <= 3; slots += 2) {
+        loader.reset();
+        FPGrowth outOfCore = new FPGrowth();
+        outOfCore.setOptions(new String[] { "-S", "-M", "0.05", "-C", "0.5",
+          "-partitions", "4", "-num-slots", "" + slots });
+        outOfCore.buildAssociations(loader);
+        assertEquals(inMemory.toString(), outOfCore.toString());
+      }
+      assertTrue("No rules found",
+        inMemory.getAssociationRules().getNumRules() > 0);
+    } catch (Exception e) {
+      fail("Mining failed: " + e);
+    } finally {
+      if (file != null) {
+        file.delete();
+      }
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(FPGrowthTest.class);
   }
@@ -19,8 +19,16 @@
 
 package weka.attributeSelection;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import weka.core.Instances;
+import weka.core.SelectedTag;
 
 /**
  * Tests BestFirst. Run from the command line with:<p/>
@@ -46,6 +54,149 @@ public class BestFirstTest
     return new CfsSubsetEval();
   }
 
+  /**
+   * A subset evaluator that is not ThreadSafe. It fails if two threads use
+   * the same copy at once.
+   */
+  protected static class SingleThreadedEvaluator extends ASEvaluation
+    implements SubsetEvaluator {
+
+    /** for serialization */
+    private static final long serialVersionUID = -3284719562239175210L;
+
+    /** the evaluator that computes the merits */
+    protected CfsSubsetEval m_Evaluator = new CfsSubsetEval();
+
+    /** whether a thread is evaluating a subset */
+    protected AtomicBoolean m_Busy = new AtomicBoolean();
+
+    @Override
+    public void buildEvaluator(Instances data) throws Exception {
+      m_Evaluator.buildEvaluator(data);
+    }
+
+    @Override
+    public double evaluateSubset(BitSet subset) throws Exception {
+      if (!m_Busy.compareAndSet(false, true)) {
+        throw new IllegalStateException("Used by two threads at once");
+      }
+      try {
+        return m_Evaluator.evaluateSubset(subset);
+      } finally {
+        m_Busy.set(false);
+      }
+    }
+  }
+
+  /**
+   * Generates the test data: the class depends on the first three
+   * attributes, the next three are noisy copies of them and the rest is
+   * noise.
+   *
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getData() throws Exception {
+    StringBuffer arff = new StringBuffer("@relation test\n");
+    for (int i = 0; i < 14; i++) {
+      arff.append("@attribute a" + i + " numeric\n");
+    }
+    arff.append("@attribute class {yes,no}\n");
+    arff.append("@data\n");
+
+    Random random = new Random(17);
+    for (int n = 0; n < 200; n++) {
+      double[] vals = new double[14];
+      for (int i = 0; i < vals.length; i++) {
+        vals[i] = random.nextInt(20);
+      }
+      for (int i = 3; i < 6; i++) {
+        vals[i] = vals[i - 3] + random.nextInt(5);
+      }
+      for (int i = 0; i < vals.length; i++) {
+        arff.append(vals[i]).append(',');
+      }
+      arff.append((vals[0] + vals[1] - vals[2] > 10) ? "yes\n" : "no\n");
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(data.numAttributes() - 1);
+    return data;
+  }
+
+  /**
+   * Searches the data with a new BestFirst.
+   *
+   * @param evaluator the evaluator, already built
+   * @param data the data
+   * @param direction the direction of the search
+   * @param numSlots the number of execution slots
+   * @param selected receives the selected attributes, sorted
+   * @return the search, for its number of evaluations
+   * @throws Exception if the search fails
+   */
+  protected BestFirst search(ASEvaluation evaluator, Instances data,
+    int direction, int numSlots, int[][] selected) throws Exception {
+    BestFirst search = new BestFirst();
+    search.setDirection(new SelectedTag(direction, BestFirst.TAGS_SELECTION));
+    search.setNumExecutionSlots(numSlots);
+    selected[0] = search.search(evaluator, data);
+    Arrays.sort(selected[0]);
+    return search;
+  }
+
+  /**
+   * Checks that a search with several threads selects the same subset
+   * after the same number of evaluations as a search with one thread, in
+   * all directions.
+   *
+   * @param evaluator the evaluator
+   */
+  protected void checkParallelSearch(ASEvaluation evaluator) {
+    try {
+      Instances data = getData();
+      evaluator.buildEvaluator(data);
+
+      for (int direction = 0; direction < 3; direction++) {
+        int[][] expected = new int[1][];
+        int expectedEvals = search(evaluator, data, direction, 1,
+          expected).m_totalEvals;
+        assertTrue("Nothing selected", expected[0].length > 0);
+
+        for (int numSlots = 2; numSlots <= 3; numSlots++) {
+          int[][] actual = new int[1][];
+          int actualEvals = search(evaluator, data, direction, numSlots,
+            actual).m_totalEvals;
+          String message = "direction " + direction + ", " + numSlots
+            + " slots";
+          assertEquals("Different subset, " + message,
+            Arrays.toString(expected[0]), Arrays.toString(actual[0]));
+          assertEquals("Different number of evaluations, " + message,
+            expectedEvals, actualEvals);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Search failed: " + e);
+    }
+  }
+
+  /**
+   * tests the parallel search with a ThreadSafe evaluator, which the threads
+   * share
+   */
+  public void testParallelSearchThreadSafe() {
+    checkParallelSearch(new CfsSubsetEval());
+  }
+
+  /**
+   * tests the parallel search with an evaluator that is not ThreadSafe, of
+   * which each thread gets its own copy
+   */
+  public void testParallelSearchCopies() {
+    checkParallelSearch(new SingleThreadedEvaluator());
+  }
+
   public static Test suite() {
     return new TestSuite(BestFirstTest.class);
   }
@@ -19,8 +19,14 @@
 
 package weka.attributeSelection;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import weka.core.Instances;
 
 /**
  * Tests BestFirst. Run from the command line with:<p/>
@@ -46,6 +52,181 @@ public class CfsSubsetEvalTest
     return new CfsSubsetEval();
   }
 
+  /**
+   * Generates data with more attributes than fit in one block of the
+   * correlation matrix and more instances than fit in one chunk. Every
+   * third attribute is nominal, and some values are missing. The class
+   * depends on the first attributes, and some later ones are noisy copies
+   * of them.
+   * 
+   * @param numericClass whether to generate a numeric class
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getData(boolean numericClass) throws Exception {
+    int numAttributes = 40;
+    StringBuffer arff = new StringBuffer("@relation test\n");
+    for (int i = 0; i < numAttributes; i++) {
+      arff.append("@attribute a" + i
+        + ((i % 3 == 2) ? " {a,b,c,d}\n" : " numeric\n"));
+    }
+    arff.append(numericClass ? "@attribute class numeric\n"
+      : "@attribute class {yes,no,maybe}\n");
+    arff.append("@data\n");
+
+    Random random = new Random(23);
+    for (int n = 0; n < 5000; n++) {
+      int[] vals = new int[numAttributes];
+      for (int i = 0; i < numAttributes; i++) {
+        vals[i] = random.nextInt(4);
+        if (i >= 20 && i % 5 == 0) {
+          vals[i] = (vals[i - 20] + random.nextInt(2)) % 4;
+        }
+      }
+      for (int i = 0; i < numAttributes; i++) {
+        if (random.nextInt(50) == 0) {
+          arff.append('?');
+        } else if (i % 3 == 2) {
+          arff.append("abcd".charAt(vals[i]));
+        } else {
+          arff.append(vals[i] + random.nextDouble());
+        }
+        arff.append(',');
+      }
+      int target = vals[0] + vals[2] + vals[5] + random.nextInt(2);
+      if (numericClass) {
+        arff.append(target + random.nextDouble());
+      } else {
+        arff.append(new String[] { "yes", "no", "maybe" }[target % 3]);
+      }
+      arff.append('\n');
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(data.numAttributes() - 1);
+    return data;
+  }
+
+  /**
+   * Returns the merits of all subsets of one and two attributes. They depend
+   * on every entry of the correlation matrix.
+   * 
+   * @param eval the evaluator, already built
+   * @param data the data
+   * @return the merits
+   * @throws Exception if a subset cannot be evaluated
+   */
+  protected double[] getPairMerits(CfsSubsetEval eval, Instances data)
+    throws Exception {
+    int numAttributes = data.numAttributes();
+    double[] result = new double[numAttributes * numAttributes];
+    for (int i = 0; i < numAttributes; i++) {
+      for (int j = 0; j <= i; j++) {
+        if (i != data.classIndex() && j != data.classIndex()) {
+          BitSet subset = new BitSet(numAttributes);
+          subset.set(i);
+          subset.set(j);
+          result[i * numAttributes + j] = eval.evaluateSubset(subset);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Builds a CfsSubsetEval.
+   * 
+   * @param data the data
+   * @param preCompute whether to precompute the correlation matrix
+   * @param poolSize the size of the thread pool
+   * @return the evaluator
+   * @throws Exception if the evaluator cannot be built
+   */
+  protected CfsSubsetEval build(Instances data, boolean preCompute,
+    int poolSize) throws Exception {
+    CfsSubsetEval eval = new CfsSubsetEval();
+    eval.setPreComputeCorrelationMatrix(preCompute);
+    eval.setPoolSize(poolSize);
+    eval.setNumThreads(poolSize);
+    eval.buildEvaluator(data);
+    return eval;
+  }
+
+  /**
+   * Checks that the blocked precomputed correlation matrix, with one thread
+   * and with several, is the same as the one computed lazily.
+   * 
+   * @param numericClass whether to use a numeric class
+   */
+  protected void checkPreComputed(boolean numericClass) {
+    try {
+      Instances data = getData(numericClass);
+      double[] expected = getPairMerits(build(data, false, 1), data);
+      for (int poolSize = 1; poolSize <= 4; poolSize += 3) {
+        double[] actual = getPairMerits(build(data, true, poolSize), data);
+        for (int i = 0; i < expected.length; i++) {
+          assertEquals("Different merit for pair " + i + ", pool size "
+            + poolSize, expected[i], actual[i], 0);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Evaluating failed: " + e);
+    }
+  }
+
+  /**
+   * tests the precomputed matrix with a nominal class
+   */
+  public void testPreComputedNominalClass() {
+    checkPreComputed(false);
+  }
+
+  /**
+   * tests the precomputed matrix with a numeric class
+   */
+  public void testPreComputedNumericClass() {
+    checkPreComputed(true);
+  }
+
+  /**
+   * tests that threads of GreedyStepwise that share an evaluator, whose
+   * correlations are computed lazily, select the same attributes as a single
+   * thread and leave the same correlations behind as the precomputed matrix
+   */
+  public void testParallelSearch() {
+    try {
+      Instances data = getData(false);
+      double[] expected = getPairMerits(build(data, true, 1), data);
+
+      for (int b = 0; b < 2; b++) {
+        GreedyStepwise serial = new GreedyStepwise();
+        serial.setSearchBackwards(b == 1);
+        int[] expectedSet = serial.search(build(data, false, 1), data);
+        Arrays.sort(expectedSet);
+
+        CfsSubsetEval eval = build(data, false, 1);
+        GreedyStepwise parallel = new GreedyStepwise();
+        parallel.setSearchBackwards(b == 1);
+        parallel.setNumExecutionSlots(4);
+        int[] actualSet = parallel.search(eval, data);
+        Arrays.sort(actualSet);
+
+        String message = (b == 1) ? "backward search" : "forward search";
+        assertEquals("Different subset, " + message,
+          Arrays.toString(expectedSet), Arrays.toString(actualSet));
+        double[] actual = getPairMerits(eval, data);
+        for (int i = 0; i < expected.length; i++) {
+          assertEquals("Different merit for pair " + i + ", " + message,
+            expected[i], actual[i], 0);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Search failed: " + e);
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(CfsSubsetEvalTest.class);
   }
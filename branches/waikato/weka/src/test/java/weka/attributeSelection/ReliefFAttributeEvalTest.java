@@ -19,8 +19,15 @@
 
 package weka.attributeSelection;
 
+import java.io.StringReader;
+import java.util.Random;
+
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.neighboursearch.KDTree;
+import weka.core.neighboursearch.NearestNeighbourSearch;
 
 /**
  * Tests BestFirst. Run from the command line with:<p/>
@@ -46,6 +53,178 @@ public class ReliefFAttributeEvalTest
     return new ReliefFAttributeEval();
   }
 
+  /**
+   * Generates clusters that lie far apart, so that the k nearest neighbours
+   * of an instance are the other members of its cluster, whatever the
+   * distance function. With a nominal class, each cluster holds a group of
+   * k + 1 identical instances per class, so that the hits of an instance
+   * are its duplicates. With a numeric class, each cluster holds k + 1
+   * distinct instances. The first attribute determines the class.
+   * 
+   * @param k the number of neighbours
+   * @param numericClass whether to generate a numeric class
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getClusters(int k, boolean numericClass)
+    throws Exception {
+    StringBuffer arff = new StringBuffer("@relation clusters\n");
+    for (int i = 0; i < 4; i++) {
+      arff.append("@attribute a" + i + " numeric\n");
+    }
+    arff.append(numericClass ? "@attribute class numeric\n"
+      : "@attribute class {yes,no}\n");
+    arff.append("@data\n");
+
+    Random random = new Random(11);
+    for (int c = 0; c < 30; c++) {
+      double center = 100 * c;
+      for (int g = 0; g < (numericClass ? k + 1 : 2); g++) {
+        double[] vals = new double[4];
+        for (int i = 0; i < vals.length; i++) {
+          vals[i] = center + random.nextDouble();
+        }
+        String cls;
+        if (numericClass) {
+          cls = Double.toString(center + 5 * (vals[0] - center));
+        } else {
+          vals[0] = center + 0.9 * g + 0.05 * random.nextDouble();
+          cls = (g == 0) ? "yes" : "no";
+        }
+        StringBuffer line = new StringBuffer();
+        for (double val : vals) {
+          line.append(val).append(',');
+        }
+        line.append(cls).append('\n');
+        for (int n = 0; n < (numericClass ? 1 : k + 1); n++) {
+          arff.append(line);
+        }
+      }
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(data.numAttributes() - 1);
+    return data;
+  }
+
+  /**
+   * Builds ReliefF and returns the merits of the attributes.
+   * 
+   * @param data the data
+   * @param k the number of neighbours
+   * @param search the neighbour search, null for the exact linear search
+   * @param numSlots the number of execution slots
+   * @return the merits, 0 for the class
+   * @throws Exception if the evaluator cannot be built
+   */
+  protected double[] getMerits(Instances data, int k,
+    NearestNeighbourSearch search, int numSlots) throws Exception {
+    ReliefFAttributeEval eval = new ReliefFAttributeEval();
+    eval.setNumNeighbours(k);
+    if (search != null) {
+      eval.setNearestNeighbourSearchAlgorithm(search);
+    }
+    eval.setNumExecutionSlots(numSlots);
+    eval.buildEvaluator(data);
+
+    double[] result = new double[data.numAttributes()];
+    for (int i = 0; i < result.length; i++) {
+      if (i != data.classIndex()) {
+        result[i] = eval.evaluateAttribute(i);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Asserts that two arrays of merits are equal up to rounding.
+   * 
+   * @param message the message
+   * @param expected the expected merits
+   * @param actual the actual merits
+   */
+  protected void assertMerits(String message, double[] expected,
+    double[] actual) {
+    assertEquals(message, expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(message + ", attribute " + i, expected[i], actual[i],
+        1e-12 * Math.max(1, Math.abs(expected[i])));
+    }
+  }
+
+  /**
+   * Checks that KDTree finds the same hits and misses as the exact linear
+   * search, on data where they are unique up to duplicates.
+   * 
+   * @param k the number of neighbours
+   * @param numericClass whether to use a numeric class
+   */
+  protected void checkNeighbourSearch(int k, boolean numericClass) {
+    try {
+      Instances data = getClusters(k, numericClass);
+      double[] expected = getMerits(data, k, null, 1);
+      double[] actual = getMerits(data, k, new KDTree(), 1);
+      assertMerits("KDTree differs from the linear search", expected, actual);
+      assertEquals("First attribute not ranked highest", 0,
+        Utils.maxIndex(expected));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Evaluating failed: " + e);
+    }
+  }
+
+  /**
+   * tests the KDTree search with a nominal class
+   */
+  public void testNeighbourSearchNominalClass() {
+    checkNeighbourSearch(3, false);
+  }
+
+  /**
+   * tests the KDTree search with a numeric class
+   */
+  public void testNeighbourSearchNumericClass() {
+    checkNeighbourSearch(3, true);
+  }
+
+  /**
+   * tests that the KDTree search leaves out only the sampled instance itself
+   * and not its duplicates: the single hit of each instance is its
+   * duplicate, at distance 0
+   */
+  public void testDuplicates() {
+    checkNeighbourSearch(1, false);
+  }
+
+  /**
+   * tests that sampling on several threads gives the same merits and
+   * ranking as sampling on one
+   */
+  public void testParallelSampling() {
+    try {
+      for (int c = 0; c < 2; c++) {
+        Instances data = getClusters(3, c == 1);
+        for (int s = 0; s < 2; s++) {
+          NearestNeighbourSearch search = (s == 0) ? null : new KDTree();
+          double[] expected = getMerits(data, 3, search, 1);
+          double[] actual = getMerits(data, 3, search, 3);
+          String message = ((c == 1) ? "numeric" : "nominal") + " class, "
+            + ((s == 0) ? "linear" : "KDTree") + " search";
+          assertMerits("Different merits, " + message, expected, actual);
+          int[] expectedRanking = Utils.sort(expected);
+          int[] actualRanking = Utils.sort(actual);
+          for (int i = 0; i < expectedRanking.length; i++) {
+            assertEquals("Different ranking, " + message, expectedRanking[i],
+              actualRanking[i]);
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Evaluating failed: " + e);
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(ReliefFAttributeEvalTest.class);
   }
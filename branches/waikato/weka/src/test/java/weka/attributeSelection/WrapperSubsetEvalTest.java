@@ -19,8 +19,17 @@
 
 package weka.attributeSelection;
 
+import java.io.StringReader;
+import java.util.BitSet;
+import java.util.Random;
+
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
 
 /**
  * Tests BestFirst. Run from the command line with:<p/>
@@ -48,6 +57,202 @@ public class WrapperSubsetEvalTest
     return eval;
   }
 
+  /**
+   * Generates sparse test data with a nominal class in the middle. The data
+   * contains missing values and instance weights.
+   *
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getSparseData() throws Exception {
+    StringBuffer arff = new StringBuffer("@relation test\n"
+      + "@attribute a0 numeric\n" + "@attribute a1 numeric\n"
+      + "@attribute a2 {x,y,z}\n" + "@attribute a3 numeric\n"
+      + "@attribute class {yes,no}\n" + "@attribute a5 numeric\n"
+      + "@attribute a6 {x,y}\n" + "@attribute a7 numeric\n" + "@data\n");
+    String[][] nominal = { null, null, { "x", "y", "z" }, null, null, null,
+      { "x", "y" }, null };
+
+    Random random = new Random(5);
+    for (int n = 0; n < 120; n++) {
+      arff.append('{');
+      boolean first = true;
+      int a0 = 0;
+      for (int i = 0; i < nominal.length; i++) {
+        String value;
+        if (i == 4) {
+          value = (a0 > 3) ? "no" : null;
+        } else if (random.nextInt(3) == 0) {
+          continue;
+        } else if (random.nextInt(15) == 0) {
+          value = "?";
+        } else if (nominal[i] != null) {
+          // no explicit zeros, which the filter would keep
+          value = nominal[i][1 + random.nextInt(nominal[i].length - 1)];
+        } else {
+          int v = 1 + random.nextInt(9);
+          if (i == 0) {
+            a0 = v;
+          }
+          value = Integer.toString(v);
+        }
+        if (value == null) {
+          continue;
+        }
+        if (!first) {
+          arff.append(',');
+        }
+        arff.append(i).append(' ').append(value);
+        first = false;
+      }
+      arff.append('}');
+      if (n % 9 == 0) {
+        arff.append(",{3}");
+      }
+      arff.append('\n');
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(4);
+    return data;
+  }
+
+  /**
+   * Returns a few subsets of the attributes: the empty set, each attribute
+   * on its own, some pairs and all attributes.
+   *
+   * @param data the data
+   * @return the subsets
+   */
+  protected BitSet[] getSubsets(Instances data) {
+    int numAttributes = data.numAttributes();
+    BitSet[] result = new BitSet[2 * numAttributes + 1];
+    for (int i = 0; i < numAttributes; i++) {
+      result[i] = new BitSet(numAttributes);
+      result[i].set(i);
+      result[numAttributes + i] = new BitSet(numAttributes);
+      result[numAttributes + i].set(i);
+      result[numAttributes + i].set((3 * i + 1) % numAttributes);
+    }
+    result[2 * numAttributes] = new BitSet(numAttributes);
+    result[2 * numAttributes].set(0, numAttributes);
+    for (BitSet subset : result) {
+      subset.clear(data.classIndex());
+    }
+    return result;
+  }
+
+  /**
+   * tests that projecting sparse data with the class in the middle gives the
+   * same data as the Remove filter
+   */
+  public void testProject() {
+    try {
+      Instances data = getSparseData();
+      WrapperSubsetEval eval = new WrapperSubsetEval();
+      eval.buildEvaluator(data);
+
+      for (BitSet subset : getSubsets(data)) {
+        Instances actual = eval.project(subset);
+
+        int numKept = 0;
+        for (int i = 0; i < data.numAttributes(); i++) {
+          if (subset.get(i) || i == data.classIndex()) {
+            numKept++;
+          }
+        }
+        int[] kept = new int[numKept];
+        for (int i = 0, j = 0; i < data.numAttributes(); i++) {
+          if (subset.get(i) || i == data.classIndex()) {
+            kept[j++] = i;
+          }
+        }
+        Remove remove = new Remove();
+        remove.setInvertSelection(true);
+        remove.setAttributeIndicesArray(kept);
+        remove.setInputFormat(data);
+        Instances expected = Filter.useFilter(data, remove);
+
+        String message = "subset " + subset;
+        assertEquals("Different number of attributes, " + message,
+          expected.numAttributes(), actual.numAttributes());
+        assertEquals("Different class index, " + message,
+          expected.classIndex(), actual.classIndex());
+        for (int i = 0; i < expected.numAttributes(); i++) {
+          assertEquals("Different attribute, " + message,
+            expected.attribute(i).toString(), actual.attribute(i).toString());
+        }
+        assertEquals("Different number of instances, " + message,
+          expected.numInstances(), actual.numInstances());
+        for (int i = 0; i < expected.numInstances(); i++) {
+          assertEquals("Different instance " + i + ", " + message,
+            expected.instance(i).toString(), actual.instance(i).toString());
+          assertEquals("Different weight " + i + ", " + message,
+            expected.instance(i).weight(), actual.instance(i).weight(), 0);
+          assertEquals("Different type " + i + ", " + message,
+            expected.instance(i).getClass(), actual.instance(i).getClass());
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Projecting failed: " + e);
+    }
+  }
+
+  /**
+   * tests that running the folds on several threads gives the same merits
+   * as running them on one
+   */
+  public void testParallelFolds() {
+    try {
+      Instances data = getSparseData();
+      WrapperSubsetEval serial = new WrapperSubsetEval();
+      serial.setClassifier(new J48());
+      serial.buildEvaluator(data);
+      WrapperSubsetEval parallel = new WrapperSubsetEval();
+      parallel.setClassifier(new J48());
+      parallel.setNumExecutionSlots(3);
+      parallel.buildEvaluator(data);
+
+      for (BitSet subset : getSubsets(data)) {
+        assertEquals("Different merit, subset " + subset,
+          serial.evaluateSubset(subset), parallel.evaluateSubset(subset),
+          1e-12);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Evaluating failed: " + e);
+    }
+  }
+
+  /**
+   * tests that a serialized evaluator can still evaluate subsets, although
+   * the merits it remembered are not serialized
+   */
+  public void testSerialized() {
+    try {
+      Instances data = getSparseData();
+      WrapperSubsetEval eval = new WrapperSubsetEval();
+      eval.setClassifier(new J48());
+      eval.buildEvaluator(data);
+      BitSet[] subsets = getSubsets(data);
+      double[] expected = new double[subsets.length];
+      for (int i = 0; i < subsets.length; i++) {
+        expected[i] = eval.evaluateSubset(subsets[i]);
+      }
+
+      WrapperSubsetEval copy = (WrapperSubsetEval) new SerializedObject(eval)
+        .getObject();
+      for (int i = 0; i < subsets.length; i++) {
+        assertEquals("Different merit, subset " + subsets[i], expected[i],
+          copy.evaluateSubset(subsets[i]), 0);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Evaluating failed: " + e);
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(WrapperSubsetEvalTest.class);
   }
@@ -21,11 +21,23 @@ package weka.classifiers.evaluation;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.Random;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.lazy.LWL;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomForest;
+import weka.core.DenseInstance;
 import weka.core.Instances;
+import weka.core.PreallocatedBatchPredictor;
+import weka.core.neighboursearch.KDTree;
 
 /**
  * Tests Evaluation. So far just does a simple regression test for
@@ -80,6 +92,131 @@ public class EvaluationTest extends TestCase {
     }
   }
 
+  public void testParallelCrossValidation() throws Exception {
+    Instances inst = new Instances(new StringReader(DATA));
+    inst.setClassIndex(inst.numAttributes() - 1);
+    REPTree tree = new REPTree();
+    tree.setMinNum(1);
+    tree.setNoPruning(true);
+
+    Evaluation sequential = new Evaluation(inst);
+    sequential.crossValidateModel(tree, inst, 3, new Random(1));
+
+    Evaluation parallel = new Evaluation(inst);
+    parallel.setNumExecutionSlots(3);
+    parallel.crossValidateModel(tree, inst, 3, new Random(1));
+
+    assertEquals(sequential.toSummaryString(), parallel.toSummaryString());
+    assertEquals(sequential.toMatrixString(), parallel.toMatrixString());
+    assertEquals(sequential.predictions().size(), parallel.predictions()
+      .size());
+    for (int i = 0; i < sequential.predictions().size(); i++) {
+      assertEquals(sequential.predictions().get(i).predicted(), parallel
+        .predictions().get(i).predicted(), 0.0);
+    }
+  }
+
+  public void testParallelLeaveOneOut() throws Exception {
+    Instances inst = new Instances(new StringReader(DATA));
+    inst.setClassIndex(inst.numAttributes() - 1);
+    REPTree tree = new REPTree();
+    tree.setMinNum(1);
+    tree.setNoPruning(true);
+
+    // more folds than slots, so that folds have to wait for a free slot
+    Evaluation sequential = new Evaluation(inst);
+    sequential.crossValidateModel(tree, inst, inst.numInstances(),
+      new Random(1));
+
+    Evaluation parallel = new Evaluation(inst);
+    parallel.setNumExecutionSlots(2);
+    parallel.crossValidateModel(tree, inst, inst.numInstances(),
+      new Random(1));
+
+    assertEquals(sequential.toSummaryString(), parallel.toSummaryString());
+    assertEquals(sequential.toMatrixString(), parallel.toMatrixString());
+    for (int i = 0; i < sequential.predictions().size(); i++) {
+      assertEquals(sequential.predictions().get(i).predicted(), parallel
+        .predictions().get(i).predicted(), 0.0);
+    }
+  }
+
+  public void testBatchPrediction() throws Exception {
+    Instances inst = new Instances(new StringReader(DATA));
+    inst.setClassIndex(inst.numAttributes() - 1);
+    REPTree tree = new REPTree();
+    tree.setMinNum(1);
+    tree.setNoPruning(true);
+    RandomForest forest = new RandomForest();
+    forest.setNumTrees(5);
+    Classifier[] classifiers = { new NaiveBayes(), new Logistic(), tree,
+      forest };
+
+    for (Classifier classifier : classifiers) {
+      classifier.buildClassifier(inst);
+      PreallocatedBatchPredictor predictor =
+        (PreallocatedBatchPredictor) classifier;
+      predictor.setBatchSize("4");
+
+      double[][] batch = new double[inst.numInstances()][inst.numClasses()];
+      predictor.distributionsForInstances(inst, batch);
+      for (int i = 0; i < inst.numInstances(); i++) {
+        double[] single = classifier.distributionForInstance(inst.instance(i));
+        for (int j = 0; j < single.length; j++) {
+          assertEquals(classifier.getClass().getName(), single[j],
+            batch[i][j], 1e-12);
+        }
+      }
+
+      // evaluateModel scores the six instances in two batches
+      Evaluation eval = new Evaluation(inst);
+      double[] preds = eval.evaluateModel(classifier, inst);
+      for (int i = 0; i < inst.numInstances(); i++) {
+        assertEquals(classifier.getClass().getName(),
+          classifier.classifyInstance(inst.instance(i)), preds[i], 0.0);
+        assertEquals(classifier.getClass().getName(), batch[i][0],
+          ((NominalPrediction) eval.predictions().get(i)).distribution()[0],
+          1e-12);
+      }
+    }
+  }
+
+  public void testLazyBatchPrediction() throws Exception {
+    Instances inst = new Instances(new StringReader(DATA));
+    inst.setClassIndex(inst.numAttributes() - 1);
+    // test values outside the training ranges, which widen the ranges the
+    // distances are normalized with for the instances after them
+    Instances test = new Instances(new StringReader(DATA));
+    test.setClassIndex(test.numAttributes() - 1);
+    double[][] values = { { 6.3, 3.1 }, { 8.0, 3.1 }, { 6.6, 3.3 },
+      { 6.0, 2.0 }, { 6.8, 3.0 }, { 4.0, 4.5 }, { 6.4, 3.2 } };
+    test.delete();
+    for (double[] value : values) {
+      test.add(new DenseInstance(1.0, new double[] { value[0], value[1], 0 }));
+    }
+
+    IBk tree = new IBk(3);
+    tree.setNearestNeighbourSearchAlgorithm(new KDTree());
+    Classifier[] classifiers = { new IBk(3), tree, new LWL() };
+    for (int c = 0; c < classifiers.length; c++) {
+      Classifier sequential = classifiers[c];
+      Classifier batch = AbstractClassifier.makeCopy(sequential);
+      sequential.buildClassifier(inst);
+      batch.buildClassifier(inst);
+
+      double[][] batchDists = new double[test.numInstances()][];
+      ((PreallocatedBatchPredictor) batch).distributionsForInstances(test,
+        batchDists);
+      for (int i = 0; i < test.numInstances(); i++) {
+        double[] single = sequential.distributionForInstance(test.instance(i));
+        for (int j = 0; j < single.length; j++) {
+          assertEquals("Classifier " + c + ", instance " + i, single[j],
+            batchDists[i][j], 1e-12);
+        }
+      }
+    }
+  }
+
   public static Test suite() {
     return new TestSuite(weka.classifiers.evaluation.EvaluationTest.class);
   }
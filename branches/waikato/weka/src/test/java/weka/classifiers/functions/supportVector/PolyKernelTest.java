@@ -21,6 +21,8 @@ package weka.classifiers.functions.supportVector;
 
 import weka.classifiers.functions.supportVector.AbstractKernelTest;
 import weka.classifiers.functions.supportVector.Kernel;
+import weka.core.Attribute;
+import weka.core.Instances;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -44,6 +46,44 @@ public class PolyKernelTest
     return new PolyKernel();
   }
 
+  /**
+   * Tests that the row cache, with evictions and rows computed in parallel,
+   * returns the same values as the uncached kernel.
+   */
+  public void testRowCache() throws Exception {
+    // 400 rows of 3200 bytes each do not fit into 1 MB
+    Instances data = m_Tester.makeTestDataset(
+        42, 400, 0, 3, 0, 0, 0, 2, Attribute.NOMINAL, false);
+
+    PolyKernel plain = new PolyKernel();
+    plain.setExponent(2.0);
+    plain.setCacheSize(-1);
+    plain.buildKernel(data);
+
+    PolyKernel cached = new PolyKernel();
+    cached.setExponent(2.0);
+    cached.setRowCacheSize(1);
+    cached.setOffHeap(true);
+    cached.setNumExecutionSlots(3);
+    cached.buildKernel(data);
+
+    int evals = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      for (int n = 0; n < data.numInstances(); n++) {
+        for (int i = 0; i < data.numInstances(); i += 7) {
+          assertEquals(n + "-" + i,
+              plain.eval(n, i, data.instance(n)),
+              cached.eval(n, i, data.instance(n)), 1e-12);
+          evals++;
+        }
+      }
+    }
+    assertTrue("misses", cached.numCacheMisses() > 0);
+    assertEquals("lookups", evals,
+        cached.numCacheHits() + cached.numCacheMisses());
+    cached.clean();
+  }
+
   public static Test suite() {
     return new TestSuite(PolyKernelTest.class);
   }
@@ -0,0 +1,185 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.classifiers.trees;
+
+import java.io.StringReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Compares compiled trees with the models they were compiled from. Run from
+ * the command line with: <p/>
+ * java weka.classifiers.trees.CompiledTreeTest
+ *
+ * @version $Revision$
+ */
+public class CompiledTreeTest extends TestCase {
+
+  /** the data, with missing values and a nominal and a numeric attribute */
+  protected final static String DATA = "@relation test\n"
+    + "@attribute outlook {sunny, overcast, rainy}\n"
+    + "@attribute temperature numeric\n"
+    + "@attribute humidity numeric\n"
+    + "@attribute play {yes, no}\n" + "@data\n"
+    + "sunny,85,85,no\n" + "sunny,80,90,no\n" + "overcast,83,86,yes\n"
+    + "rainy,70,96,yes\n" + "rainy,68,80,yes\n" + "rainy,65,70,no\n"
+    + "overcast,64,65,yes\n" + "sunny,72,95,no\n" + "sunny,69,70,yes\n"
+    + "rainy,75,80,yes\n" + "sunny,75,70,yes\n" + "overcast,72,90,yes\n"
+    + "overcast,81,75,yes\n" + "rainy,71,91,no\n" + "?,70,80,yes\n"
+    + "sunny,?,75,no\n" + "rainy,73,?,no\n" + "?,?,?,yes\n";
+
+  /**
+   * Constructs the <code>CompiledTreeTest</code>.
+   *
+   * @param name the name of the test class
+   */
+  public CompiledTreeTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Compares the distributions of a model and its compiled form.
+   *
+   * @param classifier the built model
+   * @param compiled the compiled model
+   * @param data the data to compare on
+   * @throws Exception if scoring fails
+   */
+  protected void compare(Classifier classifier, CompiledTree compiled,
+    Instances data) throws Exception {
+
+    double[][] batch = new double[data.numInstances()][data.numClasses()];
+    compiled.distributionsForInstances(data, batch);
+    for (int i = 0; i < data.numInstances(); i++) {
+      double[] expected = classifier.distributionForInstance(data.instance(i));
+      double[] actual = compiled.distributionForInstance(data.instance(i));
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(classifier.getClass().getName() + ", instance " + i,
+          expected[j], actual[j], 1e-12);
+        assertEquals(classifier.getClass().getName() + ", instance " + i,
+          expected[j], batch[i][j], 1e-12);
+      }
+    }
+  }
+
+  /**
+   * Returns the test data.
+   *
+   * @param numericClass whether to use the numeric humidity as class
+   * @return the data
+   * @throws Exception if reading fails
+   */
+  protected Instances getData(boolean numericClass) throws Exception {
+    Instances data = new Instances(new StringReader(DATA));
+    data.setClassIndex(numericClass ? 2 : data.numAttributes() - 1);
+    if (numericClass) {
+      data.deleteWithMissingClass();
+    }
+    return data;
+  }
+
+  /**
+   * Tests J48, with and without binary splits and Laplace correction.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testJ48() throws Exception {
+    Instances data = getData(false);
+    for (int i = 0; i < 4; i++) {
+      J48 tree = new J48();
+      tree.setMinNumObj(1);
+      tree.setUnpruned(true);
+      tree.setBinarySplits(i % 2 == 1);
+      tree.setUseLaplace(i >= 2);
+      tree.buildClassifier(data);
+      compare(tree, tree.compile(), data);
+    }
+  }
+
+  /**
+   * Tests RandomTree with nominal and numeric class.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testRandomTree() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      Instances data = getData(i == 1);
+      RandomTree tree = new RandomTree();
+      tree.setMinNum(1);
+      tree.buildClassifier(data);
+      compare(tree, tree.compile(), data);
+    }
+  }
+
+  /**
+   * Tests REPTree with nominal and numeric class.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testREPTree() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      Instances data = getData(i == 1);
+      REPTree tree = new REPTree();
+      tree.setMinNum(1);
+      tree.setNoPruning(true);
+      tree.buildClassifier(data);
+      compare(tree, tree.compile(), data);
+    }
+  }
+
+  /**
+   * Tests RandomForest with nominal and numeric class.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testRandomForest() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      Instances data = getData(i == 1);
+      RandomForest forest = new RandomForest();
+      forest.setNumTrees(7);
+      forest.buildClassifier(data);
+      CompiledTree compiled = forest.compile();
+      assertEquals(7, compiled.numTrees());
+      compare(forest, compiled, data);
+    }
+  }
+
+  /**
+   * returns a test suite
+   *
+   * @return the test suite
+   */
+  public static Test suite() {
+    return new TestSuite(CompiledTreeTest.class);
+  }
+
+  /**
+   * for running the test from commandline
+   *
+   * @param args the commandline arguments - ignored
+   */
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.classifiers.trees;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Instances;
+
+/**
+ * Tests the column-store path of RandomForest. Run from the command line
+ * with: <p/>
+ * java weka.classifiers.trees.RandomForestTest
+ *
+ * @version $Revision$
+ */
+public class RandomForestTest extends TestCase {
+
+  /**
+   * Constructs the <code>RandomForestTest</code>.
+   *
+   * @param name the name of the test class
+   */
+  public RandomForestTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Generates the test data: the class depends on the first two attributes,
+   * the third is noise. The data contains missing values and instance
+   * weights.
+   *
+   * @param numericClass whether to generate a numeric class
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getData(boolean numericClass) throws Exception {
+    StringBuffer arff = new StringBuffer("@relation test\n"
+      + "@attribute x numeric\n" + "@attribute colour {red,green,blue}\n"
+      + "@attribute noise numeric\n");
+    arff.append(numericClass ? "@attribute class numeric\n"
+      : "@attribute class {yes,no}\n");
+    arff.append("@data\n");
+
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      double x = random.nextInt(50) / 5.0;
+      int colour = random.nextInt(3);
+      double noise = random.nextDouble();
+      arff.append((i % 23 == 0) ? "?" : Double.toString(x));
+      arff.append(',');
+      arff.append((i % 19 == 0) ? "?" : new String[] { "red", "green",
+        "blue" }[colour]);
+      arff.append(',');
+      arff.append(noise);
+      arff.append(',');
+      if (numericClass) {
+        arff.append(x * (colour + 1));
+      } else {
+        arff.append(((x > 4) == (colour == 0)) ? "yes" : "no");
+      }
+      if (i % 7 == 0) {
+        arff.append(",{2}");
+      }
+      arff.append('\n');
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(data.numAttributes() - 1);
+    return data;
+  }
+
+  /**
+   * Builds a forest on the column store.
+   *
+   * @param data the training data
+   * @param numSlots the number of execution slots
+   * @param numBins the number of bins, 0 for exact split search
+   * @return the forest
+   * @throws Exception if building fails
+   */
+  protected RandomForest build(Instances data, int numSlots, int numBins)
+    throws Exception {
+
+    RandomForest forest = new RandomForest();
+    forest.setNumTrees(20);
+    forest.setSeed(3);
+    forest.setUseColumnStore(true);
+    forest.setComputeAttributeImportance(true);
+    forest.setNumBins(numBins);
+    forest.setNumExecutionSlots(numSlots);
+    forest.buildClassifier(data);
+    return forest;
+  }
+
+  /**
+   * Asserts that two arrays are equal, treating null rows as equal.
+   *
+   * @param message the message
+   * @param expected the expected values
+   * @param actual the actual values
+   */
+  protected void assertArrayEquals(String message, double[] expected,
+    double[] actual) {
+
+    if (expected == null) {
+      assertNull(message, actual);
+      return;
+    }
+    assertNotNull(message, actual);
+    assertEquals(message, expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(message + ", index " + i, expected[i], actual[i], 0.0);
+    }
+  }
+
+  /**
+   * Compares the forests built on one and on several execution slots:
+   * predictions, out-of-bag output and attribute importance must be
+   * identical.
+   *
+   * @param numericClass whether to use a numeric class
+   * @param numBins the number of bins, 0 for exact split search
+   * @throws Exception if the test fails
+   */
+  protected void compareExecutionSlots(boolean numericClass, int numBins)
+    throws Exception {
+
+    Instances data = getData(numericClass);
+    RandomForest single = build(data, 1, numBins);
+    RandomForest multi = build(data, 4, numBins);
+
+    for (int i = 0; i < data.numInstances(); i++) {
+      assertArrayEquals("distribution of instance " + i,
+        single.distributionForInstance(data.instance(i)),
+        multi.distributionForInstance(data.instance(i)));
+    }
+    assertEquals("out-of-bag error", single.measureOutOfBagError(),
+      multi.measureOutOfBagError(), 0.0);
+    double[][] expected = single.getOutOfBagPredictions();
+    double[][] actual = multi.getOutOfBagPredictions();
+    assertEquals("number of out-of-bag predictions", data.numInstances(),
+      expected.length);
+    assertEquals("number of out-of-bag predictions", expected.length,
+      actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals("out-of-bag prediction of instance " + i,
+        expected[i], actual[i]);
+    }
+    assertArrayEquals("attribute importance",
+      single.getAttributeImportance(), multi.getAttributeImportance());
+  }
+
+  /**
+   * Tests one against several execution slots with a nominal class.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testExecutionSlotsNominalClass() throws Exception {
+    compareExecutionSlots(false, 0);
+    compareExecutionSlots(false, 16);
+  }
+
+  /**
+   * Tests one against several execution slots with a numeric class.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testExecutionSlotsNumericClass() throws Exception {
+    compareExecutionSlots(true, 0);
+    compareExecutionSlots(true, 16);
+  }
+
+  /**
+   * Tests that the attributes the class depends on are more important than
+   * the noise attribute, and that the class attribute gets no importance.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testAttributeImportance() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      Instances data = getData(i == 1);
+      double[] importance = build(data, 2, 0).getAttributeImportance();
+      assertEquals(data.numAttributes(), importance.length);
+      assertTrue(Double.isNaN(importance[data.classIndex()]));
+      assertTrue("x more important than noise", importance[0] > importance[2]);
+      assertTrue("colour more important than noise",
+        importance[1] > importance[2]);
+    }
+  }
+
+  /**
+   * returns a test suite
+   *
+   * @return the test suite
+   */
+  public static Test suite() {
+    return new TestSuite(RandomForestTest.class);
+  }
+
+  /**
+   * for running the test from commandline
+   *
+   * @param args the commandline arguments - ignored
+   */
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
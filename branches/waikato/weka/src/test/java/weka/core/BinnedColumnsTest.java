@@ -0,0 +1,309 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.core;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.classifiers.trees.RandomTree;
+
+/**
+ * Tests BinnedColumns and the binned split search of RandomTree. Run from
+ * the command line with: <p/>
+ * java weka.core.BinnedColumnsTest
+ *
+ * @version $Revision$
+ */
+public class BinnedColumnsTest extends TestCase {
+
+  /**
+   * Constructs the <code>BinnedColumnsTest</code>.
+   *
+   * @param name the name of the test class
+   */
+  public BinnedColumnsTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Generates data with a numeric attribute with the given number of
+   * distinct values, a nominal attribute and a nominal class.
+   *
+   * @param numRows the number of rows
+   * @param numDistinct the number of distinct values of the numeric attribute
+   * @param missing whether the numeric attribute has missing values
+   * @return the data
+   * @throws Exception if the data cannot be created
+   */
+  protected Instances getData(int numRows, int numDistinct, boolean missing)
+    throws Exception {
+
+    StringBuffer arff = new StringBuffer("@relation test\n"
+      + "@attribute x numeric\n" + "@attribute colour {red,green,blue}\n"
+      + "@attribute y numeric\n" + "@attribute class {yes,no}\n" + "@data\n");
+
+    Random random = new Random(7);
+    for (int i = 0; i < numRows; i++) {
+      int x = random.nextInt(numDistinct);
+      int colour = random.nextInt(3);
+      int y = random.nextInt(numDistinct);
+      arff.append((missing && (i % 11 == 0)) ? "?" : Integer.toString(x));
+      arff.append(',');
+      arff.append(new String[] { "red", "green", "blue" }[colour]);
+      arff.append(',');
+      arff.append(y);
+      arff.append(',');
+      boolean positive = (x + y > numDistinct) != (colour == 2);
+      if (random.nextInt(10) == 0) {
+        positive = !positive;
+      }
+      arff.append(positive ? "yes" : "no");
+      arff.append('\n');
+    }
+
+    Instances data = new Instances(new StringReader(arff.toString()));
+    data.setClassIndex(data.numAttributes() - 1);
+    return data;
+  }
+
+  /**
+   * Checks that the buckets of an attribute agree with its split points and
+   * that missing values get the MISSING code.
+   *
+   * @param bins the binned data
+   * @param att the attribute index
+   */
+  protected void checkBins(BinnedColumns bins, int att) {
+    ColumnStore store = bins.store();
+    ColumnStore.Column column = store.column(att);
+    for (int b = 1; b < bins.numBins(att) - 1; b++) {
+      assertTrue("split points increase",
+        bins.splitPoint(att, b - 1) < bins.splitPoint(att, b));
+    }
+    for (int i = 0; i < store.numRows(); i++) {
+      int bin = bins.bin(i, att);
+      if (column.isMissing(i)) {
+        assertEquals("bin of missing value", BinnedColumns.MISSING, bin);
+        continue;
+      }
+      assertTrue("bin in range", bin < bins.numBins(att));
+      double value = column.value(i);
+      if (bin > 0) {
+        assertTrue("value " + value + " not below split point",
+          value >= bins.splitPoint(att, bin - 1));
+      }
+      if (bin < bins.numBins(att) - 1) {
+        assertTrue("value " + value + " below next split point",
+          value < bins.splitPoint(att, bin));
+      }
+    }
+  }
+
+  /**
+   * Tests that an attribute with few distinct values gets one bucket per
+   * value, with the split points halfway between them.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testFewDistinctValues() throws Exception {
+    BinnedColumns bins = new BinnedColumns(new ColumnStore(getData(200, 5,
+      true)), 16);
+
+    assertTrue(bins.isBinned(0));
+    assertEquals(5, bins.numBins(0));
+    for (int b = 0; b < 4; b++) {
+      assertEquals(b + 0.5, bins.splitPoint(0, b), 0.0);
+    }
+    checkBins(bins, 0);
+  }
+
+  /**
+   * Tests that attributes with many distinct values get buckets of roughly
+   * equal size, and that equal values never straddle a bucket boundary.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testEqualFrequency() throws Exception {
+    int numRows = 2000;
+    int maxBins = 10;
+    for (int numDistinct = 20; numDistinct <= 1000; numDistinct *= 7) {
+      Instances data = getData(numRows, numDistinct, true);
+      BinnedColumns bins = new BinnedColumns(new ColumnStore(data), maxBins);
+
+      assertTrue(bins.numBins(0) <= maxBins);
+      checkBins(bins, 0);
+      checkBins(bins, 2);
+
+      // the values of a bucket are in the same bucket everywhere
+      int[] counts = new int[bins.numBins(0)];
+      int numPresent = 0;
+      for (int i = 0; i < numRows; i++) {
+        if (!data.instance(i).isMissing(0)) {
+          counts[bins.bin(i, 0)]++;
+          numPresent++;
+        }
+        for (int j = 0; j < i; j++) {
+          if (data.instance(i).value(2) == data.instance(j).value(2)) {
+            assertEquals("equal values share a bucket", bins.bin(i, 2),
+              bins.bin(j, 2));
+          }
+        }
+      }
+      for (int b = 0; b < counts.length; b++) {
+        assertTrue("bucket " + b + " not empty", counts[b] > 0);
+        assertTrue("bucket " + b + " not too large",
+          counts[b] <= 2 * numPresent / maxBins + numRows / numDistinct);
+      }
+    }
+  }
+
+  /**
+   * Tests that the class and nominal attributes are not binned.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testOnlyNumericAttributes() throws Exception {
+    BinnedColumns bins = new BinnedColumns(new ColumnStore(getData(100, 50,
+      false)), 8);
+
+    assertTrue(bins.isBinned(0));
+    assertFalse(bins.isBinned(1));
+    assertTrue(bins.isBinned(2));
+    assertFalse(bins.isBinned(3));
+  }
+
+  /**
+   * Tests the class histograms, including the bucket for missing values, and
+   * that subtracting the histogram of some rows from the histogram of all
+   * rows gives the histogram of the other rows.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testHistogram() throws Exception {
+    Instances data = getData(300, 40, true);
+    BinnedColumns bins = new BinnedColumns(new ColumnStore(data), 8);
+    int stride = bins.stride();
+    assertEquals(data.numClasses(), stride);
+
+    int[] all = new int[data.numInstances()];
+    double[] allWeights = new double[all.length];
+    int[] left = new int[all.length / 3];
+    double[] leftWeights = new double[left.length];
+    int[] right = new int[all.length - left.length];
+    double[] rightWeights = new double[right.length];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+      allWeights[i] = 1 + i % 3;
+      if (i < left.length) {
+        left[i] = i;
+        leftWeights[i] = allWeights[i];
+      } else {
+        right[i - left.length] = i;
+        rightWeights[i - left.length] = allWeights[i];
+      }
+    }
+
+    double[] hist = bins.histogram(0, all, allWeights);
+    assertEquals((bins.numBins(0) + 1) * stride, hist.length);
+    double[] expected = new double[hist.length];
+    for (int i = 0; i < all.length; i++) {
+      int bin = bins.bin(i, 0);
+      if (bin == BinnedColumns.MISSING) {
+        bin = bins.numBins(0);
+      }
+      expected[bin * stride + (int) data.instance(i).classValue()] +=
+        allWeights[i];
+    }
+    for (int k = 0; k < hist.length; k++) {
+      assertEquals("histogram entry " + k, expected[k], hist[k], 0.0);
+    }
+
+    bins.subtract(hist, bins.histogram(0, left, leftWeights));
+    double[] rest = bins.histogram(0, right, rightWeights);
+    for (int k = 0; k < hist.length; k++) {
+      assertEquals("subtracted histogram entry " + k, rest[k], hist[k], 1e-10);
+    }
+  }
+
+  /**
+   * Tests that RandomTree with binned split search predicts the training
+   * data like the exact search when every distinct value has its own bucket,
+   * and that it still beats the majority class with fewer buckets.
+   *
+   * @throws Exception if the test fails
+   */
+  public void testRandomTree() throws Exception {
+    Instances data = getData(500, 30, false);
+
+    RandomTree exact = new RandomTree();
+    exact.setSeed(5);
+    exact.setUseColumnStore(true);
+    exact.buildClassifier(data);
+
+    RandomTree binned = new RandomTree();
+    binned.setSeed(5);
+    binned.setNumBins(64);
+    binned.buildClassifier(data);
+
+    RandomTree coarse = new RandomTree();
+    coarse.setSeed(5);
+    coarse.setNumBins(4);
+    coarse.buildClassifier(data);
+
+    int[] counts = new int[data.numClasses()];
+    int correct = 0;
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      double[] expected = exact.distributionForInstance(inst);
+      double[] actual = binned.distributionForInstance(inst);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals("distribution of instance " + i, expected[j], actual[j],
+          1e-12);
+      }
+      counts[(int) inst.classValue()]++;
+      if (coarse.classifyInstance(inst) == inst.classValue()) {
+        correct++;
+      }
+    }
+    assertTrue("coarse tree beats the majority class",
+      correct > counts[Utils.maxIndex(counts)]);
+  }
+
+  /**
+   * returns a test suite
+   *
+   * @return the test suite
+   */
+  public static Test suite() {
+    return new TestSuite(BinnedColumnsTest.class);
+  }
+
+  /**
+   * for running the test from commandline
+   *
+   * @param args the commandline arguments - ignored
+   */
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -273,6 +273,99 @@ public abstract class AbstractNearestNeighbourSearchTest extends TestCase {
     }
   }
 
+  /**
+   * tests whether a batch query, answered by several threads, finds the same
+   * neighbours as the queries for the single instances
+   */
+  public void testBatchQueries() {
+    int n;
+    int m;
+    int i;
+    int[][] indices;
+    double[][] distances;
+    double[] expected;
+    Instances neighbors;
+
+    try {
+      m_NearestNeighbourSearch.setNumExecutionSlots(3);
+      m_NearestNeighbourSearch.setInstances(m_Instances);
+
+      for (m = 1; m <= m_NumNeighbors; m++) {
+        indices = new int[m_Instances.numInstances()][];
+        distances = new double[m_Instances.numInstances()][];
+        m_NearestNeighbourSearch.kNearestNeighbours(m_Instances, m, indices,
+          distances);
+
+        for (n = 0; n < m_Instances.numInstances(); n++) {
+          neighbors = m_NearestNeighbourSearch.kNearestNeighbours(
+            m_Instances.instance(n), m);
+          expected = m_NearestNeighbourSearch.getDistances();
+          assertEquals("Different number of neighbors: instance #" + (n + 1)
+            + " with " + m + " neighbors", neighbors.numInstances(),
+            indices[n].length);
+          for (i = 0; i < expected.length; i++) {
+            assertEquals("Different distances: instance #" + (n + 1)
+              + " with " + m + " neighbors", expected[i], distances[n][i],
+              1e-12);
+            assertNotSame(m_Instances.instance(n),
+              m_Instances.instance(indices[n][i]));
+          }
+        }
+      }
+    } catch (Exception e) {
+      fail("Batch query failed: " + e);
+    }
+  }
+
+  /**
+   * tests whether a query into buffers finds the same neighbours as the
+   * query returning the instances, and asks for longer buffers if needed
+   */
+  public void testBufferQueries() {
+    int n;
+    int m;
+    int i;
+    int count;
+    int[] indices;
+    double[] distances;
+    double[] expected;
+    Instances neighbors;
+
+    try {
+      m_NearestNeighbourSearch.setInstances(m_Instances);
+
+      for (m = 1; m <= m_NumNeighbors; m++) {
+        indices = new int[1];
+        distances = new double[1];
+
+        for (n = 0; n < m_Instances.numInstances(); n++) {
+          count = m_NearestNeighbourSearch.kNearestNeighbours(
+            m_Instances.instance(n), m, indices, distances);
+          if (count > indices.length) {
+            indices = new int[count];
+            distances = new double[count];
+            assertEquals("Different number of neighbors on repeated query: "
+              + "instance #" + (n + 1) + " with " + m + " neighbors", count,
+              m_NearestNeighbourSearch.kNearestNeighbours(
+                m_Instances.instance(n), m, indices, distances));
+          }
+
+          neighbors = m_NearestNeighbourSearch.kNearestNeighbours(
+            m_Instances.instance(n), m);
+          expected = m_NearestNeighbourSearch.getDistances();
+          assertEquals("Different number of neighbors: instance #" + (n + 1)
+            + " with " + m + " neighbors", neighbors.numInstances(), count);
+          for (i = 0; i < count; i++) {
+            assertEquals("Different distances: instance #" + (n + 1)
+              + " with " + m + " neighbors", expected[i], distances[i], 1e-12);
+          }
+        }
+      }
+    } catch (Exception e) {
+      fail("Buffer query failed: " + e);
+    }
+  }
+
   /**
    * tests whether the tokenizer correctly initializes in the buildTokenizer
    * method
@@ -0,0 +1,146 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright (C) 2014 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.core.neighboursearch;
+
+import java.lang.ref.WeakReference;
+
+import weka.core.Instances;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Tests HNSW. Run from the command line with: <p/>
+ * java weka.core.neighboursearch.HNSWTest
+ *
+ * @version $Revision$
+ */
+public class HNSWTest
+  extends AbstractNearestNeighbourSearchTest {
+
+  public HNSWTest(String name) {
+    super(name);
+  }
+
+  /** Creates a default HNSW */
+  public NearestNeighbourSearch getNearestNeighbourSearch() {
+    return new HNSW();
+  }
+
+  /**
+   * Returns the fraction of the exact k nearest neighbours of the instances
+   * that a search finds, judged by their distances.
+   *
+   * @param search the search, built on the instances
+   * @param data the instances
+   * @param k the number of neighbours
+   * @return the recall
+   * @throws Exception if a search fails
+   */
+  protected double recall(NearestNeighbourSearch search, Instances data, int k)
+    throws Exception {
+    int found = 0;
+    LinearNNSearch linear = new LinearNNSearch();
+    linear.setInstances(data);
+
+    for (int i = 0; i < data.numInstances(); i++) {
+      linear.kNearestNeighbours(data.instance(i), k);
+      double[] expected = linear.getDistances();
+      Instances neighbours = search.kNearestNeighbours(data.instance(i), k);
+      double[] actual = search.getDistances();
+      assertEquals("Different number of neighbors: instance #" + (i + 1), k,
+        neighbours.numInstances());
+      for (int j = 0; j < k; j++) {
+        if (actual[j] <= expected[k - 1] + 1e-12) {
+          found++;
+        }
+      }
+    }
+
+    return (double) found / (k * data.numInstances());
+  }
+
+  /**
+   * tests whether the graph finds nearly all of the exact nearest neighbours,
+   * both if it is built by several threads and if it is updated with one
+   * instance at a time
+   */
+  public void testRecall() {
+    double recall;
+
+    try {
+      m_NearestNeighbourSearch.setNumExecutionSlots(3);
+      m_NearestNeighbourSearch.setInstances(m_Instances);
+      recall = recall(m_NearestNeighbourSearch, m_Instances, 5);
+      assertTrue("Recall too low after building: " + recall, recall >= 0.9);
+
+      Instances data = new Instances(m_Instances, 0);
+      m_NearestNeighbourSearch.setInstances(data);
+      for (int i = 0; i < m_Instances.numInstances(); i++) {
+        data.add(m_Instances.instance(i));
+        m_NearestNeighbourSearch.update(data.lastInstance());
+      }
+      recall = recall(m_NearestNeighbourSearch, data, 5);
+      assertTrue("Recall too low after updating: " + recall, recall >= 0.9);
+    } catch (Exception e) {
+      fail("Failed to search the graph: " + e);
+    }
+  }
+
+  /**
+   * tests whether a graph that was built and searched by several threads can
+   * be garbage collected once it is no longer referenced, i.e., that the
+   * threads do not keep it reachable through their search buffers
+   */
+  public void testCollectable() {
+    WeakReference<HNSW> ref = null;
+
+    try {
+      HNSW search = new HNSW();
+      search.setNumExecutionSlots(2);
+      search.setInstances(m_Instances);
+      for (int i = 0; i < m_Instances.numInstances(); i++) {
+        search.kNearestNeighbours(m_Instances.instance(i), 3);
+      }
+      ref = new WeakReference<HNSW>(search);
+      search = null;
+    } catch (Exception e) {
+      fail("Failed to search the graph: " + e);
+    }
+
+    for (int i = 0; i < 10 && ref.get() != null; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    assertNull("Graph is still reachable after it was dropped", ref.get());
+  }
+
+  public static Test suite() {
+    return new TestSuite(HNSWTest.class);
+  }
+
+  public static void main(String[] args){
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -23,10 +23,18 @@ package weka.clusterers;
 
 import java.io.Serializable;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.core.Capabilities;
 import weka.core.CapabilitiesHandler;
@@ -78,8 +86,21 @@ import weka.core.Capabilities.Capability;
 * \If set, distance is interpreted as branch length, otherwise it is node height.
 * </pre>
 * 
+* <pre> -num-slots &lt;num&gt;
+*  Number of threads used to compute the distances, 0 for one per processor.
+*  (default 1)
+* </pre>
+* 
 *<!-- options-end -->
 *
+* SINGLE link clustering uses a minimum spanning tree, COMPLETE and AVERAGE
+* link clustering use nearest neighbour chains on a condensed distance matrix,
+* so these take O(n^2) time. The condensed matrix holds n(n-1)/2 doubles in a
+* single array, which limits COMPLETE and AVERAGE link clustering to about
+* 65000 instances (and needs about 4n^2 bytes of memory); SINGLE link
+* clustering has no such limit. The other link types, and all link types in
+* debug mode, use a priority queue of all pairs of clusters.
+*
 * 
 * @author Remco Bouckaert (rrb@xm.co.nz, remco@cs.waikato.ac.nz)
 * @author Eibe Frank (eibe@cs.waikato.ac.nz)
@@ -107,6 +128,11 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
   public DistanceFunction getDistanceFunction() {return m_DistanceFunction;}
   public void setDistanceFunction(DistanceFunction distanceFunction) {m_DistanceFunction = distanceFunction;}
 
+  /** number of threads used to compute the distances, 0 for one per processor **/
+  int m_nNumExecutionSlots = 1;
+  public void setNumExecutionSlots(int nSlots) {m_nNumExecutionSlots = Math.max(0, nSlots);}
+  public int getNumExecutionSlots() {return m_nNumExecutionSlots;}
+
   /** used for priority queue for efficient retrieval of pair of clusters to merge**/
   class Tuple {
     public Tuple(double d, int i, int j, int nSize1, int nSize2) {
@@ -272,6 +298,10 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     Node [] clusterNodes = new Node[nInstances];
     if (m_nLinkType == NEIGHBOR_JOINING) {
       neighborJoining(nClusters, nClusterID, clusterNodes);
+    } else if (m_nLinkType == SINGLE && !m_bDebug) {
+      singleLinkClustering(nClusterID, clusterNodes);
+    } else if ((m_nLinkType == COMPLETE || m_nLinkType == AVERAGE) && !m_bDebug) {
+      nnChainClustering(nClusterID, clusterNodes);
     } else {
       doLinkClustering(nClusters, nClusterID, clusterNodes);
     }
@@ -513,6 +543,326 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     }
   } // doLinkClustering
 
+  /** Perform single link clustering using a minimum spanning tree
+   * The tree is grown with Prim's algorithm, which computes every distance
+   * once and keeps O(n) memory instead of a distance matrix. In each step, the
+   * distances of the remaining instances to the instance added last are
+   * computed by m_nNumExecutionSlots threads. Merging along the edges of the
+   * tree, shortest first, gives the single link hierarchy.
+   * @param nClusterID 
+   * @param clusterNodes 
+   * @throws Exception if the distances can't be computed
+   */
+  void singleLinkClustering(Vector<Integer>[] nClusterID, Node [] clusterNodes) throws Exception {
+    int nInstances = m_instances.numInstances();
+    final double [] fBest = new double[nInstances];
+    final int [] nParent = new int[nInstances];
+    final int [] nRemaining = new int[nInstances - 1];
+    for (int i = 1; i < nInstances; i++) {
+      fBest[i] = Double.POSITIVE_INFINITY;
+      nRemaining[i - 1] = i;
+    }
+    int [] nMerge1 = new int[nInstances - 1];
+    int [] nMerge2 = new int[nInstances - 1];
+    double [] fMergeDist = new double[nInstances - 1];
+
+    // let the distance function initialise itself before threads share it
+    m_DistanceFunction.distance(m_instances.instance(0), m_instances.instance(0));
+    ExecutorService pool = newExecutorPool();
+    try {
+      int iLast = 0;
+      for (int iStep = 0; iStep < nInstances - 1; iStep++) {
+        // update the distances of the remaining instances to the tree,
+        // every thread returns the closest instance of its part
+        final int iAdded = iLast;
+        final int nSize = nInstances - 1 - iStep;
+        int nSlots = Math.min(numSlots(), nSize);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(nSlots);
+        for (int s = 0; s < nSlots; s++) {
+          final int iStart = (int) ((long) nSize * s / nSlots);
+          final int iEnd = (int) ((long) nSize * (s + 1) / nSlots);
+          tasks.add(new Callable<Integer>() {
+            public Integer call() {
+              Instance added = m_instances.instance(iAdded);
+              int iMin = iStart;
+              for (int r = iStart; r < iEnd; r++) {
+                int j = nRemaining[r];
+                double fDist = m_DistanceFunction.distance(added, m_instances.instance(j));
+                if (fDist < fBest[j]) {
+                  fBest[j] = fDist;
+                  nParent[j] = iAdded;
+                }
+                if (fBest[j] < fBest[nRemaining[iMin]]) {
+                  iMin = r;
+                }
+              }
+              return iMin;
+            }
+          });
+        }
+        int iMin = -1;
+        for (int r : runTasks(pool, tasks)) {
+          if (iMin < 0 || fBest[nRemaining[r]] < fBest[nRemaining[iMin]]) {
+            iMin = r;
+          }
+        }
+
+        // add the closest instance to the tree
+        iLast = nRemaining[iMin];
+        nMerge1[iStep] = nParent[iLast];
+        nMerge2[iStep] = iLast;
+        fMergeDist[iStep] = fBest[iLast];
+        nRemaining[iMin] = nRemaining[nSize - 1];
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+    replayMerges(nMerge1, nMerge2, fMergeDist, nClusterID, clusterNodes);
+  } // singleLinkClustering
+
+  /** Perform complete or average link clustering using nearest neighbour chains
+   * The chain follows nearest neighbours until two clusters are each other's
+   * nearest neighbour, which are merged right away. This finds the same
+   * hierarchy as doLinkClustering for link types whose distances satisfy the
+   * Lance-Williams reducibility property, in O(n^2) time, on a condensed
+   * distance matrix of n(n-1)/2 doubles that is updated in place.
+   * @param nClusterID 
+   * @param clusterNodes 
+   * @throws Exception if the distances can't be computed
+   */
+  void nnChainClustering(Vector<Integer>[] nClusterID, Node [] clusterNodes) throws Exception {
+    int nInstances = m_instances.numInstances();
+    double [] fDistance = condensedDistances();
+    boolean [] bActive = new boolean[nInstances];
+    int [] nSize = new int[nInstances];
+    double [] fHeight = new double[nInstances];
+    Arrays.fill(bActive, true);
+    Arrays.fill(nSize, 1);
+    int [] nChain = new int[nInstances];
+    int nChainLength = 0;
+    int iFirstActive = 0;
+    int [] nMerge1 = new int[nInstances - 1];
+    int [] nMerge2 = new int[nInstances - 1];
+    double [] fMergeDist = new double[nInstances - 1];
+
+    int nMerges = 0;
+    while (nMerges < nInstances - 1) {
+      if (nChainLength == 0) {
+        while (!bActive[iFirstActive]) {
+          iFirstActive++;
+        }
+        nChain[nChainLength++] = iFirstActive;
+      }
+
+      // find the nearest neighbour of the last cluster in the chain,
+      // preferring its predecessor in the chain on ties
+      int i1 = nChain[nChainLength - 1];
+      int iPrev = (nChainLength > 1) ? nChain[nChainLength - 2] : -1;
+      int i2 = iPrev;
+      double fMin = (iPrev >= 0) ? fDistance[condensedIndex(i1, iPrev, nInstances)] : 0;
+      for (int j = 0; j < nInstances; j++) {
+        if (bActive[j] && j != i1) {
+          double fDist = fDistance[condensedIndex(i1, j, nInstances)];
+          if (i2 < 0 || fDist < fMin) {
+            fMin = fDist;
+            i2 = j;
+          }
+        }
+      }
+      if (i2 != iPrev) {
+        nChain[nChainLength++] = i2;
+        continue;
+      }
+
+      // reciprocal nearest neighbours: merge, keeping the new cluster at the
+      // smaller index, and make sure rounding never puts it below its children
+      nChainLength -= 2;
+      int iKeep = Math.min(i1, i2);
+      int iDrop = Math.max(i1, i2);
+      fMin = Math.max(fMin, Math.max(fHeight[iKeep], fHeight[iDrop]));
+      nMerge1[nMerges] = iKeep;
+      nMerge2[nMerges] = iDrop;
+      fMergeDist[nMerges] = fMin;
+      nMerges++;
+
+      // Lance-Williams update of the distances to the merged cluster
+      for (int k = 0; k < nInstances; k++) {
+        if (bActive[k] && k != iKeep && k != iDrop) {
+          int iIndex = condensedIndex(k, iKeep, nInstances);
+          double fDist1 = fDistance[iIndex];
+          double fDist2 = fDistance[condensedIndex(k, iDrop, nInstances)];
+          if (m_nLinkType == COMPLETE) {
+            fDistance[iIndex] = Math.max(fDist1, fDist2);
+          } else {
+            fDistance[iIndex] = (nSize[iKeep] * fDist1 + nSize[iDrop] * fDist2) / (nSize[iKeep] + nSize[iDrop]);
+          }
+        }
+      }
+      bActive[iDrop] = false;
+      nSize[iKeep] += nSize[iDrop];
+      fHeight[iKeep] = fMin;
+    }
+    replayMerges(nMerge1, nMerge2, fMergeDist, nClusterID, clusterNodes);
+  } // nnChainClustering
+
+  /** Build the hierarchy from the merges of a complete dendrogram that were
+   * found in any order. The merges are performed in order of increasing
+   * distance until m_nNumClusters clusters are left, keeping each cluster at
+   * the smallest index of its instances like doLinkClustering does.
+   * @param nMerge1 an instance of the first cluster of each merge
+   * @param nMerge2 an instance of the second cluster of each merge
+   * @param fMergeDist the distance of each merge
+   * @param nClusterID 
+   * @param clusterNodes 
+   */
+  void replayMerges(int [] nMerge1, int [] nMerge2, final double [] fMergeDist, Vector<Integer>[] nClusterID, Node [] clusterNodes) {
+    int nInstances = m_instances.numInstances();
+    // stable, so merges at equal distances stay after the ones they depend on
+    Integer [] nOrder = new Integer[fMergeDist.length];
+    for (int i = 0; i < nOrder.length; i++) {
+      nOrder[i] = i;
+    }
+    Arrays.sort(nOrder, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return Double.compare(fMergeDist[o1], fMergeDist[o2]);
+      }
+    });
+
+    int [] nRoot = new int[nInstances];
+    for (int i = 0; i < nInstances; i++) {
+      nRoot[i] = i;
+    }
+    int nMerges = Math.max(0, nInstances - m_nNumClusters);
+    for (int k = 0; k < nMerges; k++) {
+      int iMerge = nOrder[k];
+      int i1 = findRoot(nRoot, nMerge1[iMerge]);
+      int i2 = findRoot(nRoot, nMerge2[iMerge]);
+      int iMin1 = Math.min(i1, i2);
+      int iMin2 = Math.max(i1, i2);
+      nRoot[iMin2] = iMin1;
+      mergeNodes(iMin1, iMin2, fMergeDist[iMerge], fMergeDist[iMerge], clusterNodes);
+    }
+
+    for (int i = 0; i < nInstances; i++) {
+      nClusterID[i].removeAllElements();
+    }
+    for (int i = 0; i < nInstances; i++) {
+      nClusterID[findRoot(nRoot, i)].add(i);
+    }
+  } // replayMerges
+
+  /** find the smallest index of the cluster of an instance, compressing the path to it **/
+  int findRoot(int [] nRoot, int i) {
+    int iRoot = i;
+    while (nRoot[iRoot] != iRoot) {
+      iRoot = nRoot[iRoot];
+    }
+    while (nRoot[i] != iRoot) {
+      int iNext = nRoot[i];
+      nRoot[i] = iRoot;
+      i = iNext;
+    }
+    return iRoot;
+  } // findRoot
+
+  /** calculate the distances between all pairs of instances into a condensed,
+   * upper triangular array, indexed by condensedIndex. The rows are spread
+   * over m_nNumExecutionSlots threads.
+   * @return the distances
+   * @throws Exception if the distances can't be computed or don't fit in an array
+   */
+  double [] condensedDistances() throws Exception {
+    final int nInstances = m_instances.numInstances();
+    long nSize = (long) nInstances * (nInstances - 1) / 2;
+    if (nSize > Integer.MAX_VALUE - 8) {
+      throw new Exception("Too many instances for a distance matrix (" + nInstances
+          + ", at most 65536), use the SINGLE link type for data of this size.");
+    }
+    final double [] fDistance = new double[(int) nSize];
+
+    // let the distance function initialise itself before threads share it
+    m_DistanceFunction.distance(m_instances.instance(0), m_instances.instance(0));
+    final int nSlots = Math.min(numSlots(), nInstances);
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nSlots);
+    for (int s = 0; s < nSlots; s++) {
+      final int iSlot = s;
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          // every so many rows, as the rows get shorter
+          for (int i = iSlot; i < nInstances - 1; i += nSlots) {
+            Instance instance = m_instances.instance(i);
+            int iIndex = condensedIndex(i, i + 1, nInstances);
+            for (int j = i + 1; j < nInstances; j++) {
+              fDistance[iIndex++] = m_DistanceFunction.distance(instance, m_instances.instance(j));
+            }
+          }
+          return null;
+        }
+      });
+    }
+    ExecutorService pool = newExecutorPool();
+    try {
+      runTasks(pool, tasks);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+    return fDistance;
+  } // condensedDistances
+
+  /** index of the distance between two different instances in the condensed distance array **/
+  static int condensedIndex(int i, int j, int nInstances) {
+    int i1 = Math.min(i, j);
+    int i2 = Math.max(i, j);
+    return (int) ((long) i1 * (2L * nInstances - i1 - 1) / 2 + (i2 - i1 - 1));
+  } // condensedIndex
+
+  /** @return the number of threads to use **/
+  int numSlots() {
+    if (m_nNumExecutionSlots == 0) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    return m_nNumExecutionSlots;
+  } // numSlots
+
+  /** @return a pool of numSlots() threads, or null if only one thread is used **/
+  ExecutorService newExecutorPool() {
+    if (numSlots() <= 1) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(numSlots());
+  } // newExecutorPool
+
+  /** run tasks on a pool, or on the calling thread if there is no pool or only one task
+   * @param pool the pool, may be null
+   * @param tasks the tasks to run
+   * @return the results of the tasks, in order
+   * @throws Exception the exception of the first failed task
+   */
+  <T> List<T> runTasks(ExecutorService pool, List<Callable<T>> tasks) throws Exception {
+    List<T> results = new ArrayList<T>(tasks.size());
+    if (pool == null || tasks.size() == 1) {
+      for (Callable<T> task : tasks) {
+        results.add(task.call());
+      }
+      return results;
+    }
+    for (Future<T> future : pool.invokeAll(tasks)) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+    return results;
+  } // runTasks
+
   void merge(int iMin1, int iMin2, double fDist1, double fDist2, Vector<Integer>[] nClusterID, Node [] clusterNodes) {
     if (m_bDebug) {
       System.err.println("Merging " + iMin1 + " " + iMin2 + " " + fDist1 + " " + fDist2);
@@ -523,8 +873,11 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     }
     nClusterID[iMin1].addAll(nClusterID[iMin2]);
     nClusterID[iMin2].removeAllElements();
+    mergeNodes(iMin1, iMin2, fDist1, fDist2, clusterNodes);
+  } // merge
 
-    // track hierarchy
+  /** track hierarchy when merging two clusters, iMin1 < iMin2 **/
+  void mergeNodes(int iMin1, int iMin2, double fDist1, double fDist2, Node [] clusterNodes) {
     Node node = new Node();
     if (clusterNodes[iMin1] == null) {
       node.m_iLeftInstance = iMin1;
@@ -544,7 +897,7 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
       node.setHeight(fDist1, fDist2);
     }
     clusterNodes[iMin1] = node;
-  } // merge
+  } // mergeNodes
 
   /** calculate distance the first time when setting up the distance matrix **/
   double getDistance0(Vector<Integer> cluster1, Vector<Integer> cluster2) {
@@ -813,7 +1166,7 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
    */
   public Enumeration listOptions() {
 
-    Vector newVector = new Vector(8);
+    Vector newVector = new Vector(9);
     newVector.addElement(new Option(
         "\tIf set, classifier is run in debug mode and\n"
         + "\tmay output additional info to the console",
@@ -837,6 +1190,10 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
         "\tDistance function to use.\n"
         + "\t(default: weka.core.EuclideanDistance)",
         "A", 1,"-A <classname and options>"));
+    newVector.addElement(new Option(
+        "\tNumber of threads used to compute the distances,\n"
+        + "\t0 for one per processor. (default 1)",
+        "num-slots", 1, "-num-slots <num>"));
     return newVector.elements();
   }
 
@@ -895,6 +1252,14 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
       setDistanceFunction(new EuclideanDistance());
     }
 
+    optionString = Utils.getOption("num-slots", options);
+    if (optionString.length() != 0) {
+      setNumExecutionSlots(Integer.parseInt(optionString));
+    }
+    else {
+      setNumExecutionSlots(1);
+    }
+
     Utils.checkForRemainingOptions(options);
   }
 
@@ -905,7 +1270,7 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
    */
   public String [] getOptions() {
 
-    String [] options = new String [14];
+    String [] options = new String [16];
     int current = 0;
 
     options[current++] = "-N";
@@ -936,6 +1301,9 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     options[current++] = (m_DistanceFunction.getClass().getName() + " " +
         Utils.joinOptions(m_DistanceFunction.getOptions())).trim();
 
+    options[current++] = "-num-slots";
+    options[current++] = "" + getNumExecutionSlots();
+
     while (current < options.length) {
       options[current++] = "";
     }
@@ -1022,6 +1390,15 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     "If a single hierarchy is desired, set this to 1.";
   }
 
+  /**
+   * @return a string to describe the number of threads
+   */
+  public String numExecutionSlotsTipText() {
+    return "The number of threads used to compute the distances for the SINGLE, " +
+    "COMPLETE and AVERAGE link types, 0 for one per processor. The other link " +
+    "types, and all link types in debug mode, use a single thread.";
+  }
+
   /**
    * @return a string to describe the print Newick flag
    */
@@ -1051,11 +1428,13 @@ public class HierarchicalClusterer extends AbstractClusterer implements OptionHa
     " any item in cluster1 and any item in cluster2\n" +
     "COMPLETE:\n" +
     " find complete link distance aka maximum link, which is the largest distance between" +
-    " any item in cluster1 and any item in cluster2\n" +
+    " any item in cluster1 and any item in cluster2 (at most about 65000 instances, as the" +
+    " pairwise distances are kept in one array)\n" +
     "ADJCOMLPETE:\n" +
     " as COMPLETE, but with adjustment, which is the largest within cluster distance\n" +
     "AVERAGE:\n" +
-    " finds average distance between the elements of the two clusters\n" +
+    " finds average distance between the elements of the two clusters (at most about" +
+    " 65000 instances, as for COMPLETE)\n" +
     "MEAN: \n" +
     " calculates the mean distance of a merged cluster (akak Group-average agglomerative clustering)\n" +
     "CENTROID:\n" +
@@ -22,6 +22,15 @@ package weka.clusterers;
 
 import weka.clusterers.AbstractClustererTest;
 import weka.clusterers.Clusterer;
+import weka.core.Attribute;
+import weka.core.EuclideanDistance;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+
+import java.util.Random;
+import java.util.Vector;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -45,6 +54,141 @@ public class HierarchicalClustererTest
     return new HierarchicalClusterer();
   }
 
+  /**
+   * Returns data with an id string attribute and two numeric attributes.
+   * With ties, the points lie on a line in pairs, pairs of pairs and so on,
+   * with equal distances within the pairs and between the pairs, and two
+   * duplicated points; all merges at equal distances are independent of
+   * each other, so the dendrogram is unique. Without ties, the points are
+   * random.
+   *
+   * @param ties	whether to generate the data with ties
+   * @return		the data
+   */
+  protected Instances getData(boolean ties) {
+    FastVector atts = new FastVector();
+    atts.addElement(new Attribute("id", (FastVector) null));
+    atts.addElement(new Attribute("x"));
+    atts.addElement(new Attribute("y"));
+    Instances data = new Instances("test", atts, 0);
+
+    double[] xs;
+    if (ties) {
+      xs = new double[]{110, 1, 100, 11, 0, 111, 10, 101, 0, 100};
+    } else {
+      Random random = new Random(1);
+      xs = new double[40];
+      for (int i = 0; i < xs.length; i++)
+	xs[i] = random.nextGaussian() * 10 + (i % 4) * 30;
+    }
+    Random random = new Random(2);
+    for (int i = 0; i < xs.length; i++) {
+      double[] vals = new double[3];
+      vals[0] = data.attribute(0).addStringValue("i" + i);
+      vals[1] = xs[i];
+      vals[2] = ties ? 5 : random.nextGaussian();
+      data.add(new Instance(1.0, vals));
+    }
+
+    return data;
+  }
+
+  /**
+   * Returns a clusterer with the given settings, using the Euclidean
+   * distance on the numeric attributes without normalization.
+   *
+   * @param reference	whether to always use the priority queue of
+   * 			doLinkClustering
+   * @param linkType	the link type
+   * @param numClusters	the number of clusters
+   * @param numSlots	the number of threads
+   * @return		the clusterer
+   * @throws Exception	if setting up fails
+   */
+  protected HierarchicalClusterer getClusterer(boolean reference,
+      int linkType, int numClusters, int numSlots) throws Exception {
+    HierarchicalClusterer clusterer;
+    if (reference) {
+      clusterer = new HierarchicalClusterer() {
+	private static final long serialVersionUID = 1L;
+	void singleLinkClustering(Vector<Integer>[] nClusterID, Node [] clusterNodes) {
+	  doLinkClustering(nClusterID.length, nClusterID, clusterNodes);
+	}
+	void nnChainClustering(Vector<Integer>[] nClusterID, Node [] clusterNodes) {
+	  doLinkClustering(nClusterID.length, nClusterID, clusterNodes);
+	}
+      };
+    } else {
+      clusterer = new HierarchicalClusterer();
+    }
+    EuclideanDistance distance = new EuclideanDistance();
+    distance.setAttributeIndices("2-last");
+    distance.setDontNormalize(true);
+    clusterer.setDistanceFunction(distance);
+    clusterer.setLinkType(new SelectedTag(linkType,
+	HierarchicalClusterer.TAGS_LINK_TYPE));
+    clusterer.setNumClusters(numClusters);
+    clusterer.setNumExecutionSlots(numSlots);
+    return clusterer;
+  }
+
+  /**
+   * Compares the minimum spanning tree (SINGLE) and nearest neighbour chain
+   * (COMPLETE, AVERAGE) paths with the priority queue of doLinkClustering:
+   * the dendrograms and the cluster assignments must be the same, on one
+   * and on several threads.
+   *
+   * @param ties	whether to use the data with ties
+   * @throws Exception	if the test fails
+   */
+  protected void compareWithLinkClustering(boolean ties) throws Exception {
+    Instances data = getData(ties);
+    int[] linkTypes = {HierarchicalClusterer.SINGLE,
+		       HierarchicalClusterer.COMPLETE,
+		       HierarchicalClusterer.AVERAGE};
+    // with ties, only cut the dendrogram between groups of equal distances
+    int[] numClusters = ties ? new int[]{1, 2, 4, 8} : new int[]{1, 2, 3, 5};
+    for (int l = 0; l < linkTypes.length; l++) {
+      for (int n = 0; n < numClusters.length; n++) {
+	HierarchicalClusterer expected = getClusterer(
+	    true, linkTypes[l], numClusters[n], 1);
+	expected.buildClusterer(data);
+	for (int slots = 1; slots <= 3; slots += 2) {
+	  String msg = "link type " + linkTypes[l] + ", clusters "
+	    + numClusters[n] + ", slots " + slots;
+	  HierarchicalClusterer actual = getClusterer(
+	      false, linkTypes[l], numClusters[n], slots);
+	  actual.buildClusterer(data);
+	  assertEquals(msg, expected.numberOfClusters(),
+	      actual.numberOfClusters());
+	  assertEquals(msg, expected.toString(), actual.toString());
+	  for (int i = 0; i < data.numInstances(); i++)
+	    assertEquals(msg + ", instance " + i,
+		expected.clusterInstance(data.instance(i)),
+		actual.clusterInstance(data.instance(i)));
+	}
+      }
+    }
+  }
+
+  /**
+   * Tests the fast link types against doLinkClustering on data with ties.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testLinkClusteringWithTies() throws Exception {
+    compareWithLinkClustering(true);
+  }
+
+  /**
+   * Tests the fast link types against doLinkClustering on random data.
+   *
+   * @throws Exception	if the test fails
+   */
+  public void testLinkClusteringWithoutTies() throws Exception {
+    compareWithLinkClustering(false);
+  }
+
   public static Test suite() {
     return new TestSuite(HierarchicalClustererTest.class);
   }